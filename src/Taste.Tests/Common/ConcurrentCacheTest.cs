@@ -0,0 +1,207 @@
+/*
+ * Copyright 2007 and onwards, Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+namespace Taste.Tests
+{
+    using Taste.Common;
+    using System;
+    using System.Threading;
+    using NUnit.Framework;
+
+
+    /**
+     * <p>Tests {@link ConcurrentCache}.</p>
+     */
+    [TestFixture]
+    public class ConcurrentCacheTest : TasteTestCase
+    {
+
+        [Test]
+        public void TestGetCachesValue()
+        {
+            CountingRetriever retriever = new CountingRetriever(0);
+            ConcurrentCache<String, String> cache = new ConcurrentCache<String, String>(retriever);
+            Assert.AreEqual("foo:1", cache["foo"]);
+            Assert.AreEqual("foo:1", cache["foo"]);
+            Assert.AreEqual(1, retriever.Count);
+            Assert.AreEqual(1L, cache.HitCount);
+            Assert.AreEqual(1L, cache.MissCount);
+        }
+
+        [Test]
+        public void TestRemove()
+        {
+            CountingRetriever retriever = new CountingRetriever(0);
+            ConcurrentCache<String, String> cache = new ConcurrentCache<String, String>(retriever);
+            cache.Get("foo");
+            cache.Remove("foo");
+            Assert.AreEqual(0, cache.Count);
+            Assert.AreEqual("foo:2", cache["foo"]);
+        }
+
+        [Test]
+        public void TestWeightEviction()
+        {
+            ConcurrentCache<String, String> cache =
+                new ConcurrentCache<String, String>(new CountingRetriever(0), new LengthWeigher(), 10L, TimeSpan.Zero);
+            cache.Get("aaaa");
+            cache.Get("bbbb");
+            Assert.AreEqual(2, cache.Count);
+            cache.Get("aaaa"); // now "bbbb" is least recently used
+            cache.Get("cccc");
+            Assert.AreEqual(2, cache.Count);
+            Assert.IsTrue(cache.Weight <= 10L);
+            Assert.AreEqual("aaaa:1", cache["aaaa"]);
+        }
+
+        [Test]
+        public void TestConcurrentMissesCoalesce()
+        {
+            CountingRetriever retriever = new CountingRetriever(100);
+            ConcurrentCache<String, String> cache = new ConcurrentCache<String, String>(retriever);
+            Thread[] threads = new Thread[8];
+            String[] results = new String[threads.Length];
+            for (int i = 0; i < threads.Length; i++)
+            {
+                int index = i;
+                threads[i] = new Thread(delegate() { results[index] = cache["foo"]; });
+                threads[i].Start();
+            }
+            foreach (Thread thread in threads)
+            {
+                thread.Join();
+            }
+            Assert.AreEqual(1, retriever.Count);
+            foreach (String result in results)
+            {
+                Assert.AreEqual("foo:1", result);
+            }
+        }
+
+        [Test]
+        public void TestStaleValueServedWhileRefreshing()
+        {
+            CountingRetriever retriever = new CountingRetriever(0);
+            ConcurrentCache<String, String> cache = new ConcurrentCache<String, String>(retriever);
+            Assert.AreEqual("foo:1", cache["foo"]);
+            cache.InvalidateAll();
+            // Stale value comes back immediately; the new one loads in the background
+            Assert.AreEqual("foo:1", cache["foo"]);
+            for (int i = 0; i < 100 && cache.RefreshCount == 0L; i++)
+            {
+                Thread.Sleep(50);
+            }
+            Assert.AreEqual("foo:2", cache["foo"]);
+            Assert.AreEqual(2, retriever.Count);
+        }
+
+        [Test]
+        public void TestMarkStale()
+        {
+            CountingRetriever retriever = new CountingRetriever(0);
+            ConcurrentCache<String, String> cache = new ConcurrentCache<String, String>(retriever);
+            cache.Get("foo");
+            cache.Get("bar");
+            cache.MarkStale("foo");
+            cache.Get("bar");
+            Assert.AreEqual("foo:1", cache["foo"]);
+            for (int i = 0; i < 100 && cache.RefreshCount == 0L; i++)
+            {
+                Thread.Sleep(50);
+            }
+            Assert.AreEqual("foo:3", cache["foo"]);
+            Assert.AreEqual("bar:2", cache["bar"]);
+        }
+
+        [Test]
+        public void TestMarkStaleWhileRefreshing()
+        {
+            GatedRetriever retriever = new GatedRetriever();
+            ConcurrentCache<String, String> cache = new ConcurrentCache<String, String>(retriever);
+            Assert.AreEqual("foo:1", cache["foo"]);
+            cache.MarkStale("foo");
+            Assert.AreEqual("foo:1", cache["foo"]);
+            Assert.IsTrue(retriever.started.WaitOne(5000, false));
+            // Marked stale again while the refresh is still loading
+            cache.MarkStale("foo");
+            retriever.release.Set();
+            for (int i = 0; i < 100 && cache.RefreshCount == 0L; i++)
+            {
+                Thread.Sleep(50);
+            }
+            // The refreshed value is served, but is still stale, so it loads again
+            Assert.AreEqual("foo:2", cache["foo"]);
+            for (int i = 0; i < 100 && cache.RefreshCount < 2L; i++)
+            {
+                Thread.Sleep(50);
+            }
+            Assert.AreEqual("foo:3", cache["foo"]);
+        }
+
+        private class GatedRetriever : SoftCacheRetriever<String, String>
+        {
+            internal readonly ManualResetEvent started = new ManualResetEvent(false);
+            internal readonly ManualResetEvent release = new ManualResetEvent(false);
+            private readonly AtomicInteger count = new AtomicInteger();
+
+            public String GetValue(String key)
+            {
+                int n = count.IncrementAndGet();
+                if (n > 1)
+                {
+                    started.Set();
+                    release.WaitOne();
+                }
+                return key + ':' + n;
+            }
+        }
+
+        private class CountingRetriever : SoftCacheRetriever<String, String>
+        {
+            private readonly AtomicInteger count = new AtomicInteger();
+            private readonly int delayMS;
+
+            internal CountingRetriever(int delayMS)
+            {
+                this.delayMS = delayMS;
+            }
+
+            internal int Count
+            {
+                get { return count.Value; }
+            }
+
+            public String GetValue(String key)
+            {
+                if (delayMS > 0)
+                {
+                    Thread.Sleep(delayMS);
+                }
+                return key + ':' + count.IncrementAndGet();
+            }
+        }
+
+        private class LengthWeigher : CacheWeigher<String, String>
+        {
+            public long Weigh(String key, String value)
+            {
+                return value.Length - 2;
+            }
+        }
+
+    }
+
+}
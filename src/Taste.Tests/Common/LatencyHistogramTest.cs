@@ -0,0 +1,75 @@
+/*
+ * Copyright 2007 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+namespace Taste.Tests
+{
+    using System;
+    using Taste.Common;
+    using NUnit.Framework;
+
+
+    /**
+     * <p>Tests {@link taste.Common.LatencyHistogram}.</p>
+     */
+    [TestFixture]
+    public class LatencyHistogramTest : TasteTestCase
+    {
+
+        [Test]
+        public void TestPercentiles()
+        {
+            LatencyHistogram histogram = new LatencyHistogram();
+            for (long i = 1; i <= 1000; i++)
+            {
+                histogram.Record(i);
+            }
+            Assert.AreEqual(1000L, histogram.Count);
+            Assert.AreEqual(1000L, histogram.Max);
+            Assert.AreEqual(500.5, histogram.Mean, EPSILON);
+            long p50 = histogram.GetPercentile(50.0);
+            Assert.IsTrue(p50 >= 500L && p50 <= 500L * 9 / 8 + 1, "p50 was " + p50);
+            Assert.AreEqual(1000L, histogram.GetPercentile(100.0));
+            Assert.AreEqual(1L, histogram.GetPercentile(0.0));
+        }
+
+        [Test]
+        public void TestMerge()
+        {
+            LatencyHistogram first = new LatencyHistogram();
+            LatencyHistogram second = new LatencyHistogram();
+            first.Record(3L);
+            second.Record(5000L);
+            first.Merge(second);
+            Assert.AreEqual(2L, first.Count);
+            Assert.AreEqual(5000L, first.Max);
+            Assert.AreEqual(3L, first.GetPercentile(50.0));
+        }
+
+        [Test]
+        public void TestRecordCorrected()
+        {
+            LatencyHistogram histogram = new LatencyHistogram();
+            // Requests meant to go out at 3 and 6 were held back by the one that took 10
+            histogram.RecordCorrected(10L, 3L);
+            Assert.AreEqual(3L, histogram.Count);
+            Assert.AreEqual(10L, histogram.Max);
+            Assert.AreEqual(7.0, histogram.Mean, EPSILON);
+            histogram.RecordCorrected(10L, 0L);
+            Assert.AreEqual(4L, histogram.Count);
+        }
+
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright 2007 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+namespace Taste.Tests
+{
+    using System;
+    using System.Runtime.CompilerServices;
+    using Taste.Common;
+    using Taste.Model;
+    using NUnit.Framework;
+
+
+    /**
+     * <p>Tests {@link taste.Common.MemoryBudget}.</p>
+     */
+    [TestFixture]
+    public class MemoryBudgetTest : TasteTestCase
+    {
+
+        [Test]
+        public void TestAccounts()
+        {
+            MemoryBudget budget = new MemoryBudget(1000L);
+            MemoryBudget.Account a = budget.Open("a", null);
+            MemoryBudget.Account b = budget.Open("b", null);
+            a.Grow(600L);
+            Assert.AreEqual(600L, budget.Used);
+            Assert.AreEqual(400L, budget.Available);
+            Assert.IsFalse(b.TryGrow(500L));
+            try
+            {
+                b.Grow(500L);
+                Assert.Fail();
+            }
+            catch (TasteException)
+            {
+                // good
+            }
+            a.Shrink(100L);
+            b.Grow(500L);
+            Assert.AreEqual(1000L, budget.Used);
+            a.Shrink(1000L);
+            Assert.AreEqual(0L, a.Bytes);
+            b.Dispose();
+            Assert.AreEqual(0L, budget.Used);
+            try
+            {
+                b.Grow(1L);
+                Assert.Fail();
+            }
+            catch (IllegalStateException)
+            {
+                // good
+            }
+        }
+
+        [Test]
+        public void TestReclaim()
+        {
+            MemoryBudget budget = new MemoryBudget(1000L);
+            MemoryBudget.Account a = null;
+            a = budget.Open("a", delegate(long bytes)
+            {
+                long freed = Math.Min(bytes, a.Bytes);
+                a.Shrink(freed);
+                return freed;
+            });
+            MemoryBudget.Account b = budget.Open("b", null);
+            a.Grow(600L);
+            Assert.IsTrue(b.TryGrow(700L));
+            Assert.AreEqual(300L, a.Bytes);
+            Assert.AreEqual(1000L, budget.Used);
+            // Nothing left to give
+            Assert.IsFalse(b.TryGrow(400L));
+        }
+
+        [Test]
+        public void TestCheckAvailable()
+        {
+            MemoryBudget budget = new MemoryBudget(1L << 20);
+            Object model = new Object();
+            budget.Track("model", model, 768L << 10);
+            budget.CheckAvailable("small load", 256L << 10);
+            try
+            {
+                budget.CheckAvailable("big load", 512L << 10);
+                Assert.Fail();
+            }
+            catch (TasteException te)
+            {
+                Assert.IsTrue(te.Message.Contains("big load needs an estimated 0.5MB"), te.Message);
+                Assert.IsTrue(te.Message.Contains("held by: model "), te.Message);
+            }
+            // Tracking again replaces the estimate
+            budget.Track("model", model, 256L << 10);
+            Assert.AreEqual(256L << 10, budget.Used);
+            budget.CheckAvailable("big load", 512L << 10);
+            budget.Untrack(model);
+            Assert.AreEqual(0L, budget.Used);
+            GC.KeepAlive(model);
+        }
+
+        [Test]
+        public void TestUnreachableOwnersReleased()
+        {
+            MemoryBudget budget = new MemoryBudget(MemoryBudget.UNLIMITED);
+            HoldAndDrop(budget);
+            GC.Collect();
+            GC.WaitForPendingFinalizers();
+            Assert.AreEqual(0L, budget.Used);
+        }
+
+        [Test]
+        public void TestCacheCharges()
+        {
+            MemoryBudget budget = new MemoryBudget(2500L);
+            ConcurrentCache<String, String> first = new ConcurrentCache<String, String>(new Retriever());
+            first.ChargeTo(budget, "first", new KilobyteSizer());
+            first.Get("a");
+            first.Get("b");
+            Assert.AreEqual(2, first.Count);
+            Assert.AreEqual(budget.Used, first.EstimatedBytes);
+            // A third entry doesn't fit, so the least recently used goes
+            first.Get("c");
+            Assert.AreEqual(2, first.Count);
+            Assert.IsTrue(budget.Used <= budget.Limit);
+
+            // Another cache makes room by having the first evict
+            ConcurrentCache<String, String> second = new ConcurrentCache<String, String>(new Retriever());
+            second.ChargeTo(budget, "second", new KilobyteSizer());
+            second.Get("x");
+            Assert.AreEqual(1, first.Count);
+            Assert.AreEqual(1, second.Count);
+            Assert.AreEqual(budget.Used, first.EstimatedBytes + second.EstimatedBytes);
+
+            first.Clear();
+            second.Remove("x");
+            Assert.AreEqual(0L, budget.Used);
+            try
+            {
+                second.ChargeTo(budget, "again", null);
+                Assert.Fail();
+            }
+            catch (IllegalStateException)
+            {
+                // good
+            }
+        }
+
+        [Test]
+        public void TestEntryLargerThanBudgetNotCached()
+        {
+            MemoryBudget budget = new MemoryBudget(500L);
+            ConcurrentCache<String, String> cache = new ConcurrentCache<String, String>(new Retriever());
+            cache.ChargeTo(budget, "cache", new KilobyteSizer());
+            Assert.AreEqual("a!", cache.Get("a"));
+            Assert.AreEqual(0, cache.Count);
+            Assert.AreEqual(0L, budget.Used);
+        }
+
+        [Test]
+        public void TestModelEstimates()
+        {
+            Assert.IsTrue(MemoryBudget.ArrayBytes(10L, 4) >= 40L);
+            Assert.IsTrue(MemoryBudget.ObjectBytes(16L) > 16L);
+            long generic = GenericDataModel.EstimateBytes(1000L, 100L, 100000L);
+            long compact = CompactDataModel.EstimateBytes(1000L, 100L, 100000L);
+            Assert.IsTrue(compact < generic / 4L, compact + " vs " + generic);
+
+            DataModel dataModel = GetDataModel();
+            long estimated = ((MemoryAccountable) dataModel).EstimatedBytes;
+            Assert.IsTrue(estimated > 0L);
+            Assert.IsTrue(new CompactDataModel(dataModel).EstimatedBytes > 0L);
+        }
+
+        /// <summary>
+        /// Tracks an object and grows an account that nothing refers to once this returns.
+        /// </summary>
+        [MethodImpl(MethodImplOptions.NoInlining)]
+        private static void HoldAndDrop(MemoryBudget budget)
+        {
+            budget.Track("garbage", new Object(), 100L);
+            budget.Open("dropped", null).Grow(100L);
+            Assert.AreEqual(200L, budget.Used);
+        }
+
+        private class Retriever : SoftCacheRetriever<String, String>
+        {
+            public String GetValue(String key)
+            {
+                return key + '!';
+            }
+        }
+
+        private class KilobyteSizer : CacheWeigher<String, String>
+        {
+            public long Weigh(String key, String value)
+            {
+                return 1000L;
+            }
+        }
+
+    }
+
+}
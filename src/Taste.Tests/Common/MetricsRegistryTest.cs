@@ -0,0 +1,95 @@
+/*
+ * Copyright 2007 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+namespace Taste.Tests
+{
+    using System;
+    using Taste.Common;
+    using NUnit.Framework;
+
+
+    /**
+     * <p>Tests {@link taste.Common.MetricsRegistry}.</p>
+     */
+    [TestFixture]
+    public class MetricsRegistryTest : TasteTestCase
+    {
+
+        [Test]
+        public void TestDisabled()
+        {
+            MetricsRegistry registry = new MetricsRegistry();
+            MetricsCounter counter = registry.GetCounter("test.counter");
+            MetricsHistogram histogram = registry.GetHistogram("test.time", "us");
+            bool wasEnabled = MetricsRegistry.Enabled;
+            MetricsRegistry.Enabled = false;
+            try
+            {
+                counter.Increment();
+                Assert.AreEqual(0L, histogram.Start());
+                histogram.Stop(0L);
+                histogram.Record(5L);
+            }
+            finally
+            {
+                MetricsRegistry.Enabled = wasEnabled;
+            }
+            Assert.AreEqual(0L, counter.Count);
+            Assert.AreEqual(0L, histogram.Snapshot().Count);
+        }
+
+        [Test]
+        public void TestText()
+        {
+            MetricsRegistry registry = new MetricsRegistry();
+            Assert.AreSame(registry.GetCounter("test.rows"), registry.GetCounter("test.rows"));
+            bool wasEnabled = MetricsRegistry.Enabled;
+            MetricsRegistry.Enabled = true;
+            try
+            {
+                registry.GetCounter("test.rows").Add(3L);
+                registry.GetHistogram("test.size", "users").Record(7L);
+            }
+            finally
+            {
+                MetricsRegistry.Enabled = wasEnabled;
+            }
+            String text = registry.ToText();
+            Assert.IsTrue(text.Contains("taste_test_rows_total 3\n"), text);
+            Assert.IsTrue(text.Contains("taste_test_size_users{quantile=\"0.5\"} 7\n"), text);
+            Assert.IsTrue(text.Contains("taste_test_size_users_count 1\n"), text);
+            registry.Reset();
+            Assert.AreEqual(0L, registry.GetCounter("test.rows").Count);
+        }
+
+        [Test]
+        public void TestNameClash()
+        {
+            MetricsRegistry registry = new MetricsRegistry();
+            registry.GetCounter("test.clash");
+            try
+            {
+                registry.GetHistogram("test.clash", "us");
+                Assert.Fail();
+            }
+            catch (ArgumentException)
+            {
+                // good
+            }
+        }
+
+    }
+}
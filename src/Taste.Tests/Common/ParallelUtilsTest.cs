@@ -0,0 +1,76 @@
+/*
+ * Copyright 2007 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+namespace Taste.Tests
+{
+    using System;
+    using System.Threading;
+    using Taste.Common;
+    using NUnit.Framework;
+
+
+    /**
+     * <p>Tests {@link taste.Common.ParallelUtils}.</p>
+     */
+    [TestFixture]
+    public class ParallelUtilsTest : TasteTestCase
+    {
+
+        [Test]
+        public void TestFanOut()
+        {
+            int[] runs = new int[1000];
+            int running = 0;
+            int maxRunning = 0;
+            ParallelUtils.FanOut(runs.Length, 4, delegate(int i)
+            {
+                int now = Interlocked.Increment(ref running);
+                lock (runs)
+                {
+                    maxRunning = Math.Max(maxRunning, now);
+                }
+                Interlocked.Increment(ref runs[i]);
+                Interlocked.Decrement(ref running);
+            });
+            foreach (int count in runs)
+            {
+                Assert.AreEqual(1, count);
+            }
+            Assert.IsTrue(maxRunning <= 4, "maxRunning was " + maxRunning);
+        }
+
+        [Test]
+        public void TestFanOutFailure()
+        {
+            try
+            {
+                ParallelUtils.FanOut(100, 3, delegate(int i)
+                {
+                    if (i == 17)
+                    {
+                        throw new InvalidOperationException();
+                    }
+                });
+                Assert.Fail();
+            }
+            catch (TasteException te)
+            {
+                Assert.IsInstanceOfType(typeof(InvalidOperationException), te.InnerException);
+            }
+        }
+
+    }
+}
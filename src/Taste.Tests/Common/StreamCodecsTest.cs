@@ -0,0 +1,197 @@
+/*
+ * Copyright 2007 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+namespace Taste.Tests
+{
+    using System;
+    using System.Collections.Generic;
+    using System.IO;
+    using System.IO.Compression;
+    using System.Text;
+    using Taste.Common;
+    using NUnit.Framework;
+
+
+    /**
+     * <p>Tests {@link taste.Common.StreamCodecs}, {@link taste.Common.GzipCodec} and
+     * {@link taste.Common.PrefetchStream}.</p>
+     */
+    [TestFixture]
+    public class StreamCodecsTest : TasteTestCase
+    {
+
+        [Test]
+        public void TestGzipMembers()
+        {
+            MemoryStream plain = new MemoryStream();
+            MemoryStream compressed = new MemoryStream();
+            AddMember(plain, compressed, Text(100000, 1));
+            AddMember(plain, compressed, Encoding.ASCII.GetBytes("hello\n"));
+            // Many small members of the same size, several per chunk
+            for (int i = 0; i < 50; i++)
+            {
+                AddMember(plain, compressed, Encoding.ASCII.GetBytes("x" + (i % 10) + '\n'));
+            }
+            AddMember(plain, compressed, Text(20000, 2));
+            Assert.AreEqual(plain.ToArray(), ReadAll(new GzipCodec().Decompress(new MemoryStream(compressed.ToArray()))));
+        }
+
+        [Test]
+        public void TestGzipTrailingData()
+        {
+            byte[] data = Text(1000, 3);
+            MemoryStream padded = new MemoryStream();
+            padded.Write(Gzip(data), 0, Gzip(data).Length);
+            padded.Write(new byte[100], 0, 100);
+            Assert.AreEqual(data, ReadAll(new GzipCodec().Decompress(new MemoryStream(padded.ToArray()))));
+
+            MemoryStream garbage = new MemoryStream();
+            garbage.Write(Gzip(data), 0, Gzip(data).Length);
+            garbage.Write(new byte[] { 1, 2, 3 }, 0, 3);
+            try
+            {
+                ReadAll(new GzipCodec().Decompress(new MemoryStream(garbage.ToArray())));
+                Assert.Fail();
+            }
+            catch (IOException)
+            {
+                // good
+            }
+        }
+
+        [Test]
+        public void TestPrefetch()
+        {
+            byte[] data = Text(100000, 4);
+            Assert.AreEqual(data, ReadAll(new PrefetchStream(new MemoryStream(data), 1000, 3)));
+
+            Stream failing = new PrefetchStream(new GzipCodec().Decompress(new MemoryStream(data)));
+            try
+            {
+                ReadAll(failing);
+                Assert.Fail();
+            }
+            catch (IOException)
+            {
+                // good
+            }
+            failing.Close();
+
+            // Closing before the end must not hang
+            new PrefetchStream(new MemoryStream(data), 100, 2).Close();
+        }
+
+        [Test]
+        public void TestPaths()
+        {
+            Assert.IsTrue(StreamCodecs.ForPath("ratings.csv.GZ") is GzipCodec);
+            Assert.IsNull(StreamCodecs.ForPath("ratings.csv"));
+            Assert.AreEqual("ratings.csv", StreamCodecs.StripExtension("ratings.csv.gz"));
+            Assert.AreEqual("ratings.csv", StreamCodecs.StripExtension("ratings.csv"));
+        }
+
+        [Test]
+        public void TestReadAll()
+        {
+            String directory = Path.Combine(Path.GetTempPath(), "StreamCodecsTest" + Guid.NewGuid().ToString("N"));
+            Directory.CreateDirectory(directory);
+            try
+            {
+                List<String> paths = new List<String>();
+                List<byte[]> contents = new List<byte[]>();
+                for (int i = 0; i < 10; i++)
+                {
+                    byte[] content = Text(1000 * (i + 1), i);
+                    String path = Path.Combine(directory, "part" + i + ".txt");
+                    if (i % 2 == 0)
+                    {
+                        path += ".gz";
+                        File.WriteAllBytes(path, Gzip(content));
+                    }
+                    else
+                    {
+                        File.WriteAllBytes(path, content);
+                    }
+                    paths.Add(path);
+                    contents.Add(content);
+                }
+                Assert.AreEqual(paths[0], StreamCodecs.FindFile(Path.Combine(directory, "part0.txt")));
+
+                List<String> seen = new List<String>();
+                StreamCodecs.ReadAll(paths, 3, delegate(String path, Stream input)
+                {
+                    Assert.AreEqual(contents[seen.Count], ReadAll(input));
+                    seen.Add(path);
+                });
+                Assert.AreEqual(paths, seen);
+
+                using (Stream input = StreamCodecs.OpenRead(paths[0]))
+                {
+                    Assert.AreEqual(contents[0], ReadAll(input));
+                }
+            }
+            finally
+            {
+                Directory.Delete(directory, true);
+            }
+        }
+
+        private static void AddMember(MemoryStream plain, MemoryStream compressed, byte[] data)
+        {
+            plain.Write(data, 0, data.Length);
+            byte[] member = Gzip(data);
+            compressed.Write(member, 0, member.Length);
+        }
+
+        private static byte[] Gzip(byte[] data)
+        {
+            MemoryStream compressed = new MemoryStream();
+            using (GZipStream gzip = new GZipStream(compressed, CompressionMode.Compress, true))
+            {
+                gzip.Write(data, 0, data.Length);
+            }
+            return compressed.ToArray();
+        }
+
+        /// <returns>lines of ratings-like text, varied enough not to compress to nothing</returns>
+        private static byte[] Text(int length, int seed)
+        {
+            Random random = new Random(seed);
+            StringBuilder text = new StringBuilder(length + 32);
+            while (text.Length < length)
+            {
+                text.Append(random.Next(100000)).Append(',').Append(random.Next(20000)).Append(',')
+                    .Append(random.Next(1, 6)).Append('\n');
+            }
+            text.Length = length;
+            return Encoding.ASCII.GetBytes(text.ToString());
+        }
+
+        private static byte[] ReadAll(Stream stream)
+        {
+            MemoryStream content = new MemoryStream();
+            byte[] buffer = new byte[3001];
+            int read;
+            while ((read = stream.Read(buffer, 0, buffer.Length)) > 0)
+            {
+                content.Write(buffer, 0, read);
+            }
+            return content.ToArray();
+        }
+
+    }
+
+}
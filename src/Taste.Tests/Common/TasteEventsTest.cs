@@ -0,0 +1,82 @@
+/*
+ * Copyright 2007 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+namespace Taste.Tests
+{
+    using System;
+    using System.Collections.Generic;
+    using System.Diagnostics;
+    using Taste.Common;
+    using NUnit.Framework;
+
+
+    /**
+     * <p>Tests {@link taste.Common.TasteEvents}.</p>
+     */
+    [TestFixture]
+    public class TasteEventsTest : TasteTestCase
+    {
+
+        [Test]
+        public void TestEvents()
+        {
+            Assert.AreEqual(0L, TasteEvents.Start());
+            CapturingListener listener = new CapturingListener();
+            TraceSource source = TasteEvents.Source;
+            SourceLevels oldLevel = source.Switch.Level;
+            source.Listeners.Add(listener);
+            source.Switch.Level = SourceLevels.Information;
+            try
+            {
+                long start = TasteEvents.Start();
+                Assert.IsTrue(start != 0L);
+                TasteEvents.Query("getUser", 3, start);
+                TasteEvents.Query("getItem", 1, 0L);
+            }
+            finally
+            {
+                source.Switch.Level = oldLevel;
+                source.Listeners.Remove(listener);
+            }
+            Assert.AreEqual(1, listener.ids.Count);
+            Assert.AreEqual(TasteEvents.QUERY, listener.ids[0]);
+            Assert.AreEqual("getUser", listener.data[0][0]);
+            Assert.AreEqual(3L, listener.data[0][1]);
+        }
+
+        private sealed class CapturingListener : TraceListener
+        {
+            internal readonly List<int> ids = new List<int>();
+            internal readonly List<object[]> data = new List<object[]>();
+
+            public override void TraceData(TraceEventCache eventCache, String source, TraceEventType eventType, int id,
+                                           params object[] data)
+            {
+                ids.Add(id);
+                this.data.Add(data);
+            }
+
+            public override void Write(String message)
+            {
+            }
+
+            public override void WriteLine(String message)
+            {
+            }
+        }
+
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2007 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+namespace Taste.Tests
+{
+    using System;
+    using System.Collections.Generic;
+    using Taste.Common;
+    using NUnit.Framework;
+
+
+    /**
+     * <p>Tests {@link taste.Common.TopNCollector}.</p>
+     */
+    [TestFixture]
+    public class TopNCollectorTest : TasteTestCase
+    {
+
+        [Test]
+        public void TestKeepsBestInOrder()
+        {
+            TopNCollector<String> collector = new TopNCollector<String>(3);
+            collector.Offer("a", 0.1);
+            collector.Offer("b", -0.5);
+            collector.Offer("c", 0.9);
+            collector.Offer("d", Double.NaN);
+            collector.Offer("e", 0.4);
+            collector.Offer("f", 0.2);
+            double[] scores;
+            String[] top = collector.Drain(out scores);
+            Assert.AreEqual(3, top.Length);
+            Assert.AreEqual("c", top[0]);
+            Assert.AreEqual("e", top[1]);
+            Assert.AreEqual("f", top[2]);
+            Assert.AreEqual(0.9, scores[0], EPSILON);
+            Assert.AreEqual(0.2, scores[2], EPSILON);
+            Assert.AreEqual(0, collector.Count);
+        }
+
+        [Test]
+        public void TestTiesFavorEarlier()
+        {
+            TopNCollector<String> collector = new TopNCollector<String>(2);
+            collector.Offer("a", 1.0);
+            collector.Offer("b", 1.0);
+            collector.Offer("c", 1.0);
+            List<String> top = collector.Drain();
+            Assert.AreEqual("a", top[0]);
+            Assert.AreEqual("b", top[1]);
+        }
+
+        [Test]
+        public void TestMergeMatchesSinglePass()
+        {
+            Random random = new Random(1234);
+            double[] values = new double[1000];
+            for (int i = 0; i < values.Length; i++)
+            {
+                values[i] = Math.Round(random.NextDouble() * 20.0);
+            }
+            TopNCollector<int> single = new TopNCollector<int>(25);
+            TopNCollector<int> first = new TopNCollector<int>(25);
+            TopNCollector<int> second = new TopNCollector<int>(25);
+            for (int i = 0; i < values.Length; i++)
+            {
+                single.Offer(i, values[i]);
+                (i < 400 ? first : second).Offer(i, values[i], i);
+            }
+            second.Merge(first);
+            CollectionAssert.AreEqual(single.Drain(), second.Drain());
+        }
+
+        [Test]
+        public void TestUnboundedGrows()
+        {
+            TopNCollector<int> collector = new TopNCollector<int>(int.MaxValue);
+            for (int i = 0; i < 100; i++)
+            {
+                collector.Offer(i, i);
+            }
+            List<int> all = collector.Drain();
+            Assert.AreEqual(100, all.Count);
+            Assert.AreEqual(99, all[0]);
+            Assert.AreEqual(0, all[99]);
+        }
+
+    }
+}
@@ -18,6 +18,7 @@ namespace Taste.Tests.Correlation
 {
     using System;
     using System.Collections.Generic;
+    using Taste.Common;
     using Taste.Model;
     using Taste.Correlation;
     using NUnit.Framework;
@@ -207,6 +208,27 @@ namespace Taste.Tests.Correlation
             AssertCorrelationEquals(0.9901922307076306, correlation);
         }
 
+        [Test]
+        public void TestTimesEmptyUsers()
+        {
+            User user1 = GetUser("test1");
+            User user2 = GetUser("test2", 1.0, 2.0);
+            DataModel dataModel = GetDataModel(user1, user2);
+            MetricsHistogram userCorrelationTime = MetricsRegistry.Default.GetHistogram("correlation.user", "us");
+            bool wasEnabled = MetricsRegistry.Enabled;
+            MetricsRegistry.Enabled = true;
+            try
+            {
+                long before = userCorrelationTime.Snapshot().Count;
+                Assert.IsTrue(Double.IsNaN(new PearsonCorrelation(dataModel).GetUserCorrelation(user1, user2)));
+                Assert.AreEqual(before + 1L, userCorrelationTime.Snapshot().Count);
+            }
+            finally
+            {
+                MetricsRegistry.Enabled = wasEnabled;
+            }
+        }
+
         [Test]
         public void TestRefresh()
         {
@@ -17,8 +17,10 @@ namespace Taste.Tests.Correlation
 {
     using System;
     using System.Collections.Generic;
+    using System.IO;
 
     using Taste.Model;
+    using Taste.Model.file;
     using Taste.Correlation;
     using NUnit.Framework;
 
@@ -70,6 +72,102 @@ namespace Taste.Tests.Correlation
 		    AssertCorrelationEquals(-0.5, correlation);
 	    }
 
+        [Test]
+	    public void TestTies() 
+	    {
+		    User user1 = GetUser("test1", 1.0, 1.0, 3.0);
+		    User user2 = GetUser("test2", 1.0, 2.0, 3.0);
+		    DataModel dataModel = GetDataModel(user1, user2);
+		    double correlation = new SpearmanCorrelation(dataModel).GetUserCorrelation(user1, user2);
+		    // Ranks 1.5, 1.5, 3 against 1, 2, 3
+		    AssertCorrelationEquals(Math.Sqrt(3.0) / 2.0, correlation);
+	    }
+
+        [Test]
+	    public void TestSameAsRankingDelegate() 
+	    {
+		    User user1 = GetUser("test1", 0.1, 0.7, 0.3, 0.9);
+		    User user2 = GetUser("test2", 0.5, 0.2, 0.4, 0.8, 0.6);
+		    User user3 = GetUser("test3", 0.3, 0.4);
+		    DataModel dataModel = GetDataModel(user1, user2, user3);
+		    UserCorrelation cached = new SpearmanCorrelation(dataModel);
+		    UserCorrelation delegated = new SpearmanCorrelation(new PearsonCorrelation(dataModel));
+		    User[] users = new User[] { user1, user2, user3 };
+		    foreach (User first in users)
+		    {
+			    foreach (User second in users)
+			    {
+				    AssertCorrelationEquals(delegated.GetUserCorrelation(first, second),
+				                            cached.GetUserCorrelation(first, second));
+			    }
+		    }
+		    // Ranking for the delegate leaves the users' own preferences alone
+		    Assert.AreEqual(0.7, user1.GetPreferenceFor("1").Value);
+	    }
+
+        [Test]
+	    public void TestPreferencesChanged() 
+	    {
+		    User user1 = GetUser("test1", 1.0, 2.0, 3.0);
+		    User user2 = GetUser("test2", 1.0, 2.0, 3.0);
+		    DataModel dataModel = GetDataModel(user1, user2);
+		    SpearmanCorrelation correlation = new SpearmanCorrelation(dataModel);
+		    AssertCorrelationEquals(1.0, correlation.GetUserCorrelation(user1, user2));
+		    ((GenericPreference) user2.GetPreferenceFor("0")).Value = 4.0;
+		    // Ranks are cached until the change is reported
+		    AssertCorrelationEquals(1.0, correlation.GetUserCorrelation(user1, user2));
+		    List<PreferenceChange> changes = new List<PreferenceChange>();
+		    changes.Add(new PreferenceChange("test2", "0", 1.0, 4.0));
+		    correlation.PreferencesChanged(changes);
+		    AssertCorrelationEquals(-0.5, correlation.GetUserCorrelation(user1, user2));
+	    }
+
+        [Test]
+	    public void TestRefreshDropsRanks() 
+	    {
+		    User user1 = GetUser("test1", 1.0, 2.0, 3.0);
+		    User user2 = GetUser("test2", 1.0, 2.0, 3.0);
+		    DataModel dataModel = GetDataModel(user1, user2);
+		    SpearmanCorrelation correlation = new SpearmanCorrelation(dataModel);
+		    AssertCorrelationEquals(1.0, correlation.GetUserCorrelation(user1, user2));
+		    // Not reported, as when another process changes a database
+		    ((GenericPreference) user2.GetPreferenceFor("0")).Value = 4.0;
+		    correlation.Refresh();
+		    AssertCorrelationEquals(-0.5, correlation.GetUserCorrelation(user1, user2));
+	    }
+
+        [Test]
+	    public void TestDisposeStopsListening() 
+	    {
+		    String dataFile = Path.GetTempFileName();
+		    try
+		    {
+			    File.WriteAllText(dataFile, "A,1,1.0\nA,2,2.0\n");
+			    using (MutableFileDataModel dataModel = new MutableFileDataModel(dataFile))
+			    {
+				    SpearmanCorrelation correlation = new SpearmanCorrelation(dataModel);
+				    Assert.IsTrue(dataModel.HasPreferenceChangeListener(correlation));
+				    correlation.Dispose();
+				    Assert.IsFalse(dataModel.HasPreferenceChangeListener(correlation));
+			    }
+		    }
+		    finally
+		    {
+			    File.Delete(dataFile);
+			    File.Delete(dataFile + ".log");
+		    }
+	    }
+
+        [Test]
+	    public void TestUserNotInModel() 
+	    {
+		    User user1 = GetUser("test1", 1.0, 2.0, 3.0);
+		    User user2 = GetUser("test2", 3.0, 2.0, 1.0);
+		    DataModel dataModel = GetDataModel(user1);
+		    double correlation = new SpearmanCorrelation(dataModel).GetUserCorrelation(user1, user2);
+		    AssertCorrelationEquals(-1.0, correlation);
+	    }
+
         [Test]
 	    public void TestRefresh() 
         {
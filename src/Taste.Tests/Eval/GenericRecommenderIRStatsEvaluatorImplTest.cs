@@ -44,5 +44,18 @@ namespace Taste.Tests.Eval
 		    Assert.AreEqual(1.0, stats.Recall, EPSILON);
 		    Assert.AreEqual(0.33333, stats.GetF1Measure(), EPSILON);
 	    }
+
+        [Test]
+	    public void TestEvaluateInParallel()
+	    {
+		    DataModel model = GetDataModel();
+		    RecommenderBuilder builder = new SlopeOneRecommenderBuilder();
+		    GenericRecommenderIRStatsEvaluator evaluator = new GenericRecommenderIRStatsEvaluator();
+		    evaluator.NumThreads = 2;
+		    IRStatistics stats = evaluator.EvaluateInParallel(builder, model, 5, 0.2, 1.0);
+		    Assert.IsNotNull(stats);
+		    Assert.AreEqual(0.2, stats.Precision, EPSILON);
+		    Assert.AreEqual(1.0, stats.Recall, EPSILON);
+	    }
     }
 }
\ No newline at end of file
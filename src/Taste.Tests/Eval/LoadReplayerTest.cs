@@ -0,0 +1,110 @@
+/*
+ * Copyright 2007 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+namespace Taste.Tests.Eval
+{
+    using System;
+    using System.IO;
+    using System.Collections.Generic;
+    using Taste.Tests;
+    using Taste.Eval;
+    using Taste.Recommender;
+    using NUnit.Framework;
+
+
+    /**
+     * <p>Tests {@link taste.Eval.LoadReplayer}.</p>
+     */
+    [TestFixture]
+    public sealed class LoadReplayerTest : TasteTestCase
+    {
+        [Test]
+        public void TestReadLog()
+        {
+            List<LoadReplayer.Request> requests = LoadReplayer.ReadLog(new StringReader(
+                "# user,howMany,timestamp\n" +
+                "test2,5,1000\n" +
+                "test1,10,500\n" +
+                "test3,1,1000\n"));
+            Assert.AreEqual(3, requests.Count);
+            Assert.AreEqual("test1", requests[0].UserID);
+            Assert.AreEqual(10, requests[0].HowMany);
+            Assert.AreEqual(500L, requests[0].TimestampMillis);
+            // Equal timestamps stay in log order
+            Assert.AreEqual("test2", requests[1].UserID);
+            Assert.AreEqual("test3", requests[2].UserID);
+
+            requests = LoadReplayer.ReadLog(new StringReader("test1,2,2009-01-01T00:00:01Z\ntest2,2,2009-01-01T00:00:00Z\n"));
+            Assert.AreEqual("test2", requests[0].UserID);
+            Assert.AreEqual(1000L, requests[1].TimestampMillis - requests[0].TimestampMillis);
+
+            try
+            {
+                LoadReplayer.ReadLog(new StringReader("test1,many,0\n"));
+                Assert.Fail();
+            }
+            catch (IOException)
+            {
+                // good
+            }
+        }
+
+        [Test]
+        public void TestClosedLoop()
+        {
+            LoadReplayer replayer = new LoadReplayer(new ItemAverageRecommender(GetDataModel()));
+            replayer.OpenLoop = false;
+            replayer.NumThreads = 2;
+            List<LoadReplayer.Request> requests = new List<LoadReplayer.Request>();
+            for (int i = 0; i < 20; i++)
+            {
+                requests.Add(new LoadReplayer.Request("test" + (i % 4 + 1), 2, 0L));
+            }
+            requests.Add(new LoadReplayer.Request("nobody", 2, 0L));
+            LoadReport report = replayer.Replay(requests);
+            Assert.AreEqual(21, report.Requests);
+            Assert.AreEqual(1, report.Errors);
+            Assert.AreEqual(21L, report.Latency.Count);
+            Assert.AreEqual(21L, report.ServiceTime.Count);
+            Assert.IsTrue(report.Throughput > 0.0);
+        }
+
+        [Test]
+        public void TestOpenLoop()
+        {
+            LoadReplayer replayer = new LoadReplayer(new ItemAverageRecommender(GetDataModel()));
+            List<LoadReplayer.Request> requests = new List<LoadReplayer.Request>();
+            for (int i = 0; i < 11; i++)
+            {
+                requests.Add(new LoadReplayer.Request("test1", 2, i * 20L));
+            }
+            // Logged over 200ms, replayed twice as fast
+            replayer.Speedup = 2.0;
+            LoadReport report = replayer.Replay(requests);
+            Assert.AreEqual(11, report.Requests);
+            Assert.AreEqual(0, report.Errors);
+            Assert.IsTrue(report.Elapsed.TotalMilliseconds >= 95.0, "elapsed " + report.Elapsed);
+
+            // A fixed rate ignores the timestamps
+            replayer.ArrivalRate = 500.0;
+            report = replayer.Replay(requests);
+            Assert.IsTrue(report.Elapsed.TotalMilliseconds >= 15.0, "elapsed " + report.Elapsed);
+            Assert.IsTrue(report.Latency.Max >= report.ServiceTime.Max);
+        }
+
+    }
+
+}
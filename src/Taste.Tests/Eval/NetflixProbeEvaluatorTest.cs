@@ -0,0 +1,57 @@
+/*
+ * Copyright 2007 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+namespace Taste.Tests.Eval
+{
+    using System;
+    using System.IO;
+    using System.Collections.Generic;
+    using Taste.Tests;
+    using Taste.Tests.Recommender;
+    using Taste.Eval;
+    using Taste.Model;
+    using Taste.Common;
+    using NUnit.Framework;
+
+
+    /**
+     * <p>Tests {@link taste.Eval.NetflixProbeEvaluator}.</p>
+     */
+    [TestFixture]
+    public sealed class NetflixProbeEvaluatorTest : TasteTestCase
+    {
+        [Test]
+        public void TestEvaluate()
+        {
+            List<Preference> prefs = new List<Preference>();
+            prefs.Add(new GenericPreference(null, new GenericItem<int>(5), 2.0));
+            List<User> users = new List<User>();
+            users.Add(new GenericUser<int>(1, prefs));
+            DataModel model = new GenericDataModel(users);
+
+            // The mock always estimates 0.0
+            NetflixProbeEvaluator evaluator =
+                new NetflixProbeEvaluator(new MockRecommender(new AtomicInteger()), model);
+            evaluator.NumThreads = 2;
+            EvaluationResult result = evaluator.Evaluate(new StringReader("1:\n1,3,2005-01-01\n2,4\n5:\n1\n9:\n7\n"));
+            Assert.AreEqual(3, result.Count);
+            Assert.AreEqual(Math.Sqrt(29.0 / 3.0), result.Value, EPSILON);
+            Assert.AreEqual(1, evaluator.Unscored);
+            Assert.AreEqual(3L, evaluator.Latency.Count);
+        }
+    }
+
+}
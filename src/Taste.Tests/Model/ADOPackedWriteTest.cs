@@ -0,0 +1,100 @@
+/*
+ * Copyright 2007 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+namespace Taste.Tests.Model
+{
+    using System;
+    using System.Collections.Generic;
+    using Taste.Common;
+    using Taste.Model;
+    using Taste.Model.Ado;
+    using NUnit.Framework;
+
+
+    /**
+     * <p>Tests that writes through an {@link OleDBDataModel} with packed preferences keep the preference table and
+     * packed rows together, over a {@link StubConnection}.</p>
+     */
+    [TestFixture]
+    public class ADOPackedWriteTest : TasteTestCase
+    {
+        private StubConnection connection;
+        private OleDBDataModel model;
+        private RecordingListener listener;
+
+        [SetUp]
+        public void CreateModel()
+        {
+            connection = new StubConnection();
+            connection.Open();
+            model = new OleDBDataModel(connection);
+            model.UsePackedPreferenceTables(AbstractADODataModel.DEFAULT_PACKED_USER_TABLE,
+                                            AbstractADODataModel.DEFAULT_PACKED_ITEM_TABLE);
+            listener = new RecordingListener();
+            model.AddPreferenceChangeListener(listener);
+        }
+
+        [Test]
+        public void TestWriteIsOneTransaction()
+        {
+            model.SetPreference("u1", "i1", 1.0);
+            model.RemovePreference("u1", "i1");
+            Assert.AreEqual(2, connection.Commits);
+            Assert.AreEqual(0, connection.Rollbacks);
+            // The preference write, then each packed row's read and write
+            List<StubConnection.Execution> writes = connection.Executed.FindAll(
+                delegate(StubConnection.Execution execution) { return execution.Transaction != null; });
+            Assert.AreEqual(10, writes.Count);
+            Assert.AreSame(writes[0].Transaction, writes[4].Transaction);
+            Assert.AreNotSame(writes[0].Transaction, writes[5].Transaction);
+            // The stub's packed rows stay empty, so only the set is a change
+            Assert.AreEqual(1, listener.changes.Count);
+        }
+
+        [Test]
+        public void TestFailedPackedWriteRollsBack()
+        {
+            connection.FailOn = delegate(StubConnection.Execution execution)
+            {
+                return execution.CommandText.StartsWith("REPLACE INTO " + AbstractADODataModel.DEFAULT_PACKED_ITEM_TABLE);
+            };
+            try
+            {
+                model.SetPreference("u1", "i1", 1.0);
+                Assert.Fail();
+            }
+            catch (TasteException)
+            {
+                // good
+            }
+            Assert.AreEqual(0, connection.Commits);
+            Assert.AreEqual(1, connection.Rollbacks);
+            Assert.AreEqual(0, listener.changes.Count);
+        }
+
+        private sealed class RecordingListener : PreferenceChangeListener
+        {
+            internal readonly List<PreferenceChange> changes = new List<PreferenceChange>();
+
+            public void PreferencesChanged(IList<PreferenceChange> batch)
+            {
+                changes.AddRange(batch);
+            }
+        }
+
+    }
+
+}
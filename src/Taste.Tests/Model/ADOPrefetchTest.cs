@@ -0,0 +1,179 @@
+/*
+ * Copyright 2007 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+namespace Taste.Tests.Model
+{
+    using System;
+    using System.Collections.Generic;
+    using System.Data;
+    using Taste.Correlation;
+    using Taste.Model;
+    using Taste.Model.Ado;
+    using Taste.Recommender;
+    using NUnit.Framework;
+
+
+    /**
+     * <p>Tests how often {@link taste.Recommender.GenericItemBasedRecommender} reads item preferences from an
+     * {@link OleDBDataModel} over a {@link StubConnection}.</p>
+     */
+    [TestFixture]
+    public class ADOPrefetchTest : TasteTestCase
+    {
+        private const String PREFS_FOR_ITEM = " SELECT preference, user_id";
+
+        // user, item, value; in user then item order
+        private static readonly Object[][] PREFERENCES = new Object[][] {
+            new Object[] {"u1", "i1", 1.0},
+            new Object[] {"u1", "i2", 2.0},
+            new Object[] {"u2", "i1", 3.0},
+            new Object[] {"u2", "i3", 4.0},
+            new Object[] {"u2", "i4", 5.0},
+            new Object[] {"u3", "i2", 2.5},
+            new Object[] {"u3", "i4", 1.0},
+        };
+
+        private StubConnection connection;
+        private OleDBDataModel model;
+
+        [SetUp]
+        public void CreateModel()
+        {
+            connection = new StubConnection();
+            connection.Query = Answer;
+            connection.Open();
+            model = new OleDBDataModel(connection);
+        }
+
+        [Test]
+        public void TestItemBasedRecommenderQueriesEachItemOnce()
+        {
+            GenericItemBasedRecommender recommender = new GenericItemBasedRecommender(model, new ItemPrefsCorrelation(model));
+            IList<RecommendedItem> recommended = recommender.Recommend("u1", 2);
+            Assert.AreEqual(2, recommended.Count);
+            // u1's items i1 and i2, then candidates i3 and i4; without the prefetch, each of the 4 correlations
+            // would read both items' preferences
+            Assert.AreEqual(4, connection.ExecutedMatching(PREFS_FOR_ITEM).Count);
+            foreach (String itemID in new String[] {"i1", "i2", "i3", "i4"})
+            {
+                int reads = connection.ExecutedMatching(PREFS_FOR_ITEM).FindAll(
+                    delegate(StubConnection.Execution execution) { return itemID.Equals(execution["@itemID"]); }).Count;
+                Assert.AreEqual(1, reads, itemID);
+            }
+            // Nothing outlives the call
+            recommender.Recommend("u1", 2);
+            Assert.AreEqual(8, connection.ExecutedMatching(PREFS_FOR_ITEM).Count);
+        }
+
+        [Test]
+        public void TestPrecomputedCorrelationQueriesNoItems()
+        {
+            List<GenericItemCorrelation.ItemItemCorrelation> correlations =
+                new List<GenericItemCorrelation.ItemItemCorrelation>();
+            correlations.Add(new GenericItemCorrelation.ItemItemCorrelation(model.GetItem("i1"), model.GetItem("i3"), 0.9));
+            correlations.Add(new GenericItemCorrelation.ItemItemCorrelation(model.GetItem("i2"), model.GetItem("i4"), 0.1));
+            GenericItemBasedRecommender recommender =
+                new GenericItemBasedRecommender(model, new GenericItemCorrelation(correlations));
+            IList<RecommendedItem> recommended = recommender.Recommend("u1", 2);
+            Assert.AreEqual(2, recommended.Count);
+            Assert.AreEqual(0, connection.ExecutedMatching(PREFS_FOR_ITEM).Count);
+        }
+
+        /// <summary>
+        /// Answers the queries an <see cref="OleDBDataModel"/> with default table and column names issues.
+        /// </summary>
+        private static DataTable Answer(StubConnection.Execution execution)
+        {
+            String sql = execution.CommandText;
+            List<Object[]> rows = new List<Object[]>();
+            if (sql.StartsWith(PREFS_FOR_ITEM))
+            {
+                foreach (Object[] pref in PREFERENCES)
+                {
+                    if (pref[1].Equals(execution["@itemID"]))
+                    {
+                        rows.Add(new Object[] {pref[2], pref[0]});
+                    }
+                }
+                return StubConnection.Table(new String[] {"preference", "user_id"}, rows.ToArray());
+            }
+            if (sql.StartsWith(" SELECT item_id, preference FROM"))
+            {
+                foreach (Object[] pref in PREFERENCES)
+                {
+                    if (pref[0].Equals(execution["@userID"]))
+                    {
+                        rows.Add(new Object[] {pref[1], pref[2]});
+                    }
+                }
+                return StubConnection.Table(new String[] {"item_id", "preference"}, rows.ToArray());
+            }
+            if (sql.StartsWith("SELECT 1 FROM"))
+            {
+                foreach (Object[] pref in PREFERENCES)
+                {
+                    if (pref[1].Equals(execution["@itemID"]))
+                    {
+                        return StubConnection.Table(new String[] {"one"}, new Object[] {1});
+                    }
+                }
+                return StubConnection.Table(new String[] {"one"});
+            }
+            if (sql.StartsWith("SELECT DISTINCT item_id"))
+            {
+                foreach (String itemID in new String[] {"i1", "i2", "i3", "i4"})
+                {
+                    rows.Add(new Object[] {itemID});
+                }
+                return StubConnection.Table(new String[] {"item_id"}, rows.ToArray());
+            }
+            return null;
+        }
+
+        #region Helper classes
+
+        /// <summary>
+        /// Reads both items' preferences, as a real correlation would, and returns a fixed value.
+        /// </summary>
+        private sealed class ItemPrefsCorrelation : PreferenceItemCorrelation
+        {
+            private readonly DataModel dataModel;
+
+            internal ItemPrefsCorrelation(DataModel dataModel)
+            {
+                this.dataModel = dataModel;
+            }
+
+            public double GetItemCorrelation(Item item1, Item item2)
+            {
+                return GetItemCorrelation(item1, dataModel.GetPreferencesForItemAsArray(item1.ID),
+                                          item2, dataModel.GetPreferencesForItemAsArray(item2.ID));
+            }
+
+            public double GetItemCorrelation(Item item1, Preference[] prefs1, Item item2, Preference[] prefs2)
+            {
+                return prefs1.Length == 0 || prefs2.Length == 0 ? Double.NaN : 0.5;
+            }
+
+            public void Refresh()
+            {
+            }
+        }
+
+        #endregion
+    }
+
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright 2007 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+namespace Taste.Tests.Model
+{
+    using System;
+    using Taste.Tests;
+    using Taste.Common;
+    using Taste.Model;
+    using NUnit.Framework;
+
+
+    /**
+     * <p>Tests {@link taste.Model.CompactDataModel}.</p>
+     */
+    [TestFixture]
+    public class CompactDataModelTest : TasteTestCase
+    {
+
+        [Test]
+        public void TestSamePreferences()
+        {
+            DataModel original = GetDataModel();
+            CompactDataModel model = new CompactDataModel(original);
+            Assert.AreEqual(1, model.Scale.BytesPerValue);
+            Assert.AreEqual(original.GetNumUsers(), model.GetNumUsers());
+            Assert.AreEqual(original.GetNumItems(), model.GetNumItems());
+            foreach (User user in original.GetUsers())
+            {
+                Preference[] expected = user.GetPreferencesAsArray();
+                User compactUser = model.GetUser(user.ID);
+                Preference[] actual = compactUser.GetPreferencesAsArray();
+                Assert.AreEqual(expected.Length, actual.Length);
+                for (int i = 0; i < expected.Length; i++)
+                {
+                    Assert.AreEqual(expected[i].Item, actual[i].Item);
+                    Assert.AreEqual(expected[i].Value, actual[i].Value, EPSILON);
+                    Assert.AreSame(compactUser, actual[i].User);
+                }
+            }
+            Assert.AreEqual(0.4, model.GetUser("test3").GetPreferenceFor("0").Value, EPSILON);
+            Assert.IsNull(model.GetUser("test1").GetPreferenceFor("2"));
+            Assert.IsNull(model.GetUser("test1").GetPreferenceFor("nonexistent"));
+        }
+
+        [Test]
+        public void TestPreferencesForItem()
+        {
+            CompactDataModel model = new CompactDataModel(GetDataModel());
+            Preference[] prefs = model.GetPreferencesForItemAsArray("2");
+            Assert.AreEqual(3, prefs.Length);
+            Assert.AreEqual("test2", prefs[0].User.ID);
+            Assert.AreEqual(0.3, prefs[0].Value, EPSILON);
+            Assert.AreEqual("test3", prefs[1].User.ID);
+            Assert.AreEqual(0.5, prefs[1].Value, EPSILON);
+            Assert.AreEqual("test4", prefs[2].User.ID);
+            Assert.AreEqual(0.8, prefs[2].Value, EPSILON);
+            Assert.AreEqual(0, model.GetPreferencesForItemAsArray("nonexistent").Length);
+        }
+
+        [Test]
+        public void TestBuilderKeepsLastDuplicate()
+        {
+            CompactDataModel.Builder builder = new CompactDataModel.Builder(new RatingScale(1.0, 5.0, 1.0));
+            Item item = new GenericItem<String>("a");
+            builder.Add(1, item, 2.0);
+            builder.Add(1, item, 4.0);
+            CompactDataModel model = builder.Build();
+            Assert.AreEqual(1, model.GetUser(1).GetPreferencesAsArray().Length);
+            Assert.AreEqual(4.0, model.GetUser(1).GetPreferenceFor("a").Value, EPSILON);
+            try
+            {
+                builder.Add(2, item, 3.0);
+                Assert.Fail();
+            }
+            catch (IllegalStateException)
+            {
+                // good
+            }
+        }
+
+        [Test]
+        public void TestBuilderRemovesSparseUsers()
+        {
+            CompactDataModel.Builder builder = new CompactDataModel.Builder(new RatingScale(1.0, 5.0, 1.0));
+            Item a = new GenericItem<String>("a");
+            Item b = new GenericItem<String>("b");
+            Item c = new GenericItem<String>("c");
+            builder.Add(1, a, 1.0);
+            builder.Add(2, c, 2.0);
+            builder.Add(3, a, 3.0);
+            builder.Add(3, b, 4.0);
+            builder.Add(1, b, 5.0);
+            builder.RemoveUsersWithFewerThan(2);
+            CompactDataModel model = builder.Build();
+            Assert.AreEqual(2, model.GetNumUsers());
+            Assert.AreEqual(2, model.GetNumItems());
+            Assert.AreEqual(5.0, model.GetUser(1).GetPreferenceFor("b").Value, EPSILON);
+            Assert.AreEqual(3.0, model.GetUser(3).GetPreferenceFor("a").Value, EPSILON);
+            Assert.AreEqual(2, model.GetPreferencesForItemAsArray("b").Length);
+            try
+            {
+                model.GetUser(2);
+                Assert.Fail();
+            }
+            catch (NoSuchElementException)
+            {
+                // good
+            }
+        }
+
+        [Test]
+        public void TestManyPreferences()
+        {
+            // Enough entries to cross many checkpoints
+            CompactDataModel.Builder builder = new CompactDataModel.Builder();
+            for (int i = 0; i < 1000; i += 3)
+            {
+                builder.Add("user", new GenericItem<int>(i * 50), (i % 5) + 1.0);
+            }
+            builder.Add("other", new GenericItem<int>(1), 1.0);
+            CompactDataModel model = builder.Build();
+            User user = model.GetUser("user");
+            Assert.AreEqual(334, user.GetPreferencesAsArray().Length);
+            for (int i = 0; i < 1000; i++)
+            {
+                Preference pref = user.GetPreferenceFor(i * 50);
+                if (i % 3 == 0)
+                {
+                    Assert.AreEqual((i % 5) + 1.0, pref.Value, EPSILON);
+                }
+                else
+                {
+                    Assert.IsNull(pref);
+                }
+            }
+        }
+
+        [Test]
+        public void TestDetectScale()
+        {
+            RatingScale stars = RatingScale.Detect(new double[] { 1.0, 3.0, 5.0, 2.0 });
+            Assert.AreEqual(1, stars.BytesPerValue);
+            Assert.IsTrue(stars.IsExact(4.0));
+            Assert.IsFalse(stars.IsExact(4.5));
+
+            RatingScale halfStars = RatingScale.Detect(new double[] { 0.5, 5.0, 3.5, 4.0 });
+            Assert.AreEqual(1, halfStars.BytesPerValue);
+            Assert.IsTrue(halfStars.IsExact(2.5));
+
+            RatingScale arbitrary = RatingScale.Detect(new double[] { 0.123, 0.5, 10000.0 });
+            Assert.AreSame(RatingScale.HalfPrecision, arbitrary);
+        }
+
+        [Test]
+        public void TestHalfPrecision()
+        {
+            Assert.AreEqual(0.0, RatingScale.FromHalf(RatingScale.ToHalf(0.0)));
+            Assert.AreEqual(1.0, RatingScale.FromHalf(RatingScale.ToHalf(1.0)));
+            Assert.AreEqual(-2.5, RatingScale.FromHalf(RatingScale.ToHalf(-2.5)));
+            Assert.AreEqual(65504.0, RatingScale.FromHalf(RatingScale.ToHalf(65504.0)));
+            Assert.IsTrue(double.IsPositiveInfinity(RatingScale.FromHalf(RatingScale.ToHalf(1.0e6))));
+            Assert.AreEqual(0.123, RatingScale.FromHalf(RatingScale.ToHalf(0.123)), 0.0001);
+
+            DataModel original = GetDataModel(GetUser("test1", 0.123, 7.77, 1234.5));
+            CompactDataModel model = new CompactDataModel(original);
+            Assert.AreEqual(2, model.Scale.BytesPerValue);
+            Preference[] prefs = model.GetUser("test1").GetPreferencesAsArray();
+            Assert.AreEqual(0.123, prefs[0].Value, 0.0001);
+            Assert.AreEqual(7.77, prefs[1].Value, 0.01);
+            Assert.AreEqual(1234.5, prefs[2].Value, 1.0);
+        }
+
+        [Test]
+        public void TestReadOnly()
+        {
+            CompactDataModel model = new CompactDataModel(GetDataModel());
+            try
+            {
+                model.SetPreference("test1", "0", 0.5);
+                Assert.Fail();
+            }
+            catch (NotSupportedException)
+            {
+                // good
+            }
+            try
+            {
+                model.GetUser("test1").GetPreferenceFor("0").Value = 0.5;
+                Assert.Fail();
+            }
+            catch (NotSupportedException)
+            {
+                // good
+            }
+        }
+
+    }
+
+}
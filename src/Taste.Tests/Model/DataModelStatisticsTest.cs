@@ -0,0 +1,179 @@
+/*
+ * Copyright 2007 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+namespace Taste.Tests.Model
+{
+    using System;
+    using System.IO;
+    using Taste.Tests;
+    using Taste.Model;
+    using Taste.Model.file;
+    using NUnit.Framework;
+
+
+    /**
+     * <p>Tests {@link taste.Model.DataModelStatistics}.</p>
+     */
+    [TestFixture]
+    public class DataModelStatisticsTest : TasteTestCase
+    {
+
+        [Test]
+        public void TestAggregates()
+        {
+            DataModelStatistics statistics = new DataModelStatistics(GetDataModel());
+            Assert.AreEqual(4, statistics.NumUsers);
+            Assert.AreEqual(11L, statistics.NumPreferences);
+            Assert.AreEqual(4.2 / 11.0, statistics.GetMean(), EPSILON);
+
+            Assert.AreEqual(4, statistics.GetItemCount("0"));
+            Assert.AreEqual(0.35, statistics.GetItemMean("0"), EPSILON);
+            Assert.AreEqual(4, statistics.GetItemCount("1"));
+            Assert.AreEqual(0.3, statistics.GetItemMean("1"), EPSILON);
+            Assert.AreEqual(0.0, statistics.GetItemStandardDeviation("1"), EPSILON);
+            Assert.AreEqual(3, statistics.GetItemCount("2"));
+            Assert.AreEqual(1.6 / 3.0, statistics.GetItemMean("2"), EPSILON);
+
+            Assert.AreEqual(2, statistics.GetUserCount("test1"));
+            Assert.AreEqual(0.2, statistics.GetUserMean("test1"), EPSILON);
+            Assert.AreEqual(Math.Sqrt(0.02), statistics.GetUserStandardDeviation("test1"), EPSILON);
+        }
+
+        [Test]
+        public void TestItemIndexer()
+        {
+            DataModel dataModel = GetDataModel();
+            DataModelStatistics modelOrder = new DataModelStatistics(dataModel, 2);
+            DataModelStatistics coRatingOrder = new DataModelStatistics(dataModel, 2, IDOrdering.ItemsByCoRating);
+            Assert.AreEqual(modelOrder.NumPreferences, coRatingOrder.NumPreferences);
+            Assert.AreEqual(modelOrder.GetMean(), coRatingOrder.GetMean(), EPSILON);
+            foreach (Item item in dataModel.GetItems())
+            {
+                Assert.AreEqual(modelOrder.GetItemCount(item.ID), coRatingOrder.GetItemCount(item.ID));
+                Assert.AreEqual(modelOrder.GetItemMean(item.ID), coRatingOrder.GetItemMean(item.ID), EPSILON);
+            }
+        }
+
+        [Test]
+        public void TestUnknown()
+        {
+            DataModelStatistics statistics = new DataModelStatistics(GetDataModel());
+            Assert.AreEqual(0, statistics.GetItemCount("unknown"));
+            Assert.IsTrue(Double.IsNaN(statistics.GetItemMean("unknown")));
+            Assert.IsTrue(Double.IsNaN(statistics.GetItemStandardDeviation("unknown")));
+            Assert.AreEqual(0, statistics.GetUserCount("unknown"));
+            Assert.IsTrue(Double.IsNaN(statistics.GetUserMean("unknown")));
+            DataModelStatistics single = new DataModelStatistics(GetDataModel(GetUser("test1", 0.5)));
+            Assert.IsTrue(Double.IsNaN(single.GetUserStandardDeviation("test1")));
+        }
+
+        [Test]
+        public void TestRecord()
+        {
+            DataModelStatistics statistics = new DataModelStatistics(GetDataModel());
+            Assert.IsFalse(statistics.FollowsDataModel);
+
+            statistics.Record(PreferenceChange.Added("test1", "2", 0.9));
+            Assert.AreEqual(4, statistics.GetItemCount("2"));
+            Assert.AreEqual(0.625, statistics.GetItemMean("2"), EPSILON);
+            Assert.AreEqual(3, statistics.GetUserCount("test1"));
+            Assert.AreEqual(1.3 / 3.0, statistics.GetUserMean("test1"), EPSILON);
+            Assert.AreEqual(12L, statistics.NumPreferences);
+
+            statistics.Record(new PreferenceChange("test1", "0", 0.1, 0.5));
+            Assert.AreEqual(4, statistics.GetItemCount("0"));
+            Assert.AreEqual(0.45, statistics.GetItemMean("0"), EPSILON);
+            Assert.AreEqual(1.7 / 3.0, statistics.GetUserMean("test1"), EPSILON);
+
+            statistics.Record(PreferenceChange.Removed("test4", "2", 0.8));
+            Assert.AreEqual(3, statistics.GetItemCount("2"));
+            Assert.AreEqual(1.7 / 3.0, statistics.GetItemMean("2"), EPSILON);
+            Assert.AreEqual(2, statistics.GetUserCount("test4"));
+            Assert.AreEqual(11L, statistics.NumPreferences);
+
+            statistics.Record(PreferenceChange.Added("test5", "3", 1.0));
+            Assert.AreEqual(5, statistics.NumUsers);
+            Assert.AreEqual(1, statistics.GetItemCount("3"));
+            Assert.AreEqual(1.0, statistics.GetUserMean("test5"), EPSILON);
+
+            statistics.Refresh();
+            Assert.AreEqual(4, statistics.NumUsers);
+            Assert.AreEqual(0, statistics.GetItemCount("3"));
+        }
+
+        [Test]
+        public void TestVersion()
+        {
+            DataModelStatistics statistics = new DataModelStatistics(GetDataModel());
+            long version = statistics.Version;
+            Assert.AreEqual(4, statistics.GetItemCounts()["0"]);
+            statistics.Record(PreferenceChange.Removed("test1", "0", 0.1));
+            Assert.AreNotEqual(version, statistics.Version);
+            Assert.AreEqual(3, statistics.GetItemCounts()["0"]);
+            version = statistics.Version;
+            statistics.Refresh();
+            Assert.AreNotEqual(version, statistics.Version);
+            Assert.AreEqual(4, statistics.GetItemCounts()["0"]);
+        }
+
+        [Test]
+        public void TestDispose()
+        {
+            String dataFile = Path.GetTempFileName();
+            try
+            {
+                File.WriteAllText(dataFile, "A,1,1.0\nA,2,2.0\n");
+                using (MutableFileDataModel dataModel = new MutableFileDataModel(dataFile))
+                {
+                    DataModelStatistics statistics = new DataModelStatistics(dataModel);
+                    Assert.IsTrue(statistics.FollowsDataModel);
+                    Assert.IsTrue(dataModel.HasPreferenceChangeListener(statistics));
+                    statistics.Dispose();
+                    Assert.IsFalse(statistics.FollowsDataModel);
+                    Assert.IsFalse(dataModel.HasPreferenceChangeListener(statistics));
+                    dataModel.SetPreference("A", "3", 3.0);
+                    Assert.AreEqual(0, statistics.GetItemCount("3"));
+                }
+            }
+            finally
+            {
+                File.Delete(dataFile);
+                File.Delete(dataFile + ".log");
+            }
+        }
+
+        [Test]
+        public void TestThreadsAgree()
+        {
+            DataModel dataModel = GetDataModel();
+            DataModelStatistics one = new DataModelStatistics(dataModel, 1);
+            DataModelStatistics three = new DataModelStatistics(dataModel, 3);
+            Assert.AreEqual(one.NumPreferences, three.NumPreferences);
+            Assert.AreEqual(one.GetMean(), three.GetMean(), EPSILON);
+            foreach (Item item in dataModel.GetItems())
+            {
+                Assert.AreEqual(one.GetItemCount(item.ID), three.GetItemCount(item.ID));
+                Assert.AreEqual(one.GetItemMean(item.ID), three.GetItemMean(item.ID), EPSILON);
+            }
+            foreach (User user in dataModel.GetUsers())
+            {
+                Assert.AreEqual(one.GetUserMean(user.ID), three.GetUserMean(user.ID), EPSILON);
+            }
+        }
+
+    }
+
+}
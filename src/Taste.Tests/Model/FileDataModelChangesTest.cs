@@ -0,0 +1,106 @@
+/*
+ * Copyright 2007 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+namespace Taste.Tests.Model
+{
+    using System;
+    using System.Collections.Generic;
+    using System.IO;
+    using Taste.Tests;
+    using Taste.Model;
+    using Taste.Model.file;
+    using NUnit.Framework;
+
+
+    /**
+     * <p>Tests the {@link taste.Model.PreferenceChange}s a {@link taste.Model.file.FileDataModel} reports on reload.</p>
+     */
+    [TestFixture]
+    public class FileDataModelChangesTest : TasteTestCase
+    {
+        private String dataFile;
+
+        [SetUp]
+        public void CreateFile()
+        {
+            dataFile = Path.GetTempFileName();
+            File.WriteAllText(dataFile, "A,1,1.0\nA,2,2.0\nB,1,3.0\nB,2,4.0\nD,1,5.0\n");
+        }
+
+        [TearDown]
+        public void DeleteFile()
+        {
+            File.Delete(dataFile);
+        }
+
+        [Test]
+        public void TestReloadReportsChanges()
+        {
+            FileDataModel model = new FileDataModel(dataFile, false);
+            Assert.AreEqual(3, model.GetNumUsers());
+            RecordingListener listener = new RecordingListener();
+            model.AddPreferenceChangeListener(listener);
+
+            File.WriteAllText(dataFile, "A,1,1.5\nA,2,2.0\nA,3,3.0\nB,2,4.0\nD,1,5.0\nC,1,2.5\n");
+            model.Refresh();
+
+            Assert.AreEqual(4, listener.changes.Count, String.Join("; ", listener.Describe()));
+            Assert.AreEqual(new PreferenceChange("A", "1", 1.0, 1.5).ToString(), listener.Find("A", "1").ToString());
+            Assert.IsTrue(listener.Find("A", "3").IsAdded);
+            Assert.AreEqual(3.0, listener.Find("A", "3").NewValue);
+            Assert.IsTrue(listener.Find("B", "1").IsRemoved);
+            Assert.AreEqual(3.0, listener.Find("B", "1").OldValue);
+            Assert.IsTrue(listener.Find("C", "1").IsAdded);
+            Assert.AreEqual(2.5, listener.Find("C", "1").NewValue);
+
+            // Nothing changed
+            listener.changes.Clear();
+            model.Refresh();
+            Assert.AreEqual(0, listener.changes.Count);
+        }
+
+        private sealed class RecordingListener : PreferenceChangeListener
+        {
+            internal readonly List<PreferenceChange> changes = new List<PreferenceChange>();
+
+            public void PreferencesChanged(IList<PreferenceChange> changes)
+            {
+                this.changes.AddRange(changes);
+            }
+
+            internal PreferenceChange Find(String userID, String itemID)
+            {
+                PreferenceChange found = null;
+                foreach (PreferenceChange change in changes)
+                {
+                    if (change.UserID.Equals(userID) && change.ItemID.Equals(itemID))
+                    {
+                        Assert.IsNull(found, "More than one change for " + userID + ", " + itemID);
+                        found = change;
+                    }
+                }
+                Assert.IsNotNull(found, "No change for " + userID + ", " + itemID);
+                return found;
+            }
+
+            internal String[] Describe()
+            {
+                return changes.ConvertAll<String>(delegate(PreferenceChange change) { return change.ToString(); }).ToArray();
+            }
+        }
+
+    }
+}
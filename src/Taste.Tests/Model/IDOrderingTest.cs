@@ -0,0 +1,313 @@
+/*
+ * Copyright 2007 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+namespace Taste.Tests.Model
+{
+    using System;
+    using System.Collections.Generic;
+    using System.Diagnostics;
+    using Taste.Tests;
+    using Taste.Common;
+    using Taste.Correlation;
+    using Taste.Model;
+    using Taste.Neighborhood;
+    using Taste.Recommender.Factorization;
+    using Taste.Recommender.SlopeOne;
+    using log4net;
+    using NUnit.Framework;
+
+
+    /**
+     * <p>Tests {@link taste.Model.IDOrdering}, and measures the effect of its orders on a pass over dense
+     * per-item vectors like those of a factorization, on a neighborhood pass with
+     * {@link taste.Correlation.SpearmanCorrelation}, and on building an
+     * {@link taste.Recommender.SlopeOne.IndexedDiffStorage}.</p>
+     */
+    [TestFixture]
+    public class IDOrderingTest : TasteTestCase
+    {
+        private static readonly ILog log = LogManager.GetLogger(typeof(IDOrderingTest));
+
+        private const int NUM_CLUSTERS = 100;
+        private const int ITEMS_PER_CLUSTER = 200;
+        private const int NUM_USERS = 4000;
+        private const int PREFS_PER_USER = 30;
+        private const int NUM_FEATURES = 32;
+        private const int NUM_PASSES = 10;
+        private const int NEIGHBORHOOD_SIZE = 10;
+        private const int NUM_NEIGHBORHOODS = 200;
+        // Fewer items for diffs, whose matrix grows with the square of the number of items
+        private const int NUM_DIFF_CLUSTERS = 10;
+        private const int NUM_DIFF_USERS = 2000;
+
+        [Test]
+        public void TestByDegree()
+        {
+            DataModel dataModel = GetDataModel(BuildUser("A", "0", "1"), BuildUser("B", "0", "1", "2"), BuildUser("C", "0"));
+            IDIndex userIndex;
+            IDIndex itemIndex;
+            IDOrdering.ByDegree(dataModel, out userIndex, out itemIndex);
+            Assert.AreEqual("B", userIndex.IDAt(0));
+            Assert.AreEqual("A", userIndex.IDAt(1));
+            Assert.AreEqual("C", userIndex.IDAt(2));
+            Assert.AreEqual("0", itemIndex.IDAt(0));
+            Assert.AreEqual("1", itemIndex.IDAt(1));
+            Assert.AreEqual("2", itemIndex.IDAt(2));
+        }
+
+        [Test]
+        public void TestByCoRating()
+        {
+            // Two clusters whose item IDs interleave in the model's order
+            DataModel dataModel = GetDataModel(BuildUser("u1", "a1", "a3"),
+                                               BuildUser("u2", "a3", "a5"),
+                                               BuildUser("u3", "a2", "a4"),
+                                               BuildUser("u4", "a4", "a6"));
+            IDIndex userIndex;
+            IDIndex itemIndex;
+            IDOrdering.ByCoRating(dataModel, out userIndex, out itemIndex);
+            Assert.AreEqual(4, userIndex.Count);
+            Assert.AreEqual(6, itemIndex.Count);
+            Assert.AreEqual(new Object[] { "a3", "a1", "a5", "a4", "a2", "a6" },
+                            new Object[] { itemIndex.IDAt(0), itemIndex.IDAt(1), itemIndex.IDAt(2),
+                                           itemIndex.IDAt(3), itemIndex.IDAt(4), itemIndex.IDAt(5) });
+            Assert.AreEqual("u1", userIndex.IDAt(0));
+            Assert.AreEqual("u4", userIndex.IDAt(3));
+
+            double modelCost = IDOrdering.LogGapCost(dataModel, IDIndex.ForUsers(dataModel), IDIndex.ForItems(dataModel));
+            double coRatingCost = IDOrdering.LogGapCost(dataModel, userIndex, itemIndex);
+            Assert.AreEqual(Math.Log(3.0, 2.0), modelCost, EPSILON);
+            Assert.IsTrue(coRatingCost < modelCost);
+
+            FactorModel factors = new AlternatingLeastSquares(2, 0.1, 1).Train(dataModel, userIndex, itemIndex);
+            Assert.AreSame(itemIndex, factors.ItemIndex);
+        }
+
+        [Test]
+        public void TestLocalityBenchmark()
+        {
+            DataModel dataModel = CreateClusteredModel(NUM_CLUSTERS, NUM_USERS);
+            IDIndex modelUsers = IDIndex.ForUsers(dataModel);
+            IDIndex modelItems = IDIndex.ForItems(dataModel);
+            IDIndex degreeUsers;
+            IDIndex degreeItems;
+            IDOrdering.ByDegree(dataModel, out degreeUsers, out degreeItems);
+            IDIndex coRatingUsers;
+            IDIndex coRatingItems;
+            Stopwatch ordering = Stopwatch.StartNew();
+            IDOrdering.ByCoRating(dataModel, out coRatingUsers, out coRatingItems);
+            ordering.Stop();
+            log.Info("Ordered by co-rating in " + ordering.ElapsedMilliseconds + "ms");
+
+            double modelCost = Measure("model", dataModel, modelUsers, modelItems);
+            double degreeCost = Measure("degree", dataModel, degreeUsers, degreeItems);
+            double coRatingCost = Measure("co-rating", dataModel, coRatingUsers, coRatingItems);
+            // Each user's items then sit within one cluster's run of indices
+            Assert.IsTrue(coRatingCost < modelCost / 2.0);
+            Assert.IsTrue(coRatingCost < degreeCost);
+        }
+
+        [Test]
+        public void TestNeighborhoodBenchmark()
+        {
+            DataModel dataModel = CreateClusteredModel(NUM_CLUSTERS, NUM_USERS);
+            List<User> users = new List<User>(dataModel.GetUsers());
+            SpearmanCorrelation modelOrder = new SpearmanCorrelation(dataModel);
+            SpearmanCorrelation coRatingOrder = new SpearmanCorrelation(dataModel, IDOrdering.ItemsByCoRating);
+            try
+            {
+                // The same correlations, up to rounding, whatever the order
+                for (int u = 0; u < users.Count; u += 97)
+                {
+                    for (int v = 0; v < users.Count; v += 7)
+                    {
+                        double expected = modelOrder.GetUserCorrelation(users[u], users[v]);
+                        double actual = coRatingOrder.GetUserCorrelation(users[u], users[v]);
+                        if (Double.IsNaN(expected))
+                        {
+                            Assert.IsTrue(Double.IsNaN(actual));
+                        }
+                        else
+                        {
+                            Assert.AreEqual(expected, actual, EPSILON);
+                        }
+                    }
+                }
+                MeasureNeighborhoods("model", dataModel, modelOrder, users);
+                MeasureNeighborhoods("co-rating", dataModel, coRatingOrder, users);
+            }
+            finally
+            {
+                modelOrder.Dispose();
+                coRatingOrder.Dispose();
+            }
+        }
+
+        [Test]
+        public void TestDiffStorageBenchmark()
+        {
+            DataModel dataModel = CreateClusteredModel(NUM_DIFF_CLUSTERS, NUM_DIFF_USERS);
+            Stopwatch watch = Stopwatch.StartNew();
+            IndexedDiffStorage modelOrder = new IndexedDiffStorage(dataModel, false, 1);
+            watch.Stop();
+            log.Info("model order: built diffs in " + watch.ElapsedMilliseconds + "ms");
+            watch = Stopwatch.StartNew();
+            IndexedDiffStorage coRatingOrder =
+                new IndexedDiffStorage(dataModel, false, 1, IDOrdering.ItemsByCoRating);
+            watch.Stop();
+            log.Info("co-rating order: built diffs in " + watch.ElapsedMilliseconds + "ms");
+
+            User user = dataModel.GetUser("u0");
+            foreach (Preference pref1 in user.GetPreferencesAsArray())
+            {
+                foreach (Preference pref2 in user.GetPreferencesAsArray())
+                {
+                    RunningAverage expected = modelOrder.GetDiff(pref1.Item.ID, pref2.Item.ID);
+                    RunningAverage actual = coRatingOrder.GetDiff(pref1.Item.ID, pref2.Item.ID);
+                    if (expected == null)
+                    {
+                        Assert.IsNull(actual);
+                    }
+                    else
+                    {
+                        Assert.AreEqual(expected.Count, actual.Count);
+                        Assert.AreEqual(expected.Average, actual.Average, EPSILON);
+                    }
+                }
+            }
+        }
+
+        /// <summary>
+        /// Logs the time to find the nearest neighbors of the first users among all users, ranks already cached.
+        /// </summary>
+        private static void MeasureNeighborhoods(String name, DataModel dataModel, UserCorrelation correlation,
+                                                 List<User> users)
+        {
+            UserNeighborhood neighborhood = new NearestNUserNeighborhood(NEIGHBORHOOD_SIZE, correlation, dataModel);
+            int neighbors = 0;
+            Stopwatch watch = Stopwatch.StartNew();
+            for (int u = 0; u < NUM_NEIGHBORHOODS; u++)
+            {
+                neighbors += neighborhood.GetUserNeighborhood(users[u].ID).Count;
+            }
+            watch.Stop();
+            log.Info(name + " order: " + NUM_NEIGHBORHOODS + " neighborhoods among " + users.Count + " users in " +
+                     watch.ElapsedMilliseconds + "ms (" + neighbors + " neighbors)");
+        }
+
+        /// <summary>
+        /// Logs the log-gap cost of an order and the throughput of passes that, for each user in index order,
+        /// sum the vectors of the user's items, as a factorization's solves and scoring do.
+        /// </summary>
+        private static double Measure(String name, DataModel dataModel, IDIndex userIndex, IDIndex itemIndex)
+        {
+            int[][] rows = new int[userIndex.Count][];
+            foreach (User user in dataModel.GetUsers())
+            {
+                Preference[] prefs = user.GetPreferencesAsArray();
+                int[] row = new int[prefs.Length];
+                for (int i = 0; i < prefs.Length; i++)
+                {
+                    row[i] = itemIndex.IndexOf(prefs[i].Item.ID);
+                }
+                Array.Sort(row);
+                rows[userIndex.IndexOf(user.ID)] = row;
+            }
+            float[] vectors = new float[itemIndex.Count * NUM_FEATURES];
+            for (int i = 0; i < vectors.Length; i++)
+            {
+                vectors[i] = (i % 7) * 0.125f;
+            }
+
+            double sum = 0.0;
+            long values = 0L;
+            Stopwatch watch = Stopwatch.StartNew();
+            for (int pass = 0; pass < NUM_PASSES; pass++)
+            {
+                foreach (int[] row in rows)
+                {
+                    foreach (int item in row)
+                    {
+                        int offset = item * NUM_FEATURES;
+                        for (int f = 0; f < NUM_FEATURES; f++)
+                        {
+                            sum += vectors[offset + f];
+                        }
+                    }
+                    values += row.Length;
+                }
+            }
+            watch.Stop();
+            double cost = IDOrdering.LogGapCost(dataModel, userIndex, itemIndex);
+            double millis = Math.Max(1L, watch.ElapsedMilliseconds);
+            log.Info(name + " order: log-gap cost " + cost.ToString("F3") + ", " +
+                     (values / millis).ToString("F0") + " vectors/ms (" + watch.ElapsedMilliseconds + "ms, checksum " +
+                     sum + ')');
+            return cost;
+        }
+
+        /// <returns>users who each rate items of one cluster, with item IDs assigned at random</returns>
+        private static DataModel CreateClusteredModel(int numClusters, int numUsers)
+        {
+            Random random = new Random(11);
+            int numItems = numClusters * ITEMS_PER_CLUSTER;
+            int[] itemIDs = new int[numItems];
+            double[] keys = new double[numItems];
+            for (int i = 0; i < numItems; i++)
+            {
+                itemIDs[i] = i;
+                keys[i] = random.NextDouble();
+            }
+            Array.Sort(keys, itemIDs);
+            Item[] items = new Item[numItems];
+            for (int i = 0; i < numItems; i++)
+            {
+                items[i] = new GenericItem<String>("i" + itemIDs[i]);
+            }
+
+            List<User> users = new List<User>(numUsers);
+            for (int u = 0; u < numUsers; u++)
+            {
+                int cluster = random.Next(numClusters);
+                Dictionary<int, Object> chosen = new Dictionary<int, Object>();
+                List<Preference> prefs = new List<Preference>(PREFS_PER_USER);
+                while (prefs.Count < PREFS_PER_USER)
+                {
+                    int item = cluster * ITEMS_PER_CLUSTER + random.Next(ITEMS_PER_CLUSTER);
+                    if (!chosen.ContainsKey(item))
+                    {
+                        chosen.Add(item, null);
+                        prefs.Add(new GenericPreference(null, items[item], random.Next(1, 6)));
+                    }
+                }
+                users.Add(new GenericUser<String>("u" + u, prefs));
+            }
+            return new GenericDataModel(users);
+        }
+
+        private static User BuildUser(String userID, params String[] itemIDs)
+        {
+            List<Preference> prefs = new List<Preference>(itemIDs.Length);
+            foreach (String itemID in itemIDs)
+            {
+                prefs.Add(new GenericPreference(null, new GenericItem<String>(itemID), 1.0));
+            }
+            return new GenericUser<String>(userID, prefs);
+        }
+
+    }
+
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2007 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+namespace Taste.Tests.Model
+{
+    using System;
+    using System.Collections.Generic;
+    using Taste.Tests;
+    using Taste.Model;
+    using NUnit.Framework;
+
+
+    /**
+     * <p>Tests {@link taste.Model.LoadFilter}.</p>
+     */
+    [TestFixture]
+    public class LoadFilterTest : TasteTestCase
+    {
+
+        [Test]
+        public void TestSampling()
+        {
+            LoadFilter filter = new LoadFilter();
+            Assert.IsTrue(filter.AcceptsUser("anyone"));
+            filter.UserSampleRate = 0.25;
+            filter.SampleSeed = 42;
+            int accepted = 0;
+            for (int i = 0; i < 10000; i++)
+            {
+                bool accepts = filter.AcceptsUser(i);
+                // Same decision for the same ID from any source, and every time
+                Assert.AreEqual(accepts, filter.AcceptsUser(i.ToString()));
+                Assert.AreEqual(accepts, filter.AcceptsUser(i));
+                if (accepts)
+                {
+                    accepted++;
+                }
+            }
+            Assert.IsTrue(accepted > 2200 && accepted < 2800, "accepted " + accepted);
+
+            LoadFilter other = new LoadFilter();
+            other.UserSampleRate = 0.25;
+            other.SampleSeed = 43;
+            int differ = 0;
+            for (int i = 0; i < 1000; i++)
+            {
+                if (filter.AcceptsUser(i) != other.AcceptsUser(i))
+                {
+                    differ++;
+                }
+            }
+            Assert.IsTrue(differ > 0);
+        }
+
+        [Test]
+        public void TestDates()
+        {
+            LoadFilter filter = new LoadFilter();
+            Assert.IsTrue(filter.AcceptsDate(null));
+            filter.Since = new DateTime(2005, 1, 1);
+            filter.Until = new DateTime(2005, 7, 1);
+            Assert.IsFalse(filter.AcceptsDate(null));
+            Assert.IsFalse(filter.AcceptsDate(new DateTime(2004, 12, 31)));
+            Assert.IsTrue(filter.AcceptsDate(new DateTime(2005, 1, 1)));
+            Assert.IsTrue(filter.AcceptsDate(new DateTime(2005, 6, 30)));
+            Assert.IsFalse(filter.AcceptsDate(new DateTime(2005, 7, 1)));
+        }
+
+        [Test]
+        public void TestRemoveSparse()
+        {
+            Dictionary<String, List<Preference>> prefs = new Dictionary<String, List<Preference>>();
+            Add(prefs, "u1", "popular", "rare");
+            Add(prefs, "u2", "popular", "common");
+            Add(prefs, "u3", "popular", "common", "rare2");
+            Add(prefs, "u4", "rare3");
+            LoadFilter filter = new LoadFilter();
+            filter.MinItemPreferences = 2;
+            filter.MinUserPreferences = 2;
+            filter.RemoveSparse(prefs);
+            // u1 keeps only "popular" once "rare" goes, so is then too sparse; u4 keeps nothing
+            Assert.AreEqual(2, prefs.Count);
+            Assert.AreEqual(2, prefs["u2"].Count);
+            Assert.AreEqual(2, prefs["u3"].Count);
+            Assert.AreEqual("common", prefs["u3"][1].Item.ID);
+        }
+
+        [Test]
+        public void TestSqlCondition()
+        {
+            LoadFilter filter = new LoadFilter();
+            Assert.IsNull(filter.ToSqlCondition("prefs", "u", "i", null));
+            filter.UserSampleRate = 0.5;
+            Assert.IsNull(filter.ToSqlCondition("prefs", "u", "i", null));
+            filter.UserSampleRate = 1.0;
+
+            filter.Since = new DateTime(2005, 1, 1);
+            filter.MinItemPreferences = 3;
+            filter.MinUserPreferences = 5;
+            Assert.AreEqual("d >= '2005-01-01 00:00:00'" +
+                            " AND i IN (SELECT i FROM prefs WHERE d >= '2005-01-01 00:00:00' GROUP BY i HAVING COUNT(*) >= 3)" +
+                            " AND u IN (SELECT u FROM prefs WHERE d >= '2005-01-01 00:00:00'" +
+                            " AND i IN (SELECT i FROM prefs WHERE d >= '2005-01-01 00:00:00' GROUP BY i HAVING COUNT(*) >= 3)" +
+                            " GROUP BY u HAVING COUNT(*) >= 5)",
+                            filter.ToSqlCondition("prefs", "u", "i", "d"));
+            try
+            {
+                filter.ToSqlCondition("prefs", "u", "i", null);
+                Assert.Fail();
+            }
+            catch (ArgumentException)
+            {
+                // good
+            }
+        }
+
+        [Test]
+        public void TestSqlConditionWithSample()
+        {
+            LoadFilter filter = new LoadFilter();
+            filter.UserSampleRate = 0.5;
+            filter.MinUserPreferences = 5;
+            // A user's own count doesn't depend on the sample
+            Assert.AreEqual("u IN (SELECT u FROM prefs GROUP BY u HAVING COUNT(*) >= 5)",
+                            filter.ToSqlCondition("prefs", "u", "i", null));
+
+            filter.MinItemPreferences = 3;
+            try
+            {
+                filter.ToSqlCondition("prefs", "u", "i", null);
+                Assert.Fail();
+            }
+            catch (ArgumentException)
+            {
+                // good
+            }
+            Assert.AreEqual("(u IN (SELECT u FROM sampled))" +
+                            " AND i IN (SELECT i FROM prefs WHERE (u IN (SELECT u FROM sampled)) GROUP BY i HAVING COUNT(*) >= 3)" +
+                            " AND u IN (SELECT u FROM prefs WHERE (u IN (SELECT u FROM sampled))" +
+                            " AND i IN (SELECT i FROM prefs WHERE (u IN (SELECT u FROM sampled)) GROUP BY i HAVING COUNT(*) >= 3)" +
+                            " GROUP BY u HAVING COUNT(*) >= 5)",
+                            filter.ToSqlCondition("prefs", "u", "i", null, "u IN (SELECT u FROM sampled)"));
+
+            filter.UserSampleRate = 1.0;
+            Assert.AreEqual(filter.ToSqlCondition("prefs", "u", "i", null),
+                            filter.ToSqlCondition("prefs", "u", "i", null, "u IN (SELECT u FROM sampled)"));
+        }
+
+        [Test]
+        public void TestInvalid()
+        {
+            LoadFilter filter = new LoadFilter();
+            try
+            {
+                filter.UserSampleRate = 0.0;
+                Assert.Fail();
+            }
+            catch (ArgumentException)
+            {
+                // good
+            }
+            try
+            {
+                filter.MinUserPreferences = -1;
+                Assert.Fail();
+            }
+            catch (ArgumentException)
+            {
+                // good
+            }
+        }
+
+        private static void Add(Dictionary<String, List<Preference>> prefs, String userID, params String[] itemIDs)
+        {
+            List<Preference> userPrefs = new List<Preference>();
+            foreach (String itemID in itemIDs)
+            {
+                userPrefs.Add(new GenericPreference(null, new GenericItem<String>(itemID), 1.0));
+            }
+            prefs.Add(userID, userPrefs);
+        }
+
+    }
+
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2007 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+namespace Taste.Tests.Model
+{
+    using System;
+    using Taste.Tests;
+    using Taste.Common;
+    using Taste.Model;
+    using NUnit.Framework;
+
+
+    /**
+     * <p>Tests {@link taste.Model.MaskedDataModel}.</p>
+     */
+    [TestFixture]
+    public class MaskedDataModelTest : TasteTestCase
+    {
+
+        [Test]
+        public void TestMasksPreferences()
+        {
+            DataModel model = new MaskedDataModel(GetDataModel(), new ItemMask("test3", "2"));
+            User test3 = model.GetUser("test3");
+            Assert.AreEqual(2, test3.GetPreferencesAsArray().Length);
+            Assert.IsNull(test3.GetPreferenceFor("2"));
+            Assert.AreSame(test3, test3.GetPreferenceFor("0").User);
+            Assert.AreEqual(4, model.GetNumUsers());
+
+            Preference[] prefsForItem = model.GetPreferencesForItemAsArray("2");
+            Assert.AreEqual(2, prefsForItem.Length);
+            foreach (Preference pref in prefsForItem)
+            {
+                Assert.AreNotEqual("test3", pref.User.ID);
+            }
+            Assert.AreEqual(4, model.GetPreferencesForItemAsArray("0").Length);
+        }
+
+        [Test]
+        public void TestHidesEmptyUser()
+        {
+            MaskedDataModel model = new MaskedDataModel(GetDataModel(), new ItemMask("test1", "0", "1"));
+            Assert.AreEqual(3, model.GetNumUsers());
+            Assert.IsFalse(model.ContainsUser("test1"));
+            try
+            {
+                model.GetUser("test1");
+                Assert.Fail();
+            }
+            catch (NoSuchElementException)
+            {
+                // good
+            }
+            foreach (User user in model.GetUsers())
+            {
+                Assert.AreNotEqual("test1", user.ID);
+            }
+        }
+
+        private sealed class ItemMask : MaskedDataModel.Mask
+        {
+            private readonly Object userID;
+            private readonly Object[] itemIDs;
+
+            internal ItemMask(Object userID, params Object[] itemIDs)
+            {
+                this.userID = userID;
+                this.itemIDs = itemIDs;
+            }
+
+            public bool AffectsUser(Object userID)
+            {
+                return this.userID.Equals(userID);
+            }
+
+            public bool IsMasked(Object userID, Object itemID)
+            {
+                return Array.IndexOf(itemIDs, itemID) >= 0;
+            }
+        }
+
+    }
+}
@@ -0,0 +1,299 @@
+/*
+ * Copyright 2007 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+namespace Taste.Tests.Model
+{
+    using System;
+    using System.Collections.Generic;
+    using System.IO;
+    using System.Threading;
+    using Taste.Tests;
+    using Taste.Common;
+    using Taste.Model;
+    using Taste.Model.file;
+    using NUnit.Framework;
+
+
+    /**
+     * <p>Tests {@link taste.Model.file.MutableFileDataModel}.</p>
+     */
+    [TestFixture]
+    public class MutableFileDataModelTest : TasteTestCase
+    {
+        private String directory;
+        private String dataFile;
+
+        [SetUp]
+        public void CreateDirectory()
+        {
+            directory = Path.Combine(Path.GetTempPath(), "MutableFileDataModelTest" + Guid.NewGuid().ToString("N"));
+            Directory.CreateDirectory(directory);
+            dataFile = Path.Combine(directory, "prefs.csv");
+            File.WriteAllText(dataFile, "A,1,0.5\nA,2,0.25\nB,1,1.0\nA,1,0.75\n");
+        }
+
+        [TearDown]
+        public void DeleteDirectory()
+        {
+            Directory.Delete(directory, true);
+        }
+
+        [Test]
+        public void TestLoad()
+        {
+            using (MutableFileDataModel model = new MutableFileDataModel(dataFile))
+            {
+                Assert.AreEqual(2, model.GetNumUsers());
+                Assert.AreEqual(2, model.GetNumItems());
+                // The later line for the same preference wins
+                Assert.AreEqual(0.75, model.GetUser("A").GetPreferenceFor("1").Value);
+                Assert.AreEqual(2, model.GetUser("A").GetPreferencesAsArray().Length);
+                Preference[] forItem = model.GetPreferencesForItemAsArray("1");
+                Assert.AreEqual(2, forItem.Length);
+                Assert.AreEqual("A", forItem[0].User.ID);
+                Assert.AreEqual("B", forItem[1].User.ID);
+                try
+                {
+                    model.GetUser("C");
+                    Assert.Fail();
+                }
+                catch (NoSuchElementException)
+                {
+                    // good
+                }
+            }
+        }
+
+        [Test]
+        public void TestChangesSurviveReopen()
+        {
+            using (MutableFileDataModel model = new MutableFileDataModel(dataFile))
+            {
+                model.SetPreference("C", "3", 0.1);
+                model.SetPreference("A", "2", 0.3);
+                model.RemovePreference("B", "1");
+                model.RemovePreference("B", "9");
+                Assert.AreEqual(3, model.GetNumUsers());
+                Assert.AreEqual(0.3, model.GetUser("A").GetPreferenceFor("2").Value);
+                Assert.AreEqual(0, model.GetUser("B").GetPreferencesAsArray().Length);
+                Assert.AreEqual(1, model.GetPreferencesForItemAsArray("1").Length);
+            }
+            using (MutableFileDataModel model = new MutableFileDataModel(dataFile))
+            {
+                Assert.AreEqual(0.1, model.GetUser("C").GetPreferenceFor("3").Value);
+                Assert.AreEqual(0.3, model.GetUser("A").GetPreferenceFor("2").Value);
+                Assert.IsNull(model.GetUser("B").GetPreferenceFor("1"));
+            }
+        }
+
+        [Test]
+        public void TestTornRecord()
+        {
+            using (MutableFileDataModel model = new MutableFileDataModel(dataFile))
+            {
+                model.SetPreference("C", "3", 0.1);
+            }
+            String logFile = dataFile + ".log";
+            long length = new FileInfo(logFile).Length;
+            using (FileStream log = new FileStream(logFile, FileMode.Append))
+            {
+                byte[] torn = System.Text.Encoding.UTF8.GetBytes("+C,4,0.");
+                log.Write(torn, 0, torn.Length);
+            }
+            using (MutableFileDataModel model = new MutableFileDataModel(dataFile))
+            {
+                Assert.AreEqual(length, new FileInfo(logFile).Length);
+                Assert.AreEqual(1, model.GetUser("C").GetPreferencesAsArray().Length);
+                model.SetPreference("C", "5", 0.2);
+            }
+            using (MutableFileDataModel model = new MutableFileDataModel(dataFile))
+            {
+                Assert.AreEqual(2, model.GetUser("C").GetPreferencesAsArray().Length);
+            }
+
+            File.AppendAllText(logFile, "?garbage\n");
+            try
+            {
+                new MutableFileDataModel(dataFile);
+                Assert.Fail();
+            }
+            catch (TasteException)
+            {
+                // good
+            }
+        }
+
+        [Test]
+        public void TestCompact()
+        {
+            using (MutableFileDataModel model = new MutableFileDataModel(dataFile))
+            {
+                model.SetPreference("C", "3", 0.1);
+                model.RemovePreference("A", "2");
+                model.Compact();
+                Assert.AreEqual(0L, new FileInfo(model.LogFile).Length);
+                Assert.IsFalse(File.Exists(model.LogFile + ".compacting"));
+                model.SetPreference("D", "1", 0.9);
+            }
+            using (MutableFileDataModel model = new MutableFileDataModel(dataFile))
+            {
+                Assert.AreEqual(4, model.GetNumUsers());
+                Assert.AreEqual(0.75, model.GetUser("A").GetPreferenceFor("1").Value);
+                Assert.IsNull(model.GetUser("A").GetPreferenceFor("2"));
+                Assert.AreEqual(0.1, model.GetUser("C").GetPreferenceFor("3").Value);
+                Assert.AreEqual(0.9, model.GetUser("D").GetPreferenceFor("1").Value);
+            }
+
+            // A log left by an interrupted compaction is replayed harmlessly
+            File.WriteAllText(dataFile + ".log.compacting", "+A,1,0.75\n-A,2\n");
+            using (MutableFileDataModel model = new MutableFileDataModel(dataFile))
+            {
+                Assert.AreEqual(0.75, model.GetUser("A").GetPreferenceFor("1").Value);
+                Assert.AreEqual(1, model.GetUser("A").GetPreferencesAsArray().Length);
+                model.Compact();
+                Assert.IsFalse(File.Exists(dataFile + ".log.compacting"));
+            }
+
+            // A torn record at its end is cut off, so that a later rotation appends whole records after it
+            File.WriteAllText(dataFile + ".log.compacting", "+A,1,0.5\n+C,4,0.");
+            using (MutableFileDataModel model = new MutableFileDataModel(dataFile))
+            {
+                Assert.AreEqual(9L, new FileInfo(dataFile + ".log.compacting").Length);
+                Assert.AreEqual(0.5, model.GetUser("A").GetPreferenceFor("1").Value);
+                Assert.IsNull(model.GetUser("C").GetPreferenceFor("4"));
+            }
+        }
+
+        [Test]
+        public void TestCompressedStart()
+        {
+            String gzipped = Path.Combine(directory, "new.csv.gz");
+            using (MutableFileDataModel model = new MutableFileDataModel(gzipped))
+            {
+                Assert.AreEqual(0, model.GetNumUsers());
+                model.SetPreference("A", "1", 0.5);
+                model.Compact();
+            }
+            using (MutableFileDataModel model = new MutableFileDataModel(gzipped))
+            {
+                Assert.AreEqual(0.5, model.GetUser("A").GetPreferenceFor("1").Value);
+            }
+        }
+
+        [Test]
+        public void TestConcurrentWrites()
+        {
+            using (MutableFileDataModel model = new MutableFileDataModel(dataFile))
+            {
+                model.CompactAfter = 50;
+                Thread[] threads = new Thread[4];
+                for (int t = 0; t < threads.Length; t++)
+                {
+                    String userID = "user" + t;
+                    threads[t] = new Thread(delegate()
+                    {
+                        for (int i = 0; i < 100; i++)
+                        {
+                            model.SetPreference(userID, "item" + i, i);
+                            // Reads see whole arrays, sorted by item
+                            Preference[] prefs = model.GetUser(userID).GetPreferencesAsArray();
+                            for (int j = 1; j < prefs.Length; j++)
+                            {
+                                Assert.IsTrue(prefs[j - 1].Item.CompareTo(prefs[j].Item) < 0);
+                            }
+                        }
+                    });
+                    threads[t].Start();
+                }
+                foreach (Thread thread in threads)
+                {
+                    thread.Join();
+                }
+                Assert.AreEqual(4, model.GetPreferencesForItemAsArray("item7").Length);
+            }
+            using (MutableFileDataModel model = new MutableFileDataModel(dataFile))
+            {
+                Assert.AreEqual(6, model.GetNumUsers());
+                Assert.AreEqual(100, model.GetUser("user2").GetPreferencesAsArray().Length);
+            }
+        }
+
+        [Test]
+        public void TestChangeEvents()
+        {
+            using (MutableFileDataModel model = new MutableFileDataModel(dataFile))
+            {
+                RecordingListener listener = new RecordingListener();
+                model.AddPreferenceChangeListener(listener);
+                model.SetPreference("A", "1", 0.2);
+                model.RemovePreference("A", "2");
+                model.RemovePreference("A", "9");
+                Assert.AreEqual(2, listener.changes.Count);
+                Assert.AreEqual(0.75, listener.changes[0].OldValue);
+                Assert.AreEqual(0.2, listener.changes[0].NewValue);
+                Assert.IsTrue(listener.changes[1].IsRemoved);
+                Assert.AreEqual(0.25, listener.changes[1].OldValue);
+            }
+        }
+
+        [Test]
+        public void TestBadIDs()
+        {
+            using (MutableFileDataModel model = new MutableFileDataModel(dataFile))
+            {
+                try
+                {
+                    model.SetPreference("A,B", "1", 0.2);
+                    Assert.Fail();
+                }
+                catch (ArgumentException)
+                {
+                    // good
+                }
+                try
+                {
+                    model.SetPreference(1, "1", 0.2);
+                    Assert.Fail();
+                }
+                catch (ArgumentException)
+                {
+                    // good
+                }
+                try
+                {
+                    model.GetUser("A").GetPreferenceFor("1").Value = 0.1;
+                    Assert.Fail();
+                }
+                catch (NotSupportedException)
+                {
+                    // good
+                }
+            }
+        }
+
+        private sealed class RecordingListener : PreferenceChangeListener
+        {
+            internal readonly List<PreferenceChange> changes = new List<PreferenceChange>();
+
+            public void PreferencesChanged(IList<PreferenceChange> batch)
+            {
+                changes.AddRange(batch);
+            }
+        }
+
+    }
+
+}
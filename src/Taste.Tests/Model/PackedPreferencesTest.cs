@@ -0,0 +1,103 @@
+/*
+ * Copyright 2007 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+namespace Taste.Tests.Model
+{
+    using System;
+    using Taste.Tests;
+    using Taste.Common;
+    using Taste.Model.Ado;
+    using NUnit.Framework;
+
+
+    /**
+     * <p>Tests {@link taste.Model.Ado.PackedPreferences}.</p>
+     */
+    [TestFixture]
+    public class PackedPreferencesTest : TasteTestCase
+    {
+
+        [Test]
+        public void TestRoundTrip()
+        {
+            String[] ids = { "item10", "item2", "item1", "", "\u00e9t\u00e9", "\u00e9t\uD83D\uDE00" };
+            double[] values = { 1.0, 2.5, -3.0, 0.0, Double.MaxValue, 0.1 };
+            String[] decodedIDs;
+            double[] decodedValues;
+            PackedPreferences.Decode(PackedPreferences.Encode(ids, values), out decodedIDs, out decodedValues);
+            Assert.AreEqual(new String[] { "", "item1", "item10", "item2", "\u00e9t\u00e9", "\u00e9t\uD83D\uDE00" }, decodedIDs);
+            Assert.AreEqual(new double[] { 0.0, -3.0, 1.0, 2.5, Double.MaxValue, 0.1 }, decodedValues);
+
+            PackedPreferences.Decode(PackedPreferences.Empty, out decodedIDs, out decodedValues);
+            Assert.AreEqual(0, decodedIDs.Length);
+            Assert.AreEqual(0, decodedValues.Length);
+        }
+
+        [Test]
+        public void TestSetRemove()
+        {
+            double oldValue;
+            byte[] packed = PackedPreferences.Set(null, "b", 1.0, out oldValue);
+            Assert.IsTrue(Double.IsNaN(oldValue));
+            packed = PackedPreferences.Set(packed, "a", 2.0, out oldValue);
+            packed = PackedPreferences.Set(packed, "b", 3.0, out oldValue);
+            Assert.AreEqual(1.0, oldValue);
+            packed = PackedPreferences.Remove(packed, "c", out oldValue);
+            Assert.IsTrue(Double.IsNaN(oldValue));
+
+            String[] ids;
+            double[] values;
+            PackedPreferences.Decode(packed, out ids, out values);
+            Assert.AreEqual(new String[] { "a", "b" }, ids);
+            Assert.AreEqual(new double[] { 2.0, 3.0 }, values);
+
+            packed = PackedPreferences.Remove(packed, "a", out oldValue);
+            Assert.AreEqual(2.0, oldValue);
+            PackedPreferences.Decode(packed, out ids, out values);
+            Assert.AreEqual(new String[] { "b" }, ids);
+        }
+
+        [Test]
+        public void TestInvalid()
+        {
+            try
+            {
+                PackedPreferences.Encode(new String[] { "a", "a" }, new double[] { 1.0, 2.0 });
+                Assert.Fail();
+            }
+            catch (ArgumentException)
+            {
+                // good
+            }
+            byte[] packed = PackedPreferences.Encode(new String[] { "a" }, new double[] { 1.0 });
+            byte[] truncated = new byte[packed.Length - 1];
+            Array.Copy(packed, truncated, truncated.Length);
+            String[] ids;
+            double[] values;
+            try
+            {
+                PackedPreferences.Decode(truncated, out ids, out values);
+                Assert.Fail();
+            }
+            catch (TasteException)
+            {
+                // good
+            }
+        }
+
+    }
+
+}
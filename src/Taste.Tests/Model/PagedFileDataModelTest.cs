@@ -0,0 +1,221 @@
+/*
+ * Copyright 2007 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+namespace Taste.Tests.Model
+{
+    using System;
+    using System.Collections.Generic;
+    using System.IO;
+    using System.Text;
+    using Taste.Tests;
+    using Taste.Common;
+    using Taste.Model;
+    using Taste.Model.file;
+    using NUnit.Framework;
+
+
+    /**
+     * <p>Tests {@link taste.Model.file.PagedFileDataModel}.</p>
+     */
+    [TestFixture]
+    public class PagedFileDataModelTest : TasteTestCase
+    {
+        private String directory;
+        private String dataFile;
+        private String layoutDirectory;
+
+        [SetUp]
+        public void CreateDirectory()
+        {
+            directory = Path.Combine(Path.GetTempPath(), "PagedFileDataModelTest" + Guid.NewGuid().ToString("N"));
+            Directory.CreateDirectory(directory);
+            dataFile = Path.Combine(directory, "prefs.csv");
+            layoutDirectory = Path.Combine(directory, "layout");
+        }
+
+        [TearDown]
+        public void DeleteDirectory()
+        {
+            Directory.Delete(directory, true);
+        }
+
+        [Test]
+        public void TestSmall()
+        {
+            File.WriteAllText(dataFile, "B,2,0.5\nA,3,0.25\nB,1,1.0\nA,1,0.75\nC,2,0.5\nB,2,0.125\n");
+            // Runs of two records, so duplicates meet only while merging
+            using (PagedFileDataModel model = new PagedFileDataModel(dataFile, layoutDirectory, 4L, 2))
+            {
+                Assert.AreEqual(3, model.GetNumUsers());
+                Assert.AreEqual(3, model.GetNumItems());
+                Assert.AreEqual(5L, model.NumPreferences);
+
+                Preference[] prefs = model.GetUser("B").GetPreferencesAsArray();
+                Assert.AreEqual(2, prefs.Length);
+                Assert.AreEqual("1", prefs[0].Item.ID);
+                Assert.AreEqual(1.0, prefs[0].Value, EPSILON);
+                // The later line wins
+                Assert.AreEqual(0.125, model.GetUser("B").GetPreferenceFor("2").Value, EPSILON);
+                Assert.IsNull(model.GetUser("C").GetPreferenceFor("1"));
+                Assert.IsNull(model.GetUser("C").GetPreferenceFor("unknown"));
+
+                Preference[] forItem = model.GetPreferencesForItemAsArray("1");
+                Assert.AreEqual(2, forItem.Length);
+                Assert.AreEqual("A", forItem[0].User.ID);
+                Assert.AreEqual("B", forItem[1].User.ID);
+                Assert.AreEqual(0, model.GetPreferencesForItemAsArray("unknown").Length);
+
+                List<Object> userIDs = new List<Object>();
+                foreach (User user in model.GetUsers())
+                {
+                    userIDs.Add(user.ID);
+                }
+                Assert.AreEqual(new Object[] { "A", "B", "C" }, userIDs.ToArray());
+                try
+                {
+                    model.GetUser("D");
+                    Assert.Fail();
+                }
+                catch (NoSuchElementException)
+                {
+                    // good
+                }
+                try
+                {
+                    model.SetPreference("A", "1", 0.5);
+                    Assert.Fail();
+                }
+                catch (NotSupportedException)
+                {
+                    // good
+                }
+            }
+        }
+
+        [Test]
+        public void TestMatchesGenericDataModel()
+        {
+            Random random = new Random(7);
+            StringBuilder text = new StringBuilder();
+            Dictionary<String, Dictionary<String, double>> expected = new Dictionary<String, Dictionary<String, double>>();
+            for (int i = 0; i < 2000; i++)
+            {
+                String userID = "u" + random.Next(50);
+                String itemID = "i" + random.Next(40);
+                double value = random.Next(1, 6);
+                text.Append(userID).Append(',').Append(itemID).Append(',').Append(value).Append('\n');
+                if (!expected.ContainsKey(userID))
+                {
+                    expected.Add(userID, new Dictionary<String, double>());
+                }
+                expected[userID][itemID] = value;
+            }
+            File.WriteAllText(dataFile, text.ToString());
+
+            using (PagedFileDataModel model = new PagedFileDataModel(dataFile, layoutDirectory, 100L, 300))
+            {
+                Assert.AreEqual(expected.Count, model.GetNumUsers());
+                long total = 0L;
+                foreach (KeyValuePair<String, Dictionary<String, double>> entry in expected)
+                {
+                    User user = model.GetUser(entry.Key);
+                    Preference[] prefs = user.GetPreferencesAsArray();
+                    Assert.AreEqual(entry.Value.Count, prefs.Length);
+                    for (int i = 0; i < prefs.Length; i++)
+                    {
+                        Assert.AreEqual(entry.Value[(String) prefs[i].Item.ID], prefs[i].Value, EPSILON);
+                        if (i > 0)
+                        {
+                            Assert.IsTrue(prefs[i - 1].Item.CompareTo(prefs[i].Item) < 0);
+                        }
+                    }
+                    total += prefs.Length;
+                }
+                Assert.AreEqual(total, model.NumPreferences);
+
+                long fromItems = 0L;
+                foreach (Item item in model.GetItems())
+                {
+                    Preference[] prefs = model.GetPreferencesForItemAsArray(item.ID);
+                    for (int i = 0; i < prefs.Length; i++)
+                    {
+                        Assert.AreEqual(expected[(String) prefs[i].User.ID][(String) item.ID], prefs[i].Value, EPSILON);
+                        if (i > 0)
+                        {
+                            Assert.IsTrue(prefs[i - 1].User.CompareTo(prefs[i].User) < 0);
+                        }
+                    }
+                    fromItems += prefs.Length;
+                }
+                Assert.AreEqual(total, fromItems);
+            }
+        }
+
+        [Test]
+        public void TestConcurrentReads()
+        {
+            StringBuilder text = new StringBuilder();
+            for (int u = 0; u < 40; u++)
+            {
+                for (int i = 0; i <= u % 7; i++)
+                {
+                    text.Append('u').Append(u).Append(",i").Append(i).Append(',').Append(u + i).Append('\n');
+                }
+            }
+            File.WriteAllText(dataFile, text.ToString());
+            // A cache this small sends nearly every read to disk
+            using (PagedFileDataModel model = new PagedFileDataModel(dataFile, layoutDirectory, 4L, 100))
+            {
+                ParallelUtils.Run(4, delegate(int thread)
+                {
+                    for (int pass = 0; pass < 5; pass++)
+                    {
+                        for (int u = 0; u < 40; u++)
+                        {
+                            Preference[] prefs = model.GetUser("u" + u).GetPreferencesAsArray();
+                            Assert.AreEqual(u % 7 + 1, prefs.Length);
+                            Assert.AreEqual(u, prefs[0].Value, EPSILON);
+                        }
+                    }
+                });
+            }
+        }
+
+        [Test]
+        public void TestReusesLayout()
+        {
+            File.WriteAllText(dataFile, "A,1,0.5\n");
+            String indexFile = Path.Combine(layoutDirectory, "index.bin");
+            using (new PagedFileDataModel(dataFile, layoutDirectory, 10L, 10))
+            {
+            }
+            DateTime built = File.GetLastWriteTimeUtc(indexFile);
+            using (PagedFileDataModel model = new PagedFileDataModel(dataFile, layoutDirectory, 10L, 10))
+            {
+                Assert.AreEqual(1, model.GetNumUsers());
+            }
+            Assert.AreEqual(built, File.GetLastWriteTimeUtc(indexFile));
+
+            File.WriteAllText(dataFile, "A,1,0.5\nB,1,0.25\n");
+            using (PagedFileDataModel model = new PagedFileDataModel(dataFile, layoutDirectory, 10L, 10))
+            {
+                Assert.AreEqual(2, model.GetNumUsers());
+            }
+        }
+
+    }
+
+}
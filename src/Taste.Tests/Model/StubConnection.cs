@@ -0,0 +1,472 @@
+/*
+ * Copyright 2007 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+namespace Taste.Tests.Model
+{
+    using System;
+    using System.Collections;
+    using System.Collections.Generic;
+    using System.Data;
+
+
+    /**
+     * <p>An in-memory {@link IDbConnection} for tests of ADO code. Every command run through it is recorded, with its
+     * parameter values, and queries are answered by {@link #Query}.</p>
+     */
+    public sealed class StubConnection : IDbConnection
+    {
+        private readonly List<Execution> executed = new List<Execution>();
+        private ConnectionState state = ConnectionState.Closed;
+        private Converter<Execution, DataTable> query;
+        private Predicate<Execution> failOn;
+        private int commits;
+        private int rollbacks;
+
+        /// <summary>Answers ExecuteReader and ExecuteScalar; by default with an empty table</summary>
+        public Converter<Execution, DataTable> Query
+        {
+            get { return query; }
+            set { query = value; }
+        }
+
+        /// <summary>Commands for which this returns <code>true</code> throw a <see cref="DataException"/></summary>
+        public Predicate<Execution> FailOn
+        {
+            get { return failOn; }
+            set { failOn = value; }
+        }
+
+        /// <summary>Commands run so far, in order</summary>
+        public List<Execution> Executed
+        {
+            get { return executed; }
+        }
+
+        public int Commits
+        {
+            get { return commits; }
+        }
+
+        public int Rollbacks
+        {
+            get { return rollbacks; }
+        }
+
+        /// <returns>commands run so far whose text contains <code>sql</code></returns>
+        public List<Execution> ExecutedMatching(String sql)
+        {
+            return executed.FindAll(delegate(Execution execution) { return execution.CommandText.Contains(sql); });
+        }
+
+        /// <returns>a table with the given columns, typed like the values in the first row, and rows</returns>
+        public static DataTable Table(String[] columns, params Object[][] rows)
+        {
+            DataTable table = new DataTable();
+            for (int i = 0; i < columns.Length; i++)
+            {
+                table.Columns.Add(columns[i], rows.Length == 0 ? typeof(String) : rows[0][i].GetType());
+            }
+            foreach (Object[] row in rows)
+            {
+                table.Rows.Add(row);
+            }
+            return table;
+        }
+
+        private Execution Run(StubCommand command)
+        {
+            if (state != ConnectionState.Open)
+            {
+                throw new InvalidOperationException("Connection is not open");
+            }
+            Execution execution;
+            lock (executed)
+            {
+                execution = new Execution(command, executed.Count);
+                executed.Add(execution);
+            }
+            if (failOn != null && failOn(execution))
+            {
+                throw new DataException("Failing " + execution);
+            }
+            return execution;
+        }
+
+        private DataTable Answer(Execution execution)
+        {
+            DataTable table = query == null ? null : query(execution);
+            return table ?? new DataTable();
+        }
+
+        #region IDbConnection Members
+
+        public IDbTransaction BeginTransaction()
+        {
+            return new StubTransaction(this);
+        }
+
+        public IDbTransaction BeginTransaction(IsolationLevel il)
+        {
+            return new StubTransaction(this);
+        }
+
+        public void ChangeDatabase(String databaseName)
+        {
+        }
+
+        public void Close()
+        {
+            state = ConnectionState.Closed;
+        }
+
+        public String ConnectionString
+        {
+            get { return "stub"; }
+            set { }
+        }
+
+        public int ConnectionTimeout
+        {
+            get { return 0; }
+        }
+
+        public IDbCommand CreateCommand()
+        {
+            return new StubCommand(this);
+        }
+
+        public String Database
+        {
+            get { return "stub"; }
+        }
+
+        public void Open()
+        {
+            state = ConnectionState.Open;
+        }
+
+        public ConnectionState State
+        {
+            get { return state; }
+        }
+
+        public void Dispose()
+        {
+            Close();
+        }
+
+        #endregion
+
+        #region Helper classes
+
+        /// <summary>
+        /// One command as it was run.
+        /// </summary>
+        public sealed class Execution
+        {
+            private readonly String commandText;
+            private readonly Dictionary<String, Object> values = new Dictionary<String, Object>();
+            private readonly IDbTransaction transaction;
+            private readonly int sequence;
+
+            internal Execution(IDbCommand command, int sequence)
+            {
+                this.commandText = command.CommandText;
+                foreach (IDataParameter parameter in command.Parameters)
+                {
+                    values[parameter.ParameterName] = parameter.Value;
+                }
+                this.transaction = command.Transaction;
+                this.sequence = sequence;
+            }
+
+            public String CommandText
+            {
+                get { return commandText; }
+            }
+
+            /// <returns>the value the named parameter had when the command ran</returns>
+            public Object this[String parameterName]
+            {
+                get { return values[parameterName]; }
+            }
+
+            public IDbTransaction Transaction
+            {
+                get { return transaction; }
+            }
+
+            public int Sequence
+            {
+                get { return sequence; }
+            }
+
+            public override String ToString()
+            {
+                return "Execution[" + sequence + ": " + commandText + ']';
+            }
+        }
+
+        private sealed class StubCommand : IDbCommand
+        {
+            private readonly StubConnection connection;
+            private readonly StubParameters parameters = new StubParameters();
+            private String commandText;
+            private CommandType commandType = CommandType.Text;
+            private IDbTransaction transaction;
+
+            internal StubCommand(StubConnection connection)
+            {
+                this.connection = connection;
+            }
+
+            public void Cancel()
+            {
+            }
+
+            public IDbDataParameter CreateParameter()
+            {
+                return new StubParameter();
+            }
+
+            public int ExecuteNonQuery()
+            {
+                connection.Run(this);
+                return 1;
+            }
+
+            public IDataReader ExecuteReader()
+            {
+                return connection.Answer(connection.Run(this)).CreateDataReader();
+            }
+
+            public IDataReader ExecuteReader(CommandBehavior behavior)
+            {
+                return ExecuteReader();
+            }
+
+            public Object ExecuteScalar()
+            {
+                DataTable table = connection.Answer(connection.Run(this));
+                return table.Rows.Count == 0 ? null : table.Rows[0][0];
+            }
+
+            public void Prepare()
+            {
+            }
+
+            public String CommandText
+            {
+                get { return commandText; }
+                set { commandText = value; }
+            }
+
+            public int CommandTimeout
+            {
+                get { return 0; }
+                set { }
+            }
+
+            public CommandType CommandType
+            {
+                get { return commandType; }
+                set { commandType = value; }
+            }
+
+            public IDbConnection Connection
+            {
+                get { return connection; }
+                set
+                {
+                    if (value != connection)
+                    {
+                        throw new NotSupportedException();
+                    }
+                }
+            }
+
+            public IDataParameterCollection Parameters
+            {
+                get { return parameters; }
+            }
+
+            public IDbTransaction Transaction
+            {
+                get { return transaction; }
+                set { transaction = value; }
+            }
+
+            public UpdateRowSource UpdatedRowSource
+            {
+                get { return UpdateRowSource.None; }
+                set { }
+            }
+
+            public void Dispose()
+            {
+            }
+        }
+
+        private sealed class StubTransaction : IDbTransaction
+        {
+            private readonly StubConnection connection;
+            private bool done;
+
+            internal StubTransaction(StubConnection connection)
+            {
+                this.connection = connection;
+            }
+
+            public void Commit()
+            {
+                End();
+                connection.commits++;
+            }
+
+            public void Rollback()
+            {
+                End();
+                connection.rollbacks++;
+            }
+
+            private void End()
+            {
+                if (done)
+                {
+                    throw new InvalidOperationException("Transaction already ended");
+                }
+                done = true;
+            }
+
+            public IDbConnection Connection
+            {
+                get { return connection; }
+            }
+
+            public IsolationLevel IsolationLevel
+            {
+                get { return IsolationLevel.ReadCommitted; }
+            }
+
+            public void Dispose()
+            {
+            }
+        }
+
+        private sealed class StubParameter : IDbDataParameter
+        {
+            private DbType dbType;
+            private ParameterDirection direction = ParameterDirection.Input;
+            private String parameterName;
+            private String sourceColumn;
+            private DataRowVersion sourceVersion = DataRowVersion.Current;
+            private Object value;
+
+            public byte Precision
+            {
+                get { return 0; }
+                set { }
+            }
+
+            public byte Scale
+            {
+                get { return 0; }
+                set { }
+            }
+
+            public int Size
+            {
+                get { return 0; }
+                set { }
+            }
+
+            public DbType DbType
+            {
+                get { return dbType; }
+                set { dbType = value; }
+            }
+
+            public ParameterDirection Direction
+            {
+                get { return direction; }
+                set { direction = value; }
+            }
+
+            public bool IsNullable
+            {
+                get { return true; }
+            }
+
+            public String ParameterName
+            {
+                get { return parameterName; }
+                set { parameterName = value; }
+            }
+
+            public String SourceColumn
+            {
+                get { return sourceColumn; }
+                set { sourceColumn = value; }
+            }
+
+            public DataRowVersion SourceVersion
+            {
+                get { return sourceVersion; }
+                set { sourceVersion = value; }
+            }
+
+            public Object Value
+            {
+                get { return value; }
+                set { this.value = value; }
+            }
+        }
+
+        private sealed class StubParameters : ArrayList, IDataParameterCollection
+        {
+            public Object this[String parameterName]
+            {
+                get { return this[IndexOf(parameterName)]; }
+                set { this[IndexOf(parameterName)] = value; }
+            }
+
+            public bool Contains(String parameterName)
+            {
+                return IndexOf(parameterName) >= 0;
+            }
+
+            public int IndexOf(String parameterName)
+            {
+                for (int i = 0; i < Count; i++)
+                {
+                    if (((IDataParameter) this[i]).ParameterName == parameterName)
+                    {
+                        return i;
+                    }
+                }
+                return -1;
+            }
+
+            public void RemoveAt(String parameterName)
+            {
+                RemoveAt(IndexOf(parameterName));
+            }
+        }
+
+        #endregion
+    }
+
+}
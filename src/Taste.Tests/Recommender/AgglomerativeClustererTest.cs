@@ -0,0 +1,204 @@
+/*
+ * Copyright 2007 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+namespace Taste.Tests.Recommender
+{
+    using Taste.Common;
+    using Taste.Correlation;
+    using Taste.Recommender;
+	using Taste.Model;
+	using System;
+	using System.Collections.Generic;
+	using NUnit.Framework;
+
+    /**
+     * <p>Tests {@link AgglomerativeClusterer}.</p>
+     */
+    [TestFixture]
+    public class AgglomerativeClustererTest : RecommenderTestCase
+    {
+        [Test]
+	    public void TestLinkageMatchesRecomputation()
+	    {
+		    List<User> users = new List<User>(5);
+		    users.Add(GetUser("test1", 0.1, 0.2));
+		    users.Add(GetUser("test2", 0.2, 0.3, 0.3, 0.6));
+		    users.Add(GetUser("test3", 0.4, 0.4, 0.5, 0.9));
+		    users.Add(GetUser("test4", 0.1, 0.4, 0.5, 0.8, 0.9, 1.0));
+		    users.Add(GetUser("test5", 0.2, 0.3, 0.6, 0.7, 0.1, 0.2));
+		    DataModel dataModel = new GenericDataModel(users);
+		    UserCorrelation correlation = new PearsonCorrelation(dataModel);
+		    ClusterSimilarity linkage = new FarthestNeighborClusterSimilarity(correlation);
+		    IList<ICollection<User>> fast = new AgglomerativeClusterer(linkage, 1.0, 2).Cluster(users, 2);
+		    IList<ICollection<User>> slow =
+			    new AgglomerativeClusterer(new PlainClusterSimilarity(linkage), 1.0, 2).Cluster(users, 2);
+		    Assert.AreEqual(2, fast.Count);
+		    Assert.AreEqual(slow.Count, fast.Count);
+		    for (int i = 0; i < fast.Count; i++)
+		    {
+			    Assert.AreEqual(slow[i].Count, fast[i].Count);
+			    foreach (User user in slow[i])
+			    {
+				    Assert.IsTrue(fast[i].Contains(user));
+			    }
+		    }
+	    }
+
+        [Test]
+	    public void TestThreshold()
+	    {
+		    List<User> users = new List<User>(3);
+		    users.Add(GetUser("test1", 0.1, 0.2, 0.3));
+		    users.Add(GetUser("test2", 0.2, 0.3, 0.4));
+		    users.Add(GetUser("test3", 0.9, 0.2, 0.1));
+		    DataModel dataModel = new GenericDataModel(users);
+		    ClusterSimilarity similarity =
+			    new NearestNeighborClusterSimilarity(new PearsonCorrelation(dataModel));
+		    IList<ICollection<User>> clusters = new AgglomerativeClusterer(similarity).ClusterByThreshold(users, 0.5);
+		    Assert.AreEqual(2, clusters.Count);
+		    Assert.AreEqual(1, clusters[0].Count);
+		    Assert.AreEqual(2, clusters[1].Count);
+	    }
+
+        [Test]
+	    public void TestMatchesExhaustiveSearch()
+	    {
+		    Random random = new Random(17);
+		    List<User> users = new List<User>(40);
+		    for (int i = 0; i < 40; i++)
+		    {
+			    double[] values = new double[6];
+			    for (int j = 0; j < values.Length; j++)
+			    {
+				    values[j] = 1.0 + 4.0 * random.NextDouble();
+			    }
+			    users.Add(GetUser("test" + i, values));
+		    }
+		    DataModel dataModel = new GenericDataModel(users);
+		    ClusterSimilarity similarity = new NearestNeighborClusterSimilarity(new PearsonCorrelation(dataModel));
+		    AgglomerativeClusterer clusterer = new AgglomerativeClusterer(similarity, 1.0, 2);
+		    List<List<User>> expected = ExhaustiveCluster(users, similarity, 4);
+		    AssertSameClusters(expected, clusterer.Cluster(users, 4));
+		    // Above MaxUsers, the clusterer searches exhaustively instead of keeping a matrix
+		    clusterer.MaxUsers = 10;
+		    AssertSameClusters(expected, clusterer.Cluster(users, 4));
+	    }
+
+	    private static void AssertSameClusters(List<List<User>> expected, IList<ICollection<User>> clusters)
+	    {
+		    Assert.AreEqual(expected.Count, clusters.Count);
+		    for (int i = 0; i < expected.Count; i++)
+		    {
+			    Assert.AreEqual(expected[i].Count, clusters[i].Count);
+			    foreach (User user in expected[i])
+			    {
+				    Assert.IsTrue(clusters[i].Contains(user));
+			    }
+		    }
+	    }
+
+        [Test]
+	    public void TestTooManyUsers()
+	    {
+		    List<User> users = new List<User>(3);
+		    users.Add(GetUser("test1", 0.1, 0.2, 0.3));
+		    users.Add(GetUser("test2", 0.2, 0.3, 0.4));
+		    users.Add(GetUser("test3", 0.9, 0.2, 0.1));
+		    DataModel dataModel = new GenericDataModel(users);
+		    AgglomerativeClusterer clusterer =
+			    new AgglomerativeClusterer(new NearestNeighborClusterSimilarity(new PearsonCorrelation(dataModel)));
+		    Assert.AreEqual(AgglomerativeClusterer.DEFAULT_MAX_USERS, clusterer.MaxUsers);
+		    clusterer.MaxUsers = 2;
+		    Assert.AreEqual(1, clusterer.Cluster(users, 1).Count);
+		    clusterer.MaxUsers = 3;
+		    Assert.AreEqual(1, clusterer.Cluster(users, 1).Count);
+		    try
+		    {
+			    clusterer.MaxUsers = 0;
+			    Assert.Fail();
+		    }
+		    catch (ArgumentException)
+		    {
+			    // good
+		    }
+	    }
+
+        // Repeatedly merges the most similar pair, first by position on ties, appending the merged cluster; values
+        // are compared as floats, as the clusterer's matrix holds them
+        private static List<List<User>> ExhaustiveCluster(List<User> users, ClusterSimilarity similarity,
+                                                          int numClusters)
+        {
+            List<List<User>> clusters = new List<List<User>>(users.Count);
+            foreach (User user in users)
+            {
+                List<User> singleton = new List<User>(1);
+                singleton.Add(user);
+                clusters.Add(singleton);
+            }
+            while (clusters.Count > numClusters)
+            {
+                int bestI = -1;
+                int bestJ = -1;
+                float best = float.NaN;
+                for (int i = 0; i < clusters.Count; i++)
+                {
+                    for (int j = i + 1; j < clusters.Count; j++)
+                    {
+                        float value = (float) similarity.GetSimilarity(clusters[i], clusters[j]);
+                        if (!float.IsNaN(value) && (bestI < 0 || value > best))
+                        {
+                            bestI = i;
+                            bestJ = j;
+                            best = value;
+                        }
+                    }
+                }
+                if (bestI < 0)
+                {
+                    break;
+                }
+                List<User> merged = new List<User>(clusters[bestI]);
+                merged.AddRange(clusters[bestJ]);
+                clusters.RemoveAt(bestJ);
+                clusters.RemoveAt(bestI);
+                clusters.Add(merged);
+            }
+            return clusters;
+        }
+
+        // Hides LinkageClusterSimilarity so that merged rows are recomputed
+        private sealed class PlainClusterSimilarity : ClusterSimilarity
+        {
+            private readonly ClusterSimilarity delegateSimilarity;
+
+            internal PlainClusterSimilarity(ClusterSimilarity delegateSimilarity)
+            {
+                this.delegateSimilarity = delegateSimilarity;
+            }
+
+            public double GetSimilarity(ICollection<User> cluster1, ICollection<User> cluster2)
+            {
+                return delegateSimilarity.GetSimilarity(cluster1, cluster2);
+            }
+
+            public void Refresh()
+            {
+                delegateSimilarity.Refresh();
+            }
+        }
+
+    }
+}
@@ -0,0 +1,323 @@
+/*
+ * Copyright 2005 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+namespace Taste.Tests.Recommender
+{
+    using System;
+    using System.Collections.Generic;
+    using System.Data;
+    using System.IO;
+    using Taste.Common;
+    using Taste.Model;
+    using Taste.Recommender;
+    using Taste.Tests.Model;
+    using NUnit.Framework;
+
+
+    /**
+     * <p>Tests {@link taste.Recommender.BatchRecommender} and its sinks.</p>
+     */
+    [TestFixture]
+    public class BatchRecommenderTest : RecommenderTestCase
+    {
+
+        [Test]
+        public void TestOneThreadKeepsOrder()
+        {
+            RecordingSink sink = new RecordingSink();
+            BatchRecommender batch = new BatchRecommender(new ScriptedRecommender(), 1, 2, 3);
+            Assert.AreEqual(10, batch.Recommend(UserIDs(10), 2, sink));
+            Assert.AreEqual(10, sink.written.Count);
+            for (int i = 0; i < 10; i++)
+            {
+                AssertRecommendations("u" + i, sink.written[i]);
+            }
+            Assert.IsTrue(sink.flushes >= 4);
+        }
+
+        [Test]
+        public void TestManyThreadsWriteEachUserOnce()
+        {
+            RecordingSink sink = new RecordingSink();
+            BatchRecommender batch = new BatchRecommender(new ScriptedRecommender(), 4, 8, 5);
+            Assert.AreEqual(200, batch.Recommend(UserIDs(200), 2, sink));
+            Dictionary<Object, Pair<Object, IList<RecommendedItem>>> byUser =
+                new Dictionary<Object, Pair<Object, IList<RecommendedItem>>>();
+            foreach (Pair<Object, IList<RecommendedItem>> result in sink.written)
+            {
+                byUser.Add(result.First, result);
+                // Each user's list arrives whole and in the recommender's order
+                AssertRecommendations(result.First, result);
+            }
+            Assert.AreEqual(200, byUser.Count);
+        }
+
+        [Test]
+        public void TestRecommenderFailureSkipsUser()
+        {
+            RecordingSink sink = new RecordingSink();
+            BatchRecommender batch = new BatchRecommender(new ScriptedRecommender(), 2);
+            List<Object> userIDs = UserIDs(5);
+            userIDs.Insert(2, "bad");
+            Assert.AreEqual(5, batch.Recommend(userIDs, 2, sink));
+            Assert.AreEqual(5, sink.written.Count);
+        }
+
+        [Test]
+        public void TestSinkFailureAbortsBatch()
+        {
+            RecordingSink sink = new RecordingSink();
+            sink.failAfter = 7;
+            BatchRecommender batch = new BatchRecommender(new ScriptedRecommender(), 3, 4, 2);
+            try
+            {
+                batch.Recommend(UserIDs(1000), 2, sink);
+                Assert.Fail();
+            }
+            catch (TasteException te)
+            {
+                Assert.IsTrue(te.InnerException is IOException, te.ToString());
+            }
+            // The batch stops well before the end
+            Assert.IsTrue(sink.written.Count < 1000);
+        }
+
+        [Test]
+        public void TestUserIDFailureAbortsBatch()
+        {
+            BatchRecommender batch = new BatchRecommender(new ScriptedRecommender(), 2);
+            try
+            {
+                batch.Recommend(FailingUserIDs(), 2, new RecordingSink());
+                Assert.Fail();
+            }
+            catch (TasteException te)
+            {
+                Assert.IsTrue(te.InnerException is InvalidOperationException, te.ToString());
+            }
+        }
+
+        [Test]
+        public void TestFileSink()
+        {
+            StringWriter writer = new StringWriter();
+            FileRecommendationSink sink = new FileRecommendationSink(writer);
+            BatchRecommender batch = new BatchRecommender(new ScriptedRecommender(), 1);
+            batch.Recommend(UserIDs(2), 2, sink);
+            Assert.AreEqual("u0,u0-a,2\nu0,u0-b,1.5\nu1,u1-a,2\nu1,u1-b,1.5\n",
+                            writer.ToString().Replace("\r\n", "\n"));
+        }
+
+        [Test]
+        public void TestADOSink()
+        {
+            StubConnection connection = new StubConnection();
+            using (ADORecommendationSink sink = new ADORecommendationSink(connection))
+            {
+                Assert.AreEqual(ConnectionState.Open, connection.State);
+                BatchRecommender batch = new BatchRecommender(new ScriptedRecommender(), 1, 1, 2);
+                Assert.AreEqual(3, batch.Recommend(UserIDs(3), 2, sink));
+            }
+            List<StubConnection.Execution> inserts = connection.ExecutedMatching("INSERT INTO taste_recommendations");
+            Assert.AreEqual(6, inserts.Count);
+            Assert.AreEqual("u0", inserts[0]["@userID"]);
+            Assert.AreEqual("u0-a", inserts[0]["@itemID"]);
+            Assert.AreEqual(1, inserts[0]["@rank"]);
+            Assert.AreEqual(2.0, inserts[0]["@value"]);
+            Assert.AreEqual("u0-b", inserts[1]["@itemID"]);
+            Assert.AreEqual(2, inserts[1]["@rank"]);
+            // One transaction per flush, not per row
+            Assert.AreSame(inserts[0].Transaction, inserts[3].Transaction);
+            Assert.AreNotSame(inserts[0].Transaction, inserts[4].Transaction);
+            Assert.AreEqual(2, connection.Commits);
+            Assert.AreEqual(0, connection.Rollbacks);
+        }
+
+        [Test]
+        public void TestADOSinkRollsBackOnFailure()
+        {
+            StubConnection connection = new StubConnection();
+            connection.FailOn = delegate(StubConnection.Execution execution)
+            {
+                return "u1".Equals(execution["@userID"]);
+            };
+            using (ADORecommendationSink sink = new ADORecommendationSink(connection))
+            {
+                BatchRecommender batch = new BatchRecommender(new ScriptedRecommender(), 1, 1, 2);
+                try
+                {
+                    batch.Recommend(UserIDs(3), 2, sink);
+                    Assert.Fail();
+                }
+                catch (TasteException)
+                {
+                    // good
+                }
+            }
+            Assert.AreEqual(0, connection.Commits);
+            Assert.AreEqual(1, connection.Rollbacks);
+        }
+
+        [Test]
+        public void TestQueueCloseDrains()
+        {
+            BlockingQueue<int> queue = new BlockingQueue<int>(3);
+            queue.Enqueue(1);
+            queue.Enqueue(2);
+            queue.Close();
+            Assert.IsTrue(queue.IsClosed);
+            try
+            {
+                queue.Enqueue(3);
+                Assert.Fail();
+            }
+            catch (IllegalStateException)
+            {
+                // good
+            }
+            int element;
+            Assert.IsTrue(queue.TryDequeue(out element));
+            Assert.AreEqual(1, element);
+            Assert.IsTrue(queue.TryDequeue(out element));
+            Assert.AreEqual(2, element);
+            Assert.IsFalse(queue.TryDequeue(out element));
+        }
+
+        [Test]
+        public void TestQueueAbortReleasesBlockedProducer()
+        {
+            BlockingQueue<int> queue = new BlockingQueue<int>(1);
+            queue.Enqueue(1);
+            Exception producerFailure = null;
+            System.Threading.Thread producer = new System.Threading.Thread(delegate()
+            {
+                try
+                {
+                    // Blocks; the queue is full
+                    queue.Enqueue(2);
+                }
+                catch (Exception e)
+                {
+                    producerFailure = e;
+                }
+            });
+            producer.Start();
+            System.Threading.Thread.Sleep(50);
+            Assert.IsTrue(producer.IsAlive);
+            queue.Abort();
+            Assert.IsTrue(producer.Join(5000));
+            Assert.IsTrue(producerFailure is IllegalStateException);
+            Assert.AreEqual(0, queue.Count);
+            int element;
+            Assert.IsFalse(queue.TryDequeue(out element));
+        }
+
+        private static void AssertRecommendations(Object userID, Pair<Object, IList<RecommendedItem>> result)
+        {
+            Assert.AreEqual(userID, result.First);
+            Assert.AreEqual(2, result.Second.Count);
+            Assert.AreEqual(userID + "-a", result.Second[0].Item.ID);
+            Assert.AreEqual(userID + "-b", result.Second[1].Item.ID);
+        }
+
+        private static List<Object> UserIDs(int count)
+        {
+            List<Object> userIDs = new List<Object>(count);
+            for (int i = 0; i < count; i++)
+            {
+                userIDs.Add("u" + i);
+            }
+            return userIDs;
+        }
+
+        private static IEnumerable<Object> FailingUserIDs()
+        {
+            yield return "u0";
+            throw new InvalidOperationException("user ID source failed");
+        }
+
+        /// <summary>
+        /// Recommends two items named after the user, and fails for user "bad".
+        /// </summary>
+        private sealed class ScriptedRecommender : Recommender
+        {
+            public IList<RecommendedItem> Recommend(Object userID, int howMany)
+            {
+                if ("bad".Equals(userID))
+                {
+                    throw new TasteException("no recommendations for " + userID);
+                }
+                List<RecommendedItem> result = new List<RecommendedItem>(2);
+                result.Add(new GenericRecommendedItem(new GenericItem<String>(userID + "-a"), 2.0));
+                result.Add(new GenericRecommendedItem(new GenericItem<String>(userID + "-b"), 1.5));
+                return result;
+            }
+
+            public IList<RecommendedItem> Recommend(Object userID, int howMany, Rescorer<Item> rescorer)
+            {
+                return Recommend(userID, howMany);
+            }
+
+            public double EstimatePreference(Object userID, Object itemID)
+            {
+                return Double.NaN;
+            }
+
+            public void SetPreference(Object userID, Object itemID, double value)
+            {
+            }
+
+            public void RemovePreference(Object userID, Object itemID)
+            {
+            }
+
+            public DataModel DataModel
+            {
+                get { return GetDataModel(); }
+            }
+
+            public void Refresh()
+            {
+            }
+        }
+
+        /// <summary>
+        /// Records what is written, and throws from Write once <code>failAfter</code> users were written.
+        /// </summary>
+        private sealed class RecordingSink : RecommendationSink
+        {
+            internal readonly List<Pair<Object, IList<RecommendedItem>>> written =
+                new List<Pair<Object, IList<RecommendedItem>>>();
+            internal int flushes;
+            internal int failAfter = Int32.MaxValue;
+
+            public void Write(Object userID, IList<RecommendedItem> recommendations)
+            {
+                if (written.Count >= failAfter)
+                {
+                    throw new IOException("sink failed");
+                }
+                written.Add(new Pair<Object, IList<RecommendedItem>>(userID, recommendations));
+            }
+
+            public void Flush()
+            {
+                flushes++;
+            }
+        }
+
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2007 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+namespace Taste.Tests.Recommender.Factorization
+{
+    using System;
+    using System.Collections.Generic;
+    using System.IO;
+    using Taste.Tests;
+    using Taste.Tests.Recommender;
+    using Taste.Eval;
+    using Taste.Model;
+    using Taste.Recommender;
+    using Taste.Recommender.Factorization;
+    using NUnit.Framework;
+
+
+    /**
+     * <p>Tests {@link taste.Recommender.Factorization.FactorizationRecommender},
+     * {@link taste.Recommender.Factorization.AlternatingLeastSquares} and
+     * {@link taste.Recommender.Factorization.FactorModel}.</p>
+     */
+    [TestFixture]
+    public class FactorizationRecommenderTest : RecommenderTestCase
+    {
+
+        [Test]
+        public void TestFitsPreferences()
+        {
+            DataModel dataModel = GetDataModel();
+            FactorModel model = new AlternatingLeastSquares(3, 0.001, 20, false, 0.0, 1).Train(dataModel);
+            Assert.AreEqual(4, model.UserIndex.Count);
+            Assert.AreEqual(3, model.ItemIndex.Count);
+            foreach (User user in dataModel.GetUsers())
+            {
+                foreach (Preference pref in user.GetPreferencesAsArray())
+                {
+                    Assert.AreEqual(pref.Value, model.Estimate(user.ID, pref.Item.ID), 0.05);
+                }
+            }
+            Assert.IsTrue(Double.IsNaN(model.Estimate("unknown", "0")));
+        }
+
+        [Test]
+        public void TestThreadsAgree()
+        {
+            DataModel dataModel = GetDataModel();
+            FactorModel one = new AlternatingLeastSquares(2, 0.1, 5, false, 0.0, 1).Train(dataModel);
+            FactorModel three = new AlternatingLeastSquares(2, 0.1, 5, false, 0.0, 3).Train(dataModel);
+            foreach (User user in dataModel.GetUsers())
+            {
+                foreach (Item item in dataModel.GetItems())
+                {
+                    Assert.AreEqual(one.Estimate(user.ID, item.ID), three.Estimate(user.ID, item.ID), EPSILON);
+                }
+            }
+        }
+
+        [Test]
+        public void TestRecommender()
+        {
+            DataModel dataModel = GetDataModel();
+            FactorizationRecommender recommender =
+                new FactorizationRecommender(dataModel, new AlternatingLeastSquares(2, 0.1, 10, false, 0.0, 1));
+            IList<RecommendedItem> recommended = recommender.Recommend("test1", 5);
+            Assert.AreEqual(1, recommended.Count);
+            Assert.AreEqual(new GenericItem<String>("2"), recommended[0].Item);
+            Assert.AreEqual(recommender.EstimatePreference("test1", "2"), recommended[0].Value, EPSILON);
+            Assert.AreEqual(0.3, recommender.EstimatePreference("test1", "1"), EPSILON);
+        }
+
+        [Test]
+        public void TestImplicitFeedback()
+        {
+            DataModel dataModel = GetDataModel();
+            FactorizationRecommender recommender =
+                new FactorizationRecommender(dataModel, new AlternatingLeastSquares(2, 0.1, 10, true, 40.0, 2));
+            IList<RecommendedItem> recommended = recommender.Recommend("test1", 5);
+            Assert.AreEqual(1, recommended.Count);
+            Assert.AreEqual(new GenericItem<String>("2"), recommended[0].Item);
+            Assert.IsFalse(Double.IsNaN(recommended[0].Value));
+        }
+
+        [Test]
+        public void TestSaveLoad()
+        {
+            DataModel dataModel = GetDataModel();
+            FactorModel model = new AlternatingLeastSquares(2, 0.1, 5, false, 0.0, 1).Train(dataModel);
+            MemoryStream stream = new MemoryStream();
+            model.Save(stream);
+            stream.Position = 0;
+            FactorModel loaded = FactorModel.Load(stream);
+            Assert.AreEqual(model.NumFeatures, loaded.NumFeatures);
+            foreach (User user in dataModel.GetUsers())
+            {
+                foreach (Item item in dataModel.GetItems())
+                {
+                    Assert.AreEqual(model.Estimate(user.ID, item.ID), loaded.Estimate(user.ID, item.ID));
+                }
+            }
+
+            try
+            {
+                FactorModel.Load(new MemoryStream(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 }));
+                Assert.Fail();
+            }
+            catch (Taste.Common.TasteException)
+            {
+                // good
+            }
+        }
+
+        [Test]
+        public void TestFoldIn()
+        {
+            DataModel dataModel = GetDataModel();
+            AlternatingLeastSquares trainer = new AlternatingLeastSquares(2, 0.1, 10, false, 0.0, 1);
+            FactorizationRecommender recommender = new FactorizationRecommender(dataModel, trainer);
+            FactorModel model = recommender.Model;
+
+            // A newcomer with test4's tastes is estimated like test4
+            float[] newcomer = trainer.FoldIn(model, GetUser("new", 0.7, 0.3, 0.8).GetPreferencesAsArray());
+            float[] item = model.GetItemVector("2");
+            double estimate = 0.0;
+            for (int i = 0; i < newcomer.Length; i++)
+            {
+                estimate += newcomer[i] * item[i];
+            }
+            Assert.AreEqual(model.Estimate("test4", "2"), estimate, 0.05);
+
+            double before = recommender.EstimatePreference("test1", "2");
+            recommender.FoldIn(GetUser("test1", 0.7, 0.3));
+            Assert.IsTrue(recommender.EstimatePreference("test1", "2") > before);
+            recommender.Refresh();
+            Assert.AreEqual(before, recommender.EstimatePreference("test1", "2"), EPSILON);
+        }
+
+        [Test]
+        public void TestEvaluate()
+        {
+            List<User> users = new List<User>();
+            for (int u = 0; u < 12; u++)
+            {
+                double[] values = new double[6];
+                for (int i = 0; i < values.Length; i++)
+                {
+                    // Rank-one tastes plus a little noise
+                    values[i] = 1.0 + (u % 4) * (1.0 + i % 3) * 0.25 + ((u * 7 + i * 3) % 5) * 0.01;
+                }
+                users.Add(GetUser("user" + u, values));
+            }
+            RecommenderEvaluator evaluator = new RMSRecommenderEvaluator();
+            double eval = evaluator.Evaluate(new FactorizationRecommenderBuilder(), GetDataModel(users.ToArray()),
+                                             0.8, 1.0);
+            Assert.IsFalse(Double.IsNaN(eval));
+            Assert.IsTrue(eval < 1.0);
+        }
+
+        private sealed class FactorizationRecommenderBuilder : RecommenderBuilder
+        {
+            public Recommender BuildRecommender(DataModel dataModel)
+            {
+                return new FactorizationRecommender(dataModel, new AlternatingLeastSquares(2, 0.05, 10, false, 0.0, 2));
+            }
+        }
+
+    }
+
+}
@@ -69,6 +69,27 @@ namespace Taste.Tests.Recommender
             }
         }
 
+        [Test]
+        public void TestRecommendationsMatchEstimates()
+        {
+            List<User> users = new List<User>(3);
+            users.Add(GetUser("test1", 0.1, 0.2));
+            users.Add(GetUser("test2", 0.2, 0.3, 0.3, 0.6));
+            users.Add(GetUser("test3", 0.4, 0.4, 0.5, 0.9));
+            users.Add(GetUser("test4", 0.1, 0.4, 0.5, 0.8, 0.9, 1.0));
+            DataModel dataModel = new GenericDataModel(users);
+            UserCorrelation correlation = new PearsonCorrelation(dataModel);
+            UserNeighborhood neighborhood = new NearestNUserNeighborhood(3, correlation, dataModel);
+            Recommender recommender = new GenericUserBasedRecommender(dataModel, neighborhood, correlation);
+            IList<RecommendedItem> recommended = recommender.Recommend("test1", 10);
+            Assert.AreEqual(4, recommended.Count);
+            foreach (RecommendedItem item in recommended)
+            {
+                Assert.IsNull(dataModel.GetUser("test1").GetPreferenceFor(item.Item.ID));
+                Assert.AreEqual(recommender.EstimatePreference("test1", item.Item.ID), item.Value, EPSILON);
+            }
+        }
+
         [Test]
         public void TestRescorer()
         {
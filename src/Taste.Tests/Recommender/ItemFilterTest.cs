@@ -0,0 +1,129 @@
+/*
+ * Copyright 2007 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+namespace Taste.Tests.Recommender
+{
+    using System;
+    using System.Collections.Generic;
+    using Taste.Model;
+    using Taste.Correlation;
+    using Taste.Neighborhood;
+    using Taste.Recommender;
+    using NUnit.Framework;
+
+
+    /**
+     * <p>Tests {@link taste.Recommender.ItemFilter} and {@link taste.Recommender.FilteringRescorer}.</p>
+     */
+    [TestFixture]
+    public class ItemFilterTest : RecommenderTestCase
+    {
+
+        [Test]
+        public void TestCombine()
+        {
+            IDIndex index = new IDIndex(Ids(70));
+            ItemFilter low = ItemFilter.Allowing(index, Ids(10));
+            ItemFilter even = ItemFilter.Allowing(index, Evens(70));
+            Assert.AreEqual(10, low.Count);
+            Assert.AreEqual(35, even.Count);
+            Assert.AreEqual(5, low.And(even).Count);
+            Assert.AreEqual(40, low.Or(even).Count);
+            Assert.AreEqual(60, low.Not().Count);
+            Assert.IsTrue(low.And(even).IsAllowed((Object) "4"));
+            Assert.IsFalse(low.And(even).IsAllowed((Object) "5"));
+            Assert.IsTrue(even.IsAllowed((Object) "68"));
+            Assert.IsFalse(even.IsAllowed((Object) "69"));
+            Assert.AreEqual(70, ItemFilter.All(index).Count);
+            Assert.AreEqual(0, ItemFilter.None(index).Count);
+        }
+
+        [Test]
+        public void TestUnindexed()
+        {
+            IDIndex index = new IDIndex(Ids(3));
+            ItemFilter allowing = ItemFilter.Allowing(index, new Object[] { "0", "unknown" });
+            ItemFilter excluding = ItemFilter.Excluding(index, new Object[] { "0" });
+            Assert.AreEqual(1, allowing.Count);
+            Assert.IsFalse(allowing.IsAllowed((Object) "new"));
+            Assert.IsTrue(excluding.IsAllowed((Object) "new"));
+            Assert.IsFalse(excluding.IsAllowed((Object) "0"));
+            Assert.IsFalse(allowing.And(excluding).IsAllowed((Object) "new"));
+            Assert.IsTrue(allowing.Or(excluding).IsAllowed((Object) "new"));
+            try
+            {
+                allowing.And(ItemFilter.All(new IDIndex(Ids(3))));
+                Assert.Fail();
+            }
+            catch (ArgumentException)
+            {
+                // good
+            }
+        }
+
+        [Test]
+        public void TestCompile()
+        {
+            DataModel dataModel = GetDataModel();
+            IDIndex index = IDIndex.ForItems(dataModel);
+            ItemFilter filter = ItemFilter.Compile(index, dataModel, new ReversingRescorer<Item>());
+            Assert.AreEqual(dataModel.GetNumItems(), filter.Count);
+            Assert.IsFalse(filter.IsAllowed((Object) "unknown"));
+        }
+
+        [Test]
+        public void TestRecommendersApplyFilter()
+        {
+            List<User> users = new List<User>(3);
+            users.Add(GetUser("test1", 0.1, 0.2));
+            users.Add(GetUser("test2", 0.2, 0.3, 0.3, 0.6));
+            users.Add(GetUser("test3", 0.4, 0.4, 0.5, 0.9));
+            DataModel dataModel = new GenericDataModel(users);
+            UserCorrelation correlation = new PearsonCorrelation(dataModel);
+            UserNeighborhood neighborhood = new NearestNUserNeighborhood(1, correlation, dataModel);
+            ItemFilter filter = ItemFilter.Excluding(IDIndex.ForItems(dataModel), new Object[] { "2" });
+            FilteringRescorer rescorer = new FilteringRescorer(filter);
+
+            Recommender userBased = new GenericUserBasedRecommender(dataModel, neighborhood, correlation);
+            IList<RecommendedItem> recommended = userBased.Recommend("test1", 2, rescorer);
+            Assert.AreEqual(1, recommended.Count);
+            Assert.AreEqual("3", recommended[0].Item.ID);
+
+            Recommender itemAverage = new ItemAverageRecommender(dataModel);
+            recommended = itemAverage.Recommend("test1", 2, rescorer);
+            Assert.AreEqual(1, recommended.Count);
+            Assert.AreEqual("3", recommended[0].Item.ID);
+        }
+
+        private static IEnumerable<Object> Ids(int count)
+        {
+            for (int i = 0; i < count; i++)
+            {
+                yield return i.ToString();
+            }
+        }
+
+        private static IEnumerable<Object> Evens(int count)
+        {
+            for (int i = 0; i < count; i += 2)
+            {
+                yield return i.ToString();
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2007 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+namespace Taste.Tests.Recommender.slopeone
+{
+    using System;
+    using System.IO;
+    using System.Threading;
+    using Taste.Tests.Recommender;
+    using Taste.Common;
+    using Taste.Model;
+    using Taste.Model.file;
+    using Taste.Recommender.SlopeOne;
+    using NUnit.Framework;
+
+
+    /**
+     * <p>Tests that {@link taste.Recommender.SlopeOne.MemoryDiffStorage} and
+     * {@link taste.Recommender.SlopeOne.IndexedDiffStorage} follow the preference changes of a
+     * {@link taste.Model.file.FileDataModel} reload, and of concurrent writes to a
+     * {@link taste.Model.file.MutableFileDataModel}, to the same diffs a rebuild computes.</p>
+     */
+    [TestFixture]
+    public class DiffUpdatesTest : RecommenderTestCase
+    {
+        private String dataFile;
+        private FileDataModel model;
+
+        [SetUp]
+        public void CreateModel()
+        {
+            dataFile = Path.GetTempFileName();
+            File.WriteAllText(dataFile,
+                              "u1,1,0.1\nu1,2,0.3\nu1,3,0.6\n" +
+                              "u2,1,0.2\nu2,2,0.5\n" +
+                              "u3,1,0.4\nu3,2,0.9\nu3,3,0.8\nu3,4,0.1\n" +
+                              "u4,3,0.7\n");
+            model = new FileDataModel(dataFile, false);
+        }
+
+        [TearDown]
+        public void DeleteModel()
+        {
+            ((IDisposable) model).Dispose();
+            File.Delete(dataFile);
+        }
+
+        [Test]
+        public void TestMemoryDiffStorage()
+        {
+            MemoryDiffStorage storage = new MemoryDiffStorage(model, true, false, long.MaxValue);
+            Assert.IsTrue(storage.FollowsDataModel);
+            ApplyChanges();
+            AssertSameDiffs(new MemoryDiffStorage(model, true, false, long.MaxValue), storage);
+        }
+
+        [Test]
+        public void TestIndexedDiffStorage()
+        {
+            IndexedDiffStorage storage = new IndexedDiffStorage(model, true, 1);
+            Assert.IsTrue(storage.FollowsDataModel);
+            ApplyChanges();
+            AssertSameDiffs(new IndexedDiffStorage(model, true, 1), storage);
+        }
+
+        [Test]
+        public void TestDispose()
+        {
+            MemoryDiffStorage memoryStorage = new MemoryDiffStorage(model, true, false, long.MaxValue);
+            IndexedDiffStorage indexedStorage = new IndexedDiffStorage(model, true, 1);
+            Assert.IsTrue(model.HasPreferenceChangeListener(memoryStorage));
+            Assert.IsTrue(model.HasPreferenceChangeListener(indexedStorage));
+            memoryStorage.Dispose();
+            indexedStorage.Dispose();
+            Assert.IsFalse(model.HasPreferenceChangeListener(memoryStorage));
+            Assert.IsFalse(model.HasPreferenceChangeListener(indexedStorage));
+            Assert.IsFalse(memoryStorage.FollowsDataModel);
+            Assert.IsFalse(indexedStorage.FollowsDataModel);
+            // No longer following, so a refresh rebuilds them
+            ApplyChanges();
+            memoryStorage.Refresh();
+            indexedStorage.Refresh();
+            AssertSameDiffs(new MemoryDiffStorage(model, true, false, long.MaxValue), memoryStorage);
+            AssertSameDiffs(new IndexedDiffStorage(model, true, 1), indexedStorage);
+        }
+
+        [Test]
+        public void TestConcurrentWritesForOneUser()
+        {
+            String mutableFile = Path.GetTempFileName();
+            File.Copy(dataFile, mutableFile, true);
+            try
+            {
+                using (MutableFileDataModel mutableModel = new MutableFileDataModel(mutableFile))
+                {
+                    MemoryDiffStorage memoryStorage = new MemoryDiffStorage(mutableModel, true, false, long.MaxValue);
+                    IndexedDiffStorage indexedStorage = new IndexedDiffStorage(mutableModel, true, 1);
+                    // Each thread writes its own item for the same users, so every change meets the others
+                    Thread[] threads = new Thread[4];
+                    for (int t = 0; t < threads.Length; t++)
+                    {
+                        String itemID = (t + 1).ToString();
+                        threads[t] = new Thread(delegate()
+                        {
+                            for (int i = 0; i < 200; i++)
+                            {
+                                String userID = "u" + (i % 3 + 1);
+                                // The last writes are all sets, so no item ends up without preferences
+                                if (i % 5 == 4 && i < 190)
+                                {
+                                    mutableModel.RemovePreference(userID, itemID);
+                                }
+                                else
+                                {
+                                    mutableModel.SetPreference(userID, itemID, (i % 10) / 10.0);
+                                }
+                            }
+                        });
+                        threads[t].Start();
+                    }
+                    foreach (Thread thread in threads)
+                    {
+                        thread.Join();
+                    }
+                    AssertSameDiffs(mutableModel, new MemoryDiffStorage(mutableModel, true, false, long.MaxValue),
+                                    memoryStorage);
+                    AssertSameDiffs(mutableModel, new IndexedDiffStorage(mutableModel, true, 1), indexedStorage);
+                }
+            }
+            finally
+            {
+                File.Delete(mutableFile);
+                File.Delete(mutableFile + ".log");
+            }
+        }
+
+        private void ApplyChanges()
+        {
+            // Changes u1/1, adds u2/4 and removes u2/2, removes u3/2, removes u4 with its only preference,
+            // and adds u5
+            File.WriteAllText(dataFile,
+                              "u1,1,0.9\nu1,2,0.3\nu1,3,0.6\n" +
+                              "u2,1,0.2\nu2,4,0.3\n" +
+                              "u3,1,0.4\nu3,3,0.8\nu3,4,0.1\n" +
+                              "u5,2,0.5\nu5,3,0.2\n");
+            model.Refresh();
+        }
+
+        private void AssertSameDiffs(DiffStorage expected, DiffStorage actual)
+        {
+            AssertSameDiffs(model, expected, actual);
+        }
+
+        private static void AssertSameDiffs(DataModel dataModel, DiffStorage expected, DiffStorage actual)
+        {
+            foreach (Item item1 in dataModel.GetItems())
+            {
+                AssertSameAverage(expected.GetAverageItemPref(item1.ID), actual.GetAverageItemPref(item1.ID));
+                foreach (Item item2 in dataModel.GetItems())
+                {
+                    AssertSameAverage(expected.GetDiff(item1.ID, item2.ID), actual.GetDiff(item1.ID, item2.ID));
+                }
+            }
+        }
+
+        private static void AssertSameAverage(RunningAverage expected, RunningAverage actual)
+        {
+            if (expected == null)
+            {
+                Assert.IsNull(actual);
+            }
+            else
+            {
+                Assert.IsNotNull(actual);
+                Assert.AreEqual(expected.Count, actual.Count);
+                Assert.AreEqual(expected.Average, actual.Average, EPSILON);
+            }
+        }
+
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2007 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+namespace Taste.Tests.Recommender.slopeone
+{
+    using System;
+    using System.IO;
+    using Taste.Tests.Recommender;
+    using Taste.Common;
+    using Taste.Model;
+    using Taste.Recommender;
+    using Taste.Recommender.SlopeOne;
+    using NUnit.Framework;
+
+
+    /**
+     * <p>Tests {@link taste.Recommender.SlopeOne.IndexedDiffStorage}.</p>
+     */
+    [TestFixture]
+    public class IndexedDiffStorageTest : RecommenderTestCase
+    {
+
+        [Test]
+        public void TestSameDiffsAsMemoryDiffStorage()
+        {
+            DataModel dataModel = GetDataModel();
+            DiffStorage memory = new MemoryDiffStorage(dataModel, true, false, long.MaxValue);
+            DiffStorage indexed = new IndexedDiffStorage(dataModel, true, 2);
+            foreach (Item item1 in dataModel.GetItems())
+            {
+                foreach (Item item2 in dataModel.GetItems())
+                {
+                    RunningAverage expected = memory.GetDiff(item1.ID, item2.ID);
+                    RunningAverage actual = indexed.GetDiff(item1.ID, item2.ID);
+                    if (expected == null)
+                    {
+                        Assert.IsNull(actual);
+                    }
+                    else
+                    {
+                        Assert.AreEqual(expected.Count, actual.Count);
+                        Assert.AreEqual(expected.Average, actual.Average, EPSILON);
+                    }
+                }
+            }
+        }
+
+        [Test]
+        public void TestItemIndexer()
+        {
+            DataModel dataModel = GetDataModel();
+            DiffStorage modelOrder = new IndexedDiffStorage(dataModel, true, 2);
+            DiffStorage coRatingOrder = new IndexedDiffStorage(dataModel, true, 2, IDOrdering.ItemsByCoRating);
+            foreach (Item item1 in dataModel.GetItems())
+            {
+                Assert.AreEqual(modelOrder.GetAverageItemPref(item1.ID).Average,
+                                coRatingOrder.GetAverageItemPref(item1.ID).Average, EPSILON);
+                foreach (Item item2 in dataModel.GetItems())
+                {
+                    RunningAverage expected = modelOrder.GetDiff(item1.ID, item2.ID);
+                    RunningAverage actual = coRatingOrder.GetDiff(item1.ID, item2.ID);
+                    if (expected == null)
+                    {
+                        Assert.IsNull(actual);
+                    }
+                    else
+                    {
+                        Assert.AreEqual(expected.Count, actual.Count);
+                        Assert.AreEqual(expected.Average, actual.Average, EPSILON);
+                    }
+                }
+            }
+        }
+
+        [Test]
+        public void TestEstimatePref()
+        {
+            DataModel dataModel = GetDataModel();
+            Recommender recommender =
+                new SlopeOneRecommender(dataModel, true, true, new IndexedDiffStorage(dataModel, true));
+            Assert.AreEqual(0.34803885284992736, recommender.EstimatePreference("test1", "2"), EPSILON);
+        }
+
+        [Test]
+        public void TestSaveAndLoad()
+        {
+            DataModel dataModel = GetDataModel();
+            IndexedDiffStorage original = new IndexedDiffStorage(dataModel, true);
+            String file = Path.GetTempFileName();
+            try
+            {
+                original.Save(file);
+                IndexedDiffStorage loaded = new IndexedDiffStorage(dataModel, true, file);
+                RunningAverage expected = original.GetDiff("0", "2");
+                RunningAverage actual = loaded.GetDiff("0", "2");
+                Assert.AreEqual(expected.Count, actual.Count);
+                Assert.AreEqual(expected.Average, actual.Average, EPSILON);
+                Assert.AreEqual(((RunningAverageAndStdDev) expected).StandardDeviation,
+                                ((RunningAverageAndStdDev) actual).StandardDeviation,
+                                EPSILON);
+            }
+            finally
+            {
+                File.Delete(file);
+            }
+        }
+
+    }
+}
@@ -56,5 +56,22 @@ namespace Taste.Tests.Transforms
             // Make sure this doesn't throw an exception
             iuf.Refresh();
         }
+
+        [Test]
+        public void TestFollowsStatistics()
+        {
+            List<User> users = new List<User>(2);
+            users.Add(GetUser("test1", 0.1));
+            users.Add(GetUser("test2", 0.2, 0.3));
+            GenericDataModel dataModel = new GenericDataModel(users);
+            DataModelStatistics statistics = new DataModelStatistics(dataModel);
+            InverseUserFrequency iuf = new InverseUserFrequency(statistics, 10.0);
+            Preference pref = dataModel.GetUser("test2").GetPreferenceFor("1");
+            Assert.AreEqual(0.3 * Math.Log(2.0) / Math.Log(10.0), iuf.GetTransformedValue(pref), EPSILON);
+            statistics.Record(PreferenceChange.Added("test3", "1", 0.5));
+            Assert.AreEqual(0.3 * Math.Log(1.5) / Math.Log(10.0), iuf.GetTransformedValue(pref), EPSILON);
+            iuf.LogBase = 2.0;
+            Assert.AreEqual(0.3 * Math.Log(1.5) / Math.Log(2.0), iuf.GetTransformedValue(pref), EPSILON);
+        }
     }
 }
\ No newline at end of file
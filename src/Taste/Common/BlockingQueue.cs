@@ -0,0 +1,138 @@
+/*
+ * Copyright 2005 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+namespace Taste.Common
+{
+    using System;
+    using System.Collections.Generic;
+    using System.Threading;
+
+
+    /// <summary>
+    /// <p>A simple bounded producer/consumer queue. <see cref="Enqueue(T)"/> blocks while the queue is full and
+    /// <see cref="TryDequeue(out T)"/> blocks while it is empty. Once the producer calls <see cref="Close()"/>,
+    /// consumers drain what remains and then see <code>false</code> from <see cref="TryDequeue(out T)"/>.</p>
+    /// </summary>
+    public sealed class BlockingQueue<T>
+    {
+        private readonly Queue<T> queue;
+        private readonly int capacity;
+        private bool closed;
+
+        public BlockingQueue(int capacity)
+        {
+            if (capacity < 1)
+            {
+                throw new ArgumentException("capacity must be at least 1");
+            }
+            this.capacity = capacity;
+            this.queue = new Queue<T>(capacity);
+        }
+
+        /// <summary>
+        /// Adds an element, waiting for space if the queue is full.
+        /// </summary>
+        /// <exception cref="IllegalStateException">if the queue has been closed</exception>
+        public void Enqueue(T element)
+        {
+            lock (queue)
+            {
+                while (queue.Count >= capacity && !closed)
+                {
+                    Monitor.Wait(queue);
+                }
+                if (closed)
+                {
+                    throw new IllegalStateException("Queue is closed");
+                }
+                queue.Enqueue(element);
+                Monitor.PulseAll(queue);
+            }
+        }
+
+        /// <summary>
+        /// Removes the next element, waiting for one if the queue is empty.
+        /// </summary>
+        /// <returns><code>false</code> if the queue is closed and empty</returns>
+        public bool TryDequeue(out T element)
+        {
+            lock (queue)
+            {
+                while (queue.Count == 0 && !closed)
+                {
+                    Monitor.Wait(queue);
+                }
+                if (queue.Count == 0)
+                {
+                    element = default(T);
+                    return false;
+                }
+                element = queue.Dequeue();
+                Monitor.PulseAll(queue);
+                return true;
+            }
+        }
+
+        /// <summary>
+        /// Signals that no more elements will be added. Blocked producers fail; consumers drain the remaining
+        /// elements.
+        /// </summary>
+        public void Close()
+        {
+            lock (queue)
+            {
+                closed = true;
+                Monitor.PulseAll(queue);
+            }
+        }
+
+        /// <summary>
+        /// Closes the queue and discards anything left in it.
+        /// </summary>
+        public void Abort()
+        {
+            lock (queue)
+            {
+                closed = true;
+                queue.Clear();
+                Monitor.PulseAll(queue);
+            }
+        }
+
+        public bool IsClosed
+        {
+            get
+            {
+                lock (queue)
+                {
+                    return closed;
+                }
+            }
+        }
+
+        public int Count
+        {
+            get
+            {
+                lock (queue)
+                {
+                    return queue.Count;
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,729 @@
+/*
+ * Copyright 2005 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+namespace Taste.Common
+{
+    using System;
+    using System.Collections.Generic;
+    using System.Threading;
+    using log4net;
+
+
+    /// <summary>
+    /// <p>Implementations assign a "weight" to a cached value, which is used by
+    /// <see cref="taste.Common.ConcurrentCache">ConcurrentCache</see> to decide when to evict entries.</p>
+    /// </summary>
+    public interface CacheWeigher<K, V>
+    {
+        /// <param name="key">cache key</param>
+        /// <param name="value">cached value</param>
+        /// <returns>weight of the entry; must be at least 1</returns>
+        long Weigh(K key, V value);
+    }
+
+
+    /// <summary>
+    /// <p>A thread-safe alternative to <see cref="taste.Common.SoftCache">SoftCache</see>. Like that class, values are
+    /// never "put" into the cache; they are loaded on demand by a <see cref="taste.Common.SoftCacheRetriever">SoftCacheRetriever</see>.</p>
+    ///
+    /// <p>This implementation differs from <see cref="taste.Common.SoftCache">SoftCache</see> in a few ways:</p>
+    /// <ul>
+    ///  <li>Entries are spread over several independently locked segments, so unrelated keys do not contend</li>
+    ///  <li>Eviction is least-recently-used within a segment, bounded by the total weight of the entries as
+    ///   determined by a <see cref="CacheWeigher">CacheWeigher</see> (by default, each entry weighs 1)</li>
+    ///  <li>Concurrent misses on the same key are coalesced: only one caller runs the retriever, the others wait
+    ///   for its result</li>
+    ///  <li>Entries become "stale" after a time-to-live elapses, or after <see cref="InvalidateAll()"/> or
+    ///   <see cref="MarkStale(K)"/>. Stale values continue to be returned while a fresh value is loaded in
+    ///   the background.</li>
+    ///  <li>Entries may be charged to a <see cref="MemoryBudget"/> with <see cref="ChargeTo"/>, which then also
+    ///   limits the cache, together with everything else charged to it</li>
+    /// </ul>
+    ///
+    /// <p>The cache does not support <code>null</code> values or keys.</p>
+    /// </summary>
+    public class ConcurrentCache<K, V> : MemoryAccountable
+    {
+        private static readonly ILog log = LogManager.GetLogger(typeof(ConcurrentCache<K, V>));
+        private static readonly MetricsCounter cacheHits = MetricsRegistry.Default.GetCounter("cache.hits");
+        private static readonly MetricsCounter cacheMisses = MetricsRegistry.Default.GetCounter("cache.misses");
+
+        public const long NO_MAX_WEIGHT = long.MaxValue;
+        private const int DEFAULT_SEGMENTS = 16;
+
+        // Entry, its LRU node, and its slot in the segment's map
+        private static readonly long ENTRY_BYTES =
+            MemoryBudget.ObjectBytes(5 * MemoryBudget.REFERENCE_BYTES + 37) +
+            MemoryBudget.ObjectBytes(4 * MemoryBudget.REFERENCE_BYTES) + 12 + 2 * MemoryBudget.REFERENCE_BYTES;
+
+        private readonly SoftCacheRetriever<K, V> retriever;
+        private readonly CacheWeigher<K, V> weigher;
+        private readonly Segment[] segments;
+        private readonly long timeToLiveTicks;
+        private long generation;
+        private long hitCount;
+        private long missCount;
+        private long refreshCount;
+        private CacheWeigher<K, V> sizer;
+        private MemoryBudget.Account account;
+
+
+        /// <summary>
+        /// Creates an unbounded cache whose entries never expire.
+        /// </summary>
+        /// <param name="retriever">object which can retrieve values for keys</param>
+        public ConcurrentCache(SoftCacheRetriever<K, V> retriever)
+            : this(retriever, null, NO_MAX_WEIGHT, TimeSpan.Zero)
+        {
+        }
+
+        /// <summary>
+        /// Creates a cache holding at most <code>maxEntries</code> entries, whose entries never expire.
+        /// </summary>
+        /// <param name="retriever">object which can retrieve values for keys</param>
+        /// <param name="maxEntries">maximum number of entries the cache will store before evicting some</param>
+        public ConcurrentCache(SoftCacheRetriever<K, V> retriever, int maxEntries)
+            : this(retriever, null, maxEntries, TimeSpan.Zero)
+        {
+        }
+
+        /// <summary>
+        /// Creates a new cache.
+        /// </summary>
+        /// <param name="retriever">object which can retrieve values for keys</param>
+        /// <param name="weigher">assigns weights to entries, or <code>null</code> to give each entry weight 1</param>
+        /// <param name="maxWeight">maximum total weight of entries before some are evicted</param>
+        /// <param name="timeToLive">
+        /// time after which an entry is considered stale and refreshed in the background;
+        /// <see cref="TimeSpan.Zero"/> means entries only become stale when invalidated
+        /// </param>
+        public ConcurrentCache(SoftCacheRetriever<K, V> retriever,
+                               CacheWeigher<K, V> weigher,
+                               long maxWeight,
+                               TimeSpan timeToLive)
+        {
+            if (retriever == null)
+            {
+                throw new ArgumentNullException("retriever is null");
+            }
+            if (maxWeight < 1L)
+            {
+                throw new ArgumentException("maxWeight must be at least 1");
+            }
+            if (timeToLive < TimeSpan.Zero)
+            {
+                throw new ArgumentException("timeToLive is negative");
+            }
+            this.retriever = retriever;
+            this.weigher = weigher;
+            this.timeToLiveTicks = timeToLive.Ticks;
+            int numSegments = maxWeight < DEFAULT_SEGMENTS ? 1 : DEFAULT_SEGMENTS;
+            long segmentMaxWeight = maxWeight == NO_MAX_WEIGHT ? NO_MAX_WEIGHT : Math.Max(1L, maxWeight / numSegments);
+            this.segments = new Segment[numSegments];
+            for (int i = 0; i < numSegments; i++)
+            {
+                segments[i] = new Segment(segmentMaxWeight);
+            }
+        }
+
+
+        /// <summary>
+        /// Returns cached value for a key. If it does not exist, it is loaded using the
+        /// <see cref="taste.Common.SoftCacheRetriever">SoftCacheRetriever</see>; concurrent callers asking for
+        /// the same missing key wait for that single load. If the cached value is stale, it is returned anyway
+        /// and a refresh is started in the background.
+        /// </summary>
+        /// <param name="key">cache key</param>
+        /// <returns>value for that key</returns>
+        public V Get(K key)
+        {
+            if (key == null)
+            {
+                throw new ArgumentNullException("key is null");
+            }
+            Segment segment = SegmentFor(key);
+            Entry entry;
+            bool mustLoad = false;
+            lock (segment)
+            {
+                if (segment.map.TryGetValue(key, out entry))
+                {
+                    if (entry.node != null)
+                    {
+                        segment.Touch(entry);
+                    }
+                }
+                else
+                {
+                    entry = new Entry(key, Interlocked.Read(ref generation));
+                    segment.map.Add(key, entry);
+                    mustLoad = true;
+                }
+            }
+
+            if (mustLoad)
+            {
+                Interlocked.Increment(ref missCount);
+                cacheMisses.Increment();
+                return Load(segment, entry);
+            }
+            if (!entry.done || entry.failure != null)
+            {
+                Interlocked.Increment(ref missCount);
+                cacheMisses.Increment();
+                return AwaitLoad(entry);
+            }
+            Interlocked.Increment(ref hitCount);
+            cacheHits.Increment();
+            if (IsStale(entry))
+            {
+                ScheduleRefresh(segment, entry);
+            }
+            return entry.value;
+        }
+
+        public V this[K key]
+        {
+            get { return Get(key); }
+        }
+
+
+        /// <summary>
+        /// Uncaches any existing value for a given key. The next request for the key loads it again.
+        /// </summary>
+        /// <param name="key">cache key</param>
+        public void Remove(K key)
+        {
+            Segment segment = SegmentFor(key);
+            lock (segment)
+            {
+                Entry entry;
+                if (segment.map.TryGetValue(key, out entry))
+                {
+                    segment.Unlink(entry);
+                }
+            }
+        }
+
+        /// <summary>
+        /// Marks any existing value for a given key stale. It continues to be served until a fresh value
+        /// has been loaded in the background.
+        /// </summary>
+        /// <param name="key">cache key</param>
+        public void MarkStale(K key)
+        {
+            Segment segment = SegmentFor(key);
+            lock (segment)
+            {
+                Entry entry;
+                if (segment.map.TryGetValue(key, out entry))
+                {
+                    entry.generation = -1L;
+                    entry.staleMarks++;
+                }
+            }
+        }
+
+        /// <summary>
+        /// Marks all current values stale, without discarding them. Each is reloaded in the background the next
+        /// time it is requested.
+        /// </summary>
+        public void InvalidateAll()
+        {
+            Interlocked.Increment(ref generation);
+        }
+
+        /// <summary>
+        /// Clears the cache.
+        /// </summary>
+        public void Clear()
+        {
+            foreach (Segment segment in segments)
+            {
+                lock (segment)
+                {
+                    segment.map.Clear();
+                    segment.lru.Clear();
+                    segment.weight = 0L;
+                    if (segment.account != null)
+                    {
+                        segment.account.Shrink(segment.bytes);
+                    }
+                    segment.bytes = 0L;
+                }
+            }
+        }
+
+        /// <summary>
+        /// Number of entries currently cached, including entries still being loaded.
+        /// </summary>
+        public int Count
+        {
+            get
+            {
+                int count = 0;
+                foreach (Segment segment in segments)
+                {
+                    lock (segment)
+                    {
+                        count += segment.map.Count;
+                    }
+                }
+                return count;
+            }
+        }
+
+        /// <summary>
+        /// Total weight of the values currently cached.
+        /// </summary>
+        public long Weight
+        {
+            get
+            {
+                long weight = 0L;
+                foreach (Segment segment in segments)
+                {
+                    lock (segment)
+                    {
+                        weight += segment.weight;
+                    }
+                }
+                return weight;
+            }
+        }
+
+        /// <summary>
+        /// Estimated bytes of the entries currently cached: the cache's own bookkeeping, plus the sizes of keys
+        /// and values if <see cref="ChargeTo"/> was given a sizer.
+        /// </summary>
+        public long EstimatedBytes
+        {
+            get
+            {
+                long bytes = 0L;
+                foreach (Segment segment in segments)
+                {
+                    lock (segment)
+                    {
+                        bytes += segment.bytes;
+                    }
+                }
+                return bytes;
+            }
+        }
+
+        /// <summary>
+        /// <p>Charges the cache's entries to a <see cref="MemoryBudget"/>. Each entry costs the cache's own
+        /// bookkeeping plus what <code>sizer</code> estimates for its key and value, in bytes; the
+        /// <see cref="CacheWeigher{K,V}"/> that sets the cache's own maximum weight is not involved.</p>
+        ///
+        /// <p>When an entry does not fit, the budget first asks other accounts to give memory back, then the
+        /// cache evicts its own least-recently-used entries. If even that is not enough, the loaded value is
+        /// returned but not cached. Other caches charged to the same budget may likewise make this one evict.</p>
+        ///
+        /// <p>Must be called before the cache is first used.</p>
+        /// </summary>
+        /// <param name="budget">budget to charge</param>
+        /// <param name="name">name of the cache's account in the budget</param>
+        /// <param name="sizer">estimates the bytes of a key and value, or <code>null</code> to count only the
+        /// cache's bookkeeping</param>
+        /// <exception cref="IllegalStateException">if the cache is already charged or in use</exception>
+        public void ChargeTo(MemoryBudget budget, String name, CacheWeigher<K, V> sizer)
+        {
+            if (budget == null || name == null)
+            {
+                throw new ArgumentNullException("budget or name is null");
+            }
+            lock (segments)
+            {
+                if (account != null || HitCount > 0L || MissCount > 0L)
+                {
+                    throw new IllegalStateException("Cache is already charged or in use");
+                }
+                this.sizer = sizer;
+                this.account = budget.Open(name, EvictBytes);
+                foreach (Segment segment in segments)
+                {
+                    lock (segment)
+                    {
+                        segment.account = account;
+                    }
+                }
+            }
+        }
+
+        public long HitCount
+        {
+            get { return Interlocked.Read(ref hitCount); }
+        }
+
+        public long MissCount
+        {
+            get { return Interlocked.Read(ref missCount); }
+        }
+
+        public long RefreshCount
+        {
+            get { return Interlocked.Read(ref refreshCount); }
+        }
+
+        private Segment SegmentFor(K key)
+        {
+            if (segments.Length == 1)
+            {
+                return segments[0];
+            }
+            int hash = key.GetHashCode();
+            hash ^= (hash >> 16);
+            return segments[(hash & 0x7FFFFFFF) % segments.Length];
+        }
+
+        private bool IsStale(Entry entry)
+        {
+            if (entry.generation < Interlocked.Read(ref generation))
+            {
+                return true;
+            }
+            return timeToLiveTicks > 0L && DateTime.UtcNow.Ticks - entry.loadedTicks > timeToLiveTicks;
+        }
+
+        private V Load(Segment segment, Entry entry)
+        {
+            V value;
+            try
+            {
+                value = Retrieve(entry.key);
+            }
+            catch (Exception e)
+            {
+                lock (segment)
+                {
+                    Entry current;
+                    if (segment.map.TryGetValue(entry.key, out current) && current == entry)
+                    {
+                        segment.map.Remove(entry.key);
+                    }
+                }
+                lock (entry)
+                {
+                    entry.failure = e;
+                    entry.done = true;
+                    Monitor.PulseAll(entry);
+                }
+                throw;
+            }
+
+            long weight = WeightOf(entry.key, value);
+            long bytes = SizeOf(entry.key, value);
+            // Outside the segment's lock, since making room may evict from this and other caches
+            bool charged = Charge(bytes);
+            lock (segment)
+            {
+                Entry current;
+                entry.value = value;
+                entry.weight = weight;
+                entry.bytes = bytes;
+                entry.loadedTicks = DateTime.UtcNow.Ticks;
+                // Install only if nobody removed this entry while it was loading
+                if (segment.map.TryGetValue(entry.key, out current) && current == entry)
+                {
+                    if (charged)
+                    {
+                        segment.Link(entry);
+                        segment.Evict(entry);
+                    }
+                    else
+                    {
+                        // No room in the budget; waiters still get the value
+                        segment.map.Remove(entry.key);
+                    }
+                }
+                else if (charged && account != null)
+                {
+                    account.Shrink(bytes);
+                }
+            }
+            lock (entry)
+            {
+                entry.done = true;
+                Monitor.PulseAll(entry);
+            }
+            return value;
+        }
+
+        private static V AwaitLoad(Entry entry)
+        {
+            lock (entry)
+            {
+                while (!entry.done)
+                {
+                    Monitor.Wait(entry);
+                }
+            }
+            if (entry.failure != null)
+            {
+                throw new TasteException("Error while loading value for " + entry.key, entry.failure);
+            }
+            return entry.value;
+        }
+
+        private void ScheduleRefresh(Segment segment, Entry entry)
+        {
+            if (Interlocked.CompareExchange(ref entry.refreshing, 1, 0) != 0)
+            {
+                return;
+            }
+            long refreshGeneration = Interlocked.Read(ref generation);
+            int staleMarks;
+            lock (segment)
+            {
+                staleMarks = entry.staleMarks;
+            }
+            ThreadPool.QueueUserWorkItem(delegate(Object state)
+            {
+                try
+                {
+                    V value = Retrieve(entry.key);
+                    long weight = WeightOf(entry.key, value);
+                    long bytes = SizeOf(entry.key, value);
+                    long growth;
+                    lock (segment)
+                    {
+                        growth = bytes - entry.bytes;
+                    }
+                    bool charged = growth <= 0L || Charge(growth);
+                    lock (segment)
+                    {
+                        Entry current;
+                        if (segment.map.TryGetValue(entry.key, out current) && current == entry)
+                        {
+                            if (!charged)
+                            {
+                                // The fresh value does not fit; drop the stale one rather than keep serving it
+                                segment.Unlink(entry);
+                                return;
+                            }
+                            long chargedBytes = entry.bytes + Math.Max(0L, growth);
+                            segment.weight += weight - entry.weight;
+                            segment.bytes += bytes - entry.bytes;
+                            entry.value = value;
+                            entry.weight = weight;
+                            entry.bytes = bytes;
+                            entry.loadedTicks = DateTime.UtcNow.Ticks;
+                            if (entry.staleMarks == staleMarks)
+                            {
+                                entry.generation = refreshGeneration;
+                            }
+                            // Otherwise it was marked stale while reloading, and stays stale so that the next
+                            // request loads it again
+                            if (account != null && chargedBytes > bytes)
+                            {
+                                account.Shrink(chargedBytes - bytes);
+                            }
+                            segment.Evict(entry);
+                        }
+                        else if (growth > 0L && account != null)
+                        {
+                            account.Shrink(growth);
+                        }
+                    }
+                    Interlocked.Increment(ref refreshCount);
+                }
+                catch (Exception e)
+                {
+                    // Keep serving the stale value; the next request will try again
+                    log.Warn("Unable to refresh value for key " + entry.key, e);
+                }
+                finally
+                {
+                    Interlocked.Exchange(ref entry.refreshing, 0);
+                }
+            });
+        }
+
+        private V Retrieve(K key)
+        {
+            V value = retriever.GetValue(key);
+            if (value == null)
+            {
+                throw new IllegalStateException("Retriever returned null for key " + key);
+            }
+            return value;
+        }
+
+        private long WeightOf(K key, V value)
+        {
+            if (weigher == null)
+            {
+                return 1L;
+            }
+            long weight = weigher.Weigh(key, value);
+            if (weight < 1L)
+            {
+                throw new IllegalStateException("Weight must be at least 1: " + weight);
+            }
+            return weight;
+        }
+
+        private long SizeOf(K key, V value)
+        {
+            return ENTRY_BYTES + (sizer == null ? 0L : sizer.Weigh(key, value));
+        }
+
+        /// <summary>
+        /// Charges <code>bytes</code> to the budget, evicting this cache's own entries if other accounts did not
+        /// give back enough.
+        /// </summary>
+        /// <returns>whether the bytes were charged, or there is no budget</returns>
+        private bool Charge(long bytes)
+        {
+            MemoryBudget.Account account = this.account;
+            if (account == null || account.TryGrow(bytes))
+            {
+                return true;
+            }
+            EvictBytes(bytes);
+            return account.TryGrow(bytes);
+        }
+
+        /// <summary>
+        /// Evicts least-recently-used entries, segment by segment, until about <code>bytes</code> have been freed
+        /// or the cache is empty.
+        /// </summary>
+        /// <returns>bytes freed</returns>
+        private long EvictBytes(long bytes)
+        {
+            long freed = 0L;
+            foreach (Segment segment in segments)
+            {
+                lock (segment)
+                {
+                    while (freed < bytes && segment.lru.Count > 0)
+                    {
+                        Entry eldest = segment.lru.First.Value;
+                        freed += eldest.bytes;
+                        segment.Unlink(eldest);
+                    }
+                }
+                if (freed >= bytes)
+                {
+                    break;
+                }
+            }
+            return freed;
+        }
+
+        public override String ToString()
+        {
+            return "ConcurrentCache[retriever:" + retriever + ']';
+        }
+
+        #region Helper Classes
+
+        private sealed class Entry
+        {
+            internal readonly K key;
+            internal V value;
+            internal long weight;
+            internal long bytes;
+            internal long generation;
+            internal long loadedTicks;
+            internal volatile bool done;
+            internal Exception failure;
+            internal int refreshing;
+            // Times MarkStale() has hit this entry; guarded by the segment
+            internal int staleMarks;
+            internal LinkedListNode<Entry> node;
+
+            internal Entry(K key, long generation)
+            {
+                this.key = key;
+                this.generation = generation;
+            }
+        }
+
+        /// <summary>
+        /// A piece of the cache with its own lock, map and LRU list. All fields are guarded by
+        /// the segment itself.
+        /// </summary>
+        private sealed class Segment
+        {
+            internal readonly Dictionary<K, Entry> map = new Dictionary<K, Entry>();
+            internal readonly LinkedList<Entry> lru = new LinkedList<Entry>();
+            internal readonly long maxWeight;
+            internal long weight;
+            internal long bytes;
+            internal MemoryBudget.Account account;
+
+            internal Segment(long maxWeight)
+            {
+                this.maxWeight = maxWeight;
+            }
+
+            internal void Link(Entry entry)
+            {
+                entry.node = lru.AddLast(entry);
+                weight += entry.weight;
+                bytes += entry.bytes;
+            }
+
+            internal void Unlink(Entry entry)
+            {
+                map.Remove(entry.key);
+                if (entry.node != null)
+                {
+                    lru.Remove(entry.node);
+                    entry.node = null;
+                    weight -= entry.weight;
+                    bytes -= entry.bytes;
+                    if (account != null)
+                    {
+                        account.Shrink(entry.bytes);
+                    }
+                }
+            }
+
+            internal void Touch(Entry entry)
+            {
+                if (entry.node != lru.Last)
+                {
+                    lru.Remove(entry.node);
+                    lru.AddLast(entry.node);
+                }
+            }
+
+            /// <summary>
+            /// Evicts least-recently-used entries until the segment fits its budget again, never
+            /// evicting <code>keep</code> itself.
+            /// </summary>
+            internal void Evict(Entry keep)
+            {
+                while (weight > maxWeight && lru.Count > 1)
+                {
+                    Entry eldest = lru.First.Value;
+                    if (eldest == keep)
+                    {
+                        eldest = lru.First.Next.Value;
+                    }
+                    Unlink(eldest);
+                }
+            }
+        }
+
+        #endregion
+    }
+
+}
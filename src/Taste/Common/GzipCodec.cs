@@ -0,0 +1,393 @@
+/*
+ * Copyright 2007 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+namespace Taste.Common
+{
+	using System;
+	using System.IO;
+	using System.IO.Compression;
+
+
+    /// <summary>
+    /// <p>Reads gzip files (".gz"), including files of several gzip members one after another, as written by
+    /// concatenating gzip files or by block-compressing tools.</p>
+    ///
+    /// <p><see cref="GZipStream"/> stops at the end of the first member and gives no way to tell where that was
+    /// in the input, since it reads ahead. So input is fed to it in bounded chunks, and once a member ends, the
+    /// next one is found in the most recent chunks as the position where a gzip header directly follows the
+    /// finished member's trailer, recognized by the member's decompressed size it ends with. Anything but zero
+    /// padding after the last member is an error.</p>
+    /// </summary>
+	public sealed class GzipCodec : StreamCodec
+	{
+		public String Extension
+		{
+			get { return ".gz"; }
+		}
+
+		public Stream Decompress(Stream compressed)
+		{
+			if (compressed == null)
+			{
+				throw new ArgumentNullException("compressed is null");
+			}
+			return new MultiMemberStream(compressed);
+		}
+
+		public override String ToString()
+		{
+			return "GzipCodec";
+		}
+
+		#region Helper classes
+
+		private sealed class MultiMemberStream : Stream
+		{
+			// A member is at least a 10-byte header, an empty deflate block and an 8-byte trailer
+			private const int MIN_MEMBER_BYTES = 20;
+
+			private readonly ChunkedStream input;
+			private GZipStream member;
+			private long memberStart;
+			private uint memberLength;
+
+			internal MultiMemberStream(Stream compressed)
+			{
+				this.input = new ChunkedStream(compressed);
+				this.member = new GZipStream(input, CompressionMode.Decompress, true);
+			}
+
+			public override int Read(byte[] buffer, int offset, int count)
+			{
+				while (member != null)
+				{
+					int read = member.Read(buffer, offset, count);
+					if (read > 0)
+					{
+						memberLength = unchecked(memberLength + (uint) read);
+						return read;
+					}
+					member.Close();
+					member = NextMember();
+				}
+				return 0;
+			}
+
+			/// <returns>a stream over the member after the one that just ended, or <code>null</code> at the
+			/// end of the input</returns>
+			private GZipStream NextMember()
+			{
+				long windowStart;
+				byte[] window = input.GetWindow(out windowStart);
+				int from = (int) Math.Max(4L, memberStart + MIN_MEMBER_BYTES - windowStart);
+				for (int p = from; p + 2 < window.Length; p++)
+				{
+					if (window[p] == 0x1f && window[p + 1] == 0x8b && window[p + 2] == 8 &&
+					    ReadUInt32(window, p - 4) == memberLength)
+					{
+						memberStart = windowStart + p;
+						memberLength = 0;
+						input.Rewind(memberStart);
+						return new GZipStream(input, CompressionMode.Decompress, true);
+					}
+				}
+				if (!input.RemainderIsZeros())
+				{
+					throw new IOException("Data after a gzip member is not another gzip member");
+				}
+				return null;
+			}
+
+			private static uint ReadUInt32(byte[] bytes, int offset)
+			{
+				return (uint) (bytes[offset] | bytes[offset + 1] << 8 | bytes[offset + 2] << 16 |
+				               bytes[offset + 3] << 24);
+			}
+
+			public override bool CanRead
+			{
+				get { return true; }
+			}
+
+			public override bool CanSeek
+			{
+				get { return false; }
+			}
+
+			public override bool CanWrite
+			{
+				get { return false; }
+			}
+
+			public override long Length
+			{
+				get { throw new NotSupportedException(); }
+			}
+
+			public override long Position
+			{
+				get { throw new NotSupportedException(); }
+				set { throw new NotSupportedException(); }
+			}
+
+			public override void Flush()
+			{
+			}
+
+			public override long Seek(long offset, SeekOrigin origin)
+			{
+				throw new NotSupportedException();
+			}
+
+			public override void SetLength(long value)
+			{
+				throw new NotSupportedException();
+			}
+
+			public override void Write(byte[] buffer, int offset, int count)
+			{
+				throw new NotSupportedException();
+			}
+
+			protected override void Dispose(bool disposing)
+			{
+				try
+				{
+					if (disposing)
+					{
+						if (member != null)
+						{
+							member.Close();
+							member = null;
+						}
+						input.Close();
+					}
+				}
+				finally
+				{
+					base.Dispose(disposing);
+				}
+			}
+		}
+
+		/// <summary>
+		/// Hands out input in chunks of at most <see cref="CHUNK_BYTES"/>, remembering the last two, and can go
+		/// back to any position within them.
+		/// </summary>
+		private sealed class ChunkedStream : Stream
+		{
+			private const int CHUNK_BYTES = 8192;
+			// Enough to see the header of a member following the last chunk handed out
+			private const int LOOKAHEAD_BYTES = 16;
+
+			private readonly Stream source;
+			private byte[] previous;
+			private int previousCount;
+			private byte[] last;
+			private int lastCount;
+			// Bytes to hand out before reading more from the source
+			private byte[] pending;
+			private int pendingOffset;
+			private int pendingCount;
+			// Offset in the input of the next byte to hand out
+			private long position;
+
+			internal ChunkedStream(Stream source)
+			{
+				this.source = source;
+				this.previous = new byte[CHUNK_BYTES];
+				this.last = new byte[CHUNK_BYTES];
+				this.pending = new byte[LOOKAHEAD_BYTES];
+			}
+
+			public override int Read(byte[] buffer, int offset, int count)
+			{
+				count = Math.Min(count, CHUNK_BYTES);
+				int read;
+				if (pendingCount > 0)
+				{
+					read = Math.Min(count, pendingCount);
+					Buffer.BlockCopy(pending, pendingOffset, buffer, offset, read);
+					pendingOffset += read;
+					pendingCount -= read;
+				}
+				else
+				{
+					read = source.Read(buffer, offset, count);
+				}
+				if (read > 0)
+				{
+					byte[] swap = previous;
+					previous = last;
+					previousCount = lastCount;
+					last = swap;
+					Buffer.BlockCopy(buffer, offset, last, 0, read);
+					lastCount = read;
+					position += read;
+				}
+				return read;
+			}
+
+			/// <summary>
+			/// The last two chunks handed out, followed by whatever has been read ahead of them, which is at
+			/// least <see cref="LOOKAHEAD_BYTES"/> unless the input ends first.
+			/// </summary>
+			/// <param name="windowStart">offset in the input of the window's first byte</param>
+			internal byte[] GetWindow(out long windowStart)
+			{
+				FillPending(LOOKAHEAD_BYTES);
+				byte[] window = new byte[previousCount + lastCount + pendingCount];
+				Buffer.BlockCopy(previous, 0, window, 0, previousCount);
+				Buffer.BlockCopy(last, 0, window, previousCount, lastCount);
+				Buffer.BlockCopy(pending, pendingOffset, window, previousCount + lastCount, pendingCount);
+				windowStart = position - previousCount - lastCount;
+				return window;
+			}
+
+			/// <summary>
+			/// Continues handing out input from <code>newPosition</code>, which must be within the current
+			/// window.
+			/// </summary>
+			internal void Rewind(long newPosition)
+			{
+				long windowStart;
+				byte[] window = GetWindow(out windowStart);
+				int skip = (int) (newPosition - windowStart);
+				pending = new byte[Math.Max(LOOKAHEAD_BYTES, window.Length - skip)];
+				pendingOffset = 0;
+				pendingCount = window.Length - skip;
+				Buffer.BlockCopy(window, skip, pending, 0, pendingCount);
+				previousCount = 0;
+				lastCount = 0;
+				position = newPosition;
+			}
+
+			/// <summary>Reads the rest of the input</summary>
+			/// <returns>whether everything not yet handed out is zero</returns>
+			internal bool RemainderIsZeros()
+			{
+				for (int i = 0; i < pendingCount; i++)
+				{
+					if (pending[pendingOffset + i] != 0)
+					{
+						return false;
+					}
+				}
+				pendingCount = 0;
+				byte[] buffer = new byte[CHUNK_BYTES];
+				int read;
+				while ((read = source.Read(buffer, 0, buffer.Length)) > 0)
+				{
+					for (int i = 0; i < read; i++)
+					{
+						if (buffer[i] != 0)
+						{
+							return false;
+						}
+					}
+				}
+				return true;
+			}
+
+			private void FillPending(int wanted)
+			{
+				if (pendingCount >= wanted)
+				{
+					return;
+				}
+				if (pendingOffset + wanted > pending.Length)
+				{
+					byte[] newPending = new byte[Math.Max(wanted, pendingCount)];
+					Buffer.BlockCopy(pending, pendingOffset, newPending, 0, pendingCount);
+					pending = newPending;
+					pendingOffset = 0;
+				}
+				while (pendingCount < wanted)
+				{
+					int read = source.Read(pending, pendingOffset + pendingCount, wanted - pendingCount);
+					if (read <= 0)
+					{
+						break;
+					}
+					pendingCount += read;
+				}
+			}
+
+			public override bool CanRead
+			{
+				get { return true; }
+			}
+
+			public override bool CanSeek
+			{
+				get { return false; }
+			}
+
+			public override bool CanWrite
+			{
+				get { return false; }
+			}
+
+			public override long Length
+			{
+				get { throw new NotSupportedException(); }
+			}
+
+			public override long Position
+			{
+				get { throw new NotSupportedException(); }
+				set { throw new NotSupportedException(); }
+			}
+
+			public override void Flush()
+			{
+			}
+
+			public override long Seek(long offset, SeekOrigin origin)
+			{
+				throw new NotSupportedException();
+			}
+
+			public override void SetLength(long value)
+			{
+				throw new NotSupportedException();
+			}
+
+			public override void Write(byte[] buffer, int offset, int count)
+			{
+				throw new NotSupportedException();
+			}
+
+			protected override void Dispose(bool disposing)
+			{
+				try
+				{
+					if (disposing)
+					{
+						source.Close();
+					}
+				}
+				finally
+				{
+					base.Dispose(disposing);
+				}
+			}
+		}
+
+		#endregion
+	}
+
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright 2005 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+namespace Taste.Common
+{
+    using System;
+    using System.Diagnostics;
+
+
+    /// <summary>
+    /// <p>Histogram of latencies in microseconds with fixed memory and constant-time recording. Values below 16
+    /// are counted exactly; above that, each power of two is split into 8 buckets, so a reported percentile is
+    /// within about 12.5% of the true value.</p>
+    ///
+    /// <p>Not thread-safe. Threads should record into their own instances and <see cref="Merge(LatencyHistogram)"/>
+    /// them.</p>
+    /// </summary>
+    public sealed class LatencyHistogram
+    {
+        private const int SUB_BUCKET_BITS = 3;
+        private const int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        private const int EXACT_LIMIT = 2 * SUB_BUCKETS;
+        // Highest bit of a positive long is bit 62
+        private const int NUM_BUCKETS = EXACT_LIMIT + (63 - (SUB_BUCKET_BITS + 1)) * SUB_BUCKETS;
+
+        private static readonly double MICROS_PER_TICK = 1000000.0 / Stopwatch.Frequency;
+
+        private readonly long[] counts;
+        private long count;
+        private long sum;
+        private long max;
+
+        public LatencyHistogram()
+        {
+            counts = new long[NUM_BUCKETS];
+        }
+
+        public long Count
+        {
+            get { return count; }
+        }
+
+        /// <summary>Largest recorded latency, in microseconds</summary>
+        public long Max
+        {
+            get { return max; }
+        }
+
+        /// <summary>Mean latency in microseconds, or NaN if nothing was recorded</summary>
+        public double Mean
+        {
+            get { return count == 0 ? Double.NaN : (double) sum / count; }
+        }
+
+        /// <summary>
+        /// Records one latency, in microseconds. Negative values count as zero.
+        /// </summary>
+        public void Record(long micros)
+        {
+            if (micros < 0L)
+            {
+                micros = 0L;
+            }
+            counts[BucketOf(micros)]++;
+            count++;
+            sum += micros;
+            if (micros > max)
+            {
+                max = micros;
+            }
+        }
+
+        /// <summary>
+        /// <p>Records one latency from a client that meant to issue a request every
+        /// <code>expectedIntervalMicros</code> but waited for each response first. The requests that a slow
+        /// response held back are recorded too, with the latencies they would have seen: <code>micros</code> less
+        /// one interval, less two, and so on while above one interval. Without this, a stall is counted once
+        /// however long it lasts, and percentiles look far better than clients saw ("coordinated omission").</p>
+        /// </summary>
+        /// <param name="expectedIntervalMicros">intended time between requests; 0 or less records just
+        /// <code>micros</code></param>
+        public void RecordCorrected(long micros, long expectedIntervalMicros)
+        {
+            Record(micros);
+            if (expectedIntervalMicros <= 0L)
+            {
+                return;
+            }
+            for (long missed = micros - expectedIntervalMicros; missed >= expectedIntervalMicros;
+                 missed -= expectedIntervalMicros)
+            {
+                Record(missed);
+            }
+        }
+
+        /// <summary>
+        /// Records the time between two <see cref="Stopwatch.GetTimestamp()"/> values.
+        /// </summary>
+        public void RecordElapsed(long startTimestamp, long endTimestamp)
+        {
+            Record((long) ((endTimestamp - startTimestamp) * MICROS_PER_TICK));
+        }
+
+        /// <summary>
+        /// Adds everything recorded by another histogram to this one.
+        /// </summary>
+        public void Merge(LatencyHistogram other)
+        {
+            for (int i = 0; i < NUM_BUCKETS; i++)
+            {
+                counts[i] += other.counts[i];
+            }
+            count += other.count;
+            sum += other.sum;
+            if (other.max > max)
+            {
+                max = other.max;
+            }
+        }
+
+        public void Reset()
+        {
+            Array.Clear(counts, 0, NUM_BUCKETS);
+            count = 0L;
+            sum = 0L;
+            max = 0L;
+        }
+
+        /// <param name="percentile">between 0 and 100</param>
+        /// <returns>approximate latency in microseconds below which that percentage of recorded latencies fall,
+        /// or 0 if nothing was recorded</returns>
+        public long GetPercentile(double percentile)
+        {
+            if (double.IsNaN(percentile) || percentile < 0.0 || percentile > 100.0)
+            {
+                throw new ArgumentException("Invalid percentile: " + percentile);
+            }
+            if (count == 0L)
+            {
+                return 0L;
+            }
+            long rank = Math.Max(1L, (long) Math.Ceiling(percentile / 100.0 * count));
+            long seen = 0L;
+            for (int i = 0; i < NUM_BUCKETS; i++)
+            {
+                seen += counts[i];
+                if (seen >= rank)
+                {
+                    return Math.Min(max, UpperBoundOf(i));
+                }
+            }
+            return max;
+        }
+
+        private static int BucketOf(long micros)
+        {
+            if (micros < EXACT_LIMIT)
+            {
+                return (int) micros;
+            }
+            int highestBit = HighestBit(micros);
+            int shift = highestBit - SUB_BUCKET_BITS;
+            int subBucket = (int) (micros >> shift) & (SUB_BUCKETS - 1);
+            return EXACT_LIMIT + (highestBit - (SUB_BUCKET_BITS + 1)) * SUB_BUCKETS + subBucket;
+        }
+
+        /// <returns>largest value that falls into the given bucket</returns>
+        private static long UpperBoundOf(int bucket)
+        {
+            if (bucket < EXACT_LIMIT)
+            {
+                return bucket;
+            }
+            int offset = bucket - EXACT_LIMIT;
+            int highestBit = offset / SUB_BUCKETS + SUB_BUCKET_BITS + 1;
+            int subBucket = offset % SUB_BUCKETS;
+            int shift = highestBit - SUB_BUCKET_BITS;
+            long lower = ((long) (SUB_BUCKETS + subBucket)) << shift;
+            return lower + (1L << shift) - 1L;
+        }
+
+        private static int HighestBit(long value)
+        {
+            int bit = 0;
+            while ((value >>= 1) != 0L)
+            {
+                bit++;
+            }
+            return bit;
+        }
+
+        public override String ToString()
+        {
+            return "count:" + count + ", mean:" + Math.Round(Mean) + "us, p50:" + GetPercentile(50.0) +
+                   "us, p90:" + GetPercentile(90.0) + "us, p99:" + GetPercentile(99.0) + "us, max:" + max + "us";
+        }
+    }
+
+}
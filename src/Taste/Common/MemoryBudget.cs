@@ -0,0 +1,560 @@
+/*
+ * Copyright 2007 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+namespace Taste.Common
+{
+    using System;
+    using System.Collections.Generic;
+    using System.Globalization;
+    using System.Text;
+    using log4net;
+
+
+    /// <summary>
+    /// <p>Implemented by components that can hold a lot of memory, such as data models, diff storage, clusters
+    /// and caches, to report roughly how much.</p>
+    /// </summary>
+    public interface MemoryAccountable
+    {
+        /// <summary>
+        /// Estimated bytes retained by this object and the objects only it refers to, from counts and the sizing
+        /// helpers of <see cref="MemoryBudget"/>. This is meant for capacity planning and budgets, not as a heap
+        /// measurement, and may take time proportional to the object's size to compute.
+        /// </summary>
+        long EstimatedBytes { get; }
+    }
+
+
+    /// <summary>
+    /// Frees up to about <code>bytes</code> bytes, typically by evicting cache entries, and returns the number of
+    /// bytes actually freed.
+    /// </summary>
+    public delegate long MemoryReclaimer(long bytes);
+
+
+    /// <summary>
+    /// <p>A limit on the memory that models and caches hold together. This is an accounting device, not a heap
+    /// measurement: each component estimates its own size, and the budget adds up the estimates.</p>
+    ///
+    /// <ul>
+    ///  <li>Caches <see cref="Open"/> an <see cref="Account"/>, grow it as they install entries and shrink it as
+    ///   they evict them. When the budget is full, growing first asks every other account's
+    ///   <see cref="MemoryReclaimer"/> to give back a share of the shortfall proportional to its size; see
+    ///   <see cref="ConcurrentCache{K,V}.ChargeTo"/>.</li>
+    ///  <li>Loaders call <see cref="CheckAvailable"/> with an estimate before reading anything, so that a model
+    ///   which will not fit fails at once, with the estimate in the message, rather than after minutes of
+    ///   loading. Once loaded, a model is <see cref="Track"/>ed and counts against the budget for as long as it
+    ///   is reachable.</li>
+    /// </ul>
+    ///
+    /// <p>Accounts and tracked objects are held weakly, so neither keeps its owner alive; whatever an owner
+    /// held is released when the owner is collected.</p>
+    ///
+    /// <p>The library's own components use <see cref="Default"/>, which is unlimited until its
+    /// <see cref="Limit"/> is set.</p>
+    /// </summary>
+    public sealed class MemoryBudget
+    {
+        private static readonly ILog log = LogManager.GetLogger(typeof(MemoryBudget));
+
+        public const long UNLIMITED = long.MaxValue;
+
+        /// <summary>Bytes of an object reference</summary>
+        public static readonly int REFERENCE_BYTES = IntPtr.Size;
+
+        /// <summary>Bytes of the header in front of every object's fields</summary>
+        public static readonly int OBJECT_OVERHEAD_BYTES = 2 * IntPtr.Size;
+
+        /// <summary>Assumed size of a user or item ID, such as a boxed number or a short string</summary>
+        public static readonly long ID_BYTES = ObjectBytes(24);
+
+        private static readonly MemoryBudget defaultBudget = new MemoryBudget(UNLIMITED);
+
+        // Guards everything below, and the bytes of each holder
+        private readonly List<Holder> holders;
+        private long limit;
+
+        public MemoryBudget(long limit)
+        {
+            CheckLimit(limit);
+            this.limit = limit;
+            this.holders = new List<Holder>();
+        }
+
+        /// <summary>Budget used by the library's own models and caches</summary>
+        public static MemoryBudget Default
+        {
+            get { return defaultBudget; }
+        }
+
+        /// <summary>Maximum bytes that accounts and tracked objects may hold together</summary>
+        public long Limit
+        {
+            get
+            {
+                lock (holders)
+                {
+                    return limit;
+                }
+            }
+            set
+            {
+                CheckLimit(value);
+                lock (holders)
+                {
+                    limit = value;
+                }
+            }
+        }
+
+        /// <summary>Bytes held by open accounts and by tracked objects that are still reachable</summary>
+        public long Used
+        {
+            get
+            {
+                lock (holders)
+                {
+                    return UsedLocked();
+                }
+            }
+        }
+
+        public long Available
+        {
+            get
+            {
+                lock (holders)
+                {
+                    return limit - UsedLocked();
+                }
+            }
+        }
+
+        /// <summary>
+        /// Opens an account that starts out empty. It stays open until disposed, or until nothing but the budget
+        /// refers to it.
+        /// </summary>
+        /// <param name="name">name of the account, for messages</param>
+        /// <param name="reclaimer">frees memory held by the account when others need it, or <code>null</code>
+        /// if it cannot</param>
+        public Account Open(String name, MemoryReclaimer reclaimer)
+        {
+            if (name == null)
+            {
+                throw new ArgumentNullException("name is null");
+            }
+            Holder holder = new Holder(name);
+            Account account = new Account(this, holder, reclaimer);
+            holder.owner = new WeakReference(account);
+            lock (holders)
+            {
+                holders.Add(holder);
+            }
+            return account;
+        }
+
+        /// <summary>
+        /// Counts <code>bytes</code> against the budget for as long as <code>owner</code> is reachable. Tracking
+        /// the same owner again replaces its estimate.
+        /// </summary>
+        public void Track(String name, Object owner, long bytes)
+        {
+            if (name == null || owner == null)
+            {
+                throw new ArgumentNullException("name or owner is null");
+            }
+            if (bytes < 0L)
+            {
+                throw new ArgumentException("bytes is negative");
+            }
+            lock (holders)
+            {
+                Holder holder = FindLocked(owner);
+                if (holder == null)
+                {
+                    holder = new Holder(name);
+                    holder.owner = new WeakReference(owner);
+                    holders.Add(holder);
+                }
+                holder.name = name;
+                holder.bytes = bytes;
+            }
+        }
+
+        /// <summary>
+        /// Stops counting an owner passed to <see cref="Track"/>.
+        /// </summary>
+        public void Untrack(Object owner)
+        {
+            lock (holders)
+            {
+                Holder holder = FindLocked(owner);
+                if (holder != null)
+                {
+                    holders.Remove(holder);
+                }
+            }
+        }
+
+        /// <summary>
+        /// Checks, before a load starts, that <code>estimatedBytes</code> more would fit in the budget, asking
+        /// accounts to give memory back if that is what it takes. Nothing is reserved.
+        /// </summary>
+        /// <param name="what">what needs the memory, for the message</param>
+        /// <param name="estimatedBytes">estimated bytes needed</param>
+        /// <exception cref="TasteException">if the estimate does not fit; the message gives the estimate and
+        /// what holds the budget</exception>
+        public void CheckAvailable(String what, long estimatedBytes)
+        {
+            if (estimatedBytes < 0L)
+            {
+                throw new ArgumentException("estimatedBytes is negative");
+            }
+            long shortfall;
+            lock (holders)
+            {
+                shortfall = estimatedBytes - (limit - UsedLocked());
+            }
+            if (shortfall <= 0L)
+            {
+                return;
+            }
+            Reclaim(null, shortfall);
+            lock (holders)
+            {
+                if (estimatedBytes > limit - UsedLocked())
+                {
+                    throw new TasteException(FailureMessageLocked(what, estimatedBytes));
+                }
+            }
+        }
+
+        public override String ToString()
+        {
+            lock (holders)
+            {
+                return "MemoryBudget[limit:" + (limit == UNLIMITED ? "unlimited" : Megabytes(limit)) + ", used:" +
+                       Megabytes(UsedLocked()) + ", holders:{" + DescribeLocked() + "}]";
+            }
+        }
+
+        /// <returns>bytes of an object with <code>fieldBytes</code> bytes of fields</returns>
+        public static long ObjectBytes(long fieldBytes)
+        {
+            return Align(OBJECT_OVERHEAD_BYTES + Math.Max(fieldBytes, REFERENCE_BYTES));
+        }
+
+        /// <returns>bytes of an array of <code>length</code> elements of <code>elementBytes</code> bytes each</returns>
+        public static long ArrayBytes(long length, int elementBytes)
+        {
+            return Align(OBJECT_OVERHEAD_BYTES + REFERENCE_BYTES + length * elementBytes);
+        }
+
+        /// <returns>bytes of a <see cref="Dictionary{K,V}"/> of <code>count</code> entries whose keys and values
+        /// take <code>keyBytes</code> and <code>valueBytes</code> bytes in the entry, not counting what they refer
+        /// to</returns>
+        public static long DictionaryBytes(long count, int keyBytes, int valueBytes)
+        {
+            // Object, bucket array, and entries of hash code, next index, key and value
+            return ObjectBytes(8 * REFERENCE_BYTES) + ArrayBytes(count, 4) + ArrayBytes(count, 8 + keyBytes + valueBytes);
+        }
+
+        public static String Megabytes(long bytes)
+        {
+            return (bytes / 1048576.0).ToString("F1", CultureInfo.InvariantCulture) + "MB";
+        }
+
+        private static long Align(long bytes)
+        {
+            return (bytes + REFERENCE_BYTES - 1) / REFERENCE_BYTES * REFERENCE_BYTES;
+        }
+
+        private static void CheckLimit(long limit)
+        {
+            if (limit < 0L)
+            {
+                throw new ArgumentException("limit is negative");
+            }
+        }
+
+        private bool TryGrow(Account account, long bytes)
+        {
+            long shortfall;
+            lock (holders)
+            {
+                CheckOpenLocked(account);
+                shortfall = bytes - (limit - UsedLocked());
+                if (shortfall <= 0L)
+                {
+                    account.holder.bytes += bytes;
+                    return true;
+                }
+            }
+            // Reclaimers take their own locks and shrink their accounts, so they must run outside this one
+            Reclaim(account, shortfall);
+            lock (holders)
+            {
+                CheckOpenLocked(account);
+                if (bytes <= limit - UsedLocked())
+                {
+                    account.holder.bytes += bytes;
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /// <summary>
+        /// Asks each account but <code>requester</code> for a share of <code>shortfall</code> proportional to the
+        /// bytes it holds.
+        /// </summary>
+        private void Reclaim(Account requester, long shortfall)
+        {
+            List<Account> donors = new List<Account>();
+            List<long> donorBytes = new List<long>();
+            double total = 0.0;
+            lock (holders)
+            {
+                PruneLocked();
+                foreach (Holder holder in holders)
+                {
+                    Account account = holder.owner.Target as Account;
+                    if (account != null && account != requester && account.reclaimer != null && holder.bytes > 0L)
+                    {
+                        donors.Add(account);
+                        donorBytes.Add(holder.bytes);
+                        total += holder.bytes;
+                    }
+                }
+            }
+            long freed = 0L;
+            for (int i = 0; i < donors.Count; i++)
+            {
+                long share = (long) Math.Ceiling(shortfall * (donorBytes[i] / total));
+                try
+                {
+                    freed += donors[i].reclaimer(share);
+                }
+                catch (Exception e)
+                {
+                    log.Warn("Unable to reclaim memory from " + donors[i].Name, e);
+                }
+            }
+            if (log.IsDebugEnabled)
+            {
+                log.Debug("Reclaimed " + freed + " of " + shortfall + " bytes from " + donors.Count + " accounts");
+            }
+        }
+
+        private void Shrink(Account account, long bytes)
+        {
+            lock (holders)
+            {
+                account.holder.bytes -= Math.Min(bytes, account.holder.bytes);
+            }
+        }
+
+        private void Close(Account account)
+        {
+            lock (holders)
+            {
+                if (!account.closed)
+                {
+                    account.closed = true;
+                    holders.Remove(account.holder);
+                }
+            }
+        }
+
+        private static void CheckOpenLocked(Account account)
+        {
+            if (account.closed)
+            {
+                throw new IllegalStateException("Account " + account.Name + " is closed");
+            }
+        }
+
+        private long UsedLocked()
+        {
+            PruneLocked();
+            long used = 0L;
+            foreach (Holder holder in holders)
+            {
+                used += holder.bytes;
+            }
+            return used;
+        }
+
+        private void PruneLocked()
+        {
+            holders.RemoveAll(delegate(Holder holder) { return !holder.owner.IsAlive; });
+        }
+
+        private Holder FindLocked(Object owner)
+        {
+            foreach (Holder holder in holders)
+            {
+                if (holder.owner.Target == owner)
+                {
+                    return holder;
+                }
+            }
+            return null;
+        }
+
+        private String FailureMessageLocked(String what, long estimatedBytes)
+        {
+            return what + " needs an estimated " + Megabytes(estimatedBytes) + " but only " +
+                   Megabytes(Math.Max(0L, limit - UsedLocked())) + " of the " + Megabytes(limit) +
+                   " memory budget is free; held by: " + DescribeLocked();
+        }
+
+        /// <returns>holders by descending bytes</returns>
+        private String DescribeLocked()
+        {
+            PruneLocked();
+            List<Holder> sorted = new List<Holder>(holders);
+            sorted.Sort(delegate(Holder a, Holder b) { return b.bytes.CompareTo(a.bytes); });
+            StringBuilder result = new StringBuilder();
+            foreach (Holder holder in sorted)
+            {
+                if (result.Length > 0)
+                {
+                    result.Append(", ");
+                }
+                result.Append(holder.name).Append(' ').Append(Megabytes(holder.bytes));
+            }
+            return result.Length == 0 ? "nothing" : result.ToString();
+        }
+
+        #region Helper classes
+
+        /// <summary>
+        /// <p>Memory a cache, or anything else that grows and shrinks, holds against a <see cref="MemoryBudget"/>.
+        /// Keep a reference to it for as long as the memory is held; an account nothing refers to is dropped
+        /// from the budget.</p>
+        /// </summary>
+        public sealed class Account : IDisposable
+        {
+            private readonly MemoryBudget budget;
+            internal readonly Holder holder;
+            internal readonly MemoryReclaimer reclaimer;
+            internal bool closed;
+
+            internal Account(MemoryBudget budget, Holder holder, MemoryReclaimer reclaimer)
+            {
+                this.budget = budget;
+                this.holder = holder;
+                this.reclaimer = reclaimer;
+            }
+
+            public String Name
+            {
+                get { return holder.name; }
+            }
+
+            public MemoryBudget Budget
+            {
+                get { return budget; }
+            }
+
+            public long Bytes
+            {
+                get
+                {
+                    lock (budget.holders)
+                    {
+                        return holder.bytes;
+                    }
+                }
+            }
+
+            /// <summary>
+            /// Adds <code>bytes</code> to the account if, perhaps after other accounts give memory back, they fit
+            /// in the budget.
+            /// </summary>
+            /// <returns>whether the account grew</returns>
+            public bool TryGrow(long bytes)
+            {
+                CheckBytes(bytes);
+                return budget.TryGrow(this, bytes);
+            }
+
+            /// <summary>
+            /// Like <see cref="TryGrow"/>, but fails if the bytes do not fit.
+            /// </summary>
+            /// <exception cref="TasteException">if the bytes do not fit in the budget</exception>
+            public void Grow(long bytes)
+            {
+                if (!TryGrow(bytes))
+                {
+                    lock (budget.holders)
+                    {
+                        throw new TasteException(budget.FailureMessageLocked(Name, bytes));
+                    }
+                }
+            }
+
+            /// <summary>
+            /// Gives back <code>bytes</code>, or everything the account holds if that is less.
+            /// </summary>
+            public void Shrink(long bytes)
+            {
+                CheckBytes(bytes);
+                budget.Shrink(this, bytes);
+            }
+
+            /// <summary>
+            /// Gives back everything and closes the account.
+            /// </summary>
+            public void Dispose()
+            {
+                budget.Close(this);
+            }
+
+            private static void CheckBytes(long bytes)
+            {
+                if (bytes < 0L)
+                {
+                    throw new ArgumentException("bytes is negative");
+                }
+            }
+
+            public override String ToString()
+            {
+                return "Account[name:" + Name + ", bytes:" + Bytes + ']';
+            }
+        }
+
+        /// <summary>
+        /// One account or tracked object in the budget, which refers to its owner weakly.
+        /// </summary>
+        internal sealed class Holder
+        {
+            internal String name;
+            internal WeakReference owner;
+            internal long bytes;
+
+            internal Holder(String name)
+            {
+                this.name = name;
+            }
+        }
+
+        #endregion
+    }
+
+}
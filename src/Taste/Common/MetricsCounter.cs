@@ -0,0 +1,75 @@
+/*
+ * Copyright 2005 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+namespace Taste.Common
+{
+    using System;
+    using System.Threading;
+
+
+    /// <summary>
+    /// <p>A monotonically increasing count, registered with a <see cref="MetricsRegistry"/>. Updates are ignored
+    /// while <see cref="MetricsRegistry.Enabled"/> is <code>false</code>, so that leaving calls in hot paths costs
+    /// one volatile read.</p>
+    /// </summary>
+    public sealed class MetricsCounter
+    {
+        private readonly String name;
+        private long count;
+
+        internal MetricsCounter(String name)
+        {
+            this.name = name;
+        }
+
+        public String Name
+        {
+            get { return name; }
+        }
+
+        public long Count
+        {
+            get { return Interlocked.Read(ref count); }
+        }
+
+        public void Increment()
+        {
+            if (MetricsRegistry.Enabled)
+            {
+                Interlocked.Increment(ref count);
+            }
+        }
+
+        public void Add(long delta)
+        {
+            if (MetricsRegistry.Enabled)
+            {
+                Interlocked.Add(ref count, delta);
+            }
+        }
+
+        internal void Reset()
+        {
+            Interlocked.Exchange(ref count, 0L);
+        }
+
+        public override String ToString()
+        {
+            return name + ':' + Count;
+        }
+    }
+
+}
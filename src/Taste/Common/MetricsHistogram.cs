@@ -0,0 +1,146 @@
+/*
+ * Copyright 2005 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+namespace Taste.Common
+{
+    using System;
+    using System.Diagnostics;
+    using System.Threading;
+
+
+    /// <summary>
+    /// <p>A distribution of values, such as latencies or result sizes, registered with a
+    /// <see cref="MetricsRegistry"/> and backed by <see cref="LatencyHistogram"/>s.</p>
+    ///
+    /// <p>To time an operation, call <see cref="Start()"/> before it and pass the result to
+    /// <see cref="Stop(long)"/> after it; latencies are recorded in microseconds. While
+    /// <see cref="MetricsRegistry.Enabled"/> is <code>false</code>, <see cref="Start()"/> returns 0 without reading
+    /// the clock and nothing is recorded.</p>
+    ///
+    /// <p>Values are recorded into one of several histograms chosen by thread, each with its own lock, so threads
+    /// rarely contend. <see cref="Snapshot()"/> merges them.</p>
+    /// </summary>
+    public sealed class MetricsHistogram
+    {
+        private const int MAX_STRIPES = 16;
+
+        private readonly String name;
+        private readonly String unit;
+        private readonly LatencyHistogram[] stripes;
+        private readonly int stripeMask;
+
+        internal MetricsHistogram(String name, String unit)
+        {
+            this.name = name;
+            this.unit = unit;
+            int numStripes = 1;
+            while (numStripes < Environment.ProcessorCount && numStripes < MAX_STRIPES)
+            {
+                numStripes <<= 1;
+            }
+            this.stripes = new LatencyHistogram[numStripes];
+            for (int i = 0; i < numStripes; i++)
+            {
+                stripes[i] = new LatencyHistogram();
+            }
+            this.stripeMask = numStripes - 1;
+        }
+
+        public String Name
+        {
+            get { return name; }
+        }
+
+        /// <summary>Unit of recorded values, such as "us"</summary>
+        public String Unit
+        {
+            get { return unit; }
+        }
+
+        /// <returns>a timestamp to pass to <see cref="Stop(long)"/>, or 0 if metrics are disabled</returns>
+        public long Start()
+        {
+            return MetricsRegistry.Enabled ? Stopwatch.GetTimestamp() : 0L;
+        }
+
+        /// <summary>
+        /// Records the time since <code>startTimestamp</code>, unless it is 0.
+        /// </summary>
+        public void Stop(long startTimestamp)
+        {
+            if (startTimestamp != 0L)
+            {
+                long end = Stopwatch.GetTimestamp();
+                LatencyHistogram stripe = CurrentStripe();
+                lock (stripe)
+                {
+                    stripe.RecordElapsed(startTimestamp, end);
+                }
+            }
+        }
+
+        /// <summary>
+        /// Records one value, if metrics are enabled.
+        /// </summary>
+        public void Record(long value)
+        {
+            if (MetricsRegistry.Enabled)
+            {
+                LatencyHistogram stripe = CurrentStripe();
+                lock (stripe)
+                {
+                    stripe.Record(value);
+                }
+            }
+        }
+
+        /// <returns>a new histogram holding everything recorded so far</returns>
+        public LatencyHistogram Snapshot()
+        {
+            LatencyHistogram result = new LatencyHistogram();
+            foreach (LatencyHistogram stripe in stripes)
+            {
+                lock (stripe)
+                {
+                    result.Merge(stripe);
+                }
+            }
+            return result;
+        }
+
+        internal void Reset()
+        {
+            foreach (LatencyHistogram stripe in stripes)
+            {
+                lock (stripe)
+                {
+                    stripe.Reset();
+                }
+            }
+        }
+
+        private LatencyHistogram CurrentStripe()
+        {
+            return stripes[Thread.CurrentThread.ManagedThreadId & stripeMask];
+        }
+
+        public override String ToString()
+        {
+            return name + '[' + unit + "]:" + Snapshot();
+        }
+    }
+
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2005 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+namespace Taste.Common
+{
+    using System;
+    using System.IO;
+    using System.Net;
+    using System.Text;
+    using System.Threading;
+    using log4net;
+
+
+    /// <summary>
+    /// <p>Serves <see cref="MetricsRegistry.WriteTo(TextWriter)"/> output as <code>text/plain</code> over HTTP,
+    /// for collectors that poll. Requests are answered one at a time on a background thread.</p>
+    /// </summary>
+    public sealed class MetricsHttpEndpoint : IDisposable
+    {
+        private static readonly ILog log = LogManager.GetLogger(typeof(MetricsHttpEndpoint));
+
+        private readonly MetricsRegistry registry;
+        private readonly HttpListener listener;
+        private readonly Thread thread;
+
+        /// <param name="registry">metrics to serve</param>
+        /// <param name="prefix">an <see cref="HttpListener"/> prefix such as
+        /// <code>http://localhost:8090/metrics/</code></param>
+        public MetricsHttpEndpoint(MetricsRegistry registry, String prefix)
+        {
+            if (registry == null || prefix == null)
+            {
+                throw new ArgumentNullException("registry or prefix is null");
+            }
+            this.registry = registry;
+            this.listener = new HttpListener();
+            listener.Prefixes.Add(prefix);
+            listener.Start();
+            this.thread = new Thread(Serve);
+            thread.IsBackground = true;
+            thread.Name = "MetricsHttpEndpoint";
+            thread.Start();
+            log.Info("Serving metrics at " + prefix);
+        }
+
+        private void Serve()
+        {
+            while (true)
+            {
+                HttpListenerContext context;
+                try
+                {
+                    context = listener.GetContext();
+                }
+                catch (HttpListenerException)
+                {
+                    return; // listener was closed
+                }
+                catch (ObjectDisposedException)
+                {
+                    return;
+                }
+                catch (InvalidOperationException)
+                {
+                    return;
+                }
+                try
+                {
+                    byte[] body = Encoding.UTF8.GetBytes(registry.ToText());
+                    HttpListenerResponse response = context.Response;
+                    response.ContentType = "text/plain; version=0.0.4; charset=utf-8";
+                    response.ContentLength64 = body.Length;
+                    response.OutputStream.Write(body, 0, body.Length);
+                    response.Close();
+                }
+                catch (Exception e)
+                {
+                    log.Warn("Error while serving metrics", e);
+                }
+            }
+        }
+
+        public void Dispose()
+        {
+            listener.Close();
+            thread.Join();
+        }
+    }
+
+}
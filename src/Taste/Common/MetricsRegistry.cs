@@ -0,0 +1,209 @@
+/*
+ * Copyright 2005 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+namespace Taste.Common
+{
+    using System;
+    using System.Collections.Generic;
+    using System.Globalization;
+    using System.IO;
+    using System.Text;
+
+
+    /// <summary>
+    /// <p>Named <see cref="MetricsCounter"/>s and <see cref="MetricsHistogram"/>s. Data models, correlations,
+    /// neighborhoods and recommenders register theirs with <see cref="Default"/> and keep them in static fields,
+    /// so recording is just a field access.</p>
+    ///
+    /// <p>Recording is off until <see cref="Enabled"/> is set. While off, instrumented code pays for a volatile
+    /// read per call and does not read the clock or allocate.</p>
+    ///
+    /// <p><see cref="WriteTo(TextWriter)"/> dumps every metric as plain text, one value per line, in the exposition
+    /// format Prometheus understands; <see cref="MetricsHttpEndpoint"/> serves the same text over HTTP for
+    /// pull-style collectors.</p>
+    /// </summary>
+    public sealed class MetricsRegistry
+    {
+        private static readonly MetricsRegistry defaultRegistry = new MetricsRegistry();
+        private static volatile bool enabled;
+
+        private static readonly double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+        private readonly SortedDictionary<String, Object> metrics;
+
+        public MetricsRegistry()
+        {
+            this.metrics = new SortedDictionary<String, Object>(StringComparer.Ordinal);
+        }
+
+        /// <summary>Registry used by the library's own instrumentation</summary>
+        public static MetricsRegistry Default
+        {
+            get { return defaultRegistry; }
+        }
+
+        /// <summary>Turns recording on or off for all registries</summary>
+        public static bool Enabled
+        {
+            get { return enabled; }
+            set { enabled = value; }
+        }
+
+        /// <summary>
+        /// Returns the counter with this name, creating it if needed.
+        /// </summary>
+        /// <exception cref="ArgumentException">if the name is taken by a histogram</exception>
+        public MetricsCounter GetCounter(String name)
+        {
+            if (name == null)
+            {
+                throw new ArgumentNullException("name is null");
+            }
+            lock (metrics)
+            {
+                Object metric;
+                if (!metrics.TryGetValue(name, out metric))
+                {
+                    metric = new MetricsCounter(name);
+                    metrics.Add(name, metric);
+                }
+                MetricsCounter counter = metric as MetricsCounter;
+                if (counter == null)
+                {
+                    throw new ArgumentException("Not a counter: " + name);
+                }
+                return counter;
+            }
+        }
+
+        /// <summary>
+        /// Returns the histogram with this name, creating it if needed.
+        /// </summary>
+        /// <param name="name">metric name</param>
+        /// <param name="unit">unit of recorded values, such as "us" for timings</param>
+        /// <exception cref="ArgumentException">if the name is taken by a counter</exception>
+        public MetricsHistogram GetHistogram(String name, String unit)
+        {
+            if (name == null || unit == null)
+            {
+                throw new ArgumentNullException("name or unit is null");
+            }
+            lock (metrics)
+            {
+                Object metric;
+                if (!metrics.TryGetValue(name, out metric))
+                {
+                    metric = new MetricsHistogram(name, unit);
+                    metrics.Add(name, metric);
+                }
+                MetricsHistogram histogram = metric as MetricsHistogram;
+                if (histogram == null)
+                {
+                    throw new ArgumentException("Not a histogram: " + name);
+                }
+                return histogram;
+            }
+        }
+
+        /// <summary>
+        /// Zeroes every metric. Metrics stay registered.
+        /// </summary>
+        public void Reset()
+        {
+            foreach (Object metric in Metrics())
+            {
+                if (metric is MetricsCounter)
+                {
+                    ((MetricsCounter) metric).Reset();
+                }
+                else
+                {
+                    ((MetricsHistogram) metric).Reset();
+                }
+            }
+        }
+
+        /// <summary>
+        /// <p>Writes all metrics in name order. A counter named <code>ado.rows</code> becomes
+        /// <code>taste_ado_rows_total</code>; a histogram named <code>ado.getUser</code> in unit <code>us</code>
+        /// becomes a summary <code>taste_ado_getUser_us</code> with quantiles, <code>_count</code>, <code>_sum</code>
+        /// and <code>_max</code>.</p>
+        /// </summary>
+        public void WriteTo(TextWriter writer)
+        {
+            if (writer == null)
+            {
+                throw new ArgumentNullException("writer is null");
+            }
+            foreach (Object metric in Metrics())
+            {
+                MetricsCounter counter = metric as MetricsCounter;
+                if (counter != null)
+                {
+                    String name = "taste_" + Sanitize(counter.Name) + "_total";
+                    writer.Write("# TYPE " + name + " counter\n");
+                    writer.Write(name + ' ' + counter.Count.ToString(CultureInfo.InvariantCulture) + '\n');
+                    continue;
+                }
+                MetricsHistogram histogram = (MetricsHistogram) metric;
+                String histogramName = "taste_" + Sanitize(histogram.Name) + '_' + Sanitize(histogram.Unit);
+                LatencyHistogram snapshot = histogram.Snapshot();
+                writer.Write("# TYPE " + histogramName + " summary\n");
+                foreach (double quantile in QUANTILES)
+                {
+                    writer.Write(histogramName + "{quantile=\"" + quantile.ToString(CultureInfo.InvariantCulture) +
+                                 "\"} " + snapshot.GetPercentile(quantile * 100.0).ToString(CultureInfo.InvariantCulture) +
+                                 '\n');
+                }
+                double sum = snapshot.Count == 0L ? 0.0 : snapshot.Mean * snapshot.Count;
+                writer.Write(histogramName + "_count " + snapshot.Count.ToString(CultureInfo.InvariantCulture) + '\n');
+                writer.Write(histogramName + "_sum " + Math.Round(sum).ToString(CultureInfo.InvariantCulture) + '\n');
+                writer.Write(histogramName + "_max " + snapshot.Max.ToString(CultureInfo.InvariantCulture) + '\n');
+            }
+        }
+
+        public String ToText()
+        {
+            StringWriter writer = new StringWriter(CultureInfo.InvariantCulture);
+            WriteTo(writer);
+            return writer.ToString();
+        }
+
+        private List<Object> Metrics()
+        {
+            lock (metrics)
+            {
+                return new List<Object>(metrics.Values);
+            }
+        }
+
+        private static String Sanitize(String name)
+        {
+            StringBuilder result = new StringBuilder(name.Length);
+            foreach (char c in name)
+            {
+                result.Append((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') ? c : '_');
+            }
+            return result.ToString();
+        }
+
+        public override String ToString()
+        {
+            return "MetricsRegistry[metrics:" + Metrics().Count + ']';
+        }
+    }
+
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright 2005 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+namespace Taste.Common
+{
+    using System;
+    using System.Threading;
+
+
+    /// <summary>
+    /// <p>Small helpers for running CPU-bound work on several threads at once.</p>
+    /// </summary>
+    public sealed class ParallelUtils
+    {
+        private ParallelUtils()
+        {
+        }
+
+        /// <summary>
+        /// Default degree of parallelism: the number of processors.
+        /// </summary>
+        public static int DefaultThreads
+        {
+            get { return Environment.ProcessorCount; }
+        }
+
+        /// <summary>
+        /// <p>Runs <code>body</code> on <code>numThreads</code> threads, passing each its index from
+        /// 0 to <code>numThreads - 1</code>, and waits for all of them. With one thread, <code>body</code> simply
+        /// runs on the calling thread.</p>
+        /// </summary>
+        /// <exception cref="TasteException">wrapping the first exception thrown by any of the threads</exception>
+        public static void Run(int numThreads, Action<int> body)
+        {
+            if (body == null)
+            {
+                throw new ArgumentNullException("body is null");
+            }
+            if (numThreads < 1)
+            {
+                throw new ArgumentException("numThreads must be at least 1");
+            }
+            if (numThreads == 1)
+            {
+                body(0);
+                return;
+            }
+
+            Exception failure = null;
+            Thread[] threads = new Thread[numThreads];
+            for (int i = 0; i < numThreads; i++)
+            {
+                int threadIndex = i;
+                threads[i] = new Thread(delegate()
+                {
+                    try
+                    {
+                        body(threadIndex);
+                    }
+                    catch (Exception e)
+                    {
+                        Interlocked.CompareExchange<Exception>(ref failure, e, null);
+                    }
+                });
+                threads[i].IsBackground = true;
+                threads[i].Start();
+            }
+            foreach (Thread thread in threads)
+            {
+                thread.Join();
+            }
+            if (failure != null)
+            {
+                throw new TasteException("Parallel task failed", failure);
+            }
+        }
+
+        /// <summary>
+        /// <p>Runs <code>body</code> once for every index from <code>from</code> (inclusive) to <code>to</code>
+        /// (exclusive), spreading indices over <code>numThreads</code> threads. Indices are handed out dynamically
+        /// in small chunks, so uneven amounts of work per index still balance out.</p>
+        /// </summary>
+        /// <exception cref="TasteException">wrapping the first exception thrown by <code>body</code></exception>
+        public static void For(int from, int to, int numThreads, Action<int> body)
+        {
+            if (body == null)
+            {
+                throw new ArgumentNullException("body is null");
+            }
+            if (to <= from)
+            {
+                return;
+            }
+            int count = to - from;
+            int threads = Math.Min(numThreads, count);
+            int chunk = Math.Max(1, Math.Min(64, count / (threads * 8)));
+            int next = from;
+            Run(threads, delegate(int threadIndex)
+            {
+                while (true)
+                {
+                    int start = Interlocked.Add(ref next, chunk) - chunk;
+                    if (start >= to)
+                    {
+                        break;
+                    }
+                    int end = Math.Min(to, start + chunk);
+                    for (int i = start; i < end; i++)
+                    {
+                        body(i);
+                    }
+                }
+            });
+        }
+
+        /// <summary>
+        /// <p>Runs <code>body</code> once for every index from 0 to <code>count - 1</code>, with at most
+        /// <code>maxConcurrency</code> indices in progress at once: the calling thread works alongside up to
+        /// <code>maxConcurrency - 1</code> <see cref="ThreadPool"/> threads. Unlike <see cref="For"/>, no threads are
+        /// started, which suits short, request-scoped work that mostly waits, such as issuing several database
+        /// queries at once. Pool threads that only get started after all indices are taken do nothing.</p>
+        /// </summary>
+        /// <exception cref="TasteException">wrapping the first exception thrown by <code>body</code>; indices not yet
+        /// started are then skipped</exception>
+        public static void FanOut(int count, int maxConcurrency, Action<int> body)
+        {
+            if (body == null)
+            {
+                throw new ArgumentNullException("body is null");
+            }
+            if (maxConcurrency < 1)
+            {
+                throw new ArgumentException("maxConcurrency must be at least 1");
+            }
+            int workers = Math.Min(maxConcurrency, count);
+            if (workers <= 1)
+            {
+                for (int i = 0; i < count; i++)
+                {
+                    body(i);
+                }
+                return;
+            }
+            FanOutState state = new FanOutState(count, body);
+            for (int i = 1; i < workers; i++)
+            {
+                ThreadPool.QueueUserWorkItem(state.Help);
+            }
+            state.RunIndices();
+            Exception failure = state.Finish();
+            if (failure != null)
+            {
+                throw new TasteException("Parallel task failed", failure);
+            }
+        }
+
+        private sealed class FanOutState
+        {
+            private readonly int count;
+            private readonly Action<int> body;
+            private int next;
+            private Exception failure;
+            private int activeHelpers;
+            private bool finished;
+
+            internal FanOutState(int count, Action<int> body)
+            {
+                this.count = count;
+                this.body = body;
+            }
+
+            internal void Help(Object ignored)
+            {
+                lock (this)
+                {
+                    if (finished)
+                    {
+                        return;
+                    }
+                    activeHelpers++;
+                }
+                try
+                {
+                    RunIndices();
+                }
+                finally
+                {
+                    lock (this)
+                    {
+                        if (--activeHelpers == 0)
+                        {
+                            Monitor.PulseAll(this);
+                        }
+                    }
+                }
+            }
+
+            internal void RunIndices()
+            {
+                int i;
+                while ((i = Interlocked.Increment(ref next) - 1) < count)
+                {
+                    try
+                    {
+                        body(i);
+                    }
+                    catch (Exception e)
+                    {
+                        Interlocked.CompareExchange<Exception>(ref failure, e, null);
+                        // Make other workers stop taking indices
+                        Interlocked.Exchange(ref next, count);
+                        return;
+                    }
+                }
+            }
+
+            /// <summary>
+            /// Called by the caller once it has run out of indices: waits for helpers still running, and makes
+            /// helpers that have not started yet exit at once.
+            /// </summary>
+            /// <returns>first failure, if any</returns>
+            internal Exception Finish()
+            {
+                lock (this)
+                {
+                    finished = true;
+                    while (activeHelpers > 0)
+                    {
+                        Monitor.Wait(this);
+                    }
+                    return failure;
+                }
+            }
+        }
+    }
+
+}
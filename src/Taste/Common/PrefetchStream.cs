@@ -0,0 +1,229 @@
+/*
+ * Copyright 2007 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+namespace Taste.Common
+{
+	using System;
+	using System.IO;
+	using System.Threading;
+
+
+    /// <summary>
+    /// <p>Reads another stream ahead on a background thread, in blocks, so that producing the data, such as
+    /// decompressing it, overlaps with consuming it. At most a fixed number of blocks are read ahead; the blocks
+    /// are reused. Exceptions from the other stream surface from <see cref="Read(byte[], int, int)"/> as
+    /// <see cref="IOException"/>s. Not safe for use by several readers at once.</p>
+    /// </summary>
+	public sealed class PrefetchStream : Stream
+	{
+		private const int DEFAULT_BLOCK_BYTES = 1 << 16;
+		private const int DEFAULT_BLOCKS = 8;
+
+		private readonly Stream source;
+		private readonly BlockingQueue<Block> filled;
+		private readonly BlockingQueue<Block> free;
+		private readonly Thread thread;
+		private volatile Exception failure;
+		private Block current;
+		private int currentOffset;
+		private bool ended;
+
+		public PrefetchStream(Stream source)
+			: this(source, DEFAULT_BLOCK_BYTES, DEFAULT_BLOCKS)
+		{
+		}
+
+		/// <param name="source">stream to read ahead; disposed with this one</param>
+		/// <param name="blockBytes">size of each block</param>
+		/// <param name="blocks">number of blocks to read ahead</param>
+		public PrefetchStream(Stream source, int blockBytes, int blocks)
+		{
+			if (source == null)
+			{
+				throw new ArgumentNullException("source is null");
+			}
+			if (blockBytes < 1 || blocks < 1)
+			{
+				throw new ArgumentException("blockBytes and blocks must be at least 1");
+			}
+			this.source = source;
+			this.filled = new BlockingQueue<Block>(blocks);
+			this.free = new BlockingQueue<Block>(blocks + 1);
+			// One more block than can be queued, for the reader to hold
+			for (int i = 0; i <= blocks; i++)
+			{
+				free.Enqueue(new Block(blockBytes));
+			}
+			this.thread = new Thread(Produce);
+			thread.IsBackground = true;
+			thread.Name = "PrefetchStream";
+			thread.Start();
+		}
+
+		public override int Read(byte[] buffer, int offset, int count)
+		{
+			if (count == 0 || ended)
+			{
+				return 0;
+			}
+			if (current == null || currentOffset == current.count)
+			{
+				if (current != null)
+				{
+					free.Enqueue(current);
+					current = null;
+				}
+				if (!filled.TryDequeue(out current))
+				{
+					current = null;
+					ended = true;
+					if (failure != null)
+					{
+						throw new IOException("Reading ahead failed", failure);
+					}
+					return 0;
+				}
+				currentOffset = 0;
+			}
+			int read = Math.Min(count, current.count - currentOffset);
+			Buffer.BlockCopy(current.data, currentOffset, buffer, offset, read);
+			currentOffset += read;
+			return read;
+		}
+
+		private void Produce()
+		{
+			try
+			{
+				Block block;
+				while (free.TryDequeue(out block))
+				{
+					block.count = 0;
+					int read;
+					while (block.count < block.data.Length &&
+					       (read = source.Read(block.data, block.count, block.data.Length - block.count)) > 0)
+					{
+						block.count += read;
+					}
+					if (block.count == 0)
+					{
+						break;
+					}
+					filled.Enqueue(block);
+					if (block.count < block.data.Length)
+					{
+						break;
+					}
+				}
+			}
+			catch (IllegalStateException)
+			{
+				// Closed by the reader
+			}
+			catch (Exception e)
+			{
+				failure = e;
+			}
+			finally
+			{
+				filled.Close();
+			}
+		}
+
+		public override bool CanRead
+		{
+			get { return true; }
+		}
+
+		public override bool CanSeek
+		{
+			get { return false; }
+		}
+
+		public override bool CanWrite
+		{
+			get { return false; }
+		}
+
+		public override long Length
+		{
+			get { throw new NotSupportedException(); }
+		}
+
+		public override long Position
+		{
+			get { throw new NotSupportedException(); }
+			set { throw new NotSupportedException(); }
+		}
+
+		public override void Flush()
+		{
+		}
+
+		public override long Seek(long offset, SeekOrigin origin)
+		{
+			throw new NotSupportedException();
+		}
+
+		public override void SetLength(long value)
+		{
+			throw new NotSupportedException();
+		}
+
+		public override void Write(byte[] buffer, int offset, int count)
+		{
+			throw new NotSupportedException();
+		}
+
+		/// <summary>
+		/// Stops reading ahead, waiting for a read of the other stream in progress to finish, and disposes the
+		/// other stream.
+		/// </summary>
+		protected override void Dispose(bool disposing)
+		{
+			try
+			{
+				if (disposing)
+				{
+					free.Abort();
+					filled.Abort();
+					thread.Join();
+					source.Close();
+				}
+			}
+			finally
+			{
+				base.Dispose(disposing);
+			}
+		}
+
+		#region Helper classes
+
+		private sealed class Block
+		{
+			internal readonly byte[] data;
+			internal int count;
+
+			internal Block(int size)
+			{
+				this.data = new byte[size];
+			}
+		}
+
+		#endregion
+	}
+
+}
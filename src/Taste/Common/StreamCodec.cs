@@ -0,0 +1,40 @@
+/*
+ * Copyright 2007 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+namespace Taste.Common
+{
+	using System;
+	using System.IO;
+
+
+    /// <summary>
+    /// <p>A compression format that input files may be stored in, recognized by file extension. Register
+    /// implementations with <see cref="StreamCodecs.Register(StreamCodec)"/>; gzip is built in, as
+    /// <see cref="GzipCodec"/>.</p>
+    /// </summary>
+	public interface StreamCodec
+	{
+        /// <summary>File extension of compressed files, with its dot, such as ".gz"</summary>
+		String Extension { get; }
+
+        /// <summary>
+        /// Wraps a stream of compressed data in one that reads the decompressed data. Disposing the returned
+        /// stream must dispose <code>compressed</code>.
+        /// </summary>
+		Stream Decompress(Stream compressed);
+	}
+
+}
@@ -0,0 +1,319 @@
+/*
+ * Copyright 2007 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+namespace Taste.Common
+{
+	using System;
+	using System.Collections.Generic;
+	using System.IO;
+	using System.Threading;
+
+
+    /// <summary>
+    /// <p>Opens input files that may be compressed, choosing a <see cref="StreamCodec"/> by file extension.
+    /// <see cref="GzipCodec"/> is registered from the start; others, such as one for zstd, can be added with
+    /// <see cref="Register(StreamCodec)"/>. Files with no registered extension are read as they are.</p>
+    /// </summary>
+	public sealed class StreamCodecs
+	{
+		private const int FILE_BUFFER_BYTES = 1 << 16;
+
+		private static readonly List<StreamCodec> codecs = new List<StreamCodec>();
+
+		static StreamCodecs()
+		{
+			codecs.Add(new GzipCodec());
+		}
+
+		private StreamCodecs()
+		{
+		}
+
+		/// <summary>
+		/// Adds a codec, replacing any registered for the same extension.
+		/// </summary>
+		public static void Register(StreamCodec codec)
+		{
+			if (codec == null || String.IsNullOrEmpty(codec.Extension))
+			{
+				throw new ArgumentNullException("codec or its extension is null");
+			}
+			lock (codecs)
+			{
+				codecs.RemoveAll(delegate(StreamCodec registered)
+				{
+					return String.Equals(registered.Extension, codec.Extension, StringComparison.OrdinalIgnoreCase);
+				});
+				codecs.Add(codec);
+			}
+		}
+
+		/// <returns>codec for the file's extension, or <code>null</code> if the file is not compressed</returns>
+		public static StreamCodec ForPath(String path)
+		{
+			if (path == null)
+			{
+				throw new ArgumentNullException("path is null");
+			}
+			lock (codecs)
+			{
+				foreach (StreamCodec codec in codecs)
+				{
+					if (path.EndsWith(codec.Extension, StringComparison.OrdinalIgnoreCase))
+					{
+						return codec;
+					}
+				}
+			}
+			return null;
+		}
+
+		/// <returns>the path without the extension of its codec, if any</returns>
+		public static String StripExtension(String path)
+		{
+			StreamCodec codec = ForPath(path);
+			return codec == null ? path : path.Substring(0, path.Length - codec.Extension.Length);
+		}
+
+		/// <returns><code>path</code> if that file exists, or else the first existing compressed version of it,
+		/// such as <code>path + ".gz"</code>, or <code>null</code> if there is none</returns>
+		public static String FindFile(String path)
+		{
+			if (path == null)
+			{
+				throw new ArgumentNullException("path is null");
+			}
+			if (File.Exists(path))
+			{
+				return path;
+			}
+			lock (codecs)
+			{
+				foreach (StreamCodec codec in codecs)
+				{
+					String compressed = path + codec.Extension;
+					if (File.Exists(compressed))
+					{
+						return compressed;
+					}
+				}
+			}
+			return null;
+		}
+
+		/// <summary>
+		/// Opens a file for reading, decompressing it if it has a codec's extension. Decompression runs on a
+		/// separate thread, a few blocks ahead of the reader; see <see cref="PrefetchStream"/>.
+		/// </summary>
+		public static Stream OpenRead(String path)
+		{
+			StreamCodec codec = ForPath(path);
+			Stream file = OpenFile(path);
+			if (codec == null)
+			{
+				return file;
+			}
+			try
+			{
+				return new PrefetchStream(codec.Decompress(file));
+			}
+			catch
+			{
+				file.Close();
+				throw;
+			}
+		}
+
+		/// <summary>
+		/// <p>Passes each file's decompressed content to <code>body</code>, in the given order, on the calling
+		/// thread. Meanwhile up to <code>numThreads</code> threads read and decompress the files that come next,
+		/// at most <code>2 * numThreads</code> files ahead, each wholly into memory; so this suits many files of
+		/// moderate size, such as an archive split into parts.</p>
+		/// </summary>
+		/// <exception cref="IOException">if a file cannot be read</exception>
+		public static void ReadAll(IList<String> paths, int numThreads, Action<String, Stream> body)
+		{
+			if (paths == null || body == null)
+			{
+				throw new ArgumentNullException("paths or body is null");
+			}
+			if (numThreads < 1)
+			{
+				throw new ArgumentException("numThreads must be at least 1");
+			}
+			if (numThreads == 1 || paths.Count <= 1)
+			{
+				foreach (String path in paths)
+				{
+					using (Stream stream = OpenRead(path))
+					{
+						body(path, stream);
+					}
+				}
+				return;
+			}
+
+			OrderedReads reads = new OrderedReads(paths, 2 * numThreads);
+			Thread[] threads = new Thread[Math.Min(numThreads, paths.Count)];
+			for (int i = 0; i < threads.Length; i++)
+			{
+				threads[i] = new Thread(reads.Work);
+				threads[i].IsBackground = true;
+				threads[i].Name = "StreamCodecs.ReadAll";
+				threads[i].Start();
+			}
+			try
+			{
+				for (int i = 0; i < paths.Count; i++)
+				{
+					using (MemoryStream stream = new MemoryStream(reads.Take(i), false))
+					{
+						body(paths[i], stream);
+					}
+				}
+			}
+			finally
+			{
+				reads.Stop();
+				foreach (Thread thread in threads)
+				{
+					thread.Join();
+				}
+			}
+		}
+
+		private static Stream OpenFile(String path)
+		{
+			return new FileStream(path, FileMode.Open, FileAccess.Read, FileShare.Read, FILE_BUFFER_BYTES,
+			                      FileOptions.SequentialScan);
+		}
+
+		/// <returns>the whole decompressed content of the file</returns>
+		private static byte[] ReadFully(String path)
+		{
+			StreamCodec codec = ForPath(path);
+			Stream file = OpenFile(path);
+			using (Stream stream = codec == null ? file : codec.Decompress(file))
+			{
+				MemoryStream content = codec == null ? new MemoryStream((int) file.Length) : new MemoryStream();
+				byte[] buffer = new byte[FILE_BUFFER_BYTES];
+				int read;
+				while ((read = stream.Read(buffer, 0, buffer.Length)) > 0)
+				{
+					content.Write(buffer, 0, read);
+				}
+				return content.Length == content.Capacity ? content.GetBuffer() : content.ToArray();
+			}
+		}
+
+		#region Helper classes
+
+		/// <summary>
+		/// Hands out files to reading threads in order, no further than a window ahead of the consumer, and
+		/// hands their contents to the consumer in order.
+		/// </summary>
+		private sealed class OrderedReads
+		{
+			private readonly IList<String> paths;
+			private readonly byte[][] contents;
+			private readonly int window;
+			private int next;
+			private int taken;
+			private bool stopped;
+			private Exception failure;
+			private int failedIndex = -1;
+
+			internal OrderedReads(IList<String> paths, int window)
+			{
+				this.paths = paths;
+				this.contents = new byte[paths.Count][];
+				this.window = window;
+			}
+
+			internal void Work()
+			{
+				while (true)
+				{
+					int index;
+					lock (this)
+					{
+						while (!stopped && failure == null && next < paths.Count && next >= taken + window)
+						{
+							Monitor.Wait(this);
+						}
+						if (stopped || failure != null || next >= paths.Count)
+						{
+							return;
+						}
+						index = next++;
+					}
+					byte[] content;
+					try
+					{
+						content = ReadFully(paths[index]);
+					}
+					catch (Exception e)
+					{
+						lock (this)
+						{
+							failure = e;
+							failedIndex = index;
+							Monitor.PulseAll(this);
+						}
+						return;
+					}
+					lock (this)
+					{
+						contents[index] = content;
+						Monitor.PulseAll(this);
+					}
+				}
+			}
+
+			internal byte[] Take(int index)
+			{
+				lock (this)
+				{
+					while (contents[index] == null && failure == null)
+					{
+						Monitor.Wait(this);
+					}
+					byte[] content = contents[index];
+					if (content == null)
+					{
+						throw new IOException("Could not read " + paths[failedIndex], failure);
+					}
+					contents[index] = null;
+					taken = index + 1;
+					Monitor.PulseAll(this);
+					return content;
+				}
+			}
+
+			internal void Stop()
+			{
+				lock (this)
+				{
+					stopped = true;
+					Monitor.PulseAll(this);
+				}
+			}
+		}
+
+		#endregion
+	}
+
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2005 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+namespace Taste.Common
+{
+    using System;
+    using System.Diagnostics;
+
+
+    /// <summary>
+    /// <p>Emits structured trace events for the expensive phases of the library — model loads and refreshes,
+    /// database queries, and recommend/estimate calls — through a <see cref="TraceSource"/> named
+    /// <see cref="SOURCE_NAME"/>, so that a profiler or event collector can line latency spikes up with them.</p>
+    ///
+    /// <p>The source is off unless configured. To record events with ETW, add an
+    /// <code>System.Diagnostics.Eventing.EventProviderTraceListener</code> to the "Taste" source with
+    /// <code>switchValue="Information"</code> in the application configuration file; any other
+    /// <see cref="TraceListener"/> works too. While the source is off, <see cref="Start()"/> returns 0 and the event
+    /// methods return at once without allocating.</p>
+    ///
+    /// <p>Each event is written with <see cref="TraceSource.TraceData(TraceEventType, int, object[])"/>; the event
+    /// ID identifies its kind and the data is the event's fields in the order documented on each method. Durations
+    /// are in microseconds.</p>
+    /// </summary>
+    public sealed class TasteEvents
+    {
+        public const String SOURCE_NAME = "Taste";
+
+        public const int MODEL_LOAD = 1;
+        public const int QUERY = 2;
+        public const int RECOMMEND = 3;
+        public const int ESTIMATE = 4;
+
+        private static readonly TraceSource source = new TraceSource(SOURCE_NAME, SourceLevels.Off);
+        private static readonly double MICROS_PER_TICK = 1000000.0 / Stopwatch.Frequency;
+
+        private TasteEvents()
+        {
+        }
+
+        public static TraceSource Source
+        {
+            get { return source; }
+        }
+
+        public static bool Enabled
+        {
+            get { return source.Switch.ShouldTrace(TraceEventType.Information); }
+        }
+
+        /// <returns>a timestamp to pass to an event method, or 0 if events are off</returns>
+        public static long Start()
+        {
+            return Enabled ? Stopwatch.GetTimestamp() : 0L;
+        }
+
+        /// <summary>
+        /// A data model finished loading or refreshing. Fields: model, phase ("load" or "refresh"), rows,
+        /// duration.
+        /// </summary>
+        public static void ModelLoaded(String model, bool refresh, long rows, long startTimestamp)
+        {
+            if (startTimestamp != 0L)
+            {
+                source.TraceData(TraceEventType.Information, MODEL_LOAD,
+                                 model, refresh ? "refresh" : "load", rows, Elapsed(startTimestamp));
+            }
+        }
+
+        /// <summary>
+        /// A database query completed. Fields: query ID (such as "getUser"), rows, duration.
+        /// </summary>
+        public static void Query(String queryID, long rows, long startTimestamp)
+        {
+            if (startTimestamp != 0L)
+            {
+                source.TraceData(TraceEventType.Information, QUERY, queryID, rows, Elapsed(startTimestamp));
+            }
+        }
+
+        /// <summary>
+        /// A recommender produced recommendations. Fields: recommender, user ID, candidate items, neighborhood
+        /// size (-1 if not neighborhood-based), recommendations, duration.
+        /// </summary>
+        public static void Recommended(String recommender, Object userID, int candidates, int neighborhoodSize,
+                                       int recommended, long startTimestamp)
+        {
+            if (startTimestamp != 0L)
+            {
+                source.TraceData(TraceEventType.Information, RECOMMEND, recommender, userID, candidates,
+                                 neighborhoodSize, recommended, Elapsed(startTimestamp));
+            }
+        }
+
+        /// <summary>
+        /// A recommender estimated a preference. Fields: recommender, user ID, item ID, neighborhood size (-1 if
+        /// not neighborhood-based), duration.
+        /// </summary>
+        public static void Estimated(String recommender, Object userID, Object itemID, int neighborhoodSize,
+                                     long startTimestamp)
+        {
+            if (startTimestamp != 0L)
+            {
+                source.TraceData(TraceEventType.Information, ESTIMATE, recommender, userID, itemID, neighborhoodSize,
+                                 Elapsed(startTimestamp));
+            }
+        }
+
+        private static long Elapsed(long startTimestamp)
+        {
+            return (long) ((Stopwatch.GetTimestamp() - startTimestamp) * MICROS_PER_TICK);
+        }
+    }
+
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright 2005 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+namespace Taste.Common
+{
+    using System;
+    using System.Collections.Generic;
+
+
+    /// <summary>
+    /// <p>Keeps the <code>n</code> highest-scoring things offered to it, in a bounded min-heap held in parallel
+    /// arrays. Offering a candidate allocates nothing; the heap root is the current n-th best score, so most
+    /// candidates are rejected with one comparison.</p>
+    ///
+    /// <p>Among equal scores, the candidate offered first ranks higher, and a candidate that only ties the current
+    /// n-th best is not taken. Each candidate gets a sequence number for this purpose; callers that score partitions
+    /// of a candidate list separately and <see cref="Merge(TopNCollector{T})"/> the results can pass each candidate's
+    /// position as its sequence number to get exactly the order a single pass would give.</p>
+    ///
+    /// <p>Storage grows with the number of things held, so <code>n</code> may be as large as
+    /// <code>int.MaxValue</code> to mean "all of them, sorted". Instances are not thread-safe, but may be reused
+    /// after <see cref="Reset()"/>.</p>
+    /// </summary>
+    public sealed class TopNCollector<T>
+    {
+        private const int INITIAL_LENGTH = 16;
+
+        private readonly int capacity;
+        private T[] things;
+        private double[] scores;
+        private long[] sequences;
+        private int size;
+        private long nextSequence;
+
+        public TopNCollector(int n)
+        {
+            if (n < 1)
+            {
+                throw new ArgumentException("n must be at least 1");
+            }
+            this.capacity = n;
+            int initialLength = Math.Min(n, INITIAL_LENGTH);
+            this.things = new T[initialLength];
+            this.scores = new double[initialLength];
+            this.sequences = new long[initialLength];
+        }
+
+        public int Count
+        {
+            get { return size; }
+        }
+
+        public bool IsFull
+        {
+            get { return size == capacity; }
+        }
+
+        /// <summary>
+        /// Lowest score a candidate must beat to be taken, or negative infinity while not full.
+        /// </summary>
+        public double Threshold
+        {
+            get { return size < capacity ? Double.NegativeInfinity : scores[0]; }
+        }
+
+        /// <summary>
+        /// Offers a candidate, numbered after all previous ones.
+        /// </summary>
+        /// <returns><code>true</code> if it is now among the top n</returns>
+        public bool Offer(T thing, double score)
+        {
+            return Offer(thing, score, nextSequence++);
+        }
+
+        /// <summary>
+        /// Offers a candidate with an explicit sequence number; lower numbers win ties.
+        /// NaN scores are ignored.
+        /// </summary>
+        /// <returns><code>true</code> if it is now among the top n</returns>
+        public bool Offer(T thing, double score, long sequence)
+        {
+            if (Double.IsNaN(score))
+            {
+                return false;
+            }
+            if (sequence >= nextSequence)
+            {
+                nextSequence = sequence + 1;
+            }
+            if (size < capacity)
+            {
+                if (size == things.Length)
+                {
+                    Grow();
+                }
+                things[size] = thing;
+                scores[size] = score;
+                sequences[size] = sequence;
+                SiftUp(size++);
+                return true;
+            }
+            if (score < scores[0] || (score == scores[0] && sequence > sequences[0]))
+            {
+                return false;
+            }
+            things[0] = thing;
+            scores[0] = score;
+            sequences[0] = sequence;
+            SiftDown(0);
+            return true;
+        }
+
+        /// <summary>
+        /// Offers everything held by another collector, keeping their sequence numbers.
+        /// </summary>
+        public void Merge(TopNCollector<T> other)
+        {
+            for (int i = 0; i < other.size; i++)
+            {
+                Offer(other.things[i], other.scores[i], other.sequences[i]);
+            }
+        }
+
+        /// <summary>
+        /// Empties the collector so it can be used again.
+        /// </summary>
+        public void Reset()
+        {
+            Array.Clear(things, 0, size);
+            size = 0;
+            nextSequence = 0L;
+        }
+
+        /// <summary>
+        /// Returns the collected things, best first, along with their scores, and empties the collector.
+        /// </summary>
+        /// <param name="resultScores">receives the score of each returned thing</param>
+        public T[] Drain(out double[] resultScores)
+        {
+            int count = size;
+            T[] result = new T[count];
+            resultScores = new double[count];
+            // Popping the min repeatedly yields worst first; fill from the back
+            for (int i = count - 1; i >= 0; i--)
+            {
+                result[i] = things[0];
+                resultScores[i] = scores[0];
+                size--;
+                if (size > 0)
+                {
+                    Move(size, 0);
+                    SiftDown(0);
+                }
+                things[size] = default(T);
+            }
+            nextSequence = 0L;
+            return result;
+        }
+
+        /// <summary>
+        /// Returns the collected things, best first, and empties the collector.
+        /// </summary>
+        public List<T> Drain()
+        {
+            double[] ignored;
+            return new List<T>(Drain(out ignored));
+        }
+
+        /// <returns><code>true</code> if the thing at heap position a ranks below the one at b</returns>
+        private bool Worse(int a, int b)
+        {
+            return scores[a] < scores[b] || (scores[a] == scores[b] && sequences[a] > sequences[b]);
+        }
+
+        private void SiftUp(int i)
+        {
+            while (i > 0)
+            {
+                int parent = (i - 1) >> 1;
+                if (!Worse(i, parent))
+                {
+                    break;
+                }
+                Swap(i, parent);
+                i = parent;
+            }
+        }
+
+        private void SiftDown(int i)
+        {
+            while (true)
+            {
+                int left = (i << 1) + 1;
+                if (left >= size)
+                {
+                    break;
+                }
+                int right = left + 1;
+                int worst = right < size && Worse(right, left) ? right : left;
+                if (!Worse(worst, i))
+                {
+                    break;
+                }
+                Swap(i, worst);
+                i = worst;
+            }
+        }
+
+        private void Grow()
+        {
+            int newLength = (int) Math.Min((long) capacity, 2L * things.Length);
+            Array.Resize(ref things, newLength);
+            Array.Resize(ref scores, newLength);
+            Array.Resize(ref sequences, newLength);
+        }
+
+        private void Swap(int a, int b)
+        {
+            T thing = things[a];
+            things[a] = things[b];
+            things[b] = thing;
+            double score = scores[a];
+            scores[a] = scores[b];
+            scores[b] = score;
+            long sequence = sequences[a];
+            sequences[a] = sequences[b];
+            sequences[b] = sequence;
+        }
+
+        private void Move(int from, int to)
+        {
+            things[to] = things[from];
+            scores[to] = scores[from];
+            sequences[to] = sequences[from];
+        }
+
+        public override String ToString()
+        {
+            return "TopNCollector[n:" + capacity + ", count:" + size + ']';
+        }
+    }
+
+}
@@ -29,6 +29,8 @@ namespace Taste.Correlation
     /// Compute an inferred preference for a {@link User} and an {@link Item}
     /// that the user has not expressed any preference for. This is an average of other preferences scores
     /// from that user, for example. This technique is sometimes called "default voting".
+    /// Averages are computed per user as needed, or read from a
+    /// <see cref="taste.Model.DataModelStatistics">DataModelStatistics</see> passed to the constructor.
     /// 
     /// author Sean Owen
     /// </summary>
@@ -37,6 +39,7 @@ namespace Taste.Correlation
 		private static readonly SoftCacheRetriever<User, Double> RETRIEVER = new PrefRetriever();
 
 		private readonly SoftCache<User, Double> averagePreferenceValue;
+		private readonly DataModelStatistics statistics;
 
 		public AveragingPreferenceInferrer(DataModel dataModel) 
 		{
@@ -44,6 +47,15 @@ namespace Taste.Correlation
 			Refresh();
 		}
 
+		public AveragingPreferenceInferrer(DataModelStatistics statistics) 
+		{
+			if (statistics == null) 
+			{
+				throw new ArgumentNullException("statistics is null");
+			}
+			this.statistics = statistics;
+		}
+
 
         public double InferPreference(User user,Item item) 
 		{
@@ -51,13 +63,25 @@ namespace Taste.Correlation
 			{
 				throw new ArgumentNullException("user or item is null");
 			}
+			if (statistics != null) 
+			{
+				double mean = statistics.GetUserMean(user.ID);
+				return double.IsNaN(mean) ? 0.0 : mean;
+			}
 			return averagePreferenceValue.Get(user);
 		}
 
 
 		public void Refresh() 
 		{
-			averagePreferenceValue.Clear();
+			if (statistics != null) 
+			{
+				statistics.Refresh();
+			}
+			else
+			{
+				averagePreferenceValue.Clear();
+			}
         }
 
         #region PrefRetriever
@@ -50,9 +50,13 @@ namespace Taste.Correlation
     ///
     /// author Sean Owen
     /// </summary>
-	public sealed class PearsonCorrelation : UserCorrelation, ItemCorrelation 
+	public sealed class PearsonCorrelation : UserCorrelation, PreferenceItemCorrelation 
 	{
 		private static readonly ILog log = LogManager.GetLogger(typeof(PearsonCorrelation));	
+		private static readonly MetricsHistogram userCorrelationTime =
+			MetricsRegistry.Default.GetHistogram("correlation.user", "us");
+		private static readonly MetricsHistogram itemCorrelationTime =
+			MetricsRegistry.Default.GetHistogram("correlation.item", "us");
 		private readonly DataModel dataModel;		
 		private PreferenceInferrer inferrer;		
 		private PreferenceTransform2 prefTransform;
@@ -164,13 +168,15 @@ namespace Taste.Correlation
 			{
 				throw new ArgumentNullException("user1 or user2 is null");
 			}
+			long start = userCorrelationTime.Start();
 
             Preference[] xPrefs = user1.GetPreferencesAsArray();
             Preference[] yPrefs = user2.GetPreferencesAsArray();
 
             if (xPrefs.Length == 0 || yPrefs.Length == 0) 
             {
-                 return Double.NaN; 	                                         
+                userCorrelationTime.Stop(start);
+                return Double.NaN;
             }
 
             Preference xPref = xPrefs[0];
@@ -278,6 +284,7 @@ namespace Taste.Correlation
             {
 				result = NormalizeWeightResult(result, count, dataModel.GetNumItems());
 			}
+			userCorrelationTime.Stop(start);
 
 			if (log.IsDebugEnabled) 
             {
@@ -294,12 +301,21 @@ namespace Taste.Correlation
             {
 				throw new ArgumentNullException("item1 or item2 is null");
 			}
+			return GetItemCorrelation(item1, dataModel.GetPreferencesForItemAsArray(item1.ID),
+			                          item2, dataModel.GetPreferencesForItemAsArray(item2.ID));
+		}
 
-            Preference[] xPrefs = dataModel.GetPreferencesForItemAsArray(item1.ID);
-            Preference[] yPrefs = dataModel.GetPreferencesForItemAsArray(item2.ID);
+        public double GetItemCorrelation(Item item1, Preference[] xPrefs, Item item2, Preference[] yPrefs) 
+        {
+			if (item1 == null || item2 == null || xPrefs == null || yPrefs == null) 
+            {
+				throw new ArgumentNullException("item1, item2 or their preferences are null");
+			}
+			long start = itemCorrelationTime.Start();
 
             if (xPrefs.Length == 0 || yPrefs.Length == 0)
             {
+				itemCorrelationTime.Stop(start);
 				return Double.NaN;
 			}
 
@@ -374,6 +390,7 @@ namespace Taste.Correlation
             {
 				result = NormalizeWeightResult(result, count, dataModel.GetNumUsers());
 			}
+			itemCorrelationTime.Stop(start);
 
 			if (log.IsDebugEnabled) 
             {
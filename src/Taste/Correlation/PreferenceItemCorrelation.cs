@@ -0,0 +1,45 @@
+/*
+ * Copyright 2005 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+namespace Taste.Correlation
+{
+	using System;
+	using Taste.Model;
+
+
+    /// <summary>
+    /// <p>An <see cref="ItemCorrelation">ItemCorrelation</see> computed from the items' preferences in the
+    /// <see cref="taste.Model.DataModel">DataModel</see>. Callers that already hold those preferences can pass
+    /// them in, so that the correlation does not read them from the model again; an item-based recommender
+    /// over an <see cref="taste.Model.ADODataModel">ADODataModel</see> uses this to fetch each item once.</p>
+    ///
+    /// <p>Correlations that don't read item preferences, like a precomputed
+    /// <see cref="GenericItemCorrelation">GenericItemCorrelation</see>, should not implement this.</p>
+    /// </summary>
+	public interface PreferenceItemCorrelation : ItemCorrelation
+	{
+        /// <summary>
+        /// Returns the same value as <see cref="ItemCorrelation.GetItemCorrelation(Item, Item)"/> would for the given
+        /// preferences.
+        /// </summary>
+        /// <param name="item1">first item</param>
+        /// <param name="prefs1">first item's preferences, ordered by user as
+        /// <see cref="taste.Model.DataModel.GetPreferencesForItemAsArray(Object)"/> returns them</param>
+        /// <param name="item2">second item</param>
+        /// <param name="prefs2">second item's preferences, ordered by user</param>
+		double GetItemCorrelation(Item item1, Preference[] prefs1, Item item2, Preference[] prefs2);
+	}
+}
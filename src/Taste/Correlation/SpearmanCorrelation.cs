@@ -21,29 +21,73 @@ namespace Taste.Correlation
 	using Taste.Common;
 	using Taste.Model;
 	using Taste.Transforms;
+	using log4net;
 
 
     /// <summary>
     /// <p>Like <see cref="taste.Correlation.PearsonCorrelation">PearsonCorrelation</see>, but compares relative ranking of preference 
     /// values instead of preference values themselves. That is, each <see cref="taste.Model.User">User</see>'s preferences are sorted and 
-    /// then assign a rank as their preference value, with 1 being assigned to the least preferred item. Then the Pearson itemCorrelation of 
-    /// these rank values is computed.</p>
+    /// then assign a rank as their preference value, with 1 being assigned to the least preferred item. Tied values share the
+    /// mean of the ranks they span. Then the Pearson itemCorrelation of these rank values is computed.</p>
+    ///
+    /// <p>Created over a <see cref="taste.Model.DataModel">DataModel</see>, this keeps each user's ranks as two
+    /// arrays ordered by item, of item indices and of ranks, in a <see cref="taste.Common.ConcurrentCache">ConcurrentCache</see>
+    /// charged to <see cref="taste.Common.MemoryBudget.Default">MemoryBudget.Default</see>, and correlates two users
+    /// by merging their arrays directly, without allocating. That makes it about as fast as Pearson, where it used
+    /// to rank both users again for every pair. A user's ranks are recomputed after a
+    /// <see cref="taste.Model.PreferenceChangeSource">PreferenceChangeSource</see> model reports a change to them, and all
+    /// ranks after <see cref="Refresh()"/>, since a model need not report changes it did not make itself, such as
+    /// rows another process wrote to a database. <see cref="Dispose()"/> stops listening to the model, which
+    /// otherwise keeps this instance reachable. Users are looked up in the cache by ID, so a
+    /// <see cref="taste.Model.User">User</see> passed in should be the model's; users the model does not have are ranked
+    /// on each call. Item indices come from <see cref="taste.Model.IDIndex.ForItems(DataModel)">IDIndex.ForItems()</see>
+    /// unless another <see cref="taste.Model.ItemIndexer">ItemIndexer</see> is given; one that puts items rated by the
+    /// same users close together, like <see cref="taste.Model.IDOrdering.ItemsByCoRating">IDOrdering.ItemsByCoRating()</see>,
+    /// keeps each user's indices in a narrower range.</p>
+    ///
+    /// <p>With a <see cref="PreferenceInferrer"/>, or a <see cref="UserCorrelation"/> given to rank with, ranked copies of the
+    /// two users are handed to that correlation on each call instead.</p>
     ///
     /// author Sean Owen
     /// </summary>
-	public class SpearmanCorrelation : UserCorrelation 
+	public class SpearmanCorrelation : UserCorrelation, PreferenceChangeListener, IDisposable
 	{
+		private static readonly ILog log = LogManager.GetLogger(typeof(SpearmanCorrelation));
+		private static readonly MetricsHistogram correlationTime =
+			MetricsRegistry.Default.GetHistogram("correlation.spearman", "us");
+
 		private UserCorrelation rankingUserCorrelation;
 		private ReentrantLock refreshLock;
+		private readonly DataModel dataModel;
+		private readonly ConcurrentCache<Object, RankRow> rows;
+		private readonly ItemIndexer itemIndexer;
+		private volatile IDIndex itemIndex;
+		private volatile bool hasInferrer;
 
 		public SpearmanCorrelation(DataModel dataModel) 
+			: this(dataModel, IDIndex.ForItems)
+		{
+		}
+
+		/// <param name="itemIndexer">builds the item index that ranks are kept over, at first use and again after
+		/// items appear or a refresh</param>
+		public SpearmanCorrelation(DataModel dataModel, ItemIndexer itemIndexer) 
 		{
-			if (dataModel == null) 
+			if (dataModel == null || itemIndexer == null) 
 			{
-				throw new ArgumentNullException("dataModel is null");
+				throw new ArgumentNullException("dataModel or itemIndexer is null");
 			}
+			this.itemIndexer = itemIndexer;
 			this.rankingUserCorrelation = new PearsonCorrelation(dataModel);
 			this.refreshLock = new ReentrantLock();
+			this.dataModel = dataModel;
+			this.rows = new ConcurrentCache<Object, RankRow>(new RankRowRetriever(this));
+			rows.ChargeTo(MemoryBudget.Default, "SpearmanCorrelation ranks", new RankRowSizer());
+			PreferenceChangeSource changeSource = dataModel as PreferenceChangeSource;
+			if (changeSource != null)
+			{
+				changeSource.AddPreferenceChangeListener(this);
+			}
 		}
 
 		public SpearmanCorrelation(UserCorrelation rankingUserCorrelation) 
@@ -62,14 +106,52 @@ namespace Taste.Correlation
             {
 				throw new ArgumentNullException("user1 or user2 is null");
 			}
-			return rankingUserCorrelation.GetUserCorrelation(new RankedPreferenceUser(user1),
-			                                              new RankedPreferenceUser(user2));
+			if (rows == null || hasInferrer)
+			{
+				return rankingUserCorrelation.GetUserCorrelation(new RankedPreferenceUser(user1),
+				                                              new RankedPreferenceUser(user2));
+			}
+			long start = correlationTime.Start();
+			IDIndex index = CurrentItemIndex();
+			double result = Correlate(RowFor(user1, index), RowFor(user2, index));
+			correlationTime.Stop(start);
+			if (log.IsDebugEnabled) 
+            {
+				log.Debug("UserCorrelation between " + user1 + " and " + user2 + " is " + result);
+			}
+			return result;
 		}
 
 
         public PreferenceInferrer PreferenceInferrer 
 		{
-            set { rankingUserCorrelation.PreferenceInferrer = value; }
+            set
+            {
+                rankingUserCorrelation.PreferenceInferrer = value;
+                hasInferrer = value != null;
+            }
+		}
+
+
+		/// <summary>
+		/// Forgets the ranks of users whose preferences changed, so that they are ranked again when next needed.
+		/// </summary>
+		public void PreferencesChanged(IList<PreferenceChange> changes)
+		{
+			if (rows == null)
+			{
+				return;
+			}
+			IDIndex index = itemIndex;
+			foreach (PreferenceChange change in changes)
+			{
+				rows.Remove(change.UserID);
+				if (index != null && !index.Contains(change.ItemID))
+				{
+					ReplaceItemIndex(index);
+					index = null;
+				}
+			}
 		}
 
 
@@ -81,6 +163,7 @@ namespace Taste.Correlation
                 {
                     refreshLock.Lock();
                     rankingUserCorrelation.Refresh();
+                    ClearRanks();
                 }
                 finally
                 {
@@ -89,11 +172,261 @@ namespace Taste.Correlation
             }
         }
 
-        #region RankedPreferenceUser
+		/// <summary>
+		/// Stops listening to the model and drops all ranks.
+		/// </summary>
+		public void Dispose()
+		{
+			PreferenceChangeSource changeSource = dataModel as PreferenceChangeSource;
+			if (changeSource != null)
+			{
+				changeSource.RemovePreferenceChangeListener(this);
+			}
+			ClearRanks();
+		}
+
+		private void ClearRanks()
+		{
+			if (rows != null)
+			{
+				itemIndex = null;
+				rows.Clear();
+			}
+		}
+
+		/// <returns>the model's items, indexed; built when first needed and again after items appear</returns>
+		private IDIndex CurrentItemIndex()
+		{
+			IDIndex index = itemIndex;
+			if (index == null)
+			{
+				lock (rows)
+				{
+					index = itemIndex;
+					if (index == null)
+					{
+						index = itemIndexer(dataModel);
+						itemIndex = index;
+					}
+				}
+			}
+			return index;
+		}
+
+		/// <summary>
+		/// Drops <code>stale</code> unless it was already replaced. Rows built over it are rebuilt as they are used.
+		/// </summary>
+		private void ReplaceItemIndex(IDIndex stale)
+		{
+			lock (rows)
+			{
+				if (itemIndex == stale)
+				{
+					itemIndex = null;
+				}
+			}
+		}
+
+		/// <returns>the user's ranks over <code>index</code>, cached if the user is in the model</returns>
+		private RankRow RowFor(User user, IDIndex index)
+		{
+			RankRow row;
+			try
+			{
+				row = rows.Get(user.ID);
+				if (row.index != index)
+				{
+					// Built over an index since replaced
+					rows.Remove(user.ID);
+					row = rows.Get(user.ID);
+				}
+			}
+			catch (TasteException te)
+			{
+				// Coalesced loads report the retriever's exception as the cause
+				if (!(te is NoSuchElementException) && !(te.InnerException is NoSuchElementException))
+				{
+					throw;
+				}
+				return new RankRow(user, index);
+			}
+			if (row.index != index)
+			{
+				// The index was replaced again meanwhile; rank this once over the one this call uses
+				return new RankRow(user, index);
+			}
+			if (row.hasUnknownItems)
+			{
+				// The model has items the index lacks, which this call can't match; later calls will
+				ReplaceItemIndex(index);
+			}
+			return row;
+		}
+
+		/// <returns>Pearson correlation of the ranks of items in both rows, centered as
+		/// <see cref="PearsonCorrelation"/> centers them</returns>
+		private static double Correlate(RankRow x, RankRow y)
+		{
+			int[] xItems = x.items;
+			int[] yItems = y.items;
+			double[] xRanks = x.ranks;
+			double[] yRanks = y.ranks;
+			double sumX = 0.0;
+			double sumX2 = 0.0;
+			double sumY = 0.0;
+			double sumY2 = 0.0;
+			double sumXY = 0.0;
+			int count = 0;
+			int i = 0;
+			int j = 0;
+			while (i < xItems.Length && j < yItems.Length)
+			{
+				int xItem = xItems[i];
+				int yItem = yItems[j];
+				if (xItem < yItem)
+				{
+					i++;
+				}
+				else if (xItem > yItem)
+				{
+					j++;
+				}
+				else
+				{
+					double xRank = xRanks[i++];
+					double yRank = yRanks[j++];
+					sumXY += xRank * yRank;
+					sumX += xRank;
+					sumX2 += xRank * xRank;
+					sumY += yRank;
+					sumY2 += yRank * yRank;
+					count++;
+				}
+			}
+			if (count == 0)
+			{
+				return Double.NaN;
+			}
+
+			double n = (double) count;
+			double meanX = sumX / n;
+			double meanY = sumY / n;
+			double centeredSumXY = sumXY - meanY * sumX - meanX * sumY + n * meanX * meanY;
+			double centeredSumX2 = sumX2 - 2.0 * meanX * sumX + n * meanX * meanX;
+			double centeredSumY2 = sumY2 - 2.0 * meanY * sumY + n * meanY * meanY;
+			double denominator = Math.Sqrt(centeredSumX2) * Math.Sqrt(centeredSumY2);
+			if (denominator == 0.0)
+			{
+				// One or both users rated all common items alike
+				return Double.NaN;
+			}
+			return centeredSumXY / denominator;
+		}
+
+		/// <returns>the rank of each preference among all of them, 1 for the lowest value, ties sharing the mean
+		/// of the ranks they span</returns>
+		private static double[] ComputeRanks(Preference[] prefs)
+		{
+			int length = prefs.Length;
+			double[] values = new double[length];
+			int[] order = new int[length];
+			for (int i = 0; i < length; i++)
+			{
+				values[i] = prefs[i].Value;
+				order[i] = i;
+			}
+			Array.Sort(values, order);
+			double[] ranks = new double[length];
+			int start = 0;
+			while (start < length)
+			{
+				int end = start + 1;
+				while (end < length && values[end] == values[start])
+				{
+					end++;
+				}
+				// Positions start .. end-1 hold ranks start+1 .. end
+				double rank = (start + 1 + end) / 2.0;
+				for (int k = start; k < end; k++)
+				{
+					ranks[order[k]] = rank;
+				}
+				start = end;
+			}
+			return ranks;
+		}
+
+        #region Helper classes
 
         /// <summary>
-        /// <p>A simple <see cref="taste.Model.User"/>User</see> decorator which will always 
-        /// return the underlying <see cref="taste.Model.User"/>User</see>'s preferences in order by value.</p>
+        /// One user's ranks, by ascending item index. Preferences for items the index lacks are ranked with the
+        /// rest but left out.
+        /// </summary>
+        private sealed class RankRow
+        {
+            internal readonly IDIndex index;
+            internal readonly int[] items;
+            internal readonly double[] ranks;
+            internal readonly bool hasUnknownItems;
+
+            internal RankRow(User user, IDIndex index)
+            {
+                Preference[] prefs = user.GetPreferencesAsArray();
+                double[] prefRanks = ComputeRanks(prefs);
+                int[] items = new int[prefs.Length];
+                double[] ranks = new double[prefs.Length];
+                int count = 0;
+                for (int i = 0; i < prefs.Length; i++)
+                {
+                    int item = index.IndexOf(prefs[i].Item.ID);
+                    if (item < 0)
+                    {
+                        hasUnknownItems = true;
+                        continue;
+                    }
+                    items[count] = item;
+                    ranks[count] = prefRanks[i];
+                    count++;
+                }
+                if (count < prefs.Length)
+                {
+                    Array.Resize(ref items, count);
+                    Array.Resize(ref ranks, count);
+                }
+                Array.Sort(items, ranks);
+                this.index = index;
+                this.items = items;
+                this.ranks = ranks;
+            }
+        }
+
+        private sealed class RankRowRetriever : SoftCacheRetriever<Object, RankRow>
+        {
+            private readonly SpearmanCorrelation correlation;
+
+            internal RankRowRetriever(SpearmanCorrelation correlation)
+            {
+                this.correlation = correlation;
+            }
+
+            public RankRow GetValue(Object userID)
+            {
+                return new RankRow(correlation.dataModel.GetUser(userID), correlation.CurrentItemIndex());
+            }
+        }
+
+        private sealed class RankRowSizer : CacheWeigher<Object, RankRow>
+        {
+            public long Weigh(Object userID, RankRow row)
+            {
+                return MemoryBudget.ObjectBytes(3 * MemoryBudget.REFERENCE_BYTES + 1) +
+                       MemoryBudget.ArrayBytes(row.items.Length, 4) + MemoryBudget.ArrayBytes(row.ranks.Length, 8);
+            }
+        }
+
+        /// <summary>
+        /// <p>A simple <see cref="taste.Model.User"/>User</see> decorator whose preferences are the underlying
+        /// <see cref="taste.Model.User"/>User</see>'s, with ranks for values.</p>
         /// </summary>
 		private class RankedPreferenceUser : User 
 		{
@@ -119,31 +452,21 @@ namespace Taste.Correlation
 
 			public IEnumerable<Preference> GetPreferences()
 			{
-				// todo: cache this
-                Preference[] source = delegateUser.GetPreferencesAsArray();
-                int length = source.Length;
-                Preference[] sortedPrefs = new Preference[length];
-                Array.Copy(source, sortedPrefs, length);
-				for (int i = 0; i < length; i++) 
-				{
-					Item item = sortedPrefs[i].Item;
-					sortedPrefs[i] = new GenericPreference(this, item, (double) (i + 1));
-				}
-                Array.Sort<Preference>(sortedPrefs, ByValuePreferenceComparer.Instance);
-				return sortedPrefs;
+				return GetPreferencesAsArray();
 			}
 
 
             public Preference[] GetPreferencesAsArray() 
             {
-                Preference[] sortedPrefs = delegateUser.GetPreferencesAsArray();
-                Array.Sort(sortedPrefs, ByValuePreferenceComparer.Instance);
-                for (int i = 0; i < sortedPrefs.Length; i++) 
+                // Leaves the underlying array, which may be the user's own, alone
+                Preference[] source = delegateUser.GetPreferencesAsArray();
+                double[] ranks = ComputeRanks(source);
+                Preference[] rankedPrefs = new Preference[source.Length];
+                for (int i = 0; i < source.Length; i++) 
                 {
-                    sortedPrefs[i] = new GenericPreference(this, sortedPrefs[i].Item, (double) (i + 1));
+                    rankedPrefs[i] = new GenericPreference(this, source[i].Item, ranks[i]);
                 }
-                Array.Sort(sortedPrefs, ByItemPreferenceComparer.Instance);
-                return sortedPrefs;
+                return rankedPrefs;
             }
   	 
 
@@ -172,4 +495,4 @@ namespace Taste.Correlation
         #endregion
     }
 
-}
\ No newline at end of file
+}
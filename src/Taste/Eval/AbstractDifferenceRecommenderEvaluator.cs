@@ -37,10 +37,65 @@ namespace Taste.Eval
                 typeof(AbstractDifferenceRecommenderEvaluator));
 
 		private readonly Random random;
+		private int numThreads;
+		private double stoppingMargin;
+		private int minimumEstimates;
 
 		public AbstractDifferenceRecommenderEvaluator() 
 		{
 			random = RandomUtils.GetRandom();
+			numThreads = ParallelUtils.DefaultThreads;
+			stoppingMargin = Double.NaN;
+			minimumEstimates = 1000;
+		}
+
+        /// <summary>
+        /// Threads used by <see cref="EvaluateInParallel"/>. Defaults to one per processor.
+        /// </summary>
+		public int NumThreads
+		{
+			get { return numThreads; }
+			set
+			{
+				if (value < 1)
+				{
+					throw new ArgumentException("NumThreads must be at least 1");
+				}
+				numThreads = value;
+			}
+		}
+
+        /// <summary>
+        /// <see cref="EvaluateInParallel"/> stops early once the 95% confidence margin is at most this fraction of
+        /// the score, e.g. 0.01 for 1%. NaN, the default, disables early stopping.
+        /// </summary>
+		public double StoppingMargin
+		{
+			get { return stoppingMargin; }
+			set
+			{
+				if (value <= 0.0)
+				{
+					throw new ArgumentException("StoppingMargin must be positive or NaN");
+				}
+				stoppingMargin = value;
+			}
+		}
+
+        /// <summary>
+        /// Number of estimates <see cref="EvaluateInParallel"/> makes before it considers stopping early.
+        /// </summary>
+		public int MinimumEstimates
+		{
+			get { return minimumEstimates; }
+			set
+			{
+				if (value < 2)
+				{
+					throw new ArgumentException("MinimumEstimates must be at least 2");
+				}
+				minimumEstimates = value;
+			}
 		}
 
 		/**
@@ -52,22 +107,7 @@ namespace Taste.Eval
 		                       double evaluationPercentage)
 		{
 
-			if (recommenderBuilder == null) 
-            {
-				throw new ArgumentNullException("recommenderBuilder is null");
-			}
-			if (dataModel == null) 
-            {
-				throw new ArgumentNullException("dataModel is null");
-			}
-			if (double.IsNaN(trainingPercentage) || trainingPercentage <= 0.0 || trainingPercentage >= 1.0) 
-            {
-				throw new ArgumentException("Invalid trainingPercentage: " + trainingPercentage);
-			}
-			if (double.IsNaN(evaluationPercentage) || evaluationPercentage <= 0.0 || evaluationPercentage > 1.0) 
-            {
-				throw new ArgumentException("Invalid evaluationPercentage: " + evaluationPercentage);
-			}
+			CheckArguments(recommenderBuilder, dataModel, trainingPercentage, evaluationPercentage);
 
 			log.Info("Beginning evaluation using " + trainingPercentage + " of " + dataModel);
 
@@ -118,8 +158,186 @@ namespace Taste.Eval
 			return result;
 		}
 
+		/// <summary>
+		/// <p>Like <see cref="Evaluate(RecommenderBuilder, DataModel, double, double)"/>, but faster on large data:</p>
+		/// <ul>
+		///   <li>The split into training and test data is a <see cref="taste.Model.MaskedDataModel">MaskedDataModel</see>
+		///     over <code>dataModel</code>. Which preferences are held out is decided by hashing user and item IDs, so
+		///     nothing is copied and users outside the evaluation sample stay in the training data.</li>
+		///   <li>Test users are visited in random order on <see cref="NumThreads"/> threads. The
+		///     <see cref="taste.Recommender.Recommender">Recommender</see> must be safe to use concurrently.</li>
+		///   <li>The score is accumulated as it goes, together with a 95% confidence margin. If
+		///     <see cref="StoppingMargin"/> is set, evaluation stops once the margin is small enough.</li>
+		/// </ul>
+		/// </summary>
+		public EvaluationResult EvaluateInParallel(RecommenderBuilder recommenderBuilder,
+		                                           DataModel dataModel,
+		                                           double trainingPercentage,
+		                                           double evaluationPercentage)
+		{
+			CheckArguments(recommenderBuilder, dataModel, trainingPercentage, evaluationPercentage);
+
+			log.Info("Beginning parallel evaluation using " + trainingPercentage + " of " + dataModel);
+
+			SampledMask mask = new SampledMask(random.Next(), trainingPercentage, evaluationPercentage);
+			MaskedDataModel trainingModel = new MaskedDataModel(dataModel, mask);
+			Recommender recommender = recommenderBuilder.BuildRecommender(trainingModel);
+
+			List<User> testUsers = new List<User>();
+			foreach (User user in dataModel.GetUsers())
+			{
+				if (mask.AffectsUser(user.ID) && trainingModel.ContainsUser(user.ID))
+				{
+					testUsers.Add(user);
+				}
+			}
+			// Random order, so that a partial result is an unbiased sample
+			for (int i = testUsers.Count - 1; i > 0; i--)
+			{
+				int j = random.Next(i + 1);
+				User swap = testUsers[i];
+				testUsers[i] = testUsers[j];
+				testUsers[j] = swap;
+			}
+
+			RunningMoments total = new RunningMoments();
+			bool[] stopped = new bool[1];
+			ParallelUtils.For(0, testUsers.Count, numThreads, delegate(int i)
+			{
+				if (stopped[0])
+				{
+					return;
+				}
+				User testUser = testUsers[i];
+				RunningMoments moments = new RunningMoments();
+				foreach (Preference realPref in testUser.GetPreferencesAsArray())
+				{
+					Object itemID = realPref.Item.ID;
+					if (mask.IsMasked(testUser.ID, itemID))
+					{
+						try
+						{
+							double estimatedPreference = recommender.EstimatePreference(testUser.ID, itemID);
+							if (!double.IsNaN(estimatedPreference))
+							{
+								moments.Add(ProcessDifference(realPref.Value - estimatedPreference));
+							}
+						}
+						catch (NoSuchElementException nsee)
+						{
+							log.Info("Element exists in test data but not training data: " + testUser.ID, nsee);
+						}
+					}
+				}
+				lock (total)
+				{
+					total.Merge(moments);
+					if (!double.IsNaN(stoppingMargin) && total.Count >= minimumEstimates)
+					{
+						double value = ComputeFinalEvaluation(total.Mean);
+						if (ComputeMargin(total.Mean, total.Margin) <= stoppingMargin * Math.Abs(value))
+						{
+							stopped[0] = true;
+						}
+					}
+				}
+			});
+
+			EvaluationResult result = new EvaluationResult(ComputeFinalEvaluation(total.Mean),
+			                                               ComputeMargin(total.Mean, total.Margin),
+			                                               total.Count,
+			                                               stopped[0]);
+			log.Info("Evaluation result: " + result);
+			return result;
+		}
+
 		public abstract double GetEvaluation(IDictionary<User, ICollection<Preference>> testUserPrefs, 
 		                              Recommender recommender);
 
+		/// <summary>
+		/// Maps the difference between a real and an estimated preference to the quantity that is averaged.
+		/// </summary>
+		protected abstract double ProcessDifference(double difference);
+
+		/// <summary>
+		/// Turns the average of <see cref="ProcessDifference(double)"/> values into the evaluation score.
+		/// </summary>
+		protected abstract double ComputeFinalEvaluation(double average);
+
+		/// <summary>
+		/// Turns the confidence margin of the average into a margin for the score. The default suits a score that
+		/// is the average itself.
+		/// </summary>
+		protected virtual double ComputeMargin(double average, double averageMargin)
+		{
+			return averageMargin;
+		}
+
+		private static void CheckArguments(RecommenderBuilder recommenderBuilder,
+		                                   DataModel dataModel,
+		                                   double trainingPercentage,
+		                                   double evaluationPercentage)
+		{
+			if (recommenderBuilder == null) 
+            {
+				throw new ArgumentNullException("recommenderBuilder is null");
+			}
+			if (dataModel == null) 
+            {
+				throw new ArgumentNullException("dataModel is null");
+			}
+			if (double.IsNaN(trainingPercentage) || trainingPercentage <= 0.0 || trainingPercentage >= 1.0) 
+            {
+				throw new ArgumentException("Invalid trainingPercentage: " + trainingPercentage);
+			}
+			if (double.IsNaN(evaluationPercentage) || evaluationPercentage <= 0.0 || evaluationPercentage > 1.0) 
+            {
+				throw new ArgumentException("Invalid evaluationPercentage: " + evaluationPercentage);
+			}
+		}
+
+		#region SampledMask
+
+		/// <summary>
+		/// Samples users and, for sampled users, test preferences by hashing IDs with a seed, so that the split
+		/// needs no storage and gives the same answer every time it is asked.
+		/// </summary>
+		private sealed class SampledMask : MaskedDataModel.Mask
+		{
+			private readonly long seed;
+			private readonly double trainingPercentage;
+			private readonly double evaluationPercentage;
+
+			internal SampledMask(long seed, double trainingPercentage, double evaluationPercentage)
+			{
+				this.seed = seed;
+				this.trainingPercentage = trainingPercentage;
+				this.evaluationPercentage = evaluationPercentage;
+			}
+
+			public bool AffectsUser(Object userID)
+			{
+				return evaluationPercentage >= 1.0 || Unit(userID.GetHashCode(), 0) < evaluationPercentage;
+			}
+
+			public bool IsMasked(Object userID, Object itemID)
+			{
+				return Unit(userID.GetHashCode(), itemID.GetHashCode()) >= trainingPercentage;
+			}
+
+			/// <returns>well-mixed value in [0,1) determined by the seed and the two hashes</returns>
+			private double Unit(int hash1, int hash2)
+			{
+				ulong z = (ulong) seed + (ulong) (uint) hash1 * 0x9E3779B97F4A7C15UL +
+				          (ulong) (uint) hash2 * 0xC2B2AE3D27D4EB4FUL;
+				z = (z ^ (z >> 30)) * 0xBF58476D1CE4E5B9UL;
+				z = (z ^ (z >> 27)) * 0x94D049BB133111EBUL;
+				z ^= z >> 31;
+				return (z >> 11) * (1.0 / (1UL << 53));
+			}
+		}
+
+		#endregion
+
 	}
 }
\ No newline at end of file
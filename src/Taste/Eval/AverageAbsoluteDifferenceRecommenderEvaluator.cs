@@ -65,6 +65,16 @@ namespace Taste.Eval
 		}
 
 		
+		protected override double ProcessDifference(double difference)
+		{
+			return Math.Abs(difference);
+		}
+
+		protected override double ComputeFinalEvaluation(double average)
+		{
+			return average;
+		}
+
 		public override String ToString() 
 		{
 			return "AverageAbsoluteDifferenceRecommenderEvaluator";
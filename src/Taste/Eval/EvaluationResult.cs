@@ -0,0 +1,73 @@
+/*
+ * Copyright 2007 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+namespace Taste.Eval
+{
+	using System;
+
+
+	/**
+	 * <p>Result of {@link AbstractDifferenceRecommenderEvaluator#EvaluateInParallel}: the evaluation score together
+	 * with how far it can be trusted.</p>
+	 */
+	[Serializable]
+	public sealed class EvaluationResult
+	{
+		private readonly double value;
+		private readonly double margin;
+		private readonly int count;
+		private readonly bool stoppedEarly;
+
+		public EvaluationResult(double value, double margin, int count, bool stoppedEarly)
+		{
+			this.value = value;
+			this.margin = margin;
+			this.count = count;
+			this.stoppedEarly = stoppedEarly;
+		}
+
+		/// <summary>Evaluation score; lower is better, as for {@link RecommenderEvaluator}</summary>
+		public double Value
+		{
+			get { return value; }
+		}
+
+		/// <summary>Half-width of the approximate 95% confidence interval around <code>Value</code>, or NaN</summary>
+		public double Margin
+		{
+			get { return margin; }
+		}
+
+		/// <summary>Number of estimated preferences the score is based on</summary>
+		public int Count
+		{
+			get { return count; }
+		}
+
+		/// <summary><code>true</code> if evaluation stopped before all test users were seen</summary>
+		public bool StoppedEarly
+		{
+			get { return stoppedEarly; }
+		}
+
+		public override String ToString()
+		{
+			return "EvaluationResult[value:" + value + ", margin:" + margin + ", count:" + count +
+			       (stoppedEarly ? ", stopped early]" : "]");
+		}
+	}
+
+}
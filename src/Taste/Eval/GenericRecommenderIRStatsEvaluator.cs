@@ -23,6 +23,7 @@ namespace Taste.Eval
 	using Taste.Common;
 	using Taste.Model;
 	using Taste.Recommender;
+	using log4net;
 
 
 	/**
@@ -38,11 +39,68 @@ namespace Taste.Eval
 	public class GenericRecommenderIRStatsEvaluator : RecommenderIRStatsEvaluator 
 	{
 
+		private static readonly ILog log = LogManager.GetLogger(typeof(GenericRecommenderIRStatsEvaluator));
+
 		private Random random;
+		private int numThreads;
+		private double stoppingMargin;
+		private int minimumUsers;
 
 		public GenericRecommenderIRStatsEvaluator() 
 		{
 			random = RandomUtils.GetRandom();
+			numThreads = ParallelUtils.DefaultThreads;
+			stoppingMargin = Double.NaN;
+			minimumUsers = 100;
+		}
+
+        /// <summary>
+        /// Threads used by <see cref="EvaluateInParallel"/>. Defaults to one per processor.
+        /// </summary>
+		public int NumThreads
+		{
+			get { return numThreads; }
+			set
+			{
+				if (value < 1)
+				{
+					throw new ArgumentException("NumThreads must be at least 1");
+				}
+				numThreads = value;
+			}
+		}
+
+        /// <summary>
+        /// <see cref="EvaluateInParallel"/> stops early once the 95% confidence margins of precision and recall are
+        /// both at most this fraction of their values. NaN, the default, disables early stopping.
+        /// </summary>
+		public double StoppingMargin
+		{
+			get { return stoppingMargin; }
+			set
+			{
+				if (value <= 0.0)
+				{
+					throw new ArgumentException("StoppingMargin must be positive or NaN");
+				}
+				stoppingMargin = value;
+			}
+		}
+
+        /// <summary>
+        /// Number of users <see cref="EvaluateInParallel"/> evaluates before it considers stopping early.
+        /// </summary>
+		public int MinimumUsers
+		{
+			get { return minimumUsers; }
+			set
+			{
+				if (value < 2)
+				{
+					throw new ArgumentException("MinimumUsers must be at least 2");
+				}
+				minimumUsers = value;
+			}
 		}
 
 		public IRStatistics Evaluate(RecommenderBuilder recommenderBuilder,
@@ -52,22 +110,7 @@ namespace Taste.Eval
 		                             double evaluationPercentage) 
 		{
 
-			if (recommenderBuilder == null) {
-				throw new ArgumentNullException("recommenderBuilder is null");
-			}
-			if (dataModel == null) {
-				throw new ArgumentNullException("dataModel is null");
-			}
-			if (at < 1) {
-				throw new ArgumentException("at must be at least 1");
-			}
-			if (double.IsNaN(evaluationPercentage) || evaluationPercentage <= 0.0 || evaluationPercentage > 1.0) 
-			{
-				throw new ArgumentException("Invalid evaluationPercentage: " + evaluationPercentage);
-			}
-			if (double.IsNaN(relevanceThreshold)) {
-				throw new ArgumentException("Invalid relevanceThreshold: " + evaluationPercentage);
-			}
+			CheckArguments(recommenderBuilder, dataModel, at, relevanceThreshold, evaluationPercentage);
 
 			RunningAverage precision = new FullRunningAverage();
 			RunningAverage recall = new FullRunningAverage();
@@ -143,6 +186,154 @@ namespace Taste.Eval
 
 			return new IRStatisticsImpl(precision.Average, recall.Average);
 		}
+
+		/// <summary>
+		/// <p>Like <see cref="Evaluate(RecommenderBuilder, DataModel, int, double, double)"/>, but evaluates users
+		/// on <see cref="NumThreads"/> threads, in random order. Each user's training data is a
+		/// <see cref="taste.Model.MaskedDataModel">MaskedDataModel</see> that hides that user's relevant items,
+		/// rather than a copy of every user. The <see cref="RecommenderBuilder"/> must be safe to call
+		/// concurrently. The result carries 95% confidence margins, and evaluation stops early once they are within
+		/// <see cref="StoppingMargin"/>, if set.</p>
+		/// </summary>
+		public IRStatistics EvaluateInParallel(RecommenderBuilder recommenderBuilder,
+		                                       DataModel dataModel,
+		                                       int at,
+		                                       double relevanceThreshold,
+		                                       double evaluationPercentage)
+		{
+			CheckArguments(recommenderBuilder, dataModel, at, relevanceThreshold, evaluationPercentage);
+
+			List<User> evaluatedUsers = new List<User>();
+			foreach (User user in dataModel.GetUsers())
+			{
+				if (random.NextDouble() < evaluationPercentage)
+				{
+					evaluatedUsers.Add(user);
+				}
+			}
+			for (int i = evaluatedUsers.Count - 1; i > 0; i--)
+			{
+				int j = random.Next(i + 1);
+				User swap = evaluatedUsers[i];
+				evaluatedUsers[i] = evaluatedUsers[j];
+				evaluatedUsers[j] = swap;
+			}
+
+			RunningMoments precision = new RunningMoments();
+			RunningMoments recall = new RunningMoments();
+			bool[] stopped = new bool[1];
+			ParallelUtils.For(0, evaluatedUsers.Count, numThreads, delegate(int i)
+			{
+				if (stopped[0])
+				{
+					return;
+				}
+				User user = evaluatedUsers[i];
+				Object id = user.ID;
+				ICollection<Item> relevantItems = new HashedSet<Item>();
+				foreach (Preference pref in user.GetPreferencesAsArray())
+				{
+					if (pref.Value >= relevanceThreshold)
+					{
+						relevantItems.Add(pref.Item);
+					}
+				}
+				int numRelevantItems = relevantItems.Count;
+				if (numRelevantItems == 0)
+				{
+					return;
+				}
+				MaskedDataModel trainingModel = new MaskedDataModel(dataModel, new RelevantItemsMask(id, relevantItems));
+				if (!trainingModel.ContainsUser(id))
+				{
+					return; // Oops we excluded all prefs for the user -- just move on
+				}
+				Recommender recommender = recommenderBuilder.BuildRecommender(trainingModel);
+				int intersectionSize = 0;
+				foreach (RecommendedItem recommendedItem in recommender.Recommend(id, at))
+				{
+					if (relevantItems.Contains(recommendedItem.Item))
+					{
+						intersectionSize++;
+					}
+				}
+				lock (precision)
+				{
+					precision.Add((double) intersectionSize / (double) at);
+					recall.Add((double) intersectionSize / (double) numRelevantItems);
+					if (!double.IsNaN(stoppingMargin) && precision.Count >= minimumUsers &&
+					    precision.Margin <= stoppingMargin * precision.Mean &&
+					    recall.Margin <= stoppingMargin * recall.Mean)
+					{
+						stopped[0] = true;
+					}
+				}
+			});
+
+			if (log.IsInfoEnabled)
+			{
+				log.Info("Evaluated " + precision.Count + " users" + (stopped[0] ? ", stopped early" : "") +
+				         "; precision " + precision + ", recall " + recall);
+			}
+			return new IRStatisticsImpl(precision.Mean, recall.Mean, precision.Margin, recall.Margin);
+		}
+
+		private static void CheckArguments(RecommenderBuilder recommenderBuilder,
+		                                   DataModel dataModel,
+		                                   int at,
+		                                   double relevanceThreshold,
+		                                   double evaluationPercentage)
+		{
+			if (recommenderBuilder == null) {
+				throw new ArgumentNullException("recommenderBuilder is null");
+			}
+			if (dataModel == null) {
+				throw new ArgumentNullException("dataModel is null");
+			}
+			if (at < 1) {
+				throw new ArgumentException("at must be at least 1");
+			}
+			if (double.IsNaN(evaluationPercentage) || evaluationPercentage <= 0.0 || evaluationPercentage > 1.0) 
+			{
+				throw new ArgumentException("Invalid evaluationPercentage: " + evaluationPercentage);
+			}
+			if (double.IsNaN(relevanceThreshold)) {
+				throw new ArgumentException("Invalid relevanceThreshold: " + evaluationPercentage);
+			}
+		}
+
+		#region RelevantItemsMask
+
+		/// <summary>
+		/// Hides one user's relevant items.
+		/// </summary>
+		private sealed class RelevantItemsMask : MaskedDataModel.Mask
+		{
+			private readonly Object userID;
+			private readonly HashedSet<Object> itemIDs;
+
+			internal RelevantItemsMask(Object userID, ICollection<Item> relevantItems)
+			{
+				this.userID = userID;
+				this.itemIDs = new HashedSet<Object>();
+				foreach (Item item in relevantItems)
+				{
+					itemIDs.Add(item.ID);
+				}
+			}
+
+			public bool AffectsUser(Object userID)
+			{
+				return this.userID.Equals(userID);
+			}
+
+			public bool IsMasked(Object userID, Object itemID)
+			{
+				return itemIDs.Contains(itemID);
+			}
+		}
+
+		#endregion
 	}
 	
 }
\ No newline at end of file
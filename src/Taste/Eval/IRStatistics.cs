@@ -39,6 +39,16 @@ namespace Taste.Eval
 		 */
         double Recall { get;}
 
+		/**
+		 * <p>Half-width of the approximate 95% confidence interval around {@link #Precision}, or NaN if unknown.</p>
+		 */
+        double PrecisionMargin { get;}
+
+		/**
+		 * <p>Half-width of the approximate 95% confidence interval around {@link #Recall}, or NaN if unknown.</p>
+		 */
+        double RecallMargin { get;}
+
 		/**
 		 * <p>See <a href="http://en.wikipedia.org/wiki/Information_retrieval#F-measure">F-measure</a>.</p>
 		 */
@@ -29,8 +29,15 @@ namespace Taste.Eval
 	{
 		private readonly double precision;
 		private readonly double recall;
+		private readonly double precisionMargin;
+		private readonly double recallMargin;
 
 		public IRStatisticsImpl(double precision, double recall) 
+			: this(precision, recall, Double.NaN, Double.NaN)
+		{
+		}
+
+		public IRStatisticsImpl(double precision, double recall, double precisionMargin, double recallMargin) 
 		{
 			if (precision < 0.0 || precision > 1.0) 
 			{
@@ -41,6 +48,8 @@ namespace Taste.Eval
 			}
 			this.precision = precision;
 			this.recall = recall;
+			this.precisionMargin = precisionMargin;
+			this.recallMargin = recallMargin;
 		}
 
 		public double Precision
@@ -54,6 +63,16 @@ namespace Taste.Eval
 			get {return recall;}
 		}
 
+		public double PrecisionMargin
+		{
+			get {return precisionMargin;}
+		}
+
+		public double RecallMargin
+		{
+			get {return recallMargin;}
+		}
+
 		public double GetF1Measure() 
 		{
 			return GetFNMeasure(1.0);
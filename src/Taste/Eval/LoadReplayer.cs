@@ -0,0 +1,394 @@
+/*
+ * Copyright 2007 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+namespace Taste.Eval
+{
+	using System;
+	using System.Collections.Generic;
+	using System.Diagnostics;
+	using System.Globalization;
+	using System.IO;
+	using System.Threading;
+	using Taste.Common;
+	using Taste.Recommender;
+	using log4net;
+
+
+    /// <summary>
+    /// <p>Replays a log of recommendation requests against a <see cref="Recommender"/>, to measure the capacity
+    /// of a build before it ships. Each line of the log is <code>userID,howMany,timestamp</code>, where the
+    /// timestamp is either a number of milliseconds or anything <see cref="DateTime.Parse(String)"/> reads;
+    /// requests are replayed in timestamp order. Build the recommender over whatever model production uses,
+    /// such as a <see cref="taste.Model.file.FileDataModel"/>,
+    /// <see cref="taste.Model.Netflix.NetflixDataModel"/> or <see cref="taste.Model.Ado.OleDBDataModel"/> on a
+    /// local database.</p>
+    ///
+    /// <p>Two modes:</p>
+    /// <ul>
+    ///  <li>Open loop (the default): requests are due at fixed times, either <see cref="ArrivalRate"/> per second
+    ///   or at the log's own times divided by <see cref="Speedup"/>, however slowly earlier ones complete.
+    ///   <see cref="NumThreads"/> threads issue them, so that many can be in progress at once; a request that
+    ///   finds them all busy starts late. Latency is measured from when the request was due, so time spent
+    ///   waiting behind slow requests counts, as it would for real clients.</li>
+    ///  <li>Closed loop: <see cref="NumThreads"/> clients each issue the next request as soon as their last one
+    ///   completes, which finds the highest throughput. If each client is meant to send a request every
+    ///   <see cref="ExpectedInterval"/>, latencies are corrected with
+    ///   <see cref="LatencyHistogram.RecordCorrected(long, long)"/> for the requests a slow one held back.</li>
+    /// </ul>
+    ///
+    /// <p>Requests for which the recommender throws a <see cref="TasteException"/>, such as for users it does
+    /// not know, count as errors; their latencies are recorded all the same.</p>
+    /// </summary>
+	public sealed class LoadReplayer
+	{
+		private static readonly ILog log = LogManager.GetLogger(typeof(LoadReplayer));
+
+		private readonly Recommender recommender;
+		private int numThreads;
+		private bool openLoop;
+		private double arrivalRate;
+		private double speedup;
+		private TimeSpan expectedInterval;
+		private Converter<String, Object> userIDConverter;
+
+		/// <param name="recommender">recommender to load; must be safe to use concurrently</param>
+		public LoadReplayer(Recommender recommender)
+		{
+			if (recommender == null)
+			{
+				throw new ArgumentNullException("recommender is null");
+			}
+			this.recommender = recommender;
+			this.numThreads = ParallelUtils.DefaultThreads;
+			this.openLoop = true;
+			this.speedup = 1.0;
+			this.expectedInterval = TimeSpan.Zero;
+		}
+
+		/// <summary>Threads issuing requests: most requests in progress at once, in either mode</summary>
+		public int NumThreads
+		{
+			get { return numThreads; }
+			set
+			{
+				if (value < 1)
+				{
+					throw new ArgumentException("NumThreads must be at least 1");
+				}
+				numThreads = value;
+			}
+		}
+
+		/// <summary>Whether requests are due at fixed times rather than as soon as clients are free</summary>
+		public bool OpenLoop
+		{
+			get { return openLoop; }
+			set { openLoop = value; }
+		}
+
+		/// <summary>
+		/// Requests per second in open-loop mode, ignoring the log's timestamps; 0 (the default) follows the
+		/// timestamps instead
+		/// </summary>
+		public double ArrivalRate
+		{
+			get { return arrivalRate; }
+			set
+			{
+				if (Double.IsNaN(value) || value < 0.0)
+				{
+					throw new ArgumentException("ArrivalRate must not be negative");
+				}
+				arrivalRate = value;
+			}
+		}
+
+		/// <summary>
+		/// How many times faster than logged to replay in open-loop mode, when following the log's timestamps
+		/// </summary>
+		public double Speedup
+		{
+			get { return speedup; }
+			set
+			{
+				if (Double.IsNaN(value) || value <= 0.0)
+				{
+					throw new ArgumentException("Speedup must be positive");
+				}
+				speedup = value;
+			}
+		}
+
+		/// <summary>
+		/// Intended time between one closed-loop client's requests, for correcting latencies; zero (the default)
+		/// records latencies as measured
+		/// </summary>
+		public TimeSpan ExpectedInterval
+		{
+			get { return expectedInterval; }
+			set
+			{
+				if (value < TimeSpan.Zero)
+				{
+					throw new ArgumentException("ExpectedInterval must not be negative");
+				}
+				expectedInterval = value;
+			}
+		}
+
+		/// <summary>
+		/// Turns user IDs from the log into those the recommender expects, such as <code>int</code>s for a
+		/// <see cref="taste.Model.Netflix.NetflixDataModel"/>; <code>null</code> (the default) passes them as
+		/// <code>String</code>s
+		/// </summary>
+		public Converter<String, Object> UserIDConverter
+		{
+			get { return userIDConverter; }
+			set { userIDConverter = value; }
+		}
+
+		public LoadReport Replay(String logFile)
+		{
+			if (logFile == null)
+			{
+				throw new ArgumentNullException("logFile is null");
+			}
+			using (StreamReader reader = new StreamReader(StreamCodecs.OpenRead(logFile)))
+			{
+				return Replay(ReadLog(reader));
+			}
+		}
+
+		/// <returns>requests in the log, in timestamp order; requests with equal timestamps stay in log
+		/// order</returns>
+		/// <exception cref="IOException">if a line is not <code>userID,howMany,timestamp</code></exception>
+		public static List<Request> ReadLog(TextReader reader)
+		{
+			if (reader == null)
+			{
+				throw new ArgumentNullException("reader is null");
+			}
+			List<Request> requests = new List<Request>();
+			String line;
+			int lineNumber = 0;
+			while ((line = reader.ReadLine()) != null)
+			{
+				lineNumber++;
+				if (line.Length == 0 || line[0] == '#')
+				{
+					continue;
+				}
+				String[] fields = line.Split(',');
+				int howMany;
+				long timestamp;
+				if (fields.Length != 3 || !int.TryParse(fields[1], NumberStyles.Integer, CultureInfo.InvariantCulture, out howMany) ||
+				    howMany < 1 || !TryParseTimestamp(fields[2], out timestamp))
+				{
+					throw new IOException("Bad request on line " + lineNumber + ": " + line);
+				}
+				requests.Add(new Request(fields[0], howMany, timestamp, requests.Count));
+			}
+			requests.Sort(delegate(Request a, Request b)
+			{
+				int byTime = a.timestampMillis.CompareTo(b.timestampMillis);
+				return byTime != 0 ? byTime : a.position.CompareTo(b.position);
+			});
+			return requests;
+		}
+
+		/// <summary>
+		/// Replays the requests in the given order, in the configured mode.
+		/// </summary>
+		public LoadReport Replay(IList<Request> requests)
+		{
+			if (requests == null)
+			{
+				throw new ArgumentNullException("requests is null");
+			}
+			int count = requests.Count;
+			Object[] userIDs = new Object[count];
+			int[] howMany = new int[count];
+			long[] dueOffsets = openLoop ? new long[count] : null;
+			for (int i = 0; i < count; i++)
+			{
+				Request request = requests[i];
+				userIDs[i] = userIDConverter == null ? request.UserID : userIDConverter(request.UserID);
+				howMany[i] = request.HowMany;
+				if (openLoop)
+				{
+					double seconds = arrivalRate > 0.0 ? i / arrivalRate :
+						(request.timestampMillis - requests[0].timestampMillis) / 1000.0 / speedup;
+					dueOffsets[i] = (long) (seconds * Stopwatch.Frequency);
+				}
+			}
+			log.Info("Replaying " + count + " requests against " + recommender + " on " + numThreads + " threads, " +
+			         (openLoop ? "open" : "closed") + " loop");
+
+			int threads = Math.Max(1, Math.Min(numThreads, count));
+			LatencyHistogram[] latencies = new LatencyHistogram[threads];
+			LatencyHistogram[] serviceTimes = new LatencyHistogram[threads];
+			long expectedIntervalMicros = expectedInterval.Ticks / (TimeSpan.TicksPerMillisecond / 1000L);
+			double microsPerTick = 1000000.0 / Stopwatch.Frequency;
+			int next = 0;
+			int errors = 0;
+			long start = Stopwatch.GetTimestamp();
+			ParallelUtils.Run(threads, delegate(int thread)
+			{
+				LatencyHistogram latency = new LatencyHistogram();
+				LatencyHistogram serviceTime = new LatencyHistogram();
+				latencies[thread] = latency;
+				serviceTimes[thread] = serviceTime;
+				int i;
+				while ((i = Interlocked.Increment(ref next) - 1) < count)
+				{
+					long due = 0L;
+					if (openLoop)
+					{
+						due = start + dueOffsets[i];
+						WaitUntil(due);
+					}
+					long begin = Stopwatch.GetTimestamp();
+					try
+					{
+						recommender.Recommend(userIDs[i], howMany[i]);
+					}
+					catch (TasteException te)
+					{
+						if (Interlocked.Increment(ref errors) == 1)
+						{
+							log.Warn("Request for user " + userIDs[i] + " failed; counting further failures silently", te);
+						}
+					}
+					long end = Stopwatch.GetTimestamp();
+					serviceTime.RecordElapsed(begin, end);
+					if (openLoop)
+					{
+						latency.RecordElapsed(due, end);
+					}
+					else
+					{
+						latency.RecordCorrected((long) ((end - begin) * microsPerTick), expectedIntervalMicros);
+					}
+				}
+			});
+			TimeSpan elapsed = TimeSpan.FromSeconds((double) (Stopwatch.GetTimestamp() - start) / Stopwatch.Frequency);
+
+			LatencyHistogram totalLatency = new LatencyHistogram();
+			LatencyHistogram totalServiceTime = new LatencyHistogram();
+			for (int t = 0; t < threads; t++)
+			{
+				totalLatency.Merge(latencies[t]);
+				totalServiceTime.Merge(serviceTimes[t]);
+			}
+			LoadReport report = new LoadReport(count, errors, elapsed, totalLatency, totalServiceTime);
+			log.Info(report);
+			return report;
+		}
+
+		public override String ToString()
+		{
+			return "LoadReplayer[recommender:" + recommender + ", threads:" + numThreads +
+			       (openLoop ? ", open loop" : ", closed loop") + ']';
+		}
+
+		private static bool TryParseTimestamp(String text, out long millis)
+		{
+			if (long.TryParse(text, NumberStyles.Integer, CultureInfo.InvariantCulture, out millis))
+			{
+				return true;
+			}
+			DateTime date;
+			if (DateTime.TryParse(text, CultureInfo.InvariantCulture, DateTimeStyles.AdjustToUniversal, out date))
+			{
+				millis = date.Ticks / TimeSpan.TicksPerMillisecond;
+				return true;
+			}
+			return false;
+		}
+
+		/// <summary>
+		/// Sleeps until a millisecond or so before the <see cref="Stopwatch"/> timestamp, then yields until it.
+		/// </summary>
+		private static void WaitUntil(long timestamp)
+		{
+			long remaining;
+			while ((remaining = timestamp - Stopwatch.GetTimestamp()) > 0L)
+			{
+				long millis = remaining * 1000L / Stopwatch.Frequency;
+				Thread.Sleep(millis > 1L ? (int) Math.Min(millis - 1L, Int32.MaxValue) : 0);
+			}
+		}
+
+		#region Helper classes
+
+		/// <summary>
+		/// One logged request.
+		/// </summary>
+		public sealed class Request
+		{
+			private readonly String userID;
+			private readonly int howMany;
+			internal readonly long timestampMillis;
+			internal readonly int position;
+
+			/// <param name="timestampMillis">when the request was made, in milliseconds from any fixed
+			/// point</param>
+			public Request(String userID, int howMany, long timestampMillis)
+				: this(userID, howMany, timestampMillis, 0)
+			{
+			}
+
+			internal Request(String userID, int howMany, long timestampMillis, int position)
+			{
+				if (userID == null)
+				{
+					throw new ArgumentNullException("userID is null");
+				}
+				if (howMany < 1)
+				{
+					throw new ArgumentException("howMany must be at least 1");
+				}
+				this.userID = userID;
+				this.howMany = howMany;
+				this.timestampMillis = timestampMillis;
+				this.position = position;
+			}
+
+			public String UserID
+			{
+				get { return userID; }
+			}
+
+			public int HowMany
+			{
+				get { return howMany; }
+			}
+
+			public long TimestampMillis
+			{
+				get { return timestampMillis; }
+			}
+
+			public override String ToString()
+			{
+				return "Request[user:" + userID + ", howMany:" + howMany + ", timestamp:" + timestampMillis + ']';
+			}
+		}
+
+		#endregion
+	}
+
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2007 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+namespace Taste.Eval
+{
+	using System;
+	using Taste.Common;
+
+
+    /// <summary>
+    /// <p>Outcome of a <see cref="LoadReplayer"/> run. <see cref="Latency"/> is what clients saw, including any
+    /// time a request spent due but not yet started; <see cref="ServiceTime"/> is just the time inside the
+    /// recommender. A latency well above the service time means the recommender could not keep up.</p>
+    /// </summary>
+	public sealed class LoadReport
+	{
+		private readonly int requests;
+		private readonly int errors;
+		private readonly TimeSpan elapsed;
+		private readonly LatencyHistogram latency;
+		private readonly LatencyHistogram serviceTime;
+
+		public LoadReport(int requests, int errors, TimeSpan elapsed, LatencyHistogram latency,
+		                  LatencyHistogram serviceTime)
+		{
+			if (latency == null || serviceTime == null)
+			{
+				throw new ArgumentNullException("latency or serviceTime is null");
+			}
+			this.requests = requests;
+			this.errors = errors;
+			this.elapsed = elapsed;
+			this.latency = latency;
+			this.serviceTime = serviceTime;
+		}
+
+		/// <summary>Requests replayed, including failed ones</summary>
+		public int Requests
+		{
+			get { return requests; }
+		}
+
+		/// <summary>Requests for which the recommender threw an exception</summary>
+		public int Errors
+		{
+			get { return errors; }
+		}
+
+		public TimeSpan Elapsed
+		{
+			get { return elapsed; }
+		}
+
+		/// <summary>Requests completed per second</summary>
+		public double Throughput
+		{
+			get { return elapsed.Ticks == 0L ? 0.0 : requests / elapsed.TotalSeconds; }
+		}
+
+		/// <summary>Latency as clients saw it, in microseconds, corrected for coordinated omission</summary>
+		public LatencyHistogram Latency
+		{
+			get { return latency; }
+		}
+
+		/// <summary>Time spent in the recommender, in microseconds</summary>
+		public LatencyHistogram ServiceTime
+		{
+			get { return serviceTime; }
+		}
+
+		public override String ToString()
+		{
+			return "LoadReport[requests:" + requests + ", errors:" + errors + ", elapsed:" +
+			       Math.Round(elapsed.TotalMilliseconds) + "ms, throughput:" + Math.Round(Throughput, 1) +
+			       "/s, latency:{" + latency + "}, service time:{" + serviceTime + "}]";
+		}
+	}
+
+}
@@ -0,0 +1,428 @@
+/*
+ * Copyright 2007 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+namespace Taste.Eval
+{
+	using System;
+	using System.Collections.Generic;
+	using System.Diagnostics;
+	using System.IO;
+	using System.Text;
+	using Taste.Common;
+	using Taste.Model;
+	using Taste.Recommender;
+	using log4net;
+
+
+	/**
+	 * <p>Scores a {@link Recommender} against a Netflix Prize probe file. The file is a series of blocks, each
+	 * starting with a <code>movieID:</code> line and followed by one line per customer. A line may be just
+	 * <code>customerID</code>, in which case the real rating is looked up in a {@link DataModel}, or
+	 * <code>customerID,rating[,date]</code>, as in the training files.</p>
+	 *
+	 * <p>The file is streamed; nothing but the current blocks is held in memory. One thread parses it while
+	 * {@link #NumThreads} threads each take a whole movie block at a time, so per-item state that the recommender
+	 * caches (item-item correlations, slope-one diffs and so on) is reused across that movie's customers. RMSE
+	 * is logged every {@link #ReportInterval} ratings, together with its 95% margin, throughput, and latency
+	 * percentiles.</p>
+	 *
+	 * <p>The probe ratings are also in the Netflix training set. Build the recommender over
+	 * {@link #WithoutProbe(DataModel, String)} so that it is not scored on ratings it was trained on. IDs are
+	 * passed to the recommender as <code>int</code>s, as in {@link taste.Model.Netflix.NetflixDataModel}.</p>
+	 */
+	public sealed class NetflixProbeEvaluator
+	{
+		private static readonly ILog log = LogManager.GetLogger(typeof(NetflixProbeEvaluator));
+
+		private const int BLOCKS_QUEUED_PER_THREAD = 4;
+
+		private readonly Recommender recommender;
+		private readonly DataModel actualRatings;
+		private int numThreads;
+		private int reportInterval;
+		private LatencyHistogram latency;
+		private double throughput;
+		private int unscored;
+
+        /// <param name="recommender">recommender to score; must be safe to use concurrently</param>
+        /// <param name="actualRatings">model holding the real probe ratings, used for probe lines that do not
+        /// carry one; typically the full <see cref="taste.Model.Netflix.NetflixDataModel">NetflixDataModel</see></param>
+		public NetflixProbeEvaluator(Recommender recommender, DataModel actualRatings)
+		{
+			if (recommender == null || actualRatings == null)
+			{
+				throw new ArgumentNullException("recommender or actualRatings is null");
+			}
+			this.recommender = recommender;
+			this.actualRatings = actualRatings;
+			this.numThreads = ParallelUtils.DefaultThreads;
+			this.reportInterval = 100000;
+		}
+
+		public int NumThreads
+		{
+			get { return numThreads; }
+			set
+			{
+				if (value < 1)
+				{
+					throw new ArgumentException("NumThreads must be at least 1");
+				}
+				numThreads = value;
+			}
+		}
+
+        /// <summary>Number of scored ratings between progress reports</summary>
+		public int ReportInterval
+		{
+			get { return reportInterval; }
+			set
+			{
+				if (value < 1)
+				{
+					throw new ArgumentException("ReportInterval must be at least 1");
+				}
+				reportInterval = value;
+			}
+		}
+
+        /// <summary>Per-estimate latency of the last evaluation</summary>
+		public LatencyHistogram Latency
+		{
+			get { return latency; }
+		}
+
+        /// <summary>Ratings estimated per second in the last evaluation</summary>
+		public double Throughput
+		{
+			get { return throughput; }
+		}
+
+        /// <summary>
+        /// Probe ratings the last evaluation could not score: the recommender returned NaN or did not know the
+        /// user or item, or the real rating was not found.
+        /// </summary>
+		public int Unscored
+		{
+			get { return unscored; }
+		}
+
+		public EvaluationResult Evaluate(String probeFile)
+		{
+			using (StreamReader reader = new StreamReader(probeFile, Encoding.ASCII))
+			{
+				return Evaluate(reader);
+			}
+		}
+
+        /// <returns>RMSE over all scored probe ratings, with its 95% margin</returns>
+		public EvaluationResult Evaluate(TextReader probe)
+		{
+			if (probe == null)
+			{
+				throw new ArgumentNullException("probe is null");
+			}
+			log.Info("Scoring " + recommender + " against probe data on " + numThreads + " threads");
+
+			BlockingQueue<ProbeBlock> queue = new BlockingQueue<ProbeBlock>(numThreads * BLOCKS_QUEUED_PER_THREAD);
+			Progress progress = new Progress(reportInterval);
+			ParallelUtils.Run(numThreads + 1, delegate(int threadIndex)
+			{
+				if (threadIndex == 0)
+				{
+					try
+					{
+						foreach (ProbeBlock block in ReadBlocks(probe))
+						{
+							queue.Enqueue(block);
+						}
+						queue.Close();
+					}
+					catch (Exception)
+					{
+						queue.Abort();
+						throw;
+					}
+				}
+				else
+				{
+					try
+					{
+						ProbeBlock block;
+						while (queue.TryDequeue(out block))
+						{
+							progress.Add(Score(block));
+						}
+					}
+					catch (Exception)
+					{
+						queue.Abort();
+						throw;
+					}
+				}
+			});
+
+			EvaluationResult result = progress.Finish();
+			this.latency = progress.latency;
+			this.throughput = progress.Throughput;
+			this.unscored = progress.unscored;
+			log.Info("Probe RMSE " + result + "; " + Math.Round(throughput) + " ratings/s; " + unscored +
+			         " unscored; latency " + latency);
+			return result;
+		}
+
+        /// <summary>
+        /// Returns a view of <code>dataModel</code> without the ratings listed in the probe file, for training the
+        /// recommender to evaluate. Only the (customer, movie) pairs are kept in memory, as a sorted array.
+        /// </summary>
+		public static MaskedDataModel WithoutProbe(DataModel dataModel, String probeFile)
+		{
+			List<long> pairs = new List<long>();
+			using (StreamReader reader = new StreamReader(probeFile, Encoding.ASCII))
+			{
+				foreach (ProbeBlock block in ReadBlocks(reader))
+				{
+					foreach (int userID in block.userIDs)
+					{
+						pairs.Add(ProbeMask.Key(userID, block.movieID));
+					}
+				}
+			}
+			long[] keys = pairs.ToArray();
+			Array.Sort(keys);
+			log.Info("Masking " + keys.Length + " probe ratings");
+			return new MaskedDataModel(dataModel, new ProbeMask(keys));
+		}
+
+		public override String ToString()
+		{
+			return "NetflixProbeEvaluator[recommender:" + recommender + ']';
+		}
+
+		private BlockResult Score(ProbeBlock block)
+		{
+			BlockResult result = new BlockResult();
+			Object movieID = block.movieID;
+			for (int i = 0; i < block.userIDs.Count; i++)
+			{
+				Object userID = block.userIDs[i];
+				double actual = block.ratings[i];
+				try
+				{
+					if (double.IsNaN(actual))
+					{
+						Preference pref = actualRatings.GetUser(userID).GetPreferenceFor(movieID);
+						if (pref == null)
+						{
+							result.unscored++;
+							continue;
+						}
+						actual = pref.Value;
+					}
+					long start = Stopwatch.GetTimestamp();
+					double estimate = recommender.EstimatePreference(userID, movieID);
+					result.latency.RecordElapsed(start, Stopwatch.GetTimestamp());
+					if (double.IsNaN(estimate))
+					{
+						result.unscored++;
+					}
+					else
+					{
+						double diff = actual - estimate;
+						result.squaredErrors.Add(diff * diff);
+					}
+				}
+				catch (NoSuchElementException)
+				{
+					result.unscored++;
+				}
+			}
+			return result;
+		}
+
+		private static IEnumerable<ProbeBlock> ReadBlocks(TextReader reader)
+		{
+			ProbeBlock block = null;
+			String line;
+			while ((line = reader.ReadLine()) != null)
+			{
+				line = line.Trim();
+				if (line.Length == 0)
+				{
+					continue;
+				}
+				if (line[line.Length - 1] == ':')
+				{
+					if (block != null)
+					{
+						yield return block;
+					}
+					block = new ProbeBlock(int.Parse(line.Substring(0, line.Length - 1)));
+					continue;
+				}
+				if (block == null)
+				{
+					throw new IOException("Probe data does not start with a movie line: " + line);
+				}
+				int firstComma = line.IndexOf(',');
+				if (firstComma < 0)
+				{
+					block.Add(int.Parse(line), Double.NaN);
+				}
+				else
+				{
+					int secondComma = line.IndexOf(',', firstComma + 1);
+					int end = secondComma < 0 ? line.Length : secondComma;
+					block.Add(int.Parse(line.Substring(0, firstComma)),
+					          Double.Parse(line.Substring(firstComma + 1, end - firstComma - 1)));
+				}
+			}
+			if (block != null)
+			{
+				yield return block;
+			}
+		}
+
+		#region Helper classes
+
+		private sealed class ProbeBlock
+		{
+			internal readonly int movieID;
+			internal readonly List<int> userIDs;
+			internal readonly List<double> ratings;
+
+			internal ProbeBlock(int movieID)
+			{
+				this.movieID = movieID;
+				this.userIDs = new List<int>();
+				this.ratings = new List<double>();
+			}
+
+			internal void Add(int userID, double rating)
+			{
+				userIDs.Add(userID);
+				ratings.Add(rating);
+			}
+		}
+
+		private sealed class BlockResult
+		{
+			internal readonly RunningMoments squaredErrors = new RunningMoments();
+			internal readonly LatencyHistogram latency = new LatencyHistogram();
+			internal int unscored;
+		}
+
+		/// <summary>
+		/// Merges block results from all workers and reports as it goes.
+		/// </summary>
+		private sealed class Progress
+		{
+			private readonly int reportInterval;
+			private readonly Stopwatch stopwatch;
+			private readonly RunningMoments squaredErrors;
+			internal readonly LatencyHistogram latency;
+			internal int unscored;
+			private long nextReport;
+
+			internal Progress(int reportInterval)
+			{
+				this.reportInterval = reportInterval;
+				this.stopwatch = Stopwatch.StartNew();
+				this.squaredErrors = new RunningMoments();
+				this.latency = new LatencyHistogram();
+				this.nextReport = reportInterval;
+			}
+
+			internal double Throughput
+			{
+				get { return latency.Count / Math.Max(stopwatch.Elapsed.TotalSeconds, 1e-9); }
+			}
+
+			internal void Add(BlockResult block)
+			{
+				lock (this)
+				{
+					squaredErrors.Merge(block.squaredErrors);
+					latency.Merge(block.latency);
+					unscored += block.unscored;
+					if (squaredErrors.Count >= nextReport)
+					{
+						nextReport = squaredErrors.Count + reportInterval;
+						if (log.IsInfoEnabled)
+						{
+							log.Info("Scored " + squaredErrors.Count + " ratings: RMSE " + Current() + "; " +
+							         Math.Round(Throughput) + " ratings/s; latency " + latency);
+						}
+					}
+				}
+			}
+
+			internal EvaluationResult Finish()
+			{
+				lock (this)
+				{
+					stopwatch.Stop();
+					return Current();
+				}
+			}
+
+			private EvaluationResult Current()
+			{
+				double meanSquare = squaredErrors.Mean;
+				double rmse = Math.Sqrt(meanSquare);
+				double margin = meanSquare > 0.0 ? squaredErrors.Margin / (2.0 * rmse) : squaredErrors.Margin;
+				return new EvaluationResult(rmse, margin, squaredErrors.Count, false);
+			}
+		}
+
+		/// <summary>
+		/// Hides probe (customer, movie) pairs, kept as a sorted array of <code>customer &lt;&lt; 32 | movie</code>.
+		/// </summary>
+		private sealed class ProbeMask : MaskedDataModel.Mask
+		{
+			private readonly long[] keys;
+
+			internal ProbeMask(long[] keys)
+			{
+				this.keys = keys;
+			}
+
+			internal static long Key(int userID, int movieID)
+			{
+				return ((long) userID << 32) | (uint) movieID;
+			}
+
+			public bool AffectsUser(Object userID)
+			{
+				long first = Key(Convert.ToInt32(userID), 0);
+				int index = Array.BinarySearch(keys, first);
+				if (index < 0)
+				{
+					index = ~index;
+				}
+				return index < keys.Length && (keys[index] >> 32) == (first >> 32);
+			}
+
+			public bool IsMasked(Object userID, Object itemID)
+			{
+				return Array.BinarySearch(keys, Key(Convert.ToInt32(userID), Convert.ToInt32(itemID))) >= 0;
+			}
+		}
+
+		#endregion
+	}
+
+}
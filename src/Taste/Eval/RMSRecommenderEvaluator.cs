@@ -67,6 +67,24 @@ namespace Taste.Eval
 		}
 
 		
+		protected override double ProcessDifference(double difference)
+		{
+			return difference * difference;
+		}
+
+		protected override double ComputeFinalEvaluation(double average)
+		{
+			return Math.Sqrt(average);
+		}
+
+		/// <summary>
+		/// Delta method: the score is sqrt(average), whose slope is 1 / (2 sqrt(average)).
+		/// </summary>
+		protected override double ComputeMargin(double average, double averageMargin)
+		{
+			return average > 0.0 ? averageMargin / (2.0 * Math.Sqrt(average)) : averageMargin;
+		}
+
 		public override String ToString() 
 		{
 			return "RMSRecommenderEvaluator";
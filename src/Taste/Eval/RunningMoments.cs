@@ -0,0 +1,84 @@
+/*
+ * Copyright 2007 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+namespace Taste.Eval
+{
+	using System;
+
+
+	/**
+	 * <p>Running count, mean and variance (Welford's method) that can be merged with another instance, so that
+	 * threads can accumulate separately and combine their results. Not thread-safe.</p>
+	 */
+	internal sealed class RunningMoments
+	{
+		/// <summary>z-score for a two-sided 95% confidence interval</summary>
+		internal const double Z_95 = 1.959963984540054;
+
+		private int count;
+		private double mean;
+		private double m2;
+
+		internal int Count
+		{
+			get { return count; }
+		}
+
+		internal double Mean
+		{
+			get { return count == 0 ? Double.NaN : mean; }
+		}
+
+		/// <summary>Sample variance, or NaN with fewer than two data</summary>
+		internal double Variance
+		{
+			get { return count < 2 ? Double.NaN : m2 / (count - 1); }
+		}
+
+		/// <summary>Half-width of the 95% confidence interval for the mean</summary>
+		internal double Margin
+		{
+			get { return count < 2 ? Double.NaN : Z_95 * Math.Sqrt(Variance / count); }
+		}
+
+		internal void Add(double datum)
+		{
+			count++;
+			double delta = datum - mean;
+			mean += delta / count;
+			m2 += delta * (datum - mean);
+		}
+
+		internal void Merge(RunningMoments other)
+		{
+			if (other.count == 0)
+			{
+				return;
+			}
+			int total = count + other.count;
+			double delta = other.mean - mean;
+			mean += delta * other.count / total;
+			m2 += other.m2 + delta * delta * ((double) count * other.count / total);
+			count = total;
+		}
+
+		public override String ToString()
+		{
+			return Mean.ToString() + " +/- " + Margin;
+		}
+	}
+
+}
@@ -17,6 +17,7 @@
 namespace Taste.Model
 {
 	using System;
+	using System.Collections.Generic;
 	using System.Data;
 	using Taste.Common;
 
@@ -35,6 +36,20 @@ namespace Taste.Model
         /// This is a necessary performance enhancement shortcut needed by slope one recommenders</param>
         /// <returns></returns>
 		Item GetItem(Object id, bool assumeExists);
+
+        /// <summary>
+        /// Most queries this model will issue at once on behalf of one caller, through
+        /// <see cref="GetPreferencesForItems(ICollection{Object})"/>, which item-based recommenders use to fetch
+        /// candidate items. Should not exceed the connection pool size.
+        /// </summary>
+		int MaxConcurrentQueries { get; }
+
+        /// <summary>
+        /// Retrieves preferences for several items, issuing up to <see cref="MaxConcurrentQueries"/> queries at
+        /// once, so that latency is not the sum of all the round trips.
+        /// </summary>
+        /// <returns>preferences keyed by item ID, for each item that exists</returns>
+		IDictionary<Object, Preference[]> GetPreferencesForItems(ICollection<Object> itemIDs);
 	}
 	
 }	
\ No newline at end of file
@@ -0,0 +1,647 @@
+/*
+ * Copyright 2007 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+namespace Taste.Model
+{
+	using System;
+	using System.Collections.Generic;
+	using Taste.Common;
+	using log4net;
+
+
+    /// <summary>
+    /// <p>An immutable in-memory <see cref="taste.Model.DataModel">DataModel</see>, like
+    /// <see cref="taste.Model.GenericDataModel">GenericDataModel</see>, which keeps preferences encoded rather
+    /// than as <see cref="taste.Model.Preference">Preference</see> objects. Each user's preferences, and each
+    /// item's, are a list of delta-encoded variable-length item (or user) indices and values stored as a
+    /// <see cref="RatingScale"/> says: one byte per value on a fixed scale like Netflix's 1 to 5 stars, two bytes
+    /// otherwise. Preferences typically take 3 to 6 bytes each, counting both lists, against several tens of
+    /// bytes for <see cref="taste.Model.GenericPreference">GenericPreference</see>s.</p>
+    ///
+    /// <p>The price is that <see cref="taste.Model.User.GetPreferencesAsArray()">User.GetPreferencesAsArray()</see>
+    /// and <see cref="GetPreferencesForItemAsArray(Object)"/> decode into new, short-lived
+    /// <see cref="taste.Model.Preference">Preference</see>s on every call, and
+    /// <see cref="taste.Model.User.GetPreferenceFor(Object)">User.GetPreferenceFor()</see> searches the encoded list.
+    /// Arrays come back ordered by item and by user respectively, as correlations expect. Preferences are
+    /// read-only.</p>
+    ///
+    /// <p>Build one from another model, or with a <see cref="Builder"/> to avoid ever creating
+    /// <see cref="taste.Model.Preference">Preference</see> objects for the whole data set. Users without
+    /// preferences are not kept.</p>
+    /// </summary>
+	public sealed class CompactDataModel : DataModel, MemoryAccountable
+	{
+		private static readonly ILog log = LogManager.GetLogger(typeof(CompactDataModel));
+
+		private static readonly Preference[] NO_PREFS = new Preference[0];
+
+		// Value and delta, plus a share of the checkpoints, for the user and for the item
+		private const int COMPACT_BYTES_PER_PREFERENCE = 7;
+
+		private readonly RatingScale scale;
+		private readonly Item[] items;
+		private readonly Dictionary<Object, int> itemIndices;
+		private readonly CompactPreferenceArray[] prefsForItems;
+		private readonly CompactUser[] users;
+		private readonly Dictionary<Object, int> userIndices;
+
+		/// <summary>
+		/// Copies another model, choosing a <see cref="RatingScale"/> that fits its values.
+		/// </summary>
+		public CompactDataModel(DataModel dataModel)
+			: this(dataModel, null)
+		{
+		}
+
+		/// <param name="dataModel">model to copy</param>
+		/// <param name="scale">how to store values, or <code>null</code> to choose one that fits</param>
+		public CompactDataModel(DataModel dataModel, RatingScale scale)
+			: this(Copy(dataModel, scale))
+		{
+		}
+
+		private CompactDataModel(Builder builder)
+		{
+			this.scale = builder.scale ?? RatingScale.Detect(builder.Values());
+
+			// Items in their natural order, so that ascending indices mean ascending items
+			int numItems = builder.items.Count;
+			this.items = builder.items.ToArray();
+			int[] itemSlots = Identity(numItems);
+			Array.Sort(items, itemSlots);
+			int[] itemRemap = new int[numItems];
+			for (int i = 0; i < numItems; i++)
+			{
+				itemRemap[itemSlots[i]] = i;
+			}
+			this.itemIndices = new Dictionary<Object, int>(numItems);
+			for (int i = 0; i < numItems; i++)
+			{
+				itemIndices.Add(items[i].ID, i);
+			}
+
+			int numUsers = builder.userIDs.Count;
+			Object[] ids = builder.userIDs.ToArray();
+			int[] userSlots = Identity(numUsers);
+			Array.Sort(ids, userSlots, Comparer<Object>.Default);
+			this.userIndices = new Dictionary<Object, int>(numUsers);
+			for (int u = 0; u < numUsers; u++)
+			{
+				userIndices.Add(ids[u], u);
+			}
+
+			int[] itemCounts = new int[numItems];
+			Accumulator[] accumulators = new Accumulator[numUsers];
+			for (int u = 0; u < numUsers; u++)
+			{
+				Accumulator accumulator = builder.prefs[userSlots[u]];
+				accumulator.Normalize(itemRemap);
+				for (int i = 0; i < accumulator.count; i++)
+				{
+					itemCounts[accumulator.indices[i]]++;
+				}
+				accumulators[u] = accumulator;
+			}
+			builder.Clear();
+
+			// Walking users in index order fills each item's list in ascending user order
+			Accumulator[] byItem = new Accumulator[numItems];
+			for (int i = 0; i < numItems; i++)
+			{
+				byItem[i] = new Accumulator(itemCounts[i]);
+			}
+			for (int u = 0; u < numUsers; u++)
+			{
+				Accumulator accumulator = accumulators[u];
+				for (int i = 0; i < accumulator.count; i++)
+				{
+					byItem[accumulator.indices[i]].Add(u, accumulator.values[i]);
+				}
+			}
+			this.prefsForItems = new CompactPreferenceArray[numItems];
+			for (int i = 0; i < numItems; i++)
+			{
+				prefsForItems[i] = new CompactPreferenceArray(byItem[i].indices, byItem[i].values, byItem[i].count, scale);
+				byItem[i] = null;
+			}
+
+			this.users = new CompactUser[numUsers];
+			long numPrefs = 0L;
+			for (int u = 0; u < numUsers; u++)
+			{
+				Accumulator accumulator = accumulators[u];
+				users[u] = new CompactUser(this, ids[u],
+				                           new CompactPreferenceArray(accumulator.indices, accumulator.values,
+				                                                      accumulator.count, scale));
+				numPrefs += accumulator.count;
+				accumulators[u] = null;
+			}
+			if (log.IsInfoEnabled)
+			{
+				log.Info("Stored " + numPrefs + " preferences of " + numUsers + " users and " + numItems + " items in " +
+				         PayloadBytes + " bytes using " + scale);
+			}
+		}
+
+		public RatingScale Scale
+		{
+			get { return scale; }
+		}
+
+		/// <summary>Approximate memory used by encoded preferences, in bytes</summary>
+		public long PayloadBytes
+		{
+			get
+			{
+				long total = 0L;
+				foreach (CompactUser user in users)
+				{
+					total += user.prefs.SizeInBytes;
+				}
+				foreach (CompactPreferenceArray prefs in prefsForItems)
+				{
+					total += prefs.SizeInBytes;
+				}
+				return total;
+			}
+		}
+
+		public long EstimatedBytes
+		{
+			get { return PayloadBytes + EstimateBytes(users.Length, items.Length, 0L); }
+		}
+
+		/// <summary>
+		/// Estimates the memory a <see cref="CompactDataModel"/> takes, so that loaders can check a
+		/// <see cref="MemoryBudget"/> before building one. Each preference is encoded twice, once for its user
+		/// and once for its item, in a few bytes each.
+		/// </summary>
+		public static long EstimateBytes(long numUsers, long numItems, long numPrefs)
+		{
+			int r = MemoryBudget.REFERENCE_BYTES;
+			long arrayBytes = MemoryBudget.ObjectBytes(4 + 4 * r) + 4 * MemoryBudget.ArrayBytes(0, 1);
+			long userBytes = numUsers * (MemoryBudget.ObjectBytes(3 * r) + MemoryBudget.ID_BYTES + arrayBytes + r);
+			long itemBytes = numItems * (MemoryBudget.ObjectBytes(r + 4) + MemoryBudget.ID_BYTES + arrayBytes + 2 * r);
+			return numPrefs * COMPACT_BYTES_PER_PREFERENCE + userBytes + itemBytes +
+			       MemoryBudget.DictionaryBytes(numUsers, r, 4) + MemoryBudget.DictionaryBytes(numItems, r, 4);
+		}
+
+		public IEnumerable<User> GetUsers()
+		{
+			foreach (CompactUser user in users)
+			{
+				yield return user;
+			}
+		}
+
+		/// <exception cref="NoSuchElementException">if there is no such user</exception>
+		public User GetUser(Object id)
+		{
+			int index;
+			if (!userIndices.TryGetValue(id, out index))
+			{
+				throw new NoSuchElementException();
+			}
+			return users[index];
+		}
+
+		public IEnumerable<Item> GetItems()
+		{
+			return items;
+		}
+
+		/// <exception cref="NoSuchElementException">if there is no such item</exception>
+		public Item GetItem(Object id)
+		{
+			int index;
+			if (!itemIndices.TryGetValue(id, out index))
+			{
+				throw new NoSuchElementException();
+			}
+			return items[index];
+		}
+
+		public IEnumerable<Preference> GetPreferencesForItem(Object itemID)
+		{
+			return GetPreferencesForItemAsArray(itemID);
+		}
+
+		/// <returns>newly decoded preferences, ordered by user; empty if there is no such item</returns>
+		public Preference[] GetPreferencesForItemAsArray(Object itemID)
+		{
+			int itemIndex;
+			if (!itemIndices.TryGetValue(itemID, out itemIndex))
+			{
+				return NO_PREFS;
+			}
+			CompactPreferenceArray prefs = prefsForItems[itemIndex];
+			int count = prefs.Count;
+			int[] userIndexes = new int[count];
+			double[] values = new double[count];
+			prefs.Decode(userIndexes, values, scale);
+			Item item = items[itemIndex];
+			Preference[] result = new Preference[count];
+			for (int i = 0; i < count; i++)
+			{
+				result[i] = new CompactPreference(users[userIndexes[i]], item, values[i]);
+			}
+			return result;
+		}
+
+		public int GetNumItems()
+		{
+			return items.Length;
+		}
+
+		public int GetNumUsers()
+		{
+			return users.Length;
+		}
+
+		/// <exception cref="NotSupportedException">always</exception>
+		public void SetPreference(Object userID, Object itemID, double value)
+		{
+			throw new NotSupportedException("CompactDataModel is read-only");
+		}
+
+		/// <exception cref="NotSupportedException">always</exception>
+		public void RemovePreference(Object userID, Object itemID)
+		{
+			throw new NotSupportedException("CompactDataModel is read-only");
+		}
+
+		public void Refresh()
+		{
+			// Nothing to do
+		}
+
+		public override String ToString()
+		{
+			return "CompactDataModel[users:" + users.Length + ", items:" + items.Length + ", scale:" + scale + ']';
+		}
+
+		private static Builder Copy(DataModel dataModel, RatingScale scale)
+		{
+			if (dataModel == null)
+			{
+				throw new ArgumentNullException("dataModel is null");
+			}
+			Builder builder = new Builder(scale);
+			foreach (User user in dataModel.GetUsers())
+			{
+				foreach (Preference pref in user.GetPreferencesAsArray())
+				{
+					builder.Add(user.ID, pref.Item, pref.Value);
+				}
+			}
+			return builder;
+		}
+
+		private static int[] Identity(int length)
+		{
+			int[] result = new int[length];
+			for (int i = 0; i < length; i++)
+			{
+				result[i] = i;
+			}
+			return result;
+		}
+
+		/// <summary>
+		/// <p>Collects preferences one at a time, in any order, holding about 8 bytes per preference until
+		/// <see cref="Build()"/> encodes them. If a user has several preferences for one item, the last one added
+		/// is kept. Not thread-safe.</p>
+		/// </summary>
+		public sealed class Builder
+		{
+			internal readonly RatingScale scale;
+			internal readonly List<Object> userIDs;
+			internal readonly List<Accumulator> prefs;
+			internal readonly List<Item> items;
+			private readonly Dictionary<Object, int> userSlots;
+			private readonly Dictionary<Object, int> itemSlots;
+			private bool built;
+
+			public Builder()
+				: this(null)
+			{
+			}
+
+			/// <param name="scale">how to store values, or <code>null</code> to choose one that fits when
+			/// building</param>
+			public Builder(RatingScale scale)
+			{
+				this.scale = scale;
+				this.userIDs = new List<Object>();
+				this.prefs = new List<Accumulator>();
+				this.items = new List<Item>();
+				this.userSlots = new Dictionary<Object, int>();
+				this.itemSlots = new Dictionary<Object, int>();
+			}
+
+			/// <exception cref="ArgumentException">if the value is NaN, or not on a fixed scale given to the
+			/// constructor</exception>
+			public void Add(Object userID, Item item, double value)
+			{
+				if (userID == null || item == null)
+				{
+					throw new ArgumentNullException("userID or item is null");
+				}
+				if (double.IsNaN(value) || (scale != null && !scale.IsExact(value) && scale.BytesPerValue == 1))
+				{
+					throw new ArgumentException("Invalid value: " + value);
+				}
+				if (built)
+				{
+					throw new IllegalStateException("Already built");
+				}
+				int userSlot;
+				if (!userSlots.TryGetValue(userID, out userSlot))
+				{
+					userSlot = userIDs.Count;
+					userSlots.Add(userID, userSlot);
+					userIDs.Add(userID);
+					prefs.Add(new Accumulator(4));
+				}
+				int itemSlot;
+				if (!itemSlots.TryGetValue(item.ID, out itemSlot))
+				{
+					itemSlot = items.Count;
+					itemSlots.Add(item.ID, itemSlot);
+					items.Add(item);
+				}
+				prefs[userSlot].Add(itemSlot, (float) value);
+			}
+
+			/// <summary>
+			/// Drops the users with fewer than <code>minPreferences</code> preferences added so far, counting
+			/// repeated items once for each time they were added, and the items only those users preferred.
+			/// </summary>
+			public void RemoveUsersWithFewerThan(int minPreferences)
+			{
+				if (built)
+				{
+					throw new IllegalStateException("Already built");
+				}
+				int kept = 0;
+				for (int slot = 0; slot < userIDs.Count; slot++)
+				{
+					if (prefs[slot].count >= minPreferences)
+					{
+						userIDs[kept] = userIDs[slot];
+						prefs[kept] = prefs[slot];
+						userSlots[userIDs[kept]] = kept;
+						kept++;
+					}
+					else
+					{
+						userSlots.Remove(userIDs[slot]);
+					}
+				}
+				userIDs.RemoveRange(kept, userIDs.Count - kept);
+				prefs.RemoveRange(kept, prefs.Count - kept);
+
+				bool[] preferred = new bool[items.Count];
+				foreach (Accumulator accumulator in prefs)
+				{
+					for (int i = 0; i < accumulator.count; i++)
+					{
+						preferred[accumulator.indices[i]] = true;
+					}
+				}
+				int[] remap = new int[items.Count];
+				int keptItems = 0;
+				for (int slot = 0; slot < items.Count; slot++)
+				{
+					if (preferred[slot])
+					{
+						items[keptItems] = items[slot];
+						itemSlots[items[keptItems].ID] = keptItems;
+						remap[slot] = keptItems;
+						keptItems++;
+					}
+					else
+					{
+						itemSlots.Remove(items[slot].ID);
+					}
+				}
+				items.RemoveRange(keptItems, items.Count - keptItems);
+				foreach (Accumulator accumulator in prefs)
+				{
+					for (int i = 0; i < accumulator.count; i++)
+					{
+						accumulator.indices[i] = remap[accumulator.indices[i]];
+					}
+				}
+			}
+
+			public CompactDataModel Build()
+			{
+				if (built)
+				{
+					throw new IllegalStateException("Already built");
+				}
+				built = true;
+				return new CompactDataModel(this);
+			}
+
+			internal IEnumerable<double> Values()
+			{
+				foreach (Accumulator accumulator in prefs)
+				{
+					for (int i = 0; i < accumulator.count; i++)
+					{
+						yield return accumulator.values[i];
+					}
+				}
+			}
+
+			internal void Clear()
+			{
+				userIDs.Clear();
+				prefs.Clear();
+				items.Clear();
+				userSlots.Clear();
+				itemSlots.Clear();
+			}
+		}
+
+		#region Helper classes
+
+		/// <summary>
+		/// Growable parallel arrays of indices and values, used while building.
+		/// </summary>
+		internal sealed class Accumulator
+		{
+			internal int[] indices;
+			internal float[] values;
+			internal int count;
+
+			internal Accumulator(int capacity)
+			{
+				indices = new int[Math.Max(1, capacity)];
+				values = new float[indices.Length];
+			}
+
+			internal void Add(int index, float value)
+			{
+				if (count == indices.Length)
+				{
+					Array.Resize(ref indices, count * 2);
+					Array.Resize(ref values, count * 2);
+				}
+				indices[count] = index;
+				values[count] = value;
+				count++;
+			}
+
+			/// <summary>
+			/// Maps indices through <code>remap</code>, sorts by the new index, and keeps only the last-added
+			/// value for each index.
+			/// </summary>
+			internal void Normalize(int[] remap)
+			{
+				long[] keys = new long[count];
+				for (int i = 0; i < count; i++)
+				{
+					keys[i] = ((long) remap[indices[i]] << 32) | (uint) i;
+				}
+				Array.Sort(keys, values, 0, count);
+				int kept = 0;
+				for (int i = 0; i < count; i++)
+				{
+					int index = (int) (keys[i] >> 32);
+					if (i + 1 < count && (int) (keys[i + 1] >> 32) == index)
+					{
+						continue; // a later duplicate follows
+					}
+					indices[kept] = index;
+					values[kept] = values[i];
+					kept++;
+				}
+				count = kept;
+			}
+		}
+
+		private sealed class CompactUser : User
+		{
+			private readonly CompactDataModel model;
+			private readonly Object id;
+			internal readonly CompactPreferenceArray prefs;
+
+			internal CompactUser(CompactDataModel model, Object id, CompactPreferenceArray prefs)
+			{
+				this.model = model;
+				this.id = id;
+				this.prefs = prefs;
+			}
+
+			public Object ID
+			{
+				get { return id; }
+			}
+
+			public Preference GetPreferenceFor(Object itemID)
+			{
+				int itemIndex;
+				if (!model.itemIndices.TryGetValue(itemID, out itemIndex))
+				{
+					return null;
+				}
+				double value = prefs.Find(itemIndex, model.scale);
+				return double.IsNaN(value) ? null : new CompactPreference(this, model.items[itemIndex], value);
+			}
+
+			public IEnumerable<Preference> GetPreferences()
+			{
+				return GetPreferencesAsArray();
+			}
+
+			/// <returns>newly decoded preferences, ordered by item</returns>
+			public Preference[] GetPreferencesAsArray()
+			{
+				int count = prefs.Count;
+				int[] itemIndexes = new int[count];
+				double[] values = new double[count];
+				prefs.Decode(itemIndexes, values, model.scale);
+				Preference[] result = new Preference[count];
+				for (int i = 0; i < count; i++)
+				{
+					result[i] = new CompactPreference(this, model.items[itemIndexes[i]], values[i]);
+				}
+				return result;
+			}
+
+			public int CompareTo(User other)
+			{
+				return Comparer<Object>.Default.Compare(id, other.ID);
+			}
+
+			public override int GetHashCode()
+			{
+				return id.GetHashCode();
+			}
+
+			public override bool Equals(Object obj)
+			{
+				return (obj is User) && ((User) obj).ID.Equals(id);
+			}
+
+			public override String ToString()
+			{
+				return "User[id:" + id + ']';
+			}
+		}
+
+		private sealed class CompactPreference : Preference
+		{
+			private readonly User user;
+			private readonly Item item;
+			private readonly double value;
+
+			internal CompactPreference(User user, Item item, double value)
+			{
+				this.user = user;
+				this.item = item;
+				this.value = value;
+			}
+
+			public User User
+			{
+				get { return user; }
+			}
+
+			public Item Item
+			{
+				get { return item; }
+			}
+
+			public double Value
+			{
+				get { return value; }
+				set { throw new NotSupportedException("CompactDataModel is read-only"); }
+			}
+
+			public override String ToString()
+			{
+				return "CompactPreference[user:" + user.ID + ", item:" + item + ", value:" + value + ']';
+			}
+		}
+
+		#endregion
+	}
+
+}
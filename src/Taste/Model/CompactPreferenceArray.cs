@@ -0,0 +1,184 @@
+/*
+ * Copyright 2007 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+namespace Taste.Model
+{
+	using System;
+
+
+    /// <summary>
+    /// <p>An immutable, encoded list of (index, value) pairs with strictly increasing indices: one user's item
+    /// indices and ratings, or one item's user indices and ratings, in <see cref="CompactDataModel"/>.</p>
+    ///
+    /// <p>Indices are stored as variable-length deltas from the previous index, 7 bits per byte, so nearby indices
+    /// take one byte. Values are stored as encoded by a <see cref="RatingScale"/>. Every
+    /// <see cref="CHECKPOINT_INTERVAL"/>th entry's index and byte offset are also kept, so that a single index can
+    /// be found by binary search over the checkpoints and a short scan.</p>
+    /// </summary>
+	internal sealed class CompactPreferenceArray
+	{
+		internal const int CHECKPOINT_INTERVAL = 16;
+
+		private readonly int count;
+		private readonly byte[] deltas;
+		private readonly byte[] values;
+		private readonly int[] checkpointIndices;
+		private readonly int[] checkpointOffsets;
+
+		/// <param name="indices">strictly increasing, non-negative indices; only the first <code>count</code> are
+		/// used</param>
+		/// <param name="values">values matching <code>indices</code></param>
+		internal CompactPreferenceArray(int[] indices, float[] values, int count, RatingScale scale)
+		{
+			this.count = count;
+			int bytesPerValue = scale.BytesPerValue;
+			this.values = new byte[count * bytesPerValue];
+			int numCheckpoints = (count + CHECKPOINT_INTERVAL - 1) / CHECKPOINT_INTERVAL;
+			this.checkpointIndices = new int[numCheckpoints];
+			this.checkpointOffsets = new int[numCheckpoints];
+
+			int length = 0;
+			int previous = 0;
+			for (int i = 0; i < count; i++)
+			{
+				length += VarIntLength(indices[i] - previous);
+				previous = indices[i];
+			}
+			this.deltas = new byte[length];
+
+			int offset = 0;
+			previous = 0;
+			for (int i = 0; i < count; i++)
+			{
+				if (i % CHECKPOINT_INTERVAL == 0)
+				{
+					checkpointIndices[i / CHECKPOINT_INTERVAL] = indices[i];
+					checkpointOffsets[i / CHECKPOINT_INTERVAL] = offset;
+				}
+				offset = WriteVarInt(indices[i] - previous, deltas, offset);
+				previous = indices[i];
+				scale.Encode(values[i], this.values, i * bytesPerValue);
+			}
+		}
+
+		internal int Count
+		{
+			get { return count; }
+		}
+
+		/// <summary>Approximate memory used, in bytes</summary>
+		internal long SizeInBytes
+		{
+			get { return deltas.Length + values.Length + 8L * checkpointIndices.Length + 4 * 24; }
+		}
+
+		/// <summary>
+		/// Decodes all entries into the given arrays, which must hold at least <see cref="Count"/> elements.
+		/// </summary>
+		internal void Decode(int[] indicesOut, double[] valuesOut, RatingScale scale)
+		{
+			int bytesPerValue = scale.BytesPerValue;
+			int offset = 0;
+			int index = 0;
+			for (int i = 0; i < count; i++)
+			{
+				int delta = 0;
+				int shift = 0;
+				byte b;
+				do
+				{
+					b = deltas[offset++];
+					delta |= (b & 0x7F) << shift;
+					shift += 7;
+				} while ((b & 0x80) != 0);
+				index += delta;
+				indicesOut[i] = index;
+				valuesOut[i] = scale.Decode(values, i * bytesPerValue);
+			}
+		}
+
+		/// <returns>value stored for the index, or <see cref="Double.NaN"/> if there is none</returns>
+		internal double Find(int index, RatingScale scale)
+		{
+			int checkpoint = Array.BinarySearch(checkpointIndices, index);
+			if (checkpoint >= 0)
+			{
+				return scale.Decode(values, checkpoint * CHECKPOINT_INTERVAL * scale.BytesPerValue);
+			}
+			checkpoint = ~checkpoint - 1;
+			if (checkpoint < 0)
+			{
+				return Double.NaN;
+			}
+			int entry = checkpoint * CHECKPOINT_INTERVAL;
+			int end = Math.Min(count, entry + CHECKPOINT_INTERVAL);
+			int current = checkpointIndices[checkpoint];
+			int offset = SkipVarInt(checkpointOffsets[checkpoint]);
+			for (entry++; entry < end; entry++)
+			{
+				int delta = 0;
+				int shift = 0;
+				byte b;
+				do
+				{
+					b = deltas[offset++];
+					delta |= (b & 0x7F) << shift;
+					shift += 7;
+				} while ((b & 0x80) != 0);
+				current += delta;
+				if (current == index)
+				{
+					return scale.Decode(values, entry * scale.BytesPerValue);
+				}
+				if (current > index)
+				{
+					break;
+				}
+			}
+			return Double.NaN;
+		}
+
+		private int SkipVarInt(int offset)
+		{
+			while ((deltas[offset++] & 0x80) != 0)
+			{
+			}
+			return offset;
+		}
+
+		private static int VarIntLength(int value)
+		{
+			int length = 1;
+			while ((value >>= 7) != 0)
+			{
+				length++;
+			}
+			return length;
+		}
+
+		private static int WriteVarInt(int value, byte[] dest, int offset)
+		{
+			while ((value & ~0x7F) != 0)
+			{
+				dest[offset++] = (byte) ((value & 0x7F) | 0x80);
+				value >>= 7;
+			}
+			dest[offset++] = (byte) value;
+			return offset;
+		}
+	}
+
+}
@@ -0,0 +1,522 @@
+/*
+ * Copyright 2007 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+namespace Taste.Model
+{
+	using System;
+	using System.Collections.Generic;
+	using Taste.Common;
+	using log4net;
+
+
+    /// <summary>
+    /// <p>Per-item and per-user preference counts, means and standard deviations, and overall ones, for a
+    /// <see cref="taste.Model.DataModel">DataModel</see>. They are computed in one pass over all users, spread over
+    /// several threads, and kept as sums in primitive arrays. Create one instance per model and hand it to every
+    /// component that needs these numbers, such as
+    /// <see cref="taste.Recommender.ItemAverageRecommender">ItemAverageRecommender</see>,
+    /// <see cref="taste.Recommender.ItemUserAverageRecommender">ItemUserAverageRecommender</see>,
+    /// <see cref="taste.Transforms.InverseUserFrequency">InverseUserFrequency</see>,
+    /// <see cref="taste.Transforms.ZScore">ZScore</see> and
+    /// <see cref="taste.Correlation.AveragingPreferenceInferrer">AveragingPreferenceInferrer</see>, rather than
+    /// letting each derive and cache its own.</p>
+    ///
+    /// <p>If the model is a <see cref="taste.Model.PreferenceChangeSource">PreferenceChangeSource</see>, statistics
+    /// follow its changes as they happen. Otherwise components that change preferences report them with
+    /// <see cref="Record(PreferenceChange)"/>. <see cref="Refresh()"/> recomputes everything from the model; it does
+    /// not refresh the model itself. Safe for concurrent use: each change or refresh publishes a new immutable
+    /// snapshot, copying the per-ID arrays, so reads take no lock. <see cref="Dispose()"/> stops following the
+    /// model.</p>
+    ///
+    /// <p>Items are numbered by <see cref="IDIndex.ForItems(DataModel)">IDIndex.ForItems()</see> unless another
+    /// <see cref="ItemIndexer"/> is given. The pass adds each preference into its item's slot, so an order like
+    /// <see cref="IDOrdering.ItemsByCoRating">IDOrdering.ItemsByCoRating()</see>, where one user's items are close
+    /// together, touches fewer cache lines.</p>
+    /// </summary>
+	public sealed class DataModelStatistics : Refreshable, PreferenceChangeListener, IDisposable
+	{
+		private static readonly ILog log = LogManager.GetLogger(typeof(DataModelStatistics));
+
+		private readonly DataModel dataModel;
+		private readonly int numThreads;
+		private readonly ItemIndexer itemIndexer;
+		private volatile bool followsDataModel;
+		private readonly Object updateLock;
+		private volatile Aggregates aggregates;
+
+		public DataModelStatistics(DataModel dataModel)
+			: this(dataModel, ParallelUtils.DefaultThreads)
+		{
+		}
+
+		/// <param name="dataModel">model to summarize</param>
+		/// <param name="numThreads">threads to compute with</param>
+		public DataModelStatistics(DataModel dataModel, int numThreads)
+			: this(dataModel, numThreads, IDIndex.ForItems)
+		{
+		}
+
+		/// <param name="itemIndexer">numbers the items on each computation from scratch</param>
+		public DataModelStatistics(DataModel dataModel, int numThreads, ItemIndexer itemIndexer)
+		{
+			if (dataModel == null || itemIndexer == null)
+			{
+				throw new ArgumentNullException("dataModel or itemIndexer is null");
+			}
+			if (numThreads < 1)
+			{
+				throw new ArgumentException("numThreads must be at least 1");
+			}
+			this.dataModel = dataModel;
+			this.numThreads = numThreads;
+			this.itemIndexer = itemIndexer;
+			this.updateLock = new Object();
+			this.aggregates = Compute();
+			PreferenceChangeSource changeSource = dataModel as PreferenceChangeSource;
+			if (changeSource != null)
+			{
+				changeSource.AddPreferenceChangeListener(this);
+				followsDataModel = true;
+			}
+		}
+
+		public DataModel DataModel
+		{
+			get { return dataModel; }
+		}
+
+		/// <summary>
+		/// Whether changes are learned from the model itself, in which case <see cref="Record(PreferenceChange)"/>
+		/// ignores them.
+		/// </summary>
+		public bool FollowsDataModel
+		{
+			get { return followsDataModel; }
+		}
+
+		/// <summary>
+		/// Changes whenever the statistics do, through a change or a refresh, so that derived values can be cached
+		/// against it.
+		/// </summary>
+		public long Version
+		{
+			get { return aggregates.version; }
+		}
+
+		/// <summary>Number of users the model listed at the last refresh, plus users seen in changes since</summary>
+		public int NumUsers
+		{
+			get { return aggregates.users.Size; }
+		}
+
+		/// <summary>Number of preferences in the model</summary>
+		public long NumPreferences
+		{
+			get { return aggregates.count; }
+		}
+
+		/// <returns>mean of all preference values, or NaN if there are none</returns>
+		public double GetMean()
+		{
+			Aggregates current = aggregates;
+			return current.count == 0L ? Double.NaN : current.sum / current.count;
+		}
+
+		/// <returns>number of preferences for the item; 0 for an unknown item</returns>
+		public int GetItemCount(Object itemID)
+		{
+			return GetCount(false, itemID);
+		}
+
+		/// <returns>number of preferences for each item, from one snapshot; items whose preferences were all removed
+		/// since the last refresh are included with 0</returns>
+		public IDictionary<Object, int> GetItemCounts()
+		{
+			Table items = aggregates.items;
+			Dictionary<Object, int> counts = new Dictionary<Object, int>(items.Size);
+			foreach (KeyValuePair<Object, int> entry in items.Indices)
+			{
+				counts.Add(entry.Key, items.counts[entry.Value]);
+			}
+			return counts;
+		}
+
+		/// <returns>mean preference value for the item, or NaN if it has none</returns>
+		public double GetItemMean(Object itemID)
+		{
+			return GetMean(false, itemID);
+		}
+
+		/// <returns>sample standard deviation of the item's preference values, or NaN if it has fewer than
+		/// two</returns>
+		public double GetItemStandardDeviation(Object itemID)
+		{
+			return GetStandardDeviation(false, itemID);
+		}
+
+		/// <returns>number of preferences the user has expressed; 0 for an unknown user</returns>
+		public int GetUserCount(Object userID)
+		{
+			return GetCount(true, userID);
+		}
+
+		/// <returns>mean of the user's preference values, or NaN if there are none</returns>
+		public double GetUserMean(Object userID)
+		{
+			return GetMean(true, userID);
+		}
+
+		/// <returns>sample standard deviation of the user's preference values, or NaN if there are fewer than
+		/// two</returns>
+		public double GetUserStandardDeviation(Object userID)
+		{
+			return GetStandardDeviation(true, userID);
+		}
+
+		/// <summary>
+		/// Applies one change made to the model, unless <see cref="FollowsDataModel"/>, in which case the model
+		/// reports it anyway.
+		/// </summary>
+		public void Record(PreferenceChange change)
+		{
+			if (change == null)
+			{
+				throw new ArgumentNullException("change is null");
+			}
+			if (!followsDataModel)
+			{
+				Apply(new PreferenceChange[] { change });
+			}
+		}
+
+		public void PreferencesChanged(IList<PreferenceChange> changes)
+		{
+			Apply(changes);
+		}
+
+		public void Refresh()
+		{
+			try
+			{
+				Aggregates newAggregates = Compute();
+				lock (updateLock)
+				{
+					newAggregates.version = aggregates.version + 1L;
+					aggregates = newAggregates;
+				}
+			}
+			catch (TasteException te)
+			{
+				log.Warn("Unable to refresh", te);
+			}
+		}
+
+		/// <summary>
+		/// Stops listening to the model. Changes can still be reported with <see cref="Record(PreferenceChange)"/>.
+		/// </summary>
+		public void Dispose()
+		{
+			PreferenceChangeSource changeSource = dataModel as PreferenceChangeSource;
+			if (changeSource != null)
+			{
+				changeSource.RemovePreferenceChangeListener(this);
+			}
+			followsDataModel = false;
+		}
+
+		public override String ToString()
+		{
+			return "DataModelStatistics[dataModel:" + dataModel + ']';
+		}
+
+		private void Apply(IList<PreferenceChange> changes)
+		{
+			lock (updateLock)
+			{
+				Aggregates next = aggregates.Copy();
+				foreach (PreferenceChange change in changes)
+				{
+					double oldValue = change.OldValue;
+					double newValue = change.NewValue;
+					next.items.Update(next.items.GetOrAdd(change.ItemID), oldValue, newValue);
+					next.users.Update(next.users.GetOrAdd(change.UserID), oldValue, newValue);
+					if (!Double.IsNaN(oldValue))
+					{
+						next.count--;
+						next.sum -= oldValue;
+					}
+					if (!Double.IsNaN(newValue))
+					{
+						next.count++;
+						next.sum += newValue;
+					}
+				}
+				aggregates = next;
+			}
+		}
+
+		private int GetCount(bool forUsers, Object id)
+		{
+			Aggregates current = aggregates;
+			Table table = forUsers ? current.users : current.items;
+			int index = table.IndexOf(id);
+			return index < 0 ? 0 : table.counts[index];
+		}
+
+		private double GetMean(bool forUsers, Object id)
+		{
+			Aggregates current = aggregates;
+			Table table = forUsers ? current.users : current.items;
+			int index = table.IndexOf(id);
+			if (index < 0 || table.counts[index] == 0)
+			{
+				return Double.NaN;
+			}
+			return table.sums[index] / table.counts[index];
+		}
+
+		private double GetStandardDeviation(bool forUsers, Object id)
+		{
+			Aggregates current = aggregates;
+			Table table = forUsers ? current.users : current.items;
+			int index = table.IndexOf(id);
+			if (index < 0 || table.counts[index] < 2)
+			{
+				return Double.NaN;
+			}
+			int count = table.counts[index];
+			double mean = table.sums[index] / count;
+			double variance = (table.sumSquares[index] - mean * mean * count) / (count - 1);
+			// Rounding can leave a tiny negative variance when all values are equal
+			return Math.Sqrt(Math.Max(0.0, variance));
+		}
+
+		/// <summary>
+		/// Summarizes the model from scratch. Users are split into contiguous ranges, one per thread; each thread
+		/// fills in its users' entries directly and sums items into its own arrays, which are added up at the end.
+		/// </summary>
+		private Aggregates Compute()
+		{
+			long start = TasteEvents.Start();
+			List<User> users = new List<User>(dataModel.GetUsers());
+			IDIndex itemIndex = itemIndexer(dataModel);
+			Table items = new Table(itemIndex.Count);
+			for (int i = 0; i < itemIndex.Count; i++)
+			{
+				items.GetOrAdd(itemIndex.IDAt(i));
+			}
+			Table userTable = new Table(users.Count);
+			foreach (User user in users)
+			{
+				userTable.GetOrAdd(user.ID);
+			}
+
+			int numItems = items.Size;
+			int threads = Math.Max(1, Math.Min(numThreads, users.Count));
+			Table[] partials = new Table[threads];
+			List<Preference>[] unlisted = new List<Preference>[threads];
+			ParallelUtils.Run(threads, delegate(int thread)
+			{
+				int from = (int) ((long) users.Count * thread / threads);
+				int to = (int) ((long) users.Count * (thread + 1) / threads);
+				Table partial = new Table(numItems);
+				List<Preference> strays = new List<Preference>();
+				for (int u = from; u < to; u++)
+				{
+					int count = 0;
+					double sum = 0.0;
+					double sumSquares = 0.0;
+					foreach (Preference pref in users[u].GetPreferencesAsArray())
+					{
+						double value = pref.Value;
+						count++;
+						sum += value;
+						sumSquares += value * value;
+						int itemIndex = items.IndexOf(pref.Item.ID);
+						if (itemIndex < 0)
+						{
+							strays.Add(pref);
+						}
+						else
+						{
+							partial.counts[itemIndex]++;
+							partial.sums[itemIndex] += value;
+							partial.sumSquares[itemIndex] += value * value;
+						}
+					}
+					// Each user's index belongs to exactly one thread
+					int userIndex = userTable.IndexOf(users[u].ID);
+					userTable.counts[userIndex] = count;
+					userTable.sums[userIndex] = sum;
+					userTable.sumSquares[userIndex] = sumSquares;
+				}
+				partials[thread] = partial;
+				unlisted[thread] = strays;
+			});
+
+			Aggregates result = new Aggregates(userTable, items);
+			foreach (Table partial in partials)
+			{
+				for (int i = 0; i < numItems; i++)
+				{
+					items.counts[i] += partial.counts[i];
+					items.sums[i] += partial.sums[i];
+					items.sumSquares[i] += partial.sumSquares[i];
+					result.count += partial.counts[i];
+					result.sum += partial.sums[i];
+				}
+			}
+			// Items the model did not list, if any
+			foreach (List<Preference> strays in unlisted)
+			{
+				foreach (Preference pref in strays)
+				{
+					items.Update(items.GetOrAdd(pref.Item.ID), Double.NaN, pref.Value);
+					result.count++;
+					result.sum += pref.Value;
+				}
+			}
+			TasteEvents.ModelLoaded("DataModelStatistics", aggregates != null, result.count, start);
+			return result;
+		}
+
+		#region Helper classes
+
+		/// <summary>
+		/// One snapshot. Only changed before it is published; after that it is read without locking.
+		/// </summary>
+		private sealed class Aggregates
+		{
+			internal readonly Table users;
+			internal readonly Table items;
+			internal long count;
+			internal double sum;
+			internal long version;
+
+			internal Aggregates(Table users, Table items)
+			{
+				this.users = users;
+				this.items = items;
+			}
+
+			/// <returns>an unpublished copy with the next version</returns>
+			internal Aggregates Copy()
+			{
+				Aggregates copy = new Aggregates(users.Copy(), items.Copy());
+				copy.count = count;
+				copy.sum = sum;
+				copy.version = version + 1L;
+				return copy;
+			}
+		}
+
+		/// <summary>
+		/// Count, sum and sum of squares of preference values per ID, in growable parallel arrays. A copy shares the
+		/// ID indices until it adds an ID.
+		/// </summary>
+		private sealed class Table
+		{
+			private Dictionary<Object, int> indices;
+			private bool ownsIndices;
+			internal int[] counts;
+			internal double[] sums;
+			internal double[] sumSquares;
+			private int size;
+
+			internal Table(int capacity)
+			{
+				capacity = Math.Max(capacity, 16);
+				this.indices = new Dictionary<Object, int>(capacity);
+				this.counts = new int[capacity];
+				this.sums = new double[capacity];
+				this.sumSquares = new double[capacity];
+				this.ownsIndices = true;
+			}
+
+			private Table(Table other)
+			{
+				this.indices = other.indices;
+				this.counts = (int[]) other.counts.Clone();
+				this.sums = (double[]) other.sums.Clone();
+				this.sumSquares = (double[]) other.sumSquares.Clone();
+				this.size = other.size;
+			}
+
+			internal Table Copy()
+			{
+				return new Table(this);
+			}
+
+			internal int Size
+			{
+				get { return size; }
+			}
+
+			internal IEnumerable<KeyValuePair<Object, int>> Indices
+			{
+				get { return indices; }
+			}
+
+			internal int IndexOf(Object id)
+			{
+				int index;
+				return indices.TryGetValue(id, out index) ? index : -1;
+			}
+
+			internal int GetOrAdd(Object id)
+			{
+				int index;
+				if (!indices.TryGetValue(id, out index))
+				{
+					if (!ownsIndices)
+					{
+						indices = new Dictionary<Object, int>(indices);
+						ownsIndices = true;
+					}
+					index = size++;
+					if (index == counts.Length)
+					{
+						Array.Resize(ref counts, 2 * index);
+						Array.Resize(ref sums, 2 * index);
+						Array.Resize(ref sumSquares, 2 * index);
+					}
+					indices.Add(id, index);
+				}
+				return index;
+			}
+
+			/// <summary>Replaces <code>oldValue</code> with <code>newValue</code>; either may be NaN for none</summary>
+			internal void Update(int index, double oldValue, double newValue)
+			{
+				if (!Double.IsNaN(oldValue))
+				{
+					counts[index]--;
+					sums[index] -= oldValue;
+					sumSquares[index] -= oldValue * oldValue;
+				}
+				if (!Double.IsNaN(newValue))
+				{
+					counts[index]++;
+					sums[index] += newValue;
+					sumSquares[index] += newValue * newValue;
+				}
+			}
+		}
+
+		#endregion
+	}
+
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2005 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+namespace Taste.Model
+{
+	using System;
+	using System.Collections.Generic;
+
+
+    /// <summary>
+    /// <p>A <see cref="taste.Model.DataModel">DataModel</see> which can tell callers what changed since
+    /// they last looked at it. Every time the contents of the model change (for example, on reload),
+    /// its generation number increases. Caches can remember the generation they were built against and later
+    /// ask which <see cref="taste.Model.User">User</see>s changed, invalidating only those.</p>
+    /// </summary>
+	public interface GenerationalDataModel : DataModel
+	{
+        /// <summary>
+        /// Current generation of the data. Starts at 0 and increases each time the data changes.
+        /// </summary>
+		long Generation { get; }
+
+        /// <summary>
+        /// Returns IDs of <see cref="taste.Model.User">User</see>s whose preferences were added, changed
+        /// or removed after the given generation.
+        /// </summary>
+        /// <param name="generation">generation previously read from <see cref="Generation"/></param>
+        /// <returns>
+        /// IDs of changed users, or <code>null</code> if the model no longer knows, in which case
+        /// callers should assume all users changed
+        /// </returns>
+		ICollection<Object> GetUsersChangedSince(long generation);
+	}
+
+}
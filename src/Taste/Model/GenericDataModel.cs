@@ -30,7 +30,7 @@ namespace Taste.Model
     /// @author Sean Owen
     /// </summary>
 	[Serializable]
-	public class GenericDataModel : DataModel
+	public class GenericDataModel : DataModel, MemoryAccountable
 	{
 		private static IEnumerable<Preference> NO_PREFS = new EmptyEnumerable<Preference>();
         private static Preference[] NO_PREFS_ARRAY = new Preference[0];
@@ -210,6 +210,38 @@ namespace Taste.Model
 			// Does nothing
 		}
 
+		public long EstimatedBytes
+		{
+			get
+			{
+				long numPrefs = 0L;
+				foreach (Preference[] prefs in preferenceForItems.Values)
+				{
+					numPrefs += prefs.Length;
+				}
+				return EstimateBytes(users.Count, items.Count, numPrefs);
+			}
+		}
+
+		/// <summary>
+		/// Estimates the memory a <see cref="GenericDataModel"/> of <see cref="GenericUser{K}"/>s,
+		/// <see cref="GenericItem{K}"/>s and <see cref="GenericPreference"/>s takes, so that loaders can check a
+		/// <see cref="MemoryBudget"/> before building one. Each preference is an object referenced from its user's
+		/// array and map and from its item's array, which comes to several dozen bytes.
+		/// </summary>
+		public static long EstimateBytes(long numUsers, long numItems, long numPrefs)
+		{
+			int r = MemoryBudget.REFERENCE_BYTES;
+			long prefBytes = numPrefs * (MemoryBudget.ObjectBytes(2 * r + 8) + 2 * r) +
+			                 MemoryBudget.DictionaryBytes(numPrefs, r, r);
+			long userBytes = numUsers * (MemoryBudget.ObjectBytes(3 * r) + MemoryBudget.ID_BYTES +
+			                             MemoryBudget.ArrayBytes(0, r) + MemoryBudget.DictionaryBytes(0, r, r) + r);
+			long itemBytes = numItems * (MemoryBudget.ObjectBytes(r + 4) + MemoryBudget.ID_BYTES +
+			                             MemoryBudget.ArrayBytes(0, r) + r);
+			return prefBytes + userBytes + itemBytes + MemoryBudget.DictionaryBytes(numUsers, r, r) +
+			       2 * MemoryBudget.DictionaryBytes(numItems, r, r);
+		}
+
 		public override String ToString() 
 		{
 			return "GenericDataModel[users:" + users + ']';
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2005 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+namespace Taste.Model
+{
+	using System;
+	using System.Collections.Generic;
+
+
+    /// <summary>
+    /// Builds an <see cref="IDIndex"/> over all of a model's items, in some order. Components that keep per-item
+    /// arrays, and rebuild them as items come and go, take one of these to choose their order:
+    /// <see cref="IDIndex.ForItems(DataModel)"/> for the model's, or one from <see cref="IDOrdering"/>.
+    /// </summary>
+	public delegate IDIndex ItemIndexer(DataModel dataModel);
+
+
+    /// <summary>
+    /// <p>Maps <see cref="taste.Model.User">User</see> or <see cref="taste.Model.Item">Item</see> IDs to dense
+    /// <code>int</code> indices 0 .. Count-1 and back, so that per-user or per-item data can be kept in primitive
+    /// arrays rather than maps of objects. Indices follow the order in which IDs were given; for an index built from
+    /// <see cref="taste.Model.DataModel.GetItems()">GetItems()</see> that is the model's item order.</p>
+    ///
+    /// <p>Instances are immutable and safe to share between threads.</p>
+    /// </summary>
+	public sealed class IDIndex
+	{
+		private readonly Object[] ids;
+		private readonly Dictionary<Object, int> indices;
+
+		/// <param name="ids">distinct IDs, in index order</param>
+		/// <exception cref="ArgumentException">if an ID occurs twice</exception>
+		public IDIndex(IEnumerable<Object> ids)
+		{
+			if (ids == null)
+			{
+				throw new ArgumentNullException("ids is null");
+			}
+			List<Object> idList = new List<Object>(ids);
+			this.ids = idList.ToArray();
+			this.indices = new Dictionary<Object, int>(this.ids.Length);
+			for (int i = 0; i < this.ids.Length; i++)
+			{
+				if (indices.ContainsKey(this.ids[i]))
+				{
+					throw new ArgumentException("Duplicate ID: " + this.ids[i]);
+				}
+				indices.Add(this.ids[i], i);
+			}
+		}
+
+		/// <summary>
+		/// Builds an index over all <see cref="taste.Model.Item">Item</see>s in a
+		/// <see cref="taste.Model.DataModel">DataModel</see>, in the model's order.
+		/// </summary>
+		public static IDIndex ForItems(DataModel dataModel)
+		{
+			return new IDIndex(ItemIDs(dataModel.GetItems()));
+		}
+
+		/// <summary>
+		/// Builds an index over all <see cref="taste.Model.User">User</see>s in a
+		/// <see cref="taste.Model.DataModel">DataModel</see>, in the model's order.
+		/// </summary>
+		public static IDIndex ForUsers(DataModel dataModel)
+		{
+			return new IDIndex(UserIDs(dataModel.GetUsers()));
+		}
+
+		/// <returns>number of IDs indexed</returns>
+		public int Count
+		{
+			get { return ids.Length; }
+		}
+
+		/// <returns>index of the given ID, or -1 if it is not indexed</returns>
+		public int IndexOf(Object id)
+		{
+			int index;
+			if (id != null && indices.TryGetValue(id, out index))
+			{
+				return index;
+			}
+			return -1;
+		}
+
+		/// <returns>ID at the given index</returns>
+		public Object IDAt(int index)
+		{
+			return ids[index];
+		}
+
+		public bool Contains(Object id)
+		{
+			return id != null && indices.ContainsKey(id);
+		}
+
+		public override String ToString()
+		{
+			return "IDIndex[count:" + ids.Length + ']';
+		}
+
+		private static IEnumerable<Object> ItemIDs(IEnumerable<Item> items)
+		{
+			foreach (Item item in items)
+			{
+				yield return item.ID;
+			}
+		}
+
+		private static IEnumerable<Object> UserIDs(IEnumerable<User> users)
+		{
+			foreach (User user in users)
+			{
+				yield return user.ID;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,323 @@
+/*
+ * Copyright 2007 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+namespace Taste.Model
+{
+	using System;
+	using System.Collections.Generic;
+
+
+    /// <summary>
+    /// <p>Chooses the order of <see cref="IDIndex"/> indices for a model's users and items so that per-user and
+    /// per-item arrays built over them have good memory locality. Indices from
+    /// <see cref="IDIndex.ForItems(DataModel)"/> follow the model's order, which has nothing to do with who rated
+    /// what, so a pass over one user's items, or one item's users, touches rows scattered all over an array.</p>
+    ///
+    /// <ul>
+    ///  <li><see cref="ByDegree"/> puts users and items with the most preferences first, so the rows touched
+    ///   most often share cache lines and pages</li>
+    ///  <li><see cref="ByCoRating"/> walks the user-item graph breadth-first, numbering items in the order they
+    ///   are reached and users in the order they are expanded, so that items rated by the same users, and users
+    ///   rating the same items, get nearby indices</li>
+    /// </ul>
+    ///
+    /// <p>Both take time and memory roughly proportional to the number of preferences. Anything that keeps
+    /// indices together with its arrays, like <see cref="taste.Recommender.Factorization.FactorModel"/>, works
+    /// with any order; see
+    /// <see cref="taste.Recommender.Factorization.AlternatingLeastSquares.Train(DataModel, IDIndex, IDIndex)"/>.
+    /// Components that build their own item index take an <see cref="ItemIndexer"/>, such as
+    /// <see cref="ItemsByCoRating"/>: <see cref="taste.Correlation.SpearmanCorrelation"/>,
+    /// <see cref="taste.Recommender.SlopeOne.IndexedDiffStorage"/> and <see cref="DataModelStatistics"/>.
+    /// <see cref="LogGapCost"/> measures how well an order does.</p>
+    /// </summary>
+	public sealed class IDOrdering
+	{
+		private IDOrdering()
+		{
+		}
+
+		/// <summary>
+		/// Orders users and items by descending number of preferences, ties in the model's order.
+		/// </summary>
+		public static void ByDegree(DataModel dataModel, out IDIndex userIndex, out IDIndex itemIndex)
+		{
+			Graph graph = new Graph(dataModel);
+			int[] itemDegrees = graph.ItemDegrees();
+			int[] userDegrees = new int[graph.userItems.Length];
+			for (int u = 0; u < userDegrees.Length; u++)
+			{
+				userDegrees[u] = graph.userItems[u].Length;
+			}
+			userIndex = new IDIndex(Permute(graph.userIDs, SortByDescendingDegree(userDegrees)));
+			itemIndex = new IDIndex(Permute(graph.itemIDs, SortByDescendingDegree(itemDegrees)));
+		}
+
+		/// <summary>
+		/// The item order of <see cref="ByDegree"/>, as an <see cref="ItemIndexer"/>.
+		/// </summary>
+		public static IDIndex ItemsByDegree(DataModel dataModel)
+		{
+			IDIndex userIndex;
+			IDIndex itemIndex;
+			ByDegree(dataModel, out userIndex, out itemIndex);
+			return itemIndex;
+		}
+
+		/// <summary>
+		/// <p>Orders users and items breadth-first over the graph linking each user to the items they have
+		/// preferences for. Starting from the unnumbered item with the most preferences, the walk expands each
+		/// numbered item's users, fewest preferences first, and numbers every new item each one reaches. Expanding
+		/// small users first keeps tight clusters together before users with thousands of preferences sweep in
+		/// everything else.</p>
+		///
+		/// <p>Users and items without preferences come last, in the model's order.</p>
+		/// </summary>
+		public static void ByCoRating(DataModel dataModel, out IDIndex userIndex, out IDIndex itemIndex)
+		{
+			Graph graph = new Graph(dataModel);
+			int numUsers = graph.userItems.Length;
+			int numItems = graph.itemIDs.Length;
+			int[][] itemUsers = graph.ItemUsers();
+			foreach (int[] users in itemUsers)
+			{
+				// By ascending degree, ties in model order
+				long[] keys = new long[users.Length];
+				for (int i = 0; i < users.Length; i++)
+				{
+					keys[i] = ((long) graph.userItems[users[i]].Length << 32) | (uint) users[i];
+				}
+				Array.Sort(keys, users);
+			}
+
+			int[] itemOrder = new int[numItems];
+			int[] userOrder = new int[numUsers];
+			bool[] numberedItems = new bool[numItems];
+			bool[] expandedUsers = new bool[numUsers];
+			int numNumberedItems = 0;
+			int numExpandedUsers = 0;
+			// itemOrder doubles as the queue: items are expanded in the order they were numbered
+			int head = 0;
+			foreach (int seed in SortByDescendingDegree(graph.ItemDegrees()))
+			{
+				if (numberedItems[seed] || itemUsers[seed].Length == 0)
+				{
+					continue;
+				}
+				numberedItems[seed] = true;
+				itemOrder[numNumberedItems++] = seed;
+				while (head < numNumberedItems)
+				{
+					foreach (int user in itemUsers[itemOrder[head++]])
+					{
+						if (expandedUsers[user])
+						{
+							continue;
+						}
+						expandedUsers[user] = true;
+						userOrder[numExpandedUsers++] = user;
+						foreach (int item in graph.userItems[user])
+						{
+							if (!numberedItems[item])
+							{
+								numberedItems[item] = true;
+								itemOrder[numNumberedItems++] = item;
+							}
+						}
+					}
+				}
+			}
+			for (int i = 0; i < numItems; i++)
+			{
+				if (!numberedItems[i])
+				{
+					itemOrder[numNumberedItems++] = i;
+				}
+			}
+			for (int u = 0; u < numUsers; u++)
+			{
+				if (!expandedUsers[u])
+				{
+					userOrder[numExpandedUsers++] = u;
+				}
+			}
+			userIndex = new IDIndex(Permute(graph.userIDs, userOrder));
+			itemIndex = new IDIndex(Permute(graph.itemIDs, itemOrder));
+		}
+
+		/// <summary>
+		/// The item order of <see cref="ByCoRating"/>, as an <see cref="ItemIndexer"/>.
+		/// </summary>
+		public static IDIndex ItemsByCoRating(DataModel dataModel)
+		{
+			IDIndex userIndex;
+			IDIndex itemIndex;
+			ByCoRating(dataModel, out userIndex, out itemIndex);
+			return itemIndex;
+		}
+
+		/// <summary>
+		/// <p>Mean of <code>log2(1 + gap)</code> over the gaps between consecutive item indices in each user's
+		/// sorted row, a common proxy for the cache and page misses of a pass over the rows: a gap within a cache
+		/// line costs nearly nothing, and each doubling of the gap after that about the same. Lower is better.
+		/// Preferences for items not in <code>itemIndex</code> are ignored, and so are users not in
+		/// <code>userIndex</code>.</p>
+		/// </summary>
+		public static double LogGapCost(DataModel dataModel, IDIndex userIndex, IDIndex itemIndex)
+		{
+			if (dataModel == null || userIndex == null || itemIndex == null)
+			{
+				throw new ArgumentNullException("dataModel or index is null");
+			}
+			double total = 0.0;
+			long numGaps = 0L;
+			foreach (User user in dataModel.GetUsers())
+			{
+				if (!userIndex.Contains(user.ID))
+				{
+					continue;
+				}
+				Preference[] prefs = user.GetPreferencesAsArray();
+				int[] indices = new int[prefs.Length];
+				int count = 0;
+				foreach (Preference pref in prefs)
+				{
+					int index = itemIndex.IndexOf(pref.Item.ID);
+					if (index >= 0)
+					{
+						indices[count++] = index;
+					}
+				}
+				Array.Sort(indices, 0, count);
+				for (int i = 1; i < count; i++)
+				{
+					total += Math.Log(1.0 + indices[i] - indices[i - 1], 2.0);
+				}
+				numGaps += Math.Max(0, count - 1);
+			}
+			return numGaps == 0L ? 0.0 : total / numGaps;
+		}
+
+		/// <returns>positions 0 .. degrees.Length-1, by descending degree, ties in ascending position</returns>
+		private static int[] SortByDescendingDegree(int[] degrees)
+		{
+			long[] keys = new long[degrees.Length];
+			int[] positions = new int[degrees.Length];
+			for (int i = 0; i < degrees.Length; i++)
+			{
+				keys[i] = ((long) (Int32.MaxValue - degrees[i]) << 32) | (uint) i;
+				positions[i] = i;
+			}
+			Array.Sort(keys, positions);
+			return positions;
+		}
+
+		private static Object[] Permute(Object[] ids, int[] order)
+		{
+			Object[] result = new Object[order.Length];
+			for (int i = 0; i < order.Length; i++)
+			{
+				result[i] = ids[order[i]];
+			}
+			return result;
+		}
+
+		#region Helper classes
+
+		/// <summary>
+		/// A model's preferences as rows of item positions, in the model's user and item order.
+		/// </summary>
+		private sealed class Graph
+		{
+			internal readonly Object[] userIDs;
+			internal readonly Object[] itemIDs;
+			internal readonly int[][] userItems;
+
+			internal Graph(DataModel dataModel)
+			{
+				if (dataModel == null)
+				{
+					throw new ArgumentNullException("dataModel is null");
+				}
+				IDIndex modelItems = IDIndex.ForItems(dataModel);
+				itemIDs = new Object[modelItems.Count];
+				for (int i = 0; i < itemIDs.Length; i++)
+				{
+					itemIDs[i] = modelItems.IDAt(i);
+				}
+				List<Object> users = new List<Object>();
+				List<int[]> rows = new List<int[]>();
+				foreach (User user in dataModel.GetUsers())
+				{
+					Preference[] prefs = user.GetPreferencesAsArray();
+					int[] row = new int[prefs.Length];
+					int count = 0;
+					foreach (Preference pref in prefs)
+					{
+						int item = modelItems.IndexOf(pref.Item.ID);
+						if (item >= 0)
+						{
+							row[count++] = item;
+						}
+					}
+					if (count < row.Length)
+					{
+						Array.Resize(ref row, count);
+					}
+					users.Add(user.ID);
+					rows.Add(row);
+				}
+				userIDs = users.ToArray();
+				userItems = rows.ToArray();
+			}
+
+			internal int[] ItemDegrees()
+			{
+				int[] degrees = new int[itemIDs.Length];
+				foreach (int[] row in userItems)
+				{
+					foreach (int item in row)
+					{
+						degrees[item]++;
+					}
+				}
+				return degrees;
+			}
+
+			/// <returns>each item's users, in ascending position</returns>
+			internal int[][] ItemUsers()
+			{
+				int[] degrees = ItemDegrees();
+				int[][] itemUsers = new int[itemIDs.Length][];
+				for (int i = 0; i < itemUsers.Length; i++)
+				{
+					itemUsers[i] = new int[degrees[i]];
+					degrees[i] = 0;
+				}
+				for (int u = 0; u < userItems.Length; u++)
+				{
+					foreach (int item in userItems[u])
+					{
+						itemUsers[item][degrees[item]++] = u;
+					}
+				}
+				return itemUsers;
+			}
+		}
+
+		#endregion
+	}
+
+}
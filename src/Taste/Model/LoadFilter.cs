@@ -0,0 +1,321 @@
+/*
+ * Copyright 2007 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+namespace Taste.Model
+{
+	using System;
+	using System.Collections.Generic;
+	using System.Globalization;
+	using System.Text;
+
+
+    /// <summary>
+    /// <p>Says which preferences a data model should load, so that the rest are dropped while reading rather than
+    /// after. The same filter gives the same subset from <see cref="taste.Model.file.FileDataModel"/>,
+    /// <see cref="taste.Model.Netflix.NetflixDataModel"/> and <see cref="taste.Model.Ado.OleDBDataModel"/>,
+    /// which keeps experiments over different sources comparable.</p>
+    ///
+    /// <p>Preferences are kept if they pass all of these, applied in this order:</p>
+    /// <ol>
+    ///  <li>the user is in the sample: a fixed pseudo-random fraction <see cref="UserSampleRate"/> of users, chosen
+    ///   by hashing the user ID's string form with <see cref="SampleSeed"/>, so that the same users are chosen
+    ///   every time and from every source</li>
+    ///  <li>the preference was expressed in [<see cref="Since"/>, <see cref="Until"/>), if either is set;
+    ///   preferences without a date are then dropped</li>
+    ///  <li>the item has at least <see cref="MinItemPreferences"/> preferences left after the above</li>
+    ///  <li>the user has at least <see cref="MinUserPreferences"/> preferences left after the above</li>
+    /// </ol>
+    ///
+    /// <p>The thresholds are applied once each, so a user who passes can still lose preferences to the item
+    /// threshold before that, but not after.</p>
+    ///
+    /// <p>A database can't compute the sample itself, so an <see cref="taste.Model.Ado.OleDBDataModel"/> given a
+    /// filter that both samples users and has an item threshold also needs a SQL condition selecting the sampled
+    /// users; see <see cref="ToSqlCondition(String, String, String, String, String)"/>.</p>
+    /// </summary>
+	public sealed class LoadFilter
+	{
+		private double userSampleRate = 1.0;
+		private int sampleSeed;
+		private DateTime? since;
+		private DateTime? until;
+		private int minUserPreferences;
+		private int minItemPreferences;
+
+		/// <summary>
+		/// Fraction of users to keep, in (0, 1]; 1 (the default) keeps all.
+		/// </summary>
+		public double UserSampleRate
+		{
+			get { return userSampleRate; }
+			set
+			{
+				if (Double.IsNaN(value) || value <= 0.0 || value > 1.0)
+				{
+					throw new ArgumentException("userSampleRate must be in (0, 1]");
+				}
+				userSampleRate = value;
+			}
+		}
+
+		/// <summary>
+		/// Chooses which users make up the sample; different seeds give different, independent samples.
+		/// </summary>
+		public int SampleSeed
+		{
+			get { return sampleSeed; }
+			set { sampleSeed = value; }
+		}
+
+		/// <summary>
+		/// Earliest date of preferences to keep, inclusive, or <code>null</code> for no limit.
+		/// </summary>
+		public DateTime? Since
+		{
+			get { return since; }
+			set { since = value; }
+		}
+
+		/// <summary>
+		/// Date before which preferences must have been expressed to be kept, or <code>null</code> for no limit.
+		/// </summary>
+		public DateTime? Until
+		{
+			get { return until; }
+			set { until = value; }
+		}
+
+		public int MinUserPreferences
+		{
+			get { return minUserPreferences; }
+			set
+			{
+				if (value < 0)
+				{
+					throw new ArgumentException("minUserPreferences must not be negative");
+				}
+				minUserPreferences = value;
+			}
+		}
+
+		public int MinItemPreferences
+		{
+			get { return minItemPreferences; }
+			set
+			{
+				if (value < 0)
+				{
+					throw new ArgumentException("minItemPreferences must not be negative");
+				}
+				minItemPreferences = value;
+			}
+		}
+
+		public bool SamplesUsers
+		{
+			get { return userSampleRate < 1.0; }
+		}
+
+		public bool FiltersDates
+		{
+			get { return since.HasValue || until.HasValue; }
+		}
+
+		/// <returns>whether the user is in the sample</returns>
+		public bool AcceptsUser(Object userID)
+		{
+			if (userID == null)
+			{
+				throw new ArgumentNullException("userID is null");
+			}
+			if (userSampleRate >= 1.0)
+			{
+				return true;
+			}
+			// FNV-1a over the characters, then a final mix, so that similar IDs land far apart
+			String id = userID.ToString();
+			uint hash = 2166136261u ^ (uint) sampleSeed;
+			foreach (char c in id)
+			{
+				hash = (hash ^ c) * 16777619u;
+			}
+			hash ^= hash >> 16;
+			hash *= 0x85EBCA6Bu;
+			hash ^= hash >> 13;
+			hash *= 0xC2B2AE35u;
+			hash ^= hash >> 16;
+			return hash / 4294967296.0 < userSampleRate;
+		}
+
+		/// <param name="date">when the preference was expressed, or <code>null</code> if unknown</param>
+		/// <returns>whether a preference with this date passes the date limits</returns>
+		public bool AcceptsDate(DateTime? date)
+		{
+			if (!FiltersDates)
+			{
+				return true;
+			}
+			return date.HasValue && (!since.HasValue || date.Value >= since.Value) &&
+			       (!until.HasValue || date.Value < until.Value);
+		}
+
+		/// <summary>
+		/// Applies the item and then the user threshold to preferences grouped by user, removing what fails.
+		/// </summary>
+		public void RemoveSparse<K>(IDictionary<K, List<Preference>> prefsByUser)
+		{
+			if (prefsByUser == null)
+			{
+				throw new ArgumentNullException("prefsByUser is null");
+			}
+			if (minItemPreferences > 1)
+			{
+				Dictionary<Object, int> itemCounts = new Dictionary<Object, int>();
+				foreach (List<Preference> prefs in prefsByUser.Values)
+				{
+					foreach (Preference pref in prefs)
+					{
+						int count;
+						itemCounts.TryGetValue(pref.Item.ID, out count);
+						itemCounts[pref.Item.ID] = count + 1;
+					}
+				}
+				foreach (List<Preference> prefs in prefsByUser.Values)
+				{
+					prefs.RemoveAll(delegate(Preference pref) { return itemCounts[pref.Item.ID] < minItemPreferences; });
+				}
+			}
+			List<K> sparseUsers = new List<K>();
+			foreach (KeyValuePair<K, List<Preference>> entry in prefsByUser)
+			{
+				if (entry.Value.Count == 0 || entry.Value.Count < minUserPreferences)
+				{
+					sparseUsers.Add(entry.Key);
+				}
+			}
+			foreach (K userID in sparseUsers)
+			{
+				prefsByUser.Remove(userID);
+			}
+		}
+
+		/// <summary>
+		/// <p>A SQL condition on rows of the preference table that applies the date limits and the thresholds,
+		/// for use in a <code>WHERE</code> clause, or <code>null</code> if there is nothing to apply. Sampling
+		/// can't be expressed portably in SQL, so callers apply <see cref="AcceptsUser(Object)"/> to what the
+		/// query returns.</p>
+		///
+		/// <p>Dates are written as <code>'yyyy-MM-dd HH:mm:ss'</code> literals. The thresholds are subqueries over
+		/// the same table, which need indexes on the ID columns to be fast.</p>
+		///
+		/// <p>Files count <see cref="MinItemPreferences"/> over the sampled users only, which a condition without
+		/// the sample can't do, so this refuses a filter that both samples users and has an item threshold. Use
+		/// <see cref="ToSqlCondition(String, String, String, String, String)"/> for those.</p>
+		/// </summary>
+		/// <param name="dateColumn">column holding each preference's date, or <code>null</code> if there is
+		/// none, in which case the filter must not have date limits</param>
+		/// <exception cref="ArgumentException">if the filter samples users and has an item threshold</exception>
+		public String ToSqlCondition(String table, String userIDColumn, String itemIDColumn, String dateColumn)
+		{
+			return ToSqlCondition(table, userIDColumn, itemIDColumn, dateColumn, null);
+		}
+
+		/// <summary>
+		/// <p>Like <see cref="ToSqlCondition(String, String, String, String)"/>, but also applies
+		/// <code>sampleCondition</code>, a condition the caller supplies that selects exactly the users
+		/// <see cref="AcceptsUser(Object)"/> accepts: for example <code>user_id IN (SELECT user_id FROM
+		/// sampled_users)</code> over a table filled from <see cref="AcceptsUser(Object)"/>. The thresholds then
+		/// count only sampled users' preferences, as when loading files.</p>
+		/// </summary>
+		/// <param name="sampleCondition">SQL condition selecting the sampled users, or <code>null</code> if
+		/// there is none, in which case the filter must not both sample users and have an item threshold</param>
+		public String ToSqlCondition(String table, String userIDColumn, String itemIDColumn, String dateColumn,
+		                             String sampleCondition)
+		{
+			if (table == null || userIDColumn == null || itemIDColumn == null)
+			{
+				throw new ArgumentNullException("table or column is null");
+			}
+			if (FiltersDates && dateColumn == null)
+			{
+				throw new ArgumentException("Date limits need a date column");
+			}
+			if (SamplesUsers && minItemPreferences > 1 && sampleCondition == null)
+			{
+				throw new ArgumentException("Item threshold over sampled users needs a SQL sample condition");
+			}
+			List<String> conditions = new List<String>();
+			if (SamplesUsers && sampleCondition != null)
+			{
+				conditions.Add('(' + sampleCondition + ')');
+			}
+			String dateCondition = DateCondition(dateColumn);
+			if (dateCondition != null)
+			{
+				conditions.Add(dateCondition);
+			}
+			String where = conditions.Count == 0 ? String.Empty : " WHERE " + String.Join(" AND ", conditions.ToArray());
+			if (minItemPreferences > 1)
+			{
+				conditions.Add(itemIDColumn + " IN (SELECT " + itemIDColumn + " FROM " + table + where +
+				               " GROUP BY " + itemIDColumn + " HAVING COUNT(*) >= " + minItemPreferences + ')');
+			}
+			if (minUserPreferences > 1)
+			{
+				// Counted after the date limits and the item threshold, as when loading files
+				String counted = conditions.Count == 0 ? String.Empty : " WHERE " + String.Join(" AND ", conditions.ToArray());
+				conditions.Add(userIDColumn + " IN (SELECT " + userIDColumn + " FROM " + table + counted +
+				               " GROUP BY " + userIDColumn + " HAVING COUNT(*) >= " + minUserPreferences + ')');
+			}
+			return conditions.Count == 0 ? null : String.Join(" AND ", conditions.ToArray());
+		}
+
+		private String DateCondition(String dateColumn)
+		{
+			if (!FiltersDates)
+			{
+				return null;
+			}
+			StringBuilder condition = new StringBuilder();
+			if (since.HasValue)
+			{
+				condition.Append(dateColumn).Append(" >= '").Append(FormatDate(since.Value)).Append('\'');
+			}
+			if (until.HasValue)
+			{
+				if (condition.Length > 0)
+				{
+					condition.Append(" AND ");
+				}
+				condition.Append(dateColumn).Append(" < '").Append(FormatDate(until.Value)).Append('\'');
+			}
+			return condition.ToString();
+		}
+
+		private static String FormatDate(DateTime date)
+		{
+			return date.ToString("yyyy-MM-dd HH:mm:ss", CultureInfo.InvariantCulture);
+		}
+
+		public override String ToString()
+		{
+			return "LoadFilter[userSampleRate:" + userSampleRate + ", sampleSeed:" + sampleSeed + ", since:" + since +
+			       ", until:" + until + ", minUserPreferences:" + minUserPreferences + ", minItemPreferences:" +
+			       minItemPreferences + ']';
+		}
+	}
+
+}
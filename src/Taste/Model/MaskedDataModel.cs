@@ -0,0 +1,337 @@
+/*
+ * Copyright 2007 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+namespace Taste.Model
+{
+	using System;
+	using System.Collections.Generic;
+	using Iesi.Collections.Generic;
+	using Taste.Common;
+
+
+    /// <summary>
+    /// <p>A read-only view of another <see cref="taste.Model.DataModel">DataModel</see> in which some preferences are
+    /// hidden, as decided by a <see cref="Mask"/>. Used to split data into training and test sets without copying
+    /// it: users the mask does not affect are passed through as they are, and only affected users are wrapped.
+    /// A user whose preferences are all hidden is hidden too.</p>
+    ///
+    /// <p>Preferences of affected users, and per-item preference arrays that include them, are re-created so that
+    /// <see cref="taste.Model.Preference.User">Preference.User</see> refers to the masked user. Per-item arrays are
+    /// built on first use and kept. Items are those of the underlying model, even if all of an item's preferences are
+    /// hidden.</p>
+    ///
+    /// <p>The underlying model should not change while the view is in use. Instances are safe to share between
+    /// threads.</p>
+    /// </summary>
+	public sealed class MaskedDataModel : DataModel
+	{
+
+        /// <summary>
+        /// Decides which preferences a <see cref="MaskedDataModel"/> hides.
+        /// </summary>
+		public interface Mask
+		{
+            /// <returns><code>true</code> if any of the user's preferences might be hidden</returns>
+			bool AffectsUser(Object userID);
+
+            /// <returns><code>true</code> if the preference is hidden; only asked for affected users</returns>
+			bool IsMasked(Object userID, Object itemID);
+		}
+
+		private readonly DataModel delegateModel;
+		private readonly Mask mask;
+		private readonly Dictionary<Object, MaskedUser> maskedUsers;
+		private readonly HashedSet<Object> hiddenUsers;
+		private readonly int numUsers;
+		private readonly Dictionary<Object, Preference[]> prefsForItem;
+
+		public MaskedDataModel(DataModel delegateModel, Mask mask)
+		{
+			if (delegateModel == null || mask == null)
+			{
+				throw new ArgumentNullException("delegateModel or mask is null");
+			}
+			this.delegateModel = delegateModel;
+			this.mask = mask;
+			this.maskedUsers = new Dictionary<Object, MaskedUser>();
+			this.hiddenUsers = new HashedSet<Object>();
+			this.prefsForItem = new Dictionary<Object, Preference[]>();
+			int count = 0;
+			foreach (User user in delegateModel.GetUsers())
+			{
+				count++;
+				Object userID = user.ID;
+				if (mask.AffectsUser(userID))
+				{
+					List<Preference> visible = new List<Preference>();
+					foreach (Preference pref in user.GetPreferencesAsArray())
+					{
+						if (!mask.IsMasked(userID, pref.Item.ID))
+						{
+							visible.Add(pref);
+						}
+					}
+					if (visible.Count == 0)
+					{
+						hiddenUsers.Add(userID);
+					}
+					else
+					{
+						maskedUsers.Add(userID, new MaskedUser(user, visible));
+					}
+				}
+			}
+			this.numUsers = count - hiddenUsers.Count;
+		}
+
+        /// <returns><code>true</code> if the user exists in this view, i.e. is not hidden</returns>
+		public bool ContainsUser(Object userID)
+		{
+			return !hiddenUsers.Contains(userID);
+		}
+
+		public IEnumerable<User> GetUsers()
+		{
+			foreach (User user in delegateModel.GetUsers())
+			{
+				MaskedUser maskedUser;
+				if (maskedUsers.TryGetValue(user.ID, out maskedUser))
+				{
+					yield return maskedUser;
+				}
+				else if (!hiddenUsers.Contains(user.ID))
+				{
+					yield return user;
+				}
+			}
+		}
+
+        /// <exception cref="NoSuchElementException">if the user does not exist or is hidden</exception>
+		public User GetUser(Object id)
+		{
+			MaskedUser maskedUser;
+			if (maskedUsers.TryGetValue(id, out maskedUser))
+			{
+				return maskedUser;
+			}
+			if (hiddenUsers.Contains(id))
+			{
+				throw new NoSuchElementException();
+			}
+			return delegateModel.GetUser(id);
+		}
+
+		public IEnumerable<Item> GetItems()
+		{
+			return delegateModel.GetItems();
+		}
+
+		public Item GetItem(Object id)
+		{
+			return delegateModel.GetItem(id);
+		}
+
+		public IEnumerable<Preference> GetPreferencesForItem(Object itemID)
+		{
+			return GetPreferencesForItemAsArray(itemID);
+		}
+
+		public Preference[] GetPreferencesForItemAsArray(Object itemID)
+		{
+			lock (prefsForItem)
+			{
+				Preference[] cached;
+				if (prefsForItem.TryGetValue(itemID, out cached))
+				{
+					return cached;
+				}
+			}
+			Preference[] source = delegateModel.GetPreferencesForItemAsArray(itemID);
+			List<Preference> visible = null;
+			for (int i = 0; i < source.Length; i++)
+			{
+				Object userID = source[i].User.ID;
+				MaskedUser maskedUser;
+				Preference replacement = source[i];
+				if (maskedUsers.TryGetValue(userID, out maskedUser))
+				{
+					replacement = maskedUser.GetPreferenceFor(itemID);
+				}
+				else if (hiddenUsers.Contains(userID))
+				{
+					replacement = null;
+				}
+				if (visible == null && replacement != source[i])
+				{
+					// First difference from the source; copy what came before
+					visible = new List<Preference>(source.Length);
+					for (int j = 0; j < i; j++)
+					{
+						visible.Add(source[j]);
+					}
+				}
+				if (visible != null && replacement != null)
+				{
+					visible.Add(replacement);
+				}
+			}
+			Preference[] result = visible == null ? source : visible.ToArray();
+			lock (prefsForItem)
+			{
+				prefsForItem[itemID] = result;
+			}
+			return result;
+		}
+
+		public int GetNumItems()
+		{
+			return delegateModel.GetNumItems();
+		}
+
+		public int GetNumUsers()
+		{
+			return numUsers;
+		}
+
+        /// <exception cref="NotSupportedException">always; this view is read-only</exception>
+		public void SetPreference(Object userID, Object itemID, double value)
+		{
+			throw new NotSupportedException("MaskedDataModel is read-only");
+		}
+
+        /// <exception cref="NotSupportedException">always; this view is read-only</exception>
+		public void RemovePreference(Object userID, Object itemID)
+		{
+			throw new NotSupportedException("MaskedDataModel is read-only");
+		}
+
+        /// <summary>
+        /// Drops cached per-item arrays. Does not refresh the underlying model.
+        /// </summary>
+		public void Refresh()
+		{
+			lock (prefsForItem)
+			{
+				prefsForItem.Clear();
+			}
+		}
+
+		public override String ToString()
+		{
+			return "MaskedDataModel[delegate:" + delegateModel + ",hiddenUsers:" + hiddenUsers.Count + ']';
+		}
+
+		#region Masked users and preferences
+
+		private sealed class MaskedUser : User
+		{
+			private readonly User user;
+			private readonly Preference[] values;
+			private readonly Dictionary<Object, Preference> data;
+
+			internal MaskedUser(User user, List<Preference> visible)
+			{
+				this.user = user;
+				this.values = new Preference[visible.Count];
+				this.data = new Dictionary<Object, Preference>(visible.Count);
+				for (int i = 0; i < values.Length; i++)
+				{
+					Preference wrapped = new MaskedPreference(this, visible[i]);
+					values[i] = wrapped;
+					data[wrapped.Item.ID] = wrapped;
+				}
+			}
+
+			public Object ID
+			{
+				get { return user.ID; }
+			}
+
+			public Preference GetPreferenceFor(Object itemID)
+			{
+				Preference result;
+				return data.TryGetValue(itemID, out result) ? result : null;
+			}
+
+			public IEnumerable<Preference> GetPreferences()
+			{
+				return values;
+			}
+
+			public Preference[] GetPreferencesAsArray()
+			{
+				return values;
+			}
+
+			public int CompareTo(User other)
+			{
+				return user.CompareTo(other);
+			}
+
+			public override int GetHashCode()
+			{
+				return user.ID.GetHashCode();
+			}
+
+			public override bool Equals(Object obj)
+			{
+				return (obj is User) && ((User) obj).ID.Equals(user.ID);
+			}
+
+			public override String ToString()
+			{
+				return "User[id:" + user.ID + ']';
+			}
+		}
+
+		private sealed class MaskedPreference : Preference
+		{
+			private readonly User user;
+			private readonly Preference preference;
+
+			internal MaskedPreference(User user, Preference preference)
+			{
+				this.user = user;
+				this.preference = preference;
+			}
+
+			public User User
+			{
+				get { return user; }
+			}
+
+			public Item Item
+			{
+				get { return preference.Item; }
+			}
+
+			public double Value
+			{
+				get { return preference.Value; }
+				set { throw new NotSupportedException("MaskedDataModel is read-only"); }
+			}
+
+			public override String ToString()
+			{
+				return "MaskedPreference[user:" + user.ID + ", item:" + preference.Item + ", value:" +
+				       preference.Value + ']';
+			}
+		}
+
+		#endregion
+	}
+
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2005 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+namespace Taste.Model
+{
+	using System;
+
+
+    /// <summary>
+    /// <p>Describes one preference that was added, changed or removed in a <see cref="taste.Model.DataModel">DataModel</see>.
+    /// The old value is <see cref="Double.NaN"/> for an added preference, and the new value is
+    /// <see cref="Double.NaN"/> for a removed one.</p>
+    ///
+    /// <p>A source may also record the user's preferences as they were before the change, so that listeners
+    /// need not read them back from a model that may have changed again since.</p>
+    /// </summary>
+	[Serializable]
+	public sealed class PreferenceChange
+	{
+		private readonly Object userID;
+		private readonly Object itemID;
+		private readonly double oldValue;
+		private readonly double newValue;
+		[NonSerialized]
+		private readonly Preference[] previousPreferences;
+
+		/// <param name="userID">user whose preference changed</param>
+		/// <param name="itemID">item the preference is for</param>
+		/// <param name="oldValue">previous value, or NaN if there was none</param>
+		/// <param name="newValue">new value, or NaN if the preference was removed</param>
+		public PreferenceChange(Object userID, Object itemID, double oldValue, double newValue)
+			: this(userID, itemID, oldValue, newValue, null)
+		{
+		}
+
+		/// <param name="userID">user whose preference changed</param>
+		/// <param name="itemID">item the preference is for</param>
+		/// <param name="oldValue">previous value, or NaN if there was none</param>
+		/// <param name="newValue">new value, or NaN if the preference was removed</param>
+		/// <param name="previousPreferences">see <see cref="PreviousPreferences"/>; may be <code>null</code></param>
+		public PreferenceChange(Object userID, Object itemID, double oldValue, double newValue,
+		                        Preference[] previousPreferences)
+		{
+			if (userID == null || itemID == null)
+			{
+				throw new ArgumentNullException("userID or itemID is null");
+			}
+			if (Double.IsNaN(oldValue) && Double.IsNaN(newValue))
+			{
+				throw new ArgumentException("oldValue and newValue can't both be NaN");
+			}
+			this.userID = userID;
+			this.itemID = itemID;
+			this.oldValue = oldValue;
+			this.newValue = newValue;
+			this.previousPreferences = previousPreferences;
+		}
+
+		public static PreferenceChange Added(Object userID, Object itemID, double value)
+		{
+			return new PreferenceChange(userID, itemID, Double.NaN, value);
+		}
+
+		public static PreferenceChange Removed(Object userID, Object itemID, double oldValue)
+		{
+			return new PreferenceChange(userID, itemID, oldValue, Double.NaN);
+		}
+
+		public Object UserID
+		{
+			get { return userID; }
+		}
+
+		public Object ItemID
+		{
+			get { return itemID; }
+		}
+
+		public double OldValue
+		{
+			get { return oldValue; }
+		}
+
+		public double NewValue
+		{
+			get { return newValue; }
+		}
+
+		/// <summary>
+		/// The user's preferences just before the changes for that user that were fired together with this one,
+		/// as <see cref="User.GetPreferencesAsArray"/> returned them; empty for a new user, and <code>null</code> if
+		/// the source did not record them. Not kept when serialized.
+		/// </summary>
+		public Preference[] PreviousPreferences
+		{
+			get { return previousPreferences; }
+		}
+
+		public bool IsAdded
+		{
+			get { return Double.IsNaN(oldValue); }
+		}
+
+		public bool IsRemoved
+		{
+			get { return Double.IsNaN(newValue); }
+		}
+
+		public override String ToString()
+		{
+			return "PreferenceChange[user:" + userID + ", item:" + itemID + ", old:" + oldValue + ", new:" + newValue + ']';
+		}
+	}
+
+}
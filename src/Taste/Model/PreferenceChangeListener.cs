@@ -0,0 +1,37 @@
+/*
+ * Copyright 2005 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+namespace Taste.Model
+{
+	using System;
+	using System.Collections.Generic;
+
+
+    /// <summary>
+    /// <p>Implementations are notified of preferences added, changed or removed in a
+    /// <see cref="taste.Model.PreferenceChangeSource">PreferenceChangeSource</see>, so that they can update derived
+    /// data incrementally instead of recomputing it.</p>
+    /// </summary>
+	public interface PreferenceChangeListener
+	{
+        /// <summary>
+        /// Called after the changes are visible in the source's data. Changes are given in the order they were made.
+        /// </summary>
+        /// <param name="changes">changes since the previous notification</param>
+		void PreferencesChanged(IList<PreferenceChange> changes);
+	}
+
+}
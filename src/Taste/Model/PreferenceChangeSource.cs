@@ -0,0 +1,36 @@
+/*
+ * Copyright 2005 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+namespace Taste.Model
+{
+	using System;
+
+
+    /// <summary>
+    /// <p>Implemented by <see cref="taste.Model.DataModel">DataModel</see>s, and other feeds of preference data, that can
+    /// report changes to <see cref="taste.Model.PreferenceChangeListener">PreferenceChangeListener</see>s.</p>
+    /// </summary>
+	public interface PreferenceChangeSource
+	{
+		void AddPreferenceChangeListener(PreferenceChangeListener listener);
+
+		void RemovePreferenceChangeListener(PreferenceChangeListener listener);
+
+        /// <returns><code>true</code> if the given listener is currently registered</returns>
+		bool HasPreferenceChangeListener(PreferenceChangeListener listener);
+	}
+
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2005 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+namespace Taste.Model
+{
+	using System;
+	using System.Collections.Generic;
+	using log4net;
+
+
+    /// <summary>
+    /// <p>Keeps a set of <see cref="taste.Model.PreferenceChangeListener">PreferenceChangeListener</see>s and notifies them.
+    /// <see cref="taste.Model.DataModel">DataModel</see>s use this to implement
+    /// <see cref="taste.Model.PreferenceChangeSource">PreferenceChangeSource</see>; it can also be used directly as a
+    /// feed, by calling <see cref="Fire(IList{PreferenceChange})"/> with batches of changes from elsewhere.</p>
+    ///
+    /// <p>Registration is thread-safe. A listener that throws is logged and does not stop the others from
+    /// being notified.</p>
+    /// </summary>
+	public class PreferenceChangeSupport : PreferenceChangeSource
+	{
+		private static ILog log = LogManager.GetLogger(typeof(PreferenceChangeSupport));
+
+		private static readonly PreferenceChangeListener[] NO_LISTENERS = new PreferenceChangeListener[0];
+
+		// Copy-on-write, so firing needs no lock
+		private volatile PreferenceChangeListener[] listeners = NO_LISTENERS;
+		private readonly Object listenersLock = new Object();
+
+		public void AddPreferenceChangeListener(PreferenceChangeListener listener)
+		{
+			if (listener == null)
+			{
+				throw new ArgumentNullException("listener is null");
+			}
+			lock (listenersLock)
+			{
+				if (Array.IndexOf(listeners, listener) < 0)
+				{
+					List<PreferenceChangeListener> copy = new List<PreferenceChangeListener>(listeners);
+					copy.Add(listener);
+					listeners = copy.ToArray();
+				}
+			}
+		}
+
+		public void RemovePreferenceChangeListener(PreferenceChangeListener listener)
+		{
+			lock (listenersLock)
+			{
+				List<PreferenceChangeListener> copy = new List<PreferenceChangeListener>(listeners);
+				if (copy.Remove(listener))
+				{
+					listeners = copy.ToArray();
+				}
+			}
+		}
+
+		public bool HasPreferenceChangeListener(PreferenceChangeListener listener)
+		{
+			return Array.IndexOf(listeners, listener) >= 0;
+		}
+
+		/// <returns><code>true</code> if anyone is listening; sources can skip computing changes otherwise</returns>
+		public bool HasListeners
+		{
+			get { return listeners.Length > 0; }
+		}
+
+		/// <summary>
+		/// Notifies all listeners of the given changes, on the calling thread.
+		/// </summary>
+		public void Fire(IList<PreferenceChange> changes)
+		{
+			if (changes == null || changes.Count == 0)
+			{
+				return;
+			}
+			foreach (PreferenceChangeListener listener in listeners)
+			{
+				try
+				{
+					listener.PreferencesChanged(changes);
+				}
+				catch (Exception e)
+				{
+					log.Warn("Preference change listener " + listener + " failed", e);
+				}
+			}
+		}
+
+		/// <summary>
+		/// Notifies all listeners of one change.
+		/// </summary>
+		public void Fire(PreferenceChange change)
+		{
+			if (listeners.Length > 0)
+			{
+				Fire(new PreferenceChange[] { change });
+			}
+		}
+	}
+
+}
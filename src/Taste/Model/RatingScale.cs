@@ -0,0 +1,255 @@
+/*
+ * Copyright 2007 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+namespace Taste.Model
+{
+	using System;
+	using System.Collections.Generic;
+
+
+    /// <summary>
+    /// <p>Describes how preference values are stored by <see cref="CompactDataModel"/>. Values on a small fixed
+    /// scale, such as whole stars from 1 to 5 or half stars from 0.5 to 5, are stored exactly as one byte: the
+    /// number of steps above the minimum. Any other values are stored in two bytes as IEEE 754 half-precision
+    /// floats, which keep about three significant digits; see <see cref="HalfPrecision"/>.</p>
+    /// </summary>
+	[Serializable]
+	public sealed class RatingScale
+	{
+		public const int MAX_LEVELS = 256;
+
+		// Relative tolerance for deciding a value lies on the scale; values pass through float while loading
+		private const double TOLERANCE = 1.0e-6;
+
+		private static readonly RatingScale halfPrecision = new RatingScale();
+
+		private readonly double min;
+		private readonly double step;
+		// 0 for half precision
+		private readonly int levels;
+
+		/// <param name="min">lowest value</param>
+		/// <param name="max">highest value</param>
+		/// <param name="step">difference between successive values</param>
+		/// <exception cref="ArgumentException">if the scale has more than <see cref="MAX_LEVELS"/> values</exception>
+		public RatingScale(double min, double max, double step)
+		{
+			if (double.IsNaN(min) || double.IsInfinity(min) || double.IsNaN(max) || double.IsInfinity(max) || max < min)
+			{
+				throw new ArgumentException("Invalid range: " + min + " to " + max);
+			}
+			if (double.IsNaN(step) || step <= 0.0)
+			{
+				throw new ArgumentException("Invalid step: " + step);
+			}
+			double numLevels = Math.Round((max - min) / step) + 1.0;
+			if (numLevels > MAX_LEVELS)
+			{
+				throw new ArgumentException("Scale has more than " + MAX_LEVELS + " values");
+			}
+			this.min = min;
+			this.step = step;
+			this.levels = (int) numLevels;
+		}
+
+		private RatingScale()
+		{
+			this.min = Double.NaN;
+			this.step = Double.NaN;
+			this.levels = 0;
+		}
+
+		/// <summary>Stores any value, approximately, in two bytes</summary>
+		public static RatingScale HalfPrecision
+		{
+			get { return halfPrecision; }
+		}
+
+		/// <summary>
+		/// Finds the coarsest scale that holds all the given values exactly, or returns <see cref="HalfPrecision"/>
+		/// if there is none with at most <see cref="MAX_LEVELS"/> values.
+		/// </summary>
+		public static RatingScale Detect(IEnumerable<double> values)
+		{
+			if (values == null)
+			{
+				throw new ArgumentNullException("values is null");
+			}
+			Dictionary<double, bool> distinct = new Dictionary<double, bool>();
+			foreach (double value in values)
+			{
+				if (double.IsNaN(value) || double.IsInfinity(value))
+				{
+					return halfPrecision;
+				}
+				if (!distinct.ContainsKey(value))
+				{
+					if (distinct.Count == MAX_LEVELS)
+					{
+						return halfPrecision;
+					}
+					distinct.Add(value, true);
+				}
+			}
+			if (distinct.Count == 0)
+			{
+				return halfPrecision;
+			}
+			double[] sorted = new double[distinct.Count];
+			distinct.Keys.CopyTo(sorted, 0);
+			Array.Sort(sorted);
+			double lowest = sorted[0];
+			double highest = sorted[sorted.Length - 1];
+			if (sorted.Length == 1)
+			{
+				return new RatingScale(lowest, lowest, 1.0);
+			}
+			double smallestGap = Double.PositiveInfinity;
+			for (int i = 1; i < sorted.Length; i++)
+			{
+				smallestGap = Math.Min(smallestGap, sorted[i] - sorted[i - 1]);
+			}
+			if ((highest - lowest) / smallestGap + 1.0 > MAX_LEVELS + 0.5)
+			{
+				return halfPrecision;
+			}
+			RatingScale scale = new RatingScale(lowest, highest, smallestGap);
+			foreach (double value in sorted)
+			{
+				if (!scale.IsExact(value))
+				{
+					return halfPrecision;
+				}
+			}
+			return scale;
+		}
+
+		/// <summary>1 for a fixed scale, 2 for half precision</summary>
+		public int BytesPerValue
+		{
+			get { return levels == 0 ? 2 : 1; }
+		}
+
+		/// <returns><code>true</code> if the value is stored without loss</returns>
+		public bool IsExact(double value)
+		{
+			if (levels == 0)
+			{
+				return FromHalf(ToHalf(value)) == value;
+			}
+			double code = Math.Round((value - min) / step);
+			return code >= 0.0 && code < levels &&
+			       Math.Abs(min + code * step - value) <= TOLERANCE * Math.Max(1.0, Math.Abs(value));
+		}
+
+		/// <exception cref="ArgumentException">if the scale is fixed and the value is not on it</exception>
+		internal void Encode(double value, byte[] dest, int offset)
+		{
+			if (levels == 0)
+			{
+				ushort half = ToHalf(value);
+				dest[offset] = (byte) half;
+				dest[offset + 1] = (byte) (half >> 8);
+				return;
+			}
+			if (!IsExact(value))
+			{
+				throw new ArgumentException("Value is not on " + this + ": " + value);
+			}
+			dest[offset] = (byte) Math.Round((value - min) / step);
+		}
+
+		internal double Decode(byte[] src, int offset)
+		{
+			if (levels == 0)
+			{
+				return FromHalf((ushort) (src[offset] | (src[offset + 1] << 8)));
+			}
+			return min + src[offset] * step;
+		}
+
+		/// <summary>
+		/// Converts to the nearest IEEE 754 half-precision value. Magnitudes above 65504 become infinite; below
+		/// about 6e-8 they become zero.
+		/// </summary>
+		public static ushort ToHalf(double value)
+		{
+			long bits = BitConverter.DoubleToInt64Bits(value);
+			int sign = (int) ((bits >> 48) & 0x8000L);
+			int exponent = (int) ((bits >> 52) & 0x7FFL);
+			long mantissa = bits & 0xFFFFFFFFFFFFFL;
+			if (exponent == 0x7FF)
+			{
+				return (ushort) (sign | 0x7C00 | (mantissa != 0L ? 0x200 : 0));
+			}
+			int halfExponent = exponent - 1023 + 15;
+			if (halfExponent >= 31)
+			{
+				return (ushort) (sign | 0x7C00);
+			}
+			if (halfExponent <= 0)
+			{
+				if (halfExponent < -10)
+				{
+					return (ushort) sign;
+				}
+				// Subnormal: shift the implicit leading 1 in, then round
+				long full = mantissa | (1L << 52);
+				int shift = 43 - halfExponent;
+				long halfMantissa = full >> shift;
+				if (((full >> (shift - 1)) & 1L) != 0L)
+				{
+					halfMantissa++;
+				}
+				return (ushort) (sign | (int) halfMantissa);
+			}
+			int result = sign | (halfExponent << 10) | (int) (mantissa >> 42);
+			if (((mantissa >> 41) & 1L) != 0L)
+			{
+				// Round up; a carry into the exponent is still correct, overflowing to infinity at worst
+				result++;
+			}
+			return (ushort) result;
+		}
+
+		public static double FromHalf(ushort half)
+		{
+			int exponent = (half >> 10) & 0x1F;
+			int mantissa = half & 0x3FF;
+			double result;
+			if (exponent == 0)
+			{
+				result = mantissa / 16777216.0;
+			}
+			else if (exponent == 31)
+			{
+				result = mantissa == 0 ? Double.PositiveInfinity : Double.NaN;
+			}
+			else
+			{
+				result = BitConverter.Int64BitsToDouble(((long) (exponent - 15 + 1023) << 52) | ((long) mantissa << 42));
+			}
+			return (half & 0x8000) != 0 ? -result : result;
+		}
+
+		public override String ToString()
+		{
+			return levels == 0 ? "RatingScale[halfPrecision]" :
+			       "RatingScale[min:" + min + ", step:" + step + ", levels:" + levels + ']';
+		}
+	}
+
+}
@@ -41,17 +41,50 @@ namespace Taste.Model.Ado
 	 * for IDs in the rest of your code, you will run into subtle problems because the {@link Long} values won't
 	 * be equal to or compare correctly to the underlying {@link String} key values.</p>
 	 *
+	 * <p>Writes made through {@link #SetPreference(Object, Object, double)} and {@link #RemovePreference(Object, Object)}
+	 * are reported to registered {@link PreferenceChangeListener}s once they succeed. When anyone is listening,
+	 * each write first reads the user's current preference so the change can be described; writes made to the
+	 * table by other means are of course not seen.</p>
+	 *
+	 * <p>Optionally, each user's preferences, and each item's, can also be kept denormalized in companion tables
+	 * as a single {@link PackedPreferences} value per row; see {@link #UsePackedPreferences}. {@link #GetUser(Object)}
+	 * and {@link #GetPreferencesForItem(Object)} then read one row and decode it in bulk, rather than read one row
+	 * per preference, which matters for users and items with thousands of preferences. Writes through this class
+	 * keep the packed rows up to date: each runs the preference write and both packed updates in one serializable
+	 * transaction, and listeners hear of it only once that commits, so the rows stay in step even when several
+	 * processes write. Where the database supports it, have the packed SELECTs take a row lock, such as
+	 * <code>FOR UPDATE</code>, so that processes updating the same row wait rather than deadlock. If the
+	 * preference table is changed by other means, call {@link #RebuildPackedPreferences()}.</p>
+	 *
+	 * <p>A {@link #Filter} samples users as rows are read: users outside the sample are skipped by
+	 * {@link #GetUsers()} and {@link #GetPreferencesForItem(Object)}, and {@link #GetUser(Object)} reports them
+	 * missing. Counts from {@link #GetNumUsers()} are not sampled. Subclasses push the rest of the filter into
+	 * their SQL; see {@link OleDBDataModel}.</p>
+	 *
 	 * @author Sean Owen
 	 */
-	public abstract class AbstractADODataModel : ADODataModel 
+	public abstract class AbstractADODataModel : ADODataModel, PreferenceChangeSource
 	{
 
 		private static readonly ILog log = LogManager.GetLogger(typeof(AbstractADODataModel));
 
+		private static readonly MetricsHistogram getUserTime = MetricsRegistry.Default.GetHistogram("ado.getUser", "us");
+		private static readonly MetricsHistogram getItemTime = MetricsRegistry.Default.GetHistogram("ado.getItem", "us");
+		private static readonly MetricsHistogram getPrefsForItemTime =
+			MetricsRegistry.Default.GetHistogram("ado.getPrefsForItem", "us");
+		private static readonly MetricsHistogram countTime = MetricsRegistry.Default.GetHistogram("ado.count", "us");
+		private static readonly MetricsHistogram updateTime = MetricsRegistry.Default.GetHistogram("ado.update", "us");
+		private static readonly MetricsCounter rowsFetched = MetricsRegistry.Default.GetCounter("ado.rows");
+
 		public const String DEFAULT_PREFERENCE_TABLE = "taste_preferences";
 		public const String DEFAULT_USER_ID_COLUMN = "user_id";
 		public const String DEFAULT_ITEM_ID_COLUMN = "item_id";
 		public const String DEFAULT_PREFERENCE_COLUMN = "preference";
+		public const int DEFAULT_MAX_CONCURRENT_QUERIES = 8;
+		public const String DEFAULT_PACKED_USER_TABLE = "taste_user_preferences";
+		public const String DEFAULT_PACKED_ITEM_TABLE = "taste_item_preferences";
+		public const String DEFAULT_PACKED_PREFERENCES_COLUMN = "preferences";
+		private const int NUM_LOCKS = 64;
 		
 		protected String getUserSQL;
         protected String getNumItemsSQL;
@@ -63,9 +96,20 @@ namespace Taste.Model.Ado
 		protected String getItemSQL;		
 		protected String getPrefsForItemSQL;		
 		protected String getUsersPreferringItemSQL;
+		protected String getPackedUserSQL;
+		protected String setPackedUserSQL;
+		protected String getPackedItemSQL;
+		protected String setPackedItemSQL;
         protected string connectionString;
 
         private readonly bool _userStoreProcs = false;
+        private readonly PreferenceChangeSupport changeSupport = new PreferenceChangeSupport();
+        private int maxConcurrentQueries = DEFAULT_MAX_CONCURRENT_QUERIES;
+        private bool usePackedPreferences;
+        private LoadFilter loadFilter;
+        private readonly Object[] packedLocks = NewLocks();
+        // Serialize each user's writes with reading their previous preferences and telling listeners
+        private readonly Object[] userWriteLocks = NewLocks();
 
         public AbstractADODataModel()
         {
@@ -200,7 +244,10 @@ namespace Taste.Model.Ado
                 userIter.Reset();
                 while (userIter.MoveNext())
                 {
-                    yield return userIter.Current;
+                    if (loadFilter == null || loadFilter.AcceptsUser(userIter.Current.ID))
+                    {
+                        yield return userIter.Current;
+                    }
                 }
             }
         }
@@ -268,6 +315,80 @@ namespace Taste.Model.Ado
             set { getUsersPreferringItemSQL = value; }
         }
 
+        /// <summary>
+        /// Most queries issued at once for one caller; defaults to
+        /// <see cref="DEFAULT_MAX_CONCURRENT_QUERIES"/>. Keep it within the connection pool's
+        /// <code>Max Pool Size</code>, or callers will queue for connections instead.
+        /// </summary>
+        public int MaxConcurrentQueries
+        {
+            get { return maxConcurrentQueries; }
+            set
+            {
+                if (value < 1)
+                {
+                    throw new ArgumentException("MaxConcurrentQueries must be at least 1");
+                }
+                maxConcurrentQueries = value;
+            }
+        }
+
+        /// <summary>Selects the packed preferences of the user given as the one parameter</summary>
+        public String GetPackedUserSQL
+        {
+            get { return getPackedUserSQL; }
+            set { getPackedUserSQL = value; }
+        }
+
+        /// <summary>Inserts or replaces the packed preferences of a user, given the user ID and the value</summary>
+        public String SetPackedUserSQL
+        {
+            get { return setPackedUserSQL; }
+            set { setPackedUserSQL = value; }
+        }
+
+        /// <summary>Selects the packed preferences of the item given as the one parameter</summary>
+        public String GetPackedItemSQL
+        {
+            get { return getPackedItemSQL; }
+            set { getPackedItemSQL = value; }
+        }
+
+        /// <summary>Inserts or replaces the packed preferences of an item, given the item ID and the value</summary>
+        public String SetPackedItemSQL
+        {
+            get { return setPackedItemSQL; }
+            set { setPackedItemSQL = value; }
+        }
+
+        /// <summary>
+        /// Whether to read users' and items' preferences from the packed tables, and keep those up to date on
+        /// writes. The four packed SQL statements must be set first. Fill the tables with
+        /// <see cref="RebuildPackedPreferences()"/> before turning this on.
+        /// </summary>
+        public bool UsePackedPreferences
+        {
+            get { return usePackedPreferences; }
+            set
+            {
+                if (value)
+                {
+                    CheckPackedSQL();
+                }
+                usePackedPreferences = value;
+            }
+        }
+
+        /// <summary>
+        /// Users to sample as rows are read, or <code>null</code> for all. Only the filter's sampling is applied
+        /// here; its other conditions take effect only as far as the SQL statements express them.
+        /// </summary>
+        public LoadFilter Filter
+        {
+            get { return loadFilter; }
+            set { loadFilter = value; }
+        }
+
         #endregion
 
         #region Subclass overrides
@@ -313,6 +434,26 @@ namespace Taste.Model.Ado
             throw new NotImplementedException();
         }
 
+        protected virtual void ConfigureGetPackedUserCommand(IDbCommand command, Object userID)
+        {
+            throw new NotImplementedException();
+        }
+
+        protected virtual void ConfigureSetPackedUserCommand(IDbCommand command, Object userID, byte[] packed)
+        {
+            throw new NotImplementedException();
+        }
+
+        protected virtual void ConfigureGetPackedItemCommand(IDbCommand command, Object itemID)
+        {
+            throw new NotImplementedException();
+        }
+
+        protected virtual void ConfigureSetPackedItemCommand(IDbCommand command, Object itemID, byte[] packed)
+        {
+            throw new NotImplementedException();
+        }
+
         #endregion
 
 		
@@ -322,8 +463,18 @@ namespace Taste.Model.Ado
             {
 				log.Debug("Retrieving user ID '" + id + "'...");
 			}
+			if (loadFilter != null && !loadFilter.AcceptsUser(id))
+			{
+				throw new NoSuchElementException();
+			}
+			return usePackedPreferences ? ReadPackedUser(id) : ReadUser(id);
+		}
 
+		private User ReadUser(Object id)
+		{
 			String idString = id.ToString();
+            long start = getUserTime.Start();
+            long traceStart = TasteEvents.Start();
             try
             {
                 using (IDbCommand cmd = CreateCommand(this.getUserSQL))
@@ -341,6 +492,9 @@ namespace Taste.Model.Ado
                         {
                             AddPreference(rs, prefs);
                         }
+                        getUserTime.Stop(start);
+                        rowsFetched.Add(prefs.Count);
+                        TasteEvents.Query("getUser", prefs.Count, traceStart);
                         if (prefs.Count == 0)
                         {
                             throw new NoSuchElementException();
@@ -349,6 +503,10 @@ namespace Taste.Model.Ado
                     }
                 }
 			} 
+            catch (NoSuchElementException)
+            {
+                throw;
+            }
             catch (Exception sqle) 
             {
 				log.Warn( "Exception while retrieving user", sqle);
@@ -369,7 +527,6 @@ namespace Taste.Model.Ado
             using (ResultSetItemEnumerator enumerator = new ResultSetItemEnumerator(this, cmd))
             {
                 IEnumerator<Item> items = enumerator.GetEnumerator();
-                items.Reset();
                 while (items.MoveNext())
                 {
                     yield return items.Current;
@@ -402,6 +559,8 @@ namespace Taste.Model.Ado
 				log.Debug("Retrieving item ID '" + id + "'...");
 			}
 
+			long start = getItemTime.Start();
+			long traceStart = TasteEvents.Start();
 			using (IDbCommand cmd = CreateCommand(this.getItemSQL))
             {
     			try 	    		
@@ -416,6 +575,9 @@ namespace Taste.Model.Ado
                     {
                         if (rs.Read())
                         {
+                            getItemTime.Stop(start);
+                            rowsFetched.Increment();
+                            TasteEvents.Query("getItem", 1, traceStart);
                             return BuildItem((String)id);
                         }
                         else
@@ -424,6 +586,10 @@ namespace Taste.Model.Ado
                         }
                     }
 			    } 
+                catch (NoSuchElementException)
+                {
+                    throw;
+                }
                 catch (Exception sqle) 
                 {
     				log.Warn( "Exception while retrieving item", sqle);
@@ -449,14 +615,62 @@ namespace Taste.Model.Ado
         }
 		
 
+        /// <summary>
+        /// Issues one query per item, up to <see cref="MaxConcurrentQueries"/> at a time, on the calling thread and
+        /// <see cref="System.Threading.ThreadPool"/> threads. Items that do not exist are left out of the result.
+        /// </summary>
+        public IDictionary<Object, Preference[]> GetPreferencesForItems(ICollection<Object> itemIDs)
+        {
+            if (itemIDs == null)
+            {
+                throw new ArgumentNullException("itemIDs is null");
+            }
+            Object[] ids = new Object[itemIDs.Count];
+            itemIDs.CopyTo(ids, 0);
+            Preference[][] results = new Preference[ids.Length][];
+            ParallelUtils.FanOut(ids.Length, maxConcurrentQueries, delegate(int i)
+            {
+                try
+                {
+                    results[i] = DoGetPreferencesForItem(ids[i]).ToArray();
+                }
+                catch (NoSuchElementException)
+                {
+                    // leave it out
+                }
+            });
+            Dictionary<Object, Preference[]> prefsByItem = new Dictionary<Object, Preference[]>(ids.Length);
+            for (int i = 0; i < ids.Length; i++)
+            {
+                if (results[i] != null)
+                {
+                    prefsByItem[ids[i]] = results[i];
+                }
+            }
+            return prefsByItem;
+        }
+
 		protected List<Preference> DoGetPreferencesForItem(Object itemID)
 		{
 			if (log.IsDebugEnabled) 
 			{
 				log.Debug("Retrieving preferences for item ID '" + itemID + "'...");
 			}
+			List<Preference> prefs = usePackedPreferences ? ReadPackedItemPreferences(itemID) : ReadItemPreferences(itemID);
+			LoadFilter filter = loadFilter;
+			if (filter != null && filter.SamplesUsers)
+			{
+				prefs.RemoveAll(delegate(Preference pref) { return !filter.AcceptsUser(pref.User.ID); });
+			}
+			return prefs;
+		}
+
+		private List<Preference> ReadItemPreferences(Object itemID)
+		{
 			Item item = GetItem(itemID);
 
+			long start = getPrefsForItemTime.Start();
+			long traceStart = TasteEvents.Start();
 			try 
             {
                 using (IDbCommand cmd = CreateCommand(this.getPrefsForItemSQL))
@@ -479,6 +693,9 @@ namespace Taste.Model.Ado
                             Preference pref = BuildPreference(BuildUser(userID, null), item, preference);
                             prefs.Add(pref);
                         }
+                        getPrefsForItemTime.Stop(start);
+                        rowsFetched.Add(prefs.Count);
+                        TasteEvents.Query("getPrefsForItem", prefs.Count, traceStart);
                         return prefs;
                     }
                 }
@@ -511,6 +728,8 @@ namespace Taste.Model.Ado
 		{
 			log.Debug("Retrieving number of " + name + " in Model...");
 
+			long start = countTime.Start();
+			long traceStart = TasteEvents.Start();
 			try 
             {
                 using (IDbCommand cmd = CreateCommand(sql))
@@ -521,6 +740,8 @@ namespace Taste.Model.Ado
                         ConfigureGetUserCountCommand(cmd);
 
                     object data = cmd.ExecuteScalar();
+                    countTime.Stop(start);
+                    TasteEvents.Query(name == "items" ? "getNumItems" : "getNumUsers", 1, traceStart);
                     if (log.IsDebugEnabled)
                     {
                         log.Debug("Executing SQL query: " + sql);
@@ -561,24 +782,32 @@ namespace Taste.Model.Ado
 				log.Debug("Setting preference for user '" + userID.ToString() + "', item '" + itemID.ToString() + "', value " + value);
 			}
 
-            try
+            lock (UserWriteLockFor(userID))
             {
-                using (IDbCommand cmd = CreateCommand(this.setPreferenceSQL))
+                Preference[] previous = changeSupport.HasListeners ? GetCurrentPreferences(userID) : null;
+
+                long start = updateTime.Start();
+                long traceStart = TasteEvents.Start();
+                try
+                {
+                    int rows = WritePreference(this.setPreferenceSQL, userID, itemID, value);
+                    TasteEvents.Query("setPreference", rows, traceStart);
+                    updateTime.Stop(start);
+                }
+                catch (Exception sqle)
                 {
-                    ConfigureSetPreferenceCommand(cmd, userID, itemID, value);
+                    log.Warn( "Exception while setting preference", sqle);
+                    throw new TasteException(sqle);
+                }
 
-                    if (log.IsDebugEnabled)
+                if (previous != null)
+                {
+                    double oldValue = ValueFor(previous, itemID);
+                    if (oldValue != value)
                     {
-                        log.Debug("Executing SQL update: " + setPreferenceSQL);
+                        changeSupport.Fire(new PreferenceChange(userID, itemID, oldValue, value, previous));
                     }
-                    cmd.ExecuteNonQuery();
                 }
-
-            }
-            catch (Exception sqle)
-            {
-                log.Warn( "Exception while setting preference", sqle);
-                throw new TasteException(sqle);
             }
 		}
 
@@ -598,21 +827,407 @@ namespace Taste.Model.Ado
 				log.Debug("Removing preference for user '" + userID + "', item '" + itemID + '\'');
 			}
 
-            using (IDbCommand cmd = CreateCommand(this.removePreferenceSQL))
+            lock (UserWriteLockFor(userID))
             {
+                Preference[] previous = changeSupport.HasListeners ? GetCurrentPreferences(userID) : null;
+
+                long start = updateTime.Start();
+                long traceStart = TasteEvents.Start();
                 try
                 {
-                    ConfigureRemovePreferenceCommand(cmd, userID, itemID);
-                    cmd.ExecuteNonQuery();
+                    int rows = WritePreference(this.removePreferenceSQL, userID, itemID, Double.NaN);
+                    updateTime.Stop(start);
+                    TasteEvents.Query("removePreference", rows, traceStart);
                 }
                 catch (Exception sqle)
                 {
                     log.Warn( "Exception while removing preference", sqle);
                     throw new TasteException(sqle);
                 }
+
+                if (previous != null)
+                {
+                    double oldValue = ValueFor(previous, itemID);
+                    if (!Double.IsNaN(oldValue))
+                    {
+                        changeSupport.Fire(new PreferenceChange(userID, itemID, oldValue, Double.NaN, previous));
+                    }
+                }
             }
 		}
 
+        #region Packed preferences
+
+        /// <summary>
+        /// <p>Rewrites the packed row of every user and every item from the preference table, querying up to
+        /// <see cref="MaxConcurrentQueries"/> at a time. Users and items no longer in the preference table keep
+        /// their old rows; delete those separately if it matters.</p>
+        /// </summary>
+        /// <exception cref="TasteException">if a query fails</exception>
+        public void RebuildPackedPreferences()
+        {
+            CheckPackedSQL();
+            long traceStart = TasteEvents.Start();
+            // Collected first, so that no reader is held open while writing
+            List<Object> userIDs = new List<Object>();
+            foreach (User user in GetUsers())
+            {
+                userIDs.Add(user.ID);
+            }
+            List<Object> itemIDs = new List<Object>();
+            foreach (Item item in GetItems())
+            {
+                itemIDs.Add(item.ID);
+            }
+            log.Info("Rebuilding packed preferences of " + userIDs.Count + " users and " + itemIDs.Count + " items");
+
+            ParallelUtils.FanOut(userIDs.Count, maxConcurrentQueries, delegate(int i)
+            {
+                Object userID = userIDs[i];
+                Preference[] prefs;
+                try
+                {
+                    prefs = ReadUser(userID).GetPreferencesAsArray();
+                }
+                catch (NoSuchElementException)
+                {
+                    prefs = new Preference[0];
+                }
+                String[] ids = new String[prefs.Length];
+                double[] values = new double[prefs.Length];
+                for (int j = 0; j < prefs.Length; j++)
+                {
+                    ids[j] = prefs[j].Item.ID.ToString();
+                    values[j] = prefs[j].Value;
+                }
+                lock (PackedLockFor(userID))
+                {
+                    WritePacked(null, true, userID, PackedPreferences.Encode(ids, values));
+                }
+            });
+            ParallelUtils.FanOut(itemIDs.Count, maxConcurrentQueries, delegate(int i)
+            {
+                Object itemID = itemIDs[i];
+                List<Preference> prefs;
+                try
+                {
+                    prefs = ReadItemPreferences(itemID);
+                }
+                catch (NoSuchElementException)
+                {
+                    prefs = new List<Preference>();
+                }
+                String[] ids = new String[prefs.Count];
+                double[] values = new double[prefs.Count];
+                for (int j = 0; j < prefs.Count; j++)
+                {
+                    ids[j] = prefs[j].User.ID.ToString();
+                    values[j] = prefs[j].Value;
+                }
+                lock (PackedLockFor(itemID))
+                {
+                    WritePacked(null, false, itemID, PackedPreferences.Encode(ids, values));
+                }
+            });
+            TasteEvents.Query("rebuildPacked", userIDs.Count + itemIDs.Count, traceStart);
+        }
+
+        private User ReadPackedUser(Object id)
+        {
+            long start = getUserTime.Start();
+            long traceStart = TasteEvents.Start();
+            try
+            {
+                byte[] packed = ReadPacked(null, true, id);
+                if (packed == null)
+                {
+                    throw new NoSuchElementException();
+                }
+                String[] itemIDs;
+                double[] values;
+                PackedPreferences.Decode(packed, out itemIDs, out values);
+                getUserTime.Stop(start);
+                rowsFetched.Increment();
+                TasteEvents.Query("getPackedUser", 1, traceStart);
+                if (itemIDs.Length == 0)
+                {
+                    throw new NoSuchElementException();
+                }
+                List<Preference> prefs = new List<Preference>(itemIDs.Length);
+                for (int i = 0; i < itemIDs.Length; i++)
+                {
+                    prefs.Add(BuildPreference(null, BuildItem(itemIDs[i]), values[i]));
+                }
+                return BuildUser(id.ToString(), prefs);
+            }
+            catch (TasteException)
+            {
+                throw;
+            }
+            catch (Exception sqle)
+            {
+                log.Warn("Exception while retrieving packed user", sqle);
+                throw new TasteException(sqle);
+            }
+        }
+
+        /// <exception cref="NoSuchElementException">if the item has no packed row</exception>
+        private List<Preference> ReadPackedItemPreferences(Object itemID)
+        {
+            long start = getPrefsForItemTime.Start();
+            long traceStart = TasteEvents.Start();
+            try
+            {
+                byte[] packed = ReadPacked(null, false, itemID);
+                if (packed == null)
+                {
+                    throw new NoSuchElementException();
+                }
+                String[] userIDs;
+                double[] values;
+                PackedPreferences.Decode(packed, out userIDs, out values);
+                getPrefsForItemTime.Stop(start);
+                rowsFetched.Increment();
+                TasteEvents.Query("getPackedPrefsForItem", 1, traceStart);
+                Item item = BuildItem(itemID.ToString());
+                List<Preference> prefs = new List<Preference>(userIDs.Length);
+                for (int i = 0; i < userIDs.Length; i++)
+                {
+                    prefs.Add(BuildPreference(BuildUser(userIDs[i], null), item, values[i]));
+                }
+                // Ordered by user, as from the preference table
+                prefs.Sort(ByUserPreferenceComparer.Instance);
+                return prefs;
+            }
+            catch (TasteException)
+            {
+                throw;
+            }
+            catch (Exception sqle)
+            {
+                log.Warn("Exception while retrieving packed prefs for item", sqle);
+                throw new TasteException(sqle);
+            }
+        }
+
+        /// <summary>
+        /// Runs <code>sql</code>, which sets or, if <code>value</code> is NaN, removes a preference. With packed
+        /// preferences, the user's and the item's packed rows are updated in the same serializable transaction,
+        /// holding both rows' locks in this process until it commits.
+        /// </summary>
+        /// <returns>rows the preference write affected</returns>
+        private int WritePreference(String sql, Object userID, Object itemID, double value)
+        {
+            if (!usePackedPreferences)
+            {
+                using (IDbCommand cmd = CreateCommand(sql))
+                {
+                    return ExecutePreferenceWrite(cmd, userID, itemID, value);
+                }
+            }
+            // Taken in stripe order, so that two writes can't each hold the lock the other needs
+            int userStripe = PackedStripeFor(userID);
+            int itemStripe = PackedStripeFor(itemID);
+            lock (packedLocks[Math.Min(userStripe, itemStripe)])
+            {
+                lock (packedLocks[Math.Max(userStripe, itemStripe)])
+                {
+                    IDbTransaction transaction = GetConnection().BeginTransaction(IsolationLevel.Serializable);
+                    try
+                    {
+                        int rows;
+                        using (IDbCommand cmd = CreateCommand(transaction, sql))
+                        {
+                            rows = ExecutePreferenceWrite(cmd, userID, itemID, value);
+                        }
+                        UpdatePacked(transaction, userID, itemID, value);
+                        transaction.Commit();
+                        return rows;
+                    }
+                    catch (Exception)
+                    {
+                        Rollback(transaction);
+                        throw;
+                    }
+                    finally
+                    {
+                        transaction.Dispose();
+                    }
+                }
+            }
+        }
+
+        private int ExecutePreferenceWrite(IDbCommand cmd, Object userID, Object itemID, double value)
+        {
+            if (Double.IsNaN(value))
+            {
+                ConfigureRemovePreferenceCommand(cmd, userID, itemID);
+            }
+            else
+            {
+                ConfigureSetPreferenceCommand(cmd, userID, itemID, value);
+            }
+            if (log.IsDebugEnabled)
+            {
+                log.Debug("Executing SQL update: " + cmd.CommandText);
+            }
+            return cmd.ExecuteNonQuery();
+        }
+
+        /// <summary>
+        /// Sets or, if <code>value</code> is NaN, removes the preference in the user's and the item's packed rows.
+        /// </summary>
+        private void UpdatePacked(IDbTransaction transaction, Object userID, Object itemID, double value)
+        {
+            double oldValue;
+            byte[] packed = ReadPacked(transaction, true, userID);
+            WritePacked(transaction, true, userID, Double.IsNaN(value)
+                                                       ? PackedPreferences.Remove(packed, itemID.ToString(), out oldValue)
+                                                       : PackedPreferences.Set(packed, itemID.ToString(), value, out oldValue));
+            packed = ReadPacked(transaction, false, itemID);
+            WritePacked(transaction, false, itemID, Double.IsNaN(value)
+                                                        ? PackedPreferences.Remove(packed, userID.ToString(), out oldValue)
+                                                        : PackedPreferences.Set(packed, userID.ToString(), value, out oldValue));
+        }
+
+        private static void Rollback(IDbTransaction transaction)
+        {
+            try
+            {
+                transaction.Rollback();
+            }
+            catch (Exception e)
+            {
+                log.Warn("Exception while rolling back", e);
+            }
+        }
+
+        /// <returns>a command on the transaction's connection and enlisted in it, or on a connection of its own
+        /// if <code>transaction</code> is <code>null</code></returns>
+        private IDbCommand CreateCommand(IDbTransaction transaction, String sql)
+        {
+            if (transaction == null)
+            {
+                return CreateCommand(sql);
+            }
+            IDbCommand cmd = CreateCommand(transaction.Connection, sql);
+            cmd.Transaction = transaction;
+            return cmd;
+        }
+
+        /// <returns>the user's or item's packed preferences, or <code>null</code> if it has no row</returns>
+        private byte[] ReadPacked(IDbTransaction transaction, bool forUser, Object id)
+        {
+            using (IDbCommand cmd = CreateCommand(transaction, forUser ? getPackedUserSQL : getPackedItemSQL))
+            {
+                if (forUser)
+                {
+                    ConfigureGetPackedUserCommand(cmd, id);
+                }
+                else
+                {
+                    ConfigureGetPackedItemCommand(cmd, id);
+                }
+                using (IDataReader rs = cmd.ExecuteReader())
+                {
+                    return rs.Read() && !rs.IsDBNull(0) ? (byte[]) rs.GetValue(0) : null;
+                }
+            }
+        }
+
+        private void WritePacked(IDbTransaction transaction, bool forUser, Object id, byte[] packed)
+        {
+            using (IDbCommand cmd = CreateCommand(transaction, forUser ? setPackedUserSQL : setPackedItemSQL))
+            {
+                if (forUser)
+                {
+                    ConfigureSetPackedUserCommand(cmd, id, packed);
+                }
+                else
+                {
+                    ConfigureSetPackedItemCommand(cmd, id, packed);
+                }
+                cmd.ExecuteNonQuery();
+            }
+        }
+
+        private void CheckPackedSQL()
+        {
+            if (String.IsNullOrEmpty(getPackedUserSQL) || String.IsNullOrEmpty(setPackedUserSQL) ||
+                String.IsNullOrEmpty(getPackedItemSQL) || String.IsNullOrEmpty(setPackedItemSQL))
+            {
+                throw new IllegalStateException("Packed preference SQL is not set");
+            }
+        }
+
+        private Object PackedLockFor(Object id)
+        {
+            return packedLocks[PackedStripeFor(id)];
+        }
+
+        private int PackedStripeFor(Object id)
+        {
+            return (id.GetHashCode() & 0x7FFFFFFF) % packedLocks.Length;
+        }
+
+        private static Object[] NewLocks()
+        {
+            Object[] locks = new Object[NUM_LOCKS];
+            for (int i = 0; i < locks.Length; i++)
+            {
+                locks[i] = new Object();
+            }
+            return locks;
+        }
+
+        #endregion
+
+        /// <returns>user's current preferences, or none if the user doesn't exist</returns>
+        private Preference[] GetCurrentPreferences(Object userID)
+        {
+            try
+            {
+                return GetUser(userID).GetPreferencesAsArray();
+            }
+            catch (NoSuchElementException)
+            {
+                return new Preference[0];
+            }
+        }
+
+        /// <returns>the value in <code>prefs</code> for the item, or NaN if there is none</returns>
+        private static double ValueFor(Preference[] prefs, Object itemID)
+        {
+            foreach (Preference pref in prefs)
+            {
+                if (pref.Item.ID.Equals(itemID))
+                {
+                    return pref.Value;
+                }
+            }
+            return Double.NaN;
+        }
+
+        private Object UserWriteLockFor(Object userID)
+        {
+            return userWriteLocks[(userID.GetHashCode() & 0x7FFFFFFF) % userWriteLocks.Length];
+        }
+
+        public void AddPreferenceChangeListener(PreferenceChangeListener listener)
+        {
+            changeSupport.AddPreferenceChangeListener(listener);
+        }
+
+        public void RemovePreferenceChangeListener(PreferenceChangeListener listener)
+        {
+            changeSupport.RemovePreferenceChangeListener(listener);
+        }
+
+        public bool HasPreferenceChangeListener(PreferenceChangeListener listener)
+        {
+            return changeSupport.HasPreferenceChangeListener(listener);
+        }
+
 		/**
 		 * {@inheritDoc}
 		 */
@@ -858,9 +1473,12 @@ namespace Taste.Model.Ado
 					log.Warn( "Exception while iterating over items", sqle);
 					throw new ArgumentException("Can't retrieve more due to exception: " + sqle);
 				}
-                while (itemReader.Read())
+                using (itemReader)
                 {
-                    yield return _host.BuildItem(itemReader.GetString(1));
+                    while (itemReader.Read())
+                    {
+                        yield return _host.BuildItem(itemReader.GetString(0));
+                    }
                 }
 
 			}
@@ -873,7 +1491,7 @@ namespace Taste.Model.Ado
                 {
                     if (current == null)
                     {
-                        current = _host.BuildItem(reader.GetString(1));
+                        current = _host.BuildItem(reader.GetString(0));
                     }
                     return current;
                 }
@@ -901,7 +1519,7 @@ namespace Taste.Model.Ado
                 {
                     if (current == null)
                     {
-                        current = _host.BuildItem(reader.GetString(1));
+                        current = _host.BuildItem(reader.GetString(0));
                     }
                     return current;
                 }
@@ -74,6 +74,20 @@ namespace Taste.Model.Ado
     ///  <li>query_cache_size=64M</li>
     /// </ul>
     /// 
+    /// <p>For users and items with many preferences, call <see cref="UsePackedPreferenceTables(String, String)"/>
+    /// to read each one's preferences from a single row of a companion table, such as:</p>
+    ///
+    /// <pre>
+    /// CREATE TABLE taste_user_preferences (
+    ///   user_id VARCHAR(10) NOT NULL PRIMARY KEY,
+    ///   preferences MEDIUMBLOB NOT NULL
+    /// )
+    /// CREATE TABLE taste_item_preferences (
+    ///   item_id VARCHAR(10) NOT NULL PRIMARY KEY,
+    ///   preferences MEDIUMBLOB NOT NULL
+    /// )
+    /// </pre>
+    ///
     /// <p>Thanks to Amila Jayasooriya for contributing MySQL notes above as part of Google Summer of Code 2007.</p>
     ///
     /// @author Sean Owen
@@ -83,6 +97,8 @@ namespace Taste.Model.Ado
         private IDbConnection connection;
         private DbType userIdType = DbType.AnsiString;
         private DbType itemIdType = DbType.AnsiString;
+        private readonly String userIDColumn;
+        private readonly String itemIDColumn;
  
 #if false
         /**
@@ -131,6 +147,70 @@ namespace Taste.Model.Ado
          * @param preferenceColumn preference column name
          */
         public OleDBDataModel(IDbConnection conn,
+            String preferenceTable,
+            String userIDColumn,
+            String itemIDColumn,
+            String preferenceColumn,
+            DbType userIDType,
+            DbType itemIDType)
+            : this(conn, preferenceTable, userIDColumn, itemIDColumn, preferenceColumn, userIDType, itemIDType,
+                   null, null)
+        {
+        }
+
+        /// <summary>
+        /// Creates a model that reads only the preferences <code>filter</code> accepts. The filter's date limits
+        /// and thresholds become a condition on the preference table in every query that reads it, so the
+        /// database drops the other rows; writes still go to the whole table. Its sampling is applied to the rows
+        /// returned; see <see cref="AbstractADODataModel.Filter"/>. A filter that both samples users and has an
+        /// item threshold is refused, since the database would count the threshold over all users; pass a
+        /// sample condition to the other constructor for those.
+        /// </summary>
+        /// <param name="filter">which preferences to read, or <code>null</code> for all</param>
+        /// <param name="dateColumn">column holding the date of each preference, needed only if the filter has
+        /// date limits</param>
+        /// <exception cref="ArgumentException">if the filter samples users and has an item threshold</exception>
+        public OleDBDataModel(IDbConnection conn,
+            String preferenceTable,
+            String userIDColumn,
+            String itemIDColumn,
+            String preferenceColumn,
+            DbType userIDType,
+            DbType itemIDType,
+            LoadFilter filter,
+            String dateColumn)
+            : this(conn, preferenceTable, userIDColumn, itemIDColumn, preferenceColumn, userIDType, itemIDType,
+                   filter, dateColumn, null)
+        {
+        }
+
+        /// <summary>
+        /// Like the constructor above, but the thresholds count only the users <code>sampleCondition</code>
+        /// selects, as when loading files.
+        /// </summary>
+        /// <param name="sampleCondition">SQL condition on the preference table selecting exactly the users
+        /// <see cref="LoadFilter.AcceptsUser(Object)"/> accepts, such as a join to a precomputed table of sampled
+        /// users; see <see cref="LoadFilter.ToSqlCondition(String, String, String, String, String)"/></param>
+        public OleDBDataModel(IDbConnection conn,
+            String preferenceTable,
+            String userIDColumn,
+            String itemIDColumn,
+            String preferenceColumn,
+            DbType userIDType,
+            DbType itemIDType,
+            LoadFilter filter,
+            String dateColumn,
+            String sampleCondition)
+            : this(conn,
+                   FilteredSource(preferenceTable, userIDColumn, itemIDColumn, dateColumn, filter, sampleCondition),
+                   preferenceTable, userIDColumn, itemIDColumn, preferenceColumn, userIDType, itemIDType)
+        {
+            Filter = filter;
+        }
+
+        /// <param name="source">table, or derived table, that queries read preferences from</param>
+        private OleDBDataModel(IDbConnection conn,
+            String source,
             String preferenceTable,
             String userIDColumn,
             String itemIDColumn,
@@ -140,12 +220,12 @@ namespace Taste.Model.Ado
             :  base(
                 // getUserSQL
                     " SELECT " + itemIDColumn + ", " + preferenceColumn + 
-                    " FROM " + preferenceTable +
+                    " FROM " + source +
                     " WHERE " + userIDColumn + "=? ORDER BY " + itemIDColumn,
                 // getNumItemsSQL
-                  "SELECT COUNT(DISTINCT " + itemIDColumn + ") FROM " + preferenceTable,
+                  "SELECT COUNT(DISTINCT " + itemIDColumn + ") FROM " + source,
                 // getNumUsersSQL
-                  "SELECT COUNT(DISTINCT " + userIDColumn + ") FROM " + preferenceTable,
+                  "SELECT COUNT(DISTINCT " + userIDColumn + ") FROM " + source,
                 // setPreferenceSQL
                   "INSERT INTO " + preferenceTable + " SET " + userIDColumn + "=?, " + itemIDColumn +
                   "=?, " + preferenceColumn + "=? ON DUPLICATE KEY UPDATE " + preferenceColumn + "=?",
@@ -153,23 +233,57 @@ namespace Taste.Model.Ado
                   "DELETE FROM " + preferenceTable + " WHERE " + userIDColumn + "=? AND " + itemIDColumn + "=?",
                 // getUsersSQL
                   "SELECT " + itemIDColumn + ", " + preferenceColumn + ", " + userIDColumn + " FROM " +
-                  preferenceTable + " ORDER BY " + userIDColumn + ", " + itemIDColumn,
+                  source + " ORDER BY " + userIDColumn + ", " + itemIDColumn,
                 // getItemsSQL
-                  "SELECT DISTINCT " + itemIDColumn + " FROM " + preferenceTable + " ORDER BY " + itemIDColumn,
+                  "SELECT DISTINCT " + itemIDColumn + " FROM " + source + " ORDER BY " + itemIDColumn,
                 // getItemSQL
-                  "SELECT 1 FROM " + preferenceTable + " WHERE " + itemIDColumn + "=?",
+                  "SELECT 1 FROM " + source + " WHERE " + itemIDColumn + "=?",
                 // getPrefsForItemSQL
                     " SELECT " + preferenceColumn + ", " + userIDColumn + 
-                    " FROM "  +  preferenceTable + 
+                    " FROM " + source + 
                     " WHERE " + itemIDColumn + "=? ORDER BY " + userIDColumn,
                 // getUsersPreferringItemSQL
                     " SELECT DISTINCT " + userIDColumn + 
-                    " FROM " + preferenceTable + 
+                    " FROM " + source + 
                     " WHERE " + itemIDColumn + "=? ORDER BY " + userIDColumn)        
         {
             connection = conn;
             this.userIdType = userIDType;
             this.itemIdType = itemIDType;
+            this.userIDColumn = userIDColumn;
+            this.itemIDColumn = itemIDColumn;
+        }
+
+        private static String FilteredSource(String preferenceTable, String userIDColumn, String itemIDColumn,
+            String dateColumn, LoadFilter filter, String sampleCondition)
+        {
+            String condition = filter == null ? null :
+                filter.ToSqlCondition(preferenceTable, userIDColumn, itemIDColumn, dateColumn, sampleCondition);
+            return condition == null ? preferenceTable :
+                "(SELECT * FROM " + preferenceTable + " WHERE " + condition + ") AS filtered_preferences";
+        }
+
+        /// <summary>
+        /// Sets the packed preference SQL for companion tables keyed by the same ID columns as the preference
+        /// table, with the packed value in a <see cref="DEFAULT_PACKED_PREFERENCES_COLUMN"/> column, and turns on
+        /// <see cref="AbstractADODataModel.UsePackedPreferences"/>. If the tables are new, call
+        /// <see cref="AbstractADODataModel.RebuildPackedPreferences()"/> next, before serving reads.
+        /// </summary>
+        public void UsePackedPreferenceTables(String userTable, String itemTable)
+        {
+            if (String.IsNullOrEmpty(userTable) || String.IsNullOrEmpty(itemTable))
+            {
+                throw new ArgumentNullException("userTable or itemTable is null");
+            }
+            getPackedUserSQL = "SELECT " + DEFAULT_PACKED_PREFERENCES_COLUMN + " FROM " + userTable +
+                               " WHERE " + userIDColumn + "=?";
+            setPackedUserSQL = "REPLACE INTO " + userTable + " (" + userIDColumn + ", " +
+                               DEFAULT_PACKED_PREFERENCES_COLUMN + ") VALUES (?, ?)";
+            getPackedItemSQL = "SELECT " + DEFAULT_PACKED_PREFERENCES_COLUMN + " FROM " + itemTable +
+                               " WHERE " + itemIDColumn + "=?";
+            setPackedItemSQL = "REPLACE INTO " + itemTable + " (" + itemIDColumn + ", " +
+                               DEFAULT_PACKED_PREFERENCES_COLUMN + ") VALUES (?, ?)";
+            UsePackedPreferences = true;
         }
 
         protected void AddUserIdParameter(IDbCommand cmd, string name, object id)
@@ -223,6 +337,28 @@ namespace Taste.Model.Ado
             AddItemIdParameter(command, itemID);
         }
 
+        protected override void ConfigureGetPackedUserCommand(IDbCommand command, Object userID)
+        {
+            AddUserIdParameter(command, userID);
+        }
+
+        protected override void ConfigureSetPackedUserCommand(IDbCommand command, Object userID, byte[] packed)
+        {
+            AddUserIdParameter(command, userID);
+            AddParameter(command, "@packed", DbType.Binary, packed);
+        }
+
+        protected override void ConfigureGetPackedItemCommand(IDbCommand command, Object itemID)
+        {
+            AddItemIdParameter(command, itemID);
+        }
+
+        protected override void ConfigureSetPackedItemCommand(IDbCommand command, Object itemID, byte[] packed)
+        {
+            AddItemIdParameter(command, itemID);
+            AddParameter(command, "@packed", DbType.Binary, packed);
+        }
+
         public override IDbConnection GetConnection()
         {
             if (connection == null)
@@ -0,0 +1,283 @@
+/*
+ * Copyright 2007 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+namespace Taste.Model.Ado
+{
+	using System;
+	using System.Collections.Generic;
+	using System.IO;
+	using System.Text;
+	using Taste.Common;
+
+
+    /// <summary>
+    /// <p>Packs one user's preferences, or one item's, into a single binary value, so that a database can store
+    /// and return them as one row. IDs are kept in ordinal order, each stored as the number of leading characters
+    /// it shares with the one before plus the rest in UTF-8; all values follow as one block of doubles, which
+    /// decodes in a single copy.</p>
+    ///
+    /// <p>Layout: a version byte, the count as a variable-length integer, the IDs, then the values.</p>
+    /// </summary>
+	public sealed class PackedPreferences
+	{
+		private const byte VERSION = 1;
+		private static readonly Encoding ENCODING = new UTF8Encoding(false, true);
+		private static readonly byte[] EMPTY = Encode(new String[0], new double[0]);
+
+		private PackedPreferences()
+		{
+		}
+
+		/// <returns>a packed value holding no preferences</returns>
+		public static byte[] Empty
+		{
+			get { return (byte[]) EMPTY.Clone(); }
+		}
+
+		/// <param name="ids">item IDs for a user, or user IDs for an item, in any order, without repeats</param>
+		/// <param name="values">preference value for each ID</param>
+		public static byte[] Encode(String[] ids, double[] values)
+		{
+			if (ids == null || values == null)
+			{
+				throw new ArgumentNullException("ids or values is null");
+			}
+			if (ids.Length != values.Length)
+			{
+				throw new ArgumentException("ids and values differ in length");
+			}
+			String[] sortedIDs = (String[]) ids.Clone();
+			double[] sortedValues = (double[]) values.Clone();
+			Array.Sort(sortedIDs, sortedValues, StringComparer.Ordinal);
+
+			MemoryStream output = new MemoryStream(16 + sortedIDs.Length * 16);
+			output.WriteByte(VERSION);
+			WriteVarInt(output, sortedIDs.Length);
+			String previous = null;
+			foreach (String id in sortedIDs)
+			{
+				if (id == null)
+				{
+					throw new ArgumentNullException("id is null");
+				}
+				if (previous == id)
+				{
+					throw new ArgumentException("Repeated ID: " + id);
+				}
+				int shared = previous == null ? 0 : SharedPrefix(previous, id);
+				byte[] suffix = ENCODING.GetBytes(id.Substring(shared));
+				WriteVarInt(output, shared);
+				WriteVarInt(output, suffix.Length);
+				output.Write(suffix, 0, suffix.Length);
+				previous = id;
+			}
+			byte[] valueBytes = new byte[sortedValues.Length * 8];
+			if (BitConverter.IsLittleEndian)
+			{
+				Buffer.BlockCopy(sortedValues, 0, valueBytes, 0, valueBytes.Length);
+			}
+			else
+			{
+				for (int i = 0; i < sortedValues.Length; i++)
+				{
+					WriteLittleEndian(BitConverter.DoubleToInt64Bits(sortedValues[i]), valueBytes, i * 8);
+				}
+			}
+			output.Write(valueBytes, 0, valueBytes.Length);
+			return output.ToArray();
+		}
+
+		/// <param name="packed">value from <see cref="Encode"/></param>
+		/// <param name="ids">IDs, in ordinal order</param>
+		/// <param name="values">value for each ID</param>
+		/// <exception cref="TasteException">if <code>packed</code> is not a valid packed value</exception>
+		public static void Decode(byte[] packed, out String[] ids, out double[] values)
+		{
+			if (packed == null)
+			{
+				throw new ArgumentNullException("packed is null");
+			}
+			try
+			{
+				int position = 0;
+				if (packed.Length == 0 || packed[position++] != VERSION)
+				{
+					throw new TasteException("Unknown packed preferences version");
+				}
+				int count = ReadVarInt(packed, ref position);
+				if (count > packed.Length)
+				{
+					throw new TasteException("Corrupt packed preferences");
+				}
+				ids = new String[count];
+				String previous = String.Empty;
+				for (int i = 0; i < count; i++)
+				{
+					int shared = ReadVarInt(packed, ref position);
+					int length = ReadVarInt(packed, ref position);
+					if (shared > previous.Length || length > packed.Length - position)
+					{
+						throw new TasteException("Corrupt packed preferences");
+					}
+					String suffix = ENCODING.GetString(packed, position, length);
+					position += length;
+					previous = shared == 0 ? suffix : previous.Substring(0, shared) + suffix;
+					ids[i] = previous;
+				}
+				if (packed.Length - position != count * 8)
+				{
+					throw new TasteException("Corrupt packed preferences");
+				}
+				values = new double[count];
+				if (BitConverter.IsLittleEndian)
+				{
+					Buffer.BlockCopy(packed, position, values, 0, count * 8);
+				}
+				else
+				{
+					for (int i = 0; i < count; i++)
+					{
+						values[i] = BitConverter.Int64BitsToDouble(ReadLittleEndian(packed, position + i * 8));
+					}
+				}
+			}
+			catch (DecoderFallbackException e)
+			{
+				throw new TasteException("Corrupt packed preferences", e);
+			}
+		}
+
+		/// <returns><code>packed</code> with the ID's value set, added if need be</returns>
+		/// <param name="oldValue">previous value, or <see cref="Double.NaN"/> if there was none</param>
+		public static byte[] Set(byte[] packed, String id, double value, out double oldValue)
+		{
+			if (id == null)
+			{
+				throw new ArgumentNullException("id is null");
+			}
+			String[] ids;
+			double[] values;
+			Decode(packed ?? EMPTY, out ids, out values);
+			int index = Array.BinarySearch(ids, id, StringComparer.Ordinal);
+			if (index >= 0)
+			{
+				oldValue = values[index];
+				values[index] = value;
+				return Encode(ids, values);
+			}
+			oldValue = Double.NaN;
+			List<String> newIDs = new List<String>(ids);
+			List<double> newValues = new List<double>(values);
+			newIDs.Insert(-index - 1, id);
+			newValues.Insert(-index - 1, value);
+			return Encode(newIDs.ToArray(), newValues.ToArray());
+		}
+
+		/// <returns><code>packed</code> without the ID</returns>
+		/// <param name="oldValue">removed value, or <see cref="Double.NaN"/> if there was none</param>
+		public static byte[] Remove(byte[] packed, String id, out double oldValue)
+		{
+			if (id == null)
+			{
+				throw new ArgumentNullException("id is null");
+			}
+			String[] ids;
+			double[] values;
+			Decode(packed ?? EMPTY, out ids, out values);
+			int index = Array.BinarySearch(ids, id, StringComparer.Ordinal);
+			if (index < 0)
+			{
+				oldValue = Double.NaN;
+				return packed ?? Empty;
+			}
+			oldValue = values[index];
+			List<String> newIDs = new List<String>(ids);
+			List<double> newValues = new List<double>(values);
+			newIDs.RemoveAt(index);
+			newValues.RemoveAt(index);
+			return Encode(newIDs.ToArray(), newValues.ToArray());
+		}
+
+		private static int SharedPrefix(String a, String b)
+		{
+			int max = Math.Min(a.Length, b.Length);
+			int shared = 0;
+			while (shared < max && a[shared] == b[shared])
+			{
+				shared++;
+			}
+			// Don't split a surrogate pair between the prefix and the UTF-8 suffix
+			if (shared > 0 && shared < b.Length && Char.IsHighSurrogate(b[shared - 1]))
+			{
+				shared--;
+			}
+			return shared;
+		}
+
+		private static void WriteVarInt(Stream output, int value)
+		{
+			uint v = (uint) value;
+			while (v >= 0x80)
+			{
+				output.WriteByte((byte) (v | 0x80));
+				v >>= 7;
+			}
+			output.WriteByte((byte) v);
+		}
+
+		private static int ReadVarInt(byte[] bytes, ref int position)
+		{
+			int value = 0;
+			for (int shift = 0; shift < 35; shift += 7)
+			{
+				if (position >= bytes.Length)
+				{
+					throw new TasteException("Corrupt packed preferences");
+				}
+				byte b = bytes[position++];
+				value |= (b & 0x7F) << shift;
+				if ((b & 0x80) == 0)
+				{
+					if (value < 0)
+					{
+						break;
+					}
+					return value;
+				}
+			}
+			throw new TasteException("Corrupt packed preferences");
+		}
+
+		private static void WriteLittleEndian(long value, byte[] bytes, int offset)
+		{
+			for (int i = 0; i < 8; i++)
+			{
+				bytes[offset + i] = (byte) (value >> (8 * i));
+			}
+		}
+
+		private static long ReadLittleEndian(byte[] bytes, int offset)
+		{
+			long value = 0L;
+			for (int i = 0; i < 8; i++)
+			{
+				value |= (long) bytes[offset + i] << (8 * i);
+			}
+			return value;
+		}
+	}
+
+}
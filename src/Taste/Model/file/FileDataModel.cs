@@ -19,6 +19,7 @@ namespace Taste.Model.file
 	using System;
     using System.Diagnostics;
 	using System.Collections.Generic;
+	using System.Globalization;
 	using System.IO;
     using System.Threading;
 	using Taste.Common;
@@ -36,14 +37,41 @@ namespace Taste.Model.file
 	 * that, {@link taste.Model.Ado.MySQLDataModel} and a database are more appropriate.
 	 * The file will be periodically reloaded if a change is detected.</p>
 	 *
+	 * <p>Each reload starts a new generation (see {@link GenerationalDataModel}); the {@link User}s whose
+	 * preferences differ from the previous load are remembered for the last few generations so that
+	 * caches can invalidate just those. Registered {@link PreferenceChangeListener}s are also told exactly which
+	 * preferences were added, changed or removed by each reload.</p>
+	 *
+	 * <p>The file may be compressed, such as <code>ratings.csv.gz</code>, in any format {@link StreamCodecs} knows;
+	 * it is then decompressed on a separate thread while lines are parsed.</p>
+	 *
+	 * <p>Set {@link #Compact} to keep loaded data in a {@link CompactDataModel}, which takes a fraction of the
+	 * memory in exchange for decoding preferences on each access.</p>
+	 *
+	 * <p>Set {@link #Filter} to load only some of the preferences. Lines may then carry a fourth field, the date
+	 * the preference was expressed (anything {@link DateTime#Parse} reads, such as <code>2005-09-06</code>),
+	 * which the filter's date limits test.</p>
+	 *
+	 * <p>Each load first checks {@link MemoryBudget#Default} for room for the new model, estimated from the size
+	 * of the file, next to the one already loaded; the loaded model is then tracked by that budget.</p>
+	 *
 	 * @author Sean Owen
 	 */
-	public class FileDataModel : DataModel, IDisposable
+	public class FileDataModel : GenerationalDataModel, PreferenceChangeSource, MemoryAccountable, IDisposable
     {
 		private static ILog log = LogManager.GetLogger(typeof(FileDataModel));
+		private static readonly MetricsHistogram loadTime = MetricsRegistry.Default.GetHistogram("file.load", "us");
+		private static readonly MetricsCounter linesRead = MetricsRegistry.Default.GetCounter("file.lines");
 
 		private static Timer timer = null;
 		private static long RELOAD_CHECK_INTERVAL_MS = 60L * 1000L;
+		private const int MAX_TRACKED_GENERATIONS = 16;
+
+		// For estimating a load up front: a line like "12345,678,3.5" and its line break, the shrinkage of
+		// a compressed file, and the preferences per user and per item
+		private const int BYTES_PER_LINE = 16;
+		private const int COMPRESSION_RATIO = 4;
+		private const int PREFERENCES_PER_ID = 20;
 
 		private string dataFile;
 		private DateTime lastModified;
@@ -52,6 +80,12 @@ namespace Taste.Model.file
 		private ReentrantLock refreshLock;
 		private ReentrantLock reloadLock;
         private bool useReload = true;
+		private bool compact;
+		private LoadFilter filter;
+		private long generation;
+		private readonly LinkedList<KeyValuePair<long, ICollection<Object>>> changedUsers =
+			new LinkedList<KeyValuePair<long, ICollection<Object>>>();
+		private readonly PreferenceChangeSupport changeSupport = new PreferenceChangeSupport();
 
 		/**
 		 * @param dataFile file containing preferences data
@@ -63,7 +97,7 @@ namespace Taste.Model.file
 			{
 				throw new ArgumentNullException("dataFile is null");
 			}
-            if (File.Exists(dataFile))
+            if (!File.Exists(dataFile))
             {
 				throw new FileNotFoundException(dataFile);
 			}
@@ -94,23 +128,61 @@ namespace Taste.Model.file
         {
         }
 
+		/// <summary>
+		/// Whether to store loaded data in a <see cref="CompactDataModel"/>; takes effect at the next load
+		/// </summary>
+		public bool Compact
+		{
+			get { return compact; }
+			set { compact = value; }
+		}
+
+		/// <summary>
+		/// Which preferences to load, or <code>null</code> for all; takes effect at the next load
+		/// </summary>
+		public LoadFilter Filter
+		{
+			get { return filter; }
+			set { filter = value; }
+		}
+
 		protected void Reload()
 		{
             reloadLock.Lock();
 			try 
 			{
+				long start = TasteEvents.Start();
+				MemoryBudget.Default.CheckAvailable(ToString(), EstimateBytes());
 				Dictionary<String, List<Preference>> data = new Dictionary<String, List<Preference>>(1003);
 
 				ProcessFile(data);
+				if (filter != null)
+				{
+					filter.RemoveSparse(data);
+				}
 
 				List<User> users = new List<User>(data.Count);
+				long numPrefs = 0L;
 				foreach (KeyValuePair<String, List<Preference>> entries in data) 
 				{
 					users.Add(BuildUser(entries.Key, entries.Value));
+					numPrefs += entries.Value.Count;
 				}
 
-				delegateModel = new GenericDataModel(users);
+				DataModel newModel = new GenericDataModel(users);
+				if (compact)
+				{
+					newModel = new CompactDataModel(newModel);
+				}
+				DataModel oldModel = delegateModel;
+				delegateModel = newModel;
 				loaded = true;
+				if (oldModel != null)
+				{
+					RecordChangedUsers(oldModel, newModel);
+				}
+				TasteEvents.ModelLoaded("FileDataModel", oldModel != null, numPrefs, start);
+				MemoryBudget.Default.Track(ToString(), this, EstimatedBytes);
 
 			} 
             finally 
@@ -119,12 +191,197 @@ namespace Taste.Model.file
 			}
 		}
 
+		private void RecordChangedUsers(DataModel oldModel, DataModel newModel)
+		{
+			// Individual changes are only worked out if someone is listening
+			bool wantChanges = changeSupport.HasListeners;
+			List<PreferenceChange> changes = new List<PreferenceChange>();
+			Dictionary<Object, User> oldUsers = new Dictionary<Object, User>();
+			foreach (User user in oldModel.GetUsers())
+			{
+				oldUsers.Add(user.ID, user);
+			}
+			List<Object> changed = new List<Object>();
+			foreach (User user in newModel.GetUsers())
+			{
+				User oldUser;
+				if (oldUsers.TryGetValue(user.ID, out oldUser))
+				{
+					oldUsers.Remove(user.ID);
+					if (wantChanges)
+					{
+						int before = changes.Count;
+						AddPreferenceChanges(oldUser, user, changes);
+						if (changes.Count > before)
+						{
+							changed.Add(user.ID);
+						}
+					}
+					else if (!SamePreferences(oldUser, user))
+					{
+						changed.Add(user.ID);
+					}
+				}
+				else
+				{
+					changed.Add(user.ID);
+					if (wantChanges)
+					{
+						Preference[] previous = new Preference[0];
+						foreach (Preference pref in user.GetPreferencesAsArray())
+						{
+							changes.Add(new PreferenceChange(user.ID, pref.Item.ID, Double.NaN, pref.Value, previous));
+						}
+					}
+				}
+			}
+			// Whatever is left was removed
+			foreach (User oldUser in oldUsers.Values)
+			{
+				changed.Add(oldUser.ID);
+				if (wantChanges)
+				{
+					Preference[] previous = oldUser.GetPreferencesAsArray();
+					foreach (Preference pref in previous)
+					{
+						changes.Add(new PreferenceChange(oldUser.ID, pref.Item.ID, pref.Value, Double.NaN, previous));
+					}
+				}
+			}
+
+			lock (changedUsers)
+			{
+				generation++;
+				changedUsers.AddLast(new KeyValuePair<long, ICollection<Object>>(generation, changed));
+				if (changedUsers.Count > MAX_TRACKED_GENERATIONS)
+				{
+					changedUsers.RemoveFirst();
+				}
+			}
+			if (log.IsDebugEnabled)
+			{
+				log.Debug("Reload changed " + changed.Count + " users; now at generation " + generation);
+			}
+			changeSupport.Fire(changes);
+		}
+
+		private static bool SamePreferences(User oldUser, User newUser)
+		{
+			Preference[] newPrefs = newUser.GetPreferencesAsArray();
+			if (oldUser.GetPreferencesAsArray().Length != newPrefs.Length)
+			{
+				return false;
+			}
+			foreach (Preference pref in newPrefs)
+			{
+				Preference oldPref = oldUser.GetPreferenceFor(pref.Item.ID);
+				if (oldPref == null || oldPref.Value != pref.Value)
+				{
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private static void AddPreferenceChanges(User oldUser, User newUser, List<PreferenceChange> changes)
+		{
+			Preference[] previous = oldUser.GetPreferencesAsArray();
+			Dictionary<Object, double> oldValues = new Dictionary<Object, double>();
+			foreach (Preference pref in previous)
+			{
+				oldValues.Add(pref.Item.ID, pref.Value);
+			}
+			foreach (Preference pref in newUser.GetPreferencesAsArray())
+			{
+				Object itemID = pref.Item.ID;
+				double oldValue;
+				if (oldValues.TryGetValue(itemID, out oldValue))
+				{
+					oldValues.Remove(itemID);
+					if (oldValue != pref.Value)
+					{
+						changes.Add(new PreferenceChange(newUser.ID, itemID, oldValue, pref.Value, previous));
+					}
+				}
+				else
+				{
+					changes.Add(new PreferenceChange(newUser.ID, itemID, Double.NaN, pref.Value, previous));
+				}
+			}
+			foreach (KeyValuePair<Object, double> entry in oldValues)
+			{
+				changes.Add(new PreferenceChange(newUser.ID, entry.Key, entry.Value, Double.NaN, previous));
+			}
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		public long Generation
+		{
+			get
+			{
+				lock (changedUsers)
+				{
+					return generation;
+				}
+			}
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		public ICollection<Object> GetUsersChangedSince(long sinceGeneration)
+		{
+			lock (changedUsers)
+			{
+				if (sinceGeneration >= generation)
+				{
+					return new Object[0];
+				}
+				if (changedUsers.Count == 0 || changedUsers.First.Value.Key > sinceGeneration + 1)
+				{
+					// Too old; we don't remember
+					return null;
+				}
+				Dictionary<Object, Object> result = new Dictionary<Object, Object>();
+				foreach (KeyValuePair<long, ICollection<Object>> entry in changedUsers)
+				{
+					if (entry.Key > sinceGeneration)
+					{
+						foreach (Object userID in entry.Value)
+						{
+							result[userID] = userID;
+						}
+					}
+				}
+				return result.Keys;
+			}
+		}
+
+		public void AddPreferenceChangeListener(PreferenceChangeListener listener)
+		{
+			changeSupport.AddPreferenceChangeListener(listener);
+		}
+
+		public void RemovePreferenceChangeListener(PreferenceChangeListener listener)
+		{
+			changeSupport.RemovePreferenceChangeListener(listener);
+		}
+
+		public bool HasPreferenceChangeListener(PreferenceChangeListener listener)
+		{
+			return changeSupport.HasPreferenceChangeListener(listener);
+		}
+
 		protected virtual void ProcessFile(Dictionary<String, List<Preference>> data) 
 		{
 			log.Info("Reading file info...");
-			using (BufferedStream bufStream = new BufferedStream(new FileStream(dataFile, FileMode.Open)))
+			long start = loadTime.Start();
+			int numLines = 0;
+			using (Stream input = StreamCodecs.OpenRead(dataFile))
             {
-                using (StreamReader reader = new StreamReader(bufStream))
+                using (StreamReader reader = new StreamReader(input))
                 {
                     bool notDone = true;
                     while (notDone)
@@ -137,6 +394,7 @@ namespace Taste.Model.file
                                 log.Debug("Read line: " + line);
                             }
                             ProcessLine(line, data);
+                            numLines++;
                         }
                         else
                         {
@@ -145,6 +403,9 @@ namespace Taste.Model.file
                     }
                 }
             }
+			loadTime.Stop(start);
+			linesRead.Add(numLines);
+			log.Info("Read " + numLines + " lines");
 		}
 
 		protected virtual void ProcessLine(String line, Dictionary<String, List<Preference>> data) 
@@ -157,8 +418,31 @@ namespace Taste.Model.file
 				throw new ArgumentException("Bad line: " + line);
 			}
 			String userID = line.Substring(0, commaOne);
-			String itemID = line.Substring(commaOne + 1, commaTwo);
-			double preferenceValue = Convert.ToDouble(line.Substring(commaTwo + 1));
+			LoadFilter filter = this.filter;
+			if (filter != null && !filter.AcceptsUser(userID))
+			{
+				return;
+			}
+			String itemID = line.Substring(commaOne + 1, commaTwo - commaOne - 1);
+			int commaThree = line.IndexOf(',', commaTwo + 1);
+			double preferenceValue;
+			if (commaThree < 0)
+			{
+				preferenceValue = Convert.ToDouble(line.Substring(commaTwo + 1));
+				if (filter != null && !filter.AcceptsDate(null))
+				{
+					return;
+				}
+			}
+			else
+			{
+				preferenceValue = Convert.ToDouble(line.Substring(commaTwo + 1, commaThree - commaTwo - 1));
+				if (filter != null && filter.FiltersDates &&
+				    !filter.AcceptsDate(DateTime.Parse(line.Substring(commaThree + 1), CultureInfo.InvariantCulture)))
+				{
+					return;
+				}
+			}
 
 			List<Preference> prefs;
             if (!data.TryGetValue(userID, out prefs))
@@ -331,6 +615,35 @@ namespace Taste.Model.file
 			return new GenericPreference(user, item, value);
 		}
 
+		/// <summary>
+		/// Estimated bytes of the currently loaded model, or 0 before the first load
+		/// </summary>
+		public long EstimatedBytes
+		{
+			get
+			{
+				MemoryAccountable accountable = delegateModel as MemoryAccountable;
+				return accountable == null ? 0L : accountable.EstimatedBytes;
+			}
+		}
+
+		/// <summary>
+		/// Estimates the size of the <see cref="GenericDataModel"/> the next load builds, from the size of the file.
+		/// That model exists even if it is then compacted, so it is what has to fit.
+		/// </summary>
+		private long EstimateBytes()
+		{
+			long length = new FileInfo(dataFile).Length;
+			if (StreamCodecs.StripExtension(dataFile) != dataFile)
+			{
+				length *= COMPRESSION_RATIO;
+			}
+			double sampleRate = filter == null ? 1.0 : filter.UserSampleRate;
+			long numPrefs = (long) (length / BYTES_PER_LINE * sampleRate);
+			long numIDs = numPrefs / PREFERENCES_PER_ID;
+			return GenericDataModel.EstimateBytes(numIDs, numIDs, numPrefs);
+		}
+
 		public override String ToString() 
 		{
 			return "FileDataModel[dataFile:" + dataFile + ']';
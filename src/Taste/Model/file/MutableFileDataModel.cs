@@ -0,0 +1,1050 @@
+/*
+ * Copyright 2007 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+namespace Taste.Model.file
+{
+	using System;
+	using System.Collections;
+	using System.Collections.Generic;
+	using System.Diagnostics;
+	using System.Globalization;
+	using System.IO;
+	using System.IO.Compression;
+	using System.Text;
+	using System.Threading;
+	using Taste.Common;
+	using Taste.Model;
+	using log4net;
+
+
+    /// <summary>
+    /// <p>A <see cref="DataModel"/> held in memory that can be changed while it serves reads, and that keeps
+    /// changes across restarts. It starts from a comma-delimited file in the format <see cref="FileDataModel"/>
+    /// reads (which may be compressed), then replays a write-ahead log of the changes made since.</p>
+    ///
+    /// <p>Each <see cref="User"/> holds its preferences in an array sorted by item that is replaced, never modified,
+    /// on each change; likewise each item's preferences. Reads therefore take no locks and always see a
+    /// consistent array. Writes lock one of a fixed set of stripes chosen by user ID, so writes for different
+    /// users mostly proceed in parallel. A change is appended to the log and flushed to disk before it becomes
+    /// visible. <see cref="PreferenceChangeListener"/>s are told about it afterwards, still under the user's stripe,
+    /// so they see each user's changes in the order they were made, each with the user's previous preferences.</p>
+    ///
+    /// <p><see cref="Compact"/> writes all current data back to the data file, replacing it, and starts an empty
+    /// log. This runs in the background by itself every <see cref="CompactAfter"/> changes, and writes are only
+    /// held up while the log is switched. A log record torn by a crash is dropped on the next start. The data
+    /// file may be gzipped, but not compressed in another format, since it must be written back.</p>
+    ///
+    /// <p>User and item IDs are <code>String</code>s, which may not contain commas or line breaks. Preferences
+    /// can't be changed through <see cref="Preference.Value"/>; use <see cref="SetPreference"/>. Users and items
+    /// stay in the model after their last preference is removed, until the next start.</p>
+    /// </summary>
+	public sealed class MutableFileDataModel : DataModel, PreferenceChangeSource, IDisposable
+	{
+		private static readonly ILog log = LogManager.GetLogger(typeof(MutableFileDataModel));
+
+		private const int NUM_STRIPES = 64;
+		private const int FILE_BUFFER_BYTES = 1 << 16;
+		private const String COMPACTING_SUFFIX = ".compacting";
+		private const String TEMP_SUFFIX = ".tmp";
+		private static readonly Preference[] NO_PREFERENCES = new Preference[0];
+		private static readonly Encoding ENCODING = new UTF8Encoding(false);
+
+		private readonly String dataFile;
+		private readonly String logFile;
+		private readonly bool gzipped;
+		private readonly Object[] userStripes;
+		private readonly Object[] itemStripes;
+		// Only written while holding structureLock, and then only one writer at a time, which Hashtable allows
+		// alongside any number of readers
+		private readonly Hashtable users = new Hashtable();
+		private readonly Hashtable items = new Hashtable();
+		private readonly Object structureLock = new Object();
+		private volatile User[] sortedUsers = new User[0];
+		private volatile Item[] sortedItems = new Item[0];
+		private readonly Object logLock = new Object();
+		private FileStream logStream;
+		private int loggedRecords;
+		private readonly Object compactLock = new Object();
+		private int compactionQueued;
+		private int compactAfter;
+		private readonly PreferenceChangeSupport changeSupport = new PreferenceChangeSupport();
+
+		/// <summary>
+		/// Uses <code>dataFile + ".log"</code> as the log.
+		/// </summary>
+		public MutableFileDataModel(String dataFile)
+			: this(dataFile, dataFile + ".log")
+		{
+		}
+
+		/// <param name="dataFile">file of preferences to start from; need not exist yet</param>
+		/// <param name="logFile">write-ahead log of changes since <code>dataFile</code> was written</param>
+		/// <exception cref="TasteException">if the log is corrupt</exception>
+		/// <exception cref="IOException">if the files cannot be read</exception>
+		public MutableFileDataModel(String dataFile, String logFile)
+		{
+			if (String.IsNullOrEmpty(dataFile) || String.IsNullOrEmpty(logFile))
+			{
+				throw new ArgumentNullException("dataFile or logFile is null");
+			}
+			StreamCodec codec = StreamCodecs.ForPath(dataFile);
+			if (codec != null && !(codec is GzipCodec))
+			{
+				throw new NotSupportedException("Can't write " + codec + " files: " + dataFile);
+			}
+			this.dataFile = dataFile;
+			this.logFile = logFile;
+			this.gzipped = codec != null;
+			this.userStripes = NewStripes();
+			this.itemStripes = NewStripes();
+
+			long start = TasteEvents.Start();
+			if (File.Exists(dataFile + TEMP_SUFFIX))
+			{
+				// Left by a compaction that did not finish; the data file and logs are still whole
+				File.Delete(dataFile + TEMP_SUFFIX);
+			}
+			long rows = LoadDataFile();
+			// Truncated too, since a failed compaction appends the log to it
+			rows += ReplayLog(CompactingLogFile, true);
+			rows += ReplayLog(logFile, true);
+			this.logStream = OpenLog(logFile);
+			TasteEvents.ModelLoaded("MutableFileDataModel", false, rows, start);
+			if (log.IsInfoEnabled)
+			{
+				log.Info("Loaded " + sortedUsers.Length + " users and " + sortedItems.Length + " items from " +
+				         dataFile);
+			}
+		}
+
+		/// <summary>
+		/// Number of logged changes after which a compaction starts in the background, or 0 (the default) to
+		/// compact only when <see cref="Compact"/> is called.
+		/// </summary>
+		public int CompactAfter
+		{
+			get { return compactAfter; }
+			set
+			{
+				if (value < 0)
+				{
+					throw new ArgumentException("compactAfter must not be negative");
+				}
+				compactAfter = value;
+			}
+		}
+
+		public String DataFile
+		{
+			get { return dataFile; }
+		}
+
+		public String LogFile
+		{
+			get { return logFile; }
+		}
+
+		public IEnumerable<User> GetUsers()
+		{
+			return sortedUsers;
+		}
+
+		/// <exception cref="NoSuchElementException">if there is no such user</exception>
+		public User GetUser(Object id)
+		{
+			User user = id == null ? null : (User) users[id];
+			if (user == null)
+			{
+				throw new NoSuchElementException();
+			}
+			return user;
+		}
+
+		public IEnumerable<Item> GetItems()
+		{
+			return sortedItems;
+		}
+
+		/// <exception cref="NoSuchElementException">if there is no such item</exception>
+		public Item GetItem(Object id)
+		{
+			ItemEntry entry = id == null ? null : (ItemEntry) items[id];
+			if (entry == null)
+			{
+				throw new NoSuchElementException();
+			}
+			return entry.item;
+		}
+
+		public IEnumerable<Preference> GetPreferencesForItem(Object itemID)
+		{
+			return GetPreferencesForItemAsArray(itemID);
+		}
+
+		public Preference[] GetPreferencesForItemAsArray(Object itemID)
+		{
+			ItemEntry entry = itemID == null ? null : (ItemEntry) items[itemID];
+			return entry == null ? NO_PREFERENCES : entry.preferences;
+		}
+
+		public int GetNumItems()
+		{
+			return sortedItems.Length;
+		}
+
+		public int GetNumUsers()
+		{
+			return sortedUsers.Length;
+		}
+
+		/// <summary>
+		/// Adds or changes a preference, once it is in the log.
+		/// </summary>
+		/// <exception cref="IOException">if the log cannot be written; the preference is then unchanged</exception>
+		public void SetPreference(Object userID, Object itemID, double value)
+		{
+			String user = CheckID(userID);
+			String item = CheckID(itemID);
+			if (Double.IsNaN(value) || Double.IsInfinity(value))
+			{
+				throw new ArgumentException("Invalid value: " + value);
+			}
+			lock (StripeFor(userStripes, user))
+			{
+				Append('+' + user + ',' + item + ',' + value.ToString("R", CultureInfo.InvariantCulture));
+				Preference[] previous = PreferencesOf(user);
+				double oldValue = ApplySet(user, item, value);
+				changeSupport.Fire(new PreferenceChange(user, item, oldValue, value, previous));
+			}
+			MaybeCompact();
+		}
+
+		/// <summary>
+		/// Removes a preference, once that is in the log. Does nothing if there is no such preference.
+		/// </summary>
+		/// <exception cref="IOException">if the log cannot be written; the preference is then unchanged</exception>
+		public void RemovePreference(Object userID, Object itemID)
+		{
+			String user = CheckID(userID);
+			String item = CheckID(itemID);
+			lock (StripeFor(userStripes, user))
+			{
+				UserEntry entry = (UserEntry) users[user];
+				if (entry == null || FindItem(entry.preferences, item) < 0)
+				{
+					return;
+				}
+				Append('-' + user + ',' + item);
+				Preference[] previous = entry.preferences;
+				double oldValue = ApplyRemove(user, item);
+				changeSupport.Fire(new PreferenceChange(user, item, oldValue, Double.NaN, previous));
+			}
+			MaybeCompact();
+		}
+
+		/// <summary>
+		/// Does nothing, since this model always holds the latest data.
+		/// </summary>
+		public void Refresh()
+		{
+		}
+
+		/// <summary>
+		/// <p>Writes all current data to the data file, replacing it, and empties the log. Changes can continue
+		/// while the file is written; they go to a new log. The replaced log is kept until the data file is in
+		/// place, and replayed on the next start if it is still there, which does no harm since replaying it
+		/// again over data that includes it changes nothing.</p>
+		/// </summary>
+		/// <exception cref="IOException">if the files cannot be written</exception>
+		public void Compact()
+		{
+			lock (compactLock)
+			{
+				Stopwatch stopwatch = Stopwatch.StartNew();
+				User[] snapshot;
+				Preference[][] preferences;
+				LockAllUsers();
+				try
+				{
+					snapshot = sortedUsers;
+					preferences = new Preference[snapshot.Length][];
+					for (int i = 0; i < snapshot.Length; i++)
+					{
+						preferences[i] = ((UserEntry) snapshot[i]).preferences;
+					}
+					lock (logLock)
+					{
+						RotateLog();
+					}
+				}
+				finally
+				{
+					UnlockAllUsers();
+				}
+
+				long rows = WriteSnapshot(preferences);
+				File.Delete(CompactingLogFile);
+				if (log.IsInfoEnabled)
+				{
+					log.Info("Compacted " + rows + " preferences into " + dataFile + " in " +
+					         stopwatch.ElapsedMilliseconds + "ms");
+				}
+			}
+		}
+
+		public void AddPreferenceChangeListener(PreferenceChangeListener listener)
+		{
+			changeSupport.AddPreferenceChangeListener(listener);
+		}
+
+		public void RemovePreferenceChangeListener(PreferenceChangeListener listener)
+		{
+			changeSupport.RemovePreferenceChangeListener(listener);
+		}
+
+		public bool HasPreferenceChangeListener(PreferenceChangeListener listener)
+		{
+			return changeSupport.HasPreferenceChangeListener(listener);
+		}
+
+		/// <summary>
+		/// Closes the log. The data stays readable, but can no longer be changed.
+		/// </summary>
+		public void Dispose()
+		{
+			lock (compactLock)
+			{
+				lock (logLock)
+				{
+					if (logStream != null)
+					{
+						logStream.Close();
+						logStream = null;
+					}
+				}
+			}
+		}
+
+		public override String ToString()
+		{
+			return "MutableFileDataModel[dataFile:" + dataFile + ", logFile:" + logFile + ']';
+		}
+
+		private String CompactingLogFile
+		{
+			get { return logFile + COMPACTING_SUFFIX; }
+		}
+
+		private static Object[] NewStripes()
+		{
+			Object[] stripes = new Object[NUM_STRIPES];
+			for (int i = 0; i < stripes.Length; i++)
+			{
+				stripes[i] = new Object();
+			}
+			return stripes;
+		}
+
+		private static Object StripeFor(Object[] stripes, String id)
+		{
+			return stripes[(id.GetHashCode() & 0x7FFFFFFF) % stripes.Length];
+		}
+
+		private void LockAllUsers()
+		{
+			foreach (Object stripe in userStripes)
+			{
+				Monitor.Enter(stripe);
+			}
+		}
+
+		private void UnlockAllUsers()
+		{
+			for (int i = userStripes.Length - 1; i >= 0; i--)
+			{
+				Monitor.Exit(userStripes[i]);
+			}
+		}
+
+		private static String CheckID(Object id)
+		{
+			String s = id as String;
+			if (s == null)
+			{
+				throw new ArgumentException("IDs must be Strings: " + id);
+			}
+			if (s.Length == 0 || s.IndexOfAny(new char[] { ',', '\r', '\n' }) >= 0)
+			{
+				throw new ArgumentException("IDs must be non-empty and contain no commas or line breaks: " + s);
+			}
+			return s;
+		}
+
+		#region Changes
+
+		/// <returns>the user's current preferences, empty for a new user; never modified afterwards</returns>
+		private Preference[] PreferencesOf(String userID)
+		{
+			UserEntry user = (UserEntry) users[userID];
+			return user == null ? new Preference[0] : user.preferences;
+		}
+
+		/// <returns>the previous value, or <see cref="Double.NaN"/> if there was none</returns>
+		private double ApplySet(String userID, String itemID, double value)
+		{
+			UserEntry user = GetOrAddUser(userID);
+			ItemEntry item = GetOrAddItem(itemID);
+			Preference pref = new FixedPreference(user, item.item, value);
+
+			double oldValue = Double.NaN;
+			Preference[] prefs = user.preferences;
+			int index = FindItem(prefs, itemID);
+			if (index >= 0)
+			{
+				oldValue = prefs[index].Value;
+				user.preferences = Replace(prefs, index, pref);
+			}
+			else
+			{
+				user.preferences = Insert(prefs, -index - 1, pref);
+			}
+
+			lock (StripeFor(itemStripes, itemID))
+			{
+				prefs = item.preferences;
+				index = FindUser(prefs, userID);
+				item.preferences = index >= 0 ? Replace(prefs, index, pref) : Insert(prefs, -index - 1, pref);
+			}
+			return oldValue;
+		}
+
+		/// <returns>the removed value, or <see cref="Double.NaN"/> if there was none</returns>
+		private double ApplyRemove(String userID, String itemID)
+		{
+			UserEntry user = (UserEntry) users[userID];
+			ItemEntry item = (ItemEntry) items[itemID];
+			if (user == null || item == null)
+			{
+				return Double.NaN;
+			}
+			Preference[] prefs = user.preferences;
+			int index = FindItem(prefs, itemID);
+			if (index < 0)
+			{
+				return Double.NaN;
+			}
+			double oldValue = prefs[index].Value;
+			user.preferences = Remove(prefs, index);
+
+			lock (StripeFor(itemStripes, itemID))
+			{
+				prefs = item.preferences;
+				index = FindUser(prefs, userID);
+				if (index >= 0)
+				{
+					item.preferences = Remove(prefs, index);
+				}
+			}
+			return oldValue;
+		}
+
+		private UserEntry GetOrAddUser(String userID)
+		{
+			UserEntry user = (UserEntry) users[userID];
+			if (user == null)
+			{
+				lock (structureLock)
+				{
+					user = (UserEntry) users[userID];
+					if (user == null)
+					{
+						user = new UserEntry(userID, NO_PREFERENCES);
+						users[userID] = user;
+						User[] current = sortedUsers;
+						int index = Array.BinarySearch(current, (User) user, UserComparer.INSTANCE);
+						sortedUsers = Insert(current, -index - 1, (User) user);
+					}
+				}
+			}
+			return user;
+		}
+
+		private ItemEntry GetOrAddItem(String itemID)
+		{
+			ItemEntry entry = (ItemEntry) items[itemID];
+			if (entry == null)
+			{
+				lock (structureLock)
+				{
+					entry = (ItemEntry) items[itemID];
+					if (entry == null)
+					{
+						entry = new ItemEntry(new GenericItem<String>(itemID), NO_PREFERENCES);
+						items[itemID] = entry;
+						Item[] current = sortedItems;
+						int index = Array.BinarySearch(current, entry.item, ItemComparer.INSTANCE);
+						sortedItems = Insert(current, -index - 1, entry.item);
+					}
+				}
+			}
+			return entry;
+		}
+
+		/// <returns>index of the item's preference in an array sorted by item, or if absent,
+		/// <code>-(insertion point) - 1</code></returns>
+		private static int FindItem(Preference[] prefs, String itemID)
+		{
+			int low = 0;
+			int high = prefs.Length - 1;
+			while (low <= high)
+			{
+				int mid = (low + high) >> 1;
+				int c = String.Compare((String) prefs[mid].Item.ID, itemID);
+				if (c < 0)
+				{
+					low = mid + 1;
+				}
+				else if (c > 0)
+				{
+					high = mid - 1;
+				}
+				else
+				{
+					return mid;
+				}
+			}
+			return -low - 1;
+		}
+
+		/// <returns>index of the user's preference in an array sorted by user, or if absent,
+		/// <code>-(insertion point) - 1</code></returns>
+		private static int FindUser(Preference[] prefs, String userID)
+		{
+			int low = 0;
+			int high = prefs.Length - 1;
+			while (low <= high)
+			{
+				int mid = (low + high) >> 1;
+				int c = String.Compare((String) prefs[mid].User.ID, userID);
+				if (c < 0)
+				{
+					low = mid + 1;
+				}
+				else if (c > 0)
+				{
+					high = mid - 1;
+				}
+				else
+				{
+					return mid;
+				}
+			}
+			return -low - 1;
+		}
+
+		private static T[] Insert<T>(T[] array, int index, T value)
+		{
+			T[] copy = new T[array.Length + 1];
+			Array.Copy(array, 0, copy, 0, index);
+			copy[index] = value;
+			Array.Copy(array, index, copy, index + 1, array.Length - index);
+			return copy;
+		}
+
+		private static T[] Replace<T>(T[] array, int index, T value)
+		{
+			T[] copy = (T[]) array.Clone();
+			copy[index] = value;
+			return copy;
+		}
+
+		private static T[] Remove<T>(T[] array, int index)
+		{
+			T[] copy = new T[array.Length - 1];
+			Array.Copy(array, 0, copy, 0, index);
+			Array.Copy(array, index + 1, copy, index, copy.Length - index);
+			return copy;
+		}
+
+		#endregion
+
+		#region Loading
+
+		/// <returns>number of lines read</returns>
+		private long LoadDataFile()
+		{
+			if (!File.Exists(dataFile))
+			{
+				return 0L;
+			}
+			Dictionary<String, UserEntry> userEntries = new Dictionary<String, UserEntry>(1003);
+			Dictionary<String, List<Preference>> userPrefs = new Dictionary<String, List<Preference>>(1003);
+			Dictionary<String, ItemEntry> itemEntries = new Dictionary<String, ItemEntry>(1003);
+			long numLines = 0L;
+			using (StreamReader reader = new StreamReader(StreamCodecs.OpenRead(dataFile), ENCODING))
+			{
+				String line;
+				while ((line = reader.ReadLine()) != null)
+				{
+					if (line.Length == 0)
+					{
+						continue;
+					}
+					numLines++;
+					int commaOne = line.IndexOf(',');
+					int commaTwo = commaOne < 0 ? -1 : line.IndexOf(',', commaOne + 1);
+					double value;
+					if (commaOne <= 0 || commaTwo <= commaOne + 1 ||
+					    !Double.TryParse(line.Substring(commaTwo + 1), NumberStyles.Float,
+					                     CultureInfo.InvariantCulture, out value))
+					{
+						throw new TasteException("Bad line " + numLines + " in " + dataFile + ": " + line);
+					}
+					String userID = line.Substring(0, commaOne);
+					String itemID = line.Substring(commaOne + 1, commaTwo - commaOne - 1);
+
+					UserEntry user;
+					List<Preference> prefs;
+					if (!userEntries.TryGetValue(userID, out user))
+					{
+						user = new UserEntry(userID, NO_PREFERENCES);
+						userEntries.Add(userID, user);
+						prefs = new List<Preference>();
+						userPrefs.Add(userID, prefs);
+					}
+					else
+					{
+						prefs = userPrefs[userID];
+					}
+					ItemEntry item;
+					if (!itemEntries.TryGetValue(itemID, out item))
+					{
+						item = new ItemEntry(new GenericItem<String>(itemID), NO_PREFERENCES);
+						itemEntries.Add(itemID, item);
+					}
+					prefs.Add(new FixedPreference(user, item.item, value));
+				}
+			}
+
+			User[] newUsers = new User[userEntries.Count];
+			int u = 0;
+			foreach (UserEntry user in userEntries.Values)
+			{
+				newUsers[u++] = user;
+				user.preferences = SortByItem(userPrefs[(String) user.ID]);
+				users[user.ID] = user;
+			}
+			Array.Sort(newUsers, UserComparer.INSTANCE);
+
+			// Users in order, so each item's preferences come out sorted by user
+			Dictionary<String, List<Preference>> itemPrefs = new Dictionary<String, List<Preference>>(itemEntries.Count);
+			foreach (User user in newUsers)
+			{
+				foreach (Preference pref in ((UserEntry) user).preferences)
+				{
+					List<Preference> prefs;
+					if (!itemPrefs.TryGetValue((String) pref.Item.ID, out prefs))
+					{
+						prefs = new List<Preference>();
+						itemPrefs.Add((String) pref.Item.ID, prefs);
+					}
+					prefs.Add(pref);
+				}
+			}
+			Item[] newItems = new Item[itemEntries.Count];
+			int i = 0;
+			foreach (ItemEntry item in itemEntries.Values)
+			{
+				newItems[i++] = item.item;
+				List<Preference> prefs;
+				if (itemPrefs.TryGetValue((String) item.item.ID, out prefs))
+				{
+					item.preferences = prefs.ToArray();
+				}
+				items[item.item.ID] = item;
+			}
+			Array.Sort(newItems, ItemComparer.INSTANCE);
+
+			sortedUsers = newUsers;
+			sortedItems = newItems;
+			return numLines;
+		}
+
+		/// <returns>the preferences sorted by item, keeping only the last of several for the same item</returns>
+		private static Preference[] SortByItem(List<Preference> prefs)
+		{
+			int[] order = new int[prefs.Count];
+			for (int i = 0; i < order.Length; i++)
+			{
+				order[i] = i;
+			}
+			Array.Sort(order, delegate(int a, int b)
+			{
+				int c = prefs[a].Item.CompareTo(prefs[b].Item);
+				return c != 0 ? c : a.CompareTo(b);
+			});
+			List<Preference> sorted = new List<Preference>(order.Length);
+			for (int i = 0; i < order.Length; i++)
+			{
+				if (i + 1 < order.Length && prefs[order[i]].Item.Equals(prefs[order[i + 1]].Item))
+				{
+					continue;
+				}
+				sorted.Add(prefs[order[i]]);
+			}
+			return sorted.ToArray();
+		}
+
+		/// <summary>
+		/// Applies the records in a log. An incomplete last record, left by a crash while it was written, is
+		/// ignored, and if <code>truncate</code>, cut off so that records can be appended after it.
+		/// </summary>
+		/// <returns>number of records applied</returns>
+		private long ReplayLog(String path, bool truncate)
+		{
+			if (!File.Exists(path))
+			{
+				return 0L;
+			}
+			long records = 0L;
+			long validLength = 0L;
+			long length;
+			using (FileStream input = new FileStream(path, FileMode.Open, FileAccess.Read, FileShare.Read,
+			                                         FILE_BUFFER_BYTES, FileOptions.SequentialScan))
+			{
+				length = input.Length;
+				MemoryStream record = new MemoryStream();
+				int b;
+				while ((b = input.ReadByte()) >= 0)
+				{
+					if (b != '\n')
+					{
+						record.WriteByte((byte) b);
+						continue;
+					}
+					ApplyRecord(ENCODING.GetString(record.GetBuffer(), 0, (int) record.Length), path, validLength);
+					record.SetLength(0);
+					validLength = input.Position;
+					records++;
+				}
+			}
+			if (validLength < length)
+			{
+				log.Warn("Dropping incomplete record at the end of " + path);
+				if (truncate)
+				{
+					using (FileStream output = new FileStream(path, FileMode.Open, FileAccess.Write))
+					{
+						output.SetLength(validLength);
+					}
+				}
+			}
+			return records;
+		}
+
+		private void ApplyRecord(String record, String path, long offset)
+		{
+			int commaOne = record.IndexOf(',');
+			int commaTwo = commaOne < 0 ? -1 : record.IndexOf(',', commaOne + 1);
+			if (record.Length > 0 && record[0] == '+' && commaOne > 1 && commaTwo > commaOne + 1)
+			{
+				double value;
+				if (Double.TryParse(record.Substring(commaTwo + 1), NumberStyles.Float, CultureInfo.InvariantCulture,
+				                    out value))
+				{
+					ApplySet(record.Substring(1, commaOne - 1), record.Substring(commaOne + 1, commaTwo - commaOne - 1),
+					         value);
+					return;
+				}
+			}
+			else if (record.Length > 0 && record[0] == '-' && commaOne > 1 && commaTwo < 0 &&
+			         commaOne + 1 < record.Length)
+			{
+				ApplyRemove(record.Substring(1, commaOne - 1), record.Substring(commaOne + 1));
+				return;
+			}
+			throw new TasteException("Corrupt record at offset " + offset + " in " + path + ": " + record);
+		}
+
+		#endregion
+
+		#region Log and compaction
+
+		private static FileStream OpenLog(String path)
+		{
+			return new FileStream(path, FileMode.Append, FileAccess.Write, FileShare.Read, 4096,
+			                      FileOptions.WriteThrough);
+		}
+
+		private void Append(String record)
+		{
+			byte[] bytes = ENCODING.GetBytes(record + '\n');
+			lock (logLock)
+			{
+				if (logStream == null)
+				{
+					throw new IllegalStateException("MutableFileDataModel is closed");
+				}
+				logStream.Write(bytes, 0, bytes.Length);
+				logStream.Flush();
+				loggedRecords++;
+			}
+		}
+
+		private void MaybeCompact()
+		{
+			int threshold = compactAfter;
+			if (threshold <= 0 || Thread.VolatileRead(ref loggedRecords) < threshold ||
+			    Interlocked.CompareExchange(ref compactionQueued, 1, 0) != 0)
+			{
+				return;
+			}
+			ThreadPool.QueueUserWorkItem(delegate
+			{
+				try
+				{
+					if (Thread.VolatileRead(ref loggedRecords) >= threshold)
+					{
+						Compact();
+					}
+				}
+				catch (Exception e)
+				{
+					log.Warn("Compaction of " + dataFile + " failed", e);
+				}
+				finally
+				{
+					Interlocked.Exchange(ref compactionQueued, 0);
+				}
+			});
+		}
+
+		/// <summary>
+		/// Moves the log aside for the compaction, adding to what an earlier, failed compaction left there, and
+		/// opens a new one. Called holding all user stripes and the log lock.
+		/// </summary>
+		private void RotateLog()
+		{
+			if (logStream == null)
+			{
+				throw new IllegalStateException("MutableFileDataModel is closed");
+			}
+			logStream.Close();
+			logStream = null;
+			try
+			{
+				if (File.Exists(CompactingLogFile))
+				{
+					using (FileStream output = OpenLog(CompactingLogFile))
+					{
+						using (FileStream input = new FileStream(logFile, FileMode.Open, FileAccess.Read))
+						{
+							byte[] buffer = new byte[FILE_BUFFER_BYTES];
+							int read;
+							while ((read = input.Read(buffer, 0, buffer.Length)) > 0)
+							{
+								output.Write(buffer, 0, read);
+							}
+						}
+					}
+					File.Delete(logFile);
+				}
+				else
+				{
+					File.Move(logFile, CompactingLogFile);
+				}
+			}
+			finally
+			{
+				logStream = OpenLog(logFile);
+			}
+			loggedRecords = 0;
+		}
+
+		/// <returns>number of preferences written</returns>
+		private long WriteSnapshot(Preference[][] preferences)
+		{
+			String tempFile = dataFile + TEMP_SUFFIX;
+			long rows = 0L;
+			using (FileStream file = new FileStream(tempFile, FileMode.Create, FileAccess.Write, FileShare.None,
+			                                        FILE_BUFFER_BYTES, FileOptions.WriteThrough))
+			{
+				Stream output = gzipped ? (Stream) new GZipStream(file, CompressionMode.Compress, true) : file;
+				using (StreamWriter writer = new StreamWriter(output, ENCODING, FILE_BUFFER_BYTES))
+				{
+					writer.NewLine = "\n";
+					foreach (Preference[] prefs in preferences)
+					{
+						foreach (Preference pref in prefs)
+						{
+							writer.Write((String) pref.User.ID);
+							writer.Write(',');
+							writer.Write((String) pref.Item.ID);
+							writer.Write(',');
+							writer.WriteLine(pref.Value.ToString("R", CultureInfo.InvariantCulture));
+							rows++;
+						}
+					}
+				}
+			}
+			if (File.Exists(dataFile))
+			{
+				File.Replace(tempFile, dataFile, null);
+			}
+			else
+			{
+				File.Move(tempFile, dataFile);
+			}
+			return rows;
+		}
+
+		#endregion
+
+		#region Helper classes
+
+		private sealed class UserEntry : User
+		{
+			private readonly String id;
+			// Sorted by item; replaced, never modified
+			internal volatile Preference[] preferences;
+
+			internal UserEntry(String id, Preference[] preferences)
+			{
+				this.id = id;
+				this.preferences = preferences;
+			}
+
+			public Object ID
+			{
+				get { return id; }
+			}
+
+			public Preference GetPreferenceFor(Object itemID)
+			{
+				String item = itemID as String;
+				if (item == null)
+				{
+					return null;
+				}
+				Preference[] prefs = preferences;
+				int index = FindItem(prefs, item);
+				return index < 0 ? null : prefs[index];
+			}
+
+			public IEnumerable<Preference> GetPreferences()
+			{
+				return preferences;
+			}
+
+			public Preference[] GetPreferencesAsArray()
+			{
+				return preferences;
+			}
+
+			public int CompareTo(User other)
+			{
+				return String.Compare(id, (String) other.ID);
+			}
+
+			public override bool Equals(Object o)
+			{
+				User other = o as User;
+				return other != null && id.Equals(other.ID);
+			}
+
+			public override int GetHashCode()
+			{
+				return id.GetHashCode();
+			}
+
+			public override String ToString()
+			{
+				return "User[id:" + id + ']';
+			}
+		}
+
+		private sealed class ItemEntry
+		{
+			internal readonly Item item;
+			// Sorted by user; replaced, never modified
+			internal volatile Preference[] preferences;
+
+			internal ItemEntry(Item item, Preference[] preferences)
+			{
+				this.item = item;
+				this.preferences = preferences;
+			}
+		}
+
+		private sealed class FixedPreference : Preference
+		{
+			private readonly User user;
+			private readonly Item item;
+			private readonly double value;
+
+			internal FixedPreference(User user, Item item, double value)
+			{
+				this.user = user;
+				this.item = item;
+				this.value = value;
+			}
+
+			public User User
+			{
+				get { return user; }
+			}
+
+			public Item Item
+			{
+				get { return item; }
+			}
+
+			public double Value
+			{
+				get { return value; }
+				set { throw new NotSupportedException("Use MutableFileDataModel.SetPreference()"); }
+			}
+
+			public override String ToString()
+			{
+				return "Preference[user: " + user.ID + ", item:" + item.ID + ", value:" + value + ']';
+			}
+		}
+
+		private sealed class UserComparer : IComparer<User>
+		{
+			internal static readonly UserComparer INSTANCE = new UserComparer();
+
+			public int Compare(User a, User b)
+			{
+				return a.CompareTo(b);
+			}
+		}
+
+		private sealed class ItemComparer : IComparer<Item>
+		{
+			internal static readonly ItemComparer INSTANCE = new ItemComparer();
+
+			public int Compare(Item a, Item b)
+			{
+				return a.CompareTo(b);
+			}
+		}
+
+		#endregion
+	}
+
+}
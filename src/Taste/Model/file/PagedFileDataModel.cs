@@ -0,0 +1,1069 @@
+/*
+ * Copyright 2007 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+namespace Taste.Model.file
+{
+	using System;
+	using System.Collections.Generic;
+	using System.Globalization;
+	using System.IO;
+	using Taste.Common;
+	using Taste.Model;
+	using log4net;
+
+
+    /// <summary>
+    /// <p>A read-only <see cref="DataModel"/> over a comma-delimited file in the format <see cref="FileDataModel"/>
+    /// reads, for data too large to hold in memory. The file is sorted once, by external merge sort, into two
+    /// files of fixed-size records on disk: one ordered by user then item, one by item then user. An index of
+    /// each user's and each item's first record is kept in memory, with the IDs, so memory use grows with the
+    /// number of users and items, not preferences.</p>
+    ///
+    /// <p>A user's or item's preferences are read from disk when first needed, as one contiguous slice, and kept
+    /// in a least-recently-used cache bounded by a total number of preferences. <see cref="User"/>s returned by
+    /// this model hold no preferences themselves and go through the cache each time. Each read checks out a
+    /// file handle of its own from a small pool, so concurrent reads don't queue behind one another.</p>
+    ///
+    /// <p>The sorted files are kept in a directory of their own and reused by later instances until the data file
+    /// changes. Values are stored in single precision. If a user has several preferences for one item, the last
+    /// in the file is kept. IDs are <code>String</code>s, ordered as <code>String.CompareTo</code> orders
+    /// them.</p>
+    ///
+    /// <p>The index is tracked by <see cref="MemoryBudget.Default"/>, and both caches are charged to it, so
+    /// they shrink below their own bounds when the budget fills up.</p>
+    /// </summary>
+	public sealed class PagedFileDataModel : DataModel, MemoryAccountable, IDisposable
+	{
+		private static readonly ILog log = LogManager.GetLogger(typeof(PagedFileDataModel));
+
+		public const long DEFAULT_CACHED_PREFERENCES = 1L << 20;
+		public const int DEFAULT_SORT_BUFFER_RECORDS = 1 << 21;
+
+		private const int MAGIC = 0x54504446;
+		private const int VERSION = 1;
+		// An item or user index and a value
+		private const int RECORD_BYTES = 8;
+		// User index, item index and value while sorting; a sort key and value in sorted runs
+		private const int RAW_RECORD_BYTES = 12;
+		private const int RUN_RECORD_BYTES = 12;
+		private const int FILE_BUFFER_BYTES = 1 << 16;
+		private const String INDEX_FILE = "index.bin";
+		private const String BY_USER_FILE = "by-user.bin";
+		private const String BY_ITEM_FILE = "by-item.bin";
+		private static readonly Preference[] NO_PREFS = new Preference[0];
+
+		private readonly String dataFile;
+		private readonly String layoutDirectory;
+		private readonly PagedUser[] users;
+		private readonly Dictionary<String, int> userIndices;
+		private readonly Item[] items;
+		private readonly Dictionary<String, int> itemIndices;
+		private readonly long[] userOffsets;
+		private readonly long[] itemOffsets;
+		private readonly RecordFile byUser;
+		private readonly RecordFile byItem;
+		private readonly ConcurrentCache<int, Slice> userCache;
+		private readonly ConcurrentCache<int, Slice> itemCache;
+
+		/// <summary>
+		/// Keeps its sorted files in <code>dataFile + ".paged"</code>.
+		/// </summary>
+		public PagedFileDataModel(String dataFile)
+			: this(dataFile, dataFile + ".paged", DEFAULT_CACHED_PREFERENCES, DEFAULT_SORT_BUFFER_RECORDS)
+		{
+		}
+
+		/// <param name="dataFile">file of preferences, which may be compressed</param>
+		/// <param name="layoutDirectory">directory for the sorted files; created if need be</param>
+		/// <param name="cachedPreferences">how many preferences to cache, split between users and items</param>
+		/// <param name="sortBufferRecords">how many preferences to sort in memory at once while sorting the
+		/// data file; each takes 16 bytes</param>
+		/// <exception cref="TasteException">if the data file has a bad line</exception>
+		/// <exception cref="IOException">if the files cannot be read or written</exception>
+		public PagedFileDataModel(String dataFile, String layoutDirectory, long cachedPreferences, int sortBufferRecords)
+		{
+			if (String.IsNullOrEmpty(dataFile) || String.IsNullOrEmpty(layoutDirectory))
+			{
+				throw new ArgumentNullException("dataFile or layoutDirectory is null");
+			}
+			if (cachedPreferences < 2L || sortBufferRecords < 1)
+			{
+				throw new ArgumentException("cachedPreferences must be at least 2 and sortBufferRecords at least 1");
+			}
+			if (!File.Exists(dataFile))
+			{
+				throw new FileNotFoundException(dataFile);
+			}
+			this.dataFile = dataFile;
+			this.layoutDirectory = layoutDirectory;
+
+			long start = TasteEvents.Start();
+			Directory.CreateDirectory(layoutDirectory);
+			LayoutIndex index = LayoutIndex.Read(Path.Combine(layoutDirectory, INDEX_FILE), dataFile);
+			if (index == null)
+			{
+				Build(dataFile, layoutDirectory, sortBufferRecords);
+				index = LayoutIndex.Read(Path.Combine(layoutDirectory, INDEX_FILE), dataFile);
+				if (index == null)
+				{
+					throw new IOException("Data file changed while it was sorted: " + dataFile);
+				}
+			}
+			else if (log.IsInfoEnabled)
+			{
+				log.Info("Reusing sorted files in " + layoutDirectory);
+			}
+
+			int numUsers = index.userIDs.Length;
+			this.users = new PagedUser[numUsers];
+			this.userIndices = new Dictionary<String, int>(numUsers);
+			for (int u = 0; u < numUsers; u++)
+			{
+				users[u] = new PagedUser(this, index.userIDs[u], u);
+				userIndices.Add(index.userIDs[u], u);
+			}
+			int numItems = index.itemIDs.Length;
+			this.items = new Item[numItems];
+			this.itemIndices = new Dictionary<String, int>(numItems);
+			for (int i = 0; i < numItems; i++)
+			{
+				items[i] = new GenericItem<String>(index.itemIDs[i]);
+				itemIndices.Add(index.itemIDs[i], i);
+			}
+			this.userOffsets = index.userOffsets;
+			this.itemOffsets = index.itemOffsets;
+
+			this.byUser = new RecordFile(Path.Combine(layoutDirectory, BY_USER_FILE), ParallelUtils.DefaultThreads);
+			this.byItem = new RecordFile(Path.Combine(layoutDirectory, BY_ITEM_FILE), ParallelUtils.DefaultThreads);
+			SliceWeigher weigher = new SliceWeigher();
+			this.userCache = new ConcurrentCache<int, Slice>(new UserSliceRetriever(this), weigher,
+			                                                 cachedPreferences / 2, TimeSpan.Zero);
+			this.itemCache = new ConcurrentCache<int, Slice>(new ItemSliceRetriever(this), weigher,
+			                                                 cachedPreferences / 2, TimeSpan.Zero);
+			SliceSizer sizer = new SliceSizer();
+			userCache.ChargeTo(MemoryBudget.Default, ToString() + " user slices", sizer);
+			itemCache.ChargeTo(MemoryBudget.Default, ToString() + " item slices", sizer);
+			MemoryBudget.Default.Track(ToString(), this, IndexBytes);
+			TasteEvents.ModelLoaded("PagedFileDataModel", false, NumPreferences, start);
+		}
+
+		public String DataFile
+		{
+			get { return dataFile; }
+		}
+
+		public String LayoutDirectory
+		{
+			get { return layoutDirectory; }
+		}
+
+		public long NumPreferences
+		{
+			get { return userOffsets[userOffsets.Length - 1]; }
+		}
+
+		public IEnumerable<User> GetUsers()
+		{
+			foreach (PagedUser user in users)
+			{
+				yield return user;
+			}
+		}
+
+		/// <exception cref="NoSuchElementException">if there is no such user</exception>
+		public User GetUser(Object id)
+		{
+			int index;
+			String key = id as String;
+			if (key == null || !userIndices.TryGetValue(key, out index))
+			{
+				throw new NoSuchElementException();
+			}
+			return users[index];
+		}
+
+		public IEnumerable<Item> GetItems()
+		{
+			return items;
+		}
+
+		/// <exception cref="NoSuchElementException">if there is no such item</exception>
+		public Item GetItem(Object id)
+		{
+			int index;
+			String key = id as String;
+			if (key == null || !itemIndices.TryGetValue(key, out index))
+			{
+				throw new NoSuchElementException();
+			}
+			return items[index];
+		}
+
+		public IEnumerable<Preference> GetPreferencesForItem(Object itemID)
+		{
+			return GetPreferencesForItemAsArray(itemID);
+		}
+
+		/// <returns>preferences ordered by user, shared with other callers; empty if there is no such item</returns>
+		public Preference[] GetPreferencesForItemAsArray(Object itemID)
+		{
+			int index;
+			String key = itemID as String;
+			if (key == null || !itemIndices.TryGetValue(key, out index))
+			{
+				return NO_PREFS;
+			}
+			return itemCache.Get(index).prefs;
+		}
+
+		public int GetNumItems()
+		{
+			return items.Length;
+		}
+
+		public int GetNumUsers()
+		{
+			return users.Length;
+		}
+
+		/// <exception cref="NotSupportedException">always</exception>
+		public void SetPreference(Object userID, Object itemID, double value)
+		{
+			throw new NotSupportedException("PagedFileDataModel is read-only");
+		}
+
+		/// <exception cref="NotSupportedException">always</exception>
+		public void RemovePreference(Object userID, Object itemID)
+		{
+			throw new NotSupportedException("PagedFileDataModel is read-only");
+		}
+
+		/// <summary>
+		/// Empties the caches. Changes to the data file are picked up by a new instance.
+		/// </summary>
+		public void Refresh()
+		{
+			userCache.InvalidateAll();
+			itemCache.InvalidateAll();
+		}
+
+		/// <summary>
+		/// Closes the sorted files. The model can't be read after this.
+		/// </summary>
+		public void Dispose()
+		{
+			byUser.Close();
+			byItem.Close();
+		}
+
+		/// <summary>
+		/// Estimated bytes of the in-memory index and the cached slices
+		/// </summary>
+		public long EstimatedBytes
+		{
+			get { return IndexBytes + userCache.EstimatedBytes + itemCache.EstimatedBytes; }
+		}
+
+		/// <summary>
+		/// Users, items, their IDs and offsets, and the maps from ID to index
+		/// </summary>
+		private long IndexBytes
+		{
+			get
+			{
+				int r = MemoryBudget.REFERENCE_BYTES;
+				long numUsers = users.Length;
+				long numItems = items.Length;
+				return numUsers * (MemoryBudget.ObjectBytes(2 * r + 4) + MemoryBudget.ID_BYTES) +
+				       numItems * (MemoryBudget.ObjectBytes(r + 4) + MemoryBudget.ID_BYTES) +
+				       MemoryBudget.ArrayBytes(numUsers, r) + MemoryBudget.ArrayBytes(numItems, r) +
+				       MemoryBudget.ArrayBytes(numUsers + 1, 8) + MemoryBudget.ArrayBytes(numItems + 1, 8) +
+				       MemoryBudget.DictionaryBytes(numUsers, r, 4) + MemoryBudget.DictionaryBytes(numItems, r, 4);
+			}
+		}
+
+		public override String ToString()
+		{
+			return "PagedFileDataModel[dataFile:" + dataFile + ", users:" + users.Length + ", items:" + items.Length +
+			       ", preferences:" + NumPreferences + ']';
+		}
+
+		#region Reading
+
+		private Slice ReadUserSlice(int userIndex)
+		{
+			long first = userOffsets[userIndex];
+			int count = (int) (userOffsets[userIndex + 1] - first);
+			byte[] records = byUser.Read(first, count);
+			User user = users[userIndex];
+			int[] indices = new int[count];
+			Preference[] prefs = new Preference[count];
+			for (int i = 0; i < count; i++)
+			{
+				indices[i] = BitConverter.ToInt32(records, i * RECORD_BYTES);
+				prefs[i] = new PagedPreference(user, items[indices[i]], BitConverter.ToSingle(records, i * RECORD_BYTES + 4));
+			}
+			return new Slice(indices, prefs);
+		}
+
+		private Slice ReadItemSlice(int itemIndex)
+		{
+			long first = itemOffsets[itemIndex];
+			int count = (int) (itemOffsets[itemIndex + 1] - first);
+			byte[] records = byItem.Read(first, count);
+			Item item = items[itemIndex];
+			int[] indices = new int[count];
+			Preference[] prefs = new Preference[count];
+			for (int i = 0; i < count; i++)
+			{
+				indices[i] = BitConverter.ToInt32(records, i * RECORD_BYTES);
+				prefs[i] = new PagedPreference(users[indices[i]], item, BitConverter.ToSingle(records, i * RECORD_BYTES + 4));
+			}
+			return new Slice(indices, prefs);
+		}
+
+		#endregion
+
+		#region Sorting
+
+		/// <summary>
+		/// Writes the sorted files and, last, the index, so that an interrupted build leaves no index and is
+		/// redone.
+		/// </summary>
+		private static void Build(String dataFile, String directory, int sortBufferRecords)
+		{
+			log.Info("Sorting " + dataFile + " into " + directory);
+			String indexFile = Path.Combine(directory, INDEX_FILE);
+			if (File.Exists(indexFile))
+			{
+				File.Delete(indexFile);
+			}
+			FileInfo source = new FileInfo(dataFile);
+			long sourceLength = source.Length;
+			long sourceTicks = source.LastWriteTimeUtc.Ticks;
+
+			// Records of provisional user index, item index and value, in file order
+			String rawFile = Path.Combine(directory, "raw.tmp");
+			Dictionary<String, int> userIDs = new Dictionary<String, int>(1003);
+			Dictionary<String, int> itemIDs = new Dictionary<String, int>(1003);
+			long numLines = 0L;
+			try
+			{
+				using (StreamReader reader = new StreamReader(StreamCodecs.OpenRead(dataFile)))
+				{
+					using (BinaryWriter raw = new BinaryWriter(new FileStream(rawFile, FileMode.Create, FileAccess.Write,
+					                                                          FileShare.None, FILE_BUFFER_BYTES)))
+					{
+						String line;
+						while ((line = reader.ReadLine()) != null)
+						{
+							if (line.Length == 0)
+							{
+								continue;
+							}
+							numLines++;
+							int commaOne = line.IndexOf(',');
+							int commaTwo = commaOne < 0 ? -1 : line.IndexOf(',', commaOne + 1);
+							double value;
+							if (commaOne <= 0 || commaTwo <= commaOne + 1 ||
+							    !Double.TryParse(line.Substring(commaTwo + 1), NumberStyles.Float,
+							                     CultureInfo.InvariantCulture, out value))
+							{
+								throw new TasteException("Bad line " + numLines + " in " + dataFile + ": " + line);
+							}
+							raw.Write(IndexOf(userIDs, line.Substring(0, commaOne)));
+							raw.Write(IndexOf(itemIDs, line.Substring(commaOne + 1, commaTwo - commaOne - 1)));
+							raw.Write((float) value);
+						}
+					}
+				}
+
+				String[] sortedUserIDs;
+				int[] userRemap = SortIDs(userIDs, out sortedUserIDs);
+				userIDs = null;
+				String[] sortedItemIDs;
+				int[] itemRemap = SortIDs(itemIDs, out sortedItemIDs);
+				itemIDs = null;
+
+				long[] userOffsets = SortRecords(rawFile, userRemap, itemRemap, true,
+				                                 Path.Combine(directory, BY_USER_FILE), sortBufferRecords);
+				long[] itemOffsets = SortRecords(rawFile, userRemap, itemRemap, false,
+				                                 Path.Combine(directory, BY_ITEM_FILE), sortBufferRecords);
+
+				String tempIndexFile = indexFile + ".tmp";
+				using (BinaryWriter index = new BinaryWriter(new FileStream(tempIndexFile, FileMode.Create,
+				                                                            FileAccess.Write, FileShare.None,
+				                                                            FILE_BUFFER_BYTES)))
+				{
+					index.Write(MAGIC);
+					index.Write(VERSION);
+					index.Write(sourceLength);
+					index.Write(sourceTicks);
+					index.Write(sortedUserIDs.Length);
+					index.Write(sortedItemIDs.Length);
+					foreach (String id in sortedUserIDs)
+					{
+						index.Write(id);
+					}
+					foreach (String id in sortedItemIDs)
+					{
+						index.Write(id);
+					}
+					foreach (long offset in userOffsets)
+					{
+						index.Write(offset);
+					}
+					foreach (long offset in itemOffsets)
+					{
+						index.Write(offset);
+					}
+				}
+				File.Move(tempIndexFile, indexFile);
+				if (log.IsInfoEnabled)
+				{
+					log.Info("Sorted " + userOffsets[userOffsets.Length - 1] + " preferences of " + sortedUserIDs.Length +
+					         " users and " + sortedItemIDs.Length + " items");
+				}
+			}
+			finally
+			{
+				if (File.Exists(rawFile))
+				{
+					File.Delete(rawFile);
+				}
+			}
+		}
+
+		private static int IndexOf(Dictionary<String, int> ids, String id)
+		{
+			int index;
+			if (!ids.TryGetValue(id, out index))
+			{
+				index = ids.Count;
+				ids.Add(id, index);
+			}
+			return index;
+		}
+
+		/// <returns>for each provisional index, the index of the ID in sorted order</returns>
+		private static int[] SortIDs(Dictionary<String, int> ids, out String[] sorted)
+		{
+			sorted = new String[ids.Count];
+			int[] provisional = new int[ids.Count];
+			int n = 0;
+			foreach (KeyValuePair<String, int> entry in ids)
+			{
+				sorted[n] = entry.Key;
+				provisional[n] = entry.Value;
+				n++;
+			}
+			Array.Sort(sorted, provisional, StringComparer.CurrentCulture);
+			int[] remap = new int[sorted.Length];
+			for (int i = 0; i < sorted.Length; i++)
+			{
+				remap[provisional[i]] = i;
+			}
+			return remap;
+		}
+
+		/// <summary>
+		/// Sorts the raw records by user then item, or the other way around, into runs of at most <code>bufferRecords</code>, then
+		/// merges the runs into <code>outputFile</code> as records of the second index and value. Of several records
+		/// with the same indices, the last in the raw file is kept: within a run by its position, and across runs
+		/// because later runs win ties.
+		/// </summary>
+		/// <returns>offset of the first record of each user (or item), and the total at the end</returns>
+		private static long[] SortRecords(String rawFile, int[] userRemap, int[] itemRemap, bool byUser,
+		                                  String outputFile, int bufferRecords)
+		{
+			String directory = Path.GetDirectoryName(outputFile);
+			String runPrefix = Path.GetFileNameWithoutExtension(outputFile) + "-run";
+			List<String> runs = new List<String>();
+			try
+			{
+				using (BinaryReader raw = new BinaryReader(new FileStream(rawFile, FileMode.Open, FileAccess.Read,
+				                                                          FileShare.Read, FILE_BUFFER_BYTES,
+				                                                          FileOptions.SequentialScan)))
+				{
+					long remaining = raw.BaseStream.Length / RAW_RECORD_BYTES;
+					int capacity = (int) Math.Min(remaining, bufferRecords);
+					long[] keys = new long[capacity];
+					int[] positions = new int[capacity];
+					float[] values = new float[capacity];
+					while (remaining > 0L)
+					{
+						int count = (int) Math.Min(remaining, capacity);
+						for (int i = 0; i < count; i++)
+						{
+							int provisionalUser = raw.ReadInt32();
+							int provisionalItem = raw.ReadInt32();
+							values[i] = raw.ReadSingle();
+							positions[i] = i;
+							int user = userRemap[provisionalUser];
+							int item = itemRemap[provisionalItem];
+							keys[i] = byUser ? (long) user << 32 | (uint) item : (long) item << 32 | (uint) user;
+						}
+						remaining -= count;
+						Array.Sort(keys, positions, 0, count);
+
+						String run = Path.Combine(directory, runPrefix + runs.Count + ".tmp");
+						runs.Add(run);
+						using (BinaryWriter output = new BinaryWriter(new FileStream(run, FileMode.Create, FileAccess.Write,
+						                                                             FileShare.None, FILE_BUFFER_BYTES)))
+						{
+							for (int i = 0; i < count; i++)
+							{
+								int winner = positions[i];
+								while (i + 1 < count && keys[i + 1] == keys[i])
+								{
+									i++;
+									winner = Math.Max(winner, positions[i]);
+								}
+								output.Write(keys[i]);
+								output.Write(values[winner]);
+							}
+						}
+					}
+				}
+				return MergeRuns(runs, byUser ? userRemap.Length : itemRemap.Length, outputFile);
+			}
+			finally
+			{
+				foreach (String run in runs)
+				{
+					if (File.Exists(run))
+					{
+						File.Delete(run);
+					}
+				}
+			}
+		}
+
+		private static long[] MergeRuns(List<String> runs, int numKeys, String outputFile)
+		{
+			long[] offsets = new long[numKeys + 1];
+			RunReader[] readers = new RunReader[runs.Count];
+			try
+			{
+				RunHeap heap = new RunHeap(readers);
+				for (int r = 0; r < runs.Count; r++)
+				{
+					readers[r] = new RunReader(runs[r]);
+					if (readers[r].Next())
+					{
+						heap.Push(r);
+					}
+				}
+				using (BinaryWriter output = new BinaryWriter(new FileStream(outputFile, FileMode.Create, FileAccess.Write,
+				                                                             FileShare.None, FILE_BUFFER_BYTES)))
+				{
+					bool pending = false;
+					long pendingKey = 0L;
+					float pendingValue = 0.0f;
+					while (heap.Count > 0)
+					{
+						int r = heap.Pop();
+						RunReader reader = readers[r];
+						if (!pending || reader.key != pendingKey)
+						{
+							if (pending)
+							{
+								WriteRecord(output, pendingKey, pendingValue, offsets);
+							}
+							pending = true;
+							pendingKey = reader.key;
+						}
+						// Equal keys come out in run order, so the latest run's value is kept
+						pendingValue = reader.value;
+						if (reader.Next())
+						{
+							heap.Push(r);
+						}
+					}
+					if (pending)
+					{
+						WriteRecord(output, pendingKey, pendingValue, offsets);
+					}
+				}
+			}
+			finally
+			{
+				foreach (RunReader reader in readers)
+				{
+					if (reader != null)
+					{
+						reader.Close();
+					}
+				}
+			}
+			// Counts, shifted up one, become offsets
+			for (int i = 1; i < offsets.Length; i++)
+			{
+				offsets[i] += offsets[i - 1];
+			}
+			return offsets;
+		}
+
+		private static void WriteRecord(BinaryWriter output, long key, float value, long[] offsets)
+		{
+			output.Write((int) key);
+			output.Write(value);
+			offsets[(int) (key >> 32) + 1]++;
+		}
+
+		#endregion
+
+		#region Helper classes
+
+		/// <summary>
+		/// The IDs and offsets in the index file, if it was written for the data file as it is now.
+		/// </summary>
+		/// <summary>
+		/// A sorted file, read through a pool of handles opened for random access. Each read checks one out, or
+		/// opens another if none is idle; at most <code>maxIdle</code> are kept open between reads.
+		/// </summary>
+		private sealed class RecordFile
+		{
+			private readonly String path;
+			private readonly int maxIdle;
+			private readonly Stack<FileStream> idle;
+			private bool closed;
+
+			internal RecordFile(String path, int maxIdle)
+			{
+				this.path = path;
+				this.maxIdle = maxIdle;
+				this.idle = new Stack<FileStream>(maxIdle);
+				// Opened now, so that a missing file fails the constructor
+				idle.Push(Open());
+			}
+
+			/// <returns><code>count</code> records starting at record <code>first</code></returns>
+			internal byte[] Read(long first, int count)
+			{
+				byte[] records = new byte[count * RECORD_BYTES];
+				FileStream file = CheckOut();
+				try
+				{
+					file.Seek(first * RECORD_BYTES, SeekOrigin.Begin);
+					int total = 0;
+					while (total < records.Length)
+					{
+						int read = file.Read(records, total, records.Length - total);
+						if (read <= 0)
+						{
+							throw new IOException("Unexpected end of " + path);
+						}
+						total += read;
+					}
+				}
+				finally
+				{
+					Return(file);
+				}
+				return records;
+			}
+
+			internal void Close()
+			{
+				lock (idle)
+				{
+					closed = true;
+					while (idle.Count > 0)
+					{
+						idle.Pop().Close();
+					}
+				}
+			}
+
+			private FileStream CheckOut()
+			{
+				lock (idle)
+				{
+					if (closed)
+					{
+						throw new ObjectDisposedException(path);
+					}
+					if (idle.Count > 0)
+					{
+						return idle.Pop();
+					}
+				}
+				return Open();
+			}
+
+			private void Return(FileStream file)
+			{
+				lock (idle)
+				{
+					if (!closed && idle.Count < maxIdle)
+					{
+						idle.Push(file);
+						return;
+					}
+				}
+				file.Close();
+			}
+
+			private FileStream Open()
+			{
+				return new FileStream(path, FileMode.Open, FileAccess.Read, FileShare.Read, 4096,
+				                      FileOptions.RandomAccess);
+			}
+		}
+
+		private sealed class LayoutIndex
+		{
+			internal String[] userIDs;
+			internal String[] itemIDs;
+			internal long[] userOffsets;
+			internal long[] itemOffsets;
+
+			/// <returns>the index, or <code>null</code> if it is missing, of another version, or out of date</returns>
+			internal static LayoutIndex Read(String indexFile, String dataFile)
+			{
+				if (!File.Exists(indexFile))
+				{
+					return null;
+				}
+				FileInfo source = new FileInfo(dataFile);
+				using (BinaryReader input = new BinaryReader(new FileStream(indexFile, FileMode.Open, FileAccess.Read,
+				                                                            FileShare.Read, FILE_BUFFER_BYTES)))
+				{
+					if (input.BaseStream.Length < 32 || input.ReadInt32() != MAGIC || input.ReadInt32() != VERSION ||
+					    input.ReadInt64() != source.Length || input.ReadInt64() != source.LastWriteTimeUtc.Ticks)
+					{
+						return null;
+					}
+					LayoutIndex index = new LayoutIndex();
+					index.userIDs = new String[input.ReadInt32()];
+					index.itemIDs = new String[input.ReadInt32()];
+					for (int u = 0; u < index.userIDs.Length; u++)
+					{
+						index.userIDs[u] = input.ReadString();
+					}
+					for (int i = 0; i < index.itemIDs.Length; i++)
+					{
+						index.itemIDs[i] = input.ReadString();
+					}
+					index.userOffsets = ReadOffsets(input, index.userIDs.Length + 1);
+					index.itemOffsets = ReadOffsets(input, index.itemIDs.Length + 1);
+					return index;
+				}
+			}
+
+			private static long[] ReadOffsets(BinaryReader input, int count)
+			{
+				long[] offsets = new long[count];
+				for (int i = 0; i < count; i++)
+				{
+					offsets[i] = input.ReadInt64();
+				}
+				return offsets;
+			}
+		}
+
+		private sealed class RunReader
+		{
+			private readonly BinaryReader input;
+			private long remaining;
+			internal long key;
+			internal float value;
+
+			internal RunReader(String path)
+			{
+				FileStream file = new FileStream(path, FileMode.Open, FileAccess.Read, FileShare.Read, FILE_BUFFER_BYTES,
+				                                 FileOptions.SequentialScan);
+				this.input = new BinaryReader(file);
+				this.remaining = file.Length / RUN_RECORD_BYTES;
+			}
+
+			internal bool Next()
+			{
+				if (remaining == 0L)
+				{
+					return false;
+				}
+				remaining--;
+				key = input.ReadInt64();
+				value = input.ReadSingle();
+				return true;
+			}
+
+			internal void Close()
+			{
+				input.Close();
+			}
+		}
+
+		/// <summary>
+		/// Binary min-heap of run numbers, ordered by each run's current key and then by run number.
+		/// </summary>
+		private sealed class RunHeap
+		{
+			private readonly RunReader[] readers;
+			private readonly int[] heap;
+			private int count;
+
+			internal RunHeap(RunReader[] readers)
+			{
+				this.readers = readers;
+				this.heap = new int[readers.Length];
+			}
+
+			internal int Count
+			{
+				get { return count; }
+			}
+
+			internal void Push(int run)
+			{
+				int i = count++;
+				heap[i] = run;
+				while (i > 0)
+				{
+					int parent = (i - 1) >> 1;
+					if (!Less(heap[i], heap[parent]))
+					{
+						break;
+					}
+					Swap(i, parent);
+					i = parent;
+				}
+			}
+
+			internal int Pop()
+			{
+				int top = heap[0];
+				heap[0] = heap[--count];
+				int i = 0;
+				while (true)
+				{
+					int smallest = i;
+					int left = 2 * i + 1;
+					int right = left + 1;
+					if (left < count && Less(heap[left], heap[smallest]))
+					{
+						smallest = left;
+					}
+					if (right < count && Less(heap[right], heap[smallest]))
+					{
+						smallest = right;
+					}
+					if (smallest == i)
+					{
+						return top;
+					}
+					Swap(i, smallest);
+					i = smallest;
+				}
+			}
+
+			private bool Less(int a, int b)
+			{
+				long keyA = readers[a].key;
+				long keyB = readers[b].key;
+				return keyA < keyB || (keyA == keyB && a < b);
+			}
+
+			private void Swap(int i, int j)
+			{
+				int t = heap[i];
+				heap[i] = heap[j];
+				heap[j] = t;
+			}
+		}
+
+		/// <summary>
+		/// One user's or item's preferences, with the item or user indices they are sorted by.
+		/// </summary>
+		private sealed class Slice
+		{
+			internal readonly int[] indices;
+			internal readonly Preference[] prefs;
+
+			internal Slice(int[] indices, Preference[] prefs)
+			{
+				this.indices = indices;
+				this.prefs = prefs;
+			}
+		}
+
+		private sealed class SliceWeigher : CacheWeigher<int, Slice>
+		{
+			public long Weigh(int key, Slice value)
+			{
+				return value.prefs.Length + 1;
+			}
+		}
+
+		private sealed class SliceSizer : CacheWeigher<int, Slice>
+		{
+			public long Weigh(int key, Slice value)
+			{
+				int r = MemoryBudget.REFERENCE_BYTES;
+				long numPrefs = value.prefs.Length;
+				return MemoryBudget.ObjectBytes(2 * r) + MemoryBudget.ArrayBytes(numPrefs, 4) +
+				       MemoryBudget.ArrayBytes(numPrefs, r) + numPrefs * MemoryBudget.ObjectBytes(2 * r + 8);
+			}
+		}
+
+		private sealed class UserSliceRetriever : SoftCacheRetriever<int, Slice>
+		{
+			private readonly PagedFileDataModel model;
+
+			internal UserSliceRetriever(PagedFileDataModel model)
+			{
+				this.model = model;
+			}
+
+			public Slice GetValue(int userIndex)
+			{
+				try
+				{
+					return model.ReadUserSlice(userIndex);
+				}
+				catch (IOException ioe)
+				{
+					throw new TasteException(ioe);
+				}
+			}
+		}
+
+		private sealed class ItemSliceRetriever : SoftCacheRetriever<int, Slice>
+		{
+			private readonly PagedFileDataModel model;
+
+			internal ItemSliceRetriever(PagedFileDataModel model)
+			{
+				this.model = model;
+			}
+
+			public Slice GetValue(int itemIndex)
+			{
+				try
+				{
+					return model.ReadItemSlice(itemIndex);
+				}
+				catch (IOException ioe)
+				{
+					throw new TasteException(ioe);
+				}
+			}
+		}
+
+		private sealed class PagedUser : User
+		{
+			private readonly PagedFileDataModel model;
+			private readonly String id;
+			private readonly int index;
+
+			internal PagedUser(PagedFileDataModel model, String id, int index)
+			{
+				this.model = model;
+				this.id = id;
+				this.index = index;
+			}
+
+			public Object ID
+			{
+				get { return id; }
+			}
+
+			public Preference GetPreferenceFor(Object itemID)
+			{
+				int itemIndex;
+				String key = itemID as String;
+				if (key == null || !model.itemIndices.TryGetValue(key, out itemIndex))
+				{
+					return null;
+				}
+				Slice slice = model.userCache.Get(index);
+				int found = Array.BinarySearch(slice.indices, itemIndex);
+				return found < 0 ? null : slice.prefs[found];
+			}
+
+			public IEnumerable<Preference> GetPreferences()
+			{
+				return GetPreferencesAsArray();
+			}
+
+			/// <returns>preferences ordered by item, shared with other callers</returns>
+			public Preference[] GetPreferencesAsArray()
+			{
+				return model.userCache.Get(index).prefs;
+			}
+
+			public int CompareTo(User other)
+			{
+				return String.Compare(id, (String) other.ID);
+			}
+
+			public override int GetHashCode()
+			{
+				return id.GetHashCode();
+			}
+
+			public override bool Equals(Object obj)
+			{
+				return (obj is User) && ((User) obj).ID.Equals(id);
+			}
+
+			public override String ToString()
+			{
+				return "User[id:" + id + ']';
+			}
+		}
+
+		private sealed class PagedPreference : Preference
+		{
+			private readonly User user;
+			private readonly Item item;
+			private readonly double value;
+
+			internal PagedPreference(User user, Item item, double value)
+			{
+				this.user = user;
+				this.item = item;
+				this.value = value;
+			}
+
+			public User User
+			{
+				get { return user; }
+			}
+
+			public Item Item
+			{
+				get { return item; }
+			}
+
+			public double Value
+			{
+				get { return value; }
+				set { throw new NotSupportedException("PagedFileDataModel is read-only"); }
+			}
+
+			public override String ToString()
+			{
+				return "PagedPreference[user:" + user.ID + ", item:" + item + ", value:" + value + ']';
+			}
+		}
+
+		#endregion
+	}
+
+}
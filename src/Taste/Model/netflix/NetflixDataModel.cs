@@ -14,97 +14,171 @@
  * limitations under the License.
  */
 
-namespace taste.Model.Netflix
+namespace Taste.Model.Netflix
 {
 	using System;
+	using System.Globalization;
 	using System.IO;
+	using System.Text;
 	using System.Collections.Generic;
-	using taste.Common;
-	using taste.Model;
+	using Taste.Common;
+	using Taste.Model;
+	using log4net;
 
 
 	/**
+	 * <p>A {@link DataModel} over the Netflix Prize data: <code>movie_titles.txt</code> and the
+	 * <code>training_set/mv_*.txt</code> files in the given directory. User and item IDs are <code>int</code>s.
+	 * Everything is read into memory up front.</p>
+	 *
+	 * <p>The training set has about 100 million ratings. With <code>compact</code> set they are stored in a
+	 * {@link CompactDataModel} at one byte per star rating, which needs roughly a tenth of the memory of the
+	 * default {@link GenericDataModel}, at the cost of decoding preferences on each access.</p>
+	 *
+	 * <p>Any of the files may be compressed, as <code>movie_titles.txt.gz</code> or
+	 * <code>training_set/mv_0000001.txt.gz</code> for example, in any format {@link StreamCodecs} knows. Movie
+	 * files are read and decompressed several at a time, ahead of parsing.</p>
+	 *
+	 * <p>A {@link LoadFilter} drops ratings while the files are parsed: by the date on each rating line, by a
+	 * sample of customers, and by the number of ratings each movie keeps, which is known at the end of its file.
+	 * The customer threshold is applied once all files are read.</p>
+	 *
+	 * <p>Before reading any ratings, the size of the model is estimated from the sizes of the movie files and
+	 * checked against {@link MemoryBudget#Default}, so that a load that will not fit fails at once. The loaded
+	 * model is then tracked by that budget.</p>
+	 *
 	 * @author Sean Owen
 	 * @since 1.3.5
 	 */
-	public class NetflixDataModel : DataModel 
+	public class NetflixDataModel : DataModel, MemoryAccountable
     {
 
-		private static readonly Logger log = Logger.GetLogger(typeof(NetflixDataModel));
+		private static readonly ILog log = LogManager.GetLogger(typeof(NetflixDataModel));
+
+		// Netflix data files are Latin-1
+		internal static readonly Encoding FILE_ENCODING = Encoding.GetEncoding("ISO-8859-1");
+
+		// Number of customers in the Netflix Prize training set
+		private const int EXPECTED_USERS = 480189;
+
+		// Whole stars, 1 to 5
+		private static readonly RatingScale STAR_RATINGS = new RatingScale(1.0, 5.0, 1.0);
+
+		// A line like "1488844,3,2005-09-06" and its line break
+		private const int BYTES_PER_RATING_LINE = 20;
+
+		// Roughly how much compressed movie files shrink
+		private const int COMPRESSION_RATIO = 4;
 
 		private readonly DataModel _delegate;
 
-		public NetflixDataModel(FileInfo dataDirectory)
+		public NetflixDataModel(String dataDirectory)
+			: this(dataDirectory, false)
+		{
+		}
+
+		/// <param name="dataDirectory">directory holding <code>movie_titles.txt</code> and
+		/// <code>training_set</code></param>
+		/// <param name="compact">store ratings in a <see cref="CompactDataModel"/></param>
+		public NetflixDataModel(String dataDirectory, bool compact)
+			: this(dataDirectory, compact, null)
+		{
+		}
+
+		/// <param name="dataDirectory">directory holding <code>movie_titles.txt</code> and
+		/// <code>training_set</code></param>
+		/// <param name="compact">store ratings in a <see cref="CompactDataModel"/></param>
+		/// <param name="filter">which ratings to load, or <code>null</code> for all</param>
+		public NetflixDataModel(String dataDirectory, bool compact, LoadFilter filter)
 		{
 			if (dataDirectory == null) 
             {
 				throw new ArgumentNullException("dataDirectory is null");
 			}
-			if (!dataDirectory.Exists || !dataDirectory.IsDirectory()) 
+			if (!Directory.Exists(dataDirectory)) 
             {
-				throw new FileNotFoundException(dataDirectory.toString());
+				throw new DirectoryNotFoundException(dataDirectory);
 			}
 
 			log.Info("Creating NetflixDataModel for directory: " + dataDirectory);
 
-			log.info("Reading movie data...");
-			List<NetflixMovie> movies = ReadMovies(dataDirectory);
+			long start = TasteEvents.Start();
+			log.Info("Reading movie data...");
+			NetflixMovie[] movies = ReadMovies(dataDirectory);
+			List<String> movieFiles = ListMovieFiles(dataDirectory);
+			MemoryBudget.Default.CheckAvailable("NetflixDataModel for " + dataDirectory,
+			                                    EstimateBytes(movieFiles, compact, filter));
 
-			log.info("Reading preference data...");
-			List<User> users = ReadUsers(dataDirectory, movies);
-
-			log.Info("Creating delegate DataModel...");
-			_delegate = new GenericDataModel(users);
+			log.Info("Reading preference data...");
+			int numPrefs;
+			if (compact)
+			{
+				CompactDataModel.Builder builder = new CompactDataModel.Builder(STAR_RATINGS);
+				numPrefs = ReadRatings(movieFiles, movies, filter, delegate(int userID, NetflixMovie movie, double rating)
+				{
+					builder.Add(userID, movie, rating);
+				});
+				if (filter != null && filter.MinUserPreferences > 1)
+				{
+					builder.RemoveUsersWithFewerThan(filter.MinUserPreferences);
+				}
+				log.Info("Creating compact delegate DataModel...");
+				_delegate = builder.Build();
+			}
+			else
+			{
+				List<User> users = ReadUsers(movieFiles, movies, filter, out numPrefs);
+				log.Info("Creating delegate DataModel...");
+				_delegate = new GenericDataModel(users);
+			}
+			TasteEvents.ModelLoaded("NetflixDataModel", false, numPrefs, start);
+			MemoryBudget.Default.Track("NetflixDataModel for " + dataDirectory, this, EstimatedBytes);
 		}
 
-		private static List<User> ReadUsers(FileInfo dataDirectory, List<NetflixMovie> movies)
+		/// <summary>
+		/// Estimates the loaded model's size from the sizes of the movie files, before any is read.
+		/// </summary>
+		private static long EstimateBytes(List<String> movieFiles, bool compact, LoadFilter filter)
 		{
-			Dictionary<int, List<Preference>> userIDPrefMap =
-				new Dictionary<int, List<Preference>>(104395301, 1.0f);
-				//new HashMap<Integer, List<Preference>>(15485867, 1.0f);
+			long textBytes = 0L;
+			foreach (String file in movieFiles)
+			{
+				long length = new FileInfo(file).Length;
+				textBytes += StreamCodecs.StripExtension(file) == file ? length : COMPRESSION_RATIO * length;
+			}
+			double sampleRate = filter == null ? 1.0 : filter.UserSampleRate;
+			long numPrefs = (long) (textBytes / BYTES_PER_RATING_LINE * sampleRate);
+			long numUsers = (long) Math.Min(EXPECTED_USERS * sampleRate, numPrefs);
+			long estimate = compact
+				? CompactDataModel.EstimateBytes(numUsers, movieFiles.Count, numPrefs)
+				: GenericDataModel.EstimateBytes(numUsers, movieFiles.Count, numPrefs);
+			log.Info("Estimated " + numPrefs + " ratings in " + MemoryBudget.Megabytes(estimate));
+			return estimate;
+		}
 
-			int counter = 0;
-			FilenameFilter filenameFilter = new FilenameFilter(
-                    delegate(File dir, String filename) 
-                    {
-					    return filename.startsWith("mv_");
-					    //return filename.startsWith("mv_000");
-				    }
-                );
-			
-			foreach (FileInfo movieFile in new File(dataDirectory, "training_set").ListFiles(filenameFilter)) 
-            {
-				BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(movieFile)));
-				String line = reader.readLine();
-				if (line == null) {
-					throw new IOException("Can't read first line of file " + movieFile);
-				}
-				int movieID = int.parse(line.substring(0, line.length() - 1));
-				NetflixMovie movie = movies.get(movieID - 1);
-				if (movie == null) 
-                {
-					throw new ArgumentException("No such movie: " + movieID);
+		private static List<User> ReadUsers(List<String> movieFiles, NetflixMovie[] movies, LoadFilter filter,
+		                                    out int numPrefs)
+		{
+			Dictionary<int, List<Preference>> userIDPrefMap = new Dictionary<int, List<Preference>>(EXPECTED_USERS);
+			numPrefs = ReadRatings(movieFiles, movies, filter, delegate(int userID, NetflixMovie movie, double rating)
+			{
+				List<Preference> userPrefs;
+				if (!userIDPrefMap.TryGetValue(userID, out userPrefs))
+				{
+					userPrefs = new List<Preference>();
+					userIDPrefMap.Add(userID, userPrefs);
 				}
-				while ((line = reader.readLine()) != null) 
-                {
-					counter++;
-					if (counter % 100000 == 0) 
-                    {
-						log.Info("Processed " + counter + " prefs");
-					}
-					int firstComma = line.indexOf((int) ',');
-					Int32 userID = Int32.Parse(line.Substring(0, firstComma));
-					int secondComma = line.IndexOf((int) ',', firstComma + 1);
-					double rating = Double.Parse(line.Substring(firstComma + 1, secondComma));
-					List<Preference> userPrefs = userIDPrefMap.get(userID);
-					if (userPrefs == null) 
-                    {
-						userPrefs = new List<Preference>();
-						userIDPrefMap.Add(userID, userPrefs);
-					}
-					userPrefs.Add(new GenericPreference(null, movie, rating));
+				userPrefs.Add(new GenericPreference(null, movie, rating));
+			});
+			if (filter != null)
+			{
+				// Movies were already thresholded file by file, so this drops only sparse customers
+				filter.RemoveSparse(userIDPrefMap);
+				numPrefs = 0;
+				foreach (List<Preference> userPrefs in userIDPrefMap.Values)
+				{
+					numPrefs += userPrefs.Count;
 				}
-				IOUtils.quietClose(reader);
 			}
 
 			List<User> users = new List<User>(userIDPrefMap.Count);
@@ -115,22 +189,132 @@ namespace taste.Model.Netflix
 			return users;
 		}
 
-		private static List<NetflixMovie> readMovies(File dataDirectory) 
+		private delegate void RatingSink(int userID, NetflixMovie movie, double rating);
+
+		/// <returns>number of ratings passed to <code>sink</code></returns>
+		private static int ReadRatings(List<String> movieFiles, NetflixMovie[] movies, LoadFilter filter, RatingSink sink)
+		{
+			int counter = 0;
+			int accepted = 0;
+			bool sampleUsers = filter != null && filter.SamplesUsers;
+			bool filterDates = filter != null && filter.FiltersDates;
+			int minMovieRatings = filter == null ? 0 : filter.MinItemPreferences;
+			// With a movie threshold, one file's ratings are held until the file's count is known
+			List<int> heldUserIDs = new List<int>();
+			List<double> heldRatings = new List<double>();
+			StreamCodecs.ReadAll(movieFiles, ParallelUtils.DefaultThreads, delegate(String movieFile, Stream input)
+            {
+				using (StreamReader reader = new StreamReader(input, FILE_ENCODING))
+				{
+					String line = reader.ReadLine();
+					if (line == null) {
+						throw new IOException("Can't read first line of file " + movieFile);
+					}
+					int movieID = int.Parse(line.Substring(0, line.Length - 1));
+					NetflixMovie movie = movieID >= 1 && movieID < movies.Length ? movies[movieID] : null;
+					if (movie == null) 
+	                {
+						throw new ArgumentException("No such movie: " + movieID);
+					}
+					while ((line = reader.ReadLine()) != null) 
+	                {
+						counter++;
+						if (counter % 1000000 == 0) 
+	                    {
+							log.Info("Processed " + counter + " prefs");
+						}
+						int firstComma = line.IndexOf(',');
+						int userID = int.Parse(line.Substring(0, firstComma));
+						if (sampleUsers && !filter.AcceptsUser(userID))
+						{
+							continue;
+						}
+						int secondComma = line.IndexOf(',', firstComma + 1);
+						int end = secondComma < 0 ? line.Length : secondComma;
+						if (filterDates)
+						{
+							DateTime? date = null;
+							if (secondComma >= 0)
+							{
+								date = DateTime.ParseExact(line.Substring(secondComma + 1), "yyyy-MM-dd",
+								                           CultureInfo.InvariantCulture);
+							}
+							if (!filter.AcceptsDate(date))
+							{
+								continue;
+							}
+						}
+						double rating = Double.Parse(line.Substring(firstComma + 1, end - firstComma - 1));
+						if (minMovieRatings > 1)
+						{
+							heldUserIDs.Add(userID);
+							heldRatings.Add(rating);
+						}
+						else
+						{
+							sink(userID, movie, rating);
+							accepted++;
+						}
+					}
+				}
+				if (heldUserIDs.Count >= minMovieRatings)
+				{
+					for (int i = 0; i < heldUserIDs.Count; i++)
+					{
+						sink(heldUserIDs[i], movie, heldRatings[i]);
+					}
+					accepted += heldUserIDs.Count;
+				}
+				heldUserIDs.Clear();
+				heldRatings.Clear();
+			});
+			return accepted;
+		}
+
+		/// <returns>the training set's movie files, compressed or not, in name order</returns>
+		private static List<String> ListMovieFiles(String dataDirectory)
+		{
+			List<String> movieFiles = new List<String>();
+			foreach (String file in Directory.GetFiles(Path.Combine(dataDirectory, "training_set"), "mv_*"))
+			{
+				if (StreamCodecs.StripExtension(file).EndsWith(".txt", StringComparison.OrdinalIgnoreCase))
+				{
+					movieFiles.Add(file);
+				}
+			}
+			movieFiles.Sort(StringComparer.Ordinal);
+			return movieFiles;
+		}
+
+		/// <returns>movies indexed by ID; index 0 and missing IDs are <code>null</code></returns>
+		private static NetflixMovie[] ReadMovies(String dataDirectory) 
 		{
 			List<NetflixMovie> movies = new List<NetflixMovie>(17770);
-			BufferedReader reader =
-				new BufferedReader(new InputStreamReader(new FileStream(new File(dataDirectory, "movie_titles.txt"))));
-			String line;
-			while ((line = reader.readLine()) != null) 
+			int maxID = 0;
+			String titlesFile = StreamCodecs.FindFile(Path.Combine(dataDirectory, "movie_titles.txt"));
+			if (titlesFile == null)
+			{
+				throw new FileNotFoundException("No movie_titles.txt in " + dataDirectory);
+			}
+			using (StreamReader reader = new StreamReader(StreamCodecs.OpenRead(titlesFile), FILE_ENCODING))
+			{
+				String line;
+				while ((line = reader.ReadLine()) != null) 
+				{
+					int firstComma = line.IndexOf(',');
+					int id = int.Parse(line.Substring(0, firstComma));
+					int secondComma = line.IndexOf(',', firstComma + 1);
+					String title = line.Substring(secondComma + 1);
+					movies.Add(new NetflixMovie(id, title));
+					maxID = Math.Max(maxID, id);
+				}
+			}
+			NetflixMovie[] byID = new NetflixMovie[maxID + 1];
+			foreach (NetflixMovie movie in movies)
 			{
-				int firstComma = line.indexOf((int) ',');
-				int id = Integer.valueOf(line.substring(0, firstComma));
-				int secondComma = line.indexOf((int) ',', firstComma + 1);
-				String title = line.substring(secondComma + 1);
-				movies.Add(new NetflixMovie(id, title));
+				byID[(int) movie.ID] = movie;
 			}
-			IOUtils.quietClose(reader);
-			return movies;
+			return byID;
 		}
 
 
@@ -157,7 +341,7 @@ namespace taste.Model.Netflix
 		 */
 		public IEnumerable<Item> GetItems() 
 		{
-			return _delegate.getItems();
+			return _delegate.GetItems();
 		}
 
 		/**
@@ -176,6 +360,14 @@ namespace taste.Model.Netflix
 			return _delegate.GetPreferencesForItem(itemID);
 		}
 
+		/**
+		 * {@inheritDoc}
+		 */
+		public Preference[] GetPreferencesForItemAsArray(Object itemID) 
+		{
+			return _delegate.GetPreferencesForItemAsArray(itemID);
+		}
+
 		/**
 		 * {@inheritDoc}
 		 */
@@ -193,7 +385,7 @@ namespace taste.Model.Netflix
 		}
 
 		/**
-		 * @throws UnsupportedOperationException
+		 * @throws NotSupportedException
 		 */
 		public void SetPreference(Object userID, Object itemID, double value) 
 		{
@@ -201,7 +393,7 @@ namespace taste.Model.Netflix
 		}
 
 		/**
-		 * @throws UnsupportedOperationException
+		 * @throws NotSupportedException
 		 */
 		public void RemovePreference(Object userID, Object itemID) 
 		{
@@ -216,5 +408,19 @@ namespace taste.Model.Netflix
 			// do nothing
 		}
 
+		public long EstimatedBytes
+		{
+			get
+			{
+				MemoryAccountable accountable = _delegate as MemoryAccountable;
+				return accountable == null ? 0L : accountable.EstimatedBytes;
+			}
+		}
+
+		public override String ToString()
+		{
+			return "NetflixDataModel";
+		}
+
 	}
-}
\ No newline at end of file
+}
@@ -14,25 +14,26 @@
  * limitations under the License.
  */
 
-namespace taste.Model.Netflix
+namespace Taste.Model.Netflix
 {
 	using System;
-	using taste.Model;
+	using Taste.Model;
 
 
-/**
- * @author Sean Owen
- * @since 1.3.5
- */
+	/**
+	 * @author Sean Owen
+	 * @since 1.3.5
+	 */
+	[Serializable]
 	public sealed class NetflixMovie : Item 
     {
-		private readonly Integer id;
+		private readonly int id;
 		private readonly String title;
 
-		public NetflixMovie(Integer id, String title) 
+		public NetflixMovie(int id, String title) 
 		{
-			if (id == null || title == null) {
-				throw new ArgumentNullException("ID or title is null");
+			if (title == null) {
+				throw new ArgumentNullException("title is null");
 			}
 			this.id = id;
 			this.title = title;
@@ -55,19 +56,19 @@ namespace taste.Model.Netflix
 			get {return true;}
 		}
 
-		public int GetHashCode() 
+		public override int GetHashCode() 
 		{
-			return id.GetHashCode();
+			return id;
 		}
 
 		public override bool Equals(Object obj) 
 		{
-			return (obj is NetflixMovie) && ((NetflixMovie) obj).id.equals(id);
+			return (obj is NetflixMovie) && ((NetflixMovie) obj).id == id;
 		}
 
 		public int CompareTo(Item item) 
 		{
-			return this.id.compareTo(((NetflixMovie) item).id);
+			return this.id.CompareTo((int) item.ID);
 		}
 
 		public override String ToString() 
@@ -75,4 +76,4 @@ namespace taste.Model.Netflix
 			return id + ":" + title;
 		}
 	}
-}
\ No newline at end of file
+}
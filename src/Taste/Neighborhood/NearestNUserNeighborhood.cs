@@ -32,6 +32,10 @@ namespace Taste.Neighborhood
     public sealed class NearestNUserNeighborhood : AbstractUserNeighborhood 
     {
 	    private static ILog log = LogManager.GetLogger(typeof(NearestNUserNeighborhood));
+	    private static readonly MetricsHistogram computeTime =
+	        MetricsRegistry.Default.GetHistogram("neighborhood.compute", "us");
+	    private static readonly MetricsHistogram neighborhoodSize =
+	        MetricsRegistry.Default.GetHistogram("neighborhood.size", "users");
 
 	    private SoftCache<Object, ICollection<User>> cache;
 
@@ -101,61 +105,23 @@ namespace Taste.Neighborhood
 				    log.Info("Computing Neighborhood around user ID '" + key + '\'');
 			    }
 
+			    long start = computeTime.Start();
 			    DataModel dataModel = owner.DataModel;
 			    User theUser = dataModel.GetUser(key);
 			    UserCorrelation userCorrelationImpl = owner.UserCorrelation;
 
-			    LinkedList<UserCorrelationPair> queue = new LinkedList<UserCorrelationPair>();
-			    bool full = false;
+			    TopNCollector<User> topUsers = new TopNCollector<User>(n);
 			    foreach (User user in dataModel.GetUsers()) 
                 {
 				    if (owner.SampleForUser && !key.Equals(user.ID)) 
                     {
-					    double theCorrelation = userCorrelationImpl.GetUserCorrelation(theUser, user);
-					    if (!Double.IsNaN(theCorrelation) && (!full || theCorrelation >  queue.Last.Value.Correlation)) 
-                        {                            
-                            LinkedListNode<UserCorrelationPair> iterator = queue.Last;
-						    while (iterator != null && iterator.Previous != null) 
-                            {
-                                iterator = iterator.Previous;
-                                  
-							    if (theCorrelation <= iterator.Value.Correlation) 
-                                {
-								    iterator = iterator.Next;
-								    break;
-							    }
-                                if (iterator == queue.First)
-                                    break;
-						    }
-
-                            UserCorrelationPair pair = new UserCorrelationPair(user, theCorrelation);
-                            if (iterator == null)
-                            {
-                                queue.AddFirst(pair);
-                            }
-                            else
-                            {
-                                queue.AddAfter(iterator, pair);
-                            }
-						    if (full) 
-                            {
-							    queue.RemoveLast();
-						    } 
-                            else if (queue.Count > n) 
-                            {
-							    full = true;
-							    queue.RemoveLast();
-						    }
-					    }
+					    topUsers.Offer(user, userCorrelationImpl.GetUserCorrelation(theUser, user));
 				    }
 			    }
 
-			    IList<User> neighborhood = new List<User>(queue.Count);
-			    foreach (UserCorrelationPair pair in queue) 
-                {
-				    //assert pair != null;
-				    neighborhood.Add(pair.User);
-			    }
+			    IList<User> neighborhood = topUsers.Drain();
+			    computeTime.Stop(start);
+			    neighborhoodSize.Record(neighborhood.Count);
 
 			    if (log.IsInfoEnabled) 
                 {
@@ -167,54 +133,6 @@ namespace Taste.Neighborhood
 		    }
         }
 
-        #region Internal helper class
-
-        internal class UserCorrelationPair : IComparable<UserCorrelationPair> 
-        {
-
-		    User user;
-		    double theCorrelation;
-
-		    public UserCorrelationPair(User user, double theCorrelation) 
-            {
-			    this.user = user;
-			    this.theCorrelation = theCorrelation;
-		    }
-
-            public double Correlation
-            {
-                get {return theCorrelation;}
-            }
-
-            public User User
-            {
-                get { return this.user; }
-            }
-
-		    public override int GetHashCode() 
-            {
-			    return user.GetHashCode() ^ theCorrelation.GetHashCode();
-		    }
-
-		    public override bool Equals(Object o) 
-            {
-			    if (!(o is UserCorrelationPair)) 
-                {
-				    return false;
-			    }
-			    UserCorrelationPair other = (UserCorrelationPair) o;
-			    return user.Equals(other.user) && theCorrelation == other.theCorrelation;
-		    }
-
-		    public int CompareTo(UserCorrelationPair otherPair) 
-            {
-			    double otherCorrelation = otherPair.theCorrelation;
-			    return theCorrelation > otherCorrelation ? -1 : theCorrelation < otherCorrelation ? 1 : 0;
-		    }
-        }
-
-        #endregion
-
     }
 
 }
\ No newline at end of file
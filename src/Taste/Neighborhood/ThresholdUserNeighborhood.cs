@@ -36,6 +36,10 @@ namespace Taste.Neighborhood
     {
 
         private static readonly ILog log = LogManager.GetLogger(typeof(ThresholdUserNeighborhood));
+        private static readonly MetricsHistogram computeTime =
+            MetricsRegistry.Default.GetHistogram("neighborhood.compute", "us");
+        private static readonly MetricsHistogram neighborhoodSize =
+            MetricsRegistry.Default.GetHistogram("neighborhood.size", "users");
 
         private readonly SoftCache<Object, ICollection<User>> cache;
 
@@ -110,6 +114,7 @@ namespace Taste.Neighborhood
                     log.Info("Computing Neighborhood around user ID '" + key + '\'');
                 }
 
+                long start = computeTime.Start();
                 DataModel dataModel = _owner.DataModel;
                 User theUser = dataModel.GetUser(key);
                 IList<User> neighborhood = new List<User>();
@@ -130,6 +135,9 @@ namespace Taste.Neighborhood
                     }
                 }
 
+                computeTime.Stop(start);
+                neighborhoodSize.Record(neighborhood.Count);
+
                 if (log.IsInfoEnabled)
                 {
                     log.Info("UserNeighborhood around user ID '" + key + "' is: " + neighborhood);
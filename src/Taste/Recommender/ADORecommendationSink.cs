@@ -0,0 +1,186 @@
+/*
+ * Copyright 2005 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+namespace Taste.Recommender
+{
+    using System;
+    using System.Collections.Generic;
+    using System.Data;
+    using Taste.Common;
+    using Taste.Model.Ado;
+    using log4net;
+
+
+    /// <summary>
+    /// <p>A <see cref="taste.Recommender.RecommendationSink">RecommendationSink</see> which inserts recommendations
+    /// into a database table through ADO. By default it assumes a table "taste_recommendations" like:</p>
+    ///
+    /// <pre>
+    /// CREATE TABLE taste_recommendations (
+    ///   user_id VARCHAR(10) NOT NULL,
+    ///   item_id VARCHAR(10) NOT NULL,
+    ///   rank INT NOT NULL,
+    ///   value FLOAT NOT NULL,
+    ///   PRIMARY KEY (user_id, rank)
+    /// )
+    /// </pre>
+    ///
+    /// <p>A single prepared insert command is reused for every row. Rows are written inside a transaction which is
+    /// committed on each <see cref="Flush()"/>, so the database sees one batch per flush rather than one
+    /// transaction per row.</p>
+    /// </summary>
+    public class ADORecommendationSink : RecommendationSink, IDisposable
+    {
+        private static ILog log = LogManager.GetLogger(typeof(ADORecommendationSink));
+
+        public const String DEFAULT_RECOMMENDATION_TABLE = "taste_recommendations";
+        public const String DEFAULT_USER_ID_COLUMN = "user_id";
+        public const String DEFAULT_ITEM_ID_COLUMN = "item_id";
+        public const String DEFAULT_RANK_COLUMN = "rank";
+        public const String DEFAULT_VALUE_COLUMN = "value";
+
+        private readonly IDbConnection connection;
+        private readonly IDbCommand insertCommand;
+        private readonly IDataParameter userIDParam;
+        private readonly IDataParameter itemIDParam;
+        private readonly IDataParameter rankParam;
+        private readonly IDataParameter valueParam;
+        private IDbTransaction transaction;
+
+        public ADORecommendationSink(IDbConnection connection)
+            : this(connection,
+                   DEFAULT_RECOMMENDATION_TABLE,
+                   DEFAULT_USER_ID_COLUMN,
+                   DEFAULT_ITEM_ID_COLUMN,
+                   DEFAULT_RANK_COLUMN,
+                   DEFAULT_VALUE_COLUMN,
+                   DbType.AnsiString,
+                   DbType.AnsiString)
+        {
+        }
+
+        public ADORecommendationSink(IDbConnection connection,
+                                     String recommendationTable,
+                                     String userIDColumn,
+                                     String itemIDColumn,
+                                     String rankColumn,
+                                     String valueColumn,
+                                     DbType userIDType,
+                                     DbType itemIDType)
+        {
+            if (connection == null)
+            {
+                throw new ArgumentNullException("connection is null");
+            }
+            this.connection = connection;
+            if (connection.State != ConnectionState.Open)
+            {
+                connection.Open();
+            }
+            insertCommand = connection.CreateCommand();
+            insertCommand.CommandType = CommandType.Text;
+            insertCommand.CommandText =
+                "INSERT INTO " + recommendationTable +
+                " (" + userIDColumn + ", " + itemIDColumn + ", " + rankColumn + ", " + valueColumn + ")" +
+                " VALUES (?, ?, ?, ?)";
+            userIDParam = AbstractADODataModel.AddParameter(insertCommand, "@userID", userIDType);
+            itemIDParam = AbstractADODataModel.AddParameter(insertCommand, "@itemID", itemIDType);
+            rankParam = AbstractADODataModel.AddParameter(insertCommand, "@rank", DbType.Int32);
+            valueParam = AbstractADODataModel.AddParameter(insertCommand, "@value", DbType.Double);
+        }
+
+        public void Write(Object userID, IList<RecommendedItem> recommendations)
+        {
+            try
+            {
+                if (transaction == null)
+                {
+                    transaction = connection.BeginTransaction();
+                    insertCommand.Transaction = transaction;
+                    insertCommand.Prepare();
+                }
+                int rank = 1;
+                foreach (RecommendedItem recommendedItem in recommendations)
+                {
+                    userIDParam.Value = userID;
+                    itemIDParam.Value = recommendedItem.Item.ID;
+                    rankParam.Value = rank++;
+                    valueParam.Value = recommendedItem.Value;
+                    insertCommand.ExecuteNonQuery();
+                }
+            }
+            catch (Exception sqle)
+            {
+                log.Warn("Exception while inserting recommendations", sqle);
+                Rollback();
+                throw new TasteException(sqle);
+            }
+        }
+
+        public void Flush()
+        {
+            if (transaction == null)
+            {
+                return;
+            }
+            try
+            {
+                transaction.Commit();
+            }
+            catch (Exception sqle)
+            {
+                log.Warn("Exception while committing recommendations", sqle);
+                Rollback();
+                throw new TasteException(sqle);
+            }
+            transaction.Dispose();
+            transaction = null;
+        }
+
+        private void Rollback()
+        {
+            if (transaction != null)
+            {
+                try
+                {
+                    transaction.Rollback();
+                }
+                catch (Exception e)
+                {
+                    log.Warn("Exception while rolling back", e);
+                }
+                transaction.Dispose();
+                transaction = null;
+            }
+        }
+
+        public override String ToString()
+        {
+            return "ADORecommendationSink[sql:" + insertCommand.CommandText + ']';
+        }
+
+        #region IDisposable Members
+
+        public void Dispose()
+        {
+            Rollback();
+            insertCommand.Dispose();
+        }
+
+        #endregion
+    }
+
+}
@@ -157,5 +157,49 @@ namespace Taste.Recommender
 			return allItems;
 		}
 
+		/// <summary>
+		/// <p>Like <see cref="GetAllOtherItems(User)"/>, but if <code>rescorer</code> is a
+		/// <see cref="FilteringRescorer"/>, also leaves out items its <see cref="ItemFilter"/> rejects, before
+		/// looking for the user's preference. While the model lists items in the filter's index order, as with an
+		/// index from <see cref="taste.Model.IDIndex.ForItems(DataModel)">IDIndex.ForItems()</see>, each item costs
+		/// a single bit test. Apply <see cref="FilteringRescorer.Fallback"/> rather than <code>rescorer</code> to
+		/// the result.</p>
+		/// </summary>
+		protected ISet<Item> GetAllOtherItems(User theUser, Rescorer<Item> rescorer)
+		{
+			FilteringRescorer filtering = rescorer as FilteringRescorer;
+			if (filtering == null)
+			{
+				return GetAllOtherItems(theUser);
+			}
+			if (theUser == null)
+			{
+				throw new ArgumentNullException("theUser is null");
+			}
+			ItemFilter filter = filtering.Filter;
+			IDIndex index = filter.Index;
+			ISet<Item> allItems = new HashedSet<Item>();
+			int position = 0;
+			foreach (Item item in dataModel.GetItems())
+			{
+				Object itemID = item.ID;
+				bool allowed;
+				if (position < index.Count && index.IDAt(position).Equals(itemID))
+				{
+					allowed = filter.IsAllowed(position);
+				}
+				else
+				{
+					allowed = filter.IsAllowed(itemID);
+				}
+				position++;
+				if (allowed && theUser.GetPreferenceFor(itemID) == null)
+				{
+					allItems.Add(item);
+				}
+			}
+			return allItems;
+		}
+
 	}
 }
\ No newline at end of file
@@ -0,0 +1,652 @@
+/*
+ * Copyright 2007 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+namespace Taste.Recommender
+{
+	using System;
+	using System.Collections.Generic;
+	using Iesi.Collections.Generic;
+	using Taste.Common;
+	using Taste.Model;
+	using log4net;
+
+
+    /// <summary>
+    /// <p>Builds <see cref="taste.Model.User">User</see> clusters bottom-up, repeatedly merging the two most similar
+    /// clusters, as <see cref="taste.Recommender.TreeClusteringRecommender">TreeClusteringRecommender</see> does.</p>
+    ///
+    /// <p>Rather than rescanning every pair of clusters for each merge, this keeps a triangular matrix of cluster
+    /// similarities and, for each cluster, its most similar successor, with those candidate pairs in a heap. The
+    /// matrix is filled in parallel once; after that a merge only updates the merged cluster's row, using
+    /// <see cref="taste.Recommender.LinkageClusterSimilarity.GetMergedSimilarity(double, int, double, int)">GetMergedSimilarity()</see>
+    /// when the <see cref="taste.Recommender.ClusterSimilarity">ClusterSimilarity</see> supports it, and recomputing
+    /// that row in parallel otherwise. Each merge then costs O(n) plus rescans for the few clusters whose nearest
+    /// neighbor was consumed, and taking the best pair from the heap O(log n), rather than O(n<sup>2</sup>)
+    /// similarity computations.</p>
+    ///
+    /// <p>Clusters are merged in the same order as an exhaustive pairwise search would merge them, and ties are
+    /// broken the same way. The matrix holds <code>float</code>s, so similarities closer together than
+    /// <code>float</code> precision count as ties.</p>
+    ///
+    /// <p>The matrix needs about 2n<sup>2</sup> bytes for n users. Above <see cref="MaxUsers"/> users, or when
+    /// <see cref="taste.Common.MemoryBudget.Default">MemoryBudget.Default</see> has no room for the matrix, this
+    /// falls back to rescanning every pair of clusters for each merge instead: the same result, in
+    /// O(n<sup>3</sup>) similarity computations but no memory beyond the clusters themselves.</p>
+    ///
+    /// <p>The <see cref="taste.Recommender.ClusterSimilarity">ClusterSimilarity</see> must be safe to call from
+    /// several threads at once.</p>
+    /// </summary>
+	public sealed class AgglomerativeClusterer
+	{
+		private static readonly ILog log = LogManager.GetLogger(typeof(AgglomerativeClusterer));
+
+		/// <summary>Default for <see cref="MaxUsers"/>; its matrix takes about 200MB</summary>
+		public const int DEFAULT_MAX_USERS = 10000;
+
+		private readonly ClusterSimilarity clusterSimilarity;
+		private readonly double samplingPercentage;
+		private readonly int numThreads;
+		private int maxUsers = DEFAULT_MAX_USERS;
+
+		public AgglomerativeClusterer(ClusterSimilarity clusterSimilarity)
+			: this(clusterSimilarity, 1.0, ParallelUtils.DefaultThreads)
+		{
+		}
+
+        /// <param name="clusterSimilarity">used to compute cluster similarity</param>
+        /// <param name="samplingPercentage">percentage of user-user pairs whose similarity is computed; the rest
+        /// are treated as unknown</param>
+        /// <param name="numThreads">threads used to fill the similarity matrix</param>
+		public AgglomerativeClusterer(ClusterSimilarity clusterSimilarity, double samplingPercentage, int numThreads)
+		{
+			if (clusterSimilarity == null)
+			{
+				throw new ArgumentNullException("clusterSimilarity is null");
+			}
+			if (double.IsNaN(samplingPercentage) || samplingPercentage <= 0.0 || samplingPercentage > 1.0)
+			{
+				throw new ArgumentException("samplingPercentage is invalid: " + samplingPercentage);
+			}
+			if (numThreads < 1)
+			{
+				throw new ArgumentException("numThreads must be at least 1");
+			}
+			this.clusterSimilarity = clusterSimilarity;
+			this.samplingPercentage = samplingPercentage;
+			this.numThreads = numThreads;
+		}
+
+        /// <summary>
+        /// Most users <see cref="Cluster"/> and <see cref="ClusterByThreshold"/> cluster through the similarity
+        /// matrix; more than this are clustered by exhaustive search.
+        /// </summary>
+		public int MaxUsers
+		{
+			get { return maxUsers; }
+			set
+			{
+				if (value < 1)
+				{
+					throw new ArgumentException("maxUsers must be at least 1");
+				}
+				maxUsers = value;
+			}
+		}
+
+        /// <summary>
+        /// Merges clusters until <code>numClusters</code> remain, or no two clusters have a known similarity.
+        /// </summary>
+		public IList<ICollection<User>> Cluster(IEnumerable<User> users, int numClusters)
+		{
+			if (numClusters < 1)
+			{
+				throw new ArgumentException("numClusters must be at least 1");
+			}
+			return Build(users, numClusters, Double.NaN);
+		}
+
+        /// <summary>
+        /// Merges clusters until the two most similar have a similarity below <code>threshold</code>.
+        /// </summary>
+		public IList<ICollection<User>> ClusterByThreshold(IEnumerable<User> users, double threshold)
+		{
+			if (double.IsNaN(threshold))
+			{
+				throw new ArgumentException("threshold must not be NaN");
+			}
+			return Build(users, 1, threshold);
+		}
+
+		private IList<ICollection<User>> Build(IEnumerable<User> users, int numClusters, double threshold)
+		{
+			if (users == null)
+			{
+				throw new ArgumentNullException("users is null");
+			}
+			List<List<User>> members = new List<List<User>>();
+			foreach (User user in users)
+			{
+				List<User> singleton = new List<User>(1);
+				singleton.Add(user);
+				members.Add(singleton);
+			}
+			if (members.Count > 1)
+			{
+				String what = ToString() + " over " + members.Count + " users";
+				long bytes = Clustering.EstimateBytes(members.Count);
+				String noMatrix = null;
+				if (members.Count > maxUsers)
+				{
+					noMatrix = members.Count + " users is more than MaxUsers, " + maxUsers;
+				}
+				else
+				{
+					try
+					{
+						MemoryBudget.Default.CheckAvailable(what, bytes);
+					}
+					catch (TasteException te)
+					{
+						noMatrix = te.Message;
+					}
+				}
+				if (noMatrix != null)
+				{
+					log.Warn("Clustering " + members.Count + " users by exhaustive search, without a similarity matrix: " +
+					         noMatrix);
+					members = MergeExhaustively(members, numClusters, threshold);
+				}
+				else
+				{
+					members = MergeInMatrix(members, numClusters, threshold, what, bytes);
+				}
+			}
+			List<ICollection<User>> clusters = new List<ICollection<User>>(members.Count);
+			foreach (List<User> cluster in members)
+			{
+				clusters.Add(new HashedSet<User>(cluster));
+			}
+			return clusters;
+		}
+
+		private List<List<User>> MergeInMatrix(List<List<User>> members, int numClusters, double threshold,
+		                                       String what, long bytes)
+		{
+			Clustering clustering = new Clustering(this, members.ToArray());
+			MemoryBudget.Default.Track(what, clustering, bytes);
+			try
+			{
+				clustering.FillMatrix();
+				int merges = clustering.MergeUntil(numClusters, threshold);
+				if (log.IsDebugEnabled)
+				{
+					log.Debug("Merged " + members.Count + " users into " + (members.Count - merges) + " clusters");
+				}
+				return clustering.ActiveMembers();
+			}
+			finally
+			{
+				MemoryBudget.Default.Untrack(clustering);
+			}
+		}
+
+        /// <summary>
+        /// Merges by rescanning every pair of clusters for each merge, in the order and with the tie-breaking that
+        /// the matrix reproduces: the most similar pair, first by position on ties, with each merged cluster
+        /// appended at the end.
+        /// </summary>
+		private List<List<User>> MergeExhaustively(List<List<User>> clusters, int numClusters, double threshold)
+		{
+			Random random = samplingPercentage < 1.0 ? RandomUtils.GetRandom() : null;
+			int merges = 0;
+			while (clusters.Count > numClusters)
+			{
+				int bestI = -1;
+				int bestJ = -1;
+				double best = Double.NaN;
+				for (int i = 0; i < clusters.Count; i++)
+				{
+					for (int j = i + 1; j < clusters.Count; j++)
+					{
+						if (random != null && random.NextDouble() >= samplingPercentage)
+						{
+							continue;
+						}
+						// Compared as floats, as the matrix holds them
+						double similarity = (float) clusterSimilarity.GetSimilarity(clusters[i], clusters[j]);
+						if (!double.IsNaN(similarity) && (bestI < 0 || similarity > best))
+						{
+							bestI = i;
+							bestJ = j;
+							best = similarity;
+						}
+					}
+				}
+				if (bestI < 0 || best < threshold)
+				{
+					break;
+				}
+				List<User> merged = new List<User>(clusters[bestI].Count + clusters[bestJ].Count);
+				merged.AddRange(clusters[bestI]);
+				merged.AddRange(clusters[bestJ]);
+				clusters.RemoveAt(bestJ);
+				clusters.RemoveAt(bestI);
+				clusters.Add(merged);
+				merges++;
+			}
+			if (log.IsDebugEnabled)
+			{
+				log.Debug("Merged " + (clusters.Count + merges) + " users into " + clusters.Count + " clusters");
+			}
+			return clusters;
+		}
+
+		public override String ToString()
+		{
+			return "AgglomerativeClusterer[clusterSimilarity:" + clusterSimilarity + ']';
+		}
+
+		#region Clustering
+
+		/// <summary>
+		/// State of one clustering run. Clusters live in slots 0 .. n-1; a merge keeps the lower slot and retires the
+		/// other. Each live cluster also has an order, which is its position in the list an exhaustive search would
+		/// keep: original users in input order, each merged cluster appended at the end. Ties are broken by order.
+		/// </summary>
+		private sealed class Clustering
+		{
+			private readonly AgglomerativeClusterer owner;
+			private readonly LinkageClusterSimilarity linkage;
+			private readonly List<User>[] members;
+			private readonly float[][] similarities;
+			private readonly long[] order;
+			// Most similar live cluster with a later order, or -1
+			private readonly int[] nearest;
+			private readonly double[] nearestSimilarity;
+			// Bumped whenever a slot's nearest changes, so that older heap entries for it are skipped
+			private readonly int[] versions;
+			private readonly MergeCandidates candidates;
+			private long nextOrder;
+			private int activeCount;
+
+			internal Clustering(AgglomerativeClusterer owner, List<User>[] members)
+			{
+				this.owner = owner;
+				this.linkage = owner.clusterSimilarity as LinkageClusterSimilarity;
+				this.members = members;
+				int n = members.Length;
+				this.similarities = new float[n][];
+				this.order = new long[n];
+				this.nearest = new int[n];
+				this.nearestSimilarity = new double[n];
+				this.versions = new int[n];
+				this.candidates = new MergeCandidates(n);
+				for (int i = 0; i < n; i++)
+				{
+					order[i] = i;
+				}
+				this.nextOrder = n;
+				this.activeCount = n;
+			}
+
+			internal void FillMatrix()
+			{
+				int n = members.Length;
+				double samplingPercentage = owner.samplingPercentage;
+				int seed = RandomUtils.GetRandom().Next();
+				similarities[0] = new float[0];
+				ParallelUtils.For(1, n, owner.numThreads, delegate(int i)
+				{
+					Random random = samplingPercentage < 1.0 ? new Random(seed ^ i) : null;
+					float[] row = new float[i];
+					for (int j = 0; j < i; j++)
+					{
+						row[j] = random == null || random.NextDouble() < samplingPercentage
+							? (float) owner.clusterSimilarity.GetSimilarity(members[i], members[j])
+							: float.NaN;
+					}
+					similarities[i] = row;
+				});
+				ParallelUtils.For(0, n, owner.numThreads, delegate(int i)
+				{
+					UpdateNearest(i);
+				});
+				for (int i = 0; i < n; i++)
+				{
+					Offer(i);
+				}
+			}
+
+			/// <returns>approximate bytes held while clustering <code>n</code> users</returns>
+			internal static long EstimateBytes(int n)
+			{
+				// Matrix rows, then per-slot arrays and member lists, then heap entries
+				return 2L * n * (n - 1) + n * MemoryBudget.ArrayBytes(0, 4) +
+				       n * (3L * MemoryBudget.REFERENCE_BYTES + 8 + 4 + 8 + 4) +
+				       MergeCandidates.EstimateBytes(n);
+			}
+
+			/// <returns>number of merges performed</returns>
+			internal int MergeUntil(int numClusters, double threshold)
+			{
+				int merges = 0;
+				while (activeCount > numClusters)
+				{
+					int best = -1;
+					while (candidates.Count > 0)
+					{
+						int slot = candidates.TopSlot;
+						if (members[slot] != null && versions[slot] == candidates.TopVersion)
+						{
+							best = slot;
+							break;
+						}
+						candidates.Pop();
+					}
+					if (best < 0 || nearestSimilarity[best] < threshold)
+					{
+						break;
+					}
+					Merge(best, nearest[best]);
+					merges++;
+				}
+				return merges;
+			}
+
+			internal List<List<User>> ActiveMembers()
+			{
+				int[] slots = new int[activeCount];
+				long[] keys = new long[activeCount];
+				int count = 0;
+				for (int k = 0; k < members.Length; k++)
+				{
+					if (members[k] != null)
+					{
+						slots[count] = k;
+						keys[count] = order[k];
+						count++;
+					}
+				}
+				Array.Sort(keys, slots);
+				List<List<User>> result = new List<List<User>>(count);
+				foreach (int slot in slots)
+				{
+					result.Add(members[slot]);
+				}
+				return result;
+			}
+
+			private void Merge(int first, int second)
+			{
+				int a = Math.Min(first, second);
+				int b = Math.Max(first, second);
+				int sizeA = members[a].Count;
+				int sizeB = members[b].Count;
+				members[a].AddRange(members[b]);
+				members[b] = null;
+				activeCount--;
+				order[a] = nextOrder++;
+
+				if (linkage != null)
+				{
+					for (int k = 0; k < members.Length; k++)
+					{
+						if (k != a && members[k] != null)
+						{
+							Set(a, k, linkage.GetMergedSimilarity(Get(a, k), sizeA, Get(b, k), sizeB));
+						}
+					}
+				}
+				else
+				{
+					ParallelUtils.For(0, members.Length, owner.numThreads, delegate(int k)
+					{
+						if (k != a && members[k] != null)
+						{
+							Set(a, k, owner.clusterSimilarity.GetSimilarity(members[a], members[k]));
+						}
+					});
+				}
+
+				similarities[b] = null;
+
+				// The merged cluster now has the latest order, so nothing follows it
+				nearest[a] = -1;
+				nearestSimilarity[a] = Double.NaN;
+				versions[a]++;
+				for (int k = 0; k < members.Length; k++)
+				{
+					if (k == a || members[k] == null)
+					{
+						continue;
+					}
+					if (nearest[k] == a || nearest[k] == b)
+					{
+						UpdateNearest(k);
+						Offer(k);
+					}
+					else
+					{
+						double similarity = Get(k, a);
+						if (!double.IsNaN(similarity) && (nearest[k] < 0 || similarity > nearestSimilarity[k]))
+						{
+							nearest[k] = a;
+							nearestSimilarity[k] = similarity;
+							versions[k]++;
+							Offer(k);
+						}
+					}
+				}
+				if (candidates.Count > 2 * activeCount + 16)
+				{
+					// Mostly stale entries; start over from the current nearest pairs
+					candidates.Clear();
+					for (int k = 0; k < members.Length; k++)
+					{
+						if (members[k] != null)
+						{
+							Offer(k);
+						}
+					}
+				}
+			}
+
+			/// <summary>
+			/// Queues the slot's current nearest pair, if it has one, as a merge candidate.
+			/// </summary>
+			private void Offer(int k)
+			{
+				if (nearest[k] >= 0)
+				{
+					candidates.Push(k, versions[k], nearestSimilarity[k], order[k]);
+				}
+			}
+
+			private void UpdateNearest(int k)
+			{
+				int best = -1;
+				double bestSimilarity = Double.NaN;
+				for (int j = 0; j < members.Length; j++)
+				{
+					if (j == k || members[j] == null || order[j] < order[k])
+					{
+						continue;
+					}
+					double similarity = Get(k, j);
+					if (!double.IsNaN(similarity) &&
+					    (best < 0 || similarity > bestSimilarity ||
+					     (similarity == bestSimilarity && order[j] < order[best])))
+					{
+						best = j;
+						bestSimilarity = similarity;
+					}
+				}
+				nearest[k] = best;
+				nearestSimilarity[k] = bestSimilarity;
+				versions[k]++;
+			}
+
+			private double Get(int i, int j)
+			{
+				return i > j ? similarities[i][j] : similarities[j][i];
+			}
+
+			private void Set(int i, int j, double similarity)
+			{
+				if (i > j)
+				{
+					similarities[i][j] = (float) similarity;
+				}
+				else
+				{
+					similarities[j][i] = (float) similarity;
+				}
+			}
+		}
+
+		/// <summary>
+		/// Binary max-heap of (slot, version) merge candidates, ordered by similarity, then by lower order, which is
+		/// the order an exhaustive search would pick them in. Entries are not removed when they go stale; the
+		/// caller skips those whose version no longer matches.
+		/// </summary>
+		private sealed class MergeCandidates
+		{
+			private int[] slots;
+			private int[] versions;
+			private double[] similarities;
+			private long[] orders;
+			private int count;
+
+			internal MergeCandidates(int capacity)
+			{
+				capacity = Math.Max(capacity, 1);
+				slots = new int[capacity];
+				versions = new int[capacity];
+				similarities = new double[capacity];
+				orders = new long[capacity];
+			}
+
+			/// <returns>approximate bytes held for <code>n</code> users, allowing for stale entries</returns>
+			internal static long EstimateBytes(int n)
+			{
+				long capacity = 4L * n + 32;
+				return MemoryBudget.ObjectBytes(4 * MemoryBudget.REFERENCE_BYTES + 4) + capacity * (4 + 4 + 8 + 8);
+			}
+
+			internal int Count
+			{
+				get { return count; }
+			}
+
+			internal int TopSlot
+			{
+				get { return slots[0]; }
+			}
+
+			internal int TopVersion
+			{
+				get { return versions[0]; }
+			}
+
+			internal void Clear()
+			{
+				count = 0;
+			}
+
+			internal void Push(int slot, int version, double similarity, long order)
+			{
+				if (count == slots.Length)
+				{
+					int capacity = 2 * count;
+					Array.Resize(ref slots, capacity);
+					Array.Resize(ref versions, capacity);
+					Array.Resize(ref similarities, capacity);
+					Array.Resize(ref orders, capacity);
+				}
+				int i = count++;
+				while (i > 0)
+				{
+					int parent = (i - 1) / 2;
+					if (!Before(similarity, order, parent))
+					{
+						break;
+					}
+					Move(parent, i);
+					i = parent;
+				}
+				Place(i, slot, version, similarity, order);
+			}
+
+			internal void Pop()
+			{
+				count--;
+				if (count == 0)
+				{
+					return;
+				}
+				int slot = slots[count];
+				int version = versions[count];
+				double similarity = similarities[count];
+				long order = orders[count];
+				int i = 0;
+				while (true)
+				{
+					int child = 2 * i + 1;
+					if (child >= count)
+					{
+						break;
+					}
+					if (child + 1 < count && Before(similarities[child + 1], orders[child + 1], child))
+					{
+						child++;
+					}
+					if (!Precedes(similarities[child], orders[child], similarity, order))
+					{
+						break;
+					}
+					Move(child, i);
+					i = child;
+				}
+				Place(i, slot, version, similarity, order);
+			}
+
+			private bool Before(double similarity, long order, int entry)
+			{
+				return Precedes(similarity, order, similarities[entry], orders[entry]);
+			}
+
+			private static bool Precedes(double similarity, long order, double otherSimilarity, long otherOrder)
+			{
+				return similarity > otherSimilarity || (similarity == otherSimilarity && order < otherOrder);
+			}
+
+			private void Move(int from, int to)
+			{
+				Place(to, slots[from], versions[from], similarities[from], orders[from]);
+			}
+
+			private void Place(int i, int slot, int version, double similarity, long order)
+			{
+				slots[i] = slot;
+				versions[i] = version;
+				similarities[i] = similarity;
+				orders[i] = order;
+			}
+		}
+
+		#endregion
+	}
+
+}
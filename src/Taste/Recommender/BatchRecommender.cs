@@ -0,0 +1,314 @@
+/*
+ * Copyright 2005 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+namespace Taste.Recommender
+{
+    using System;
+    using System.Collections.Generic;
+    using System.Threading;
+    using Taste.Common;
+    using Taste.Model;
+    using log4net;
+
+
+    /// <summary>
+    /// <p>Computes recommendations for many users at once, on a fixed number of worker threads, and hands the
+    /// results to a <see cref="taste.Recommender.RecommendationSink">RecommendationSink</see> as they are produced.</p>
+    ///
+    /// <p>User IDs are read from the given enumeration lazily, through a bounded queue, and each worker only
+    /// buffers a few results before passing them on to the sink. Memory use therefore does not depend on the number
+    /// of users in the batch. All workers share the one <see cref="taste.Recommender.Recommender">Recommender</see>,
+    /// so anything it caches (neighborhoods, correlations, averages) is shared across the batch too. Workers live
+    /// for the whole batch, so scratch space a recommender keeps per thread, such as the scoring heap of
+    /// <see cref="GenericUserBasedRecommender"/>, is allocated once per worker rather than once per user.</p>
+    ///
+    /// <p>A failure to recommend for one user is logged and that user is skipped; a failure in the sink aborts
+    /// the whole batch.</p>
+    /// </summary>
+    public class BatchRecommender
+    {
+        private static ILog log = LogManager.GetLogger(typeof(BatchRecommender));
+
+        private const int DEFAULT_BUFFER_SIZE = 100;
+        private const int QUEUED_USERS_PER_THREAD = 64;
+
+        private readonly Recommender recommender;
+        private readonly int numThreads;
+        private readonly int queueCapacity;
+        private readonly int bufferSize;
+
+        public BatchRecommender(Recommender recommender)
+            : this(recommender, Environment.ProcessorCount)
+        {
+        }
+
+        public BatchRecommender(Recommender recommender, int numThreads)
+            : this(recommender, numThreads, numThreads * QUEUED_USERS_PER_THREAD, DEFAULT_BUFFER_SIZE)
+        {
+        }
+
+        /// <param name="recommender">recommender to compute recommendations with</param>
+        /// <param name="numThreads">number of worker threads</param>
+        /// <param name="queueCapacity">maximum number of user IDs read ahead of the workers</param>
+        /// <param name="bufferSize">number of users' results each worker collects before writing them to the sink</param>
+        public BatchRecommender(Recommender recommender, int numThreads, int queueCapacity, int bufferSize)
+        {
+            if (recommender == null)
+            {
+                throw new ArgumentNullException("recommender is null");
+            }
+            if (numThreads < 1 || queueCapacity < 1 || bufferSize < 1)
+            {
+                throw new ArgumentException("numThreads, queueCapacity and bufferSize must be at least 1");
+            }
+            this.recommender = recommender;
+            this.numThreads = numThreads;
+            this.queueCapacity = queueCapacity;
+            this.bufferSize = bufferSize;
+        }
+
+        public Recommender Recommender
+        {
+            get { return recommender; }
+        }
+
+        /// <summary>
+        /// Recommends for every <see cref="taste.Model.User">User</see> in the recommender's
+        /// <see cref="taste.Model.DataModel">DataModel</see>.
+        /// </summary>
+        /// <returns>number of users for which recommendations were written</returns>
+        public int RecommendAll(int howMany, RecommendationSink sink)
+        {
+            return Recommend(UserIDs(recommender.DataModel.GetUsers()), howMany, NullRescorer<Item>.Instance, sink);
+        }
+
+        /// <returns>number of users for which recommendations were written</returns>
+        public int Recommend(IEnumerable<Object> userIDs, int howMany, RecommendationSink sink)
+        {
+            return Recommend(userIDs, howMany, NullRescorer<Item>.Instance, sink);
+        }
+
+        /// <summary>
+        /// Recommends for each of the given users, blocking until all are done.
+        /// </summary>
+        /// <param name="userIDs">users to recommend for; enumerated once, on the calling thread</param>
+        /// <param name="howMany">number of recommendations per user</param>
+        /// <param name="rescorer">rescoring function applied to every user's recommendations</param>
+        /// <param name="sink">receives results</param>
+        /// <returns>number of users for which recommendations were written</returns>
+        /// <exception cref="TasteException">if the sink or the enumeration of user IDs fails</exception>
+        public int Recommend(IEnumerable<Object> userIDs,
+                             int howMany,
+                             Rescorer<Item> rescorer,
+                             RecommendationSink sink)
+        {
+            if (userIDs == null || rescorer == null || sink == null)
+            {
+                throw new ArgumentNullException("userIDs, rescorer or sink is null");
+            }
+            if (howMany < 1)
+            {
+                throw new ArgumentException("howMany must be at least 1");
+            }
+
+            BatchRun run = new BatchRun(this, howMany, rescorer, sink);
+            Thread[] workers = new Thread[numThreads];
+            for (int i = 0; i < workers.Length; i++)
+            {
+                workers[i] = new Thread(run.Work);
+                workers[i].Name = "BatchRecommender-" + i;
+                workers[i].IsBackground = true;
+                workers[i].Start();
+            }
+
+            try
+            {
+                foreach (Object userID in userIDs)
+                {
+                    if (run.Failure != null)
+                    {
+                        break;
+                    }
+                    run.Queue.Enqueue(userID);
+                }
+                run.Queue.Close();
+            }
+            catch (Exception e)
+            {
+                // If a worker already failed, the queue was aborted and Failure says why
+                if (run.Failure == null)
+                {
+                    run.Fail(e);
+                }
+            }
+
+            foreach (Thread worker in workers)
+            {
+                worker.Join();
+            }
+
+            if (run.Failure == null)
+            {
+                try
+                {
+                    sink.Flush();
+                }
+                catch (Exception e)
+                {
+                    run.Fail(e);
+                }
+            }
+            if (run.Failure != null)
+            {
+                throw new TasteException("Batch recommendation failed", run.Failure);
+            }
+            if (log.IsInfoEnabled)
+            {
+                log.Info("Batch recommended for " + run.Written + " users; " + run.Skipped + " skipped");
+            }
+            return run.Written;
+        }
+
+        private static IEnumerable<Object> UserIDs(IEnumerable<User> users)
+        {
+            foreach (User user in users)
+            {
+                yield return user.ID;
+            }
+        }
+
+        public override String ToString()
+        {
+            return "BatchRecommender[recommender:" + recommender + ", threads:" + numThreads + ']';
+        }
+
+        #region BatchRun Helper Class
+
+        /// <summary>
+        /// State of one call to Recommend(), shared by its workers.
+        /// </summary>
+        private sealed class BatchRun
+        {
+            private readonly BatchRecommender parent;
+            private readonly int howMany;
+            private readonly Rescorer<Item> rescorer;
+            private readonly RecommendationSink sink;
+            private readonly Object sinkLock = new Object();
+            internal readonly BlockingQueue<Object> Queue;
+            // Written only through Interlocked, which a volatile field can't be passed to without warning
+            private Exception failure;
+            private int written;
+            private int skipped;
+
+            internal BatchRun(BatchRecommender parent, int howMany, Rescorer<Item> rescorer, RecommendationSink sink)
+            {
+                this.parent = parent;
+                this.howMany = howMany;
+                this.rescorer = rescorer;
+                this.sink = sink;
+                this.Queue = new BlockingQueue<Object>(parent.queueCapacity);
+            }
+
+            internal Exception Failure
+            {
+                get
+                {
+                    Exception current = failure;
+                    Thread.MemoryBarrier();
+                    return current;
+                }
+            }
+
+            internal int Written
+            {
+                get { return written; }
+            }
+
+            internal int Skipped
+            {
+                get { return skipped; }
+            }
+
+            internal void Fail(Exception e)
+            {
+                if (Interlocked.CompareExchange<Exception>(ref failure, e, null) == null)
+                {
+                    log.Error("Batch recommendation failed", e);
+                }
+                Queue.Abort();
+            }
+
+            internal void Work()
+            {
+                // Each worker reuses its own buffer for the whole batch
+                List<Pair<Object, IList<RecommendedItem>>> buffer =
+                    new List<Pair<Object, IList<RecommendedItem>>>(parent.bufferSize);
+                Object userID;
+                while (Failure == null && Queue.TryDequeue(out userID))
+                {
+                    IList<RecommendedItem> recommendations;
+                    try
+                    {
+                        recommendations = parent.recommender.Recommend(userID, howMany, rescorer);
+                    }
+                    catch (Exception e)
+                    {
+                        log.Warn("Unable to recommend for user ID '" + userID + "'; skipping", e);
+                        Interlocked.Increment(ref skipped);
+                        continue;
+                    }
+                    buffer.Add(new Pair<Object, IList<RecommendedItem>>(userID, recommendations));
+                    if (buffer.Count >= parent.bufferSize)
+                    {
+                        WriteToSink(buffer);
+                    }
+                }
+                if (Failure == null)
+                {
+                    WriteToSink(buffer);
+                }
+            }
+
+            private void WriteToSink(List<Pair<Object, IList<RecommendedItem>>> buffer)
+            {
+                if (buffer.Count == 0)
+                {
+                    return;
+                }
+                try
+                {
+                    lock (sinkLock)
+                    {
+                        foreach (Pair<Object, IList<RecommendedItem>> result in buffer)
+                        {
+                            sink.Write(result.First, result.Second);
+                        }
+                        sink.Flush();
+                    }
+                    Interlocked.Add(ref written, buffer.Count);
+                }
+                catch (Exception e)
+                {
+                    Fail(e);
+                }
+                buffer.Clear();
+            }
+        }
+
+        #endregion
+    }
+
+}
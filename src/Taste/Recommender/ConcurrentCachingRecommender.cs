@@ -0,0 +1,402 @@
+/*
+ * Copyright 2005 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+namespace Taste.Recommender
+{
+    using System;
+    using System.Collections.Generic;
+    using System.Collections.ObjectModel;
+    using Taste.Common;
+    using Taste.Model;
+    using log4net;
+
+    /// <summary>
+    /// <p>A <see cref="taste.Recommender.Recommender">Recommender</see> which caches the results from another
+    /// <see cref="taste.Recommender.Recommender">Recommender</see> in a
+    /// <see cref="taste.Common.ConcurrentCache">ConcurrentCache</see>.</p>
+    ///
+    /// <p>Unlike <see cref="taste.Recommender.CachingRecommender">CachingRecommender</see>, a refresh does not
+    /// throw cached recommendations away. Entries are marked stale instead, and keep being served while new
+    /// recommendations are computed in the background. If the underlying
+    /// <see cref="taste.Model.DataModel">DataModel</see> is a
+    /// <see cref="taste.Model.GenerationalDataModel">GenerationalDataModel</see>, only the users whose data changed
+    /// are marked stale; the rest of the cache expires through its time-to-live, if any. Note that a user's
+    /// recommendations can also depend on other users' data, so a time-to-live is recommended in that case.</p>
+    ///
+    /// <p>Both caches are charged to a <see cref="taste.Common.MemoryBudget">MemoryBudget</see>,
+    /// <see cref="taste.Common.MemoryBudget.Default">MemoryBudget.Default</see> unless another is given, and give
+    /// way to other caches and models when it fills up.</p>
+    /// </summary>
+    public class ConcurrentCachingRecommender : Recommender, MemoryAccountable
+    {
+        private static ILog log = LogManager.GetLogger(typeof(ConcurrentCachingRecommender));
+
+        /// <summary>Default weight budget per user, in recommended items</summary>
+        private const int DEFAULT_ITEMS_PER_USER = 10;
+
+        private readonly Recommender recommender;
+        private readonly AtomicInteger maxHowMany;
+        private readonly ConcurrentCache<Object, Recommendations> recommendationCache;
+        private readonly ConcurrentCache<Pair<Object, Object>, Double> estimatedPrefCache;
+        private readonly ReentrantLock refreshLock;
+        private long lastGeneration;
+
+        #region Constructor
+
+        public ConcurrentCachingRecommender(Recommender recommender)
+            : this(recommender, -1L, TimeSpan.Zero)
+        {
+        }
+
+        /// <param name="recommender">recommender whose results are cached</param>
+        /// <param name="maxWeight">
+        /// maximum number of recommended items held in the cache over all users, or a negative value
+        /// to size it from the number of users
+        /// </param>
+        /// <param name="timeToLive">
+        /// time after which cached results are recomputed in the background, or
+        /// <see cref="TimeSpan.Zero"/> to only recompute after a refresh
+        /// </param>
+        public ConcurrentCachingRecommender(Recommender recommender, long maxWeight, TimeSpan timeToLive)
+            : this(recommender, maxWeight, timeToLive, MemoryBudget.Default)
+        {
+        }
+
+        /// <param name="recommender">recommender whose results are cached</param>
+        /// <param name="maxWeight">
+        /// maximum number of recommended items held in the cache over all users, or a negative value
+        /// to size it from the number of users
+        /// </param>
+        /// <param name="timeToLive">
+        /// time after which cached results are recomputed in the background, or
+        /// <see cref="TimeSpan.Zero"/> to only recompute after a refresh
+        /// </param>
+        /// <param name="budget">budget the caches are charged to</param>
+        public ConcurrentCachingRecommender(Recommender recommender, long maxWeight, TimeSpan timeToLive,
+                                            MemoryBudget budget)
+        {
+            if (recommender == null || budget == null)
+            {
+                throw new ArgumentNullException("recommender or budget is null");
+            }
+            this.recommender = recommender;
+            this.maxHowMany = new AtomicInteger(1);
+            int numUsers = recommender.DataModel.GetNumUsers();
+            if (maxWeight < 0L)
+            {
+                // Rough guess, like CachingRecommender
+                maxWeight = Math.Max(1L, (long) numUsers * DEFAULT_ITEMS_PER_USER);
+            }
+            this.recommendationCache =
+                new ConcurrentCache<Object, Recommendations>(
+                    new RecommendationRetriever(this.recommender, this.maxHowMany),
+                    new RecommendationsWeigher(),
+                    maxWeight,
+                    timeToLive);
+            this.estimatedPrefCache =
+                new ConcurrentCache<Pair<Object, Object>, Double>(
+                    new EstimatedPrefRetriever(this.recommender),
+                    null,
+                    Math.Max(1L, numUsers),
+                    timeToLive);
+            recommendationCache.ChargeTo(budget, ToString() + " recommendations", new RecommendationsSizer());
+            estimatedPrefCache.ChargeTo(budget, ToString() + " estimates", new EstimateSizer());
+            this.refreshLock = new ReentrantLock();
+            GenerationalDataModel model = recommender.DataModel as GenerationalDataModel;
+            this.lastGeneration = model == null ? 0L : model.Generation;
+        }
+
+        #endregion
+
+        #region Recommend
+
+        public IList<RecommendedItem> Recommend(Object userID, int howMany)
+        {
+            if (userID == null)
+            {
+                throw new ArgumentNullException("user ID is null");
+            }
+            if (howMany < 1)
+            {
+                throw new ArgumentException("howMany must be at least 1");
+            }
+
+            lock (maxHowMany)
+            {
+                if (howMany > maxHowMany.Value)
+                {
+                    maxHowMany.Set(howMany);
+                }
+            }
+
+            Recommendations recommendations = recommendationCache[userID];
+            IList<RecommendedItem> items = recommendations.Items;
+            if (items.Count < howMany && !recommendations.NoMoreRecommendableItems)
+            {
+                recommendationCache.Remove(userID);
+                recommendations = recommendationCache[userID];
+                items = recommendations.Items;
+                if (items.Count < howMany)
+                {
+                    recommendations.NoMoreRecommendableItems = true;
+                }
+            }
+            if (items.Count <= howMany)
+            {
+                return items;
+            }
+            List<RecommendedItem> result = new List<RecommendedItem>(howMany);
+            for (int i = 0; i < howMany; i++)
+            {
+                result.Add(items[i]);
+            }
+            return result;
+        }
+
+        public IList<RecommendedItem> Recommend(Object userID, int howMany, Rescorer<Item> rescorer)
+        {
+            // Hard to cache this since the rescorer may change
+            return recommender.Recommend(userID, howMany, rescorer);
+        }
+
+        #endregion
+
+        #region Preferences
+
+        public double EstimatePreference(Object userID, Object itemID)
+        {
+            return estimatedPrefCache.Get(new Pair<Object, Object>(userID, itemID));
+        }
+
+        public void SetPreference(Object userID, Object itemID, double value)
+        {
+            recommender.SetPreference(userID, itemID, value);
+            Clear(userID);
+        }
+
+        public void RemovePreference(Object userID, Object itemID)
+        {
+            recommender.RemovePreference(userID, itemID);
+            Clear(userID);
+        }
+
+        #endregion
+
+        public DataModel DataModel
+        {
+            get { return recommender.DataModel; }
+        }
+
+        /// <summary>
+        /// Refreshes the underlying <see cref="taste.Recommender.Recommender">Recommender</see> and marks
+        /// affected cache entries stale. Stale entries are still served until they are recomputed.
+        /// </summary>
+        public void Refresh()
+        {
+            if (refreshLock.TryLock())
+            {
+                try
+                {
+                    recommender.Refresh();
+                    MarkChangedUsersStale();
+                }
+                finally
+                {
+                    refreshLock.Unlock();
+                }
+            }
+        }
+
+        private void MarkChangedUsersStale()
+        {
+            GenerationalDataModel model = recommender.DataModel as GenerationalDataModel;
+            ICollection<Object> changed = null;
+            if (model != null)
+            {
+                long generation = model.Generation;
+                if (generation == lastGeneration)
+                {
+                    // Nothing changed in the data, but the delegate may have recomputed something else
+                    changed = new Object[0];
+                }
+                else
+                {
+                    changed = model.GetUsersChangedSince(lastGeneration);
+                }
+                lastGeneration = generation;
+            }
+
+            if (changed == null)
+            {
+                log.Debug("Marking all recommendations stale...");
+                recommendationCache.InvalidateAll();
+            }
+            else
+            {
+                if (log.IsDebugEnabled)
+                {
+                    log.Debug("Marking recommendations for " + changed.Count + " changed users stale...");
+                }
+                foreach (Object userID in changed)
+                {
+                    recommendationCache.MarkStale(userID);
+                }
+            }
+            // Estimates are keyed by user and item, so we can't pick out the changed users cheaply
+            estimatedPrefCache.InvalidateAll();
+        }
+
+        /// <summary>
+        /// <p>Clears cached recommendations for the given user.</p>
+        /// </summary>
+        /// <param name="userID">clear cached data associated with this user ID</param>
+        public void Clear(Object userID)
+        {
+            if (log.IsDebugEnabled)
+            {
+                log.Debug("Clearing recommendations for user ID '" + userID + "'...");
+            }
+            recommendationCache.Remove(userID);
+        }
+
+        /// <summary>
+        /// <p>Clears all cached recommendations.</p>
+        /// </summary>
+        public void Clear()
+        {
+            log.Debug("Clearing all recommendations...");
+            recommendationCache.Clear();
+            estimatedPrefCache.Clear();
+        }
+
+        /// <summary>
+        /// Estimated bytes of the cached recommendations and estimates
+        /// </summary>
+        public long EstimatedBytes
+        {
+            get { return recommendationCache.EstimatedBytes + estimatedPrefCache.EstimatedBytes; }
+        }
+
+        public override String ToString()
+        {
+            return "ConcurrentCachingRecommender[recommender:" + recommender + ']';
+        }
+
+        #region Helper Classes
+
+        private class RecommendationRetriever : SoftCacheRetriever<Object, Recommendations>
+        {
+            private readonly Recommender recommender;
+            private readonly AtomicInteger maxHowMany;
+
+            internal RecommendationRetriever(Recommender recommender, AtomicInteger maxHowMany)
+            {
+                this.recommender = recommender;
+                this.maxHowMany = maxHowMany;
+            }
+
+            public Recommendations GetValue(Object key)
+            {
+                if (log.IsDebugEnabled)
+                {
+                    log.Debug("Retrieving new recommendations for user ID '" + key + '\'');
+                }
+                IList<RecommendedItem> items = recommender.Recommend(key, maxHowMany.Value);
+                return new Recommendations(new ReadOnlyCollection<RecommendedItem>(items));
+            }
+        }
+
+        private class EstimatedPrefRetriever : SoftCacheRetriever<Pair<Object, Object>, Double>
+        {
+            private readonly Recommender recommender;
+
+            internal EstimatedPrefRetriever(Recommender recommender)
+            {
+                this.recommender = recommender;
+            }
+
+            public Double GetValue(Pair<Object, Object> key)
+            {
+                if (log.IsDebugEnabled)
+                {
+                    log.Debug("Retrieving estimated preference for user ID '" + key.First + "\' and item ID \'" +
+                              key.Second + '\'');
+                }
+                return recommender.EstimatePreference(key.First, key.Second);
+            }
+        }
+
+        private class RecommendationsWeigher : CacheWeigher<Object, Recommendations>
+        {
+            public long Weigh(Object key, Recommendations value)
+            {
+                return 1L + value.Items.Count;
+            }
+        }
+
+        /// <summary>
+        /// Bytes of a user's recommendations. The user ID and the items belong to the data model.
+        /// </summary>
+        private class RecommendationsSizer : CacheWeigher<Object, Recommendations>
+        {
+            public long Weigh(Object key, Recommendations value)
+            {
+                int r = MemoryBudget.REFERENCE_BYTES;
+                int numItems = value.Items.Count;
+                // Recommendations, its read-only wrapper, and the list of recommended items
+                return MemoryBudget.ObjectBytes(r + 4) + MemoryBudget.ObjectBytes(2 * r) +
+                       MemoryBudget.ObjectBytes(r + 8) + MemoryBudget.ArrayBytes(numItems, r) +
+                       numItems * MemoryBudget.ObjectBytes(r + 8);
+            }
+        }
+
+        /// <summary>
+        /// Bytes of a cached estimate: the pair of IDs and the boxed value
+        /// </summary>
+        private class EstimateSizer : CacheWeigher<Pair<Object, Object>, Double>
+        {
+            public long Weigh(Pair<Object, Object> key, Double value)
+            {
+                return MemoryBudget.ObjectBytes(2 * MemoryBudget.REFERENCE_BYTES) + MemoryBudget.ObjectBytes(8);
+            }
+        }
+
+        private sealed class Recommendations
+        {
+            private readonly IList<RecommendedItem> items;
+            private volatile bool noMoreRecommendableItems;
+
+            internal Recommendations(IList<RecommendedItem> items)
+            {
+                this.items = items;
+            }
+
+            internal IList<RecommendedItem> Items
+            {
+                get { return items; }
+            }
+
+            internal bool NoMoreRecommendableItems
+            {
+                get { return noMoreRecommendableItems; }
+                set { noMoreRecommendableItems = value; }
+            }
+        }
+
+        #endregion
+    }
+
+}
@@ -32,7 +32,7 @@ namespace Taste.Recommender
 	 * @author Sean Owen
 	 * @since 1.1
 	 */
-	public class FarthestNeighborClusterSimilarity : ClusterSimilarity 
+	public class FarthestNeighborClusterSimilarity : LinkageClusterSimilarity 
 	{
         private readonly UserCorrelation correlation;
 		private readonly double samplingPercentage;
@@ -112,6 +112,24 @@ namespace Taste.Recommender
 		}
 
 
+        /// <summary>
+        /// Returns the smallest of the two similarities, ignoring NaN. This matches recomputing
+        /// <see cref="GetSimilarity(ICollection{User}, ICollection{User})"/> on the merged cluster when every pair is
+        /// examined, and approximates it otherwise.
+        /// </summary>
+		public double GetMergedSimilarity(double similarity1, int size1, double similarity2, int size2)
+		{
+			if (double.IsNaN(similarity1))
+			{
+				return similarity2;
+			}
+			if (double.IsNaN(similarity2))
+			{
+				return similarity1;
+			}
+			return Math.Min(similarity1, similarity2);
+		}
+
         public void Refresh() 
 		{
 			correlation.Refresh();
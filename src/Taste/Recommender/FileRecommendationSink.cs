@@ -0,0 +1,93 @@
+/*
+ * Copyright 2005 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+namespace Taste.Recommender
+{
+    using System;
+    using System.Collections.Generic;
+    using System.Globalization;
+    using System.IO;
+
+
+    /// <summary>
+    /// <p>A <see cref="taste.Recommender.RecommendationSink">RecommendationSink</see> which writes one line per
+    /// recommended item, in the same comma-delimited "user,item,value" format that
+    /// <see cref="taste.Model.file.FileDataModel">FileDataModel</see> reads.</p>
+    /// </summary>
+    public class FileRecommendationSink : RecommendationSink, IDisposable
+    {
+        private readonly TextWriter writer;
+        private readonly bool ownsWriter;
+
+        /// <param name="file">file to write to; it is overwritten</param>
+        public FileRecommendationSink(String file)
+        {
+            if (String.IsNullOrEmpty(file))
+            {
+                throw new ArgumentNullException("file is null");
+            }
+            this.writer = new StreamWriter(file, false);
+            this.ownsWriter = true;
+        }
+
+        /// <param name="writer">writer to write to; the caller remains responsible for closing it</param>
+        public FileRecommendationSink(TextWriter writer)
+        {
+            if (writer == null)
+            {
+                throw new ArgumentNullException("writer is null");
+            }
+            this.writer = writer;
+            this.ownsWriter = false;
+        }
+
+        public void Write(Object userID, IList<RecommendedItem> recommendations)
+        {
+            String userString = userID.ToString();
+            foreach (RecommendedItem recommendedItem in recommendations)
+            {
+                writer.Write(userString);
+                writer.Write(',');
+                writer.Write(recommendedItem.Item.ID.ToString());
+                writer.Write(',');
+                writer.WriteLine(recommendedItem.Value.ToString(CultureInfo.InvariantCulture));
+            }
+        }
+
+        public void Flush()
+        {
+            writer.Flush();
+        }
+
+        public override String ToString()
+        {
+            return "FileRecommendationSink[writer:" + writer + ']';
+        }
+
+        #region IDisposable Members
+
+        public void Dispose()
+        {
+            if (ownsWriter)
+            {
+                writer.Close();
+            }
+        }
+
+        #endregion
+    }
+
+}
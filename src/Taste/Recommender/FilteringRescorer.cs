@@ -0,0 +1,87 @@
+/*
+ * Copyright 2007 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+namespace Taste.Recommender
+{
+	using System;
+	using Taste.Model;
+
+
+    /// <summary>
+    /// <p>A <see cref="taste.Recommender.Rescorer">Rescorer</see> that rejects whatever an
+    /// <see cref="ItemFilter"/> rejects, and otherwise defers to another
+    /// <see cref="taste.Recommender.Rescorer">Rescorer</see>, if any. Recommenders that recognize it remove rejected
+    /// candidates up front with the filter's bits and then apply only the other rescorer; elsewhere it works like
+    /// any rescorer.</p>
+    /// </summary>
+	public sealed class FilteringRescorer : Rescorer<Item>
+	{
+		private readonly ItemFilter filter;
+		private readonly Rescorer<Item> rescorer;
+
+		public FilteringRescorer(ItemFilter filter)
+			: this(filter, NullRescorer<Item>.Instance)
+		{
+		}
+
+		/// <param name="filter">items to allow</param>
+		/// <param name="rescorer">rescorer for allowed items; it may filter more of them</param>
+		public FilteringRescorer(ItemFilter filter, Rescorer<Item> rescorer)
+		{
+			if (filter == null || rescorer == null)
+			{
+				throw new ArgumentNullException("filter or rescorer is null");
+			}
+			this.filter = filter;
+			this.rescorer = rescorer;
+		}
+
+		public ItemFilter Filter
+		{
+			get { return filter; }
+		}
+
+		/// <summary>Rescorer applied to items the filter allows</summary>
+		public Rescorer<Item> Fallback
+		{
+			get { return rescorer; }
+		}
+
+		public double Rescore(Item item, double originalScore)
+		{
+			return rescorer.Rescore(item, originalScore);
+		}
+
+		public bool IsFiltered(Item item)
+		{
+			return !filter.IsAllowed(item.ID) || rescorer.IsFiltered(item);
+		}
+
+		/// <returns>the rescorer still to apply to candidates that <code>rescorer</code>'s filter, if any, has
+		/// already passed</returns>
+		internal static Rescorer<Item> Unfiltered(Rescorer<Item> rescorer)
+		{
+			FilteringRescorer filtering = rescorer as FilteringRescorer;
+			return filtering == null ? rescorer : filtering.rescorer;
+		}
+
+		public override String ToString()
+		{
+			return "FilteringRescorer[filter:" + filter + ", rescorer:" + rescorer + ']';
+		}
+	}
+
+}
@@ -38,6 +38,16 @@ namespace Taste.Recommender
     /// with pre-computed correlations if you're going to use this class. You can use
     /// <see cref="taste.Correlation.PearsonCorrelation">PearsonCorrelation</see> too, which computes correlations
     /// in real-time, but will probably find this painfully slow for large amounts of data.</p>
+    ///
+    /// <p>When the <see cref="taste.Model.DataModel">DataModel</see> is an
+    /// <see cref="taste.Model.ADODataModel">ADODataModel</see> and the correlation is a
+    /// <see cref="taste.Correlation.PreferenceItemCorrelation">PreferenceItemCorrelation</see>, which reads item
+    /// preferences from the model, <code>Recommend()</code> fetches the preferences for the user's items once, and
+    /// for candidate items a chunk at a time, through
+    /// <see cref="taste.Model.ADODataModel.GetPreferencesForItems">GetPreferencesForItems()</see>, and hands them to
+    /// the correlation. Each item then costs one query, issued up to
+    /// <see cref="taste.Model.ADODataModel.MaxConcurrentQueries">MaxConcurrentQueries</see> at a time, rather than one
+    /// query per correlation. The fetched preferences belong to that call only.</p>
     ///	
     /// @author Sean Owen
     /// 
@@ -45,6 +55,9 @@ namespace Taste.Recommender
     public class GenericItemBasedRecommender : AbstractRecommender, ItemBasedRecommender 
 	{
 		private static ILog log = LogManager.GetLogger(typeof(GenericItemBasedRecommender));
+
+		/// <summary>Candidate items whose preferences are held in memory at once, for an ADODataModel</summary>
+		private const int PREFETCH_CHUNK_SIZE = 256;
 		
 		private readonly ItemCorrelation correlation;
 		
@@ -83,17 +96,30 @@ namespace Taste.Recommender
 				log.Debug("Recommending items for user ID '" + userID + '\'');
 			}
 
+			long start = TasteEvents.Start();
 			User theUser = this.DataModel.GetUser(userID);
 			if (GetNumPreferences(theUser) == 0) 
             {
 				return new List<RecommendedItem>();
 			}
 
-			ISet<Item> allItems = GetAllOtherItems(theUser);
-
-			TopItems.Estimator<Item> estimator = new Estimator(this,theUser);
+			ISet<Item> allItems = GetAllOtherItems(theUser, rescorer);
 
-			IList<RecommendedItem> topItems = TopItems.GetTopItems(howMany, allItems, rescorer, estimator);
+			IList<RecommendedItem> topItems;
+			ADODataModel adoModel = this.DataModel as ADODataModel;
+			PreferenceItemCorrelation prefCorrelation = correlation as PreferenceItemCorrelation;
+			if (adoModel == null || prefCorrelation == null)
+			{
+				topItems = TopItems.GetTopItems(howMany, allItems, FilteringRescorer.Unfiltered(rescorer),
+				                                new Estimator(theUser, correlation));
+			}
+			else
+			{
+				PrefetchedCorrelation prefetched = new PrefetchedCorrelation(adoModel, prefCorrelation, GetItemIDs(theUser));
+				topItems = TopItems.GetTopItems(howMany, prefetched.InChunks(allItems),
+				                                FilteringRescorer.Unfiltered(rescorer), new Estimator(theUser, prefetched));
+			}
+			TasteEvents.Recommended("GenericItemBasedRecommender", userID, allItems.Count, -1, topItems.Count, start);
 
 			if (log.IsDebugEnabled) 
             {
@@ -113,8 +139,11 @@ namespace Taste.Recommender
             {
 				return actualPref.Value;
 			}
+			long start = TasteEvents.Start();
 			Item item = this.DataModel.GetItem(itemID);
-			return DoEstimatePreference(theUser, item);
+			double estimate = DoEstimatePreference(theUser, item, correlation);
+			TasteEvents.Estimated("GenericItemBasedRecommender", userID, itemID, -1, start);
+			return estimate;
 		}
 
 		/**
@@ -223,7 +252,18 @@ namespace Taste.Recommender
             return TopItems.GetTopItems(howMany, allItems, NullRescorer<Item>.Instance, estimator);
 		}
 
-		private double DoEstimatePreference(User theUser, Item item) 
+		private static ICollection<Object> GetItemIDs(User theUser)
+		{
+			Preference[] prefs = theUser.GetPreferencesAsArray();
+			List<Object> itemIDs = new List<Object>(prefs.Length);
+			foreach (Preference pref in prefs)
+			{
+				itemIDs.Add(pref.Item.ID);
+			}
+			return itemIDs;
+		}
+
+		private static double DoEstimatePreference(User theUser, Item item, ItemCorrelation correlation) 
         {
 			double preference = 0.0;
 			double totalCorrelation = 0.0;
@@ -305,18 +345,101 @@ namespace Taste.Recommender
 
 		private class Estimator : TopItems.Estimator<Item> 
         {
-            private readonly GenericItemBasedRecommender host;
 			private readonly User theUser;
+			private readonly ItemCorrelation correlation;
 
-			internal Estimator(GenericItemBasedRecommender host, User theUser) 
+			internal Estimator(User theUser, ItemCorrelation correlation) 
             {
-                this.host = host;
 				this.theUser = theUser;
+				this.correlation = correlation;
 			}
 
 			public double Estimate(Item item) 
             {
-				return host.DoEstimatePreference(theUser, item);
+				return DoEstimatePreference(theUser, item, correlation);
+			}
+		}
+
+		/// <summary>
+		/// Answers correlations from preferences fetched for one <code>Recommend()</code> call: those of the
+		/// user's items up front, and those of candidate items a chunk at a time, as <see cref="InChunks"/> yields
+		/// them.
+		/// </summary>
+		private sealed class PrefetchedCorrelation : ItemCorrelation
+		{
+			private readonly ADODataModel adoModel;
+			private readonly PreferenceItemCorrelation correlation;
+			private readonly IDictionary<Object, Preference[]> userItemPrefs;
+			private IDictionary<Object, Preference[]> candidatePrefs = new Dictionary<Object, Preference[]>();
+
+			internal PrefetchedCorrelation(ADODataModel adoModel,
+			                               PreferenceItemCorrelation correlation,
+			                               ICollection<Object> userItemIDs)
+			{
+				this.adoModel = adoModel;
+				this.correlation = correlation;
+				this.userItemPrefs = adoModel.GetPreferencesForItems(userItemIDs);
+			}
+
+			/// <summary>
+			/// Yields <code>items</code> in order, fetching the preferences for each chunk of
+			/// <see cref="PREFETCH_CHUNK_SIZE"/> of them before yielding the chunk.
+			/// </summary>
+			internal IEnumerable<Item> InChunks(IEnumerable<Item> items)
+			{
+				List<Item> chunk = new List<Item>(PREFETCH_CHUNK_SIZE);
+				foreach (Item item in items)
+				{
+					chunk.Add(item);
+					if (chunk.Count == PREFETCH_CHUNK_SIZE)
+					{
+						Fetch(chunk);
+						foreach (Item fetched in chunk)
+						{
+							yield return fetched;
+						}
+						chunk.Clear();
+					}
+				}
+				if (chunk.Count > 0)
+				{
+					Fetch(chunk);
+					foreach (Item fetched in chunk)
+					{
+						yield return fetched;
+					}
+				}
+			}
+
+			private void Fetch(List<Item> chunk)
+			{
+				List<Object> itemIDs = new List<Object>(chunk.Count);
+				foreach (Item item in chunk)
+				{
+					itemIDs.Add(item.ID);
+				}
+				candidatePrefs = adoModel.GetPreferencesForItems(itemIDs);
+			}
+
+			public double GetItemCorrelation(Item item1, Item item2)
+			{
+				return correlation.GetItemCorrelation(item1, GetPreferences(item1), item2, GetPreferences(item2));
+			}
+
+			private Preference[] GetPreferences(Item item)
+			{
+				Preference[] prefs;
+				if (candidatePrefs.TryGetValue(item.ID, out prefs) || userItemPrefs.TryGetValue(item.ID, out prefs))
+				{
+					return prefs;
+				}
+				// Gone from the database since the fetch; ask the model, as the correlation itself would
+				return adoModel.GetPreferencesForItemAsArray(item.ID);
+			}
+
+			public void Refresh()
+			{
+				// Lives for one call; the recommender refreshes the underlying correlation
 			}
 		}
 
@@ -30,6 +30,9 @@ namespace Taste.Recommender
     /// <p>A simple <see cref="taste.Recommender.Recommender">Recommender</see> which uses a given 
     /// <see cref="taste.Model.DataModel">DataModel</see> and <see cref="taste.Neighborhood.UserNeighborhood">UserNeighborhood</see>
     /// to produce recommendations.</p>
+    ///
+    /// <p>Candidates are scored together in a single merge over the neighbors' preferences; see
+    /// <see cref="NeighborhoodScorer"/>.</p>
     /// 
     /// author Sean Owen
     /// </summary>
@@ -75,6 +78,7 @@ namespace Taste.Recommender
 				log.DebugFormat("Recommending items for user ID '{0}'", userID);
 			}
 
+			long start = TasteEvents.Start();
 			User theUser = this.DataModel.GetUser(userID);
 			ICollection<User> theNeighborhood = neighborhood.GetUserNeighborhood(userID);
 			if (log.IsDebugEnabled) 
@@ -87,16 +91,26 @@ namespace Taste.Recommender
                 return new List<RecommendedItem>();
 			}
 
-			ISet<Item> allItems = GetAllOtherItems(theNeighborhood, theUser);
+			NeighborhoodScorer scorer = NeighborhoodScorer.ForThread(theUser, theNeighborhood, correlation);
+			TopNCollector<Item> collector = new TopNCollector<Item>(howMany);
+			int numCandidates;
+			try
+			{
+				scorer.Collect(collector, rescorer);
+				numCandidates = scorer.NumCandidates;
+			}
+			finally
+			{
+				scorer.Release();
+			}
 			if (log.IsDebugEnabled) 
             {
-				log.Debug("Items in Neighborhood which user doesn't prefer already are: " + allItems);
+				log.Debug("Items in Neighborhood which user doesn't prefer already: " + numCandidates);
 			}
 
-
-			TopItems.Estimator<Item> estimator = new Estimator(this, theUser, theNeighborhood);
-
-			IList<RecommendedItem> topItems = TopItems.GetTopItems(howMany, allItems, rescorer, estimator);
+			IList<RecommendedItem> topItems = TopItems.ToRecommendedItems(collector);
+			TasteEvents.Recommended("GenericUserBasedRecommender", userID, numCandidates, theNeighborhood.Count,
+			                        topItems.Count, start);
 
 			if (log.IsDebugEnabled) 
             {
@@ -115,9 +129,12 @@ namespace Taste.Recommender
             {
 				return actualPref.Value;
 			}
+			long start = TasteEvents.Start();
 			ICollection<User> theNeighborhood = neighborhood.GetUserNeighborhood(userID);
 			Item item = model.GetItem(itemID);
-			return DoEstimatePreference(theUser, theNeighborhood, item);
+			double estimate = DoEstimatePreference(theUser, theNeighborhood, item);
+			TasteEvents.Estimated("GenericUserBasedRecommender", userID, itemID, theNeighborhood.Count, start);
+			return estimate;
 		}
 
 		
@@ -169,11 +186,11 @@ namespace Taste.Recommender
 			{
                 if (!user.Equals(theUser))
                 {
-                    // See GenericItemBasedRecommender.doEstimatePreference() too
+                    // See GenericItemBasedRecommender.doEstimatePreference() too, and NeighborhoodScorer
                     Preference pref = user.GetPreferenceFor(item.ID);
                     if (pref != null)
                     {
-                        double theCorrelation = correlation.GetUserCorrelation(user, pref.User) + 1.0;
+                        double theCorrelation = correlation.GetUserCorrelation(theUser, user) + 1.0;
                         if (!Double.IsNaN(theCorrelation))
                         {
                             preference += theCorrelation * pref.Value;
@@ -187,26 +204,6 @@ namespace Taste.Recommender
 		}
 
 		
-		private static ISet<Item> GetAllOtherItems(IEnumerable<User> theNeighborhood, User theUser) 
-		{
-			ISet<Item> allItems = new HashedSet<Item>();
-			foreach (User user in theNeighborhood) 
-			{
-                Preference[] prefs = user.GetPreferencesAsArray();
-				foreach (Preference preference in prefs) 
-				{
-					Item item = preference.Item;
-					// If not already preferred by the user, add it
-					if (theUser.GetPreferenceFor(item.ID) == null) 
-					{
-						allItems.Add(item);
-					}
-				}
-			}
-			return allItems;
-		}
-
-
         public override void Refresh() 
 		{
             if (refreshLock.TryLock())
@@ -260,25 +257,6 @@ namespace Taste.Recommender
 			}
 		}
 
-		private class Estimator : TopItems.Estimator<Item> 
-        {			
-			private readonly ICollection<User> theNeighborhood;
-            GenericUserBasedRecommender host;
-            User user;
-
-            public Estimator(GenericUserBasedRecommender host, User theUser, ICollection<User> theNeighborhood) 
-			{
-                this.host = host;
-                this.user = theUser;
-				this.theNeighborhood = theNeighborhood;
-			}
-
-			public double Estimate(Item item) 
-            {
-				return host.DoEstimatePreference(user, theNeighborhood, item);
-			}
-        }
-
         #endregion
     }
 
@@ -31,6 +31,9 @@ namespace Taste.Recommender
     /// all known preference values for that <see cref="taste.Model.Item">Item</see>. No information about <see cref="taste.Model.Item">Item</see>s is taken into
     /// account. This implementation is provided for experimentation; while simple and fast, it may not
     /// produce very good recommendations.</p>
+    ///
+    /// <p>Averages come from a <see cref="taste.Model.DataModelStatistics">DataModelStatistics</see>, which may be
+    /// shared with other components over the same model.</p>
     /// 
     /// author Sean Owen
     /// </summary>
@@ -38,19 +41,26 @@ namespace Taste.Recommender
 	{
 		private static ILog log = LogManager.GetLogger(typeof(ItemAverageRecommender));
 		
-		private readonly IDictionary<Object, RunningAverage> itemAverages;
-		private bool averagesBuilt;
+		private readonly DataModelStatistics statistics;
 		
 		private readonly ReentrantLock refreshLock;
-		
-		private readonly ReaderWriterLock buildAveragesLock;
 
 		public ItemAverageRecommender(DataModel dataModel) 
+            :this(dataModel, new DataModelStatistics(dataModel))
+        {
+		}
+
+		/// <param name="dataModel">model to recommend from</param>
+		/// <param name="statistics">statistics over <code>dataModel</code></param>
+		public ItemAverageRecommender(DataModel dataModel, DataModelStatistics statistics) 
             :base(dataModel)
         {
-			this.itemAverages = new Dictionary<Object, RunningAverage>(1003);
+			if (statistics == null)
+			{
+				throw new ArgumentNullException("statistics is null");
+			}
+			this.statistics = statistics;
 			this.refreshLock = new ReentrantLock();
-			this.buildAveragesLock = new ReaderWriterLock();
 		}
 
 		/**
@@ -75,14 +85,13 @@ namespace Taste.Recommender
             {
 				log.Debug("Recommending items for user ID '" + userID + '\'');
 			}
-			CheckAverageDiffsBuilt();
 
 			User theUser = this.DataModel.GetUser(userID);
-			ISet<Item> allItems = GetAllOtherItems(theUser);
+			ISet<Item> allItems = GetAllOtherItems(theUser, rescorer);
 
 			TopItems.Estimator<Item> estimator = new Estimator(this);
 
-			IList<RecommendedItem> topItems = TopItems.GetTopItems(howMany, allItems, rescorer, estimator);
+			IList<RecommendedItem> topItems = TopItems.GetTopItems(howMany, allItems, FilteringRescorer.Unfiltered(rescorer), estimator);
 
 			if (log.IsDebugEnabled) 
             {
@@ -102,100 +111,29 @@ namespace Taste.Recommender
             {
 				return actualPref.Value;
 			}
-			CheckAverageDiffsBuilt();
 			return DoEstimatePreference(itemID);
 		}
 
 		private double DoEstimatePreference(Object itemID) 
 		{
-            buildAveragesLock.AcquireReaderLock(Constants.INFINITE_TIMEOUT);
-			try 
-            {
-				RunningAverage average = null;
-                if (itemAverages.TryGetValue(itemID, out average))
-                {
-                    return average.Average;
-                }
-				return Double.NaN;
-			} 
-            finally 
-            {
-				buildAveragesLock.ReleaseReaderLock();
-			}
-		}
-
-		private void CheckAverageDiffsBuilt() 
-		{
-			if (!averagesBuilt) 
-            {
-				BuildAverageDiffs();
-			}
-		}
-
-		private void BuildAverageDiffs() 
-        {
-            buildAveragesLock.AcquireWriterLock(Constants.INFINITE_TIMEOUT);
-			try 
-            {	
-				foreach (User user in this.DataModel.GetUsers()) 
-                {
-                    Preference[] prefs = user.GetPreferencesAsArray();
-					foreach (Preference pref in prefs) 
-                    {
-						Object itemID = pref.Item.ID;
-
-						RunningAverage average = null;
-                        if (!itemAverages.TryGetValue(itemID, out average))
-                        {
-							average = new FullRunningAverage();
-							itemAverages.Add(itemID, average);
-						}
-						average.AddDatum(pref.Value);
-					}
-				}
-				averagesBuilt = true;
-			} 
-            finally 
-            {
-				buildAveragesLock.ReleaseWriterLock();
-			}
+			return statistics.GetItemMean(itemID);
 		}
 
 
         public override void SetPreference(Object userID, Object itemID, double value) 
         {
-			double prefDelta;
+			double oldValue;
 			try 
             {
-				User theUser = this.DataModel.GetUser(userID);
-				Preference oldPref = theUser.GetPreferenceFor(itemID);
-				prefDelta = oldPref == null ? value : value - oldPref.Value;
+				Preference oldPref = this.DataModel.GetUser(userID).GetPreferenceFor(itemID);
+				oldValue = oldPref == null ? Double.NaN : oldPref.Value;
 			} 
-            catch 
+            catch (NoSuchElementException) 
             {
-				prefDelta = value;
+				oldValue = Double.NaN;
 			}
 			base.SetPreference(userID, itemID, value);
-
-            buildAveragesLock.AcquireWriterLock(Constants.INFINITE_TIMEOUT);
-			try 
-            {				
-				RunningAverage average = null;
-				if (!itemAverages.TryGetValue(itemID, out average))
-                {
-					RunningAverage newAverage = new FullRunningAverage();
-					newAverage.AddDatum(prefDelta);
-					itemAverages.Add(itemID, newAverage);
-				} 
-                else 
-                {
-					average.ChangeDatum(prefDelta);
-				}
-			} 
-            finally 
-            {
-				buildAveragesLock.ReleaseWriterLock();
-			}
+			statistics.Record(new PreferenceChange(userID, itemID, oldValue, value));
 		}
 
 		/**
@@ -209,23 +147,7 @@ namespace Taste.Recommender
 			base.RemovePreference(userID, itemID);
 			if (oldPref != null) 
 			{
-                buildAveragesLock.AcquireWriterLock(Constants.INFINITE_TIMEOUT);
-				try 
-				{
-                    RunningAverage average = null;
-                    if (!itemAverages.TryGetValue(itemID, out average))
-                    {
-						throw new IllegalStateException("No preferences exist for item ID: " + itemID);
-					} 
-                    else 
-                    {
-						average.RemoveDatum(oldPref.Value);
-					}
-				} 
-                finally 
-                {
-					buildAveragesLock.ReleaseWriterLock();
-				}
+				statistics.Record(PreferenceChange.Removed(userID, itemID, oldPref.Value));
 			}
 		}
 
@@ -239,14 +161,7 @@ namespace Taste.Recommender
                 try
                 {
                     base.Refresh();
-                    try
-                    {
-                        BuildAverageDiffs();
-                    }
-                    catch (TasteException te)
-                    {
-                        log.Warn( "Unexpected excpetion while refreshing", te);
-                    }
+                    statistics.Refresh();
                 }
                 finally
                 {
@@ -0,0 +1,234 @@
+/*
+ * Copyright 2007 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+namespace Taste.Recommender
+{
+	using System;
+	using System.Collections.Generic;
+	using Taste.Model;
+
+
+    /// <summary>
+    /// <p>An immutable set of allowed <see cref="taste.Model.Item">Item</see>s, kept as one bit per item over the
+    /// dense indices of an <see cref="taste.Model.IDIndex">IDIndex</see>. Category, availability and similar
+    /// constraints can be built once as filters, combined with <see cref="And(ItemFilter)"/>,
+    /// <see cref="Or(ItemFilter)"/> and <see cref="Not()"/>, and then checked with one bit test per item instead of
+    /// a set lookup per constraint. <see cref="Compile(IDIndex, DataModel, Rescorer{Item})"/> turns any
+    /// <see cref="taste.Recommender.Rescorer">Rescorer</see>'s filtering into a filter in one pass.</p>
+    ///
+    /// <p>Pass a filter to a recommender wrapped in a <see cref="FilteringRescorer"/>; recommenders that
+    /// recognize it drop rejected items before scoring them. Items that are not in the index, such as items added
+    /// to the <see cref="taste.Model.DataModel">DataModel</see> after it was built, are all allowed or all rejected,
+    /// as <see cref="AllowsUnindexed"/> says.</p>
+    /// </summary>
+	public sealed class ItemFilter
+	{
+		private readonly IDIndex index;
+		private readonly long[] words;
+		private readonly bool allowsUnindexed;
+
+		private ItemFilter(IDIndex index, long[] words, bool allowsUnindexed)
+		{
+			this.index = index;
+			this.words = words;
+			this.allowsUnindexed = allowsUnindexed;
+		}
+
+		/// <summary>Allows every item</summary>
+		public static ItemFilter All(IDIndex index)
+		{
+			return None(index).Not();
+		}
+
+		/// <summary>Rejects every item</summary>
+		public static ItemFilter None(IDIndex index)
+		{
+			CheckIndex(index);
+			return new ItemFilter(index, new long[WordsFor(index.Count)], false);
+		}
+
+		/// <summary>
+		/// Allows only the given items. IDs that are not in the index are ignored, and unindexed items are
+		/// rejected.
+		/// </summary>
+		public static ItemFilter Allowing(IDIndex index, IEnumerable<Object> itemIDs)
+		{
+			CheckIndex(index);
+			if (itemIDs == null)
+			{
+				throw new ArgumentNullException("itemIDs is null");
+			}
+			long[] words = new long[WordsFor(index.Count)];
+			foreach (Object itemID in itemIDs)
+			{
+				int itemIndex = index.IndexOf(itemID);
+				if (itemIndex >= 0)
+				{
+					words[itemIndex >> 6] |= 1L << itemIndex;
+				}
+			}
+			return new ItemFilter(index, words, false);
+		}
+
+		/// <summary>
+		/// Allows all but the given items. IDs that are not in the index are ignored, and unindexed items are
+		/// allowed.
+		/// </summary>
+		public static ItemFilter Excluding(IDIndex index, IEnumerable<Object> itemIDs)
+		{
+			return Allowing(index, itemIDs).Not();
+		}
+
+		/// <summary>
+		/// Asks <code>rescorer</code> once about each of the model's indexed items, and allows those it does not
+		/// filter. Unindexed items are rejected, since the rescorer has not seen them.
+		/// </summary>
+		public static ItemFilter Compile(IDIndex index, DataModel dataModel, Rescorer<Item> rescorer)
+		{
+			CheckIndex(index);
+			if (dataModel == null || rescorer == null)
+			{
+				throw new ArgumentNullException("dataModel or rescorer is null");
+			}
+			long[] words = new long[WordsFor(index.Count)];
+			foreach (Item item in dataModel.GetItems())
+			{
+				int itemIndex = index.IndexOf(item.ID);
+				if (itemIndex >= 0 && !rescorer.IsFiltered(item))
+				{
+					words[itemIndex >> 6] |= 1L << itemIndex;
+				}
+			}
+			return new ItemFilter(index, words, false);
+		}
+
+		public IDIndex Index
+		{
+			get { return index; }
+		}
+
+		/// <summary>Whether items that are not in <see cref="Index"/> pass</summary>
+		public bool AllowsUnindexed
+		{
+			get { return allowsUnindexed; }
+		}
+
+		/// <summary>Number of indexed items allowed</summary>
+		public int Count
+		{
+			get
+			{
+				int count = 0;
+				foreach (long word in words)
+				{
+					long remaining = word;
+					while (remaining != 0L)
+					{
+						remaining &= remaining - 1L;
+						count++;
+					}
+				}
+				return count;
+			}
+		}
+
+		/// <param name="itemIndex">index of an item in <see cref="Index"/></param>
+		public bool IsAllowed(int itemIndex)
+		{
+			return (words[itemIndex >> 6] & (1L << itemIndex)) != 0L;
+		}
+
+		public bool IsAllowed(Object itemID)
+		{
+			int itemIndex = index.IndexOf(itemID);
+			return itemIndex < 0 ? allowsUnindexed : IsAllowed(itemIndex);
+		}
+
+		/// <returns>filter allowing items that both filters allow</returns>
+		/// <exception cref="ArgumentException">if the filters use different indices</exception>
+		public ItemFilter And(ItemFilter other)
+		{
+			CheckSameIndex(other);
+			long[] result = new long[words.Length];
+			for (int i = 0; i < result.Length; i++)
+			{
+				result[i] = words[i] & other.words[i];
+			}
+			return new ItemFilter(index, result, allowsUnindexed && other.allowsUnindexed);
+		}
+
+		/// <returns>filter allowing items that either filter allows</returns>
+		/// <exception cref="ArgumentException">if the filters use different indices</exception>
+		public ItemFilter Or(ItemFilter other)
+		{
+			CheckSameIndex(other);
+			long[] result = new long[words.Length];
+			for (int i = 0; i < result.Length; i++)
+			{
+				result[i] = words[i] | other.words[i];
+			}
+			return new ItemFilter(index, result, allowsUnindexed || other.allowsUnindexed);
+		}
+
+		/// <returns>filter allowing exactly the items this one rejects</returns>
+		public ItemFilter Not()
+		{
+			long[] result = new long[words.Length];
+			for (int i = 0; i < result.Length; i++)
+			{
+				result[i] = ~words[i];
+			}
+			int tailBits = index.Count & 63;
+			if (tailBits != 0)
+			{
+				result[result.Length - 1] &= (1L << tailBits) - 1L;
+			}
+			return new ItemFilter(index, result, !allowsUnindexed);
+		}
+
+		public override String ToString()
+		{
+			return "ItemFilter[allowed:" + Count + " of " + index.Count + ", unindexed:" +
+			       (allowsUnindexed ? "allowed" : "rejected") + ']';
+		}
+
+		private void CheckSameIndex(ItemFilter other)
+		{
+			if (other == null)
+			{
+				throw new ArgumentNullException("other is null");
+			}
+			if (!ReferenceEquals(index, other.index))
+			{
+				throw new ArgumentException("Filters use different indices");
+			}
+		}
+
+		private static void CheckIndex(IDIndex index)
+		{
+			if (index == null)
+			{
+				throw new ArgumentNullException("index is null");
+			}
+		}
+
+		private static int WordsFor(int count)
+		{
+			return (count + 63) >> 6;
+		}
+	}
+
+}
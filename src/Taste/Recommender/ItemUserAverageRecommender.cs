@@ -31,6 +31,9 @@ namespace Taste.Recommender
     /// not rated item Y. Item Y's average preference value is 3.5. User X's average preference value is 4.2, and the average 
     /// over all preference values is 4.0. User X prefers items 0.2 higher on average, so, the estimated preference
     /// for user X, item Y is 3.5 + 0.2 = 3.7.</p>
+    ///
+    /// <p>Averages come from a <see cref="taste.Model.DataModelStatistics">DataModelStatistics</see>, which may be
+    /// shared with other components over the same model.</p>
     /// 
     /// author Sean Owen
     /// </summary>
@@ -38,23 +41,26 @@ namespace Taste.Recommender
     {
 		private static ILog log = LogManager.GetLogger(typeof(ItemUserAverageRecommender));
 		
-		private readonly IDictionary<Object, RunningAverage> itemAverages;		
-		private readonly IDictionary<Object, RunningAverage> userAverages;		
-		private readonly RunningAverage overallAveragePrefValue;
-		private bool averagesBuilt;
+		private readonly DataModelStatistics statistics;
 		
 		private readonly ReentrantLock refreshLock;
-		
-		private readonly ReaderWriterLock buildAveragesLock;
 
 		public ItemUserAverageRecommender(DataModel dataModel) 
+            :this(dataModel, new DataModelStatistics(dataModel))
+		{
+		}
+
+		/// <param name="dataModel">model to recommend from</param>
+		/// <param name="statistics">statistics over <code>dataModel</code></param>
+		public ItemUserAverageRecommender(DataModel dataModel, DataModelStatistics statistics) 
             :base(dataModel)
 		{
-			this.itemAverages = new Dictionary<Object, RunningAverage>(1003);
-			this.userAverages = new Dictionary<Object, RunningAverage>(1003);
-			this.overallAveragePrefValue = new FullRunningAverage();
+			if (statistics == null)
+			{
+				throw new ArgumentNullException("statistics is null");
+			}
+			this.statistics = statistics;
 			this.refreshLock = new ReentrantLock();
-			this.buildAveragesLock = new ReaderWriterLock();
 		}
 
 		
@@ -72,14 +78,13 @@ namespace Taste.Recommender
 			if (log.IsDebugEnabled) {
 				log.Debug("Recommending items for user ID '" + userID + '\'');
 			}
-			CheckAverageDiffsBuilt();
 
 			User theUser = this.DataModel.GetUser(userID);
-			ISet<Item> allItems = GetAllOtherItems(theUser);
+			ISet<Item> allItems = GetAllOtherItems(theUser, rescorer);
 
-			TopItems.Estimator<Item> estimator = new Estimator(this, userID);
+			TopItems.Estimator<Item> estimator = new Estimator(this, GetUserDiff(userID));
 
-			IList<RecommendedItem> topItems = TopItems.GetTopItems(howMany, allItems, rescorer, estimator);
+			IList<RecommendedItem> topItems = TopItems.GetTopItems(howMany, allItems, FilteringRescorer.Unfiltered(rescorer), estimator);
 
 			if (log.IsDebugEnabled) 
             {
@@ -99,78 +104,19 @@ namespace Taste.Recommender
 			{
 				return actualPref.Value;
 			}
-			CheckAverageDiffsBuilt();
-			return DoEstimatePreference(userID, itemID);
+			return DoEstimatePreference(GetUserDiff(userID), itemID);
 		}
 
 
-		private double DoEstimatePreference(Object userID, Object itemID) 
+		/// <returns>how much higher than average the user's preferences are, or NaN if the user has none</returns>
+		private double GetUserDiff(Object userID) 
 		{
-            buildAveragesLock.AcquireReaderLock(Constants.INFINITE_TIMEOUT);
-			try 
-			{
-                RunningAverage itemAverage;
-                if (!itemAverages.TryGetValue(itemID, out itemAverage))
-                {
-					return Double.NaN;
-				}
-				RunningAverage userAverage;
-                if (!userAverages.TryGetValue(userID, out userAverage))
-				{
-					return Double.NaN;
-				}
-				double userDiff = userAverage.Average - overallAveragePrefValue.Average;
-				return itemAverage.Average + userDiff;
-			} 
-            finally 
-            {
-				buildAveragesLock.ReleaseReaderLock();			
-			}
+			return statistics.GetUserMean(userID) - statistics.GetMean();
 		}
 
-		private void CheckAverageDiffsBuilt() 
+		private double DoEstimatePreference(double userDiff, Object itemID) 
 		{
-			if (!averagesBuilt) {
-				BuildAverageDiffs();
-			}
-		}
-
-		private void BuildAverageDiffs() 
-		{
-            buildAveragesLock.AcquireWriterLock(Constants.INFINITE_TIMEOUT);
-			try 
-			{
-				foreach (User user in this.DataModel.GetUsers()) 
-				{
-					Object userID = user.ID;
-                    Preference[] prefs = user.GetPreferencesAsArray();
-					foreach (Preference pref in prefs) 
-					{
-						Object itemID = pref.Item.ID;
-						double value = pref.Value;
-						AddDatumAndCrateIfNeeded(itemID, value, itemAverages);
-						AddDatumAndCrateIfNeeded(userID, value, userAverages);
-						overallAveragePrefValue.AddDatum(value);
-					}
-				}
-				averagesBuilt = true;
-			} finally {
-
-				buildAveragesLock.ReleaseWriterLock();
-			}
-		}
-
-		private static void AddDatumAndCrateIfNeeded(Object itemID,
-		                                             double value,
-		                                             IDictionary<Object, RunningAverage> averages) 
-		{
-			RunningAverage itemAverage;
-            if (!averages.TryGetValue(itemID, out itemAverage))
-            {
-				itemAverage = new FullRunningAverage();
-				averages.Add(itemID, itemAverage);
-			}
-			itemAverage.AddDatum(value);
+			return statistics.GetItemMean(itemID) + userDiff;
 		}
 
 		/**
@@ -178,46 +124,18 @@ namespace Taste.Recommender
 		 */
 		public override void SetPreference(Object userID, Object itemID, double value) 
 		{
-			DataModel dataModel = this.DataModel;
-			double prefDelta;
+			double oldValue;
 			try 
 			{
-				User theUser = dataModel.GetUser(userID);
-				Preference oldPref = theUser.GetPreferenceFor(itemID);
-				prefDelta = oldPref == null ? value : value - oldPref.Value;
+				Preference oldPref = this.DataModel.GetUser(userID).GetPreferenceFor(itemID);
+				oldValue = oldPref == null ? Double.NaN : oldPref.Value;
 			} 
             catch (NoSuchElementException) 
             {
-				prefDelta = value;
+				oldValue = Double.NaN;
 			}
 			base.SetPreference(userID, itemID, value);
-            buildAveragesLock.AcquireWriterLock(Constants.INFINITE_TIMEOUT);
-			try 
-			{
-                RunningAverage itemAverage;
-                if (!itemAverages.TryGetValue(itemID, out itemAverage) || itemAverage == null)
-				{
-					RunningAverage newItemAverage = new FullRunningAverage();
-					newItemAverage.AddDatum(prefDelta);
-					itemAverages.Add(itemID, newItemAverage);
-				} else {
-					itemAverage.ChangeDatum(prefDelta);
-				}
-
-				RunningAverage userAverage;
-
-                if (!userAverages.TryGetValue(userID, out userAverage) || userAverage == null)
-                {
-					RunningAverage newUserAverage = new FullRunningAverage();
-					newUserAverage.AddDatum(prefDelta);
-					userAverages.Add(userID, newUserAverage);
-				} else {
-					userAverage.ChangeDatum(prefDelta);
-				}
-				overallAveragePrefValue.ChangeDatum(prefDelta);
-			} finally {
-				buildAveragesLock.ReleaseWriterLock();
-			}
+			statistics.Record(new PreferenceChange(userID, itemID, oldValue, value));
 		}
 
 		/**
@@ -225,34 +143,12 @@ namespace Taste.Recommender
 		 */
 		public override void RemovePreference(Object userID, Object itemID) 
 		{
-			DataModel dataModel = this.DataModel;
-			User theUser = dataModel.GetUser(userID);
+			User theUser = this.DataModel.GetUser(userID);
 			Preference oldPref = theUser.GetPreferenceFor(itemID);
 			base.RemovePreference(userID, itemID);
 			if (oldPref != null) 
 			{
-				double value = oldPref.Value;
-                buildAveragesLock.AcquireWriterLock(Constants.INFINITE_TIMEOUT);
-				try 
-                {
-                    RunningAverage itemAverage;
-
-                    if (!itemAverages.TryGetValue(itemID, out itemAverage) || itemAverage == null)
-                    {
-						throw new IllegalStateException("No preferences exist for item ID: " + itemID);
-					}
-					itemAverage.RemoveDatum(value);
-
-					RunningAverage userAverage;
-                    if (!userAverages.TryGetValue(userID, out userAverage) || userAverage == null)
-                    {
-						throw new IllegalStateException("No preferences exist for user ID: " + userID);
-					}
-					userAverage.RemoveDatum(value);
-					overallAveragePrefValue.RemoveDatum(value);
-				} finally {
-					buildAveragesLock.ReleaseWriterLock();
-				}
+				statistics.Record(PreferenceChange.Removed(userID, itemID, oldPref.Value));
 			}
 		}
 
@@ -267,14 +163,7 @@ namespace Taste.Recommender
                 {
                     refreshLock.Lock();
                     base.Refresh();
-                    try
-                    {
-                        BuildAverageDiffs();
-                    }
-                    catch (TasteException te)
-                    {
-                        log.Warn( "Unexpected excpetion while refreshing", te);
-                    }
+                    statistics.Refresh();
                 }
                 finally
                 {
@@ -293,17 +182,17 @@ namespace Taste.Recommender
 
         internal sealed class Estimator : TopItems.Estimator<Item> 
 		{		
-			private readonly Object userID;
+			private readonly double userDiff;
             private readonly ItemUserAverageRecommender host;
 
-            internal Estimator(ItemUserAverageRecommender host, Object userID) 
+            internal Estimator(ItemUserAverageRecommender host, double userDiff) 
 			{
                 this.host = host;
-				this.userID = userID;
+				this.userDiff = userDiff;
 			}
 			public double Estimate(Item item) 
 			{
-				return host.DoEstimatePreference(userID, item.ID);
+				return host.DoEstimatePreference(userDiff, item.ID);
 			}
         }
         #endregion
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2007 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+namespace Taste.Recommender
+{
+	using System;
+
+
+    /// <summary>
+    /// <p>A <see cref="taste.Recommender.ClusterSimilarity">ClusterSimilarity</see> whose value for a merged cluster
+    /// can be derived from the values for its two halves (a Lance-Williams update). This lets
+    /// <see cref="taste.Recommender.AgglomerativeClusterer">AgglomerativeClusterer</see> update one row of its
+    /// similarity matrix per merge instead of comparing every member of the merged cluster again.</p>
+    /// </summary>
+	public interface LinkageClusterSimilarity : ClusterSimilarity
+	{
+        /// <summary>
+        /// Returns the similarity between the union of two clusters and a third cluster.
+        /// </summary>
+        /// <param name="similarity1">similarity between the first cluster and the third; may be NaN</param>
+        /// <param name="size1">number of users in the first cluster</param>
+        /// <param name="similarity2">similarity between the second cluster and the third; may be NaN</param>
+        /// <param name="size2">number of users in the second cluster</param>
+		double GetMergedSimilarity(double similarity1, int size1, double similarity2, int size2);
+	}
+}
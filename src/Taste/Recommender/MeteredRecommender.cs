@@ -0,0 +1,143 @@
+/*
+ * Copyright 2005 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+namespace Taste.Recommender
+{
+    using System;
+    using System.Collections.Generic;
+    using Taste.Common;
+    using Taste.Model;
+
+
+    /// <summary>
+    /// <p>A <see cref="taste.Recommender.Recommender">Recommender</see> which records the latency of calls to
+    /// another <see cref="taste.Recommender.Recommender">Recommender</see>, and how many items it recommends, in
+    /// <see cref="taste.Common.MetricsRegistry.Default">MetricsRegistry.Default</see>. Metrics are named after the
+    /// given prefix, so several recommenders can be told apart: <code>prefix.recommend</code>,
+    /// <code>prefix.recommended</code>, <code>prefix.estimate</code> and <code>prefix.failures</code>.</p>
+    /// </summary>
+    public sealed class MeteredRecommender : Recommender
+    {
+        private readonly Recommender recommender;
+        private readonly String prefix;
+        private readonly MetricsHistogram recommendTime;
+        private readonly MetricsHistogram recommendedCount;
+        private readonly MetricsHistogram estimateTime;
+        private readonly MetricsCounter failures;
+
+        public MeteredRecommender(Recommender recommender)
+            : this(recommender, "recommender")
+        {
+        }
+
+        public MeteredRecommender(Recommender recommender, String prefix)
+        {
+            if (recommender == null || prefix == null)
+            {
+                throw new ArgumentNullException("recommender or prefix is null");
+            }
+            this.recommender = recommender;
+            this.prefix = prefix;
+            MetricsRegistry registry = MetricsRegistry.Default;
+            this.recommendTime = registry.GetHistogram(prefix + ".recommend", "us");
+            this.recommendedCount = registry.GetHistogram(prefix + ".recommended", "items");
+            this.estimateTime = registry.GetHistogram(prefix + ".estimate", "us");
+            this.failures = registry.GetCounter(prefix + ".failures");
+        }
+
+        public IList<RecommendedItem> Recommend(Object userID, int howMany)
+        {
+            long start = recommendTime.Start();
+            IList<RecommendedItem> result;
+            try
+            {
+                result = recommender.Recommend(userID, howMany);
+            }
+            catch (Exception)
+            {
+                failures.Increment();
+                throw;
+            }
+            return Recorded(start, result);
+        }
+
+        public IList<RecommendedItem> Recommend(Object userID, int howMany, Rescorer<Item> rescorer)
+        {
+            long start = recommendTime.Start();
+            IList<RecommendedItem> result;
+            try
+            {
+                result = recommender.Recommend(userID, howMany, rescorer);
+            }
+            catch (Exception)
+            {
+                failures.Increment();
+                throw;
+            }
+            return Recorded(start, result);
+        }
+
+        public double EstimatePreference(Object userID, Object itemID)
+        {
+            long start = estimateTime.Start();
+            double result;
+            try
+            {
+                result = recommender.EstimatePreference(userID, itemID);
+            }
+            catch (Exception)
+            {
+                failures.Increment();
+                throw;
+            }
+            estimateTime.Stop(start);
+            return result;
+        }
+
+        public void SetPreference(Object userID, Object itemID, double value)
+        {
+            recommender.SetPreference(userID, itemID, value);
+        }
+
+        public void RemovePreference(Object userID, Object itemID)
+        {
+            recommender.RemovePreference(userID, itemID);
+        }
+
+        public DataModel DataModel
+        {
+            get { return recommender.DataModel; }
+        }
+
+        public void Refresh()
+        {
+            recommender.Refresh();
+        }
+
+        private IList<RecommendedItem> Recorded(long start, IList<RecommendedItem> result)
+        {
+            recommendTime.Stop(start);
+            recommendedCount.Record(result.Count);
+            return result;
+        }
+
+        public override String ToString()
+        {
+            return "MeteredRecommender[prefix:" + prefix + ", recommender:" + recommender + ']';
+        }
+    }
+
+}
@@ -30,7 +30,7 @@ namespace Taste.Recommender
     ///  
     /// @author Sean Owen
     /// </summary>
-	public class NearestNeighborClusterSimilarity : ClusterSimilarity 
+	public class NearestNeighborClusterSimilarity : LinkageClusterSimilarity 
 	{
 		private readonly UserCorrelation correlation;
 		private readonly double samplingPercentage;
@@ -107,6 +107,24 @@ namespace Taste.Recommender
 			return greatestCorrelation;
 		}
 
+        /// <summary>
+        /// Returns the largest of the two similarities, ignoring NaN. This matches recomputing
+        /// <see cref="GetSimilarity(ICollection{User}, ICollection{User})"/> on the merged cluster when every pair is
+        /// examined, and approximates it otherwise.
+        /// </summary>
+		public double GetMergedSimilarity(double similarity1, int size1, double similarity2, int size2)
+		{
+			if (double.IsNaN(similarity1))
+			{
+				return similarity2;
+			}
+			if (double.IsNaN(similarity2))
+			{
+				return similarity1;
+			}
+			return Math.Max(similarity1, similarity2);
+		}
+
 		/**
 		 * {@inheritDoc}
 		 */
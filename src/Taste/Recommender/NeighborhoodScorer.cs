@@ -0,0 +1,281 @@
+/*
+ * Copyright 2007 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+namespace Taste.Recommender
+{
+	using System;
+	using System.Collections.Generic;
+	using Taste.Common;
+	using Taste.Correlation;
+	using Taste.Model;
+
+
+    /// <summary>
+    /// <p>Scores all candidate items for a user from the user's neighborhood in one pass, for
+    /// <see cref="GenericUserBasedRecommender"/>. Each neighbor's preferences, ordered by item, are merged through a
+    /// heap of cursors, so a candidate's weighted sum is complete as soon as the merge moves past it; the user's own
+    /// preferences are walked alongside to skip items already rated. Each neighbor's weight is computed once, and
+    /// no per-item lookups are made, where scoring candidates one at a time costs a correlation and a preference
+    /// lookup per candidate and neighbor.</p>
+    ///
+    /// <p>Estimates are those of
+    /// <see cref="GenericUserBasedRecommender.EstimatePreference(Object, Object)"/>: neighbors' values averaged,
+    /// weighted by their correlation with the user plus one.</p>
+    ///
+    /// <p>Each thread keeps one scorer, from <see cref="ForThread"/>, and reuses its heap and cursors for every user it
+    /// scores, so a long-lived thread such as a <see cref="BatchRecommender"/> worker allocates them once per batch
+    /// rather than once per user. A scorer is not thread-safe.</p>
+    /// </summary>
+	internal sealed class NeighborhoodScorer
+	{
+		[ThreadStatic]
+		private static NeighborhoodScorer threadScorer;
+
+		private static readonly Cursor[] NO_CURSORS = new Cursor[0];
+
+		private Preference[] userPrefs;
+		private Cursor[] heap = NO_CURSORS;
+		private Cursor[] cursors = NO_CURSORS;
+		private int size;
+		private int userPosition;
+		private int numCandidates;
+		private bool inUse;
+
+		private NeighborhoodScorer()
+		{
+		}
+
+		/// <returns>this thread's scorer, set up to score for <code>theUser</code>, or a new one if this thread's
+		/// is still in use further up the stack. Pass it to <see cref="Release"/> when done.</returns>
+		internal static NeighborhoodScorer ForThread(User theUser,
+		                                            ICollection<User> theNeighborhood,
+		                                            UserCorrelation correlation)
+		{
+			NeighborhoodScorer scorer = threadScorer;
+			if (scorer == null || scorer.inUse)
+			{
+				scorer = new NeighborhoodScorer();
+				if (threadScorer == null)
+				{
+					threadScorer = scorer;
+				}
+			}
+			try
+			{
+				scorer.Reset(theUser, theNeighborhood, correlation);
+			}
+			catch
+			{
+				scorer.Release();
+				throw;
+			}
+			return scorer;
+		}
+
+		private void Reset(User theUser, ICollection<User> theNeighborhood, UserCorrelation correlation)
+		{
+			inUse = true;
+			userPrefs = SortedPreferences(theUser);
+			userPosition = 0;
+			numCandidates = 0;
+			size = 0;
+			int capacity = theNeighborhood.Count;
+			if (heap.Length < capacity)
+			{
+				heap = new Cursor[capacity];
+				Cursor[] newCursors = new Cursor[capacity];
+				Array.Copy(cursors, newCursors, cursors.Length);
+				cursors = newCursors;
+			}
+			foreach (User user in theNeighborhood)
+			{
+				if (!user.Equals(theUser))
+				{
+					Preference[] prefs = SortedPreferences(user);
+					if (prefs.Length > 0)
+					{
+						// A NaN weight still makes the neighbor's items candidates, but adds nothing to their scores
+						double weight = correlation.GetUserCorrelation(theUser, user) + 1.0;
+						Cursor cursor = cursors[size];
+						if (cursor == null)
+						{
+							cursor = new Cursor();
+							cursors[size] = cursor;
+						}
+						cursor.Reset(prefs, weight);
+						heap[size++] = cursor;
+					}
+				}
+			}
+			for (int i = size / 2 - 1; i >= 0; i--)
+			{
+				SiftDown(i);
+			}
+		}
+
+		/// <summary>
+		/// Lets go of the users' preferences, so a thread's scorer does not keep an old model's data reachable, and
+		/// makes the scorer available to its thread again.
+		/// </summary>
+		internal void Release()
+		{
+			userPrefs = null;
+			for (int i = 0; i < cursors.Length && cursors[i] != null; i++)
+			{
+				cursors[i].Reset(null, 0.0);
+			}
+			Array.Clear(heap, 0, heap.Length);
+			size = 0;
+			inUse = false;
+		}
+
+		/// <summary>Items preferred by some neighbor but not the user, and not rejected by an
+		/// <see cref="ItemFilter"/>; counted by <see cref="Collect"/></summary>
+		internal int NumCandidates
+		{
+			get { return numCandidates; }
+		}
+
+		/// <summary>
+		/// Offers every recommendable candidate that <code>rescorer</code> does not filter to
+		/// <code>topItems</code>, in item order, with its rescored estimate. Items rejected by the
+		/// <see cref="ItemFilter"/> of a <see cref="FilteringRescorer"/> are not scored at all.
+		/// </summary>
+		internal void Collect(TopNCollector<Item> topItems, Rescorer<Item> rescorer)
+		{
+			FilteringRescorer filtering = rescorer as FilteringRescorer;
+			ItemFilter filter = filtering == null ? null : filtering.Filter;
+			rescorer = FilteringRescorer.Unfiltered(rescorer);
+			while (size > 0)
+			{
+				Item item = heap[0].Current.Item;
+				bool allowed = filter == null || filter.IsAllowed(item.ID);
+				double preference = 0.0;
+				double totalWeight = 0.0;
+				do
+				{
+					Cursor cursor = heap[0];
+					if (allowed && !Double.IsNaN(cursor.weight))
+					{
+						preference += cursor.weight * cursor.Current.Value;
+						totalWeight += cursor.weight;
+					}
+					if (++cursor.position == cursor.prefs.Length)
+					{
+						heap[0] = heap[--size];
+						heap[size] = null;
+					}
+					if (size > 0)
+					{
+						SiftDown(0);
+					}
+				} while (size > 0 && heap[0].Current.Item.CompareTo(item) == 0);
+
+				if (allowed && !RatedByUser(item))
+				{
+					numCandidates++;
+					if (item.IsRecommendable && !rescorer.IsFiltered(item))
+					{
+						double estimate = totalWeight == 0.0 ? Double.NaN : preference / totalWeight;
+						topItems.Offer(item, rescorer.Rescore(item, estimate));
+					}
+				}
+			}
+		}
+
+		/// <summary>
+		/// Advances through the user's preferences to <code>item</code>; items must be asked for in order.
+		/// </summary>
+		private bool RatedByUser(Item item)
+		{
+			while (userPosition < userPrefs.Length)
+			{
+				int comparison = userPrefs[userPosition].Item.CompareTo(item);
+				if (comparison == 0)
+				{
+					return true;
+				}
+				if (comparison > 0)
+				{
+					return false;
+				}
+				userPosition++;
+			}
+			return false;
+		}
+
+		private void SiftDown(int index)
+		{
+			Cursor cursor = heap[index];
+			int half = size / 2;
+			while (index < half)
+			{
+				int child = 2 * index + 1;
+				if (child + 1 < size && heap[child + 1].Current.Item.CompareTo(heap[child].Current.Item) < 0)
+				{
+					child++;
+				}
+				if (heap[child].Current.Item.CompareTo(cursor.Current.Item) >= 0)
+				{
+					break;
+				}
+				heap[index] = heap[child];
+				index = child;
+			}
+			heap[index] = cursor;
+		}
+
+		/// <returns>the user's preferences ordered by item, copied only if they are not already</returns>
+		private static Preference[] SortedPreferences(User user)
+		{
+			Preference[] prefs = user.GetPreferencesAsArray();
+			for (int i = 1; i < prefs.Length; i++)
+			{
+				if (prefs[i - 1].Item.CompareTo(prefs[i].Item) > 0)
+				{
+					Preference[] sorted = (Preference[]) prefs.Clone();
+					Array.Sort(sorted, ByItemPreferenceComparer.Instance);
+					return sorted;
+				}
+			}
+			return prefs;
+		}
+
+		#region Helper classes
+
+		private sealed class Cursor
+		{
+			internal Preference[] prefs;
+			internal double weight;
+			internal int position;
+
+			internal void Reset(Preference[] prefs, double weight)
+			{
+				this.prefs = prefs;
+				this.weight = weight;
+				this.position = 0;
+			}
+
+			internal Preference Current
+			{
+				get { return prefs[position]; }
+			}
+		}
+
+		#endregion
+	}
+
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2005 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+namespace Taste.Recommender
+{
+    using System;
+    using System.Collections.Generic;
+
+
+    /// <summary>
+    /// <p>Receives recommendations produced by a <see cref="taste.Recommender.BatchRecommender">BatchRecommender</see>.
+    /// Calls are serialized by the caller, so implementations need not be thread-safe.</p>
+    /// </summary>
+    public interface RecommendationSink
+    {
+        /// <param name="userID">user the recommendations are for</param>
+        /// <param name="recommendations">recommended items, best first; may be empty</param>
+        void Write(Object userID, IList<RecommendedItem> recommendations);
+
+        /// <summary>
+        /// Makes everything written so far durable (flushes buffers, commits a transaction, and so on).
+        /// Called periodically and once at the end of a batch.
+        /// </summary>
+        void Flush();
+    }
+
+}
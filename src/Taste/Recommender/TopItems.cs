@@ -48,150 +48,82 @@ namespace Taste.Recommender
 		                                                Estimator<Item> estimator) 
 		{
 			if (allItems == null || rescorer == null || estimator == null) 
-            {
+			{
 				throw new ArgumentNullException("argument is null");
 			}
-
-            LinkedList<RecommendedItem> topItems = new LinkedList<RecommendedItem>();
-
-			bool full = false;
-
+			TopNCollector<Item> topItems = new TopNCollector<Item>(howMany);
 			foreach (Item item in allItems) 
 			{
-				if (item.IsRecommendable && !rescorer.IsFiltered(item)) 
-				{
-					double preference = estimator.Estimate(item);
-					double rescoredPref = rescorer.Rescore(item, preference);
-                    LinkedListNode<RecommendedItem> node = topItems.Last;
-
-    				if (!Double.IsNaN(rescoredPref) && 
-                        (!full || rescoredPref > node.Value.Value)) 
-					{
-
-	    				// I think this is faster than Collections.binarySearch() over a LinkedList since our
-    					// comparisons are cheap, which binarySearch() economizes at the expense of more traversals.
-		    			// We also know that the right position tends to be at the end of the list.
-					    while (node != null && node.Previous != null) 
-                        {
-                            node = node.Previous;
-						    if (rescoredPref <= node.Value.Value) 
-                            {
-                                node = node.Next;
-							    break;
-						    }
-
-                            if (node == topItems.First)
-                                break;
-					    }
-
-                        RecommendedItem newItem = new GenericRecommendedItem(item, rescoredPref);
-
-                        if (node == null)
-                        {
-                            topItems.AddFirst(newItem);
-                        }
-                        else if (topItems.Count == 1)
-                        {
-                            // special handling in this case is to avoid problems
-                            // with negative preferences. Imagine -0.3 being added
-                            // first followed by -0.6. If we simply did AddAfter,
-                            // those items would be out of sequence - cc
-                            if (rescoredPref > node.Value.Value)
-                                topItems.AddAfter(node, newItem);
-                            else
-                                topItems.AddBefore(node, newItem);
-
-                        }
-                        else
-                        {
-                            topItems.AddAfter(node, newItem);
-                        }
+				OfferItem(topItems, item, -1L, rescorer, estimator);
+			}
+			return ToRecommendedItems(topItems);
+		}
 
-                        if (full)
-                        {
-                            topItems.RemoveLast();
-                        }
-                        else if (topItems.Count > howMany)
-                        {
-                            full = true;
-                            topItems.RemoveLast();
-                        }
-					}
+		/// <summary>
+		/// <p>Like <see cref="GetTopItems(int, IEnumerable{Item}, Rescorer{Item}, Estimator{Item})"/>, but scores
+		/// up to <code>numThreads</code> contiguous partitions of the candidates at once, on the calling thread and
+		/// <see cref="System.Threading.ThreadPool"/> threads (see
+		/// <see cref="taste.Common.ParallelUtils.FanOut(int, int, Action{int})">ParallelUtils.FanOut()</see>), each into its own
+		/// <see cref="taste.Common.TopNCollector">TopNCollector</see>, and merges those at the end. The result, ties
+		/// included, is the same as the single-threaded version. The given
+		/// <see cref="taste.Recommender.Rescorer">Rescorer</see> and <see cref="Estimator{T}">Estimator</see> must be
+		/// safe to call from several threads at once.</p>
+		/// </summary>
+		public static IList<RecommendedItem> GetTopItems(int howMany,
+		                                                IEnumerable<Item> allItems,
+		                                                Rescorer<Item> rescorer,
+		                                                Estimator<Item> estimator,
+		                                                int numThreads)
+		{
+			if (allItems == null || rescorer == null || estimator == null)
+			{
+				throw new ArgumentNullException("argument is null");
+			}
+			if (numThreads <= 1)
+			{
+				return GetTopItems(howMany, allItems, rescorer, estimator);
+			}
+			Item[] candidates = new List<Item>(allItems).ToArray();
+			int partitions = Math.Min(numThreads, candidates.Length);
+			if (partitions <= 1)
+			{
+				return GetTopItems(howMany, candidates, rescorer, estimator);
+			}
+			TopNCollector<Item>[] partials = new TopNCollector<Item>[partitions];
+			ParallelUtils.FanOut(partitions, partitions, delegate(int partition)
+			{
+				int from = (int) ((long) candidates.Length * partition / partitions);
+				int to = (int) ((long) candidates.Length * (partition + 1) / partitions);
+				TopNCollector<Item> partial = new TopNCollector<Item>(howMany);
+				for (int i = from; i < to; i++)
+				{
+					OfferItem(partial, candidates[i], i, rescorer, estimator);
 				}
+				partials[partition] = partial;
+			});
+			TopNCollector<Item> topItems = partials[0];
+			for (int i = 1; i < partitions; i++)
+			{
+				topItems.Merge(partials[i]);
 			}
-
-            List<RecommendedItem> result = new List<RecommendedItem>(topItems.Count);
-            foreach (RecommendedItem item in topItems)
-            {
-                result.Add(item);
-            }
-            return result;
+			return ToRecommendedItems(topItems);
 		}
 
-		
 		public static List<User> GetTopUsers(int howMany,
 		                                     IEnumerable<User> allUsers,
 		                                     Rescorer<User> rescorer,
 		                                     Estimator<User> estimator) 
-        {
-			LinkedList<SimilarUser> topUsers = new LinkedList<SimilarUser>();
-			bool full = false;
+		{
+			TopNCollector<User> topUsers = new TopNCollector<User>(howMany);
 			foreach (User user in allUsers) 
 			{
-                if (rescorer.IsFiltered(user))
-                    continue;
-
-				double similarity = estimator.Estimate(user);
-				double rescoredSimilarity = rescorer.Rescore(user, similarity);
-
-                LinkedListNode<SimilarUser> node = topUsers.Last;
-				if (!double.IsNaN(rescoredSimilarity) &&
-				    (!full || rescoredSimilarity > node.Value.Similarity)) 
-                {
-
-                    //SimilarUser _user = new SimilarUser(user, similarity);
-                    SimilarUser _user = new SimilarUser(user, rescoredSimilarity);
-                    if (node == null)
-                    {
-                        topUsers.AddLast(_user);
-                    }
-                    else if (node.Previous == null) // 1 node
-                    {
-                        if (rescoredSimilarity > node.Value.Similarity)
-                            topUsers.AddAfter(node, _user);
-                        else
-                            topUsers.AddBefore(node, _user);
-                    }
-                    else
-                    {
-                        while (node != null && node.Previous != null && (node != topUsers.First))
-                        {
-                            node = node.Previous;
-                            if (rescoredSimilarity <= node.Value.Similarity)
-                            {
-                                topUsers.AddBefore(node, _user);
-                                break;
-                            }
-                        }
-                    }
-					if (full) 
-                    {
-						topUsers.RemoveLast();
-					} 
-                    else if (topUsers.Count > howMany) 
-                    {
-						full = true;
-						topUsers.RemoveLast();
-					}
+				if (!rescorer.IsFiltered(user))
+				{
+					double similarity = estimator.Estimate(user);
+					topUsers.Offer(user, rescorer.Rescore(user, similarity));
 				}
 			}
-
-			List<User> result = new List<User>(topUsers.Count);
-			foreach (SimilarUser similarUser in topUsers) 
-			{
-				result.Add(similarUser.User);
-			}
-			return result;
+			return topUsers.Drain();
 		}
 
 
@@ -204,52 +136,49 @@ namespace Taste.Recommender
 	    public static IList<GenericItemCorrelation.ItemItemCorrelation> GetTopItemItemCorrelations(
           int howMany, IEnumerable<GenericItemCorrelation.ItemItemCorrelation> allCorrelations) 
         {
-		    LinkedList<GenericItemCorrelation.ItemItemCorrelation> topCorrelations = new LinkedList<GenericItemCorrelation.ItemItemCorrelation>();
-		    bool full = false;
+		    TopNCollector<GenericItemCorrelation.ItemItemCorrelation> topCorrelations =
+		        new TopNCollector<GenericItemCorrelation.ItemItemCorrelation>(howMany);
 		    foreach (GenericItemCorrelation.ItemItemCorrelation correlation in allCorrelations) 
             {
-			    double value = correlation.Value;
-			    if (!full || value > topCorrelations.Last.Value.Value) 
-                {
-
-                    LinkedListNode<GenericItemCorrelation.ItemItemCorrelation> node = topCorrelations.Last;
-                    while (node != null && node.Previous != null) 
-                    {
-                        node = node.Previous;
-					    if (value <= node.Value.Value) 
-                        {
-                            node = node.Next;
-						    break;
-					    }
-
-                        if (node == topCorrelations.First)
-                            break;
-				    }
-
-                    if (node == null || topCorrelations.Count == 0)
-                    {
-                        topCorrelations.AddFirst(correlation);
-                    }
-                    else
-                    {
-                        topCorrelations.AddAfter(node, correlation);
-                    }
-
-				    if (full) 
-                    {
-					    topCorrelations.RemoveLast();
-				    } 
-                    else if (topCorrelations.Count > howMany) 
-                    {
-					    full = true;
-					    topCorrelations.RemoveLast();
-				    }
-			    }
+			    topCorrelations.Offer(correlation, correlation.Value);
 		    }
-            List<GenericItemCorrelation.ItemItemCorrelation> result = new List<GenericItemCorrelation.ItemItemCorrelation>(topCorrelations);
-            return result;
+		    return topCorrelations.Drain();
 	    }
 
+		/// <param name="sequence">candidate's position, or -1 to number it after the previous one</param>
+		private static void OfferItem(TopNCollector<Item> topItems,
+		                              Item item,
+		                              long sequence,
+		                              Rescorer<Item> rescorer,
+		                              Estimator<Item> estimator)
+		{
+			if (item.IsRecommendable && !rescorer.IsFiltered(item))
+			{
+				double preference = estimator.Estimate(item);
+				double rescoredPref = rescorer.Rescore(item, preference);
+				if (sequence < 0L)
+				{
+					topItems.Offer(item, rescoredPref);
+				}
+				else
+				{
+					topItems.Offer(item, rescoredPref, sequence);
+				}
+			}
+		}
+
+		internal static IList<RecommendedItem> ToRecommendedItems(TopNCollector<Item> topItems)
+		{
+			double[] values;
+			Item[] items = topItems.Drain(out values);
+			List<RecommendedItem> result = new List<RecommendedItem>(items.Length);
+			for (int i = 0; i < items.Length; i++)
+			{
+				result.Add(new GenericRecommendedItem(items[i], values[i]));
+			}
+			return result;
+		}
+
 		// Hmm, should this be exposed publicly like {@link taste.Recommender.RecommendedItem}?
 		public class SimilarUser : User 
 		{	
@@ -16,7 +16,7 @@
 namespace Taste.Recommender
 {
 	using System;
-    using System.Diagnostics;
+    using System.Threading;
     using Iesi.Collections.Generic;
 	using System.Collections.Generic;
 	using Taste.Common;
@@ -36,10 +36,16 @@ namespace Taste.Recommender
     ///       to estimate preference for an {@link Item} for which no preference is expressed in the {@link User}s in
     ///       the cluster.</li>
     /// </ul>
+    /// <p>Clusters are built by an <see cref="taste.Recommender.AgglomerativeClusterer">AgglomerativeClusterer</see>,
+    /// which keeps a similarity matrix for models of up to
+    /// <see cref="taste.Recommender.AgglomerativeClusterer.DEFAULT_MAX_USERS">DEFAULT_MAX_USERS</see> users, and
+    /// falls back to an exhaustive search over cluster pairs for larger ones.
+    /// Once built, they are replaced as a whole, so <see cref="Refresh()"/> and
+    /// <see cref="RefreshInBackground()"/> never hold up recommendations from the previous clusters.</p>
     /// 
     /// @author Sean Owen
     /// </summary>
-	public class TreeClusteringRecommender : AbstractRecommender, ClusteringRecommender 
+	public class TreeClusteringRecommender : AbstractRecommender, ClusteringRecommender, MemoryAccountable
     {
 
 		private static ILog log = LogManager.GetLogger(typeof(TreeClusteringRecommender).Name);
@@ -48,11 +54,9 @@ namespace Taste.Recommender
 		private readonly int numClusters;
 		private readonly double clusteringThreshold;
 		private readonly bool clusteringByThreshold;
-		private readonly double samplingPercentage;
+		private readonly AgglomerativeClusterer clusterer;
 		
-		private Dictionary<Object, IList<RecommendedItem>> topRecsByUserID;		
-		private Dictionary<Object, ICollection<User>> clustersByUserID;
-		private bool clustersBuilt;
+		private volatile Clusters clusters;
 		
 		private readonly ReentrantLock refreshLock;
 		
@@ -104,7 +108,7 @@ namespace Taste.Recommender
 			this.numClusters = numClusters;
 			this.clusteringThreshold = Double.NaN;
 			this.clusteringByThreshold = false;
-			this.samplingPercentage = samplingPercentage;
+			this.clusterer = new AgglomerativeClusterer(clusterSimilarity, samplingPercentage, ParallelUtils.DefaultThreads);
 			this.refreshLock = new ReentrantLock();
 			this.buildClustersLock = new ReentrantLock();
 		}
@@ -166,7 +170,7 @@ namespace Taste.Recommender
 			this.numClusters = int.MinValue;
 			this.clusteringThreshold = clusteringThreshold;
 			this.clusteringByThreshold = true;
-			this.samplingPercentage = samplingPercentage;
+			this.clusterer = new AgglomerativeClusterer(clusterSimilarity, samplingPercentage, ParallelUtils.DefaultThreads);
 			this.refreshLock = new ReentrantLock();
 			this.buildClustersLock = new ReentrantLock();
 		}
@@ -183,7 +187,7 @@ namespace Taste.Recommender
 			if (howMany < 1) {
 				throw new ArgumentException("howMany must be at least 1");
 			}
-			CheckClustersBuilt();
+			Clusters current = CheckClustersBuilt();
 
 			if (log.IsDebugEnabled) 
             {
@@ -191,7 +195,7 @@ namespace Taste.Recommender
 			}
 
             IList<RecommendedItem> recommended;
-            if (!topRecsByUserID.TryGetValue(userID, out recommended))
+            if (!current.topRecsByUserID.TryGetValue(userID, out recommended))
             {
                 return new List<RecommendedItem>();
 			}
@@ -229,10 +233,10 @@ namespace Taste.Recommender
             {
 				return actualPref.Value;
 			}
-			CheckClustersBuilt();
+			Clusters current = CheckClustersBuilt();
 
             IList<RecommendedItem> topRecsForUser = null;
-            if (topRecsByUserID.TryGetValue(userID, out topRecsForUser))
+            if (current.topRecsByUserID.TryGetValue(userID, out topRecsForUser))
             {
 				foreach (RecommendedItem item in topRecsForUser) 
                 {
@@ -256,10 +260,10 @@ namespace Taste.Recommender
 			{
 				throw new ArgumentNullException("userID is null");
 			}
-			CheckClustersBuilt();
+			Clusters current = CheckClustersBuilt();
 
             ICollection<User> cluster = null;
-            if (!clustersByUserID.TryGetValue(userID, out cluster))
+            if (!current.clustersByUserID.TryGetValue(userID, out cluster))
             {
                 return new List<User>();
 			} else {
@@ -267,143 +271,59 @@ namespace Taste.Recommender
 			}
 		}
 
-		private void CheckClustersBuilt() 
+		private Clusters CheckClustersBuilt() 
 		{
-			if (!clustersBuilt) {
-				BuildClusters();
+			Clusters current = clusters;
+			if (current == null) 
+			{
+				BuildClusters(false);
+				current = clusters;
 			}
+			return current;
 		}
 
-
-        private void AddAll(ICollection<User> dest, ICollection<User> src)
-        {
-            foreach (User user in src)
-                dest.Add(user);
-        }
-
-		private void BuildClusters() 
+        /// <param name="rebuild">if false, does nothing when another thread has built clusters meanwhile</param>
+		private void BuildClusters(bool rebuild) 
         {
 			try 
 			{
 				buildClustersLock.Lock();
-				int numUsers = this.DataModel.GetNumUsers();
-				if (numUsers > 0) 
-                {
-					List<ICollection<User>> newClusters = new List<ICollection<User>>(numUsers);
-					if (numUsers == 1) 
-                    {
-                        IEnumerable<User> users = this.DataModel.GetUsers();
-                        User onlyUser = null;
-                        foreach (User user in users)
-                        {
-                            onlyUser = user;
-                            break;
-                        }
-                        List<User> single = new List<User>(1);
-                        single.Add(onlyUser);
-						newClusters.Add(single);
-					} else {
-						// Begin with a cluster for each user:
-						foreach (User user in this.DataModel.GetUsers()) 
-						{
-							ICollection<User> newCluster = new HashedSet<User>();
-							newCluster.Add(user);
-							newClusters.Add(newCluster);
-						}
-						if (clusteringByThreshold) 
-                        {
-							Pair<ICollection<User>, ICollection<User>> nearestPair = FindNearestClusters(newClusters);
-							if (nearestPair != null) 
-                            {
-								ICollection<User> cluster1 = nearestPair.First;
-								ICollection<User> cluster2 = nearestPair.Second;
-								while (clusterSimilarity.GetSimilarity(cluster1, cluster2) >= clusteringThreshold) 
-                                {
-									newClusters.Remove(cluster1);
-									newClusters.Remove(cluster2);
-									HashedSet<User> merged = new HashedSet<User>(/*cluster1.Count + cluster2.Count*/);
-									merged.AddAll(cluster1);
-									merged.AddAll(cluster2);
-									newClusters.Add(merged);
-									nearestPair = FindNearestClusters(newClusters);
-									if (nearestPair == null) {
-										break;
-									}
-									cluster1 = nearestPair.First;
-									cluster2 = nearestPair.Second;
-								}
-							}
-						} else {
-							while (newClusters.Count > numClusters) 
-                            {
-								Pair<ICollection<User>, ICollection<User>> nearestPair =
-									FindNearestClusters(newClusters);
-								if (nearestPair == null) 
-                                {
-									break;
-								}
-								ICollection<User> cluster1 = nearestPair.First;
-								ICollection<User> cluster2 = nearestPair.Second;
-								newClusters.Remove(cluster1);
-								newClusters.Remove(cluster2);
-								HashedSet<User> merged = new HashedSet<User>(/*cluster1.Count + cluster2.Count*/);
-								merged.AddAll(cluster1);
-								merged.AddAll(cluster2);
-								newClusters.Add(merged);
-							}
-						}
-					}
-					topRecsByUserID = ComputeTopRecsPerUserID(newClusters);
-					clustersByUserID = ComputeClustersPerUserID(newClusters);
-				} 
-                else 
-                {
-					topRecsByUserID = new Dictionary<object,IList<RecommendedItem>>();
-					clustersByUserID = new Dictionary<object,ICollection<User>>();
+				if (!rebuild && clusters != null)
+				{
+					return;
+				}
+				IList<ICollection<User>> newClusters;
+				if (clusteringByThreshold) 
+				{
+					newClusters = clusterer.ClusterByThreshold(this.DataModel.GetUsers(), clusteringThreshold);
 				}
-				clustersBuilt = true;
+				else
+				{
+					newClusters = clusterer.Cluster(this.DataModel.GetUsers(), numClusters);
+				}
+				Dictionary<Object, IList<RecommendedItem>> topRecsByUserID = ComputeTopRecsPerUserID(newClusters);
+				// Readers keep using the old clusters until this assignment
+				clusters = new Clusters(topRecsByUserID, ComputeClustersPerUserID(newClusters),
+				                        EstimateBytes(newClusters, topRecsByUserID));
+				MemoryBudget.Default.Track(ToString(), this, clusters.estimatedBytes);
 			} finally {
 				buildClustersLock.Unlock();
 			}
 		}
 
-		private Pair<ICollection<User>, ICollection<User>> FindNearestClusters(List<ICollection<User>> clusters)
-		{
-			//Debug.Assert(buildClustersLock.isHeldByCurrentThread());
-
-			int size = clusters.Count;
-			Debug.Assert(size >= 2);
-			Pair<ICollection<User>, ICollection<User>> nearestPair = null;
-			double bestSimilarity = Double.NegativeInfinity;
-			Random r = RandomUtils.GetRandom();
-			for (int i = 0; i < size; i++) {
-				ICollection<User> cluster1 = clusters[i];
-				for (int j = i + 1; j < size; j++) {
-					if (samplingPercentage >= 1.0 || r.NextDouble() < samplingPercentage) 
-					{
-						ICollection<User> cluster2 = clusters[j];
-						double similarity = clusterSimilarity.GetSimilarity(cluster1, cluster2);
-						if (!double.IsNaN(similarity) && similarity > bestSimilarity) 
-						{
-							bestSimilarity = similarity;
-							nearestPair = new Pair<ICollection<User>, ICollection<User>>(cluster1, cluster2);
-						}
-					}
-				}
-			}
-			return nearestPair;
-		}
-
-		
 		private static Dictionary<Object, IList<RecommendedItem>> ComputeTopRecsPerUserID(
-				IEnumerable<ICollection<User>> clusters) {
+				IList<ICollection<User>> clusters) {
+			IList<RecommendedItem>[] recsPerCluster = new IList<RecommendedItem>[clusters.Count];
+			ParallelUtils.For(0, clusters.Count, ParallelUtils.DefaultThreads, delegate(int i)
+			{
+				recsPerCluster[i] = ComputeTopRecsForCluster(clusters[i]);
+			});
 			Dictionary<Object, IList<RecommendedItem>> recsPerUser = new Dictionary<Object, IList<RecommendedItem>>();
-			foreach (ICollection<User> cluster in clusters) 
+			for (int i = 0; i < clusters.Count; i++) 
             {
-				IList<RecommendedItem> recs = ComputeTopRecsForCluster(cluster);
-				foreach (User user in cluster) 
+				foreach (User user in clusters[i]) 
                 {
-					recsPerUser.Add(user.ID, recs);
+					recsPerUser.Add(user.ID, recsPerCluster[i]);
 				}
 			}
 			//return Collections.unmodifiableMap(recsPerUser);
@@ -451,6 +371,41 @@ namespace Taste.Recommender
 			return clustersPerUser;
 		}
 
+		/// <summary>
+		/// Estimated bytes of the current clusters and their recommendations, or 0 until they are built
+		/// </summary>
+		public long EstimatedBytes
+		{
+			get
+			{
+				Clusters current = clusters;
+				return current == null ? 0L : current.estimatedBytes;
+			}
+		}
+
+		/// <returns>estimated bytes of the clusters' user sets and recommendations, and of the maps from user to
+		/// them; the users themselves belong to the data model</returns>
+		private static long EstimateBytes(IList<ICollection<User>> clusters,
+		                                  Dictionary<Object, IList<RecommendedItem>> topRecsByUserID)
+		{
+			int r = MemoryBudget.REFERENCE_BYTES;
+			long bytes = 0L;
+			long numUsers = 0L;
+			foreach (ICollection<User> cluster in clusters)
+			{
+				bytes += MemoryBudget.DictionaryBytes(cluster.Count, r, r);
+				numUsers += cluster.Count;
+				// The cluster's users share one list of recommendations
+				foreach (User user in cluster)
+				{
+					long numRecs = topRecsByUserID[user.ID].Count;
+					bytes += MemoryBudget.ArrayBytes(numRecs, r) + numRecs * MemoryBudget.ObjectBytes(r + 8);
+					break;
+				}
+			}
+			return bytes + 2 * MemoryBudget.DictionaryBytes(numUsers, r, r);
+		}
+
 		/**
 		 * {@inheritDoc}
 		 */
@@ -464,7 +419,7 @@ namespace Taste.Recommender
                     clusterSimilarity.Refresh();
                     try
                     {
-                        BuildClusters();
+                        BuildClusters(true);
                     }
                     catch (TasteException te)
                     {
@@ -478,12 +433,51 @@ namespace Taste.Recommender
             }
 		}
 
+		/// <summary>
+		/// Starts <see cref="Refresh()"/> on a thread-pool thread and returns at once. Recommendations keep
+		/// coming from the current clusters until the new ones are ready. Does nothing if a refresh is
+		/// already running.
+		/// </summary>
+		public void RefreshInBackground()
+		{
+			ThreadPool.QueueUserWorkItem(delegate(Object state)
+			{
+				try
+				{
+					Refresh();
+				}
+				catch (Exception e)
+				{
+					log.Warn("Unexpected exception while refreshing in background", e);
+				}
+			});
+		}
+
 		
 		public override String ToString() 
         {
 			return "TreeClusteringRecommender[clusterSimilarity:" + clusterSimilarity + ']';
 		}
 
+		/// <summary>
+		/// Everything derived from one clustering; replaced as a whole on rebuild.
+		/// </summary>
+		private sealed class Clusters
+		{
+			internal readonly Dictionary<Object, IList<RecommendedItem>> topRecsByUserID;
+			internal readonly Dictionary<Object, ICollection<User>> clustersByUserID;
+			internal readonly long estimatedBytes;
+
+			internal Clusters(Dictionary<Object, IList<RecommendedItem>> topRecsByUserID,
+			                  Dictionary<Object, ICollection<User>> clustersByUserID,
+			                  long estimatedBytes)
+			{
+				this.topRecsByUserID = topRecsByUserID;
+				this.clustersByUserID = clustersByUserID;
+				this.estimatedBytes = estimatedBytes;
+			}
+		}
+
 		private class Estimator : TopItems.Estimator<Item> 
         {			
 			private readonly ICollection<User> cluster;
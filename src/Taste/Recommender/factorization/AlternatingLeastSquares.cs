@@ -0,0 +1,515 @@
+/*
+ * Copyright 2007 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+namespace Taste.Recommender.Factorization
+{
+	using System;
+	using System.Collections.Generic;
+	using System.Threading;
+	using Taste.Common;
+	using Taste.Model;
+	using log4net;
+
+
+    /// <summary>
+    /// <p>Learns a <see cref="FactorModel"/> by alternating least squares: holding item vectors fixed, each user's
+    /// vector is the exact regularized least-squares fit to the user's preferences, and then the other way around,
+    /// for a given number of iterations. Each half-iteration solves one small <code>NumFeatures</code> square
+    /// system per user or item, independently of the others, so the solves are spread over
+    /// <code>NumThreads</code> threads.</p>
+    ///
+    /// <p>With explicit feedback, preference values are ratings to be reproduced, and each vector is regularized
+    /// in proportion to its number of ratings, as in Zhou et al., <a
+    /// href="http://dx.doi.org/10.1007/978-3-540-68880-8_32">Large-scale Parallel Collaborative Filtering for the
+    /// Netflix Prize</a>. With implicit feedback, a positive value only means the user likes the item, with
+    /// confidence <code>1 + Alpha * value</code>, and every item the user has no preference for counts as a
+    /// weak dislike, as in Hu, Koren and Volinsky, <a href="http://dx.doi.org/10.1109/ICDM.2008.22">Collaborative
+    /// Filtering for Implicit Feedback Datasets</a>.</p>
+    ///
+    /// <p>Instances only hold settings, and are safe to share between threads.</p>
+    /// </summary>
+	public sealed class AlternatingLeastSquares
+	{
+		private static readonly ILog log = LogManager.GetLogger(typeof(AlternatingLeastSquares));
+
+		private readonly int numFeatures;
+		private readonly double lambda;
+		private readonly int numIterations;
+		private readonly bool implicitFeedback;
+		private readonly double alpha;
+		private readonly int numThreads;
+
+		/// <summary>Explicit-feedback factorization on all processors</summary>
+		public AlternatingLeastSquares(int numFeatures, double lambda, int numIterations)
+			: this(numFeatures, lambda, numIterations, false, 0.0, ParallelUtils.DefaultThreads)
+		{
+		}
+
+		/// <param name="numFeatures">length of each user and item vector</param>
+		/// <param name="lambda">regularization weight; must be positive</param>
+		/// <param name="numIterations">number of times to solve for all users and then all items</param>
+		/// <param name="implicitFeedback">whether values are strengths of implicit feedback rather than
+		/// ratings</param>
+		/// <param name="alpha">confidence gained per unit of implicit feedback; ignored for explicit
+		/// feedback</param>
+		/// <param name="numThreads">threads to train with</param>
+		public AlternatingLeastSquares(int numFeatures,
+		                               double lambda,
+		                               int numIterations,
+		                               bool implicitFeedback,
+		                               double alpha,
+		                               int numThreads)
+		{
+			if (numFeatures < 1)
+			{
+				throw new ArgumentException("numFeatures must be at least 1");
+			}
+			if (Double.IsNaN(lambda) || lambda <= 0.0)
+			{
+				throw new ArgumentException("lambda must be positive");
+			}
+			if (numIterations < 1)
+			{
+				throw new ArgumentException("numIterations must be at least 1");
+			}
+			if (implicitFeedback && (Double.IsNaN(alpha) || alpha <= 0.0))
+			{
+				throw new ArgumentException("alpha must be positive");
+			}
+			if (numThreads < 1)
+			{
+				throw new ArgumentException("numThreads must be at least 1");
+			}
+			this.numFeatures = numFeatures;
+			this.lambda = lambda;
+			this.numIterations = numIterations;
+			this.implicitFeedback = implicitFeedback;
+			this.alpha = alpha;
+			this.numThreads = numThreads;
+		}
+
+		public int NumFeatures
+		{
+			get { return numFeatures; }
+		}
+
+		public double Lambda
+		{
+			get { return lambda; }
+		}
+
+		public int NumIterations
+		{
+			get { return numIterations; }
+		}
+
+		public bool ImplicitFeedback
+		{
+			get { return implicitFeedback; }
+		}
+
+		public double Alpha
+		{
+			get { return alpha; }
+		}
+
+		public int NumThreads
+		{
+			get { return numThreads; }
+		}
+
+		/// <summary>
+		/// Factorizes all of the model's preferences. Item vectors start out small and random, from
+		/// <see cref="taste.Common.RandomUtils.GetRandom()">RandomUtils.GetRandom()</see>; the result does not
+		/// depend on the number of threads.
+		/// </summary>
+		public FactorModel Train(DataModel dataModel)
+		{
+			if (dataModel == null)
+			{
+				throw new ArgumentNullException("dataModel is null");
+			}
+			return Train(dataModel, IDIndex.ForUsers(dataModel), IDIndex.ForItems(dataModel));
+		}
+
+		/// <summary>
+		/// Factorizes the preferences of the indexed users for the indexed items, laying out preference rows and
+		/// factor vectors in index order. Indices from <see cref="IDOrdering.ByCoRating"/> keep the vectors each
+		/// solve reads close together, which speeds up training on large models and also serving from the result.
+		/// The starting item vectors are drawn in index order, so different orders give different, equally good
+		/// models.
+		/// </summary>
+		public FactorModel Train(DataModel dataModel, IDIndex userIndex, IDIndex itemIndex)
+		{
+			if (dataModel == null || userIndex == null || itemIndex == null)
+			{
+				throw new ArgumentNullException("dataModel or index is null");
+			}
+			long start = TasteEvents.Start();
+			Ratings byUser = Ratings.ForUsers(dataModel, userIndex, itemIndex);
+			Ratings byItem = byUser.Transpose(itemIndex.Count);
+
+			float[] userFactors = new float[userIndex.Count * numFeatures];
+			float[] itemFactors = new float[itemIndex.Count * numFeatures];
+			Random random = RandomUtils.GetRandom();
+			for (int i = 0; i < itemFactors.Length; i++)
+			{
+				itemFactors[i] = (float) (random.NextDouble() * 0.1);
+			}
+
+			for (int iteration = 0; iteration < numIterations; iteration++)
+			{
+				SolveAll(byUser, itemFactors, itemIndex.Count, userFactors);
+				SolveAll(byItem, userFactors, userIndex.Count, itemFactors);
+				if (log.IsDebugEnabled)
+				{
+					log.Debug("Finished iteration " + (iteration + 1) + " of " + numIterations);
+				}
+			}
+			log.Info("Factorized " + byUser.NumValues + " preferences of " + userIndex.Count + " users and " +
+			         itemIndex.Count + " items");
+			TasteEvents.ModelLoaded("AlternatingLeastSquares", false, byUser.NumValues, start);
+			return new FactorModel(userIndex, itemIndex, numFeatures, userFactors, itemFactors);
+		}
+
+		/// <summary>
+		/// Fits a vector for a user, new or not, to the given preferences, holding <code>model</code>'s item
+		/// vectors fixed, as one half-iteration of training would. Preferences for items the model does not
+		/// know are ignored.
+		/// </summary>
+		public float[] FoldIn(FactorModel model, Preference[] prefs)
+		{
+			if (model == null || prefs == null)
+			{
+				throw new ArgumentNullException("model or prefs is null");
+			}
+			if (model.NumFeatures != numFeatures)
+			{
+				throw new ArgumentException("Model has " + model.NumFeatures + " features, not " + numFeatures);
+			}
+			IDIndex itemIndex = model.ItemIndex;
+			int[] indices = new int[prefs.Length];
+			float[] values = new float[prefs.Length];
+			int count = 0;
+			foreach (Preference pref in prefs)
+			{
+				int item = itemIndex.IndexOf(pref.Item.ID);
+				if (item >= 0)
+				{
+					indices[count] = item;
+					values[count] = (float) pref.Value;
+					count++;
+				}
+			}
+			float[] vector = new float[numFeatures];
+			new Solver(this).Solve(indices, values, count, model.ItemFactors,
+			                       implicitFeedback ? model.ItemGram : null, vector, 0);
+			return vector;
+		}
+
+		public override String ToString()
+		{
+			return "AlternatingLeastSquares[features:" + numFeatures + ", lambda:" + lambda + ", iterations:" +
+			       numIterations + (implicitFeedback ? ", implicit, alpha:" + alpha : "") + ']';
+		}
+
+		/// <summary>
+		/// Solves for every row of <code>target</code>, holding <code>fixedFactors</code> fixed. Threads take
+		/// rows one at a time, since their numbers of values vary widely.
+		/// </summary>
+		private void SolveAll(Ratings rows, float[] fixedFactors, int numFixed, float[] target)
+		{
+			double[] gram = implicitFeedback ? FactorModel.Gram(fixedFactors, numFixed, numFeatures, numThreads) : null;
+			int next = 0;
+			int threads = Math.Max(1, Math.Min(numThreads, rows.Count));
+			ParallelUtils.Run(threads, delegate(int thread)
+			{
+				Solver solver = new Solver(this);
+				int row;
+				while ((row = Interlocked.Increment(ref next) - 1) < rows.Count)
+				{
+					int[] indices = rows.indices[row];
+					solver.Solve(indices, rows.values[row], indices.Length, fixedFactors, gram, target,
+					             row * numFeatures);
+				}
+			});
+		}
+
+		#region Helper classes
+
+		/// <summary>
+		/// Preference values as sparse rows of dense column indices, in ascending column order.
+		/// </summary>
+		private sealed class Ratings
+		{
+			internal readonly int[][] indices;
+			internal readonly float[][] values;
+
+			private Ratings(int[][] indices, float[][] values)
+			{
+				this.indices = indices;
+				this.values = values;
+			}
+
+			internal int Count
+			{
+				get { return indices.Length; }
+			}
+
+			internal long NumValues
+			{
+				get
+				{
+					long numValues = 0L;
+					foreach (int[] row in indices)
+					{
+						numValues += row.Length;
+					}
+					return numValues;
+				}
+			}
+
+			internal static Ratings ForUsers(DataModel dataModel, IDIndex userIndex, IDIndex itemIndex)
+			{
+				int[][] indices = new int[userIndex.Count][];
+				float[][] values = new float[userIndex.Count][];
+				foreach (User user in dataModel.GetUsers())
+				{
+					int row = userIndex.IndexOf(user.ID);
+					if (row < 0)
+					{
+						continue;
+					}
+					Preference[] prefs = user.GetPreferencesAsArray();
+					int[] rowIndices = new int[prefs.Length];
+					float[] rowValues = new float[prefs.Length];
+					int count = 0;
+					foreach (Preference pref in prefs)
+					{
+						int column = itemIndex.IndexOf(pref.Item.ID);
+						if (column >= 0)
+						{
+							rowIndices[count] = column;
+							rowValues[count] = (float) pref.Value;
+							count++;
+						}
+					}
+					if (count < prefs.Length)
+					{
+						Array.Resize(ref rowIndices, count);
+						Array.Resize(ref rowValues, count);
+					}
+					Array.Sort(rowIndices, rowValues);
+					indices[row] = rowIndices;
+					values[row] = rowValues;
+				}
+				for (int row = 0; row < indices.Length; row++)
+				{
+					if (indices[row] == null)
+					{
+						indices[row] = new int[0];
+						values[row] = new float[0];
+					}
+				}
+				return new Ratings(indices, values);
+			}
+
+			/// <returns>the same values, with rows and columns swapped</returns>
+			internal Ratings Transpose(int numColumns)
+			{
+				int[] counts = new int[numColumns];
+				foreach (int[] row in indices)
+				{
+					foreach (int column in row)
+					{
+						counts[column]++;
+					}
+				}
+				int[][] newIndices = new int[numColumns][];
+				float[][] newValues = new float[numColumns][];
+				for (int column = 0; column < numColumns; column++)
+				{
+					newIndices[column] = new int[counts[column]];
+					newValues[column] = new float[counts[column]];
+					counts[column] = 0;
+				}
+				for (int row = 0; row < indices.Length; row++)
+				{
+					int[] rowIndices = indices[row];
+					float[] rowValues = values[row];
+					for (int i = 0; i < rowIndices.Length; i++)
+					{
+						int column = rowIndices[i];
+						int position = counts[column]++;
+						newIndices[column][position] = row;
+						newValues[column][position] = rowValues[i];
+					}
+				}
+				return new Ratings(newIndices, newValues);
+			}
+		}
+
+		/// <summary>
+		/// Builds and solves one regularized least-squares system by Cholesky decomposition, reusing its
+		/// arrays from one system to the next. Not thread-safe.
+		/// </summary>
+		private sealed class Solver
+		{
+			private readonly int k;
+			private readonly double lambda;
+			private readonly bool implicitFeedback;
+			private readonly double alpha;
+			private readonly double[] a;
+			private readonly double[] b;
+
+			internal Solver(AlternatingLeastSquares settings)
+			{
+				this.k = settings.numFeatures;
+				this.lambda = settings.lambda;
+				this.implicitFeedback = settings.implicitFeedback;
+				this.alpha = settings.alpha;
+				this.a = new double[k * k];
+				this.b = new double[k];
+			}
+
+			/// <summary>
+			/// Writes the vector that best fits the first <code>count</code> values, for the given rows of
+			/// <code>fixedFactors</code>, to <code>target</code> at <code>targetOffset</code>.
+			/// </summary>
+			/// <param name="gram">sum of outer products of all rows of <code>fixedFactors</code>, for implicit
+			/// feedback</param>
+			internal void Solve(int[] indices,
+			                    float[] values,
+			                    int count,
+			                    float[] fixedFactors,
+			                    double[] gram,
+			                    float[] target,
+			                    int targetOffset)
+			{
+				if (count == 0 && !implicitFeedback)
+				{
+					Array.Clear(target, targetOffset, k);
+					return;
+				}
+				if (gram != null)
+				{
+					Array.Copy(gram, a, a.Length);
+				}
+				else
+				{
+					Array.Clear(a, 0, a.Length);
+				}
+				Array.Clear(b, 0, k);
+
+				for (int n = 0; n < count; n++)
+				{
+					int offset = indices[n] * k;
+					double value = values[n];
+					double weight;
+					double rhs;
+					if (implicitFeedback)
+					{
+						// Confidence beyond the baseline of 1 already counted in the Gram matrix
+						double extraConfidence = alpha * Math.Max(0.0, value);
+						weight = extraConfidence;
+						rhs = value > 0.0 ? 1.0 + extraConfidence : 0.0;
+					}
+					else
+					{
+						weight = 1.0;
+						rhs = value;
+					}
+					for (int i = 0; i < k; i++)
+					{
+						double factor = fixedFactors[offset + i];
+						double weighted = weight * factor;
+						int rowStart = i * k;
+						for (int j = 0; j <= i; j++)
+						{
+							a[rowStart + j] += weighted * fixedFactors[offset + j];
+						}
+						b[i] += rhs * factor;
+					}
+				}
+
+				double regularization = implicitFeedback ? lambda : lambda * count;
+				for (int i = 0; i < k; i++)
+				{
+					a[i * k + i] += regularization;
+				}
+				CholeskySolve();
+				for (int i = 0; i < k; i++)
+				{
+					target[targetOffset + i] = (float) b[i];
+				}
+			}
+
+			/// <summary>
+			/// Solves a x = b in place, leaving x in <code>b</code>; only the lower triangle of <code>a</code> is
+			/// read, and it is overwritten with its Cholesky factor. The system is positive definite because of
+			/// the regularization.
+			/// </summary>
+			private void CholeskySolve()
+			{
+				for (int i = 0; i < k; i++)
+				{
+					int rowI = i * k;
+					for (int j = 0; j <= i; j++)
+					{
+						int rowJ = j * k;
+						double sum = a[rowI + j];
+						for (int m = 0; m < j; m++)
+						{
+							sum -= a[rowI + m] * a[rowJ + m];
+						}
+						if (i == j)
+						{
+							a[rowI + i] = Math.Sqrt(Math.Max(sum, Double.Epsilon));
+						}
+						else
+						{
+							a[rowI + j] = sum / a[rowJ + j];
+						}
+					}
+				}
+				// Forward substitution: L y = b
+				for (int i = 0; i < k; i++)
+				{
+					int rowI = i * k;
+					double sum = b[i];
+					for (int m = 0; m < i; m++)
+					{
+						sum -= a[rowI + m] * b[m];
+					}
+					b[i] = sum / a[rowI + i];
+				}
+				// Back substitution: L^T x = y
+				for (int i = k - 1; i >= 0; i--)
+				{
+					double sum = b[i];
+					for (int m = i + 1; m < k; m++)
+					{
+						sum -= a[m * k + i] * b[m];
+					}
+					b[i] = sum / a[i * k + i];
+				}
+			}
+		}
+
+		#endregion
+	}
+
+}
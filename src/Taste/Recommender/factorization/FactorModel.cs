@@ -0,0 +1,404 @@
+/*
+ * Copyright 2007 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+namespace Taste.Recommender.Factorization
+{
+	using System;
+	using System.Collections.Generic;
+	using System.IO;
+	using Taste.Common;
+	using Taste.Model;
+
+
+    /// <summary>
+    /// <p>User and item feature vectors learned by a matrix factorization, such as
+    /// <see cref="AlternatingLeastSquares"/>. A preference is estimated as the dot product of the user's and the
+    /// item's vectors. Vectors are stored row after row in one <code>float</code> array per side, ordered by the
+    /// dense indices of an <see cref="taste.Model.IDIndex">IDIndex</see> for users and one for items.</p>
+    ///
+    /// <p><see cref="Save(String)"/> writes a model to a file and <see cref="Load(String)"/> reads it back with
+    /// one bulk read per array. IDs must be <code>String</code>s, <code>int</code>s or <code>long</code>s to be
+    /// saved.</p>
+    ///
+    /// <p>Instances are immutable and safe to share between threads.</p>
+    /// </summary>
+	public sealed class FactorModel
+	{
+		private const int MAGIC = 0x54464143; // "TFAC"
+		private const int VERSION = 1;
+		private const int COPY_BUFFER_BYTES = 1 << 16;
+
+		private const byte STRING_ID = 0;
+		private const byte INT_ID = 1;
+		private const byte LONG_ID = 2;
+
+		private readonly IDIndex userIndex;
+		private readonly IDIndex itemIndex;
+		private readonly int numFeatures;
+		private readonly float[] userFactors;
+		private readonly float[] itemFactors;
+		private double[] itemGram;
+
+		/// <param name="userIndex">users, in the order of <code>userFactors</code>' rows</param>
+		/// <param name="itemIndex">items, in the order of <code>itemFactors</code>' rows</param>
+		/// <param name="numFeatures">length of each vector</param>
+		/// <param name="userFactors">user vectors, one after another; not copied</param>
+		/// <param name="itemFactors">item vectors, one after another; not copied</param>
+		public FactorModel(IDIndex userIndex,
+		                   IDIndex itemIndex,
+		                   int numFeatures,
+		                   float[] userFactors,
+		                   float[] itemFactors)
+		{
+			if (userIndex == null || itemIndex == null || userFactors == null || itemFactors == null)
+			{
+				throw new ArgumentNullException("index or factors is null");
+			}
+			if (numFeatures < 1)
+			{
+				throw new ArgumentException("numFeatures must be at least 1");
+			}
+			if (userFactors.Length != (long) userIndex.Count * numFeatures ||
+			    itemFactors.Length != (long) itemIndex.Count * numFeatures)
+			{
+				throw new ArgumentException("Factor arrays do not match indices");
+			}
+			this.userIndex = userIndex;
+			this.itemIndex = itemIndex;
+			this.numFeatures = numFeatures;
+			this.userFactors = userFactors;
+			this.itemFactors = itemFactors;
+		}
+
+		public IDIndex UserIndex
+		{
+			get { return userIndex; }
+		}
+
+		public IDIndex ItemIndex
+		{
+			get { return itemIndex; }
+		}
+
+		public int NumFeatures
+		{
+			get { return numFeatures; }
+		}
+
+		internal float[] UserFactors
+		{
+			get { return userFactors; }
+		}
+
+		internal float[] ItemFactors
+		{
+			get { return itemFactors; }
+		}
+
+		/// <returns>estimated preference, or NaN if the user or item has no vector</returns>
+		public double Estimate(Object userID, Object itemID)
+		{
+			int user = userIndex.IndexOf(userID);
+			int item = itemIndex.IndexOf(itemID);
+			if (user < 0 || item < 0)
+			{
+				return Double.NaN;
+			}
+			return Estimate(user, item);
+		}
+
+		/// <param name="user">index of a user in <see cref="UserIndex"/></param>
+		/// <param name="item">index of an item in <see cref="ItemIndex"/></param>
+		public double Estimate(int user, int item)
+		{
+			return Dot(userFactors, user * numFeatures, itemFactors, item * numFeatures, numFeatures);
+		}
+
+		/// <returns>copy of the user's vector, or <code>null</code> if the user has none</returns>
+		public float[] GetUserVector(Object userID)
+		{
+			return CopyRow(userFactors, userIndex.IndexOf(userID));
+		}
+
+		/// <returns>copy of the item's vector, or <code>null</code> if the item has none</returns>
+		public float[] GetItemVector(Object itemID)
+		{
+			return CopyRow(itemFactors, itemIndex.IndexOf(itemID));
+		}
+
+		/// <summary>
+		/// Sum of the outer products of all item vectors, as a <code>numFeatures</code> square matrix, which
+		/// implicit-feedback least squares needs for every user. Computed on first use.
+		/// </summary>
+		internal double[] ItemGram
+		{
+			get
+			{
+				lock (this)
+				{
+					if (itemGram == null)
+					{
+						itemGram = Gram(itemFactors, itemIndex.Count, numFeatures, 1);
+					}
+					return itemGram;
+				}
+			}
+		}
+
+		public void Save(String path)
+		{
+			if (path == null)
+			{
+				throw new ArgumentNullException("path is null");
+			}
+			using (FileStream stream = new FileStream(path, FileMode.Create, FileAccess.Write, FileShare.None,
+			                                          COPY_BUFFER_BYTES))
+			{
+				Save(stream);
+			}
+		}
+
+		/// <exception cref="ArgumentException">if an ID is not a <code>String</code>, <code>int</code> or
+		/// <code>long</code></exception>
+		public void Save(Stream stream)
+		{
+			if (stream == null)
+			{
+				throw new ArgumentNullException("stream is null");
+			}
+			BinaryWriter writer = new BinaryWriter(stream);
+			writer.Write(MAGIC);
+			writer.Write(VERSION);
+			writer.Write(numFeatures);
+			writer.Write(userIndex.Count);
+			writer.Write(itemIndex.Count);
+			WriteIDs(writer, userIndex);
+			WriteIDs(writer, itemIndex);
+			writer.Flush();
+			WriteFloats(stream, userFactors);
+			WriteFloats(stream, itemFactors);
+			stream.Flush();
+		}
+
+		public static FactorModel Load(String path)
+		{
+			if (path == null)
+			{
+				throw new ArgumentNullException("path is null");
+			}
+			long start = TasteEvents.Start();
+			FactorModel model;
+			using (FileStream stream = new FileStream(path, FileMode.Open, FileAccess.Read, FileShare.Read,
+			                                          COPY_BUFFER_BYTES, FileOptions.SequentialScan))
+			{
+				model = Load(stream);
+			}
+			TasteEvents.ModelLoaded("FactorModel", false, model.userIndex.Count + model.itemIndex.Count, start);
+			return model;
+		}
+
+		/// <exception cref="TasteException">if the stream does not hold a saved model</exception>
+		public static FactorModel Load(Stream stream)
+		{
+			if (stream == null)
+			{
+				throw new ArgumentNullException("stream is null");
+			}
+			BinaryReader reader = new BinaryReader(stream);
+			try
+			{
+				if (reader.ReadInt32() != MAGIC)
+				{
+					throw new TasteException("Not a saved factor model");
+				}
+				int version = reader.ReadInt32();
+				if (version != VERSION)
+				{
+					throw new TasteException("Unsupported factor model version: " + version);
+				}
+				int numFeatures = reader.ReadInt32();
+				int numUsers = reader.ReadInt32();
+				int numItems = reader.ReadInt32();
+				IDIndex userIndex = new IDIndex(ReadIDs(reader, numUsers));
+				IDIndex itemIndex = new IDIndex(ReadIDs(reader, numItems));
+				float[] userFactors = ReadFloats(reader, numUsers * numFeatures);
+				float[] itemFactors = ReadFloats(reader, numItems * numFeatures);
+				return new FactorModel(userIndex, itemIndex, numFeatures, userFactors, itemFactors);
+			}
+			catch (EndOfStreamException eose)
+			{
+				throw new TasteException("Truncated factor model", eose);
+			}
+		}
+
+		public override String ToString()
+		{
+			return "FactorModel[users:" + userIndex.Count + ", items:" + itemIndex.Count + ", features:" +
+			       numFeatures + ']';
+		}
+
+		internal static double Dot(float[] a, int aOffset, float[] b, int bOffset, int length)
+		{
+			double sum = 0.0;
+			for (int i = 0; i < length; i++)
+			{
+				sum += a[aOffset + i] * b[bOffset + i];
+			}
+			return sum;
+		}
+
+		/// <summary>
+		/// Sums the outer products of <code>rows</code> vectors of length <code>k</code>, splitting the rows
+		/// between <code>numThreads</code> threads that each sum into their own matrix.
+		/// </summary>
+		/// <returns><code>k</code> square matrix, row after row</returns>
+		internal static double[] Gram(float[] factors, int rows, int k, int numThreads)
+		{
+			int threads = Math.Max(1, Math.Min(numThreads, rows));
+			double[][] partials = new double[threads][];
+			ParallelUtils.Run(threads, delegate(int thread)
+			{
+				int from = (int) ((long) rows * thread / threads);
+				int to = (int) ((long) rows * (thread + 1) / threads);
+				double[] partial = new double[k * k];
+				for (int row = from; row < to; row++)
+				{
+					int offset = row * k;
+					for (int i = 0; i < k; i++)
+					{
+						double value = factors[offset + i];
+						int rowStart = i * k;
+						for (int j = 0; j <= i; j++)
+						{
+							partial[rowStart + j] += value * factors[offset + j];
+						}
+					}
+				}
+				partials[thread] = partial;
+			});
+			double[] gram = partials[0];
+			for (int t = 1; t < threads; t++)
+			{
+				for (int i = 0; i < gram.Length; i++)
+				{
+					gram[i] += partials[t][i];
+				}
+			}
+			// Mirror the lower triangle
+			for (int i = 0; i < k; i++)
+			{
+				for (int j = 0; j < i; j++)
+				{
+					gram[j * k + i] = gram[i * k + j];
+				}
+			}
+			return gram;
+		}
+
+		private float[] CopyRow(float[] factors, int row)
+		{
+			if (row < 0)
+			{
+				return null;
+			}
+			float[] vector = new float[numFeatures];
+			Array.Copy(factors, row * numFeatures, vector, 0, numFeatures);
+			return vector;
+		}
+
+		private static void WriteIDs(BinaryWriter writer, IDIndex index)
+		{
+			for (int i = 0; i < index.Count; i++)
+			{
+				Object id = index.IDAt(i);
+				if (id is String)
+				{
+					writer.Write(STRING_ID);
+					writer.Write((String) id);
+				}
+				else if (id is int)
+				{
+					writer.Write(INT_ID);
+					writer.Write((int) id);
+				}
+				else if (id is long)
+				{
+					writer.Write(LONG_ID);
+					writer.Write((long) id);
+				}
+				else
+				{
+					throw new ArgumentException("Cannot save ID of type " + id.GetType());
+				}
+			}
+		}
+
+		private static List<Object> ReadIDs(BinaryReader reader, int count)
+		{
+			List<Object> ids = new List<Object>(count);
+			for (int i = 0; i < count; i++)
+			{
+				byte type = reader.ReadByte();
+				switch (type)
+				{
+					case STRING_ID:
+						ids.Add(reader.ReadString());
+						break;
+					case INT_ID:
+						ids.Add(reader.ReadInt32());
+						break;
+					case LONG_ID:
+						ids.Add(reader.ReadInt64());
+						break;
+					default:
+						throw new TasteException("Unknown ID type: " + type);
+				}
+			}
+			return ids;
+		}
+
+		private static void WriteFloats(Stream stream, float[] values)
+		{
+			byte[] buffer = new byte[COPY_BUFFER_BYTES];
+			int totalBytes = values.Length * sizeof(float);
+			for (int done = 0; done < totalBytes; done += buffer.Length)
+			{
+				int bytes = Math.Min(buffer.Length, totalBytes - done);
+				Buffer.BlockCopy(values, done, buffer, 0, bytes);
+				stream.Write(buffer, 0, bytes);
+			}
+		}
+
+		private static float[] ReadFloats(BinaryReader reader, int count)
+		{
+			float[] values = new float[count];
+			byte[] buffer = new byte[COPY_BUFFER_BYTES];
+			int totalBytes = count * sizeof(float);
+			for (int done = 0; done < totalBytes; )
+			{
+				int read = reader.Read(buffer, 0, Math.Min(buffer.Length, totalBytes - done));
+				if (read <= 0)
+				{
+					throw new EndOfStreamException();
+				}
+				Buffer.BlockCopy(buffer, 0, values, done, read);
+				done += read;
+			}
+			return values;
+		}
+	}
+
+}
@@ -0,0 +1,301 @@
+/*
+ * Copyright 2007 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+namespace Taste.Recommender.Factorization
+{
+	using System;
+	using System.Collections.Generic;
+	using Taste.Common;
+	using Taste.Model;
+	using Taste.Recommender;
+	using log4net;
+
+
+    /// <summary>
+    /// <p>A <see cref="taste.Recommender.Recommender">Recommender</see> backed by a <see cref="FactorModel"/>. An
+    /// estimate is one dot product of feature vectors, and recommending scores every item the user has not
+    /// expressed a preference for in one sweep over the model's item vectors, whatever the number of users.</p>
+    ///
+    /// <p>The model is trained with the given <see cref="AlternatingLeastSquares"/> settings, or loaded with
+    /// <see cref="FactorModel.Load(String)"/> and passed in. <see cref="Refresh()"/> retrains it from the
+    /// <see cref="taste.Model.DataModel">DataModel</see>. In between, <see cref="SetPreference(Object, Object, double)"/>
+    /// and <see cref="RemovePreference(Object, Object)"/> fold the user back in: the user's vector is refitted to
+    /// their current preferences against the existing item vectors, which also gives users who joined after
+    /// training a vector. Items added after training are not recommended until the next refresh.</p>
+    /// </summary>
+	public sealed class FactorizationRecommender : AbstractRecommender
+	{
+		private static readonly ILog log = LogManager.GetLogger(typeof(FactorizationRecommender));
+
+		private readonly AlternatingLeastSquares trainer;
+		private readonly ReentrantLock refreshLock;
+		private volatile Factors factors;
+
+		/// <summary>Trains a model over <code>dataModel</code> right away</summary>
+		public FactorizationRecommender(DataModel dataModel, AlternatingLeastSquares trainer)
+			: this(dataModel, trainer, null)
+		{
+		}
+
+		/// <param name="dataModel">model to recommend from</param>
+		/// <param name="trainer">settings for folding in users and for retraining on refresh</param>
+		/// <param name="model">previously trained or loaded factors for <code>dataModel</code>, or <code>null</code>
+		/// to train now</param>
+		public FactorizationRecommender(DataModel dataModel, AlternatingLeastSquares trainer, FactorModel model)
+			: base(dataModel)
+		{
+			if (trainer == null)
+			{
+				throw new ArgumentNullException("trainer is null");
+			}
+			if (model != null && model.NumFeatures != trainer.NumFeatures)
+			{
+				throw new ArgumentException("Model has " + model.NumFeatures + " features, not " +
+				                            trainer.NumFeatures);
+			}
+			this.trainer = trainer;
+			this.refreshLock = new ReentrantLock();
+			this.factors = new Factors(dataModel, model == null ? trainer.Train(dataModel) : model);
+		}
+
+		public AlternatingLeastSquares Trainer
+		{
+			get { return trainer; }
+		}
+
+		/// <summary>Current model; it does not include users folded in since it was trained</summary>
+		public FactorModel Model
+		{
+			get { return factors.model; }
+		}
+
+		public override IList<RecommendedItem> Recommend(Object userID, int howMany, Rescorer<Item> rescorer)
+		{
+			if (userID == null)
+			{
+				throw new ArgumentNullException("userID is null");
+			}
+			if (howMany < 1)
+			{
+				throw new ArgumentException("howMany must be at least 1");
+			}
+			if (rescorer == null)
+			{
+				throw new ArgumentNullException("rescorer is null");
+			}
+			if (log.IsDebugEnabled)
+			{
+				log.Debug("Recommending items for user ID '" + userID + '\'');
+			}
+			long start = TasteEvents.Start();
+
+			User theUser = this.DataModel.GetUser(userID);
+			Factors current = factors;
+			float[] userFactors;
+			int userOffset;
+			if (!current.TryGetUserVector(userID, out userFactors, out userOffset))
+			{
+				return new List<RecommendedItem>(0);
+			}
+
+			FactorModel model = current.model;
+			IDIndex itemIndex = model.ItemIndex;
+			int numItems = itemIndex.Count;
+			int k = model.NumFeatures;
+			bool[] rated = new bool[numItems];
+			foreach (Preference pref in theUser.GetPreferencesAsArray())
+			{
+				int item = itemIndex.IndexOf(pref.Item.ID);
+				if (item >= 0)
+				{
+					rated[item] = true;
+				}
+			}
+
+			FilteringRescorer filtering = rescorer as FilteringRescorer;
+			ItemFilter filter = filtering == null ? null : filtering.Filter;
+			bool sameIndex = filter != null && ReferenceEquals(filter.Index, itemIndex);
+			rescorer = FilteringRescorer.Unfiltered(rescorer);
+
+			float[] itemFactors = model.ItemFactors;
+			TopNCollector<Item> topItems = new TopNCollector<Item>(howMany);
+			int candidates = 0;
+			for (int i = 0; i < numItems; i++)
+			{
+				Item item = current.items[i];
+				if (rated[i] || item == null || !item.IsRecommendable)
+				{
+					continue;
+				}
+				if (filter != null && !(sameIndex ? filter.IsAllowed(i) : filter.IsAllowed(item.ID)))
+				{
+					continue;
+				}
+				candidates++;
+				if (!rescorer.IsFiltered(item))
+				{
+					double estimate = FactorModel.Dot(userFactors, userOffset, itemFactors, i * k, k);
+					topItems.Offer(item, rescorer.Rescore(item, estimate));
+				}
+			}
+			IList<RecommendedItem> recommended = TopItems.ToRecommendedItems(topItems);
+
+			TasteEvents.Recommended("FactorizationRecommender", userID, candidates, -1, recommended.Count, start);
+			if (log.IsDebugEnabled)
+			{
+				log.DebugFormat("Recommendations are: {0} ", recommended);
+			}
+			return recommended;
+		}
+
+		/// <returns>the user's actual preference if any, otherwise the model's estimate, or NaN if the user or
+		/// item has no vector</returns>
+		public override double EstimatePreference(Object userID, Object itemID)
+		{
+			long start = TasteEvents.Start();
+			User theUser = this.DataModel.GetUser(userID);
+			Preference actualPref = theUser.GetPreferenceFor(itemID);
+			if (actualPref != null)
+			{
+				return actualPref.Value;
+			}
+			Factors current = factors;
+			double estimate = Double.NaN;
+			float[] userFactors;
+			int userOffset;
+			int item = current.model.ItemIndex.IndexOf(itemID);
+			if (item >= 0 && current.TryGetUserVector(userID, out userFactors, out userOffset))
+			{
+				int k = current.model.NumFeatures;
+				estimate = FactorModel.Dot(userFactors, userOffset, current.model.ItemFactors, item * k, k);
+			}
+			TasteEvents.Estimated("FactorizationRecommender", userID, itemID, -1, start);
+			return estimate;
+		}
+
+		public override void SetPreference(Object userID, Object itemID, double value)
+		{
+			base.SetPreference(userID, itemID, value);
+			FoldIn(this.DataModel.GetUser(userID));
+		}
+
+		public override void RemovePreference(Object userID, Object itemID)
+		{
+			base.RemovePreference(userID, itemID);
+			FoldIn(this.DataModel.GetUser(userID));
+		}
+
+		/// <summary>
+		/// Refits the user's vector to the user's current preferences, holding item vectors fixed. The new vector
+		/// is used until the next <see cref="Refresh()"/>.
+		/// </summary>
+		public void FoldIn(User user)
+		{
+			if (user == null)
+			{
+				throw new ArgumentNullException("user is null");
+			}
+			Factors current = factors;
+			float[] vector = trainer.FoldIn(current.model, user.GetPreferencesAsArray());
+			lock (current.foldedIn)
+			{
+				current.foldedIn[user.ID] = vector;
+			}
+		}
+
+		/// <summary>
+		/// Refreshes the <see cref="taste.Model.DataModel">DataModel</see>, then retrains the model from it and
+		/// discards folded-in users.
+		/// </summary>
+		public override void Refresh()
+		{
+			if (refreshLock.TryLock())
+			{
+				try
+				{
+					base.Refresh();
+					factors = new Factors(this.DataModel, trainer.Train(this.DataModel));
+				}
+				catch (TasteException te)
+				{
+					log.Warn("Unable to refresh", te);
+				}
+				finally
+				{
+					refreshLock.Unlock();
+				}
+			}
+		}
+
+		public override String ToString()
+		{
+			return "FactorizationRecommender[trainer:" + trainer + ']';
+		}
+
+		#region Helper classes
+
+		/// <summary>
+		/// A model with the <see cref="taste.Model.Item">Item</see>s its rows stand for and the vectors of users
+		/// folded in since, swapped as a whole on refresh.
+		/// </summary>
+		private sealed class Factors
+		{
+			internal readonly FactorModel model;
+			internal readonly Item[] items;
+			internal readonly Dictionary<Object, float[]> foldedIn;
+
+			internal Factors(DataModel dataModel, FactorModel model)
+			{
+				this.model = model;
+				this.items = new Item[model.ItemIndex.Count];
+				foreach (Item item in dataModel.GetItems())
+				{
+					int index = model.ItemIndex.IndexOf(item.ID);
+					if (index >= 0)
+					{
+						items[index] = item;
+					}
+				}
+				this.foldedIn = new Dictionary<Object, float[]>();
+			}
+
+			internal bool TryGetUserVector(Object userID, out float[] vector, out int offset)
+			{
+				lock (foldedIn)
+				{
+					if (foldedIn.TryGetValue(userID, out vector))
+					{
+						offset = 0;
+						return true;
+					}
+				}
+				int user = model.UserIndex.IndexOf(userID);
+				if (user < 0)
+				{
+					vector = null;
+					offset = 0;
+					return false;
+				}
+				vector = model.UserFactors;
+				offset = user * model.NumFeatures;
+				return true;
+			}
+		}
+
+		#endregion
+	}
+
+}
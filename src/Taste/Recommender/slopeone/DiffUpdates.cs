@@ -0,0 +1,162 @@
+/*
+ * Copyright 2007 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+namespace Taste.Recommender.SlopeOne
+{
+	using System;
+	using System.Collections.Generic;
+	using Taste.Common;
+	using Taste.Model;
+
+
+	/// <summary>
+	/// <p>Receives the individual adjustments that <see cref="DiffUpdates"/> derives from preference changes.</p>
+	/// </summary>
+	internal interface DiffUpdateTarget
+	{
+		/// <param name="itemID1">first item</param>
+		/// <param name="itemID2">second item</param>
+		/// <param name="diff">one user's preference for item 2 minus their preference for item 1</param>
+		void AddDiff(Object itemID1, Object itemID2, double diff);
+
+		void RemoveDiff(Object itemID1, Object itemID2, double diff);
+
+		void AddItemPref(Object itemID, double value);
+
+		void RemoveItemPref(Object itemID, double value);
+	}
+
+
+	/// <summary>
+	/// <p>Turns <see cref="taste.Model.PreferenceChange">PreferenceChange</see>s into exact updates of item-item diffs,
+	/// so a <see cref="taste.Recommender.SlopeOne.DiffStorage">DiffStorage</see> can follow changes in its
+	/// <see cref="taste.Model.DataModel">DataModel</see> without a rebuild. Each change touches only the pairs formed
+	/// by the changed item and the other items that user rated.</p>
+	///
+	/// <p>Changes are replayed against the user's preferences from before them, taken from
+	/// <see cref="taste.Model.PreferenceChange.PreviousPreferences">PreviousPreferences</see> when the source
+	/// recorded them. Otherwise they are recovered by undoing the changes against the model, which is only right
+	/// if the model has not changed that user again since.</p>
+	/// </summary>
+	internal sealed class DiffUpdates
+	{
+		private DiffUpdates()
+		{
+		}
+
+		/// <param name="dataModel">model in which the changes are already visible; read only for changes that
+		/// don't carry the user's previous preferences</param>
+		/// <param name="changes">changes, in the order they were made</param>
+		/// <param name="target">receives the adjustments</param>
+		internal static void Apply(DataModel dataModel, IList<PreferenceChange> changes, DiffUpdateTarget target)
+		{
+			List<Object> userIDs = new List<Object>();
+			Dictionary<Object, List<PreferenceChange>> changesByUser = new Dictionary<Object, List<PreferenceChange>>();
+			foreach (PreferenceChange change in changes)
+			{
+				List<PreferenceChange> userChanges;
+				if (!changesByUser.TryGetValue(change.UserID, out userChanges))
+				{
+					userChanges = new List<PreferenceChange>();
+					changesByUser.Add(change.UserID, userChanges);
+					userIDs.Add(change.UserID);
+				}
+				userChanges.Add(change);
+			}
+
+			foreach (Object userID in userIDs)
+			{
+				List<PreferenceChange> userChanges = changesByUser[userID];
+				Preference[] previous = userChanges[0].PreviousPreferences;
+				Dictionary<Object, double> prefs;
+				if (previous != null)
+				{
+					prefs = ToValues(previous);
+				}
+				else
+				{
+					prefs = ToValues(CurrentPreferences(dataModel, userID));
+					// Undo the changes, newest first, to recover the user's preferences before them
+					for (int i = userChanges.Count - 1; i >= 0; i--)
+					{
+						PreferenceChange change = userChanges[i];
+						if (change.IsAdded)
+						{
+							prefs.Remove(change.ItemID);
+						}
+						else
+						{
+							prefs[change.ItemID] = change.OldValue;
+						}
+					}
+				}
+
+				// Then replay them, one at a time, against the other preferences as they were at that point
+				foreach (PreferenceChange change in userChanges)
+				{
+					Object itemID = change.ItemID;
+					if (!change.IsAdded)
+					{
+						double oldValue = change.OldValue;
+						foreach (KeyValuePair<Object, double> other in prefs)
+						{
+							if (!other.Key.Equals(itemID))
+							{
+								target.RemoveDiff(itemID, other.Key, other.Value - oldValue);
+							}
+						}
+						target.RemoveItemPref(itemID, oldValue);
+						prefs.Remove(itemID);
+					}
+					if (!change.IsRemoved)
+					{
+						double newValue = change.NewValue;
+						foreach (KeyValuePair<Object, double> other in prefs)
+						{
+							target.AddDiff(itemID, other.Key, other.Value - newValue);
+						}
+						target.AddItemPref(itemID, newValue);
+						prefs[itemID] = newValue;
+					}
+				}
+			}
+		}
+
+		private static Preference[] CurrentPreferences(DataModel dataModel, Object userID)
+		{
+			try
+			{
+				return dataModel.GetUser(userID).GetPreferencesAsArray();
+			}
+			catch (NoSuchElementException)
+			{
+				// User's last preference was removed
+				return new Preference[0];
+			}
+		}
+
+		private static Dictionary<Object, double> ToValues(Preference[] prefs)
+		{
+			Dictionary<Object, double> result = new Dictionary<Object, double>(prefs.Length);
+			foreach (Preference pref in prefs)
+			{
+				result[pref.Item.ID] = pref.Value;
+			}
+			return result;
+		}
+	}
+
+}
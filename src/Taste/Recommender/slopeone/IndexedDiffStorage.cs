@@ -0,0 +1,854 @@
+/*
+ * Copyright 2007 and onwards Sean Owen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+namespace Taste.Recommender.SlopeOne
+{
+	using System;
+	using System.Collections.Generic;
+	using System.IO;
+	using System.Threading;
+	using Iesi.Collections.Generic;
+	using Taste.Common;
+	using Taste.Model;
+	using log4net;
+
+    /// <summary>
+    /// <p>A <see cref="taste.Recommender.SlopeOne.DiffStorage">DiffStorage</see> which keeps item-item diffs in
+    /// primitive arrays indexed by each item's position in an <see cref="taste.Model.IDIndex">IDIndex</see>,
+    /// rather than in maps of <see cref="taste.Common.RunningAverage">RunningAverage</see> objects like
+    /// <see cref="taste.Recommender.SlopeOne.MemoryDiffStorage">MemoryDiffStorage</see>.</p>
+    ///
+    /// <p>Only the upper triangle of the matrix is stored: row <code>i</code> holds, for every item <code>j &gt; i</code>,
+    /// a count and a <code>float</code> sum of (pref j - pref i) (and a sum of squares if standard deviation
+    /// weighting is used). That is 8 (or 12) bytes per item pair and no per-pair objects; for about 17,770 items it is
+    /// roughly 1.3GB, in about 17,770 arrays.</p>
+    ///
+    /// <p>The matrix is built on several threads, each owning a disjoint set of rows, so construction needs no locking.
+    /// Updates from <see cref="UpdateItemPref(Object, double, bool)"/> lock only a stripe of rows at a time. Reads take
+    /// no row locks; a reader racing an update may briefly see a count and sum from different moments, which
+    /// affects only that one estimate. The matrix can be saved to and loaded from a file to skip rebuilding it.</p>
+    ///
+    /// <p>Item indices come from <see cref="taste.Model.IDIndex.ForItems(DataModel)">IDIndex.ForItems()</see> unless
+    /// another <see cref="taste.Model.ItemIndexer">ItemIndexer</see> is given. Building the matrix touches, for each
+    /// user, the rows of the user's items; an order like
+    /// <see cref="taste.Model.IDOrdering.ItemsByCoRating">IDOrdering.ItemsByCoRating()</see> keeps those close together.
+    /// A saved file can only be loaded with the order it was saved with.</p>
+    ///
+    /// <p>If the <see cref="taste.Model.DataModel">DataModel</see> is a
+    /// <see cref="taste.Model.PreferenceChangeSource">PreferenceChangeSource</see>, this storage listens to it and
+    /// updates just the affected diffs as preferences change. Since the matrix can't grow, changes involving items it
+    /// has never seen are dropped, and the next refresh rebuilds it. <see cref="Dispose()"/> stops listening, which
+    /// the model otherwise keeps this storage reachable by; refreshes then rebuild it again.</p>
+    /// </summary>
+	public class IndexedDiffStorage : DiffStorage, PreferenceChangeListener, IDisposable
+	{
+		private static readonly ILog log = LogManager.GetLogger(typeof(IndexedDiffStorage));
+
+		private const int FILE_MAGIC = 0x54445346;
+		private const int FILE_VERSION = 1;
+		private const int NUM_STRIPES = 64;
+
+		private readonly DataModel dataModel;
+		private readonly bool stdDevWeighted;
+		private readonly int numThreads;
+		private readonly ItemIndexer itemIndexer;
+		private readonly Object[] stripes;
+		private readonly ReaderWriterLock buildLock;
+		private readonly ReentrantLock refreshLock;
+		private Matrix matrix;
+		private volatile bool followsDataModel;
+		private volatile bool sawUnknownItems;
+
+		public IndexedDiffStorage(DataModel dataModel, bool stdDevWeighted)
+			: this(dataModel, stdDevWeighted, ParallelUtils.DefaultThreads)
+		{
+		}
+
+		/// <param name="dataModel">data to build diffs from</param>
+		/// <param name="stdDevWeighted">see <see cref="taste.Recommender.SlopeOne.SlopeOneRecommender">SlopeOneRecommender</see></param>
+		/// <param name="numThreads">number of threads used to build the matrix</param>
+		public IndexedDiffStorage(DataModel dataModel, bool stdDevWeighted, int numThreads)
+			: this(dataModel, stdDevWeighted, numThreads, IDIndex.ForItems)
+		{
+		}
+
+		/// <param name="itemIndexer">builds the item index that the matrix is laid out by, on each build</param>
+		public IndexedDiffStorage(DataModel dataModel, bool stdDevWeighted, int numThreads, ItemIndexer itemIndexer)
+		{
+			if (dataModel == null || itemIndexer == null)
+			{
+				throw new ArgumentNullException("dataModel or itemIndexer is null");
+			}
+			if (numThreads < 1)
+			{
+				throw new ArgumentException("numThreads must be at least 1");
+			}
+			this.dataModel = dataModel;
+			this.stdDevWeighted = stdDevWeighted;
+			this.numThreads = numThreads;
+			this.itemIndexer = itemIndexer;
+			this.stripes = NewStripes();
+			this.buildLock = new ReaderWriterLock();
+			this.refreshLock = new ReentrantLock();
+			this.matrix = BuildMatrix();
+			ListenToDataModel();
+		}
+
+		/// <summary>
+		/// Creates an instance from diffs previously written by <see cref="Save(String)"/>, instead of computing
+		/// them. The file must have been saved from a storage over the same items.
+		/// </summary>
+		/// <exception cref="TasteException">if the file can't be read or does not match the data model's items</exception>
+		public IndexedDiffStorage(DataModel dataModel, bool stdDevWeighted, String file)
+			: this(dataModel, stdDevWeighted, file, IDIndex.ForItems)
+		{
+		}
+
+		/// <summary>
+		/// Like <see cref="IndexedDiffStorage(DataModel, bool, String)"/>, for a file saved from a storage whose items
+		/// were indexed by <code>itemIndexer</code>.
+		/// </summary>
+		public IndexedDiffStorage(DataModel dataModel, bool stdDevWeighted, String file, ItemIndexer itemIndexer)
+		{
+			if (dataModel == null || itemIndexer == null)
+			{
+				throw new ArgumentNullException("dataModel or itemIndexer is null");
+			}
+			if (String.IsNullOrEmpty(file))
+			{
+				throw new ArgumentNullException("file is null");
+			}
+			this.dataModel = dataModel;
+			this.stdDevWeighted = stdDevWeighted;
+			this.numThreads = ParallelUtils.DefaultThreads;
+			this.itemIndexer = itemIndexer;
+			this.stripes = NewStripes();
+			this.buildLock = new ReaderWriterLock();
+			this.refreshLock = new ReentrantLock();
+			try
+			{
+				this.matrix = ReadMatrix(file);
+			}
+			catch (IOException ioe)
+			{
+				throw new TasteException("Unable to load diffs from " + file, ioe);
+			}
+			ListenToDataModel();
+		}
+
+		private void ListenToDataModel()
+		{
+			PreferenceChangeSource changeSource = dataModel as PreferenceChangeSource;
+			if (changeSource != null)
+			{
+				changeSource.AddPreferenceChangeListener(this);
+				followsDataModel = true;
+			}
+		}
+
+		/// <summary>
+		/// <code>true</code> if this storage keeps itself up to date by listening to its
+		/// <see cref="taste.Model.DataModel">DataModel</see>
+		/// </summary>
+		public bool FollowsDataModel
+		{
+			get { return followsDataModel; }
+		}
+
+		/// <summary>
+		/// Stops listening to the <see cref="taste.Model.DataModel">DataModel</see>.
+		/// </summary>
+		public void Dispose()
+		{
+			PreferenceChangeSource changeSource = dataModel as PreferenceChangeSource;
+			if (changeSource != null)
+			{
+				changeSource.RemovePreferenceChangeListener(this);
+			}
+			followsDataModel = false;
+		}
+
+		private static Object[] NewStripes()
+		{
+			Object[] result = new Object[NUM_STRIPES];
+			for (int i = 0; i < result.Length; i++)
+			{
+				result[i] = new Object();
+			}
+			return result;
+		}
+
+		private Matrix CurrentMatrix()
+		{
+			buildLock.AcquireReaderLock(Constants.INFINITE_TIMEOUT);
+			try
+			{
+				return matrix;
+			}
+			finally
+			{
+				buildLock.ReleaseReaderLock();
+			}
+		}
+
+		public RunningAverage GetDiff(Object itemID1, Object itemID2)
+		{
+			Matrix m = CurrentMatrix();
+			return m.GetDiff(m.index.IndexOf(itemID1), m.index.IndexOf(itemID2));
+		}
+
+		public RunningAverage[] GetDiffs(Object userID, Object itemID, IList<Preference> prefs)
+		{
+			Matrix m = CurrentMatrix();
+			int itemIndex = m.index.IndexOf(itemID);
+			RunningAverage[] result = new RunningAverage[prefs.Count];
+			int i = 0;
+			foreach (Preference pref in prefs)
+			{
+				result[i++] = m.GetDiff(m.index.IndexOf(pref.Item.ID), itemIndex);
+			}
+			return result;
+		}
+
+		public RunningAverage GetAverageItemPref(Object itemID)
+		{
+			Matrix m = CurrentMatrix();
+			int itemIndex = m.index.IndexOf(itemID);
+			if (itemIndex < 0 || m.itemCounts[itemIndex] == 0)
+			{
+				return null;
+			}
+			int count = m.itemCounts[itemIndex];
+			return new FixedAverage(count, m.itemSums[itemIndex] / count, Double.NaN);
+		}
+
+		public void UpdateItemPref(Object itemID, double prefDelta, bool remove)
+		{
+			if (!remove && stdDevWeighted)
+			{
+				throw new NotSupportedException("Can't update only when stdDevWeighted is set");
+			}
+			Matrix m = CurrentMatrix();
+			int itemIndex = m.index.IndexOf(itemID);
+			if (itemIndex < 0)
+			{
+				return;
+			}
+
+			// Diffs in this item's row are (other - item)
+			lock (stripes[itemIndex % NUM_STRIPES])
+			{
+				float[] sums = m.sums[itemIndex];
+				int[] counts = m.counts[itemIndex];
+				float[] sumSquares = m.sumSquares == null ? null : m.sumSquares[itemIndex];
+				for (int j = 0; j < counts.Length; j++)
+				{
+					if (counts[j] > 0)
+					{
+						UpdateDiff(sums, counts, sumSquares, j, prefDelta, -prefDelta, remove);
+					}
+				}
+				if (m.itemCounts[itemIndex] > 0)
+				{
+					if (remove)
+					{
+						m.itemSums[itemIndex] -= prefDelta;
+						m.itemCounts[itemIndex]--;
+					}
+					else
+					{
+						m.itemSums[itemIndex] += prefDelta;
+					}
+				}
+			}
+
+			// Diffs in this item's column are (item - other); visit rows one stripe at a time
+			for (int stripe = 0; stripe < NUM_STRIPES && stripe < itemIndex; stripe++)
+			{
+				lock (stripes[stripe])
+				{
+					for (int row = stripe; row < itemIndex; row += NUM_STRIPES)
+					{
+						int offset = itemIndex - row - 1;
+						if (m.counts[row][offset] > 0)
+						{
+							UpdateDiff(m.sums[row],
+							           m.counts[row],
+							           m.sumSquares == null ? null : m.sumSquares[row],
+							           offset,
+							           -prefDelta,
+							           prefDelta,
+							           remove);
+						}
+					}
+				}
+			}
+		}
+
+		/// <summary>
+		/// Applies the same adjustment <see cref="taste.Recommender.SlopeOne.MemoryDiffStorage">MemoryDiffStorage</see>
+		/// makes to one average: remove <code>removedDatum</code>, or change the sum by <code>change</code>.
+		/// </summary>
+		private static void UpdateDiff(float[] sums,
+		                               int[] counts,
+		                               float[] sumSquares,
+		                               int offset,
+		                               double removedDatum,
+		                               double change,
+		                               bool remove)
+		{
+			if (remove)
+			{
+				sums[offset] -= (float) removedDatum;
+				counts[offset]--;
+				if (sumSquares != null)
+				{
+					sumSquares[offset] -= (float) (removedDatum * removedDatum);
+				}
+			}
+			else
+			{
+				sums[offset] += (float) change;
+			}
+		}
+
+		/// <summary>
+		/// Updates the diffs affected by the given changes in the <see cref="taste.Model.DataModel">DataModel</see>.
+		/// </summary>
+		public void PreferencesChanged(IList<PreferenceChange> changes)
+		{
+			DiffUpdates.Apply(dataModel, changes, new Updater(this, CurrentMatrix()));
+		}
+
+		public ISet<Item> GetRecommendableItems(Object userID)
+		{
+			Matrix m = CurrentMatrix();
+			User user = dataModel.GetUser(userID);
+			ISet<Item> result = new HashedSet<Item>();
+			foreach (Item item in m.items)
+			{
+				// If not already preferred by the user, add it
+				if (user.GetPreferenceFor(item.ID) == null)
+				{
+					result.Add(item);
+				}
+			}
+			return result;
+		}
+
+		private Matrix BuildMatrix()
+		{
+			log.Info("Building indexed average diffs...");
+
+			IDIndex index = itemIndexer(dataModel);
+			int numItems = index.Count;
+			Item[] items = ItemsInIndexOrder(index);
+
+			if (log.IsInfoEnabled)
+			{
+				long pairs = (long) numItems * (long) (numItems - 1) / 2L;
+				log.Info("Allocating diffs for " + numItems + " items, about " +
+				         (pairs * (stdDevWeighted ? 12L : 8L) >> 20) + "MB");
+			}
+			Matrix m = new Matrix(index, items, stdDevWeighted);
+
+			int threads = Math.Max(1, Math.Min(numThreads, numItems));
+			ParallelUtils.Run(threads, delegate(int thread)
+			{
+				// Each thread owns the rows (and item averages) whose index is congruent to it
+				int[] indices = new int[16];
+				foreach (User user in dataModel.GetUsers())
+				{
+					Preference[] prefs = user.GetPreferencesAsArray();
+					int length = prefs.Length;
+					if (indices.Length < length)
+					{
+						indices = new int[Math.Max(length, indices.Length * 2)];
+					}
+					for (int i = 0; i < length; i++)
+					{
+						indices[i] = index.IndexOf(prefs[i].Item.ID);
+					}
+					for (int a = 0; a < length; a++)
+					{
+						int indexA = indices[a];
+						if (indexA % threads != thread)
+						{
+							continue;
+						}
+						double valueA = prefs[a].Value;
+						float[] sums = m.sums[indexA];
+						int[] counts = m.counts[indexA];
+						float[] sumSquares = m.sumSquares == null ? null : m.sumSquares[indexA];
+						for (int b = 0; b < length; b++)
+						{
+							int indexB = indices[b];
+							if (indexB > indexA)
+							{
+								// This is a performance-critical block
+								int offset = indexB - indexA - 1;
+								double diff = prefs[b].Value - valueA;
+								sums[offset] += (float) diff;
+								counts[offset]++;
+								if (sumSquares != null)
+								{
+									sumSquares[offset] += (float) (diff * diff);
+								}
+							}
+						}
+						m.itemSums[indexA] += valueA;
+						m.itemCounts[indexA]++;
+					}
+				}
+			});
+
+			// Go back and prune inconsequential diffs, as MemoryDiffStorage does
+			double threshold = 1.0 / numItems / numItems / numItems;
+			ParallelUtils.For(0, numItems, threads, delegate(int row)
+			{
+				float[] sums = m.sums[row];
+				int[] counts = m.counts[row];
+				for (int j = 0; j < counts.Length; j++)
+				{
+					if (counts[j] > 0 && Math.Abs(sums[j] / counts[j]) < threshold)
+					{
+						sums[j] = 0.0f;
+						counts[j] = 0;
+						if (m.sumSquares != null)
+						{
+							m.sumSquares[row][j] = 0.0f;
+						}
+					}
+				}
+			});
+
+			log.Info("Done building indexed average diffs");
+			return m;
+		}
+
+		/// <summary>
+		/// Writes the current diffs to a file, from which they can later be loaded with
+		/// <see cref="IndexedDiffStorage(DataModel, bool, String)"/>.
+		/// </summary>
+		public void Save(String file)
+		{
+			Matrix m = CurrentMatrix();
+			using (BinaryWriter writer = new BinaryWriter(new BufferedStream(new FileStream(file, FileMode.Create))))
+			{
+				int numItems = m.index.Count;
+				writer.Write(FILE_MAGIC);
+				writer.Write(FILE_VERSION);
+				writer.Write(numItems);
+				writer.Write(m.sumSquares != null);
+				for (int i = 0; i < numItems; i++)
+				{
+					writer.Write(m.index.IDAt(i).ToString());
+					writer.Write(m.itemSums[i]);
+					writer.Write(m.itemCounts[i]);
+				}
+				byte[] buffer = new byte[0];
+				for (int row = 0; row < numItems; row++)
+				{
+					// Rows being updated concurrently are written as they are at that moment
+					lock (stripes[row % NUM_STRIPES])
+					{
+						buffer = WriteArray(writer, m.counts[row], buffer);
+						buffer = WriteArray(writer, m.sums[row], buffer);
+						if (m.sumSquares != null)
+						{
+							buffer = WriteArray(writer, m.sumSquares[row], buffer);
+						}
+					}
+				}
+			}
+			if (log.IsInfoEnabled)
+			{
+				log.Info("Saved average diffs to " + file);
+			}
+		}
+
+		/// <returns>the model's items, each at its index</returns>
+		/// <exception cref="TasteException">if the index does not cover exactly the model's items</exception>
+		private Item[] ItemsInIndexOrder(IDIndex index)
+		{
+			Item[] items = new Item[index.Count];
+			int numItems = 0;
+			foreach (Item item in dataModel.GetItems())
+			{
+				int itemIndex = index.IndexOf(item.ID);
+				if (itemIndex < 0)
+				{
+					throw new TasteException("Item index lacks data model item " + item.ID);
+				}
+				items[itemIndex] = item;
+				numItems++;
+			}
+			if (numItems != items.Length)
+			{
+				throw new TasteException("Item index has " + items.Length + " items but data model has " + numItems);
+			}
+			return items;
+		}
+
+		private Matrix ReadMatrix(String file)
+		{
+			IDIndex index = itemIndexer(dataModel);
+			Item[] items = ItemsInIndexOrder(index);
+
+			using (BinaryReader reader = new BinaryReader(new BufferedStream(new FileStream(file, FileMode.Open, FileAccess.Read))))
+			{
+				if (reader.ReadInt32() != FILE_MAGIC || reader.ReadInt32() != FILE_VERSION)
+				{
+					throw new TasteException("Not a diff storage file: " + file);
+				}
+				int numItems = reader.ReadInt32();
+				bool hasSumSquares = reader.ReadBoolean();
+				if (numItems != index.Count)
+				{
+					throw new TasteException("File has " + numItems + " items but data model has " + index.Count);
+				}
+				if (stdDevWeighted && !hasSumSquares)
+				{
+					throw new TasteException("File was not saved with standard deviation data");
+				}
+				Matrix m = new Matrix(index, items, stdDevWeighted);
+				for (int i = 0; i < numItems; i++)
+				{
+					String id = reader.ReadString();
+					if (!id.Equals(index.IDAt(i).ToString()))
+					{
+						throw new TasteException("File item " + id + " does not match data model item " + index.IDAt(i));
+					}
+					m.itemSums[i] = reader.ReadDouble();
+					m.itemCounts[i] = reader.ReadInt32();
+				}
+				for (int row = 0; row < numItems; row++)
+				{
+					ReadArray(reader, m.counts[row]);
+					ReadArray(reader, m.sums[row]);
+					if (hasSumSquares)
+					{
+						if (m.sumSquares == null)
+						{
+							// Not needed; skip over it
+							reader.ReadBytes(m.sums[row].Length * sizeof(float));
+						}
+						else
+						{
+							ReadArray(reader, m.sumSquares[row]);
+						}
+					}
+				}
+				if (log.IsInfoEnabled)
+				{
+					log.Info("Loaded average diffs for " + numItems + " items from " + file);
+				}
+				return m;
+			}
+		}
+
+		private static byte[] WriteArray(BinaryWriter writer, Array array, byte[] buffer)
+		{
+			int length = Buffer.ByteLength(array);
+			if (buffer.Length < length)
+			{
+				buffer = new byte[length];
+			}
+			Buffer.BlockCopy(array, 0, buffer, 0, length);
+			writer.Write(buffer, 0, length);
+			return buffer;
+		}
+
+		private static void ReadArray(BinaryReader reader, Array array)
+		{
+			int length = Buffer.ByteLength(array);
+			byte[] bytes = reader.ReadBytes(length);
+			if (bytes.Length != length)
+			{
+				throw new EndOfStreamException();
+			}
+			Buffer.BlockCopy(bytes, 0, array, 0, length);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		public void Refresh()
+		{
+			if (refreshLock.TryLock())
+			{
+				try
+				{
+					dataModel.Refresh();
+					if (followsDataModel && !sawUnknownItems)
+					{
+						// Already updated through PreferencesChanged()
+						return;
+					}
+					try
+					{
+						// Build the new matrix while the old one keeps serving reads, then swap
+						Matrix newMatrix = BuildMatrix();
+						buildLock.AcquireWriterLock(Constants.INFINITE_TIMEOUT);
+						try
+						{
+							matrix = newMatrix;
+							sawUnknownItems = false;
+						}
+						finally
+						{
+							buildLock.ReleaseWriterLock();
+						}
+					}
+					catch (TasteException te)
+					{
+						log.Warn("Unexpected exception while refreshing", te);
+					}
+				}
+				finally
+				{
+					refreshLock.Unlock();
+				}
+			}
+		}
+
+		public override String ToString()
+		{
+			return "IndexedDiffStorage[stdDevWeighted:" + stdDevWeighted + ']';
+		}
+
+		#region Helper Classes
+
+		/// <summary>
+		/// One immutable-shaped snapshot of the diffs; the array contents change on updates.
+		/// </summary>
+		private sealed class Matrix
+		{
+			internal readonly IDIndex index;
+			internal readonly Item[] items;
+			internal readonly float[][] sums;
+			internal readonly int[][] counts;
+			internal readonly float[][] sumSquares;
+			internal readonly double[] itemSums;
+			internal readonly int[] itemCounts;
+
+			internal Matrix(IDIndex index, Item[] items, bool withSumSquares)
+			{
+				int numItems = index.Count;
+				this.index = index;
+				this.items = items;
+				this.sums = new float[numItems][];
+				this.counts = new int[numItems][];
+				this.sumSquares = withSumSquares ? new float[numItems][] : null;
+				for (int i = 0; i < numItems; i++)
+				{
+					int rowLength = numItems - i - 1;
+					sums[i] = new float[rowLength];
+					counts[i] = new int[rowLength];
+					if (withSumSquares)
+					{
+						sumSquares[i] = new float[rowLength];
+					}
+				}
+				this.itemSums = new double[numItems];
+				this.itemCounts = new int[numItems];
+			}
+
+			/// <returns>average of (pref 2 - pref 1), or <code>null</code> if there is no data</returns>
+			internal RunningAverage GetDiff(int index1, int index2)
+			{
+				if (index1 < 0 || index2 < 0 || index1 == index2)
+				{
+					return null;
+				}
+				bool inverted = index1 > index2;
+				int row = inverted ? index2 : index1;
+				int offset = (inverted ? index1 : index2) - row - 1;
+				int count = counts[row][offset];
+				if (count <= 0)
+				{
+					return null;
+				}
+				double sum = sums[row][offset];
+				double average = sum / count;
+				double stdDev = Double.NaN;
+				if (sumSquares != null && count > 1)
+				{
+					double variance = (sumSquares[row][offset] - average * average * count) / (count - 1);
+					stdDev = variance > 0.0 ? Math.Sqrt(variance) : 0.0;
+				}
+				return new FixedAverage(count, inverted ? -average : average, stdDev);
+			}
+		}
+
+		/// <summary>
+		/// Applies incremental changes under the row stripe locks.
+		/// </summary>
+		private sealed class Updater : DiffUpdateTarget
+		{
+			private readonly IndexedDiffStorage storage;
+			private readonly Matrix m;
+
+			internal Updater(IndexedDiffStorage storage, Matrix m)
+			{
+				this.storage = storage;
+				this.m = m;
+			}
+
+			public void AddDiff(Object itemID1, Object itemID2, double diff)
+			{
+				Update(itemID1, itemID2, diff, 1);
+			}
+
+			public void RemoveDiff(Object itemID1, Object itemID2, double diff)
+			{
+				Update(itemID1, itemID2, diff, -1);
+			}
+
+			public void AddItemPref(Object itemID, double value)
+			{
+				UpdateItem(itemID, value, 1);
+			}
+
+			public void RemoveItemPref(Object itemID, double value)
+			{
+				UpdateItem(itemID, value, -1);
+			}
+
+			private void Update(Object itemID1, Object itemID2, double diff, int sign)
+			{
+				int index1 = IndexOf(itemID1);
+				int index2 = IndexOf(itemID2);
+				if (index1 < 0 || index2 < 0)
+				{
+					return;
+				}
+				// Row min holds (pref max - pref min)
+				int row = Math.Min(index1, index2);
+				int offset = Math.Max(index1, index2) - row - 1;
+				double stored = index1 < index2 ? diff : -diff;
+				lock (storage.stripes[row % NUM_STRIPES])
+				{
+					int[] counts = m.counts[row];
+					if (sign < 0 && counts[offset] <= 0)
+					{
+						return;
+					}
+					counts[offset] += sign;
+					m.sums[row][offset] += (float) (sign * stored);
+					if (m.sumSquares != null)
+					{
+						m.sumSquares[row][offset] += (float) (sign * stored * stored);
+					}
+					if (counts[offset] == 0)
+					{
+						// Clear float residue
+						m.sums[row][offset] = 0.0f;
+						if (m.sumSquares != null)
+						{
+							m.sumSquares[row][offset] = 0.0f;
+						}
+					}
+				}
+			}
+
+			private void UpdateItem(Object itemID, double value, int sign)
+			{
+				int index = IndexOf(itemID);
+				if (index < 0)
+				{
+					return;
+				}
+				lock (storage.stripes[index % NUM_STRIPES])
+				{
+					if (sign < 0 && m.itemCounts[index] <= 0)
+					{
+						return;
+					}
+					m.itemCounts[index] += sign;
+					m.itemSums[index] = m.itemCounts[index] == 0 ? 0.0 : m.itemSums[index] + sign * value;
+				}
+			}
+
+			private int IndexOf(Object itemID)
+			{
+				int index = m.index.IndexOf(itemID);
+				if (index < 0 && !storage.sawUnknownItems)
+				{
+					storage.sawUnknownItems = true;
+					log.Info("Item " + itemID + " is not in the diff matrix; it will be added on the next refresh");
+				}
+				return index;
+			}
+		}
+
+		/// <summary>
+		/// Read-only view of an average, handed out by this storage. Changes must go through
+		/// <see cref="UpdateItemPref(Object, double, bool)"/>.
+		/// </summary>
+		private sealed class FixedAverage : RunningAverageAndStdDev
+		{
+			private readonly int count;
+			private readonly double average;
+			private readonly double stdDev;
+
+			internal FixedAverage(int count, double average, double stdDev)
+			{
+				this.count = count;
+				this.average = average;
+				this.stdDev = stdDev;
+			}
+
+			public void AddDatum(double datum)
+			{
+				throw new NotSupportedException();
+			}
+
+			public void RemoveDatum(double datum)
+			{
+				throw new NotSupportedException();
+			}
+
+			public void ChangeDatum(double delta)
+			{
+				throw new NotSupportedException();
+			}
+
+			public int Count
+			{
+				get { return count; }
+			}
+
+			public double Average
+			{
+				get { return average; }
+			}
+
+			public double StandardDeviation
+			{
+				get { return stdDev; }
+			}
+
+			public override String ToString()
+			{
+				return average.ToString() + ',' + stdDev;
+			}
+		}
+
+		#endregion
+	}
+
+}
@@ -29,16 +29,26 @@ namespace Taste.Recommender.SlopeOne
     /// <summary>
     /// <p>An implementation of {@link DiffStorage} that merely stores item-item diffs in memory.
     /// It is fast, but can consume a great deal of memory.</p>
+    ///
+    /// <p>If the {@link DataModel} is a {@link PreferenceChangeSource}, this storage listens to it and updates
+    /// just the affected diffs as preferences are added, changed or removed, instead of rebuilding on refresh.
+    /// <see cref="Dispose()"/> stops listening, which the model otherwise keeps this storage reachable by, and
+    /// takes it out of {@link MemoryBudget#Default}; refreshes then rebuild it again.</p>
+    ///
+    /// <p>Before building diffs, this checks {@link MemoryBudget#Default} for room for one diff per pair of
+    /// items, or <code>maxEntries</code> if that is fewer, and then tracks itself with that budget.</p>
     /// 
     /// @author Sean Owen
     /// </summary>
-	public class MemoryDiffStorage : DiffStorage 
+	public class MemoryDiffStorage : DiffStorage, PreferenceChangeListener, MemoryAccountable, IDisposable
     {
 		private static ILog log = LogManager.GetLogger(typeof(MemoryDiffStorage).Name);
 		private DataModel dataModel;
 		private bool stdDevWeighted;
 		private bool compactAverages;
 		private long maxEntries;
+		private long averageCount;
+		private volatile bool followsDataModel;
 		
 		private Dictionary<Object, Dictionary<Object, RunningAverage>> averageDiffs;
 		
@@ -93,7 +103,18 @@ namespace Taste.Recommender.SlopeOne
 			this.averageItemPref = new Dictionary<Object, RunningAverage>(101);
 			this.buildAverageDiffsLock = new ReaderWriterLock();
 			this.refreshLock = new ReentrantLock();
+			long numItems = dataModel.GetNumItems();
+			long maxDiffs = Math.Min(maxEntries, numItems * (numItems - 1L) / 2L);
+			MemoryBudget.Default.CheckAvailable(ToString(),
+			                                    EstimateBytes(maxDiffs, numItems, stdDevWeighted, compactAverages));
 			BuildAverageDiffs();
+			MemoryBudget.Default.Track(ToString(), this, EstimatedBytes);
+			PreferenceChangeSource changeSource = dataModel as PreferenceChangeSource;
+			if (changeSource != null)
+			{
+				changeSource.AddPreferenceChangeListener(this);
+				followsDataModel = true;
+			}
 		}
 
 
@@ -240,7 +261,7 @@ namespace Taste.Recommender.SlopeOne
             buildAverageDiffsLock.AcquireWriterLock(Constants.INFINITE_TIMEOUT);
 			try 
             {
-				long averageCount = 0L;
+				averageCount = 0L;
 				foreach (User user in dataModel.GetUsers()) 
                 {
 					if (log.IsDebugEnabled) 
@@ -335,6 +356,48 @@ namespace Taste.Recommender.SlopeOne
 			}
 		}
 
+		/// <summary>
+		/// Updates the diffs affected by the given changes in the {@link DataModel}.
+		/// </summary>
+		public void PreferencesChanged(IList<PreferenceChange> changes)
+		{
+			buildAverageDiffsLock.AcquireWriterLock(Constants.INFINITE_TIMEOUT);
+			try
+			{
+				DiffUpdates.Apply(dataModel, changes, new Updater(this));
+			}
+			finally
+			{
+				buildAverageDiffsLock.ReleaseWriterLock();
+			}
+			if (log.IsDebugEnabled)
+			{
+				log.Debug("Applied " + changes.Count + " preference changes");
+			}
+		}
+
+		/// <summary>
+		/// <code>true</code> if this storage keeps itself up to date by listening to its {@link DataModel}
+		/// </summary>
+		public bool FollowsDataModel
+		{
+			get { return followsDataModel; }
+		}
+
+		/// <summary>
+		/// Stops listening to the {@link DataModel} and stops being tracked by {@link MemoryBudget#Default}.
+		/// </summary>
+		public void Dispose()
+		{
+			PreferenceChangeSource changeSource = dataModel as PreferenceChangeSource;
+			if (changeSource != null)
+			{
+				changeSource.RemovePreferenceChangeListener(this);
+			}
+			followsDataModel = false;
+			MemoryBudget.Default.Untrack(this);
+		}
+
 		private RunningAverage BuildRunningAverage() 
         {
 			if (stdDevWeighted) 
@@ -363,9 +426,15 @@ namespace Taste.Recommender.SlopeOne
                 try
                 {
                     dataModel.Refresh();
+                    if (followsDataModel)
+                    {
+                        // Already updated through PreferencesChanged()
+                        return;
+                    }
                     try
                     {
                         BuildAverageDiffs();
+                        MemoryBudget.Default.Track(ToString(), this, EstimatedBytes);
                     }
                     catch (TasteException te)
                     {
@@ -379,11 +448,164 @@ namespace Taste.Recommender.SlopeOne
             }
 		}
 
+		public long EstimatedBytes
+		{
+			get
+			{
+				long numDiffs = 0L;
+				long numItems;
+				buildAverageDiffsLock.AcquireReaderLock(Constants.INFINITE_TIMEOUT);
+				try
+				{
+					foreach (Dictionary<Object, RunningAverage> map in averageDiffs.Values)
+					{
+						numDiffs += map.Count;
+					}
+					numItems = Math.Max(averageDiffs.Count, averageItemPref.Count);
+				}
+				finally
+				{
+					buildAverageDiffsLock.ReleaseReaderLock();
+				}
+				return EstimateBytes(numDiffs, numItems, stdDevWeighted, compactAverages);
+			}
+		}
+
+		/// <summary>
+		/// Estimates the memory taken by <code>numDiffs</code> item-item diffs over <code>numItems</code> items,
+		/// with the averages the other arguments choose.
+		/// </summary>
+		public static long EstimateBytes(long numDiffs, long numItems, bool stdDevWeighted, bool compactAverages)
+		{
+			int r = MemoryBudget.REFERENCE_BYTES;
+			int averageFields = compactAverages ? (stdDevWeighted ? 14 : 6) : (stdDevWeighted ? 28 : 12);
+			long averageBytes = MemoryBudget.ObjectBytes(averageFields);
+			// Each item has a map of diffs to later items, and an average preference
+			return numDiffs * averageBytes + MemoryBudget.DictionaryBytes(numDiffs, r, r) +
+			       numItems * (MemoryBudget.DictionaryBytes(0, r, r) + averageBytes) +
+			       2 * MemoryBudget.DictionaryBytes(numItems, r, r);
+		}
+
 		public override String ToString() 
 		{
 			return "MemoryDiffStorage";
 		}
 
+		#region Updater Helper Class
+
+		/// <summary>
+		/// Applies incremental changes; called with the write lock held.
+		/// </summary>
+		private sealed class Updater : DiffUpdateTarget
+		{
+			private readonly MemoryDiffStorage storage;
+
+			internal Updater(MemoryDiffStorage storage)
+			{
+				this.storage = storage;
+			}
+
+			public void AddDiff(Object itemID1, Object itemID2, double diff)
+			{
+				RunningAverage average = Find(itemID1, itemID2);
+				if (average != null)
+				{
+					average.AddDatum(diff);
+					return;
+				}
+				average = Find(itemID2, itemID1);
+				if (average != null)
+				{
+					average.AddDatum(-diff);
+					return;
+				}
+				if (storage.averageCount < storage.maxEntries)
+				{
+					Dictionary<Object, RunningAverage> level2Map;
+					if (!storage.averageDiffs.TryGetValue(itemID1, out level2Map))
+					{
+						level2Map = new Dictionary<Object, RunningAverage>();
+						storage.averageDiffs.Add(itemID1, level2Map);
+					}
+					average = storage.BuildRunningAverage();
+					average.AddDatum(diff);
+					level2Map.Add(itemID2, average);
+					storage.averageCount++;
+				}
+			}
+
+			public void RemoveDiff(Object itemID1, Object itemID2, double diff)
+			{
+				if (!RemoveDatum(itemID1, itemID2, diff))
+				{
+					RemoveDatum(itemID2, itemID1, -diff);
+				}
+			}
+
+			public void AddItemPref(Object itemID, double value)
+			{
+				RunningAverage itemAverage;
+				if (!storage.averageItemPref.TryGetValue(itemID, out itemAverage))
+				{
+					itemAverage = storage.BuildRunningAverage();
+					storage.averageItemPref.Add(itemID, itemAverage);
+				}
+				itemAverage.AddDatum(value);
+			}
+
+			public void RemoveItemPref(Object itemID, double value)
+			{
+				RunningAverage itemAverage;
+				if (storage.averageItemPref.TryGetValue(itemID, out itemAverage))
+				{
+					if (itemAverage.Count <= 1)
+					{
+						storage.averageItemPref.Remove(itemID);
+					}
+					else
+					{
+						itemAverage.RemoveDatum(value);
+					}
+				}
+			}
+
+			private RunningAverage Find(Object itemID1, Object itemID2)
+			{
+				Dictionary<Object, RunningAverage> level2Map;
+				RunningAverage average;
+				if (storage.averageDiffs.TryGetValue(itemID1, out level2Map) &&
+				    level2Map.TryGetValue(itemID2, out average))
+				{
+					return average;
+				}
+				return null;
+			}
+
+			private bool RemoveDatum(Object itemID1, Object itemID2, double diff)
+			{
+				Dictionary<Object, RunningAverage> level2Map;
+				RunningAverage average;
+				if (!storage.averageDiffs.TryGetValue(itemID1, out level2Map) ||
+				    !level2Map.TryGetValue(itemID2, out average))
+				{
+					return false;
+				}
+				if (average.Count <= 1)
+				{
+					// Last datum gone; drop the average rather than keep a NaN around
+					level2Map.Remove(itemID2);
+					storage.averageCount--;
+				}
+				else
+				{
+					average.RemoveDatum(diff);
+				}
+				return true;
+			}
+		}
+
+		#endregion
+
 	}
 
 }	
\ No newline at end of file
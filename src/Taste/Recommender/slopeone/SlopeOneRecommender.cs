@@ -216,7 +216,10 @@ namespace Taste.Recommender.SlopeOne
 				prefDelta = value;
 			}
 			base.SetPreference(userID, itemID, value);		
-			diffStorage.UpdateItemPref(itemID, prefDelta, false);
+			if (!DiffStorageFollowsDataModel())
+			{
+				diffStorage.UpdateItemPref(itemID, prefDelta, false);
+			}
 		}
 
 
@@ -226,12 +229,24 @@ namespace Taste.Recommender.SlopeOne
 			User theUser = dataModel.GetUser(userID);
 			Preference oldPref = theUser.GetPreferenceFor(itemID);
 			base.RemovePreference(userID, itemID);
-			if (oldPref != null) 
+			if (oldPref != null && !DiffStorageFollowsDataModel()) 
             {
 				diffStorage.UpdateItemPref(itemID, oldPref.Value, true);
 			}
         }
 
+		/// <summary>
+		/// <code>true</code> if the <see cref="taste.Recommender.SlopeOne.DiffStorage">DiffStorage</see> hears about
+		/// preference changes from the <see cref="taste.Model.DataModel">DataModel</see> itself, in which case
+		/// updating it here as well would count each change twice.
+		/// </summary>
+		private bool DiffStorageFollowsDataModel()
+		{
+			PreferenceChangeSource changeSource = this.DataModel as PreferenceChangeSource;
+			PreferenceChangeListener listener = diffStorage as PreferenceChangeListener;
+			return changeSource != null && listener != null && changeSource.HasPreferenceChangeListener(listener);
+		}
+
         #endregion
 
         /**
@@ -22,7 +22,6 @@ namespace Taste.Transforms
 	using Taste.Correlation;
 	using Taste.Model;
 	using Taste.Transforms;
-    using log4net;
 
 
     /// <summary>
@@ -39,14 +38,18 @@ namespace Taste.Transforms
     /// number of users who express a preference for each item in your Model. If each item has about 100 preferences
     /// on average, 100.0 is a good log base.</p>
     ///
+    /// <p>User frequencies come from a <see cref="taste.Model.DataModelStatistics">DataModelStatistics</see>, which
+    /// may be shared with other components over the same model. Factors for all items are computed together and
+    /// kept until the statistics' <see cref="taste.Model.DataModelStatistics.Version">Version</see> or the log base
+    /// changes.</p>
+    ///
     ///@author Sean Owen
     /// </summary>
 	public class InverseUserFrequency : PreferenceTransform2 
 	{
-		private static readonly ILog log = LogManager.GetLogger(typeof(InverseUserFrequency));
-		private readonly DataModel dataModel;
+		private readonly DataModelStatistics statistics;
 		private double logBase;
-		private readonly AtomicReference<Dictionary<Item, Double>> iufFactors;
+		private volatile Factors factors;
 
 
         /// <summary>
@@ -56,19 +59,27 @@ namespace Taste.Transforms
         /// <param name="dataModel">{@link DataModel} from which to calculate user frequencies</param>
         /// <param name="logBase">calculation logarithm base</param>
 		public InverseUserFrequency(DataModel dataModel, double logBase) 
+			: this(NewStatistics(dataModel), logBase)
 		{
-			if (dataModel == null) 
+		}
+
+        /// <summary>
+        /// Creates a {@link InverseUserFrequency} transformation over shared statistics.
+        /// </summary>
+        /// <param name="statistics">statistics of the {@link DataModel} from which to calculate user frequencies</param>
+        /// <param name="logBase">calculation logarithm base</param>
+		public InverseUserFrequency(DataModelStatistics statistics, double logBase) 
+		{
+			if (statistics == null) 
 			{
-				throw new ArgumentNullException("dataModel is null");
+				throw new ArgumentNullException("statistics is null");
 			}
 			if (double.IsNaN(logBase) || logBase <= 1.0) 
 			{
 				throw new ArgumentException("logBase is NaN or <= 1.0");
 			}
-			this.dataModel = dataModel;
+			this.statistics = statistics;
 			this.LogBase = logBase;
-			this.iufFactors = new AtomicReference<Dictionary<Item, Double>>(new Dictionary<Item, Double>(1009));
-			Refresh();
 		}
 
         /// <summary>
@@ -77,13 +88,23 @@ namespace Taste.Transforms
 		public double LogBase
 		{
 			get {return logBase;}
-            set { logBase = value; }
+            set
+            {
+                logBase = value;
+                factors = null;
+            }
 		}
 
 		public double GetTransformedValue(Preference pref) 
 		{
+			Factors current = factors;
+			if (current == null || current.version != statistics.Version)
+			{
+				current = ComputeFactors();
+				factors = current;
+			}
 			double factor;
-            if (iufFactors.Value.TryGetValue(pref.Item, out factor))
+			if (current.byItem.TryGetValue(pref.Item.ID, out factor))
 			{
 				return pref.Value * factor;
 			}
@@ -92,38 +113,34 @@ namespace Taste.Transforms
 
 		public void Refresh() 
 		{
-			try 
+			statistics.Refresh();
+		}
+
+		private Factors ComputeFactors()
+		{
+			// Read first, so that a change while computing leaves these stale rather than wrongly current
+			long version = statistics.Version;
+			IDictionary<Object, int> counts = statistics.GetItemCounts();
+			double numUsers = statistics.NumUsers;
+			double logFactor = Math.Log(logBase);
+			Dictionary<Object, double> byItem = new Dictionary<Object, double>(counts.Count);
+			foreach (KeyValuePair<Object, int> entry in counts)
 			{
-				Counters<Item> itemPreferenceCounts = new Counters<Item>();
-				lock (this) 
+				if (entry.Value > 0)
 				{
-					int numUsers = 0;
-					foreach (User user in dataModel.GetUsers()) 
-					{
-                        Preference[] prefs = user.GetPreferencesAsArray();
-						foreach (Preference preference in prefs) 
-						{
-							itemPreferenceCounts.Increment(preference.Item);
-						}
-						numUsers++;
-					}
-					Dictionary<Item, double> newIufFactors =
-						new Dictionary<Item, double>(1 + (4 * itemPreferenceCounts.Count) / 3);
-					double logFactor = Math.Log(logBase);
-					foreach (KeyValuePair<Item, MutableInteger> entry in itemPreferenceCounts.Map) 
-					{
-                        int count = entry.Value.Value;
-						newIufFactors.Add(entry.Key,
-										  Math.Log((double) numUsers / (double) count) / logFactor);
-					}
-
-					iufFactors.Set(newIufFactors /* readonly */);
+					byItem.Add(entry.Key, Math.Log(numUsers / entry.Value) / logFactor);
 				}
-			} 
-			catch (TasteException dme) 
+			}
+			return new Factors(version, byItem);
+		}
+
+		private static DataModelStatistics NewStatistics(DataModel dataModel)
+		{
+			if (dataModel == null) 
 			{
-				log.Warn( "Unable to refresh", dme);
+				throw new ArgumentNullException("dataModel is null");
 			}
+			return new DataModelStatistics(dataModel);
 		}
 
 		public override String ToString() 
@@ -131,6 +148,18 @@ namespace Taste.Transforms
 			return "InverseUserFrequency[logBase:" + logBase + ']';
 		}
 
+		private sealed class Factors
+		{
+			internal readonly long version;
+			internal readonly Dictionary<Object, double> byItem;
+
+			internal Factors(long version, Dictionary<Object, double> byItem)
+			{
+				this.version = version;
+				this.byItem = byItem;
+			}
+		}
+
 	}
 
 }	
\ No newline at end of file
@@ -33,12 +33,15 @@ namespace Taste.Transforms
     /// and another who uses the full one to five star range when assigning ratings. This
     /// transform normalizes away the difference in scale used by the two users so that both
     /// have a mean preference of 0.0 and a standard deviation of 1.0.</p>
+    /// <p>Means and deviations are computed per user as needed, or read from a
+    /// <see cref="taste.Model.DataModelStatistics">DataModelStatistics</see> passed to the constructor.</p>
     /// 
     /// @author Sean Owen
     /// </summary>
 	public class ZScore : PreferenceTransform2 
 	{
 		private readonly SoftCache<User, RunningAverageAndStdDev> meanAndStdevs;
+		private readonly DataModelStatistics statistics;
 
 		public ZScore() 
 		{
@@ -46,8 +49,30 @@ namespace Taste.Transforms
 			Refresh();
 		}
 
+		public ZScore(DataModelStatistics statistics) 
+		{
+			if (statistics == null) 
+			{
+				throw new ArgumentNullException("statistics is null");
+			}
+			this.statistics = statistics;
+		}
+
 		public double GetTransformedValue(Preference pref)
 		{
+			if (statistics != null) 
+			{
+				Object userID = pref.User.ID;
+				if (statistics.GetUserCount(userID) > 1) 
+				{
+					double stdev = statistics.GetUserStandardDeviation(userID);
+					if (stdev > 0.0) 
+					{
+						return (pref.Value - statistics.GetUserMean(userID)) / stdev;
+					}
+				}
+				return 0.0;
+			}
 			RunningAverageAndStdDev meanAndStdev = meanAndStdevs.Get(pref.User);            
 			if (meanAndStdev.Count > 1) 
 			{
@@ -62,7 +87,10 @@ namespace Taste.Transforms
 
 		public void Refresh() 
 		{
-			// do nothing
+			if (statistics != null) 
+			{
+				statistics.Refresh();
+			}
 		}
 
 		public override String ToString() 